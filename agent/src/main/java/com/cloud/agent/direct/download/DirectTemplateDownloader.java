@@ -25,6 +25,8 @@ public interface DirectTemplateDownloader {
         private String installPath;
         private Long size;
         private String checksum;
+        private long downloadedBytes;
+        private long downloadDuration;
 
         public DirectTemplateInformation(String installPath, Long size, String checksum) {
             this.installPath = installPath;
@@ -32,6 +34,12 @@ public interface DirectTemplateDownloader {
             this.checksum = checksum;
         }
 
+        public DirectTemplateInformation(String installPath, Long size, String checksum, long downloadedBytes, long downloadDuration) {
+            this(installPath, size, checksum);
+            this.downloadedBytes = downloadedBytes;
+            this.downloadDuration = downloadDuration;
+        }
+
         public String getInstallPath() {
             return installPath;
         }
@@ -43,6 +51,20 @@ public interface DirectTemplateDownloader {
         public String getChecksum() {
             return checksum;
         }
+
+        /**
+         * Bytes transferred over the network by the last download
+         */
+        public long getDownloadedBytes() {
+            return downloadedBytes;
+        }
+
+        /**
+         * Duration of the last download in milliseconds
+         */
+        public long getDownloadDuration() {
+            return downloadDuration;
+        }
     }
 
     /**
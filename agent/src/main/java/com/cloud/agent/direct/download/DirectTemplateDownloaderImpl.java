@@ -20,6 +20,7 @@ package com.cloud.agent.direct.download;
 
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.script.Script;
+import org.apache.cloudstack.utils.security.ChecksumValue;
 import org.apache.cloudstack.utils.security.DigestHelper;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
@@ -27,6 +28,8 @@ import org.apache.log4j.Logger;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.UUID;
 
@@ -39,6 +42,9 @@ public abstract class DirectTemplateDownloaderImpl implements DirectTemplateDown
     private String installPath;
     private String checksum;
     private boolean redownload = false;
+    private ChecksumValue inlineChecksum;
+    private long downloadedBytes;
+    private long downloadDuration;
     public static final Logger s_logger = Logger.getLogger(DirectTemplateDownloaderImpl.class.getName());
 
     protected DirectTemplateDownloaderImpl(final String url, final String destPoolPath, final Long templateId, final String checksum) {
@@ -46,6 +52,7 @@ public abstract class DirectTemplateDownloaderImpl implements DirectTemplateDown
         this.destPoolPath = destPoolPath;
         this.templateId = templateId;
         this.checksum = checksum;
+        this.installPath = UUID.randomUUID().toString();
     }
 
     private static String directDownloadDir = "template";
@@ -105,6 +112,61 @@ public abstract class DirectTemplateDownloaderImpl implements DirectTemplateDown
         return redownload;
     }
 
+    /**
+     * Return the file to download the template to. Templates that need no extraction are written
+     * straight to their install path on the pool, compressed ones go to the temporary download directory
+     */
+    protected String getDownloadFilePath(String downloadDir) {
+        String fileName = getFileNameFromUrl();
+        if (!isCompressedFileName(fileName)) {
+            return getInstallFullPath();
+        }
+        return destPoolPath + File.separator + downloadDir + File.separator + fileName;
+    }
+
+    protected static boolean isCompressedFileName(String fileName) {
+        return fileName.endsWith(".zip") || fileName.endsWith(".bz2") || fileName.endsWith(".gz");
+    }
+
+    /**
+     * Return a digest to feed while downloading, null if there is no checksum to validate
+     */
+    protected MessageDigest createDownloadDigest() {
+        if (StringUtils.isBlank(checksum)) {
+            return null;
+        }
+        String algorithm = new ChecksumValue(checksum).getAlgorithm();
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            s_logger.warn("Unable to compute " + algorithm + " checksum while downloading template " + templateId + ", it will be validated afterwards");
+            return null;
+        }
+    }
+
+    /**
+     * Keep the checksum computed while downloading, so that validation does not read the template again
+     */
+    protected void setInlineChecksum(MessageDigest digest) {
+        inlineChecksum = digest != null ? DigestHelper.toChecksumValue(digest) : null;
+    }
+
+    protected void setDownloadStats(long bytes, long duration) {
+        this.downloadedBytes = bytes;
+        this.downloadDuration = duration;
+        if (duration > 0) {
+            s_logger.info("Downloaded " + bytes + " bytes of template " + templateId + " in " + duration + " ms (" + (bytes * 1000 / duration / 1024) + " KB/s)");
+        }
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    public long getDownloadDuration() {
+        return downloadDuration;
+    }
+
     /**
      * Return filename from url
      */
@@ -124,10 +186,9 @@ public abstract class DirectTemplateDownloaderImpl implements DirectTemplateDown
 
     @Override
     public boolean extractAndInstallDownloadedTemplate() {
-        installPath = UUID.randomUUID().toString();
         if (isTemplateExtractable()) {
             extractDownloadedTemplate();
-        } else {
+        } else if (!getInstallFullPath().equals(downloadedFilePath)) {
             Script.runSimpleBashScript("mv " + downloadedFilePath + " " + getInstallFullPath());
         }
         return true;
@@ -136,7 +197,7 @@ public abstract class DirectTemplateDownloaderImpl implements DirectTemplateDown
     /**
      * Return install full path
      */
-    private String getInstallFullPath() {
+    protected String getInstallFullPath() {
         return destPoolPath + File.separator + installPath;
     }
 
@@ -168,7 +229,7 @@ public abstract class DirectTemplateDownloaderImpl implements DirectTemplateDown
     public DirectTemplateInformation getTemplateInformation() {
         String sizeResult = Script.runSimpleBashScript("ls -als " + getInstallFullPath() + " | awk '{print $1}'");
         long size = Long.parseLong(sizeResult);
-        return new DirectTemplateInformation(installPath, size, checksum);
+        return new DirectTemplateInformation(installPath, size, checksum, downloadedBytes, downloadDuration);
     }
 
     @Override
@@ -180,7 +241,7 @@ public abstract class DirectTemplateDownloaderImpl implements DirectTemplateDown
                 while (!valid && retry > 0) {
                     retry--;
                     s_logger.info("Performing checksum validation for downloaded template " + templateId + " using " + checksum + ", retries left: " + retry);
-                    valid = DigestHelper.check(checksum, new FileInputStream(downloadedFilePath));
+                    valid = isChecksumValid();
                     if (!valid && retry > 0) {
                         s_logger.info("Checksum validation failded, re-downloading template");
                         redownload = true;
@@ -200,11 +261,26 @@ public abstract class DirectTemplateDownloaderImpl implements DirectTemplateDown
         return true;
     }
 
+    /**
+     * Compare against the checksum computed while downloading if it used the same algorithm, otherwise read the file
+     */
+    private boolean isChecksumValid() throws IOException, NoSuchAlgorithmException {
+        ChecksumValue expected = new ChecksumValue(checksum);
+        if (inlineChecksum != null && inlineChecksum.getAlgorithm().equals(expected.getAlgorithm())) {
+            s_logger.debug("Using checksum computed while downloading template " + templateId);
+            return inlineChecksum.equals(expected);
+        }
+        try (InputStream is = new FileInputStream(downloadedFilePath)) {
+            return DigestHelper.check(checksum, is);
+        }
+    }
+
     /**
      * Delete and create download file
      */
     private void resetDownloadFile() {
         File f = new File(getDownloadedFilePath());
+        inlineChecksum = null;
         s_logger.info("Resetting download file: " + getDownloadedFilePath() + ", in order to re-download and persist template " + templateId + " on it");
         try {
             if (f.exists()) {
@@ -19,21 +19,30 @@
 
 package com.cloud.agent.direct.download;
 
+import com.cloud.storage.template.BandwidthLimiter;
+import com.cloud.storage.template.SegmentedDownload;
 import com.cloud.utils.exception.CloudRuntimeException;
 import org.apache.commons.collections.MapUtils;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.log4j.Logger;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class HttpDirectTemplateDownloader extends DirectTemplateDownloaderImpl {
@@ -44,6 +53,20 @@ public class HttpDirectTemplateDownloader extends DirectTemplateDownloaderImpl {
     protected GetMethod request;
     protected Map<String, String> reqHeaders = new HashMap<>();
 
+    public static final int MAX_PARALLEL_SEGMENTS = 16;
+    protected static final long MIN_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int SEGMENT_RETRIES = 3;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    static {
+        // segments of concurrent downloads share the manager, the default of 2 connections per host would serialize them
+        s_httpClientManager.getParams().setDefaultMaxConnectionsPerHost(MAX_PARALLEL_SEGMENTS * 2);
+        s_httpClientManager.getParams().setMaxTotalConnections(MAX_PARALLEL_SEGMENTS * 4);
+    }
+
+    private int parallelSegments = 1;
+    private BandwidthLimiter bandwidthLimiter;
+
     public HttpDirectTemplateDownloader(String url, Long templateId, String destPoolPath, String checksum, Map<String, String> headers) {
         super(url, destPoolPath, templateId, checksum);
         s_httpClientManager.getParams().setConnectionTimeout(5000);
@@ -56,7 +79,7 @@ public class HttpDirectTemplateDownloader extends DirectTemplateDownloaderImpl {
 
     protected void createTemporaryDirectoryAndFile(String downloadDir) {
         createFolder(getDestPoolPath() + File.separator + downloadDir);
-        File f = new File(getDestPoolPath() + File.separator + downloadDir + File.separator + getFileNameFromUrl());
+        File f = new File(getDownloadFilePath(downloadDir));
         setDownloadedFilePath(f.getAbsolutePath());
     }
 
@@ -72,8 +95,37 @@ public class HttpDirectTemplateDownloader extends DirectTemplateDownloaderImpl {
         return request;
     }
 
+    /**
+     * Number of byte ranges fetched concurrently when the server supports range requests, 1 disables it
+     */
+    public void setParallelSegments(int parallelSegments) {
+        this.parallelSegments = Math.max(1, Math.min(parallelSegments, MAX_PARALLEL_SEGMENTS));
+    }
+
+    public int getParallelSegments() {
+        return parallelSegments;
+    }
+
+    /**
+     * Limiter shared by all direct downloads of the host, null for no limit
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
     @Override
     public boolean downloadTemplate() {
+        Boolean segmented = downloadInSegments(Collections.singletonList(getUrl()));
+        if (segmented != null) {
+            return segmented;
+        }
+        return downloadInSingleStream();
+    }
+
+    /**
+     * Download the template from the current url as one plain stream, without trying byte ranges
+     */
+    protected boolean downloadInSingleStream() {
         try {
             int status = client.executeMethod(request);
             if (status != HttpStatus.SC_OK) {
@@ -90,15 +142,154 @@ public class HttpDirectTemplateDownloader extends DirectTemplateDownloaderImpl {
 
     protected boolean performDownload() {
         s_logger.info("Downloading template " + getTemplateId() + " from " + getUrl() + " to: " + getDownloadedFilePath());
-        try (
-                InputStream in = request.getResponseBodyAsStream();
-                OutputStream out = new FileOutputStream(getDownloadedFilePath());
-        ) {
-            IOUtils.copy(in, out);
+        try (InputStream in = request.getResponseBodyAsStream()) {
+            copyToDownloadedFile(in);
         } catch (IOException e) {
             s_logger.error("Error downloading template " + getTemplateId() + " due to: " + e.getMessage());
             return false;
         }
         return true;
     }
-}
\ No newline at end of file
+
+    /**
+     * Write a single response stream to the downloaded file, hashing and throttling it on the way
+     */
+    protected void copyToDownloadedFile(InputStream in) throws IOException {
+        long start = System.currentTimeMillis();
+        MessageDigest digest = createDownloadDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        try (OutputStream out = new FileOutputStream(getDownloadedFilePath())) {
+            int bytes;
+            while ((bytes = in.read(buffer)) > -1) {
+                if (bandwidthLimiter != null) {
+                    bandwidthLimiter.acquire(bytes);
+                }
+                out.write(buffer, 0, bytes);
+                if (digest != null) {
+                    digest.update(buffer, 0, bytes);
+                }
+                total += bytes;
+            }
+        } catch (IOException e) {
+            // do not leave a partial template behind at the install path
+            new File(getDownloadedFilePath()).delete();
+            throw e;
+        }
+        setInlineChecksum(digest);
+        setDownloadStats(total, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Download the template as concurrent byte ranges spread over the given mirrors of the same file,
+     * written in place into the downloaded file and hashed as they arrive.
+     * @return null if ranged download is not possible and a plain download should be done instead,
+     * otherwise whether the download succeeded
+     */
+    protected Boolean downloadInSegments(List<String> urls) {
+        if (parallelSegments < 2) {
+            return null;
+        }
+        long size = -1;
+        final List<String> mirrors = new ArrayList<>();
+        for (String url : urls) {
+            long remoteSize = getRemoteSizeIfRangesSupported(url);
+            if (remoteSize <= 0) {
+                continue;
+            }
+            if (size < 0) {
+                size = remoteSize;
+            }
+            if (remoteSize == size) {
+                mirrors.add(url);
+            } else {
+                s_logger.warn("Not using " + url + " for template " + getTemplateId() + ", its size " + remoteSize + " differs from " + size);
+            }
+        }
+        int segments = (int)Math.min(parallelSegments, size / MIN_SEGMENT_SIZE);
+        if (mirrors.isEmpty() || segments < 2) {
+            return null;
+        }
+
+        List<SegmentedDownload.RangeFetcher> fetchers = new ArrayList<>();
+        for (final String url : mirrors) {
+            fetchers.add(new SegmentedDownload.RangeFetcher() {
+                @Override
+                public InputStream open(long from, long to) throws IOException {
+                    return openRange(url, from, to);
+                }
+            });
+        }
+
+        File file = new File(getDownloadedFilePath());
+        MessageDigest digest = createDownloadDigest();
+        SegmentedDownload download = new SegmentedDownload(file, size, segments, fetchers, digest, SEGMENT_RETRIES);
+        download.setBandwidthLimiter(bandwidthLimiter);
+        s_logger.info("Downloading template " + getTemplateId() + " (" + size + " bytes) in " + segments + " segments from " + mirrors.size() + " url(s) to: " + file);
+        long start = System.currentTimeMillis();
+        try {
+            long bytes = download.download();
+            setInlineChecksum(digest);
+            setDownloadStats(bytes, System.currentTimeMillis() - start);
+            return true;
+        } catch (IOException e) {
+            s_logger.error("Error downloading template " + getTemplateId() + " in segments due to: " + e.getMessage());
+            // the file is preallocated, what is in it cannot be told apart from a complete download
+            file.delete();
+            new File(file.getPath() + SegmentedDownload.STATE_FILE_SUFFIX).delete();
+            return false;
+        }
+    }
+
+    /**
+     * Return the size of the file behind the url if the server accepts byte range requests, -1 otherwise
+     */
+    protected long getRemoteSizeIfRangesSupported(String url) {
+        HeadMethod head = new HeadMethod(url);
+        head.setFollowRedirects(true);
+        addRequestHeaders(head);
+        try {
+            int status = client.executeMethod(head);
+            Header acceptRanges = head.getResponseHeader("Accept-Ranges");
+            Header contentLength = head.getResponseHeader("Content-Length");
+            if (status != HttpStatus.SC_OK || acceptRanges == null || !acceptRanges.getValue().contains("bytes") || contentLength == null) {
+                return -1;
+            }
+            return Long.parseLong(contentLength.getValue().trim());
+        } catch (IOException | NumberFormatException e) {
+            s_logger.debug("Unable to check range support of " + url + ": " + e.getMessage());
+            return -1;
+        } finally {
+            head.releaseConnection();
+        }
+    }
+
+    /**
+     * Open a stream for the inclusive byte range [from, to] of the file behind the url
+     */
+    protected InputStream openRange(String url, long from, long to) throws IOException {
+        final GetMethod method = new GetMethod(url);
+        method.setFollowRedirects(true);
+        addRequestHeaders(method);
+        method.setRequestHeader("Range", "bytes=" + from + "-" + to);
+        int status = client.executeMethod(method);
+        if (status != HttpStatus.SC_PARTIAL_CONTENT) {
+            method.releaseConnection();
+            throw new IOException("Range request to " + url + " returned status " + status);
+        }
+        return new FilterInputStream(method.getResponseBodyAsStream()) {
+            @Override
+            public void close() throws IOException {
+                // abort rather than drain what is left of the range when the segment stops early
+                method.abort();
+                method.releaseConnection();
+            }
+        };
+    }
+
+    private void addRequestHeaders(HttpMethod method) {
+        for (Map.Entry<String, String> header : reqHeaders.entrySet()) {
+            method.setRequestHeader(header.getKey(), header.getValue());
+        }
+    }
+}
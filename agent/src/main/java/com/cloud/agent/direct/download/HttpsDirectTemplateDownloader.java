@@ -21,12 +21,14 @@ package com.cloud.agent.direct.download;
 
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.script.Script;
-import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.commons.collections.MapUtils;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
@@ -37,24 +39,26 @@ import org.apache.http.ssl.SSLContexts;
 import javax.net.ssl.SSLContext;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.FileOutputStream;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Collections;
 import java.util.Map;
 
 public class HttpsDirectTemplateDownloader extends HttpDirectTemplateDownloader {
 
     private CloseableHttpClient httpsClient;
     private HttpUriRequest req;
+    private Map<String, String> headers;
 
     public HttpsDirectTemplateDownloader(String url, Long templateId, String destPoolPath, String checksum, Map<String, String> headers) {
         super(url, templateId, destPoolPath, checksum, headers);
+        this.headers = headers;
         SSLContext sslcontext = null;
         try {
             sslcontext = getSSLContext();
@@ -66,15 +70,20 @@ public class HttpsDirectTemplateDownloader extends HttpDirectTemplateDownloader
                 .setConnectTimeout(5000)
                 .setConnectionRequestTimeout(5000)
                 .setSocketTimeout(5000).build();
-        httpsClient = HttpClients.custom().setSSLSocketFactory(factory).setDefaultRequestConfig(config).build();
+        httpsClient = HttpClients.custom().setSSLSocketFactory(factory).setDefaultRequestConfig(config)
+                .setMaxConnPerRoute(MAX_PARALLEL_SEGMENTS).setMaxConnTotal(MAX_PARALLEL_SEGMENTS * 2).build();
         createUriRequest(url, headers);
     }
 
     protected void createUriRequest(String downloadUrl, Map<String, String> headers) {
         req = new HttpGet(downloadUrl);
+        setHeaders(req, headers);
+    }
+
+    private static void setHeaders(HttpUriRequest request, Map<String, String> headers) {
         if (MapUtils.isNotEmpty(headers)) {
             for (String headerKey: headers.keySet()) {
-                req.setHeader(headerKey, headers.get(headerKey));
+                request.setHeader(headerKey, headers.get(headerKey));
             }
         }
     }
@@ -97,6 +106,10 @@ public class HttpsDirectTemplateDownloader extends HttpDirectTemplateDownloader
 
     @Override
     public boolean downloadTemplate() {
+        Boolean segmented = downloadInSegments(Collections.singletonList(getUrl()));
+        if (segmented != null) {
+            return segmented;
+        }
         CloseableHttpResponse response;
         try {
             response = httpsClient.execute(req);
@@ -116,9 +129,9 @@ public class HttpsDirectTemplateDownloader extends HttpDirectTemplateDownloader
         }
         try {
             HttpEntity entity = response.getEntity();
-            InputStream in = entity.getContent();
-            OutputStream out = new FileOutputStream(getDownloadedFilePath());
-            IOUtils.copy(in, out);
+            try (InputStream in = entity.getContent()) {
+                copyToDownloadedFile(in);
+            }
         } catch (Exception e) {
             s_logger.error("Error parsing response for template " + getTemplateId() + " due to: " + e.getMessage());
             return false;
@@ -126,4 +139,41 @@ public class HttpsDirectTemplateDownloader extends HttpDirectTemplateDownloader
         return true;
     }
 
+    @Override
+    protected long getRemoteSizeIfRangesSupported(String url) {
+        HttpHead head = new HttpHead(url);
+        setHeaders(head, headers);
+        try (CloseableHttpResponse response = httpsClient.execute(head)) {
+            Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+            Header contentLength = response.getFirstHeader("Content-Length");
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || acceptRanges == null || !acceptRanges.getValue().contains("bytes") || contentLength == null) {
+                return -1;
+            }
+            return Long.parseLong(contentLength.getValue().trim());
+        } catch (IOException | NumberFormatException e) {
+            s_logger.debug("Unable to check range support of " + url + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    @Override
+    protected InputStream openRange(String url, long from, long to) throws IOException {
+        final HttpGet get = new HttpGet(url);
+        setHeaders(get, headers);
+        get.setHeader("Range", "bytes=" + from + "-" + to);
+        final CloseableHttpResponse response = httpsClient.execute(get);
+        int status = response.getStatusLine().getStatusCode();
+        if (status != HttpStatus.SC_PARTIAL_CONTENT || response.getEntity() == null) {
+            response.close();
+            throw new IOException("Range request to " + url + " returned status " + status);
+        }
+        return new FilterInputStream(response.getEntity().getContent()) {
+            @Override
+            public void close() throws IOException {
+                // abort rather than drain what is left of the range when the segment stops early
+                get.abort();
+                response.close();
+            }
+        };
+    }
 }
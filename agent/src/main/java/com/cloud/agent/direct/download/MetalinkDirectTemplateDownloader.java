@@ -46,6 +46,8 @@ public class MetalinkDirectTemplateDownloader extends HttpDirectTemplateDownload
             throw new CloudRuntimeException("No urls found on metalink file: " + metalinkUrl + ". Not possible to download template " + templateId);
         }
         setUrl(metalinkUrls.get(0));
+        createTemporaryDirectoryAndFile(getDirectDownloadTempPath(templateId));
+        selectMetalinkChecksum();
         s_logger.info("Metalink downloader created, metalink url: " + metalinkUrl + " parsed - " +
                 metalinkUrls.size() + " urls and " +
                 (CollectionUtils.isNotEmpty(metalinkChecksums) ? metalinkChecksums.size() : "0") + " checksums found");
@@ -57,6 +59,11 @@ public class MetalinkDirectTemplateDownloader extends HttpDirectTemplateDownload
             throw new CloudRuntimeException("Download url has not been set, aborting");
         }
         String downloadDir = getDirectDownloadTempPath(getTemplateId());
+        // ranges are spread over all mirrors at once, if that fails try the mirrors one by one on a single stream
+        Boolean segmented = downloadInSegments(metalinkUrls);
+        if (segmented != null && segmented) {
+            return true;
+        }
         boolean downloaded = false;
         int i = 0;
         do {
@@ -65,14 +72,14 @@ public class MetalinkDirectTemplateDownloader extends HttpDirectTemplateDownload
             }
             s_logger.info("Trying to download template from url: " + getUrl());
             try {
-                File f = new File(getDestPoolPath() + File.separator + downloadDir + File.separator + getFileNameFromUrl());
+                File f = new File(getDownloadFilePath(downloadDir));
                 if (f.exists()) {
                     f.delete();
                     f.createNewFile();
                 }
                 setDownloadedFilePath(f.getAbsolutePath());
                 request = createRequest(getUrl(), reqHeaders);
-                downloaded = super.downloadTemplate();
+                downloaded = downloadInSingleStream();
                 if (downloaded) {
                     s_logger.info("Successfully downloaded template from url: " + getUrl());
                 }
@@ -86,13 +93,14 @@ public class MetalinkDirectTemplateDownloader extends HttpDirectTemplateDownload
         return downloaded;
     }
 
-    @Override
-    public boolean validateChecksum() {
+    /**
+     * Pick one of the metalink checksums if none was provided, before downloading so that it can be computed inline
+     */
+    private void selectMetalinkChecksum() {
         if (StringUtils.isBlank(getChecksum()) && CollectionUtils.isNotEmpty(metalinkChecksums)) {
             String chk = metalinkChecksums.get(random.nextInt(metalinkChecksums.size()));
             setChecksum(chk);
             s_logger.info("Checksum not provided but " + metalinkChecksums.size() + " found on metalink file, performing checksum using one of them: " + chk);
         }
-        return super.validateChecksum();
     }
 }
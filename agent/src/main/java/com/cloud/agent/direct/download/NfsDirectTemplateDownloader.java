@@ -61,9 +61,10 @@ public class NfsDirectTemplateDownloader extends DirectTemplateDownloaderImpl {
         String mountSrcUuid = UUID.randomUUID().toString();
         String mount = String.format(mountCommand, srcHost + ":" + srcPath, "/mnt/" + mountSrcUuid);
         Script.runSimpleBashScript(mount);
-        String downloadDir = getDestPoolPath() + File.separator + getDirectDownloadTempPath(getTemplateId());
-        setDownloadedFilePath(downloadDir + File.separator + getFileNameFromUrl());
+        setDownloadedFilePath(getDownloadFilePath(getDirectDownloadTempPath(getTemplateId())));
+        long start = System.currentTimeMillis();
         Script.runSimpleBashScript("cp /mnt/" + mountSrcUuid + srcPath + " " + getDownloadedFilePath());
+        setDownloadStats(new File(getDownloadedFilePath()).length(), System.currentTimeMillis() - start);
         Script.runSimpleBashScript("umount /mnt/" + mountSrcUuid);
         return true;
     }
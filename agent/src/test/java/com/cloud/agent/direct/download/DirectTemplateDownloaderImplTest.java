@@ -33,4 +33,12 @@ public class DirectTemplateDownloaderImplTest {
         String path = DirectTemplateDownloaderImpl.getDirectDownloadTempPath(templateId);
         Assert.assertEquals("template/2/202", path);
     }
+
+    @Test
+    public void testIsCompressedFileName() {
+        Assert.assertTrue(DirectTemplateDownloaderImpl.isCompressedFileName("centos.qcow2.bz2"));
+        Assert.assertTrue(DirectTemplateDownloaderImpl.isCompressedFileName("centos.qcow2.gz"));
+        Assert.assertTrue(DirectTemplateDownloaderImpl.isCompressedFileName("centos.zip"));
+        Assert.assertFalse(DirectTemplateDownloaderImpl.isCompressedFileName("centos.qcow2"));
+    }
 }
@@ -26,6 +26,11 @@ import java.util.List;
  * @since 4.11
  */
 public interface HAConfigManager {
+    /**
+     * Published on the message bus with the HA config id when a peer management server changed the config
+     */
+    String MESSAGE_HA_CONFIG_CHANGED_EVENT = "Message.HAConfigChanged.Event";
+
     /**
      * Configures HA for a resource by accepting the resource type and HA provider
      * @param resourceId the ID of the resource
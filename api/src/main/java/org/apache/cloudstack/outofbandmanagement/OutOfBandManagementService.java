@@ -33,6 +33,9 @@ public interface OutOfBandManagementService {
     ConfigKey<Integer> SyncThreadPoolSize = new ConfigKey<Integer>("Advanced", Integer.class, "outofbandmanagement.sync.poolsize", "50",
             "The out of band management background sync thread pool size", true, ConfigKey.Scope.Global);
 
+    ConfigKey<Integer> SyncBackoffMax = new ConfigKey<Integer>("Advanced", Integer.class, "outofbandmanagement.sync.backoff.max", "4",
+            "The most background sync intervals between two power state polls of a host whose power state does not change, 1 polls every host on every interval", true, ConfigKey.Scope.Global);
+
     long getId();
     boolean isOutOfBandManagementEnabled(Host host);
     void submitBackgroundPowerSyncTask(Host host);
@@ -0,0 +1,84 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The security group rulesets of the VMs of one host, sent together. VMs whose last ruleset the host applied
+ * is known get only the delta against it, the others get their full ruleset.
+ */
+public class BatchSecurityGroupRulesCmd extends Command {
+    private List<SecurityGroupRulesCmd> rulesets = new ArrayList<SecurityGroupRulesCmd>();
+    private List<SecurityGroupRulesDelta> deltas = new ArrayList<SecurityGroupRulesDelta>();
+    private Long msId;
+
+    public BatchSecurityGroupRulesCmd() {
+    }
+
+    public void addRuleset(final SecurityGroupRulesCmd ruleset) {
+        rulesets.add(ruleset);
+    }
+
+    public void addDelta(final SecurityGroupRulesDelta delta) {
+        deltas.add(delta);
+    }
+
+    public List<SecurityGroupRulesCmd> getRulesets() {
+        return rulesets;
+    }
+
+    public List<SecurityGroupRulesDelta> getDeltas() {
+        return deltas;
+    }
+
+    public int size() {
+        return rulesets.size() + deltas.size();
+    }
+
+    /**
+     * used for logging
+     * @return the number of CIDRs in the full rulesets and in the deltas
+     */
+    public int getTotalNumCidrs() {
+        int count = 0;
+        for (final SecurityGroupRulesCmd ruleset : rulesets) {
+            count += ruleset.getTotalNumCidrs();
+        }
+        for (final SecurityGroupRulesDelta delta : deltas) {
+            count += delta.getTotalNumCidrs();
+        }
+        return count;
+    }
+
+    public void setMsId(final long msId) {
+        this.msId = msId;
+    }
+
+    public Long getMsId() {
+        return msId;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return true;
+    }
+}
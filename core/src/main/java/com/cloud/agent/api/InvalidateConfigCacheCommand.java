@@ -0,0 +1,53 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+/*
+ * Broadcast to MS peers once a config value change is committed, peers drop their cached
+ * config values so the change is seen cluster wide on the next read.
+ */
+public class InvalidateConfigCacheCommand extends Command {
+    String configName;
+    long version;
+
+    protected InvalidateConfigCacheCommand() {
+    }
+
+    public InvalidateConfigCacheCommand(String configName, long version) {
+        this.configName = configName;
+        this.version = version;
+    }
+
+    public String getConfigName() {
+        return configName;
+    }
+
+    /**
+     * @return config change version of the management server the change was made on.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
@@ -27,6 +27,9 @@ public class PingRoutingCommand extends PingCommand {
 
     Map<String, HostVmStateReportEntry> _hostVmStateReport;
 
+    // the report only carries the VMs whose power state changed since the previous ping
+    boolean _hostVmStateReportDelta;
+
     boolean _gatewayAccessible = true;
     boolean _vnetAccessible = true;
 
@@ -42,6 +45,14 @@ public class PingRoutingCommand extends PingCommand {
         return this._hostVmStateReport;
     }
 
+    public boolean isHostVmStateReportDelta() {
+        return _hostVmStateReportDelta;
+    }
+
+    public void setHostVmStateReportDelta(boolean hostVmStateReportDelta) {
+        _hostVmStateReportDelta = hostVmStateReportDelta;
+    }
+
     public boolean isGatewayAccessible() {
         return _gatewayAccessible;
     }
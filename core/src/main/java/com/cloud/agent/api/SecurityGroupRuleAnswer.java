@@ -21,7 +21,7 @@ package com.cloud.agent.api;
 
 public class SecurityGroupRuleAnswer extends Answer {
     public static enum FailureReason {
-        NONE, UNKNOWN, PROGRAMMING_FAILED, CANNOT_BRIDGE_FIREWALL
+        NONE, UNKNOWN, PROGRAMMING_FAILED, CANNOT_BRIDGE_FIREWALL, RULESET_OUT_OF_SYNC
     }
 
     Long logSequenceNumber = null;
@@ -51,6 +51,13 @@ public class SecurityGroupRuleAnswer extends Answer {
         reason = r;
     }
 
+    public SecurityGroupRuleAnswer(SecurityGroupRulesDelta delta, Command cmd, boolean result, String detail, FailureReason r) {
+        super(cmd, result, detail);
+        this.logSequenceNumber = delta.getSeqNum();
+        this.vmId = delta.getVmId();
+        reason = r;
+    }
+
     public Long getLogSequenceNumber() {
         return logSequenceNumber;
     }
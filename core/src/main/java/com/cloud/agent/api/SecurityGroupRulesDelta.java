@@ -0,0 +1,211 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+
+/**
+ * The change of the security group ruleset of a VM from the ruleset with the base signature, which the host
+ * applied last, to the ruleset with the new signature. Only the CIDRs added to and removed from each port range
+ * are carried, along with the addresses of the VM.
+ */
+public class SecurityGroupRulesDelta {
+    private final String guestIp;
+    private final String guestIp6;
+    private final String guestMac;
+    private final String vmName;
+    private final Long vmId;
+    private final String baseSignature;
+    private final String signature;
+    private final Long seqNum;
+    private final List<String> secIps;
+    private final List<IpPortAndProto> ingressAdded;
+    private final List<IpPortAndProto> ingressRemoved;
+    private final List<IpPortAndProto> egressAdded;
+    private final List<IpPortAndProto> egressRemoved;
+
+    private SecurityGroupRulesDelta(final SecurityGroupRulesCmd base, final SecurityGroupRulesCmd target) {
+        guestIp = target.getGuestIp();
+        guestIp6 = target.getGuestIp6();
+        guestMac = target.getGuestMac();
+        vmName = target.getVmName();
+        vmId = target.getVmId();
+        baseSignature = base.getSignature();
+        signature = target.getSignature();
+        seqNum = target.getSeqNum();
+        secIps = target.getSecIps();
+        ingressAdded = difference(target.getIngressRuleSet(), base.getIngressRuleSet());
+        ingressRemoved = difference(base.getIngressRuleSet(), target.getIngressRuleSet());
+        egressAdded = difference(target.getEgressRuleSet(), base.getEgressRuleSet());
+        egressRemoved = difference(base.getEgressRuleSet(), target.getEgressRuleSet());
+    }
+
+    /**
+     * @return the delta that turns the base ruleset into the target ruleset of the same VM
+     */
+    public static SecurityGroupRulesDelta between(final SecurityGroupRulesCmd base, final SecurityGroupRulesCmd target) {
+        return new SecurityGroupRulesDelta(base, target);
+    }
+
+    /**
+     * @return the ruleset this delta turns the base ruleset into, null if the base ruleset is not the one the
+     * delta was made against
+     */
+    public SecurityGroupRulesCmd applyTo(final SecurityGroupRulesCmd base) {
+        if (base == null || baseSignature == null || !baseSignature.equals(base.getSignature())) {
+            return null;
+        }
+        final List<IpPortAndProto> ingress = apply(base.getIngressRuleSet(), ingressAdded, ingressRemoved);
+        final List<IpPortAndProto> egress = apply(base.getEgressRuleSet(), egressAdded, egressRemoved);
+        return new SecurityGroupRulesCmd(guestIp, guestIp6, guestMac, vmName, vmId, signature, seqNum, ingress.toArray(new IpPortAndProto[ingress.size()]),
+                egress.toArray(new IpPortAndProto[egress.size()]), secIps);
+    }
+
+    private static String key(final IpPortAndProto rule) {
+        return rule.getProto() + ":" + rule.getStartPort() + ":" + rule.getEndPort();
+    }
+
+    private static Map<String, IpPortAndProto> byKey(final List<IpPortAndProto> rules) {
+        final Map<String, IpPortAndProto> result = new LinkedHashMap<String, IpPortAndProto>();
+        for (final IpPortAndProto rule : rules) {
+            result.put(key(rule), rule);
+        }
+        return result;
+    }
+
+    /**
+     * @return the CIDRs of each port range in the first rules that are not in the second ones
+     */
+    private static List<IpPortAndProto> difference(final List<IpPortAndProto> first, final List<IpPortAndProto> second) {
+        final Map<String, IpPortAndProto> others = byKey(second);
+        final List<IpPortAndProto> result = new ArrayList<IpPortAndProto>();
+        for (final IpPortAndProto rule : first) {
+            final IpPortAndProto other = others.get(key(rule));
+            final Set<String> cidrs = new LinkedHashSet<String>(rule.getAllowedCidrs());
+            if (other != null) {
+                cidrs.removeAll(other.getAllowedCidrs());
+            }
+            if (!cidrs.isEmpty()) {
+                result.add(new IpPortAndProto(rule.getProto(), rule.getStartPort(), rule.getEndPort(), cidrs.toArray(new String[cidrs.size()])));
+            }
+        }
+        return result;
+    }
+
+    private static List<IpPortAndProto> apply(final List<IpPortAndProto> base, final List<IpPortAndProto> added, final List<IpPortAndProto> removed) {
+        final Map<String, IpPortAndProto> removedByKey = byKey(removed);
+        final Map<String, IpPortAndProto> addedByKey = byKey(added);
+        final Map<String, Set<String>> cidrs = new LinkedHashMap<String, Set<String>>();
+        final Map<String, IpPortAndProto> rules = new LinkedHashMap<String, IpPortAndProto>();
+        for (final IpPortAndProto rule : base) {
+            final String key = key(rule);
+            final Set<String> ruleCidrs = new LinkedHashSet<String>(rule.getAllowedCidrs());
+            if (removedByKey.containsKey(key)) {
+                ruleCidrs.removeAll(removedByKey.get(key).getAllowedCidrs());
+            }
+            cidrs.put(key, ruleCidrs);
+            rules.put(key, rule);
+        }
+        for (final Map.Entry<String, IpPortAndProto> entry : addedByKey.entrySet()) {
+            Set<String> ruleCidrs = cidrs.get(entry.getKey());
+            if (ruleCidrs == null) {
+                ruleCidrs = new LinkedHashSet<String>();
+                cidrs.put(entry.getKey(), ruleCidrs);
+                rules.put(entry.getKey(), entry.getValue());
+            }
+            ruleCidrs.addAll(entry.getValue().getAllowedCidrs());
+        }
+        final List<IpPortAndProto> result = new ArrayList<IpPortAndProto>();
+        for (final Map.Entry<String, Set<String>> entry : cidrs.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                final IpPortAndProto rule = rules.get(entry.getKey());
+                result.add(new IpPortAndProto(rule.getProto(), rule.getStartPort(), rule.getEndPort(), entry.getValue().toArray(new String[entry.getValue().size()])));
+            }
+        }
+        return result;
+    }
+
+    public String getVmName() {
+        return vmName;
+    }
+
+    public Long getVmId() {
+        return vmId;
+    }
+
+    public Long getSeqNum() {
+        return seqNum;
+    }
+
+    public String getBaseSignature() {
+        return baseSignature;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public List<IpPortAndProto> getIngressAdded() {
+        return Collections.unmodifiableList(ingressAdded);
+    }
+
+    public List<IpPortAndProto> getIngressRemoved() {
+        return Collections.unmodifiableList(ingressRemoved);
+    }
+
+    public List<IpPortAndProto> getEgressAdded() {
+        return Collections.unmodifiableList(egressAdded);
+    }
+
+    public List<IpPortAndProto> getEgressRemoved() {
+        return Collections.unmodifiableList(egressRemoved);
+    }
+
+    /**
+     * @return whether the VM's rules are the same as in the base ruleset, only its addresses may have changed
+     */
+    public boolean isEmpty() {
+        return ingressAdded.isEmpty() && ingressRemoved.isEmpty() && egressAdded.isEmpty() && egressRemoved.isEmpty();
+    }
+
+    /**
+     * used for logging
+     * @return the number of CIDRs added and removed
+     */
+    public int getTotalNumCidrs() {
+        return count(ingressAdded) + count(ingressRemoved) + count(egressAdded) + count(egressRemoved);
+    }
+
+    private static int count(final List<IpPortAndProto> rules) {
+        int count = 0;
+        for (final IpPortAndProto rule : rules) {
+            count += rule.getAllowedCidrs().size();
+        }
+        return count;
+    }
+}
@@ -27,6 +27,7 @@ public class AggregationControlCommand extends NetworkElementCommand{
     }
 
     private Action action;
+    private boolean differential;
 
     protected AggregationControlCommand() {
         super();
@@ -40,7 +41,19 @@ public class AggregationControlCommand extends NetworkElementCommand{
         this.setAccessDetail(NetworkElementCommand.ROUTER_GUEST_IP, guestIp);
     }
 
+    public AggregationControlCommand(Action action, String name, String ip, String guestIp, boolean differential) {
+        this(action, name, ip, guestIp);
+        this.differential = differential;
+    }
+
     public Action getAction() {
         return action;
     }
+
+    /**
+     * Whether the finish action may skip the config sections the router reports as already applied.
+     */
+    public boolean isDifferential() {
+        return differential;
+    }
 }
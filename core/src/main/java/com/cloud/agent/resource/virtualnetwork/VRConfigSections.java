@@ -0,0 +1,191 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Groups the config items of an aggregated router sync into sections, one per json databag file and
+ * guest network, and drops the sections whose content hash matches the one the router last applied.
+ *
+ * The router keeps the applied hashes in {@link VRScripts#CONFIG_HASHES}. update_config.py forgets the
+ * hash of every section it applies, so a section changed by a single command or by a full sync is sent
+ * again by the next differential sync.
+ * Commands that do not consist of json databag updates are always sent.
+ */
+public class VRConfigSections {
+    private static final String JSON = ".json";
+
+    private final String _guestIp;
+    private final List<String> _commandSections = new ArrayList<String>();
+    private final List<List<ConfigItem>> _commandItems = new ArrayList<List<ConfigItem>>();
+    private final Map<String, MessageDigest> _digests = new LinkedHashMap<String, MessageDigest>();
+
+    private int _sentCommands;
+    private int _skippedCommands;
+
+    public VRConfigSections(String guestIp) {
+        _guestIp = guestIp != null ? guestIp : "-";
+    }
+
+    /**
+     * Adds the config items generated for one command.
+     */
+    public void add(List<ConfigItem> cfg) {
+        String section = getSection(cfg);
+        _commandSections.add(section);
+        _commandItems.add(cfg);
+        if (section == null) {
+            return;
+        }
+
+        MessageDigest digest = _digests.get(section);
+        if (digest == null) {
+            digest = newDigest();
+            _digests.put(section, digest);
+        }
+        for (ConfigItem c : cfg) {
+            if (c instanceof FileConfigItem) {
+                digest.update(((FileConfigItem)c).getFileContents().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte)0);
+            }
+        }
+    }
+
+    /**
+     * Builds the items to send.
+     *
+     * @param applied hashes reported by the router, null to send everything without recording hashes
+     * @return the items of the changed sections and of unsectioned commands in their original order,
+     *         followed by recording the new hashes of the sent sections
+     */
+    public List<ConfigItem> getConfigItems(Map<String, String> applied) {
+        List<ConfigItem> items = new ArrayList<ConfigItem>();
+        Map<String, String> hashes = new HashMap<String, String>();
+        StringBuilder record = new StringBuilder("-s");
+        for (Map.Entry<String, MessageDigest> entry : _digests.entrySet()) {
+            String hash = Hex.encodeHexString(entry.getValue().digest());
+            hashes.put(entry.getKey(), hash);
+            if (applied != null && !hash.equals(applied.get(entry.getKey()))) {
+                record.append(' ').append(entry.getKey()).append(' ').append(hash);
+            }
+        }
+
+        _sentCommands = 0;
+        _skippedCommands = 0;
+        for (int i = 0; i < _commandItems.size(); i++) {
+            String section = _commandSections.get(i);
+            if (section != null && applied != null && hashes.get(section).equals(applied.get(section))) {
+                _skippedCommands++;
+                continue;
+            }
+            _sentCommands++;
+            items.addAll(_commandItems.get(i));
+        }
+
+        // update_config.py forgets the hash of every section it applies, so a failed sync leaves them unrecorded
+        if (record.length() > 2) {
+            items.add(new ScriptConfigItem(VRScripts.CONFIG_HASHES, record.toString()));
+        }
+        return items;
+    }
+
+    public int getSentCommands() {
+        return _sentCommands;
+    }
+
+    public int getSkippedCommands() {
+        return _skippedCommands;
+    }
+
+    /**
+     * @return the section of a command made of json databag updates only, null for anything else
+     */
+    protected String getSection(List<ConfigItem> cfg) {
+        if (cfg.isEmpty() || cfg.size() % 2 != 0) {
+            return null;
+        }
+
+        String section = null;
+        for (int i = 0; i < cfg.size(); i += 2) {
+            if (!(cfg.get(i) instanceof FileConfigItem) || !(cfg.get(i + 1) instanceof ScriptConfigItem)) {
+                return null;
+            }
+            FileConfigItem file = (FileConfigItem)cfg.get(i);
+            ScriptConfigItem script = (ScriptConfigItem)cfg.get(i + 1);
+            if (!VRScripts.UPDATE_CONFIG.equals(script.getScript()) || !file.getFileName().equals(script.getArgs())) {
+                return null;
+            }
+            String name = getSectionFile(file.getFileName());
+            if (name == null || (section != null && !section.equals(name))) {
+                return null;
+            }
+            section = name;
+        }
+        return _guestIp + "/" + section;
+    }
+
+    /**
+     * @return the databag file name without the unique suffix added per upload, e.g. ip_associations.json
+     */
+    public static String getSectionFile(String fileName) {
+        int pos = fileName.indexOf(JSON);
+        if (pos <= 0) {
+            return null;
+        }
+        return fileName.substring(0, pos + JSON.length());
+    }
+
+    /**
+     * Parses the "section hash" lines listed by the router.
+     */
+    public static Map<String, String> parseHashes(String output) {
+        Map<String, String> hashes = new HashMap<String, String>();
+        if (output == null) {
+            return hashes;
+        }
+        for (String line : output.split("\n")) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length == 2) {
+                hashes.put(parts[0], parts[1]);
+            }
+        }
+        return hashes;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CloudRuntimeException("SHA-256 is not available", e);
+        }
+    }
+}
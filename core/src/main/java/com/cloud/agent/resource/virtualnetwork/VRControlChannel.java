@@ -0,0 +1,448 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.joda.time.Duration;
+
+import com.cloud.utils.ExecutionResult;
+import com.cloud.utils.NumbersUtil;
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+import com.trilead.ssh2.StreamGobbler;
+
+/**
+ * Persistent control channel to virtual routers.
+ *
+ * One transport (an authenticated SSH connection) is kept per router and every command runs as
+ * a new channel on it, so the handshake is paid once per router instead of once per command.
+ * A list of config items is sent as a single shell payload on one channel, each item writing a
+ * framed section to the output:
+ * <pre>
+ *   &lt;marker&gt; BEGIN &lt;index&gt;
+ *   output of the item
+ *   &lt;marker&gt; END &lt;index&gt; &lt;exit code&gt;
+ * </pre>
+ * The payload stops after the first failing item. Transports no command ran on for longer than
+ * the idle timeout are closed, which also drops connections to routers that went away. A transport
+ * that failed is replaced for new commands and closed once the commands still running on it are
+ * done. A command is only run again on a new transport when the old one failed before any of it
+ * was sent, config items are not idempotent.
+ */
+public class VRControlChannel {
+    private static final Logger s_logger = Logger.getLogger(VRControlChannel.class);
+
+    public static final String SCRIPT_DIR = "/opt/cloud/bin/";
+    public static final int SSH_PORT = 3922;
+    public static final String SSH_USER = "root";
+    public static final String SSH_KEY = "/root/.ssh/id_rsa.cloud";
+
+    private static final String SHELL = "/bin/bash -s";
+
+    /**
+     * Thrown when the command could not be run and none of it, nor of its input, reached the
+     * router, so it is safe to run it again.
+     */
+    public static class NotSentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public NotSentException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    public interface Transport {
+        /**
+         * Runs the command with the given standard input and copies its standard output, followed
+         * by its standard error, into out.
+         *
+         * @return the exit status of the command
+         * @throws NotSentException if it failed before anything was sent to the router
+         */
+        int execute(String command, byte[] input, OutputStream out, Duration timeout) throws IOException;
+
+        void close();
+    }
+
+    public interface TransportFactory {
+        Transport connect(String routerIp) throws IOException;
+    }
+
+    private static class ChannelEntry {
+        final Transport transport;
+        private long lastUsed = System.currentTimeMillis();
+        private int inUse = 0;
+        private boolean discarded = false;
+        private boolean closed = false;
+
+        ChannelEntry(Transport transport) {
+            this.transport = transport;
+        }
+
+        /**
+         * @return false if the transport was discarded and must not be used for new commands
+         */
+        synchronized boolean acquire() {
+            if (discarded) {
+                return false;
+            }
+            inUse++;
+            return true;
+        }
+
+        synchronized void release() {
+            inUse--;
+            lastUsed = System.currentTimeMillis();
+            closeIfUnused();
+        }
+
+        /**
+         * Closes the transport once no command runs on it anymore.
+         */
+        synchronized void discard() {
+            discarded = true;
+            closeIfUnused();
+        }
+
+        synchronized boolean discardIfIdle(long now, long idleTimeoutMs) {
+            if (inUse > 0 || now - lastUsed <= idleTimeoutMs) {
+                return false;
+            }
+            discard();
+            return true;
+        }
+
+        private void closeIfUnused() {
+            if (discarded && inUse == 0 && !closed) {
+                closed = true;
+                transport.close();
+            }
+        }
+    }
+
+    private final TransportFactory _factory;
+    private final String _scriptDir;
+    private final long _idleTimeoutMs;
+    private final Map<String, ChannelEntry> _channels = new ConcurrentHashMap<String, ChannelEntry>();
+
+    public VRControlChannel(TransportFactory factory, String scriptDir, Duration idleTimeout) {
+        _factory = factory;
+        _scriptDir = scriptDir.endsWith("/") ? scriptDir : scriptDir + "/";
+        _idleTimeoutMs = idleTimeout.getMillis();
+    }
+
+    /**
+     * Channel over SSH with the system VM key, as used by router_proxy.sh.
+     */
+    public static VRControlChannel createSshChannel(final Duration connectTimeout, Duration idleTimeout) {
+        return new VRControlChannel(new TransportFactory() {
+            @Override
+            public Transport connect(String routerIp) throws IOException {
+                return new SshTransport(routerIp, SSH_PORT, SSH_USER, new File(SSH_KEY), (int)connectTimeout.getMillis());
+            }
+        }, SCRIPT_DIR, idleTimeout);
+    }
+
+    public ExecutionResult execute(String routerIp, String script, String args, Duration timeout) {
+        String command = _scriptDir + script + (args != null ? " " + args : "");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            int exitStatus = run(routerIp, command, null, out, timeout);
+            return new ExecutionResult(exitStatus == 0, trimOutput(new String(out.toByteArray(), StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            s_logger.warn("Unable to execute " + script + " in VR " + routerIp + " over the control channel: " + e.getMessage());
+            return new ExecutionResult(false, e.getMessage());
+        }
+    }
+
+    public ExecutionResult createFile(String routerIp, String path, String filename, String content, Duration timeout) {
+        List<ExecutionResult> results = applyConfig(routerIp, Collections.<ConfigItem>singletonList(new FileConfigItem(path, filename, content)), timeout);
+        if (results == null || results.isEmpty()) {
+            return new ExecutionResult(false, "Unable to create file " + path + filename + " in VR " + routerIp);
+        }
+        return results.get(0);
+    }
+
+    /**
+     * Applies the config items in one payload.
+     *
+     * @return one result per attempted item, null if nothing of the payload reached the router. When
+     *         the channel fails after the payload was sent the item that was running is reported as failed.
+     */
+    public List<ExecutionResult> applyConfig(String routerIp, List<ConfigItem> cfg, Duration timeout) {
+        String marker = "__VR_BATCH_" + UUID.randomUUID().toString().replace("-", "");
+        byte[] payload = buildPayload(cfg, marker, _scriptDir).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            run(routerIp, SHELL, payload, out, timeout);
+        } catch (NotSentException e) {
+            s_logger.warn("Unable to apply " + cfg.size() + " config items in VR " + routerIp + " over the control channel: " + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            // the items may have run, applying them again is up to the caller
+            s_logger.warn("Lost the control channel to VR " + routerIp + " while applying " + cfg.size() + " config items: " + e.getMessage());
+            List<ExecutionResult> results = parseResults(new String(out.toByteArray(), StandardCharsets.UTF_8), marker, cfg.size());
+            if (results.size() < cfg.size() && (results.isEmpty() || results.get(results.size() - 1).isSuccess())) {
+                results.add(new ExecutionResult(false, "No result received: " + e.getMessage()));
+            }
+            return results;
+        }
+        return parseResults(new String(out.toByteArray(), StandardCharsets.UTF_8), marker, cfg.size());
+    }
+
+    private int run(String routerIp, String command, byte[] input, OutputStream out, Duration timeout) throws IOException {
+        closeIdle();
+        ChannelEntry entry = _channels.get(routerIp);
+        if (entry != null && entry.acquire()) {
+            try {
+                return entry.transport.execute(command, input, out, timeout);
+            } catch (NotSentException e) {
+                // most likely a connection that went stale, reconnect once
+                s_logger.debug("Control channel to VR " + routerIp + " failed, reconnecting: " + e.getMessage());
+                discard(routerIp, entry);
+            } catch (IOException e) {
+                discard(routerIp, entry);
+                throw e;
+            } finally {
+                entry.release();
+            }
+        }
+
+        try {
+            entry = new ChannelEntry(_factory.connect(routerIp));
+        } catch (IOException e) {
+            throw new NotSentException("Unable to connect to VR " + routerIp + ": " + e.getMessage(), e);
+        }
+        entry.acquire();
+        ChannelEntry existing = _channels.putIfAbsent(routerIp, entry);
+        if (existing != null) {
+            // another command connected meanwhile, the new transport is only kept when that one failed already
+            entry.discard();
+            if (existing.acquire()) {
+                entry.release();
+                entry = existing;
+            }
+        }
+        try {
+            return entry.transport.execute(command, input, out, timeout);
+        } catch (IOException e) {
+            discard(routerIp, entry);
+            throw e;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * Stops handing out the transport of the entry, other commands running on it finish first.
+     */
+    private void discard(String routerIp, ChannelEntry entry) {
+        _channels.remove(routerIp, entry);
+        entry.discard();
+    }
+
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ChannelEntry> entry : _channels.entrySet()) {
+            if (entry.getValue().discardIfIdle(now, _idleTimeoutMs)) {
+                _channels.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public void close(String routerIp) {
+        ChannelEntry entry = _channels.remove(routerIp);
+        if (entry != null) {
+            entry.discard();
+        }
+    }
+
+    public void closeAll() {
+        for (String routerIp : new ArrayList<String>(_channels.keySet())) {
+            close(routerIp);
+        }
+    }
+
+    public int getOpenChannels() {
+        return _channels.size();
+    }
+
+    protected static String buildPayload(List<ConfigItem> cfg, String marker, String scriptDir) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < cfg.size(); i++) {
+            ConfigItem c = cfg.get(i);
+            sb.append("echo '").append(marker).append(" BEGIN ").append(i).append("'\n");
+            if (c instanceof FileConfigItem) {
+                FileConfigItem configItem = (FileConfigItem)c;
+                // Don't use File.separator here as the target is the unix based systemvm
+                String dir = configItem.getFilePath().endsWith("/") ? configItem.getFilePath() : configItem.getFilePath() + "/";
+                sb.append("mkdir -p ").append(quote(dir)).append(" && base64 -d > ").append(quote(dir + configItem.getFileName())).append(" <<'").append(marker).append("' 2>&1\n");
+                sb.append(Base64.getMimeEncoder(76, new byte[] {'\n'}).encodeToString(configItem.getFileContents().getBytes(StandardCharsets.UTF_8)));
+                sb.append('\n').append(marker).append('\n');
+            } else if (c instanceof ScriptConfigItem) {
+                ScriptConfigItem configItem = (ScriptConfigItem)c;
+                sb.append("{\n").append(scriptDir).append(configItem.getScript());
+                if (configItem.getArgs() != null) {
+                    sb.append(' ').append(configItem.getArgs());
+                }
+                sb.append("\n} </dev/null 2>&1\n");
+            } else {
+                throw new IllegalArgumentException("Unable to apply unknown configitem of type " + c.getClass().getSimpleName());
+            }
+            sb.append("rc=$?\n");
+            sb.append("printf '\\n%s END ").append(i).append(" %d\\n' '").append(marker).append("' $rc\n");
+            sb.append("[ $rc -eq 0 ] || exit 0\n");
+        }
+        return sb.toString();
+    }
+
+    protected static List<ExecutionResult> parseResults(String output, String marker, int count) {
+        List<ExecutionResult> results = new ArrayList<ExecutionResult>(count);
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            String begin = marker + " BEGIN " + i + "\n";
+            int start = output.indexOf(begin, pos);
+            if (start < 0) {
+                break;
+            }
+            start += begin.length();
+
+            String end = "\n" + marker + " END " + i + " ";
+            int endPos = output.indexOf(end, start);
+            if (endPos < 0) {
+                results.add(new ExecutionResult(false, "No result received: " + trimOutput(output.substring(start))));
+                break;
+            }
+            int eol = output.indexOf('\n', endPos + end.length());
+            if (eol < 0) {
+                eol = output.length();
+            }
+            int exitStatus = NumbersUtil.parseInt(output.substring(endPos + end.length(), eol).trim(), -1);
+            results.add(new ExecutionResult(exitStatus == 0, trimOutput(output.substring(start, endPos))));
+            pos = eol;
+        }
+        return results;
+    }
+
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    private static String trimOutput(String output) {
+        int end = output.length();
+        while (end > 0 && (output.charAt(end - 1) == '\n' || output.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        return output.substring(0, end);
+    }
+
+    /**
+     * SSH connection kept open for the lifetime of the channel, commands run on sessions of it.
+     */
+    public static class SshTransport implements Transport {
+        private final String _host;
+        private final Connection _connection;
+
+        public SshTransport(String host, int port, String user, File keyFile, int connectTimeoutMs) throws IOException {
+            _host = host;
+            _connection = new Connection(host, port);
+            try {
+                _connection.connect(null, connectTimeoutMs, connectTimeoutMs);
+                if (!_connection.authenticateWithPublicKey(user, keyFile, null)) {
+                    throw new IOException("Failed to authenticate SSH user " + user + " on VR " + host);
+                }
+            } catch (IOException e) {
+                _connection.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int execute(String command, byte[] input, OutputStream out, Duration timeout) throws IOException {
+            Session session;
+            try {
+                session = _connection.openSession();
+            } catch (IOException e) {
+                throw new NotSentException("Unable to open a session to VR " + _host + ": " + e.getMessage(), e);
+            }
+            try {
+                session.execCommand(command);
+                // drain the output while the input is written, the payload may be larger than the channel window
+                InputStream stdout = new StreamGobbler(session.getStdout());
+                InputStream stderr = new StreamGobbler(session.getStderr());
+                OutputStream stdin = session.getStdin();
+                if (input != null) {
+                    stdin.write(input);
+                }
+                stdin.close();
+
+                int conditions = session.waitForCondition(ChannelCondition.EOF | ChannelCondition.EXIT_STATUS, timeout.getMillis());
+                if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                    // hand over what the command wrote so far, it tells which config items ran
+                    copyAvailable(stdout, out);
+                    throw new IOException("Timed out executing " + command + " in VR " + _host);
+                }
+                IOUtils.copy(stdout, out);
+                IOUtils.copy(stderr, out);
+                session.waitForCondition(ChannelCondition.EXIT_STATUS, timeout.getMillis());
+                Integer exitStatus = session.getExitStatus();
+                if (exitStatus == null) {
+                    throw new IOException("No exit status received executing " + command + " in VR " + _host);
+                }
+                return exitStatus;
+            } finally {
+                session.close();
+            }
+        }
+
+        private static void copyAvailable(InputStream in, OutputStream out) throws IOException {
+            byte[] buffer = new byte[4096];
+            int available;
+            while ((available = in.available()) > 0) {
+                int read = in.read(buffer, 0, Math.min(available, buffer.length));
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+
+        @Override
+        public void close() {
+            _connection.close();
+        }
+    }
+}
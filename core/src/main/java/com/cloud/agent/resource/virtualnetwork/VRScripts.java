@@ -68,5 +68,6 @@ public class VRScripts {
     public static final String UPDATE_HOST_PASSWD = "update_host_passwd.sh";
 
     public static final String VR_CFG = "vr_cfg.sh";
+    public static final String CONFIG_HASHES = "config_hashes.sh";
 
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.util.List;
+
+import org.joda.time.Duration;
+
+import com.cloud.utils.ExecutionResult;
+
+/**
+ * Implemented by deployers that can apply a whole list of config items to a router in a single
+ * round trip instead of one executeInVR/createFileInVR call per item.
+ */
+public interface VirtualRouterBatchDeployer {
+    /**
+     * Applies the items in order and stops at the first failure.
+     *
+     * @param timeout for the whole list of items
+     * @return one result per item that was attempted, or null when none of the items was sent to
+     *         the router and they have to be applied one by one. Once the items were sent they must
+     *         not be applied again, an item that may have run without a result is reported as failed.
+     */
+    List<ExecutionResult> applyConfigInVR(String routerIp, List<ConfigItem> cfg, Duration timeout);
+}
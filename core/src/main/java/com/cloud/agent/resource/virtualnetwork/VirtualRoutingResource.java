@@ -50,6 +50,7 @@ import com.cloud.agent.api.CheckS2SVpnConnectionsCommand;
 import com.cloud.agent.api.GetDomRVersionAnswer;
 import com.cloud.agent.api.GetDomRVersionCmd;
 import com.cloud.agent.api.GetRouterAlertsAnswer;
+import com.cloud.agent.api.routing.AggregationControlAnswer;
 import com.cloud.agent.api.routing.AggregationControlCommand;
 import com.cloud.agent.api.routing.AggregationControlCommand.Action;
 import com.cloud.agent.api.routing.GetRouterAlertsCommand;
@@ -214,6 +215,25 @@ public class VirtualRoutingResource {
     }
 
 
+    /**
+     * Applies the config items in a single round trip when the deployer supports it.
+     *
+     * @return the results of the attempted items, null if none of them was sent and they have to be applied one by one
+     */
+    private List<ExecutionResult> applyConfigBatchToVR(String routerAccessIp, List<ConfigItem> cfg) {
+        if (cfg.size() < 2 || !(_vrDeployer instanceof VirtualRouterBatchDeployer)) {
+            return null;
+        }
+        long startTimestamp = System.currentTimeMillis();
+        // the script timeout is per item, the batch gets it for every item it carries
+        Duration timeout = new Duration(VRScripts.VR_SCRIPT_EXEC_TIMEOUT.getMillis() * cfg.size());
+        List<ExecutionResult> results = ((VirtualRouterBatchDeployer)_vrDeployer).applyConfigInVR(routerAccessIp, cfg, timeout);
+        if (results != null && s_logger.isDebugEnabled()) {
+            s_logger.debug("Processing " + cfg.size() + " config items in one batch took " + (System.currentTimeMillis() - startTimestamp) + "ms, " + results.size() + " attempted");
+        }
+        return results;
+    }
+
     private Answer applyConfig(NetworkElementCommand cmd, List<ConfigItem> cfg) {
 
 
@@ -224,12 +244,21 @@ public class VirtualRoutingResource {
         List<ExecutionResult> results = new ArrayList<ExecutionResult>();
         List<String> details = new ArrayList<String>();
         boolean finalResult = false;
-        for (ConfigItem configItem : cfg) {
-            long startTimestamp = System.currentTimeMillis();
-            ExecutionResult result = applyConfigToVR(cmd.getRouterAccessIp(), configItem, VRScripts.VR_SCRIPT_EXEC_TIMEOUT);
-            if (s_logger.isDebugEnabled()) {
-                long elapsed = System.currentTimeMillis() - startTimestamp;
-                s_logger.debug("Processing " + configItem + " took " + elapsed + "ms");
+        List<ExecutionResult> batchResults = applyConfigBatchToVR(cmd.getRouterAccessIp(), cfg);
+        for (int i = 0; i < cfg.size(); i++) {
+            ConfigItem configItem = cfg.get(i);
+            ExecutionResult result;
+            if (batchResults == null) {
+                long startTimestamp = System.currentTimeMillis();
+                result = applyConfigToVR(cmd.getRouterAccessIp(), configItem, VRScripts.VR_SCRIPT_EXEC_TIMEOUT);
+                if (s_logger.isDebugEnabled()) {
+                    long elapsed = System.currentTimeMillis() - startTimestamp;
+                    s_logger.debug("Processing " + configItem + " took " + elapsed + "ms");
+                }
+            } else if (i < batchResults.size()) {
+                result = batchResults.get(i);
+            } else {
+                result = new ExecutionResult(false, "not applied, a previous config item failed");
             }
             if (result == null) {
                 result = new ExecutionResult(false, "null execution result");
@@ -396,6 +425,18 @@ public class VirtualRoutingResource {
         return configItemFacade.generateConfig(cmd);
     }
 
+    /**
+     * @return the config section hashes the router has applied, null if it cannot report them
+     */
+    private Map<String, String> getAppliedConfigHashes(String routerAccessIp) {
+        ExecutionResult result = _vrDeployer.executeInVR(routerAccessIp, VRScripts.CONFIG_HASHES, "-l");
+        if (!result.isSuccess()) {
+            s_logger.warn("Unable to get the applied config hashes of router " + routerAccessIp + ", sending the full config: " + result.getDetails());
+            return null;
+        }
+        return VRConfigSections.parseHashes(result.getDetails());
+    }
+
     private Answer execute(AggregationControlCommand cmd) {
         Action action = cmd.getAction();
         String routerName = cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME);
@@ -412,9 +453,7 @@ public class VirtualRoutingResource {
             Queue<NetworkElementCommand> queue = _vrAggregateCommandsSet.get(routerName);
             int answerCounts = 0;
             try {
-                StringBuilder sb = new StringBuilder();
-                sb.append("#Apache CloudStack Virtual Router Config File\n");
-                sb.append("<version>\n" + _cfgVersion + "\n</version>\n");
+                VRConfigSections sections = new VRConfigSections(cmd.getAccessDetail(NetworkElementCommand.ROUTER_GUEST_IP));
                 for (NetworkElementCommand command : queue) {
                     answerCounts += command.getAnswersCount();
                     List<ConfigItem> cfg = generateCommandCfg(command);
@@ -423,11 +462,30 @@ public class VirtualRoutingResource {
                         continue;
                     }
 
-                    for (ConfigItem c : cfg) {
-                        sb.append(c.getAggregateCommand());
+                    sections.add(cfg);
+                }
+
+                Map<String, String> appliedHashes = null;
+                if (cmd.isDifferential()) {
+                    appliedHashes = getAppliedConfigHashes(cmd.getRouterAccessIp());
+                }
+
+                List<ConfigItem> aggregatedCfg = sections.getConfigItems(appliedHashes);
+                if (appliedHashes != null) {
+                    s_logger.info("Differential config sync of router " + routerName + " sends " + sections.getSentCommands() + " commands, skips " +
+                            sections.getSkippedCommands() + " already applied");
+                    if (aggregatedCfg.isEmpty()) {
+                        return new AggregationControlAnswer(cmd, true, "Command aggregation finished, router config is up to date", 0, sections.getSkippedCommands());
                     }
                 }
 
+                StringBuilder sb = new StringBuilder();
+                sb.append("#Apache CloudStack Virtual Router Config File\n");
+                sb.append("<version>\n" + _cfgVersion + "\n</version>\n");
+                for (ConfigItem c : aggregatedCfg) {
+                    sb.append(c.getAggregateCommand());
+                }
+
                 // TODO replace with applyConfig with a stop on fail
                 String cfgFileName = "VR-"+ UUID.randomUUID().toString() + ".cfg";
                 FileConfigItem fileConfigItem = new FileConfigItem(VRScripts.CONFIG_CACHE_LOCATION, cfgFileName, sb.toString());
@@ -448,7 +506,7 @@ public class VirtualRoutingResource {
                     return new Answer(cmd, false, result.getDetails());
                 }
 
-                return new Answer(cmd, true, "Command aggregation finished");
+                return new AggregationControlAnswer(cmd, true, "Command aggregation finished", sections.getSentCommands(), sections.getSkippedCommands());
             } finally {
                 queue.clear();
                 _vrAggregateCommandsSet.remove(routerName);
@@ -0,0 +1,91 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.storage.template;
+
+import java.io.IOException;
+
+/**
+ * Token bucket shared by all transfers that should stay under one rate, e.g. all downloads of a host.
+ * Callers account for bytes after reading them and are put to sleep once they run ahead of the rate.
+ */
+public class BandwidthLimiter {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private long bytesPerSecond;
+    private long available;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond rate limit, zero or less means unlimited
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        // allow bursts of up to one second worth of data
+        available = Math.max(0, bytesPerSecond);
+        lastRefill = System.nanoTime();
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    public boolean isUnlimited() {
+        return getRate() <= 0;
+    }
+
+    /**
+     * Accounts for the given number of transferred bytes, blocking while the rate is exceeded.
+     */
+    public void acquire(long bytes) throws IOException {
+        long sleepNanos;
+        synchronized (this) {
+            if (bytesPerSecond <= 0)
+                return;
+            refill();
+            available -= bytes;
+            sleepNanos = available < 0 ? -available * NANOS_PER_SECOND / bytesPerSecond : 0;
+        }
+        if (sleepNanos > 0) {
+            try {
+                Thread.sleep(sleepNanos / 1000000, (int)(sleepNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while throttling transfer");
+            }
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0)
+            return;
+        // a debt left by callers that ran ahead is paid back before credit builds up again
+        long refill = (long)((double)elapsed * bytesPerSecond / NANOS_PER_SECOND);
+        if (refill > 0) {
+            available += Math.min(refill, bytesPerSecond - available);
+            lastRefill = now;
+        }
+    }
+}
@@ -20,11 +20,15 @@
 package com.cloud.storage.template;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 
 import org.apache.cloudstack.utils.imagestore.ImageStoreUtil;
@@ -40,11 +44,14 @@ import org.apache.commons.httpclient.NoHttpResponseException;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.log4j.Logger;
 
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.storage.command.DownloadCommand.ResourceType;
+import org.apache.cloudstack.utils.security.ChecksumValue;
+import org.apache.cloudstack.utils.security.DigestHelper;
 
 import com.cloud.storage.StorageLayer;
 import com.cloud.utils.Pair;
@@ -60,6 +67,8 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
     private static final MultiThreadedHttpConnectionManager s_httpClientManager = new MultiThreadedHttpConnectionManager();
 
     private static final int CHUNK_SIZE = 1024 * 1024; //1M
+    private static final long MIN_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int SEGMENT_RETRIES = 3;
     private String downloadUrl;
     private String toFile;
     public TemplateDownloader.Status status;
@@ -79,6 +88,13 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
     private ResourceType resourceType = ResourceType.TEMPLATE;
     private final HttpMethodRetryHandler myretryhandler;
 
+    private String checksumAlgorithm;
+    private MessageDigest digest;
+    private ChecksumValue checksum;
+    private int parallelSegments = 1;
+    private int segmentedResumes = 0;
+    private volatile SegmentedDownload segmentedDownload;
+
     public HttpTemplateDownloader(StorageLayer storageLayer, String downloadUrl, String toDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes,
             String user, String password, Proxy proxy, ResourceType resourceType) {
         _storage = storageLayer;
@@ -186,10 +202,13 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
         int bytes = 0;
         File file = new File(toFile);
         try {
+            Date start = new Date();
 
-            long localFileSize = checkLocalFileSizeForResume(resume, file);
+            if (parallelSegments > 1 && trySegmentedDownload(file, start)) {
+                return status == Status.DOWNLOAD_FINISHED ? totalBytes : 0;
+            }
 
-            Date start = new Date();
+            long localFileSize = checkLocalFileSizeForResume(resume, file);
 
             if (checkServerResponse(localFileSize)) return 0;
 
@@ -203,6 +222,7 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
                  RandomAccessFile out = new RandomAccessFile(file, "rw");
             ) {
                 out.seek(localFileSize);
+                initDigest(file, localFileSize);
 
                 s_logger.info("Starting download from " + downloadUrl + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + maxTemplateSizeInBytes);
 
@@ -210,6 +230,7 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
 
                 Date finish = new Date();
                 checkDowloadCompletion();
+                completeDigest();
                 downloadTime += finish.getTime() - start.getTime();
             } finally { /* in.close() and out.close() */ }
             return totalBytes;
@@ -222,6 +243,7 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
         } finally {
             if (status == Status.UNRECOVERABLE_ERROR && file.exists() && !file.isDirectory()) {
                 file.delete();
+                new File(toFile + SegmentedDownload.STATE_FILE_SUFFIX).delete();
             }
             request.releaseConnection();
             if (callback != null) {
@@ -254,13 +276,167 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
     }
 
     private long writeBlock(int bytes, RandomAccessFile out, byte[] block, long offset) throws IOException {
+        // the file pointer advances with the write, no seek needed
         out.write(block, 0, bytes);
+        if (digest != null) {
+            digest.update(block, 0, bytes);
+        }
         offset += bytes;
-        out.seek(offset);
         totalBytes += bytes;
         return offset;
     }
 
+    /**
+     * Prepares the inline digest, a resumed download hashes the part already on disk first.
+     */
+    private void initDigest(File file, long localFileSize) throws IOException {
+        digest = null;
+        checksum = null;
+        if (checksumAlgorithm == null) {
+            return;
+        }
+        try {
+            digest = MessageDigest.getInstance(checksumAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            s_logger.warn("Checksum algorithm " + checksumAlgorithm + " is not supported, checksum will not be computed inline");
+            return;
+        }
+        if (localFileSize > 0) {
+            try (InputStream is = new FileInputStream(file)) {
+                byte[] block = new byte[CHUNK_SIZE];
+                long remaining = localFileSize;
+                int bytes;
+                while (remaining > 0 && (bytes = is.read(block, 0, (int)Math.min(block.length, remaining))) > 0) {
+                    digest.update(block, 0, bytes);
+                    remaining -= bytes;
+                }
+            }
+        }
+    }
+
+    private void completeDigest() {
+        if (digest != null && status == Status.DOWNLOAD_FINISHED) {
+            checksum = DigestHelper.toChecksumValue(digest);
+        }
+        digest = null;
+    }
+
+    /**
+     * Downloads the file as parallel byte ranges if the server supports them and the file is large enough.
+     *
+     * @return false if the caller should fall back to a single stream download
+     */
+    private boolean trySegmentedDownload(File file, Date start) throws IOException {
+        HeadMethod head = new HeadMethod(downloadUrl);
+        head.setFollowRedirects(true);
+        long size;
+        try {
+            if (client.executeMethod(head) != HttpStatus.SC_OK) {
+                return false;
+            }
+            Header acceptRanges = head.getResponseHeader("Accept-Ranges");
+            Header contentLength = head.getResponseHeader("Content-Length");
+            if (acceptRanges == null || !"bytes".equalsIgnoreCase(acceptRanges.getValue()) || contentLength == null) {
+                s_logger.info("Server does not support ranged downloads of " + downloadUrl + ", using a single stream");
+                return false;
+            }
+            size = Long.parseLong(contentLength.getValue());
+        } catch (NumberFormatException e) {
+            return false;
+        } finally {
+            head.releaseConnection();
+        }
+
+        int segments = (int)Math.min(parallelSegments, size / MIN_SEGMENT_SIZE);
+        if (segments < 2) {
+            return false;
+        }
+
+        remoteSize = size;
+        if (!canHandleDownloadSize()) {
+            return true;
+        }
+
+        initDigest(file, 0);
+        SegmentFetcher fetcher = new SegmentFetcher(segments);
+        SegmentedDownload download = new SegmentedDownload(file, size, segments, fetcher, digest, SEGMENT_RETRIES);
+        segmentedDownload = download;
+        status = Status.IN_PROGRESS;
+        s_logger.info("Starting download from " + downloadUrl + " to " + toFile + " in " + download.getSegmentCount() + " segments, remoteSize=" + remoteSize);
+        try {
+            download.download();
+        } catch (IOException e) {
+            if (status == Status.ABORTED || ++segmentedResumes > SEGMENT_RETRIES) {
+                throw e;
+            }
+            // keep the partial file and its segment state, the download manager runs us again
+            s_logger.warn("Segmented download of " + downloadUrl + " failed, will resume: " + e.getMessage());
+            status = Status.RECOVERABLE_ERROR;
+            errorString = e.getMessage();
+            return true;
+        } finally {
+            totalBytes = download.getDownloadedBytes();
+            segmentedDownload = null;
+            fetcher.shutdown();
+        }
+        if (status == Status.ABORTED) {
+            return true;
+        }
+
+        VerifyFormat verifyFormat = new VerifyFormat(file);
+        verifyFormat.invoke();
+        if (verifyFormat.isInvalid()) {
+            return true;
+        }
+
+        checkDowloadCompletion();
+        completeDigest();
+        downloadTime += new Date().getTime() - start.getTime();
+        return true;
+    }
+
+    /**
+     * Fetches byte ranges with a request of their own, sharing credentials and proxy settings of the downloader.
+     * The shared connection manager only allows a couple of connections per host, segments get a manager of their own.
+     */
+    private class SegmentFetcher implements SegmentedDownload.RangeFetcher {
+        private final MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        private final HttpClient segmentClient;
+
+        SegmentFetcher(int segments) {
+            connectionManager.getParams().setDefaultMaxConnectionsPerHost(segments);
+            connectionManager.getParams().setMaxTotalConnections(segments);
+            segmentClient = new HttpClient(client.getParams(), connectionManager);
+            segmentClient.setState(client.getState());
+            segmentClient.setHostConfiguration(client.getHostConfiguration());
+        }
+
+        void shutdown() {
+            connectionManager.shutdown();
+        }
+
+        @Override
+        public InputStream open(long from, long to) throws IOException {
+            final GetMethod get = createRequest(downloadUrl);
+            get.addRequestHeader("Range", "bytes=" + from + "-" + to);
+            int responseCode = segmentClient.executeMethod(get);
+            if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                get.releaseConnection();
+                throw new IOException("HTTP Server returned " + responseCode + " for range " + from + "-" + to + " (expected 206 Partial Content)");
+            }
+            return new FilterInputStream(get.getResponseBodyAsStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        get.releaseConnection();
+                    }
+                }
+            };
+        }
+    }
+
     private void checkDowloadCompletion() {
         String downloaded = "(incomplete download)";
         if (totalBytes >= remoteSize) {
@@ -336,11 +512,13 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
         return false;
     }
 
-    private long checkLocalFileSizeForResume(boolean resume, File file) {
+    private long checkLocalFileSizeForResume(boolean resume, File file) throws IOException {
         // TODO check the status of this downloader as well?
         long localFileSize = 0;
+        // a segmented download preallocates the file, its length is not what has been downloaded
+        long segmentedBytes = SegmentedDownload.truncateToContiguous(file);
         if (file.exists() && resume) {
-            localFileSize = file.length();
+            localFileSize = segmentedBytes >= 0 ? segmentedBytes : file.length();
             s_logger.info("Resuming download to file (current size)=" + localFileSize);
         }
         return localFileSize;
@@ -391,6 +569,10 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
                 if (request != null) {
                     request.abort();
                 }
+                SegmentedDownload download = segmentedDownload;
+                if (download != null) {
+                    download.abort();
+                }
                 status = TemplateDownloader.Status.ABORTED;
                 return true;
             case UNKNOWN:
@@ -490,6 +672,27 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
         return inited;
     }
 
+    /**
+     * Computes a checksum of the given algorithm while the file downloads.
+     */
+    public void setChecksumAlgorithm(String checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    /**
+     * @return checksum computed during the download, null if none was requested or the download did not finish
+     */
+    public ChecksumValue getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Number of byte ranges to fetch concurrently, 1 downloads the file as a single stream.
+     */
+    public void setParallelSegments(int parallelSegments) {
+        this.parallelSegments = Math.max(1, parallelSegments);
+    }
+
     public ResourceType getResourceType() {
         return resourceType;
     }
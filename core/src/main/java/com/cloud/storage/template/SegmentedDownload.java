@@ -0,0 +1,464 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Downloads a file as a number of byte ranges fetched concurrently into a preallocated file.
+ *
+ * Each segment writes at its own position through the shared {@link FileChannel} and retries
+ * from where it stopped when its stream fails. Segment progress is saved next to the file so an
+ * interrupted download can be resumed. If a digest is given it is fed in file order while the
+ * segments come in: bytes arriving at the digest position are hashed straight from the network
+ * buffer, data that arrived ahead of it is read back once the position catches up, while it is
+ * still in the page cache. Only one thread feeds the digest at a time, and it reads back from
+ * disk without holding the download lock, so the other segments keep writing meanwhile.
+ *
+ * Several fetchers may be given for the same content, e.g. the mirrors of a metalink. Segments
+ * are spread over them and a failing segment moves on to the next fetcher when it retries.
+ */
+public class SegmentedDownload {
+    private static final Logger s_logger = Logger.getLogger(SegmentedDownload.class);
+
+    public static final String STATE_FILE_SUFFIX = ".segments";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final long SAVE_STATE_INTERVAL = 64L * 1024 * 1024;
+
+    /**
+     * Opens a stream for the inclusive byte range [from, to] of the remote file.
+     */
+    public interface RangeFetcher {
+        InputStream open(long from, long to) throws IOException;
+    }
+
+    static class Segment {
+        final int index;
+        final long start;
+        final long end; // exclusive
+        volatile long done; // next position to write
+
+        Segment(int index, long start, long end, long done) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+
+        boolean isComplete() {
+            return done >= end;
+        }
+    }
+
+    private final File file;
+    private final File stateFile;
+    private final long size;
+    private final List<RangeFetcher> fetchers;
+    private final int maxRetries;
+    private final MessageDigest digest;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong unsavedBytes = new AtomicLong();
+
+    private BandwidthLimiter bandwidthLimiter;
+    private FileChannel channel;
+    private long digestPosition = 0;
+    private boolean digesting = false;
+    private volatile boolean aborted = false;
+
+    /**
+     * @param digest fed with the whole file in order, may be null
+     */
+    public SegmentedDownload(File file, long size, int segmentCount, RangeFetcher fetcher, MessageDigest digest, int maxRetries) {
+        this(file, size, segmentCount, Collections.singletonList(fetcher), digest, maxRetries);
+    }
+
+    /**
+     * @param fetchers sources of the same content, segments are spread over them
+     * @param digest fed with the whole file in order, may be null
+     */
+    public SegmentedDownload(File file, long size, int segmentCount, List<RangeFetcher> fetchers, MessageDigest digest, int maxRetries) {
+        if (fetchers.isEmpty())
+            throw new IllegalArgumentException("No range fetcher given to download " + file);
+        this.file = file;
+        this.stateFile = new File(file.getPath() + STATE_FILE_SUFFIX);
+        this.size = size;
+        this.fetchers = new ArrayList<RangeFetcher>(fetchers);
+        this.digest = digest;
+        this.maxRetries = maxRetries;
+
+        if (!loadState()) {
+            long segmentSize = (size + segmentCount - 1) / segmentCount;
+            for (int i = 0; i < segmentCount; i++) {
+                long start = Math.min(size, i * segmentSize);
+                long end = Math.min(size, start + segmentSize);
+                if (end > start)
+                    segments.add(new Segment(segments.size(), start, end, start));
+            }
+        }
+    }
+
+    /**
+     * Downloads all missing segments.
+     *
+     * @return total bytes present in the file once complete
+     */
+    public long download() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != size)
+                raf.setLength(size);
+            channel = raf.getChannel();
+            saveState();
+
+            // a resumed download hashes the part already on disk first
+            catchUpDigest();
+
+            List<Segment> pending = new ArrayList<Segment>();
+            for (Segment segment : segments) {
+                downloadedBytes.addAndGet(segment.done - segment.start);
+                if (!segment.isComplete())
+                    pending.add(segment);
+            }
+
+            if (!pending.isEmpty())
+                fetchSegments(pending);
+
+            channel.force(false);
+            catchUpDigest();
+            synchronized (this) {
+                if (digest != null && digestPosition != size)
+                    throw new IOException("Digest covers " + digestPosition + " of " + size + " bytes");
+            }
+        } finally {
+            channel = null;
+        }
+
+        if (!stateFile.delete())
+            s_logger.debug("No segment state to remove for " + file);
+        return downloadedBytes.get();
+    }
+
+    private void fetchSegments(List<Segment> pending) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(pending.size(), new NamedThreadFactory("SegmentedDownload"));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final Segment segment : pending) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        fetchSegment(segment);
+                        return null;
+                    }
+                }));
+            }
+
+            IOException failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    aborted = true;
+                    failure = new IOException("Interrupted while downloading " + file);
+                } catch (ExecutionException e) {
+                    // stop the other segments, what has been fetched stays in the state file
+                    aborted = true;
+                    if (failure == null)
+                        failure = e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+                }
+            }
+            if (failure != null)
+                throw failure;
+        } finally {
+            executor.shutdownNow();
+            saveState();
+        }
+    }
+
+    private void fetchSegment(Segment segment) throws IOException {
+        byte[] block = new byte[BUFFER_SIZE];
+        int attempt = 0;
+        int source = segment.index;
+        final long from = segment.done;
+        final long started = System.nanoTime();
+        while (!segment.isComplete()) {
+            if (aborted)
+                throw new IOException("Download of " + file + " aborted");
+
+            RangeFetcher fetcher = fetchers.get(source % fetchers.size());
+            try (InputStream in = fetcher.open(segment.done, segment.end - 1)) {
+                int bytes;
+                while (!segment.isComplete() && !aborted && (bytes = in.read(block, 0, (int)Math.min(block.length, segment.end - segment.done))) > -1) {
+                    if (bandwidthLimiter != null)
+                        bandwidthLimiter.acquire(bytes);
+                    write(segment, block, bytes);
+                    attempt = 0;
+                }
+                if (!segment.isComplete() && !aborted)
+                    throw new IOException("Stream ended at " + segment.done + ", segment ends at " + segment.end);
+            } catch (IOException e) {
+                if (aborted || ++attempt > maxRetries)
+                    throw e;
+                source++;
+                s_logger.info("Segment " + segment.index + " of " + file + " failed at " + segment.done + ", retry " + attempt + "/" + maxRetries + ": " + e.getMessage());
+            }
+        }
+
+        double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+        s_logger.info(String.format("Segment %d of %s fetched %d bytes in %.1f s, %.2f MB/s", segment.index, file, segment.done - from, seconds,
+                (segment.done - from) / seconds / (1024 * 1024)));
+    }
+
+    private void write(Segment segment, byte[] block, int bytes) throws IOException {
+        long start = segment.done;
+        long position = start;
+        ByteBuffer buffer = ByteBuffer.wrap(block, 0, bytes);
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+
+        boolean hashInline;
+        synchronized (this) {
+            segment.done = position;
+            hashInline = digest != null && !digesting && digestPosition == start;
+            if (hashInline)
+                digesting = true;
+        }
+        if (hashInline) {
+            try {
+                digest.update(block, 0, bytes);
+            } finally {
+                synchronized (this) {
+                    digestPosition += bytes;
+                    digesting = false;
+                }
+            }
+        }
+        catchUpDigest();
+
+        downloadedBytes.addAndGet(bytes);
+        if (unsavedBytes.addAndGet(bytes) >= SAVE_STATE_INTERVAL) {
+            unsavedBytes.set(0);
+            saveState();
+        }
+    }
+
+    /**
+     * Hashes data that was written ahead of the digest position. Returns right away if another
+     * thread is feeding the digest, that thread picks up whatever became hashable meanwhile.
+     */
+    private void catchUpDigest() throws IOException {
+        if (digest == null)
+            return;
+
+        long position;
+        long end;
+        synchronized (this) {
+            if (digesting || hashableEnd() <= digestPosition)
+                return;
+            digesting = true;
+            position = digestPosition;
+            end = hashableEnd();
+        }
+
+        boolean released = false;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (true) {
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int)Math.min(buffer.capacity(), end - position));
+                    int n = channel.read(buffer, position);
+                    if (n <= 0)
+                        throw new IOException("Unexpected end of " + file + " at " + position);
+                    digest.update(buffer.array(), 0, n);
+                    position += n;
+                }
+                synchronized (this) {
+                    digestPosition = position;
+                    end = hashableEnd();
+                    if (end <= position) {
+                        digesting = false;
+                        released = true;
+                        return;
+                    }
+                }
+            }
+        } finally {
+            if (!released) {
+                synchronized (this) {
+                    digesting = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return end of the data written contiguously from the digest position, must hold the lock
+     */
+    private long hashableEnd() {
+        long end = digestPosition;
+        for (Segment segment : segments) {
+            if (end >= segment.end)
+                continue;
+            if (end < segment.start)
+                break;
+            end = Math.max(end, segment.done);
+            if (!segment.isComplete())
+                break;
+        }
+        return end;
+    }
+
+    /**
+     * Throttles all segments through the given limiter, which may be shared with other transfers.
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    public void abort() {
+        aborted = true;
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    private synchronized void saveState() {
+        Properties props = new Properties();
+        props.setProperty("size", String.valueOf(size));
+        props.setProperty("segments", String.valueOf(segments.size()));
+        for (Segment segment : segments) {
+            props.setProperty("segment." + segment.index + ".start", String.valueOf(segment.start));
+            props.setProperty("segment." + segment.index + ".end", String.valueOf(segment.end));
+            props.setProperty("segment." + segment.index + ".done", String.valueOf(segment.done));
+        }
+        try (OutputStream os = new FileOutputStream(stateFile)) {
+            props.store(os, "segmented download state of " + file.getName());
+        } catch (IOException e) {
+            s_logger.warn("Unable to save segment state of " + file + ": " + e.getMessage());
+        }
+    }
+
+    private boolean loadState() {
+        if (!file.exists())
+            return false;
+
+        List<Segment> loaded = readState(file, size);
+        if (loaded == null)
+            return false;
+        segments.addAll(loaded);
+        s_logger.info("Resuming segmented download of " + file + " with " + loaded.size() + " segments");
+        return true;
+    }
+
+    /**
+     * @param size expected file size, -1 to accept any
+     * @return segments saved next to the file, null if there are none or they cannot be used
+     */
+    private static List<Segment> readState(File file, long size) {
+        File stateFile = new File(file.getPath() + STATE_FILE_SUFFIX);
+        if (!stateFile.exists())
+            return null;
+
+        Properties props = new Properties();
+        try (InputStream is = new FileInputStream(stateFile)) {
+            props.load(is);
+            if (size >= 0 && Long.parseLong(props.getProperty("size")) != size)
+                return null;
+            int count = Integer.parseInt(props.getProperty("segments"));
+            List<Segment> loaded = new ArrayList<Segment>();
+            for (int i = 0; i < count; i++) {
+                long start = Long.parseLong(props.getProperty("segment." + i + ".start"));
+                long end = Long.parseLong(props.getProperty("segment." + i + ".end"));
+                long done = Long.parseLong(props.getProperty("segment." + i + ".done"));
+                if (done < start || done > end)
+                    return null;
+                loaded.add(new Segment(i, start, end, done));
+            }
+            return loaded;
+        } catch (IOException | RuntimeException e) {
+            s_logger.warn("Ignoring unusable segment state of " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Turns what a segmented download left behind into a file a single stream can resume: the
+     * file is preallocated to its full size, so only the data written contiguously from its start
+     * counts. The file is cut there and the segment state removed.
+     *
+     * @return bytes to resume from, -1 if the file was not left by a segmented download
+     */
+    public static long truncateToContiguous(File file) throws IOException {
+        List<Segment> saved = readState(file, -1);
+        if (saved == null)
+            return -1;
+
+        long contiguous = 0;
+        for (Segment segment : saved) {
+            if (segment.start != contiguous)
+                break;
+            contiguous = segment.done;
+            if (!segment.isComplete())
+                break;
+        }
+        if (file.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() > contiguous)
+                    raf.setLength(contiguous);
+                else
+                    contiguous = raf.length();
+            }
+        } else {
+            contiguous = 0;
+        }
+        if (!new File(file.getPath() + STATE_FILE_SUFFIX).delete())
+            s_logger.debug("Unable to remove segment state of " + file);
+        return contiguous;
+    }
+}
@@ -25,6 +25,8 @@ public class DirectDownloadAnswer extends Answer {
     private Long templateSize;
     private String installPath;
     private boolean retryOnOtherHosts;
+    private long downloadedBytes;
+    private long downloadDuration;
 
     public DirectDownloadAnswer(final boolean result, final String msg, final boolean retry) {
         super(null);
@@ -51,4 +53,27 @@ public class DirectDownloadAnswer extends Answer {
     public boolean isRetryOnOtherHosts() {
         return retryOnOtherHosts;
     }
+
+    public void setDownloadStats(final long downloadedBytes, final long downloadDuration) {
+        this.downloadedBytes = downloadedBytes;
+        this.downloadDuration = downloadDuration;
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    /**
+     * Download duration on the host in milliseconds
+     */
+    public long getDownloadDuration() {
+        return downloadDuration;
+    }
+
+    /**
+     * Average download throughput in bytes per second, 0 if unknown
+     */
+    public long getDownloadRate() {
+        return downloadDuration > 0 ? downloadedBytes * 1000 / downloadDuration : 0;
+    }
 }
@@ -0,0 +1,84 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+
+public class SecurityGroupRulesDeltaTest {
+
+    private static SecurityGroupRulesCmd ruleset(final long seqNum, final IpPortAndProto[] ingress, final IpPortAndProto[] egress) {
+        return new SecurityGroupRulesCmd("10.10.10.10", null, "aa:aa:aa:aa:aa:aa", "vm", 1L, null, seqNum, ingress, egress, new ArrayList<String>());
+    }
+
+    @Test
+    public void testApplyToBaseGivesTarget() {
+        final SecurityGroupRulesCmd base = ruleset(1L,
+                new IpPortAndProto[] {new IpPortAndProto("tcp", 22, 22, "10.0.0.1/32", "10.0.0.2/32"), new IpPortAndProto("udp", 53, 53, "10.0.0.3/32")},
+                new IpPortAndProto[] {new IpPortAndProto("tcp", 80, 80, "0.0.0.0/0")});
+        final SecurityGroupRulesCmd target = ruleset(2L,
+                new IpPortAndProto[] {new IpPortAndProto("tcp", 22, 22, "10.0.0.2/32", "10.0.0.4/32"), new IpPortAndProto("icmp", -1, -1, "10.0.0.5/32")},
+                new IpPortAndProto[] {new IpPortAndProto("tcp", 80, 80, "0.0.0.0/0")});
+
+        final SecurityGroupRulesDelta delta = SecurityGroupRulesDelta.between(base, target);
+        assertFalse(delta.isEmpty());
+        assertEquals(2, delta.getIngressAdded().size());
+        assertEquals(Arrays.asList("10.0.0.4/32"), delta.getIngressAdded().get(0).getAllowedCidrs());
+        assertEquals(2, delta.getIngressRemoved().size());
+        assertEquals(Arrays.asList("10.0.0.1/32"), delta.getIngressRemoved().get(0).getAllowedCidrs());
+        assertTrue(delta.getEgressAdded().isEmpty());
+        assertTrue(delta.getEgressRemoved().isEmpty());
+        assertEquals(4, delta.getTotalNumCidrs());
+
+        final SecurityGroupRulesCmd applied = delta.applyTo(base);
+        assertEquals(target.getSignature(), applied.getSignature());
+        assertEquals(target.getSeqNum(), applied.getSeqNum());
+        assertEquals(target.stringifyRules(), applied.stringifyRules());
+    }
+
+    @Test
+    public void testUnchangedRulesetIsEmptyDelta() {
+        final IpPortAndProto[] ingress = new IpPortAndProto[] {new IpPortAndProto("tcp", 22, 22, "10.0.0.1/32")};
+        final SecurityGroupRulesDelta delta = SecurityGroupRulesDelta.between(ruleset(1L, ingress, new IpPortAndProto[0]), ruleset(2L, ingress, new IpPortAndProto[0]));
+        assertTrue(delta.isEmpty());
+        assertEquals(0, delta.getTotalNumCidrs());
+    }
+
+    @Test
+    public void testApplyToOtherBaseFails() {
+        final SecurityGroupRulesCmd base = ruleset(1L, new IpPortAndProto[] {new IpPortAndProto("tcp", 22, 22, "10.0.0.1/32")}, new IpPortAndProto[0]);
+        final SecurityGroupRulesCmd other = ruleset(1L, new IpPortAndProto[] {new IpPortAndProto("tcp", 22, 22, "10.0.0.9/32")}, new IpPortAndProto[0]);
+        final SecurityGroupRulesCmd target = ruleset(2L, new IpPortAndProto[0], new IpPortAndProto[0]);
+
+        final SecurityGroupRulesDelta delta = SecurityGroupRulesDelta.between(base, target);
+        assertNull(delta.applyTo(other));
+        assertNull(delta.applyTo(null));
+        assertTrue(delta.applyTo(base).getIngressRuleSet().isEmpty());
+    }
+}
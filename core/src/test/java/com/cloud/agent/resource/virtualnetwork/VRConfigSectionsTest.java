@@ -0,0 +1,146 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class VRConfigSectionsTest {
+
+    private static List<ConfigItem> databag(String file, String contents) {
+        String remoteFile = file + "." + UUID.randomUUID().toString();
+        return Arrays.<ConfigItem>asList(new FileConfigItem(VRScripts.CONFIG_PERSIST_LOCATION, remoteFile, contents),
+                new ScriptConfigItem(VRScripts.UPDATE_CONFIG, remoteFile));
+    }
+
+    private static VRConfigSections sync(String dhcpEntry, String firewallRules) {
+        VRConfigSections sections = new VRConfigSections("10.1.1.1");
+        sections.add(databag(VRScripts.IP_ASSOCIATION_CONFIG, "{\"ip_address\":[\"10.1.1.1\"]}"));
+        sections.add(databag(VRScripts.VM_DHCP_CONFIG, "{\"host_name\":\"vm-1\"}"));
+        sections.add(databag(VRScripts.VM_DHCP_CONFIG, dhcpEntry));
+        sections.add(databag(VRScripts.FIREWALL_RULES_CONFIG, firewallRules));
+        sections.add(Arrays.<ConfigItem>asList(new ScriptConfigItem(VRScripts.RVR_BUMPUP_PRI, "")));
+        return sections;
+    }
+
+    /**
+     * Returns the hashes the router ends up with after running the given items.
+     */
+    private static Map<String, String> record(List<ConfigItem> items, Map<String, String> applied) {
+        Map<String, String> hashes = new HashMap<String, String>(applied);
+        for (ConfigItem item : items) {
+            if (item instanceof ScriptConfigItem && VRScripts.UPDATE_CONFIG.equals(((ScriptConfigItem)item).getScript())) {
+                String file = VRConfigSections.getSectionFile(((ScriptConfigItem)item).getArgs());
+                for (Iterator<String> it = hashes.keySet().iterator(); it.hasNext();) {
+                    if (it.next().endsWith("/" + file)) {
+                        it.remove();
+                    }
+                }
+            }
+            if (item instanceof ScriptConfigItem && VRScripts.CONFIG_HASHES.equals(((ScriptConfigItem)item).getScript())) {
+                String[] args = ((ScriptConfigItem)item).getArgs().split(" ");
+                assertEquals("-s", args[0]);
+                for (int i = 1; i < args.length; i += 2) {
+                    hashes.put(args[i], args[i + 1]);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    @Test
+    public void testFullSyncRecordsNothing() {
+        VRConfigSections sections = sync("{\"host_name\":\"vm-2\"}", "{\"rules\":[]}");
+        List<ConfigItem> items = sections.getConfigItems(null);
+        assertEquals(9, items.size());
+        assertEquals(5, sections.getSentCommands());
+        assertEquals(0, sections.getSkippedCommands());
+        assertTrue(record(items, new HashMap<String, String>()).isEmpty());
+    }
+
+    @Test
+    public void testDifferentialSync() {
+        // first differential sync, the router has no hashes yet
+        VRConfigSections sections = sync("{\"host_name\":\"vm-2\"}", "{\"rules\":[]}");
+        List<ConfigItem> items = sections.getConfigItems(new HashMap<String, String>());
+        assertEquals(10, items.size());
+        assertEquals(5, sections.getSentCommands());
+        Map<String, String> applied = record(items, new HashMap<String, String>());
+        assertEquals(3, applied.size());
+        assertTrue(applied.containsKey("10.1.1.1/" + VRScripts.VM_DHCP_CONFIG));
+
+        // nothing changed, only the command outside of any section is sent
+        sections = sync("{\"host_name\":\"vm-2\"}", "{\"rules\":[]}");
+        items = sections.getConfigItems(applied);
+        assertEquals(1, items.size());
+        assertEquals(1, sections.getSentCommands());
+        assertEquals(4, sections.getSkippedCommands());
+
+        // one dhcp entry changed, the whole dhcp section goes out
+        sections = sync("{\"host_name\":\"vm-3\"}", "{\"rules\":[]}");
+        items = sections.getConfigItems(applied);
+        assertEquals(3, sections.getSentCommands());
+        assertEquals(2, sections.getSkippedCommands());
+        ScriptConfigItem last = (ScriptConfigItem)items.get(items.size() - 1);
+        assertEquals(VRScripts.CONFIG_HASHES, last.getScript());
+        assertTrue(last.getArgs().startsWith("-s 10.1.1.1/" + VRScripts.VM_DHCP_CONFIG + " "));
+        applied = record(items, applied);
+
+        // a single firewall command applied in between makes the router forget that section
+        applied = record(databag(VRScripts.FIREWALL_RULES_CONFIG, "{\"rules\":[1]}"), applied);
+        sections = sync("{\"host_name\":\"vm-3\"}", "{\"rules\":[]}");
+        sections.getConfigItems(applied);
+        assertEquals(2, sections.getSentCommands());
+        assertEquals(3, sections.getSkippedCommands());
+    }
+
+    @Test
+    public void testSectionOfCommand() {
+        VRConfigSections sections = new VRConfigSections(null);
+        assertEquals("-/" + VRScripts.GUEST_NETWORK_CONFIG, sections.getSection(databag(VRScripts.GUEST_NETWORK_CONFIG, "{}")));
+
+        List<ConfigItem> mixed = new ArrayList<ConfigItem>(databag(VRScripts.GUEST_NETWORK_CONFIG, "{}"));
+        mixed.addAll(databag(VRScripts.IP_ASSOCIATION_CONFIG, "{}"));
+        assertNull(sections.getSection(mixed));
+        assertNull(sections.getSection(Arrays.<ConfigItem>asList(new FileConfigItem("/etc/", "haproxy.cfg", ""), new ScriptConfigItem(VRScripts.LB, ""))));
+
+        assertEquals("vm_metadata.json", VRConfigSections.getSectionFile("vm_metadata.json.2ef6e5d4-3c5e-4e47-a0d0-3cbbf8d4bbd1"));
+        assertNull(VRConfigSections.getSectionFile("VR-config.cfg"));
+    }
+
+    @Test
+    public void testParseHashes() {
+        Map<String, String> hashes = VRConfigSections.parseHashes("10.1.1.1/ip_associations.json abc\n\n10.1.1.1/vm_dhcp_entry.json def\n");
+        assertEquals(2, hashes.size());
+        assertEquals("def", hashes.get("10.1.1.1/vm_dhcp_entry.json"));
+        assertTrue(VRConfigSections.parseHashes(null).isEmpty());
+    }
+}
@@ -0,0 +1,350 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.ExecutionResult;
+
+public class VRControlChannelTest {
+
+    /**
+     * Stand-in for the router: runs the command in a local bash, the way sshd runs it in the VR.
+     */
+    static class LocalTransport implements VRControlChannel.Transport {
+        final AtomicInteger executions = new AtomicInteger();
+        volatile boolean broken = false;
+        // fails like a timeout once the command ran
+        volatile boolean failAfterRun = false;
+        // commands containing it fail like a timeout once they ran
+        volatile String failingCommand;
+        volatile boolean closed = false;
+
+        @Override
+        public int execute(String command, byte[] input, OutputStream out, Duration timeout) throws IOException {
+            if (broken) {
+                throw new VRControlChannel.NotSentException("connection reset", null);
+            }
+            executions.incrementAndGet();
+            Process process = new ProcessBuilder("/bin/bash", "-c", command).redirectErrorStream(true).start();
+            OutputStream stdin = process.getOutputStream();
+            if (input != null) {
+                stdin.write(input);
+            }
+            stdin.close();
+            InputStream stdout = process.getInputStream();
+            IOUtils.copy(stdout, out);
+            int exitStatus;
+            try {
+                exitStatus = process.waitFor();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (closed) {
+                throw new IOException("Connection closed while executing " + command);
+            }
+            if (failAfterRun || failingCommand != null && command.contains(failingCommand)) {
+                throw new IOException("Timed out executing " + command);
+            }
+            return exitStatus;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private File scriptDir;
+    private File fileDir;
+    private final List<LocalTransport> transports = Collections.synchronizedList(new ArrayList<LocalTransport>());
+    private VRControlChannel channel;
+
+    @Before
+    public void setup() throws IOException {
+        scriptDir = Files.createTempDirectory("vrscripts").toFile();
+        fileDir = Files.createTempDirectory("vrfiles").toFile();
+        writeScript("echo.sh", "echo \"$@\"\n");
+        writeScript("fail.sh", "echo failing >&2\nexit 3\n");
+        writeScript("touch.sh", "touch \"$1\"\n");
+        writeScript("sleep.sh", "sleep \"$1\"\necho slept\n");
+        channel = new VRControlChannel(new VRControlChannel.TransportFactory() {
+            @Override
+            public VRControlChannel.Transport connect(String routerIp) {
+                LocalTransport transport = new LocalTransport();
+                transports.add(transport);
+                return transport;
+            }
+        }, scriptDir.getAbsolutePath(), Duration.standardMinutes(10));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        channel.closeAll();
+        FileUtils.deleteDirectory(scriptDir);
+        FileUtils.deleteDirectory(fileDir);
+    }
+
+    private void writeScript(String name, String body) throws IOException {
+        File script = new File(scriptDir, name);
+        FileUtils.writeStringToFile(script, "#!/bin/bash\n" + body, StandardCharsets.UTF_8);
+        assertTrue(script.setExecutable(true));
+    }
+
+    @Test
+    public void testApplyConfigInOnePayload() throws IOException {
+        List<ConfigItem> cfg = new ArrayList<ConfigItem>();
+        String contents = "{\"rules\": [\"it's\", \"multi\\nline\"]}\n\u00e9\n";
+        cfg.add(new FileConfigItem(fileDir.getAbsolutePath() + "/sub", "rules.json", contents));
+        cfg.add(new ScriptConfigItem("echo.sh", "a b  c"));
+        cfg.add(new ScriptConfigItem("echo.sh", null));
+
+        List<ExecutionResult> results = channel.applyConfig("169.254.0.10", cfg, Duration.standardMinutes(1));
+
+        assertNotNull(results);
+        assertEquals(3, results.size());
+        for (ExecutionResult result : results) {
+            assertTrue(result.isSuccess());
+        }
+        assertEquals(contents, FileUtils.readFileToString(new File(fileDir, "sub/rules.json"), StandardCharsets.UTF_8));
+        assertEquals("a b c", results.get(1).getDetails());
+        assertEquals("", results.get(2).getDetails());
+        assertEquals(1, transports.size());
+        assertEquals(1, transports.get(0).executions.get());
+    }
+
+    @Test
+    public void testApplyConfigStopsAtFirstFailure() {
+        File marker = new File(fileDir, "touched");
+        List<ConfigItem> cfg = new ArrayList<ConfigItem>();
+        cfg.add(new ScriptConfigItem("echo.sh", "first"));
+        cfg.add(new ScriptConfigItem("fail.sh", null));
+        cfg.add(new ScriptConfigItem("touch.sh", marker.getAbsolutePath()));
+
+        List<ExecutionResult> results = channel.applyConfig("169.254.0.10", cfg, Duration.standardMinutes(1));
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals("failing", results.get(1).getDetails());
+        assertFalse(marker.exists());
+    }
+
+    @Test
+    public void testExecuteReusesAndReconnects() {
+        ExecutionResult result = channel.execute("169.254.0.10", "echo.sh", "hello", Duration.standardMinutes(1));
+        assertTrue(result.isSuccess());
+        assertEquals("hello", result.getDetails());
+        assertFalse(channel.execute("169.254.0.10", "fail.sh", null, Duration.standardMinutes(1)).isSuccess());
+        assertEquals(1, transports.size());
+
+        // a stale connection is replaced transparently
+        transports.get(0).broken = true;
+        assertTrue(channel.execute("169.254.0.10", "echo.sh", "again", Duration.standardMinutes(1)).isSuccess());
+        assertEquals(2, transports.size());
+        assertEquals(1, channel.getOpenChannels());
+
+        channel.execute("169.254.0.11", "echo.sh", "other router", Duration.standardMinutes(1));
+        assertEquals(2, channel.getOpenChannels());
+    }
+
+    private Thread executeInBackground(final VRControlChannel channel, final String routerIp, final String script, final String args, final ExecutionResult[] result) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = channel.execute(routerIp, script, args, Duration.standardMinutes(1));
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void waitForExecutions(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (totalExecutions() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, totalExecutions());
+    }
+
+    private int totalExecutions() {
+        int executions = 0;
+        synchronized (transports) {
+            for (LocalTransport transport : transports) {
+                executions += transport.executions.get();
+            }
+        }
+        return executions;
+    }
+
+    @Test
+    public void testIdleCheckKeepsTransportInUse() throws Exception {
+        // every transport counts as idle as soon as no command runs on it
+        VRControlChannel eager = new VRControlChannel(new VRControlChannel.TransportFactory() {
+            @Override
+            public VRControlChannel.Transport connect(String routerIp) {
+                LocalTransport transport = new LocalTransport();
+                transports.add(transport);
+                return transport;
+            }
+        }, scriptDir.getAbsolutePath(), Duration.ZERO);
+
+        ExecutionResult[] longRunning = new ExecutionResult[1];
+        Thread thread = executeInBackground(eager, "169.254.0.10", "sleep.sh", "1", longRunning);
+        waitForExecutions(1);
+
+        // a command on another router runs the idle check while the first one is busy
+        assertTrue(eager.execute("169.254.0.11", "echo.sh", "other router", Duration.standardMinutes(1)).isSuccess());
+        thread.join();
+
+        assertTrue(longRunning[0].isSuccess());
+        assertEquals("slept", longRunning[0].getDetails());
+    }
+
+    @Test
+    public void testFailureOnlyDiscardsTheTransportOnceOtherCommandsAreDone() throws Exception {
+        assertTrue(channel.execute("169.254.0.10", "echo.sh", "connect", Duration.standardMinutes(1)).isSuccess());
+        LocalTransport transport = transports.get(0);
+        transport.failingCommand = "broken";
+
+        ExecutionResult[] longRunning = new ExecutionResult[1];
+        Thread thread = executeInBackground(channel, "169.254.0.10", "sleep.sh", "1", longRunning);
+        waitForExecutions(2);
+
+        // fails while the other command still runs on the same transport
+        assertFalse(channel.execute("169.254.0.10", "echo.sh", "broken", Duration.standardMinutes(1)).isSuccess());
+        assertFalse(transport.closed);
+        assertEquals(0, channel.getOpenChannels());
+
+        thread.join();
+        assertTrue(longRunning[0].isSuccess());
+        assertTrue(transport.closed);
+
+        // new commands get a new transport
+        assertTrue(channel.execute("169.254.0.10", "echo.sh", "again", Duration.standardMinutes(1)).isSuccess());
+        assertEquals(2, transports.size());
+        assertEquals(1, channel.getOpenChannels());
+    }
+
+    @Test
+    public void testParseResultsWithTruncatedOutput() {
+        String output = "M BEGIN 0\nok\nM END 0 0\nM BEGIN 1\npartial";
+        List<ExecutionResult> results = VRControlChannel.parseResults(output, "M", 3);
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals("ok", results.get(0).getDetails());
+        assertFalse(results.get(1).isSuccess());
+    }
+
+    @Test
+    public void testUnreachableRouter() {
+        VRControlChannel unreachable = new VRControlChannel(new VRControlChannel.TransportFactory() {
+            @Override
+            public VRControlChannel.Transport connect(String routerIp) throws IOException {
+                throw new IOException("No route to host");
+            }
+        }, scriptDir.getAbsolutePath(), Duration.standardMinutes(10));
+        List<ConfigItem> cfg = new ArrayList<ConfigItem>();
+        cfg.add(new ScriptConfigItem("echo.sh", "x"));
+        assertNull(unreachable.applyConfig("169.254.0.10", cfg, Duration.standardMinutes(1)));
+        assertFalse(unreachable.execute("169.254.0.10", "echo.sh", "x", Duration.standardMinutes(1)).isSuccess());
+    }
+
+    @Test
+    public void testBatchIsNotRunAgainAfterItWasSent() {
+        File marker = new File(fileDir, "touched");
+        assertTrue(channel.execute("169.254.0.10", "echo.sh", "connect", Duration.standardMinutes(1)).isSuccess());
+        transports.get(0).failAfterRun = true;
+        List<ConfigItem> cfg = new ArrayList<ConfigItem>();
+        cfg.add(new ScriptConfigItem("touch.sh", marker.getAbsolutePath()));
+        cfg.add(new ScriptConfigItem("echo.sh", "second"));
+
+        List<ExecutionResult> results = channel.applyConfig("169.254.0.10", cfg, Duration.standardMinutes(1));
+
+        // the items ran once, their results are kept and nothing is retried on a new connection
+        assertNotNull(results);
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertTrue(results.get(1).isSuccess());
+        assertTrue(marker.exists());
+        assertEquals(1, transports.size());
+        assertEquals(2, transports.get(0).executions.get());
+        assertEquals(0, channel.getOpenChannels());
+    }
+
+    @Test
+    public void testUnfinishedItemIsReportedAsFailed() {
+        String output = "M BEGIN 0\nok\nM END 0 0\n";
+        List<ConfigItem> cfg = new ArrayList<ConfigItem>();
+        cfg.add(new ScriptConfigItem("echo.sh", "first"));
+        cfg.add(new ScriptConfigItem("echo.sh", "second"));
+        cfg.add(new ScriptConfigItem("echo.sh", "third"));
+        final byte[] partialOutput = output.getBytes(StandardCharsets.UTF_8);
+        VRControlChannel timingOut = new VRControlChannel(new VRControlChannel.TransportFactory() {
+            @Override
+            public VRControlChannel.Transport connect(String routerIp) {
+                return new VRControlChannel.Transport() {
+                    @Override
+                    public int execute(String command, byte[] input, OutputStream out, Duration timeout) throws IOException {
+                        // the marker is random, answer with the one of the payload
+                        String payload = new String(input, StandardCharsets.UTF_8);
+                        int quote = payload.indexOf('\'');
+                        String marker = payload.substring(quote + 1, payload.indexOf(' ', quote));
+                        out.write(new String(partialOutput, StandardCharsets.UTF_8).replace("M ", marker + " ").getBytes(StandardCharsets.UTF_8));
+                        throw new IOException("Timed out");
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        }, scriptDir.getAbsolutePath(), Duration.standardMinutes(10));
+
+        List<ExecutionResult> results = timingOut.applyConfig("169.254.0.10", cfg, Duration.standardMinutes(1));
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals("ok", results.get(0).getDetails());
+        assertFalse(results.get(1).isSuccess());
+    }
+}
@@ -0,0 +1,238 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.storage.template;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cloudstack.utils.security.ChecksumValue;
+import org.apache.cloudstack.utils.security.DigestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SegmentedDownloadTest {
+
+    private static final int FILE_SIZE = 5 * 1024 * 1024 + 12345;
+
+    private HttpServer server;
+    private byte[] content;
+    private File target;
+    private final AtomicInteger requests = new AtomicInteger();
+    // the first request that starts past this offset drops the connection half way
+    private volatile long failOnceFrom = -1;
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/template.qcow2", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serveRange(exchange);
+            }
+        });
+        server.start();
+        target = File.createTempFile("segmented", ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        target.delete();
+        new File(target.getPath() + SegmentedDownload.STATE_FILE_SUFFIX).delete();
+    }
+
+    private void serveRange(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        long from = 0;
+        long to = content.length - 1;
+        if (range != null) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            from = Long.parseLong(bounds[0]);
+            to = Long.parseLong(bounds[1]);
+        }
+        int length = (int)(to - from + 1);
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        exchange.sendResponseHeaders(range != null ? 206 : 200, length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            long failAt = failOnceFrom;
+            if (failAt >= 0 && from >= failAt) {
+                failOnceFrom = -1;
+                os.write(content, (int)from, length / 2);
+                os.flush();
+                // closing short of the announced length makes the client see a premature end
+                exchange.close();
+                return;
+            }
+            os.write(content, (int)from, length);
+        }
+    }
+
+    private SegmentedDownload.RangeFetcher fetcher() {
+        final String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/template.qcow2";
+        return new SegmentedDownload.RangeFetcher() {
+            @Override
+            public InputStream open(long from, long to) throws IOException {
+                HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+                conn.setRequestProperty("Range", "bytes=" + from + "-" + to);
+                if (conn.getResponseCode() != 206) {
+                    throw new IOException("Unexpected response " + conn.getResponseCode());
+                }
+                return conn.getInputStream();
+            }
+        };
+    }
+
+    private ChecksumValue expectedChecksum() throws Exception {
+        return DigestHelper.digest("SHA-256", new ByteArrayInputStream(content));
+    }
+
+    @Test
+    public void testParallelDownloadWithInlineDigest() throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        SegmentedDownload download = new SegmentedDownload(target, content.length, 4, fetcher(), digest, 3);
+        assertEquals(4, download.getSegmentCount());
+
+        assertEquals(content.length, download.download());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(expectedChecksum(), DigestHelper.toChecksumValue(digest));
+        assertEquals(4, requests.get());
+        assertFalse(new File(target.getPath() + SegmentedDownload.STATE_FILE_SUFFIX).exists());
+    }
+
+    @Test
+    public void testSegmentRetriesFromWhereItStopped() throws Exception {
+        failOnceFrom = content.length / 2;
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        SegmentedDownload download = new SegmentedDownload(target, content.length, 3, fetcher(), digest, 3);
+
+        download.download();
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(expectedChecksum(), DigestHelper.toChecksumValue(digest));
+        assertEquals(4, requests.get());
+        assertEquals(content.length, download.getDownloadedBytes());
+    }
+
+    @Test
+    public void testResumeFromSavedState() throws Exception {
+        // the first attempt gives up on the failing segment and leaves its state behind
+        failOnceFrom = 0;
+        SegmentedDownload first = new SegmentedDownload(target, content.length, 2, fetcher(), null, 0);
+        try {
+            first.download();
+            fail("download without retries must fail");
+        } catch (IOException e) {
+            assertTrue(new File(target.getPath() + SegmentedDownload.STATE_FILE_SUFFIX).exists());
+        }
+
+        requests.set(0);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        SegmentedDownload second = new SegmentedDownload(target, content.length, 2, fetcher(), digest, 3);
+        second.download();
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(expectedChecksum(), DigestHelper.toChecksumValue(digest));
+        // only what was missing is fetched again
+        assertTrue(requests.get() <= 2);
+        assertTrue(second.getDownloadedBytes() == content.length);
+    }
+
+    @Test
+    public void testSingleStreamResumesFromContiguousData() throws Exception {
+        // the second of two segments fails, the first one completes
+        failOnceFrom = content.length / 2;
+        SegmentedDownload download = new SegmentedDownload(target, content.length, 2, fetcher(), null, 0);
+        try {
+            download.download();
+            fail("download without retries must fail");
+        } catch (IOException e) {
+            // the preallocated file looks complete although the second half is missing
+            assertEquals(content.length, target.length());
+        }
+
+        long resumeFrom = SegmentedDownload.truncateToContiguous(target);
+        assertTrue(resumeFrom >= 0 && resumeFrom < content.length);
+        assertEquals(resumeFrom, target.length());
+        assertArrayEquals(Arrays.copyOf(content, (int)resumeFrom), Files.readAllBytes(target.toPath()));
+        assertFalse(new File(target.getPath() + SegmentedDownload.STATE_FILE_SUFFIX).exists());
+        assertEquals(-1, SegmentedDownload.truncateToContiguous(target));
+    }
+
+    @Test
+    public void testMirrorsShareSegmentsAndCoverForFailingOne() throws Exception {
+        final AtomicInteger deadMirrorRequests = new AtomicInteger();
+        SegmentedDownload.RangeFetcher deadMirror = new SegmentedDownload.RangeFetcher() {
+            @Override
+            public InputStream open(long from, long to) throws IOException {
+                deadMirrorRequests.incrementAndGet();
+                throw new IOException("Connection refused");
+            }
+        };
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        SegmentedDownload download = new SegmentedDownload(target, content.length, 4, Arrays.asList(fetcher(), deadMirror), digest, 3);
+
+        download.download();
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(expectedChecksum(), DigestHelper.toChecksumValue(digest));
+        // segments 1 and 3 start on the dead mirror and move over to the working one
+        assertEquals(2, deadMirrorRequests.get());
+        assertEquals(4, requests.get());
+    }
+
+    @Test
+    public void testBandwidthLimit() throws Exception {
+        // one second worth of burst, the remaining 3 MB take about 1.5 seconds
+        BandwidthLimiter limiter = new BandwidthLimiter(2 * 1024 * 1024);
+        SegmentedDownload download = new SegmentedDownload(target, content.length, 4, fetcher(), null, 3);
+        download.setBandwidthLimiter(limiter);
+
+        long start = System.currentTimeMillis();
+        download.download();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertTrue("download took " + elapsed + " ms", elapsed >= 1000);
+    }
+}
@@ -22,6 +22,7 @@ import java.util.Map;
 
 import com.cloud.utils.Pair;
 import org.apache.cloudstack.engine.cloud.entity.api.VolumeEntity;
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateService.TemplateApiResult;
 import org.apache.cloudstack.framework.async.AsyncCallFuture;
 import org.apache.cloudstack.storage.command.CommandResult;
 
@@ -87,6 +88,12 @@ public interface VolumeService {
     AsyncCallFuture<VolumeApiResult> createVolumeFromTemplateAsync(VolumeInfo volume, long dataStoreId,
             TemplateInfo template);
 
+    /**
+     * Copies the template to the primary data store ahead of the volumes that will be created from it,
+     * or waits for the copy already in progress.
+     */
+    AsyncCallFuture<TemplateApiResult> copyTemplateToPrimaryAsync(TemplateInfo template, long dataStoreId);
+
     AsyncCallFuture<VolumeApiResult> copyVolume(VolumeInfo srcVolume, DataStore destStore);
 
     AsyncCallFuture<VolumeApiResult> migrateVolume(VolumeInfo srcVolume, DataStore destStore);
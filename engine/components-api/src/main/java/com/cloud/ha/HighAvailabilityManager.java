@@ -18,6 +18,8 @@ package com.cloud.ha;
 
 import java.util.List;
 
+import org.apache.cloudstack.framework.config.ConfigKey;
+
 import com.cloud.deploy.DeploymentPlanner;
 import com.cloud.host.HostVO;
 import com.cloud.host.Status;
@@ -28,6 +30,13 @@ import com.cloud.vm.VMInstanceVO;
  * HighAvailabilityManager checks to make sure the VMs are running fine.
  */
 public interface HighAvailabilityManager extends Manager {
+
+    ConfigKey<Integer> HaWorkersPerHost = new ConfigKey<Integer>("Advanced", Integer.class, "ha.workers.per.host", "10",
+            "Maximum number of HA work items run at the same time for the VMs of one host, 0 for no limit", true);
+
+    ConfigKey<Integer> HaWorkersPerCluster = new ConfigKey<Integer>("Advanced", Integer.class, "ha.workers.per.cluster", "20",
+            "Maximum number of HA work items run at the same time for the VMs of one cluster, 0 for no limit", true);
+
     public enum WorkType {
         Migration,  // Migrating VMs off of a host.
         Stop,       // Stops a VM for storage pool migration purposes.  This should be obsolete now.
@@ -102,6 +111,12 @@ public interface HighAvailabilityManager extends Manager {
 
     boolean hasPendingHaWork(long vmId);
 
+    /**
+     * Has the HA workers of this management server look for work right away, e.g. because
+     * a peer has scheduled HA work.
+     */
+    void wakeupWorkers();
+
     /**
      * @return
      */
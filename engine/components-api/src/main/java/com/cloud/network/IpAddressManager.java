@@ -48,6 +48,12 @@ public interface IpAddressManager {
     ConfigKey<Boolean> RulesContinueOnError = new ConfigKey<Boolean>("Advanced", Boolean.class, "network.rule.delete.ignoreerror", "true",
             "When true, ip address delete (ipassoc) failures are  ignored", true);
 
+    ConfigKey<Integer> GuestIpIndexCacheTtl = new ConfigKey<Integer>("Advanced", Integer.class, "guest.ip.index.cache.ttl", "60",
+            "Seconds a management server keeps its index of the addresses used in a guest network before reading them from the database again", true);
+
+    ConfigKey<Integer> PublicIpLeaseBlockSize = new ConfigKey<Integer>("Advanced", Integer.class, "public.ip.lease.block.size", "16",
+            "Number of free public ip addresses a management server leases at once to allocate from, 0 to search for a free address on every allocation", true);
+
     /**
      * Assigns a new public ip address.
      *
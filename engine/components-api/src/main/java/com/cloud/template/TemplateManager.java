@@ -47,6 +47,19 @@ public interface TemplateManager {
     static final ConfigKey<Integer> TemplatePreloaderPoolSize = new ConfigKey<Integer>("Advanced", Integer.class, TemplatePreloaderPoolSizeCK, "8",
             "Size of the TemplateManager threadpool", false, ConfigKey.Scope.Global);
 
+    static final ConfigKey<Integer> TemplatePrestageInterval = new ConfigKey<Integer>("Advanced", Integer.class, "template.prestage.interval", "0",
+            "Interval in seconds to copy the most deployed templates of each zone to its primary storage pools ahead of deployments, 0 to disable", false);
+
+    static final ConfigKey<Integer> TemplatePrestageCount = new ConfigKey<Integer>("Advanced", Integer.class, "template.prestage.count", "5",
+            "Number of the most deployed templates of the zone to copy to each of its primary storage pools", true, ConfigKey.Scope.Zone);
+
+    static final ConfigKey<Integer> TemplatePrestageDeployWindow = new ConfigKey<Integer>("Advanced", Integer.class, "template.prestage.deploy.window", "24",
+            "Hours of deployments the most deployed templates are counted over", true);
+
+    static final ConfigKey<Integer> TemplatePrestagePoolBudget = new ConfigKey<Integer>("Advanced", Integer.class, "template.prestage.pool.budget", "100",
+            "Size in GB the template copies on the primary storage pool may take for templates to be copied to it ahead of deployments, unused copies of the "
+                    + "least recently deployed templates are evicted to make room", true, ConfigKey.Scope.StoragePool);
+
 
 
     /**
@@ -46,6 +46,9 @@ import org.apache.cloudstack.ca.CAManager;
 import org.apache.cloudstack.framework.config.ConfigDepot;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+import org.apache.cloudstack.ha.HAConfigManager;
 import org.apache.cloudstack.ha.dao.HAConfigDao;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
@@ -59,9 +62,12 @@ import com.cloud.agent.api.CancelCommand;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.HAConfigChangedCommand;
+import com.cloud.agent.api.InvalidateConfigCacheCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.ScheduleHostScanTaskCommand;
 import com.cloud.agent.api.TransferAgentCommand;
+import com.cloud.agent.api.WakeupHaWorkersCommand;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
@@ -92,6 +98,7 @@ import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.TaskExecutionException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.nio.Link;
 import com.cloud.utils.nio.Task;
 import com.google.gson.Gson;
@@ -108,6 +115,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     Gson _gson;
     protected HashMap<String, SocketChannel> _peers;
     protected HashMap<String, SSLEngine> _sslEngines;
+    protected ClusteredAgentPeerForwarder _peerForwarder;
     private final Timer _timer = new Timer("ClusteredAgentManager Timer");
     boolean _agentLbHappened = false;
 
@@ -129,6 +137,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     private HAConfigDao haConfigDao;
     @Inject
     private CAManager caService;
+    @Inject
+    private MessageBus _messageBus;
 
     protected ClusteredAgentManagerImpl() {
         super();
@@ -140,6 +150,14 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     protected final ConfigKey<Integer> LoadSize = new ConfigKey<Integer>(Integer.class, "direct.agent.load.size", "Advanced", "16", "How many agents to connect to in each round", true);
     protected final ConfigKey<Integer> ScanInterval = new ConfigKey<Integer>(Integer.class, "direct.agent.scan.interval", "Advanced", "90", "Interval between scans to load agents", false,
             ConfigKey.Scope.Global, 1000);
+    protected final ConfigKey<Boolean> PeerForwardAsync = new ConfigKey<Boolean>(Boolean.class, "agent.peer.forward.async", "Advanced", "false",
+            "Forward agent traffic to peer management servers through per-peer outbound queues instead of writing on the calling thread", false);
+    protected final ConfigKey<Integer> PeerForwardPoolSize = new ConfigKey<Integer>(Integer.class, "agent.peer.forward.pool.size", "Advanced", "2",
+            "Number of channels opened to each peer management server for asynchronous forwarding", false);
+    protected final ConfigKey<Integer> PeerForwardQueueSize = new ConfigKey<Integer>(Integer.class, "agent.peer.forward.queue.size", "Advanced", "1000",
+            "Maximum number of frames queued per channel to a peer management server before forwarding is refused", false);
+    protected final ConfigKey<Integer> PeerForwardBatchSize = new ConfigKey<Integer>(Integer.class, "agent.peer.forward.batch.size", "Advanced", "16",
+            "Maximum number of queued frames written back to back to a peer management server in one pass", false);
 
     @Override
     public boolean configure(final String name, final Map<String, Object> xmlParams) throws ConfigurationException {
@@ -164,6 +182,26 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         if (!super.start()) {
             return false;
         }
+        if (PeerForwardAsync.value()) {
+            _peerForwarder = new ClusteredAgentPeerForwarder(new ClusteredAgentPeerForwarder.PeerConnector() {
+                @Override
+                public ClusteredAgentPeerForwarder.PeerChannel connect(final String peerName) {
+                    return openPeerChannel(peerName);
+                }
+            }, new ClusteredAgentPeerForwarder.UndeliveredFrameHandler() {
+                @Override
+                public void undelivered(final String peerName, final byte[] frame) {
+                    handleUndeliveredFrame(peerName, frame);
+                }
+            }, PeerForwardPoolSize.value(), PeerForwardQueueSize.value(), PeerForwardBatchSize.value());
+
+            try {
+                JmxUtil.registerMBean("ClusteredAgentManager", "PeerForwardStats", new ClusteredAgentPeerForwardStats(this));
+            } catch (final Exception e) {
+                s_logger.error("Failed to register MBean", e);
+            }
+        }
+
         _timer.schedule(new DirectAgentScanTimerTask(), STARTUP_DELAY, ScanInterval.value());
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled direct agent scan task to run at an interval of " + ScanInterval.value() + " seconds");
@@ -405,6 +443,12 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     }
 
     public boolean routeToPeer(final String peer, final byte[] bytes) {
+        if (_peerForwarder != null) {
+            if (s_logger.isDebugEnabled()) {
+                logD(bytes, "Queueing to peer");
+            }
+            return _peerForwarder.forward(peer, bytes);
+        }
         int i = 0;
         SocketChannel ch = null;
         SSLEngine sslEngine = null;
@@ -442,6 +486,29 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         return false;
     }
 
+    /**
+     * Answers the request of a frame the peer forwarder could not deliver, the way a failed synchronous
+     * route does: a request sent from this server is cancelled on its attache, which wakes the waiting
+     * listener, and a request routed through this server is cancelled back to the server that sent it.
+     * Answers and cancellations are dropped, their peer is not reachable.
+     */
+    protected void handleUndeliveredFrame(final String peerName, final byte[] bytes) {
+        if (!Request.isRequest(bytes) || Request.isControl(bytes) || !Request.fromServer(bytes)) {
+            return;
+        }
+        final long hostId = Request.getAgentId(bytes);
+        final long sequence = Request.getSequence(bytes);
+        final long mgmtId = Request.getManagementServerId(bytes);
+        if (mgmtId == _nodeId) {
+            final AgentAttache attache = findAttache(hostId);
+            if (attache != null) {
+                attache.cancel(sequence);
+            }
+        } else if (mgmtId != -1 && !Long.toString(mgmtId).equals(peerName)) {
+            cancel(Long.toString(mgmtId), hostId, sequence, "Unable to reach management server " + peerName);
+        }
+    }
+
     public String findPeer(final long hostId) {
         return getPeerName(hostId);
     }
@@ -470,12 +537,21 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             _peers.remove(peerName);
             _sslEngines.remove(peerName);
         }
+        if (_peerForwarder != null) {
+            _peerForwarder.closePeer(peerName);
+        }
+    }
+
+    public Map<String, ClusteredAgentPeerForwarder.PeerForwardStats> getPeerForwardStats() {
+        if (_peerForwarder == null) {
+            return new HashMap<String, ClusteredAgentPeerForwarder.PeerForwardStats>();
+        }
+        return _peerForwarder.getStats();
     }
 
     public SocketChannel connectToPeer(final String peerName, final SocketChannel prevCh) {
         synchronized (_peers) {
             final SocketChannel ch = _peers.get(peerName);
-            SSLEngine sslEngine = null;
             if (prevCh != null) {
                 try {
                     prevCh.close();
@@ -484,57 +560,13 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 }
             }
             if (ch == null || ch == prevCh) {
-                final ManagementServerHost ms = _clusterMgr.getPeer(peerName);
-                if (ms == null) {
-                    s_logger.info("Unable to find peer: " + peerName);
-                    return null;
-                }
-                final String ip = ms.getServiceIP();
-                InetAddress addr;
-                int port = Port.value();
-                try {
-                    addr = InetAddress.getByName(ip);
-                } catch (final UnknownHostException e) {
-                    throw new CloudRuntimeException("Unable to resolve " + ip);
-                }
-                SocketChannel ch1 = null;
-                try {
-                    ch1 = SocketChannel.open(new InetSocketAddress(addr, port));
-                    ch1.configureBlocking(false);
-                    ch1.socket().setKeepAlive(true);
-                    ch1.socket().setSoTimeout(60 * 1000);
-                    try {
-                        SSLContext sslContext = Link.initManagementSSLContext(caService);
-                        sslEngine = sslContext.createSSLEngine(ip, port);
-                        sslEngine.setUseClientMode(true);
-                        sslEngine.setEnabledProtocols(SSLUtils.getSupportedProtocols(sslEngine.getEnabledProtocols()));
-                        sslEngine.beginHandshake();
-                        if (!Link.doHandshake(ch1, sslEngine)) {
-                            ch1.close();
-                            throw new IOException(String.format("SSL: Handshake failed with peer management server '%s' on %s:%d ", peerName, ip, port));
-                        }
-                        s_logger.info(String.format("SSL: Handshake done with peer management server '%s' on %s:%d ", peerName, ip, port));
-                    } catch (final Exception e) {
-                        ch1.close();
-                        throw new IOException("SSL: Fail to init SSL! " + e);
-                    }
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Connection to peer opened: " + peerName + ", ip: " + ip);
-                    }
-                    _peers.put(peerName, ch1);
-                    _sslEngines.put(peerName, sslEngine);
-                    return ch1;
-                } catch (final IOException e) {
-                    if (ch1 != null) {
-                        try {
-                            ch1.close();
-                        } catch (final IOException ex) {
-                            s_logger.error("failed to close failed peer socket: " + ex);
-                        }
-                    }
-                    s_logger.warn("Unable to connect to peer management server: " + peerName + ", ip: " + ip + " due to " + e.getMessage(), e);
+                final PeerSocketChannel peerCh = openPeerChannel(peerName);
+                if (peerCh == null) {
                     return null;
                 }
+                _peers.put(peerName, peerCh.getChannel());
+                _sslEngines.put(peerName, peerCh.getSSLEngine());
+                return peerCh.getChannel();
             }
 
             if (s_logger.isTraceEnabled()) {
@@ -544,6 +576,94 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         }
     }
 
+    protected PeerSocketChannel openPeerChannel(final String peerName) {
+        final ManagementServerHost ms = _clusterMgr.getPeer(peerName);
+        if (ms == null) {
+            s_logger.info("Unable to find peer: " + peerName);
+            return null;
+        }
+        final String ip = ms.getServiceIP();
+        InetAddress addr;
+        int port = Port.value();
+        try {
+            addr = InetAddress.getByName(ip);
+        } catch (final UnknownHostException e) {
+            throw new CloudRuntimeException("Unable to resolve " + ip);
+        }
+        SocketChannel ch1 = null;
+        try {
+            ch1 = SocketChannel.open(new InetSocketAddress(addr, port));
+            ch1.configureBlocking(false);
+            ch1.socket().setKeepAlive(true);
+            ch1.socket().setSoTimeout(60 * 1000);
+            SSLEngine sslEngine = null;
+            try {
+                SSLContext sslContext = Link.initManagementSSLContext(caService);
+                sslEngine = sslContext.createSSLEngine(ip, port);
+                sslEngine.setUseClientMode(true);
+                sslEngine.setEnabledProtocols(SSLUtils.getSupportedProtocols(sslEngine.getEnabledProtocols()));
+                sslEngine.beginHandshake();
+                if (!Link.doHandshake(ch1, sslEngine)) {
+                    ch1.close();
+                    throw new IOException(String.format("SSL: Handshake failed with peer management server '%s' on %s:%d ", peerName, ip, port));
+                }
+                s_logger.info(String.format("SSL: Handshake done with peer management server '%s' on %s:%d ", peerName, ip, port));
+            } catch (final Exception e) {
+                ch1.close();
+                throw new IOException("SSL: Fail to init SSL! " + e);
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Connection to peer opened: " + peerName + ", ip: " + ip);
+            }
+            return new PeerSocketChannel(ch1, sslEngine);
+        } catch (final IOException e) {
+            if (ch1 != null) {
+                try {
+                    ch1.close();
+                } catch (final IOException ex) {
+                    s_logger.error("failed to close failed peer socket: " + ex);
+                }
+            }
+            s_logger.warn("Unable to connect to peer management server: " + peerName + ", ip: " + ip + " due to " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * An SSL channel to a peer management server, as used by the peer forwarder.
+     */
+    protected static class PeerSocketChannel implements ClusteredAgentPeerForwarder.PeerChannel {
+        private final SocketChannel _ch;
+        private final SSLEngine _sslEngine;
+
+        public PeerSocketChannel(final SocketChannel ch, final SSLEngine sslEngine) {
+            _ch = ch;
+            _sslEngine = sslEngine;
+        }
+
+        public SocketChannel getChannel() {
+            return _ch;
+        }
+
+        public SSLEngine getSSLEngine() {
+            return _sslEngine;
+        }
+
+        @Override
+        public void write(final byte[] frame) throws IOException {
+            Link.write(_ch, new ByteBuffer[] {ByteBuffer.wrap(frame)}, _sslEngine);
+        }
+
+        @Override
+        public void close() {
+            try {
+                _ch.close();
+            } catch (final IOException e) {
+                s_logger.info("[ignored] error on closing peer channel: " + _ch.toString(), e);
+            }
+        }
+    }
+
     public SocketChannel connectToPeer(final long hostId, final SocketChannel prevCh) {
         final String peerName = getPeerName(hostId);
         if (peerName == null) {
@@ -591,6 +711,9 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 }
             }
         }
+        if (_peerForwarder != null) {
+            _peerForwarder.stop();
+        }
         _timer.cancel();
 
         // cancel all transfer tasks
@@ -1249,6 +1372,33 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         return _gson.toJson(answers);
     }
 
+    private String handleInvalidateConfigCacheCommand(final InvalidateConfigCacheCommand cmd) {
+        final long version = _configDepot.invalidateConfigCache();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Config " + cmd.getConfigName() + " changed on a peer at its config change version " + cmd.getVersion() + ", local config change version is now " + version);
+        }
+
+        final Answer[] answers = new Answer[1];
+        answers[0] = new Answer(cmd, true, null);
+        return _gson.toJson(answers);
+    }
+
+    private String handleWakeupHaWorkersCommand(final WakeupHaWorkersCommand cmd) {
+        _haMgr.wakeupWorkers();
+
+        final Answer[] answers = new Answer[1];
+        answers[0] = new Answer(cmd, true, null);
+        return _gson.toJson(answers);
+    }
+
+    private String handleHAConfigChangedCommand(final HAConfigChangedCommand cmd) {
+        _messageBus.publish(null, HAConfigManager.MESSAGE_HA_CONFIG_CHANGED_EVENT, PublishScope.LOCAL, cmd.getHaConfigId());
+
+        final Answer[] answers = new Answer[1];
+        answers[0] = new Answer(cmd, true, null);
+        return _gson.toJson(answers);
+    }
+
     public Answer[] sendToAgent(final Long hostId, final Command[] cmds, final boolean stopOnError) throws AgentUnavailableException, OperationTimedoutException {
         final Commands commands = new Commands(stopOnError ? Command.OnError.Stop : Command.OnError.Continue);
         for (final Command cmd : cmds) {
@@ -1343,6 +1493,12 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 final ScheduleHostScanTaskCommand cmd = (ScheduleHostScanTaskCommand)cmds[0];
                 final String response = handleScheduleHostScanTaskCommand(cmd);
                 return response;
+            } else if (cmds.length == 1 && cmds[0] instanceof InvalidateConfigCacheCommand) {
+                return handleInvalidateConfigCacheCommand((InvalidateConfigCacheCommand)cmds[0]);
+            } else if (cmds.length == 1 && cmds[0] instanceof WakeupHaWorkersCommand) {
+                return handleWakeupHaWorkersCommand((WakeupHaWorkersCommand)cmds[0]);
+            } else if (cmds.length == 1 && cmds[0] instanceof HAConfigChangedCommand) {
+                return handleHAConfigChangedCommand((HAConfigChangedCommand)cmds[0]);
             }
 
             try {
@@ -1452,6 +1608,10 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         keysLst.add(ConnectedAgentThreshold);
         keysLst.add(LoadSize);
         keysLst.add(ScanInterval);
+        keysLst.add(PeerForwardAsync);
+        keysLst.add(PeerForwardPoolSize);
+        keysLst.add(PeerForwardQueueSize);
+        keysLst.add(PeerForwardBatchSize);
         return keysLst.toArray(new ConfigKey<?>[keysLst.size()]);
     }
 }
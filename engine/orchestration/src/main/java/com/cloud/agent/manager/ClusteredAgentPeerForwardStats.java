@@ -0,0 +1,95 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+import com.cloud.agent.manager.ClusteredAgentPeerForwarder.PeerForwardStats;
+
+/**
+ * Sums up the forwarding queues of all peers, the counters are those since this management server started.
+ */
+public class ClusteredAgentPeerForwardStats extends StandardMBean implements ClusteredAgentPeerForwardStatsMBean {
+    private final ClusteredAgentManagerImpl _agentMgr;
+
+    public ClusteredAgentPeerForwardStats(ClusteredAgentManagerImpl agentMgr) {
+        super(ClusteredAgentPeerForwardStatsMBean.class, false);
+        _agentMgr = agentMgr;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for (PeerForwardStats stats : _agentMgr.getPeerForwardStats().values()) {
+            depth += stats.getQueueDepth();
+        }
+        return depth;
+    }
+
+    @Override
+    public long getForwarded() {
+        long forwarded = 0;
+        for (PeerForwardStats stats : _agentMgr.getPeerForwardStats().values()) {
+            forwarded += stats.getForwarded();
+        }
+        return forwarded;
+    }
+
+    @Override
+    public long getRejected() {
+        long rejected = 0;
+        for (PeerForwardStats stats : _agentMgr.getPeerForwardStats().values()) {
+            rejected += stats.getRejected();
+        }
+        return rejected;
+    }
+
+    @Override
+    public long getDropped() {
+        long dropped = 0;
+        for (PeerForwardStats stats : _agentMgr.getPeerForwardStats().values()) {
+            dropped += stats.getDropped();
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getMaxLatencyMillis() {
+        long max = 0;
+        for (PeerForwardStats stats : _agentMgr.getPeerForwardStats().values()) {
+            max = Math.max(max, stats.getMaxLatencyMs());
+        }
+        return max;
+    }
+
+    @Override
+    public String[] getPeers() {
+        List<String> peers = new ArrayList<String>();
+        for (Map.Entry<String, PeerForwardStats> entry : _agentMgr.getPeerForwardStats().entrySet()) {
+            PeerForwardStats stats = entry.getValue();
+            peers.add(entry.getKey() + ": queue depth " + stats.getQueueDepth() + ", forwarded " + stats.getForwarded() + ", rejected " + stats.getRejected()
+                    + ", dropped " + stats.getDropped() + ", avg latency " + stats.getAvgLatencyMs() + " ms, max latency " + stats.getMaxLatencyMs() + " ms");
+        }
+        Collections.sort(peers);
+        return peers.toArray(new String[peers.size()]);
+    }
+}
@@ -0,0 +1,404 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.transport.Request;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Forwards agent traffic to peer management servers without holding the caller.
+ *
+ * Every peer gets a small pool of channels, each fed by its own bounded outbound queue
+ * and drained by its own writer thread, so a slow peer only delays the traffic that is
+ * queued for it. Frames of the same agent always map to the same channel to keep their
+ * relative order. When a queue is full the frame is refused, which the caller sees as
+ * back-pressure. Frames that cannot be written are handed to an {@link UndeliveredFrameHandler},
+ * which answers the requests waiting for them.
+ */
+public class ClusteredAgentPeerForwarder {
+    private static final Logger s_logger = Logger.getLogger(ClusteredAgentPeerForwarder.class);
+
+    public interface PeerChannel {
+        void write(byte[] frame) throws IOException;
+
+        void close();
+    }
+
+    public interface PeerConnector {
+        /**
+         * @return a freshly connected channel to the peer, or null if the peer cannot be reached.
+         */
+        PeerChannel connect(String peerName);
+    }
+
+    public interface UndeliveredFrameHandler {
+        /**
+         * Called for a frame that was queued but could not be written to the peer, so that whoever waits for it
+         * can be answered.
+         */
+        void undelivered(String peerName, byte[] frame);
+    }
+
+    private static final int MAX_WRITE_ATTEMPTS = 5;
+
+    private final PeerConnector _connector;
+    private final UndeliveredFrameHandler _undeliveredHandler;
+    private final int _poolSize;
+    private final int _queueSize;
+    private final int _batchSize;
+    private final ExecutorService _writers;
+    private final Map<String, PeerQueues> _peers = new ConcurrentHashMap<String, PeerQueues>();
+    private volatile boolean _stopped = false;
+
+    public ClusteredAgentPeerForwarder(final PeerConnector connector, final int poolSize, final int queueSize, final int batchSize) {
+        this(connector, null, poolSize, queueSize, batchSize);
+    }
+
+    public ClusteredAgentPeerForwarder(final PeerConnector connector, final UndeliveredFrameHandler undeliveredHandler, final int poolSize, final int queueSize,
+            final int batchSize) {
+        _connector = connector;
+        _undeliveredHandler = undeliveredHandler;
+        _poolSize = Math.max(1, poolSize);
+        _queueSize = Math.max(1, queueSize);
+        _batchSize = Math.max(1, batchSize);
+        _writers = Executors.newCachedThreadPool(new NamedThreadFactory("Cluster-PeerForwarder"));
+    }
+
+    /**
+     * Queues a frame for delivery to the peer.
+     *
+     * @return false if the frame could not be queued because the peer queue is full or the forwarder is stopped.
+     */
+    public boolean forward(final String peerName, final byte[] bytes) {
+        if (_stopped) {
+            return false;
+        }
+        final PeerQueues peer = getPeerQueues(peerName);
+        final PeerChannelWriter writer = peer.writerFor(Request.getAgentId(bytes));
+        if (!writer.offer(new Frame(bytes))) {
+            peer._rejected.incrementAndGet();
+            if (s_logger.isDebugEnabled()) {
+                ClusteredAgentManagerImpl.logD(bytes, "Outbound queue to peer " + peerName + " is full, refusing to forward");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public void closePeer(final String peerName) {
+        final PeerQueues peer = _peers.remove(peerName);
+        if (peer != null) {
+            peer.close();
+        }
+    }
+
+    public void stop() {
+        _stopped = true;
+        for (final String peerName : new ArrayList<String>(_peers.keySet())) {
+            closePeer(peerName);
+        }
+        _writers.shutdownNow();
+    }
+
+    public Map<String, PeerForwardStats> getStats() {
+        final Map<String, PeerForwardStats> stats = new HashMap<String, PeerForwardStats>();
+        for (final Map.Entry<String, PeerQueues> entry : _peers.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return stats;
+    }
+
+    private PeerQueues getPeerQueues(final String peerName) {
+        PeerQueues peer = _peers.get(peerName);
+        if (peer == null) {
+            synchronized (_peers) {
+                peer = _peers.get(peerName);
+                if (peer == null) {
+                    peer = new PeerQueues(peerName);
+                    _peers.put(peerName, peer);
+                    peer.start();
+                }
+            }
+        }
+        return peer;
+    }
+
+    public static class PeerForwardStats {
+        private final int _queueDepth;
+        private final long _forwarded;
+        private final long _rejected;
+        private final long _dropped;
+        private final long _avgLatencyMs;
+        private final long _maxLatencyMs;
+
+        public PeerForwardStats(final int queueDepth, final long forwarded, final long rejected, final long dropped, final long avgLatencyMs, final long maxLatencyMs) {
+            _queueDepth = queueDepth;
+            _forwarded = forwarded;
+            _rejected = rejected;
+            _dropped = dropped;
+            _avgLatencyMs = avgLatencyMs;
+            _maxLatencyMs = maxLatencyMs;
+        }
+
+        public int getQueueDepth() {
+            return _queueDepth;
+        }
+
+        public long getForwarded() {
+            return _forwarded;
+        }
+
+        public long getRejected() {
+            return _rejected;
+        }
+
+        public long getDropped() {
+            return _dropped;
+        }
+
+        public long getAvgLatencyMs() {
+            return _avgLatencyMs;
+        }
+
+        public long getMaxLatencyMs() {
+            return _maxLatencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + _queueDepth + ", forwarded=" + _forwarded + ", rejected=" + _rejected + ", dropped=" + _dropped + ", avgLatencyMs=" + _avgLatencyMs
+                    + ", maxLatencyMs=" + _maxLatencyMs;
+        }
+    }
+
+    private static class Frame {
+        final byte[] _bytes;
+        final long _queuedAt;
+
+        Frame(final byte[] bytes) {
+            _bytes = bytes;
+            _queuedAt = System.nanoTime();
+        }
+    }
+
+    private class PeerQueues {
+        private final String _peerName;
+        private final PeerChannelWriter[] _writers;
+        private final AtomicLong _forwarded = new AtomicLong();
+        private final AtomicLong _rejected = new AtomicLong();
+        private final AtomicLong _dropped = new AtomicLong();
+        private final AtomicLong _totalLatencyNanos = new AtomicLong();
+        private final AtomicLong _maxLatencyNanos = new AtomicLong();
+
+        PeerQueues(final String peerName) {
+            _peerName = peerName;
+            _writers = new PeerChannelWriter[_poolSize];
+            for (int i = 0; i < _poolSize; i++) {
+                _writers[i] = new PeerChannelWriter(this, i);
+            }
+        }
+
+        void start() {
+            for (final PeerChannelWriter writer : _writers) {
+                ClusteredAgentPeerForwarder.this._writers.submit(writer);
+            }
+        }
+
+        PeerChannelWriter writerFor(final long agentId) {
+            return _writers[(int)((agentId & Long.MAX_VALUE) % _writers.length)];
+        }
+
+        void recordForwarded(final Frame frame) {
+            final long latency = System.nanoTime() - frame._queuedAt;
+            _forwarded.incrementAndGet();
+            _totalLatencyNanos.addAndGet(latency);
+            long max = _maxLatencyNanos.get();
+            while (latency > max && !_maxLatencyNanos.compareAndSet(max, latency)) {
+                max = _maxLatencyNanos.get();
+            }
+        }
+
+        void close() {
+            for (final PeerChannelWriter writer : _writers) {
+                writer.close();
+            }
+        }
+
+        PeerForwardStats getStats() {
+            int depth = 0;
+            for (final PeerChannelWriter writer : _writers) {
+                depth += writer._queue.size();
+            }
+            final long forwarded = _forwarded.get();
+            final long avg = forwarded == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(_totalLatencyNanos.get() / forwarded);
+            return new PeerForwardStats(depth, forwarded, _rejected.get(), _dropped.get(), avg, TimeUnit.NANOSECONDS.toMillis(_maxLatencyNanos.get()));
+        }
+    }
+
+    private class PeerChannelWriter implements Runnable {
+        private final PeerQueues _peer;
+        private final int _index;
+        private final BlockingQueue<Frame> _queue = new ArrayBlockingQueue<Frame>(_queueSize);
+        private PeerChannel _channel;
+        private volatile boolean _closed = false;
+
+        PeerChannelWriter(final PeerQueues peer, final int index) {
+            _peer = peer;
+            _index = index;
+        }
+
+        boolean offer(final Frame frame) {
+            return !_closed && _queue.offer(frame);
+        }
+
+        void close() {
+            _closed = true;
+            _queue.offer(new Frame(null));
+        }
+
+        @Override
+        public void run() {
+            final List<Frame> batch = new ArrayList<Frame>(_batchSize);
+            final List<byte[]> frames = new ArrayList<byte[]>(_batchSize);
+            try {
+                while (!_closed) {
+                    batch.add(_queue.take());
+                    _queue.drainTo(batch, _batchSize - 1);
+
+                    int handled = 0;
+                    try {
+                        frames.clear();
+                        for (final Frame frame : batch) {
+                            if (frame._bytes != null) {
+                                frames.add(frame._bytes);
+                            }
+                        }
+                        final int written = write(frames);
+                        int index = 0;
+                        for (final Frame frame : batch) {
+                            if (frame._bytes != null) {
+                                if (index++ < written) {
+                                    _peer.recordForwarded(frame);
+                                } else {
+                                    drop(frame);
+                                }
+                            }
+                            handled++;
+                        }
+                    } catch (final Throwable th) {
+                        // keep the writer running, a dead writer would leave its queue to fill up
+                        s_logger.warn("Unexpected exception in writer " + _index + " of peer " + _peer._peerName, th);
+                        closeChannel();
+                        for (final Frame frame : batch.subList(handled, batch.size())) {
+                            if (frame._bytes != null) {
+                                drop(frame);
+                            }
+                        }
+                    } finally {
+                        batch.clear();
+                    }
+                }
+            } catch (final InterruptedException e) {
+                s_logger.debug("Writer " + _index + " of peer " + _peer._peerName + " is interrupted");
+            } finally {
+                closeChannel();
+                Frame frame;
+                while ((frame = _queue.poll()) != null) {
+                    if (frame._bytes != null) {
+                        drop(frame);
+                    }
+                }
+            }
+        }
+
+        private void drop(final Frame frame) {
+            _peer._dropped.incrementAndGet();
+            ClusteredAgentManagerImpl.logI(frame._bytes, "Unable to forward to peer " + _peer._peerName + ", dropping");
+            if (_undeliveredHandler != null) {
+                try {
+                    _undeliveredHandler.undelivered(_peer._peerName, frame._bytes);
+                } catch (final Throwable th) {
+                    s_logger.warn("Unable to handle a frame that could not be forwarded to peer " + _peer._peerName, th);
+                }
+            }
+        }
+
+        /**
+         * Writes the batch back to back on this writer's channel, re-opening the channel on failure
+         * and resuming from the first frame that was not written. Unexpected exceptions are handled
+         * like I/O errors, so that the writer outlives them.
+         *
+         * @return the number of frames written.
+         */
+        private int write(final List<byte[]> frames) {
+            int written = 0;
+            int attempt = 0;
+            while (written < frames.size() && attempt < MAX_WRITE_ATTEMPTS && !_closed) {
+                if (_channel == null) {
+                    try {
+                        _channel = _connector.connect(_peer._peerName);
+                    } catch (final RuntimeException e) {
+                        s_logger.warn("Unable to connect channel " + _index + " to peer " + _peer._peerName, e);
+                    }
+                    if (_channel == null) {
+                        break;
+                    }
+                }
+                try {
+                    _channel.write(frames.get(written));
+                    written++;
+                    attempt = 0;
+                } catch (final IOException e) {
+                    attempt++;
+                    s_logger.info("IOException " + e.getMessage() + " when forwarding to peer " + _peer._peerName + ", close channel " + _index + " and let it re-open");
+                    closeChannel();
+                } catch (final RuntimeException e) {
+                    attempt++;
+                    s_logger.warn("Unexpected exception when forwarding to peer " + _peer._peerName + ", close channel " + _index + " and let it re-open", e);
+                    closeChannel();
+                }
+            }
+            return written;
+        }
+
+        private void closeChannel() {
+            if (_channel != null) {
+                try {
+                    _channel.close();
+                } catch (final RuntimeException e) {
+                    s_logger.info("[ignored] error on closing channel " + _index + " to peer " + _peer._peerName, e);
+                }
+                _channel = null;
+            }
+        }
+    }
+}
@@ -3023,7 +3023,11 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
             if (cmd instanceof PingRoutingCommand) {
                 final PingRoutingCommand ping = (PingRoutingCommand)cmd;
                 if (ping.getHostVmStateReport() != null) {
-                    _syncMgr.processHostVmStatePingReport(agentId, ping.getHostVmStateReport());
+                    if (ping.isHostVmStateReportDelta()) {
+                        _syncMgr.processHostVmStateDeltaReport(agentId, ping.getHostVmStateReport());
+                    } else {
+                        _syncMgr.processHostVmStatePingReport(agentId, ping.getHostVmStateReport());
+                    }
                 }
 
                 // take the chance to scan VMs that are stuck in transitional states
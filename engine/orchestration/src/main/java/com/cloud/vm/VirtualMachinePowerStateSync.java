@@ -29,5 +29,8 @@ public interface VirtualMachinePowerStateSync {
     // to adapt legacy ping report
     void processHostVmStatePingReport(long hostId, Map<String, HostVmStateReportEntry> report);
 
+    // ping report that only carries the VMs whose power state changed
+    void processHostVmStateDeltaReport(long hostId, Map<String, HostVmStateReportEntry> report);
+
     Map<Long, VirtualMachine.PowerState> convertVmStateReport(Map<String, HostVmStateReportEntry> states);
 }
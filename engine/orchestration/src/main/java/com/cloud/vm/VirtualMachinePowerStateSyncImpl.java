@@ -68,13 +68,35 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         processReport(hostId, translatedInfo);
     }
 
-    private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
-
+    @Override
+    public void processHostVmStateDeltaReport(long hostId, Map<String, HostVmStateReportEntry> report) {
         if (s_logger.isDebugEnabled())
-            s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
+            s_logger.debug("Process host VM state delta report from ping process. host: " + hostId);
+
+        // VMs that are not in a delta report simply did not change, missing VMs are only detected on full reports
+        Map<Long, VirtualMachine.PowerState> translatedInfo = new HashMap<Long, VirtualMachine.PowerState>();
+        if (report != null) {
+            for (Map.Entry<String, HostVmStateReportEntry> entry : report.entrySet()) {
+                VMInstanceVO vm = findVM(entry.getKey());
+                if (vm == null) {
+                    s_logger.info("Unable to find matched VM in CloudStack DB. name: " + entry.getKey());
+                    continue;
+                }
 
-        for (Map.Entry<Long, VirtualMachine.PowerState> entry : translatedInfo.entrySet()) {
+                // a change on a host the VM no longer runs on, e.g. the source host of a migration
+                if (vm.getHostId() == null || vm.getHostId().longValue() != hostId) {
+                    if (s_logger.isDebugEnabled())
+                        s_logger.debug("Skip VM state delta from host " + hostId + ", vm id: " + vm.getId() + " is on host " + vm.getHostId());
+                    continue;
+                }
+                translatedInfo.put(vm.getId(), entry.getValue().getState());
+            }
+        }
+        updatePowerStates(hostId, translatedInfo);
+    }
 
+    private void updatePowerStates(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
+        for (Map.Entry<Long, VirtualMachine.PowerState> entry : translatedInfo.entrySet()) {
             if (s_logger.isDebugEnabled())
                 s_logger.debug("VM state report. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
 
@@ -88,6 +110,14 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
                     s_logger.debug("VM power state does not change, skip DB writing. vm id: " + entry.getKey());
             }
         }
+    }
+
+    private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
+
+        if (s_logger.isDebugEnabled())
+            s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
+
+        updatePowerStates(hostId, translatedInfo);
 
         // for all running/stopping VMs, we provide monitoring of missing report
         List<VMInstanceVO> vmsThatAreMissingReport = _instanceDao.findByHostInStates(hostId, VirtualMachine.State.Running,
@@ -0,0 +1,195 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ClusteredAgentPeerForwarderTest {
+
+    private ClusteredAgentPeerForwarder forwarder;
+
+    private static byte[] frame(final long agentId, final long seq) {
+        final ByteBuffer buf = ByteBuffer.allocate(64);
+        buf.putLong(4, seq);
+        buf.putLong(24, agentId);
+        return buf.array();
+    }
+
+    private static long seqOf(final byte[] frame) {
+        return ByteBuffer.wrap(frame).getLong(4);
+    }
+
+    private static class RecordingChannel implements ClusteredAgentPeerForwarder.PeerChannel {
+        final List<byte[]> written;
+        final CountDownLatch gate;
+        final AtomicInteger failures;
+
+        RecordingChannel(final List<byte[]> written, final CountDownLatch gate, final AtomicInteger failures) {
+            this.written = written;
+            this.gate = gate;
+            this.failures = failures;
+        }
+
+        @Override
+        public void write(final byte[] frame) throws IOException {
+            try {
+                gate.await();
+            } catch (final InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failures.getAndDecrement() > 0) {
+                throw new IOException("simulated failure");
+            }
+            written.add(frame);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private void waitForForwarded(final String peer, final long expected) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            final ClusteredAgentPeerForwarder.PeerForwardStats stats = forwarder.getStats().get(peer);
+            if (stats != null && stats.getForwarded() >= expected) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (forwarder != null) {
+            forwarder.stop();
+        }
+    }
+
+    @Test
+    public void testForwardKeepsPerAgentOrder() throws Exception {
+        final List<byte[]> written = Collections.synchronizedList(new ArrayList<byte[]>());
+        final RecordingChannel channel = new RecordingChannel(written, new CountDownLatch(0), new AtomicInteger());
+        forwarder = new ClusteredAgentPeerForwarder(peerName -> channel, 2, 100, 8);
+
+        for (long seq = 0; seq < 50; seq++) {
+            assertTrue(forwarder.forward("1", frame(7L, seq)));
+        }
+        waitForForwarded("1", 50);
+
+        assertEquals(50, written.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals(i, seqOf(written.get(i)));
+        }
+        assertEquals(0, forwarder.getStats().get("1").getQueueDepth());
+    }
+
+    @Test
+    public void testForwardRefusedWhenQueueIsFull() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<byte[]> written = Collections.synchronizedList(new ArrayList<byte[]>());
+        final RecordingChannel channel = new RecordingChannel(written, gate, new AtomicInteger());
+        forwarder = new ClusteredAgentPeerForwarder(peerName -> channel, 1, 2, 1);
+
+        // the writer takes the first frame and blocks on the gate, the next two fill the queue
+        assertTrue(forwarder.forward("1", frame(1L, 0)));
+        Thread.sleep(100);
+        assertTrue(forwarder.forward("1", frame(1L, 1)));
+        assertTrue(forwarder.forward("1", frame(1L, 2)));
+        assertFalse(forwarder.forward("1", frame(1L, 3)));
+        assertEquals(1, forwarder.getStats().get("1").getRejected());
+
+        gate.countDown();
+        waitForForwarded("1", 3);
+        assertEquals(3, written.size());
+    }
+
+    @Test
+    public void testForwardReconnectsWithoutDuplicates() throws Exception {
+        final List<byte[]> written = Collections.synchronizedList(new ArrayList<byte[]>());
+        final AtomicInteger failures = new AtomicInteger(2);
+        final AtomicInteger connects = new AtomicInteger();
+        forwarder = new ClusteredAgentPeerForwarder(peerName -> {
+            connects.incrementAndGet();
+            return new RecordingChannel(written, new CountDownLatch(0), failures);
+        }, 1, 100, 16);
+
+        for (long seq = 0; seq < 10; seq++) {
+            assertTrue(forwarder.forward("1", frame(1L, seq)));
+        }
+        waitForForwarded("1", 10);
+
+        assertEquals(10, written.size());
+        assertEquals(3, connects.get());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals(i, seqOf(written.get(i)));
+        }
+    }
+
+    @Test
+    public void testForwardDropsWhenPeerUnreachable() throws Exception {
+        final List<byte[]> undelivered = Collections.synchronizedList(new ArrayList<byte[]>());
+        forwarder = new ClusteredAgentPeerForwarder(peerName -> null, (peerName, frame) -> undelivered.add(frame), 1, 100, 16);
+
+        assertTrue(forwarder.forward("1", frame(1L, 0)));
+        for (int i = 0; i < 500 && undelivered.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, forwarder.getStats().get("1").getDropped());
+        assertEquals(0, forwarder.getStats().get("1").getForwarded());
+        assertEquals(1, undelivered.size());
+        assertEquals(0, seqOf(undelivered.get(0)));
+    }
+
+    @Test
+    public void testWriterSurvivesUnexpectedExceptions() throws Exception {
+        final List<byte[]> written = Collections.synchronizedList(new ArrayList<byte[]>());
+        final List<byte[]> undelivered = Collections.synchronizedList(new ArrayList<byte[]>());
+        final AtomicInteger connects = new AtomicInteger();
+        forwarder = new ClusteredAgentPeerForwarder(peerName -> {
+            if (connects.incrementAndGet() == 1) {
+                throw new IllegalStateException("simulated failure");
+            }
+            return new RecordingChannel(written, new CountDownLatch(0), new AtomicInteger());
+        }, (peerName, frame) -> undelivered.add(frame), 1, 100, 1);
+
+        assertTrue(forwarder.forward("1", frame(1L, 0)));
+        for (int i = 0; i < 500 && undelivered.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(forwarder.forward("1", frame(1L, 1)));
+        waitForForwarded("1", 1);
+
+        assertEquals(1, undelivered.size());
+        assertEquals(0, seqOf(undelivered.get(0)));
+        assertEquals(1, written.size());
+        assertEquals(1, seqOf(written.get(0)));
+    }
+}
@@ -0,0 +1,84 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.vm.VirtualMachine.PowerState;
+import com.cloud.vm.dao.VMInstanceDao;
+
+@RunWith(MockitoJUnitRunner.class)
+public class VirtualMachinePowerStateSyncImplTest {
+
+    @InjectMocks
+    private VirtualMachinePowerStateSyncImpl powerStateSync = new VirtualMachinePowerStateSyncImpl();
+    @Mock
+    private VMInstanceDao instanceDao;
+    @Mock
+    private MessageBus messageBus;
+
+    private VMInstanceVO vm;
+
+    @Before
+    public void setup() {
+        vm = mock(VMInstanceVO.class);
+        when(vm.getId()).thenReturn(10L);
+        when(vm.getHostId()).thenReturn(2L);
+        when(instanceDao.findVMByInstanceName("i-2-10-VM")).thenReturn(vm);
+        when(instanceDao.updatePowerState(anyLong(), anyLong(), any(PowerState.class))).thenReturn(true);
+    }
+
+    private Map<String, HostVmStateReportEntry> report(PowerState state, String host) {
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        report.put("i-2-10-VM", new HostVmStateReportEntry(state, host));
+        return report;
+    }
+
+    @Test
+    public void testDeltaReportUpdatesVmOnReportingHost() {
+        powerStateSync.processHostVmStateDeltaReport(2L, report(PowerState.PowerOff, "kvm2"));
+
+        verify(instanceDao).updatePowerState(10L, 2L, PowerState.PowerOff);
+    }
+
+    @Test
+    public void testDeltaReportFromMigrationSourceIsIgnored() {
+        // the VM was migrated from host 1 to host 2, host 1 still reports its domain gone
+        powerStateSync.processHostVmStateDeltaReport(1L, report(PowerState.PowerOff, "kvm1"));
+
+        verify(instanceDao, never()).updatePowerState(anyLong(), anyLong(), any(PowerState.class));
+        verifyZeroInteractions(messageBus);
+    }
+}
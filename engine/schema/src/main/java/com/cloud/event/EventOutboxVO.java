@@ -0,0 +1,124 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.apache.cloudstack.api.InternalIdentity;
+
+import com.cloud.utils.db.GenericDao;
+
+/**
+ * Event bus message written by a management server before it is delivered to the event bus.
+ * Rows are removed once the bus accepted them, what is left after a restart is delivered again.
+ */
+@Entity
+@Table(name = "event_outbox")
+public class EventOutboxVO implements InternalIdentity {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    private long id;
+
+    @Column(name = "mgmt_server_id")
+    private long managementServerId;
+
+    @Column(name = "source")
+    private String source;
+
+    @Column(name = "category")
+    private String category;
+
+    @Column(name = "type")
+    private String type;
+
+    @Column(name = "resource_type")
+    private String resourceType;
+
+    @Column(name = "resource_uuid")
+    private String resourceUuid;
+
+    @Column(name = "description", length = 65535)
+    private String description;
+
+    @Column(name = GenericDao.CREATED_COLUMN)
+    @Temporal(value = TemporalType.TIMESTAMP)
+    private Date created;
+
+    public EventOutboxVO() {
+    }
+
+    public EventOutboxVO(long managementServerId, String source, String category, String type, String resourceType, String resourceUuid, String description) {
+        this.managementServerId = managementServerId;
+        this.source = source;
+        this.category = category;
+        this.type = type;
+        this.resourceType = resourceType;
+        this.resourceUuid = resourceUuid;
+        this.description = description;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    public long getManagementServerId() {
+        return managementServerId;
+    }
+
+    public void setManagementServerId(long managementServerId) {
+        this.managementServerId = managementServerId;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public String getResourceUuid() {
+        return resourceUuid;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+}
@@ -0,0 +1,73 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event.dao;
+
+import java.util.List;
+
+import org.springframework.stereotype.Component;
+
+import com.cloud.event.EventOutboxVO;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.SearchCriteria.Op;
+
+@Component
+public class EventOutboxDaoImpl extends GenericDaoBase<EventOutboxVO, Long> implements EventOutboxDao {
+    protected final SearchBuilder<EventOutboxVO> PendingSearch;
+    protected final SearchBuilder<EventOutboxVO> IdSearch;
+
+    public EventOutboxDaoImpl() {
+        PendingSearch = createSearchBuilder();
+        PendingSearch.and("msid", PendingSearch.entity().getManagementServerId(), Op.EQ);
+        PendingSearch.done();
+
+        IdSearch = createSearchBuilder();
+        IdSearch.and("ids", IdSearch.entity().getId(), Op.IN);
+        IdSearch.done();
+    }
+
+    @Override
+    public List<EventOutboxVO> listPending(long managementServerId, int limit) {
+        SearchCriteria<EventOutboxVO> sc = PendingSearch.create();
+        sc.setParameters("msid", managementServerId);
+        Filter filter = new Filter(EventOutboxVO.class, "id", true, 0L, (long)limit);
+        return listBy(sc, filter);
+    }
+
+    @Override
+    public int expunge(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        SearchCriteria<EventOutboxVO> sc = IdSearch.create();
+        sc.setParameters("ids", ids.toArray());
+        return expunge(sc);
+    }
+
+    @Override
+    public int transfer(long fromManagementServerId, long toManagementServerId) {
+        SearchCriteria<EventOutboxVO> sc = PendingSearch.create();
+        sc.setParameters("msid", fromManagementServerId);
+
+        EventOutboxVO vo = createForUpdate();
+        vo.setManagementServerId(toManagementServerId);
+
+        return update(vo, sc);
+    }
+}
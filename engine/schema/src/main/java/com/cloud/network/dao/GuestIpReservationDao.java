@@ -0,0 +1,44 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.dao;
+
+import java.util.Date;
+
+import com.cloud.utils.db.GenericDao;
+
+public interface GuestIpReservationDao extends GenericDao<GuestIpReservationVO, Long> {
+
+    /**
+     * Reserves the address in the network, in the current transaction
+     *
+     * @return false if the address is already reserved
+     */
+    boolean reserve(long networkId, String ip4Address);
+
+    /**
+     * Replaces a reservation the caller found to be left over, its address has no nic anymore, with a
+     * reservation in the current transaction
+     *
+     * @return false if another allocation took the reservation over first
+     */
+    boolean takeOver(long networkId, String ip4Address);
+
+    /**
+     * Removes the reservations of the network made before the given time
+     */
+    int expire(long networkId, Date before);
+}
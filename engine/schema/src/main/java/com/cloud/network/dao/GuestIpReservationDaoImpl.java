@@ -0,0 +1,83 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Date;
+
+import org.springframework.stereotype.Component;
+
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.SearchCriteria.Op;
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+@Component
+public class GuestIpReservationDaoImpl extends GenericDaoBase<GuestIpReservationVO, Long> implements GuestIpReservationDao {
+    private static final String RESERVE = "INSERT IGNORE INTO op_guest_ip_reservation (network_id, ip4_address, created) VALUES (?, ?, UTC_TIMESTAMP())";
+
+    protected final SearchBuilder<GuestIpReservationVO> AddressSearch;
+    protected final SearchBuilder<GuestIpReservationVO> ExpiredSearch;
+
+    public GuestIpReservationDaoImpl() {
+        AddressSearch = createSearchBuilder();
+        AddressSearch.and("network", AddressSearch.entity().getNetworkId(), Op.EQ);
+        AddressSearch.and("address", AddressSearch.entity().getIp4Address(), Op.EQ);
+        AddressSearch.done();
+
+        ExpiredSearch = createSearchBuilder();
+        ExpiredSearch.and("network", ExpiredSearch.entity().getNetworkId(), Op.EQ);
+        ExpiredSearch.and("created", ExpiredSearch.entity().getCreated(), Op.LT);
+        ExpiredSearch.done();
+    }
+
+    @Override
+    public boolean reserve(long networkId, String ip4Address) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try (PreparedStatement pstmt = txn.prepareAutoCloseStatement(RESERVE);) {
+            pstmt.setLong(1, networkId);
+            pstmt.setString(2, ip4Address);
+            return pstmt.executeUpdate() == 1;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to reserve ip address " + ip4Address + " in network " + networkId, e);
+        }
+    }
+
+    @Override
+    public boolean takeOver(long networkId, String ip4Address) {
+        SearchCriteria<GuestIpReservationVO> sc = AddressSearch.create();
+        sc.setParameters("network", networkId);
+        sc.setParameters("address", ip4Address);
+        GuestIpReservationVO reservation = findOneBy(sc);
+        // removing by id only succeeds for one of the management servers taking over the same reservation
+        if (reservation != null && !expunge(reservation.getId())) {
+            return false;
+        }
+        return reserve(networkId, ip4Address);
+    }
+
+    @Override
+    public int expire(long networkId, Date before) {
+        SearchCriteria<GuestIpReservationVO> sc = ExpiredSearch.create();
+        sc.setParameters("network", networkId);
+        sc.setParameters("created", before);
+        return expunge(sc);
+    }
+}
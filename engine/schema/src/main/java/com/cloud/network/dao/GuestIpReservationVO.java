@@ -0,0 +1,80 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.dao;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.apache.cloudstack.api.InternalIdentity;
+
+import com.cloud.utils.db.GenericDao;
+
+/**
+ * Guest address handed out by a management server whose nic may not be committed yet. The unique key
+ * on network and address keeps two management servers from handing out the same address.
+ */
+@Entity
+@Table(name = "op_guest_ip_reservation")
+public class GuestIpReservationVO implements InternalIdentity {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    private long id;
+
+    @Column(name = "network_id")
+    private long networkId;
+
+    @Column(name = "ip4_address")
+    private String ip4Address;
+
+    @Column(name = GenericDao.CREATED_COLUMN)
+    @Temporal(value = TemporalType.TIMESTAMP)
+    private Date created;
+
+    protected GuestIpReservationVO() {
+    }
+
+    public GuestIpReservationVO(long networkId, String ip4Address) {
+        this.networkId = networkId;
+        this.ip4Address = ip4Address;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    public long getNetworkId() {
+        return networkId;
+    }
+
+    public String getIp4Address() {
+        return ip4Address;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+}
@@ -89,4 +89,27 @@ public interface IPAddressDao extends GenericDao<IPAddressVO, Long> {
     List<IPAddressVO> listByAssociatedVmId(long vmId);
 
     IPAddressVO findByVmIdAndNetworkId(long networkId, long vmId);
+
+    /**
+     * Leases up to count free addresses of the given vlans to a management server with a single update,
+     * addresses already leased to any management server are skipped.
+     *
+     * @return the number of addresses leased
+     */
+    int leaseFreeIps(long managementServerId, long dcId, List<Long> vlanDbIds, boolean forSystemVms, int count);
+
+    /**
+     * Lists the free addresses of the zone leased to the management server
+     */
+    List<IPAddressVO> listLeasedFreeIps(long managementServerId, long dcId, boolean forSystemVms);
+
+    /**
+     * Gives back all addresses leased to the management server
+     */
+    int releaseLeases(long managementServerId);
+
+    /**
+     * Gives back the given addresses if they are leased to the management server
+     */
+    int releaseLeases(long managementServerId, List<Long> ipAddressIds);
 }
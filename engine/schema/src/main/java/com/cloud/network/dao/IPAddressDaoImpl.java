@@ -18,6 +18,7 @@ package com.cloud.network.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
 
@@ -25,6 +26,7 @@ import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 
 import org.apache.cloudstack.resourcedetail.dao.UserIpAddressDetailsDao;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -43,6 +45,7 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Func;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.Ip;
 
 @Component
@@ -50,6 +53,10 @@ import com.cloud.utils.net.Ip;
 public class IPAddressDaoImpl extends GenericDaoBase<IPAddressVO, Long> implements IPAddressDao {
     private static final Logger s_logger = Logger.getLogger(IPAddressDaoImpl.class);
 
+    private static final String LEASE_FREE_IPS = "UPDATE user_ip_address SET lease_mgmt_server_id = ? WHERE data_center_id = ? AND forsystemvms = ? "
+            + "AND state = 'Free' AND allocated IS NULL AND removed IS NULL AND lease_mgmt_server_id IS NULL AND vlan_db_id IN (%s) ORDER BY vlan_db_id, id LIMIT ?";
+    private static final String RELEASE_LEASES = "UPDATE user_ip_address SET lease_mgmt_server_id = NULL WHERE lease_mgmt_server_id = ?";
+
     protected SearchBuilder<IPAddressVO> AllFieldsSearch;
     protected SearchBuilder<IPAddressVO> VlanDbIdSearchUnallocated;
     protected GenericSearchBuilder<IPAddressVO, Integer> AllIpCount;
@@ -58,6 +65,7 @@ public class IPAddressDaoImpl extends GenericDaoBase<IPAddressVO, Long> implemen
     protected GenericSearchBuilder<IPAddressVO, Integer> AllocatedIpCountForDc;
     protected GenericSearchBuilder<IPAddressVO, Integer> AllIpCountForDashboard;
     protected SearchBuilder<IPAddressVO> DeleteAllExceptGivenIp;
+    protected SearchBuilder<IPAddressVO> LeasedFreeSearch;
     protected GenericSearchBuilder<IPAddressVO, Long> AllocatedIpCountForAccount;
     @Inject
     protected VlanDao _vlanDao;
@@ -151,6 +159,14 @@ public class IPAddressDaoImpl extends GenericDaoBase<IPAddressVO, Long> implemen
         DeleteAllExceptGivenIp = createSearchBuilder();
         DeleteAllExceptGivenIp.and("vlanDbId", DeleteAllExceptGivenIp.entity().getVlanId(), Op.EQ);
         DeleteAllExceptGivenIp.and("ip", DeleteAllExceptGivenIp.entity().getAddress(), Op.NEQ);
+
+        LeasedFreeSearch = createSearchBuilder();
+        LeasedFreeSearch.and("lease", LeasedFreeSearch.entity().getLeaseManagementServerId(), Op.EQ);
+        LeasedFreeSearch.and("dataCenterId", LeasedFreeSearch.entity().getDataCenterId(), Op.EQ);
+        LeasedFreeSearch.and("forSystemVms", LeasedFreeSearch.entity().isForSystemVms(), Op.EQ);
+        LeasedFreeSearch.and("state", LeasedFreeSearch.entity().getState(), Op.EQ);
+        LeasedFreeSearch.and("allocated", LeasedFreeSearch.entity().getAllocatedTime(), Op.NULL);
+        LeasedFreeSearch.done();
     }
 
     @Override
@@ -471,4 +487,66 @@ public class IPAddressDaoImpl extends GenericDaoBase<IPAddressVO, Long> implemen
         sc.setParameters("vlan", vlandbId);
         lockRows(sc, null, true);
     }
+
+    @Override
+    public int leaseFreeIps(long managementServerId, long dcId, List<Long> vlanDbIds, boolean forSystemVms, int count) {
+        if (vlanDbIds.isEmpty() || count <= 0) {
+            return 0;
+        }
+        String sql = String.format(LEASE_FREE_IPS, StringUtils.repeat("?", ", ", vlanDbIds.size()));
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try (PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);) {
+            int i = 1;
+            pstmt.setLong(i++, managementServerId);
+            pstmt.setLong(i++, dcId);
+            pstmt.setBoolean(i++, forSystemVms);
+            for (Long vlanDbId : vlanDbIds) {
+                pstmt.setLong(i++, vlanDbId);
+            }
+            pstmt.setInt(i, count);
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to lease public ip addresses in zone " + dcId + " to management server " + managementServerId, e);
+        }
+    }
+
+    @Override
+    public List<IPAddressVO> listLeasedFreeIps(long managementServerId, long dcId, boolean forSystemVms) {
+        SearchCriteria<IPAddressVO> sc = LeasedFreeSearch.create();
+        sc.setParameters("lease", managementServerId);
+        sc.setParameters("dataCenterId", dcId);
+        sc.setParameters("forSystemVms", forSystemVms);
+        sc.setParameters("state", State.Free);
+        return listBy(sc);
+    }
+
+    @Override
+    public int releaseLeases(long managementServerId) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try (PreparedStatement pstmt = txn.prepareAutoCloseStatement(RELEASE_LEASES);) {
+            pstmt.setLong(1, managementServerId);
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to release the public ip addresses leased to management server " + managementServerId, e);
+        }
+    }
+
+    @Override
+    public int releaseLeases(long managementServerId, List<Long> ipAddressIds) {
+        if (ipAddressIds.isEmpty()) {
+            return 0;
+        }
+        String sql = RELEASE_LEASES + " AND id IN (" + StringUtils.repeat("?", ", ", ipAddressIds.size()) + ")";
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try (PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);) {
+            int i = 1;
+            pstmt.setLong(i++, managementServerId);
+            for (Long id : ipAddressIds) {
+                pstmt.setLong(i++, id);
+            }
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to release the public ip addresses leased to management server " + managementServerId, e);
+        }
+    }
 }
@@ -125,6 +125,9 @@ public class IPAddressVO implements IpAddress {
     @Column(name = "forsystemvms")
     private boolean forSystemVms = false;
 
+    @Column(name = "lease_mgmt_server_id")
+    private Long leaseManagementServerId;
+
     @Column(name= GenericDao.REMOVED_COLUMN)
     private Date removed;
 
@@ -389,4 +392,12 @@ public class IPAddressVO implements IpAddress {
     public boolean isForSystemVms() {
         return forSystemVms;
     }
+
+    public Long getLeaseManagementServerId() {
+        return leaseManagementServerId;
+    }
+
+    public void setLeaseManagementServerId(Long leaseManagementServerId) {
+        this.leaseManagementServerId = leaseManagementServerId;
+    }
 }
@@ -119,4 +119,10 @@ public interface VolumeDao extends GenericDao<VolumeVO, Long>, StateDao<Volume.S
      *  Updates the disk offering for the given volume.
      */
     void updateDiskOffering(long volumeId, long diskOfferingId);
+
+    /**
+     * Lists the templates root volumes were created from in the zone since the given time, with the time
+     * of the last one, the most deployed templates first.
+     */
+    List<Pair<Long, Date>> listRecentlyDeployedTemplates(long dcId, Date since);
 }
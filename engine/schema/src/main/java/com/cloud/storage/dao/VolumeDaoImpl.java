@@ -22,6 +22,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 
 import javax.inject.Inject;
 
@@ -39,6 +40,7 @@ import com.cloud.storage.Volume.State;
 import com.cloud.storage.Volume.Type;
 import com.cloud.storage.VolumeVO;
 import com.cloud.tags.dao.ResourceTagDao;
+import com.cloud.utils.DateUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDaoBase;
@@ -80,6 +82,8 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
             + " AND pool.pod_id = ? AND pool.cluster_id = ? " + " GROUP BY pool.id ORDER BY 2 ASC ";
     private static final String ORDER_ZONE_WIDE_POOLS_NUMBER_OF_VOLUMES_FOR_ACCOUNT = "SELECT pool.id, SUM(IF(vol.state='Ready' AND vol.account_id = ?, 1, 0)) FROM `cloud`.`storage_pool` pool LEFT JOIN `cloud`.`volumes` vol ON pool.id = vol.pool_id WHERE pool.data_center_id = ? "
             + " AND pool.scope = 'ZONE' AND pool.status='Up' " + " GROUP BY pool.id ORDER BY 2 ASC ";
+    private static final String RECENTLY_DEPLOYED_TEMPLATES = "SELECT template_id, MAX(created) FROM `cloud`.`volumes` WHERE data_center_id = ? AND volume_type = 'ROOT' "
+            + "AND template_id IS NOT NULL AND created >= ? GROUP BY template_id ORDER BY COUNT(*) DESC";
 
     @Override
     public List<VolumeVO> findDetachedByAccount(long accountId) {
@@ -571,6 +575,25 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
         }
     }
 
+    @Override
+    public List<Pair<Long, Date>> listRecentlyDeployedTemplates(long dcId, Date since) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        List<Pair<Long, Date>> result = new ArrayList<Pair<Long, Date>>();
+        try (PreparedStatement pstmt = txn.prepareAutoCloseStatement(RECENTLY_DEPLOYED_TEMPLATES);) {
+            pstmt.setLong(1, dcId);
+            pstmt.setString(2, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), since));
+
+            try (ResultSet rs = pstmt.executeQuery();) {
+                while (rs.next()) {
+                    result.add(new Pair<Long, Date>(rs.getLong(1), DateUtil.parseDateString(TimeZone.getTimeZone("GMT"), rs.getString(2))));
+                }
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + RECENTLY_DEPLOYED_TEMPLATES, e);
+        }
+    }
+
     @Override
     @DB()
     public Pair<Long, Long> getNonDestroyedCountAndTotalByPool(long poolId) {
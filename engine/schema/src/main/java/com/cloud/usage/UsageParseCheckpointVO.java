@@ -0,0 +1,110 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.apache.cloudstack.api.InternalIdentity;
+
+/**
+ * Records an account partition whose usage records have been committed by a usage job
+ * that has not completed yet.
+ */
+@Entity
+@Table(name = "usage_parse_checkpoint")
+public class UsageParseCheckpointVO implements InternalIdentity {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    private Long id;
+
+    @Column(name = "range_start_millis")
+    private long rangeStartMillis;
+
+    @Column(name = "start_millis")
+    private long startMillis;
+
+    @Column(name = "end_millis")
+    private long endMillis;
+
+    @Column(name = "partition_id")
+    private int partitionId;
+
+    @Column(name = "partitions")
+    private int partitions;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "created")
+    private Date created;
+
+    public UsageParseCheckpointVO() {
+    }
+
+    public UsageParseCheckpointVO(long rangeStartMillis, long startMillis, long endMillis, int partitionId, int partitions) {
+        this.rangeStartMillis = rangeStartMillis;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.partitionId = partitionId;
+        this.partitions = partitions;
+        this.created = new Date();
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return start of the range the job was asked to parse, one millisecond after the last successful job.
+     */
+    public long getRangeStartMillis() {
+        return rangeStartMillis;
+    }
+
+    /**
+     * @return start of the first aggregation window actually parsed.
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    public int getPartitionId() {
+        return partitionId;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+}
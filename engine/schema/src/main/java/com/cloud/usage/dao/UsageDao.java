@@ -59,4 +59,8 @@ public interface UsageDao extends GenericDao<UsageVO, Long> {
     UsageVO persistUsage(final UsageVO usage);
 
     Pair<List<? extends UsageVO>, Integer> getUsageRecordsPendingQuotaAggregation(long accountId, long domainId);
+
+    List<Long> listAccountsPendingQuotaAggregation();
+
+    void markQuotaCalculated(List<Long> usageIds);
 }
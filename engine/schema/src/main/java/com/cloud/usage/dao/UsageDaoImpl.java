@@ -28,6 +28,7 @@ import com.cloud.utils.db.QueryBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
+import com.cloud.utils.db.TransactionCallbackNoReturn;
 import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -67,9 +68,11 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
             + " VALUES (?,?,?,?,?,?,?,?,?,?, ?, ?, ?, ?,?, ?, ?)";
     private static final String UPDATE_VM_DISK_STATS = "UPDATE cloud_usage.vm_disk_statistics SET net_io_read=?, net_io_write=?, current_io_read=?, current_io_write=?, agg_io_read=?, agg_io_write=?, "
             + "net_bytes_read=?, net_bytes_write=?, current_bytes_read=?, current_bytes_write=?, agg_bytes_read=?, agg_bytes_write=?  WHERE id=?";
+    private static final String LIST_ACCOUNTS_PENDING_QUOTA = "SELECT DISTINCT account_id FROM cloud_usage.cloud_usage WHERE quota_calculated <> 1 AND raw_usage > 0";
+    private static final String UPDATE_QUOTA_CALCULATED = "UPDATE cloud_usage.cloud_usage SET quota_calculated = 1 WHERE id = ?";
     private static final String INSERT_USAGE_RECORDS = "INSERT INTO cloud_usage.cloud_usage (zone_id, account_id, domain_id, description, usage_display, "
             + "usage_type, raw_usage, vm_instance_id, vm_name, offering_id, template_id, "
-            + "usage_id, type, size, network_id, start_date, end_date, virtual_size) VALUES (?,?,?,?,?,?,?,?,?, ?, ?, ?,?,?,?,?,?,?)";
+            + "usage_id, type, size, network_id, start_date, end_date, virtual_size, cpu_cores, cpu_speed, memory) VALUES (?,?,?,?,?,?,?,?,?, ?, ?, ?,?,?,?,?,?,?,?,?,?)";
 
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
@@ -447,6 +450,21 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
                 } else {
                     pstmt.setNull(18, Types.BIGINT);
                 }
+                if (usageRecord.getCpuCores() != null) {
+                    pstmt.setLong(19, usageRecord.getCpuCores());
+                } else {
+                    pstmt.setNull(19, Types.BIGINT);
+                }
+                if (usageRecord.getCpuSpeed() != null) {
+                    pstmt.setLong(20, usageRecord.getCpuSpeed());
+                } else {
+                    pstmt.setNull(20, Types.BIGINT);
+                }
+                if (usageRecord.getMemory() != null) {
+                    pstmt.setLong(21, usageRecord.getMemory());
+                } else {
+                    pstmt.setNull(21, Types.BIGINT);
+                }
                 pstmt.addBatch();
             }
             pstmt.executeBatch();
@@ -512,4 +530,57 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
             }
         });
     }
+
+    @Override
+    public List<Long> listAccountsPendingQuotaAggregation() {
+        return Transaction.execute(TransactionLegacy.USAGE_DB, new TransactionCallback<List<Long>>() {
+            @Override
+            public List<Long> doInTransaction(final TransactionStatus status) {
+                List<Long> accountIds = new ArrayList<Long>();
+                TransactionLegacy txn = TransactionLegacy.currentTxn();
+                try {
+                    PreparedStatement pstmt = txn.prepareAutoCloseStatement(LIST_ACCOUNTS_PENDING_QUOTA);
+                    ResultSet rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        accountIds.add(rs.getLong(1));
+                    }
+                } catch (Exception ex) {
+                    s_logger.error("error listing accounts with usage records pending quota aggregation", ex);
+                    throw new CloudRuntimeException(ex.getMessage());
+                }
+                return accountIds;
+            }
+        });
+    }
+
+    @Override
+    public void markQuotaCalculated(final List<Long> usageIds) {
+        if (usageIds == null || usageIds.isEmpty()) {
+            return;
+        }
+        Transaction.execute(TransactionLegacy.USAGE_DB, new TransactionCallbackNoReturn() {
+            @Override
+            public void doInTransactionWithoutResult(final TransactionStatus status) {
+                TransactionLegacy txn = TransactionLegacy.currentTxn();
+                try {
+                    PreparedStatement pstmt = txn.prepareAutoCloseStatement(UPDATE_QUOTA_CALCULATED);
+                    int pending = 0;
+                    for (Long usageId : usageIds) {
+                        pstmt.setLong(1, usageId);
+                        pstmt.addBatch();
+                        if (++pending == 1000) {
+                            pstmt.executeBatch();
+                            pending = 0;
+                        }
+                    }
+                    if (pending > 0) {
+                        pstmt.executeBatch();
+                    }
+                } catch (Exception ex) {
+                    s_logger.error("error marking usage records as quota calculated", ex);
+                    throw new CloudRuntimeException(ex.getMessage());
+                }
+            }
+        });
+    }
 }
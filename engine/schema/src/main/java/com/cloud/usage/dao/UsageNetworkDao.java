@@ -28,4 +28,10 @@ public interface UsageNetworkDao extends GenericDao<UsageNetworkVO, Long> {
     void deleteOldStats(long maxEventTime);
 
     void saveUsageNetworks(List<UsageNetworkVO> usageNetworks);
+
+    /**
+     * Lists the stats of the given accounts taken between the given times, ordered by account. Database errors are
+     * thrown so the caller does not take a failed read for an account without usage.
+     */
+    List<UsageNetworkVO> getUsageRecords(List<Long> accountIds, long startTimeMillis, long endTimeMillis);
 }
@@ -18,11 +18,14 @@ package com.cloud.usage.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -44,6 +47,10 @@ public class UsageNetworkDaoImpl extends GenericDaoBase<UsageNetworkVO, Long> im
     private static final String INSERT_USAGE_NETWORK =
         "INSERT INTO cloud_usage.usage_network (account_id, zone_id, host_id, host_type, network_id, bytes_sent, bytes_received, agg_bytes_received, agg_bytes_sent, event_time_millis) VALUES (?,?,?,?,?,?,?,?,?,?)";
 
+    private static final String SELECT_STATS_BY_ACCOUNTS =
+        "SELECT account_id, zone_id, host_id, host_type, network_id, bytes_sent, bytes_received, agg_bytes_received, agg_bytes_sent, event_time_millis "
+            + "FROM cloud_usage.usage_network WHERE account_id IN (%s) AND event_time_millis BETWEEN ? AND ? ORDER BY account_id, event_time_millis";
+
     public UsageNetworkDaoImpl() {
     }
 
@@ -130,4 +137,37 @@ public class UsageNetworkDaoImpl extends GenericDaoBase<UsageNetworkVO, Long> im
             throw new CloudRuntimeException(ex.getMessage());
         }
     }
+
+    @Override
+    public List<UsageNetworkVO> getUsageRecords(List<Long> accountIds, long startTimeMillis, long endTimeMillis) {
+        List<UsageNetworkVO> usageNetworks = new ArrayList<UsageNetworkVO>();
+        if (accountIds.isEmpty()) {
+            return usageNetworks;
+        }
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(String.format(SELECT_STATS_BY_ACCOUNTS, StringUtils.repeat("?", ", ", accountIds.size())));
+            int i = 1;
+            for (Long accountId : accountIds) {
+                pstmt.setLong(i++, accountId);
+            }
+            pstmt.setLong(i++, startTimeMillis);
+            pstmt.setLong(i++, endTimeMillis);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                Long networkId = rs.getLong(5);
+                if (rs.wasNull()) {
+                    networkId = null;
+                }
+                usageNetworks.add(new UsageNetworkVO(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getString(4), networkId, rs.getLong(6), rs.getLong(7), rs.getLong(8),
+                    rs.getLong(9), rs.getLong(10)));
+            }
+        } catch (SQLException ex) {
+            throw new CloudRuntimeException("error getting usage network stats of " + accountIds.size() + " accounts", ex);
+        } finally {
+            txn.close();
+        }
+        return usageNetworks;
+    }
 }
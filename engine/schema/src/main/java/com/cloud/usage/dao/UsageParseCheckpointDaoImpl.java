@@ -0,0 +1,42 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.dao;
+
+import java.util.List;
+
+import org.springframework.stereotype.Component;
+
+import com.cloud.usage.UsageParseCheckpointVO;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.SearchCriteria;
+
+@Component
+public class UsageParseCheckpointDaoImpl extends GenericDaoBase<UsageParseCheckpointVO, Long> implements UsageParseCheckpointDao {
+
+    @Override
+    public List<UsageParseCheckpointVO> listCheckpoints() {
+        Filter filter = new Filter(UsageParseCheckpointVO.class, "id", true, null, null);
+        return listAll(filter);
+    }
+
+    @Override
+    public void removeCheckpoints() {
+        SearchCriteria<UsageParseCheckpointVO> sc = createSearchCriteria();
+        expunge(sc);
+    }
+}
@@ -28,4 +28,10 @@ public interface UsageVMInstanceDao extends GenericDao<UsageVMInstanceVO, Long>
     public void delete(UsageVMInstanceVO instance);
 
     public List<UsageVMInstanceVO> getUsageRecords(long userId, Date startDate, Date endDate);
+
+    /**
+     * Lists the records of the given accounts, ordered by account. Database errors are thrown so the caller does
+     * not take a failed read for an account without usage.
+     */
+    public List<UsageVMInstanceVO> getUsageRecords(List<Long> accountIds, Date startDate, Date endDate);
 }
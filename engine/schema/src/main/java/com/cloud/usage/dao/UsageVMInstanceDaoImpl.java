@@ -18,12 +18,14 @@ package com.cloud.usage.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
 
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -31,6 +33,7 @@ import com.cloud.usage.UsageVMInstanceVO;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 public class UsageVMInstanceDaoImpl extends GenericDaoBase<UsageVMInstanceVO, Long> implements UsageVMInstanceDao {
@@ -43,6 +46,10 @@ public class UsageVMInstanceDaoImpl extends GenericDaoBase<UsageVMInstanceVO, Lo
         "SELECT usage_type, zone_id, account_id, vm_instance_id, vm_name, cpu_speed, cpu_cores, memory, service_offering_id, template_id, hypervisor_type, start_date, end_date "
             + "FROM usage_vm_instance WHERE account_id = ? AND ((end_date IS NULL) OR (start_date BETWEEN ? AND ?) OR "
             + "      (end_date BETWEEN ? AND ?) OR ((start_date <= ?) AND (end_date >= ?)))";
+    protected static final String GET_USAGE_RECORDS_BY_ACCOUNTS =
+        "SELECT usage_type, zone_id, account_id, vm_instance_id, vm_name, cpu_speed, cpu_cores, memory, service_offering_id, template_id, hypervisor_type, start_date, end_date "
+            + "FROM usage_vm_instance WHERE ((end_date IS NULL) OR (start_date BETWEEN ? AND ?) OR "
+            + "      (end_date BETWEEN ? AND ?) OR ((start_date <= ?) AND (end_date >= ?))) AND account_id IN (%s) ORDER BY account_id";
 
     public UsageVMInstanceDaoImpl() {
     }
@@ -104,42 +111,7 @@ public class UsageVMInstanceDaoImpl extends GenericDaoBase<UsageVMInstanceVO, Lo
             pstmt.setString(5, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
             pstmt.setString(6, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
             pstmt.setString(7, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                int r_usageType = rs.getInt(1);
-                long r_zoneId = rs.getLong(2);
-                long r_accountId = rs.getLong(3);
-                long r_vmId = rs.getLong(4);
-                String r_vmName = rs.getString(5);
-                Long r_cpuSpeed = rs.getLong(6);
-                if (rs.wasNull()) {
-                    r_cpuSpeed = null;
-                }
-                Long r_cpuCores = rs.getLong(7);
-                if (rs.wasNull()) {
-                    r_cpuCores = null;
-                }
-                Long r_memory = rs.getLong(8);
-                if (rs.wasNull()) {
-                    r_memory = null;
-                }
-                long r_soId = rs.getLong(9);
-                long r_tId = rs.getLong(10);
-                String hypervisorType = rs.getString(11);
-                String r_startDate = rs.getString(12);
-                String r_endDate = rs.getString(13);
-                Date instanceStartDate = null;
-                Date instanceEndDate = null;
-                if (r_startDate != null) {
-                    instanceStartDate = DateUtil.parseDateString(s_gmtTimeZone, r_startDate);
-                }
-                if (r_endDate != null) {
-                    instanceEndDate = DateUtil.parseDateString(s_gmtTimeZone, r_endDate);
-                }
-                UsageVMInstanceVO usageInstance =
-                    new UsageVMInstanceVO(r_usageType, r_zoneId, r_accountId, r_vmId, r_vmName, r_soId, r_tId, r_cpuSpeed, r_cpuCores, r_memory, hypervisorType, instanceStartDate, instanceEndDate);
-                usageInstances.add(usageInstance);
-            }
+            usageInstances = toUsageInstances(pstmt.executeQuery());
         } catch (Exception ex) {
             s_logger.error("error retrieving usage vm instances for account id: " + accountId, ex);
         } finally {
@@ -147,4 +119,71 @@ public class UsageVMInstanceDaoImpl extends GenericDaoBase<UsageVMInstanceVO, Lo
         }
         return usageInstances;
     }
+
+    @Override
+    public List<UsageVMInstanceVO> getUsageRecords(List<Long> accountIds, Date startDate, Date endDate) {
+        if (accountIds.isEmpty()) {
+            return new ArrayList<UsageVMInstanceVO>();
+        }
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(String.format(GET_USAGE_RECORDS_BY_ACCOUNTS, StringUtils.repeat("?", ", ", accountIds.size())));
+            int i = 1;
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, endDate));
+            for (Long accountId : accountIds) {
+                pstmt.setLong(i++, accountId);
+            }
+            return toUsageInstances(pstmt.executeQuery());
+        } catch (SQLException ex) {
+            throw new CloudRuntimeException("error retrieving usage vm instances of " + accountIds.size() + " accounts", ex);
+        } finally {
+            txn.close();
+        }
+    }
+
+    private List<UsageVMInstanceVO> toUsageInstances(ResultSet rs) throws SQLException {
+        List<UsageVMInstanceVO> usageInstances = new ArrayList<UsageVMInstanceVO>();
+        while (rs.next()) {
+            int r_usageType = rs.getInt(1);
+            long r_zoneId = rs.getLong(2);
+            long r_accountId = rs.getLong(3);
+            long r_vmId = rs.getLong(4);
+            String r_vmName = rs.getString(5);
+            Long r_cpuSpeed = rs.getLong(6);
+            if (rs.wasNull()) {
+                r_cpuSpeed = null;
+            }
+            Long r_cpuCores = rs.getLong(7);
+            if (rs.wasNull()) {
+                r_cpuCores = null;
+            }
+            Long r_memory = rs.getLong(8);
+            if (rs.wasNull()) {
+                r_memory = null;
+            }
+            long r_soId = rs.getLong(9);
+            long r_tId = rs.getLong(10);
+            String hypervisorType = rs.getString(11);
+            String r_startDate = rs.getString(12);
+            String r_endDate = rs.getString(13);
+            Date instanceStartDate = null;
+            Date instanceEndDate = null;
+            if (r_startDate != null) {
+                instanceStartDate = DateUtil.parseDateString(s_gmtTimeZone, r_startDate);
+            }
+            if (r_endDate != null) {
+                instanceEndDate = DateUtil.parseDateString(s_gmtTimeZone, r_endDate);
+            }
+            UsageVMInstanceVO usageInstance =
+                new UsageVMInstanceVO(r_usageType, r_zoneId, r_accountId, r_vmId, r_vmName, r_soId, r_tId, r_cpuSpeed, r_cpuCores, r_memory, hypervisorType, instanceStartDate, instanceEndDate);
+            usageInstances.add(usageInstance);
+        }
+        return usageInstances;
+    }
 }
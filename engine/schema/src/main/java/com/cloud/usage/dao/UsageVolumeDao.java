@@ -28,4 +28,10 @@ public interface UsageVolumeDao extends GenericDao<UsageVolumeVO, Long> {
     public void update(UsageVolumeVO usage);
 
     public List<UsageVolumeVO> getUsageRecords(Long accountId, Long domainId, Date startDate, Date endDate, boolean limit, int page);
+
+    /**
+     * Lists the records of the given accounts, ordered by account. Database errors are thrown so the caller does
+     * not take a failed read for an account without usage.
+     */
+    public List<UsageVolumeVO> getUsageRecords(List<Long> accountIds, Date startDate, Date endDate);
 }
@@ -26,6 +26,7 @@ import java.util.TimeZone;
 
 
 import com.cloud.exception.CloudException;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -33,6 +34,7 @@ import com.cloud.usage.UsageVolumeVO;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 public class UsageVolumeDaoImpl extends GenericDaoBase<UsageVolumeVO, Long> implements UsageVolumeDao {
@@ -48,6 +50,9 @@ public class UsageVolumeDaoImpl extends GenericDaoBase<UsageVolumeVO, Long> impl
         + "      (deleted BETWEEN ? AND ?) OR ((created <= ?) AND (deleted >= ?)))";
     protected static final String GET_ALL_USAGE_RECORDS = "SELECT id, zone_id, account_id, domain_id, disk_offering_id, template_id, size, created, deleted "
         + "FROM usage_volume " + "WHERE (deleted IS NULL) OR (created BETWEEN ? AND ?) OR " + "      (deleted BETWEEN ? AND ?) OR ((created <= ?) AND (deleted >= ?))";
+    protected static final String GET_USAGE_RECORDS_BY_ACCOUNTS = "SELECT id, zone_id, account_id, domain_id, disk_offering_id, template_id, size, created, deleted "
+        + "FROM usage_volume " + "WHERE ((deleted IS NULL) OR (created BETWEEN ? AND ?) OR "
+        + "      (deleted BETWEEN ? AND ?) OR ((created <= ?) AND (deleted >= ?))) AND account_id IN (%s) ORDER BY account_id";
 
     public UsageVolumeDaoImpl() {
     }
@@ -137,36 +142,7 @@ public class UsageVolumeDaoImpl extends GenericDaoBase<UsageVolumeVO, Long> impl
             pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
             pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
 
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                //id, zoneId, account_id, domain_id, disk_offering_id, template_id created, deleted
-                Long vId = Long.valueOf(rs.getLong(1));
-                Long zoneId = Long.valueOf(rs.getLong(2));
-                Long acctId = Long.valueOf(rs.getLong(3));
-                Long dId = Long.valueOf(rs.getLong(4));
-                Long doId = Long.valueOf(rs.getLong(5));
-                if (doId == 0) {
-                    doId = null;
-                }
-                Long tId = Long.valueOf(rs.getLong(6));
-                if (tId == 0) {
-                    tId = null;
-                }
-                long size = Long.valueOf(rs.getLong(7));
-                Date createdDate = null;
-                Date deletedDate = null;
-                String createdTS = rs.getString(8);
-                String deletedTS = rs.getString(9);
-
-                if (createdTS != null) {
-                    createdDate = DateUtil.parseDateString(s_gmtTimeZone, createdTS);
-                }
-                if (deletedTS != null) {
-                    deletedDate = DateUtil.parseDateString(s_gmtTimeZone, deletedTS);
-                }
-
-                usageRecords.add(new UsageVolumeVO(vId, zoneId, acctId, dId, doId, tId, size, createdDate, deletedDate));
-            }
+            usageRecords = toUsageVolumes(pstmt.executeQuery());
         } catch (Exception e) {
             txn.rollback();
             s_logger.warn("Error getting usage records", e);
@@ -176,4 +152,66 @@ public class UsageVolumeDaoImpl extends GenericDaoBase<UsageVolumeVO, Long> impl
 
         return usageRecords;
     }
+
+    @Override
+    public List<UsageVolumeVO> getUsageRecords(List<Long> accountIds, Date startDate, Date endDate) {
+        if (accountIds.isEmpty()) {
+            return new ArrayList<UsageVolumeVO>();
+        }
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+        PreparedStatement pstmt = null;
+
+        try {
+            pstmt = txn.prepareAutoCloseStatement(String.format(GET_USAGE_RECORDS_BY_ACCOUNTS, StringUtils.repeat("?", ", ", accountIds.size())));
+            int i = 1;
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmtTimeZone, endDate));
+            for (Long accountId : accountIds) {
+                pstmt.setLong(i++, accountId);
+            }
+            return toUsageVolumes(pstmt.executeQuery());
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Error getting usage volume records of " + accountIds.size() + " accounts", e);
+        } finally {
+            txn.close();
+        }
+    }
+
+    private List<UsageVolumeVO> toUsageVolumes(ResultSet rs) throws SQLException {
+        List<UsageVolumeVO> usageRecords = new ArrayList<UsageVolumeVO>();
+        while (rs.next()) {
+            //id, zoneId, account_id, domain_id, disk_offering_id, template_id created, deleted
+            Long vId = Long.valueOf(rs.getLong(1));
+            Long zoneId = Long.valueOf(rs.getLong(2));
+            Long acctId = Long.valueOf(rs.getLong(3));
+            Long dId = Long.valueOf(rs.getLong(4));
+            Long doId = Long.valueOf(rs.getLong(5));
+            if (doId == 0) {
+                doId = null;
+            }
+            Long tId = Long.valueOf(rs.getLong(6));
+            if (tId == 0) {
+                tId = null;
+            }
+            long size = Long.valueOf(rs.getLong(7));
+            Date createdDate = null;
+            Date deletedDate = null;
+            String createdTS = rs.getString(8);
+            String deletedTS = rs.getString(9);
+
+            if (createdTS != null) {
+                createdDate = DateUtil.parseDateString(s_gmtTimeZone, createdTS);
+            }
+            if (deletedTS != null) {
+                deletedDate = DateUtil.parseDateString(s_gmtTimeZone, deletedTS);
+            }
+
+            usageRecords.add(new UsageVolumeVO(vId, zoneId, acctId, dId, doId, tId, size, createdDate, deletedDate));
+        }
+        return usageRecords;
+    }
 }
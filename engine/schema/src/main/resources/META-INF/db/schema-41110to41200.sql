@@ -32,4 +32,53 @@ ALTER TABLE `vlan` CHANGE `description` `ip4_range` varchar(255);
 -- We are only adding the permission to the default rules. Any custom rule must be configured by the root admin.
 INSERT INTO `cloud`.`role_permissions` (`uuid`, `role_id`, `rule`, `permission`, `sort_order`) values (UUID(), 2, 'moveNetworkAclItem', 'ALLOW', 100) ON DUPLICATE KEY UPDATE rule=rule;
 INSERT INTO `cloud`.`role_permissions` (`uuid`, `role_id`, `rule`, `permission`, `sort_order`) values (UUID(), 3, 'moveNetworkAclItem', 'ALLOW', 302) ON DUPLICATE KEY UPDATE rule=rule;
-INSERT INTO `cloud`.`role_permissions` (`uuid`, `role_id`, `rule`, `permission`, `sort_order`) values (UUID(), 4, 'moveNetworkAclItem', 'ALLOW', 260) ON DUPLICATE KEY UPDATE rule=rule;
\ No newline at end of file
+INSERT INTO `cloud`.`role_permissions` (`uuid`, `role_id`, `rule`, `permission`, `sort_order`) values (UUID(), 4, 'moveNetworkAclItem', 'ALLOW', 260) ON DUPLICATE KEY UPDATE rule=rule;
+
+-- Event bus messages waiting to be delivered by the management server that produced them
+CREATE TABLE IF NOT EXISTS `cloud`.`event_outbox` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `mgmt_server_id` bigint unsigned NOT NULL COMMENT 'management server that produced the event',
+  `source` varchar(255),
+  `category` varchar(255),
+  `type` varchar(255),
+  `resource_type` varchar(255),
+  `resource_uuid` varchar(255),
+  `description` text,
+  `created` datetime NOT NULL,
+  PRIMARY KEY (`id`),
+  INDEX `i_event_outbox__mgmt_server_id`(`mgmt_server_id`, `id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- Account partitions already committed by a usage job that has not completed, used to resume the job
+CREATE TABLE IF NOT EXISTS `cloud_usage`.`usage_parse_checkpoint` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `range_start_millis` bigint unsigned NOT NULL COMMENT 'start of the range the job was asked to parse',
+  `start_millis` bigint unsigned NOT NULL COMMENT 'start of the first aggregation window parsed',
+  `end_millis` bigint unsigned NOT NULL COMMENT 'end of the range parsed',
+  `partition_id` int unsigned NOT NULL,
+  `partitions` int unsigned NOT NULL,
+  `created` datetime NOT NULL,
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- Guest addresses handed out by a management server, kept until every management server sees the nic
+CREATE TABLE IF NOT EXISTS `cloud`.`op_guest_ip_reservation` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `network_id` bigint unsigned NOT NULL,
+  `ip4_address` char(40) NOT NULL,
+  `created` datetime NOT NULL,
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `uc_op_guest_ip_reservation__network_id__ip4_address`(`network_id`, `ip4_address`),
+  CONSTRAINT `fk_op_guest_ip_reservation__network_id` FOREIGN KEY (`network_id`) REFERENCES `networks`(`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- Free public IP addresses leased to a management server for allocation
+ALTER TABLE `cloud`.`user_ip_address` ADD COLUMN `lease_mgmt_server_id` bigint unsigned DEFAULT NULL COMMENT 'management server the free address is leased to';
+ALTER TABLE `cloud`.`user_ip_address` ADD INDEX `i_user_ip_address__lease_mgmt_server_id`(`lease_mgmt_server_id`);
+
+-- Fencing tokens of the op_lock locks, a token grows with every hold it is asked for
+CREATE TABLE IF NOT EXISTS `cloud`.`op_lock_fencing_token` (
+  `key` varchar(128) NOT NULL COMMENT 'name of the lock',
+  `token` bigint unsigned NOT NULL COMMENT 'token of the last hold of the lock',
+  PRIMARY KEY (`key`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -53,6 +53,7 @@ import com.cloud.dc.dao.DataCenterVnetDaoImpl;
 import com.cloud.dc.dao.HostPodDaoImpl;
 import com.cloud.dc.dao.PodVlanDaoImpl;
 import com.cloud.domain.dao.DomainDaoImpl;
+import com.cloud.event.ActionEventPublisher;
 import com.cloud.event.ActionEventUtils;
 import com.cloud.event.dao.EventDaoImpl;
 import com.cloud.host.dao.HostDao;
@@ -109,6 +110,11 @@ import com.cloud.vm.snapshot.dao.VMSnapshotDaoImpl;
                useDefaultFilters = false)
 public class ChildTestConfiguration extends TestConfiguration {
 
+    @Bean
+    public ActionEventPublisher actionEventPublisher() {
+        return Mockito.mock(ActionEventPublisher.class);
+    }
+
     @Bean
     public HostDao hostDao() {
         return Mockito.spy(new HostDaoImpl());
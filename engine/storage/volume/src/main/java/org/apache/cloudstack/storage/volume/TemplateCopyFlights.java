@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.storage.volume;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cloudstack.framework.async.AsyncCompletionCallback;
+import org.apache.cloudstack.storage.command.CommandResult;
+import org.apache.log4j.Logger;
+
+/**
+ * Copies of templates to primary storage in progress on this management server, by template_spool_ref id.
+ *
+ * The first volume that needs a template on a pool leads the copy and takes the template_spool_ref lock,
+ * the volumes that need it while the copy is in progress wait for its result instead of each waiting on
+ * the lock. Management servers still coordinate through the lock, each with a single copy waiting on it.
+ */
+public class TemplateCopyFlights {
+    private static final Logger s_logger = Logger.getLogger(TemplateCopyFlights.class);
+
+    private final Map<Long, List<AsyncCompletionCallback<CommandResult>>> _inFlight = new HashMap<Long, List<AsyncCompletionCallback<CommandResult>>>();
+
+    /**
+     * Adds the listener to the copy in progress for the template_spool_ref, or starts a new copy.
+     *
+     * @return true if the caller leads a new copy and has to call complete once it is done
+     */
+    public synchronized boolean join(long templatePoolRefId, AsyncCompletionCallback<CommandResult> listener) {
+        List<AsyncCompletionCallback<CommandResult>> listeners = _inFlight.get(templatePoolRefId);
+        boolean lead = listeners == null;
+        if (lead) {
+            listeners = new ArrayList<AsyncCompletionCallback<CommandResult>>();
+            _inFlight.put(templatePoolRefId, listeners);
+        }
+        listeners.add(listener);
+        return lead;
+    }
+
+    /**
+     * Ends the copy and hands its result to every listener that joined it.
+     */
+    public void complete(long templatePoolRefId, CommandResult result) {
+        List<AsyncCompletionCallback<CommandResult>> listeners;
+        synchronized (this) {
+            listeners = _inFlight.remove(templatePoolRefId);
+        }
+        if (listeners == null) {
+            return;
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Copy for VMTemplateStoragePool " + templatePoolRefId + (result.isSuccess() ? " succeeded" : " failed") + ", notifying " + listeners.size() + " waiting volume(s)");
+        }
+        for (AsyncCompletionCallback<CommandResult> listener : listeners) {
+            try {
+                listener.complete(result);
+            } catch (Throwable e) {
+                s_logger.warn("Unable to notify a volume waiting for VMTemplateStoragePool " + templatePoolRefId, e);
+            }
+        }
+    }
+
+    public synchronized int getInProgressCount() {
+        return _inFlight.size();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.storage.volume;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+/**
+ * Counts the volumes created from templates: staged when the template already was on the primary storage
+ * pool, cold when it had to be copied first, and coalesced when the copy was already in progress. The cold
+ * start time is the time a volume waited for its template to be copied.
+ */
+public class TemplateDeployStats extends StandardMBean implements TemplateDeployStatsMBean {
+    private final TemplateCopyFlights _flights;
+
+    private final AtomicLong _staged = new AtomicLong();
+    private final AtomicLong _cold = new AtomicLong();
+    private final AtomicLong _coalesced = new AtomicLong();
+    private final AtomicLong _coldStarts = new AtomicLong();
+    private final AtomicLong _coldStartMillis = new AtomicLong();
+    private final AtomicLong _maxColdStartMillis = new AtomicLong();
+
+    public TemplateDeployStats(TemplateCopyFlights flights) {
+        super(TemplateDeployStatsMBean.class, false);
+        _flights = flights;
+    }
+
+    public void staged() {
+        _staged.incrementAndGet();
+    }
+
+    public void cold() {
+        _cold.incrementAndGet();
+    }
+
+    public void coalesced() {
+        _coalesced.incrementAndGet();
+    }
+
+    public void coldStart(long millis) {
+        _coldStarts.incrementAndGet();
+        _coldStartMillis.addAndGet(millis);
+        long max = _maxColdStartMillis.get();
+        while (millis > max && !_maxColdStartMillis.compareAndSet(max, millis)) {
+            max = _maxColdStartMillis.get();
+        }
+    }
+
+    @Override
+    public long getDeploys() {
+        return _staged.get() + _cold.get();
+    }
+
+    @Override
+    public long getStagedDeploys() {
+        return _staged.get();
+    }
+
+    @Override
+    public long getColdDeploys() {
+        return _cold.get();
+    }
+
+    @Override
+    public long getCoalescedCopies() {
+        return _coalesced.get();
+    }
+
+    @Override
+    public double getStagedHitRate() {
+        long deploys = getDeploys();
+        return deploys == 0 ? 0 : (double)_staged.get() / deploys;
+    }
+
+    @Override
+    public long getAverageColdStartMillis() {
+        long coldStarts = _coldStarts.get();
+        return coldStarts == 0 ? 0 : _coldStartMillis.get() / coldStarts;
+    }
+
+    @Override
+    public long getMaxColdStartMillis() {
+        return _maxColdStartMillis.get();
+    }
+
+    @Override
+    public int getTemplateCopiesInProgress() {
+        return _flights.getInProgressCount();
+    }
+
+    @Override
+    public void reset() {
+        _staged.set(0);
+        _cold.set(0);
+        _coalesced.set(0);
+        _coldStarts.set(0);
+        _coldStartMillis.set(0);
+        _maxColdStartMillis.set(0);
+    }
+}
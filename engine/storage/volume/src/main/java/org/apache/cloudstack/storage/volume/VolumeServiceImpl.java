@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 
 import org.apache.cloudstack.engine.cloud.entity.api.VolumeEntity;
@@ -46,6 +47,7 @@ import org.apache.cloudstack.engine.subsystem.api.storage.PrimaryDataStoreDriver
 import org.apache.cloudstack.engine.subsystem.api.storage.Scope;
 import org.apache.cloudstack.engine.subsystem.api.storage.SnapshotInfo;
 import org.apache.cloudstack.engine.subsystem.api.storage.TemplateInfo;
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateService.TemplateApiResult;
 import org.apache.cloudstack.engine.subsystem.api.storage.VolumeDataFactory;
 import org.apache.cloudstack.engine.subsystem.api.storage.VolumeInfo;
 import org.apache.cloudstack.engine.subsystem.api.storage.VolumeService;
@@ -119,6 +121,7 @@ import com.cloud.utils.Pair;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.storage.dao.VolumeDetailsDao;
 
 
@@ -170,9 +173,21 @@ public class VolumeServiceImpl implements VolumeService {
 
     private final static String SNAPSHOT_ID = "SNAPSHOT_ID";
 
+    private final TemplateCopyFlights _templateCopies = new TemplateCopyFlights();
+    private final TemplateDeployStats _deployStats = new TemplateDeployStats(_templateCopies);
+
     public VolumeServiceImpl() {
     }
 
+    @PostConstruct
+    public void init() {
+        try {
+            JmxUtil.registerMBean("VolumeService", "TemplateDeployStats", _deployStats);
+        } catch (Exception e) {
+            s_logger.error("Failed to register MBean", e);
+        }
+    }
+
     private class CreateVolumeContext<T> extends AsyncRpcContext<T> {
 
         private final DataObject volume;
@@ -521,6 +536,17 @@ public class VolumeServiceImpl implements VolumeService {
 
     }
 
+    private class CopyTemplateToPrimaryContext<T> extends AsyncRpcContext<T> {
+        private final DataObject templateOnPrimaryStore;
+        private final long templatePoolRefId;
+
+        public CopyTemplateToPrimaryContext(AsyncCompletionCallback<T> callback, DataObject templateOnPrimaryStore, long templatePoolRefId) {
+            super(callback);
+            this.templateOnPrimaryStore = templateOnPrimaryStore;
+            this.templatePoolRefId = templatePoolRefId;
+        }
+    }
+
     private TemplateInfo waitForTemplateDownloaded(PrimaryDataStore store, TemplateInfo template) {
         int storagePoolMaxWaitSeconds = NumbersUtil.parseInt(configDao.getValue(Config.StoragePoolMaxWaitSeconds.key()), 3600);
         int sleepTime = 120;
@@ -541,9 +567,38 @@ public class VolumeServiceImpl implements VolumeService {
     }
 
     @DB
-    protected void createBaseImageAsync(VolumeInfo volume, PrimaryDataStore dataStore, TemplateInfo template, AsyncCallFuture<VolumeApiResult> future) {
-        DataObject templateOnPrimaryStoreObj = dataStore.create(template);
+    protected void createBaseImageAsync(final VolumeInfo volume, final PrimaryDataStore dataStore, TemplateInfo template, final AsyncCallFuture<VolumeApiResult> future) {
+        final DataObject templateOnPrimaryStoreObj = dataStore.create(template);
+        final long start = System.currentTimeMillis();
+
+        copyTemplateToPrimary(dataStore, template, templateOnPrimaryStoreObj, new AsyncCompletionCallback<CommandResult>() {
+            @Override
+            public void complete(CommandResult result) {
+                _deployStats.coldStart(System.currentTimeMillis() - start);
+                if (result.isFailed()) {
+                    VolumeApiResult res = new VolumeApiResult(volume);
+                    res.setResult(result.getResult());
+                    future.complete(res);
+                    return;
+                }
+                try {
+                    createVolumeFromBaseImageAsync(volume, templateOnPrimaryStoreObj, dataStore, future);
+                } catch (Throwable e) {
+                    s_logger.debug("failed to create volume from template on storage", e);
+                    VolumeApiResult res = new VolumeApiResult(volume);
+                    res.setResult(e.toString());
+                    future.complete(res);
+                }
+            }
+        });
+    }
 
+    /**
+     * Copies the template to the primary data store, or waits for the copy already in progress on this management
+     * server. The listener is called once the template is on the primary data store or the copy failed.
+     */
+    @DB
+    private void copyTemplateToPrimary(PrimaryDataStore dataStore, TemplateInfo template, DataObject templateOnPrimaryStoreObj, AsyncCompletionCallback<CommandResult> listener) {
         VMTemplateStoragePoolVO templatePoolRef = _tmpltPoolDao.findByPoolTemplate(dataStore.getId(), template.getId());
         if (templatePoolRef == null) {
             throw new CloudRuntimeException("Failed to find template " + template.getUniqueName() + " in storage pool " + dataStore.getId());
@@ -554,56 +609,104 @@ public class VolumeServiceImpl implements VolumeService {
             }
         }
         long templatePoolRefId = templatePoolRef.getId();
-        CreateBaseImageContext<CreateCmdResult> context =
-                new CreateBaseImageContext<CreateCmdResult>(null, volume, dataStore, template, future, templateOnPrimaryStoreObj, templatePoolRefId);
-        AsyncCallbackDispatcher<VolumeServiceImpl, CopyCommandResult> caller = AsyncCallbackDispatcher.create(this);
-        caller.setCallback(caller.getTarget().copyBaseImageCallback(null, null)).setContext(context);
-
-        int storagePoolMaxWaitSeconds = NumbersUtil.parseInt(configDao.getValue(Config.StoragePoolMaxWaitSeconds.key()), 3600);
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug("Acquire lock on VMTemplateStoragePool " + templatePoolRefId + " with timeout " + storagePoolMaxWaitSeconds + " seconds");
-        }
-        templatePoolRef = _tmpltPoolDao.acquireInLockTable(templatePoolRefId, storagePoolMaxWaitSeconds);
 
-        if (templatePoolRef == null) {
+        if (!_templateCopies.join(templatePoolRefId, listener)) {
+            _deployStats.coalesced();
             if (s_logger.isDebugEnabled()) {
-                s_logger.info("Unable to acquire lock on VMTemplateStoragePool " + templatePoolRefId);
+                s_logger.debug("Template " + template.getUniqueName() + " is already being copied to storage pool " + dataStore.getId() + ", waiting for that copy");
             }
-            templatePoolRef = _tmpltPoolDao.findByPoolTemplate(dataStore.getId(), template.getId());
-            if (templatePoolRef != null && templatePoolRef.getState() == ObjectInDataStoreStateMachine.State.Ready) {
-                s_logger.info("Unable to acquire lock on VMTemplateStoragePool " + templatePoolRefId + ", But Template " + template.getUniqueName() +
-                        " is already copied to primary storage, skip copying");
-                createVolumeFromBaseImageAsync(volume, templateOnPrimaryStoreObj, dataStore, future);
-                return;
-            }
-            throw new CloudRuntimeException("Unable to acquire lock on VMTemplateStoragePool: " + templatePoolRefId);
+            return;
         }
 
-        if (s_logger.isDebugEnabled()) {
-            s_logger.info("lock is acquired for VMTemplateStoragePool " + templatePoolRefId);
-        }
+        // the copy has to be completed whatever fails from here on, the volumes that joined it wait for that
+        CommandResult result = null;
+        boolean copyStarted = false;
         try {
-            if (templatePoolRef.getState() == ObjectInDataStoreStateMachine.State.Ready) {
-                s_logger.info("Template " + template.getUniqueName() + " is already copied to primary storage, skip copying");
-                createVolumeFromBaseImageAsync(volume, templateOnPrimaryStoreObj, dataStore, future);
-                return;
+            int storagePoolMaxWaitSeconds = NumbersUtil.parseInt(configDao.getValue(Config.StoragePoolMaxWaitSeconds.key()), 3600);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Acquire lock on VMTemplateStoragePool " + templatePoolRefId + " with timeout " + storagePoolMaxWaitSeconds + " seconds");
+            }
+            templatePoolRef = _tmpltPoolDao.acquireInLockTable(templatePoolRefId, storagePoolMaxWaitSeconds);
+
+            if (templatePoolRef == null) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.info("Unable to acquire lock on VMTemplateStoragePool " + templatePoolRefId);
+                }
+                result = new CommandResult();
+                templatePoolRef = _tmpltPoolDao.findByPoolTemplate(dataStore.getId(), template.getId());
+                if (templatePoolRef != null && templatePoolRef.getState() == ObjectInDataStoreStateMachine.State.Ready) {
+                    s_logger.info("Unable to acquire lock on VMTemplateStoragePool " + templatePoolRefId + ", But Template " + template.getUniqueName() +
+                            " is already copied to primary storage, skip copying");
+                } else {
+                    result.setResult("Unable to acquire lock on VMTemplateStoragePool: " + templatePoolRefId);
+                }
+            } else {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.info("lock is acquired for VMTemplateStoragePool " + templatePoolRefId);
+                }
+                try {
+                    if (templatePoolRef.getState() == ObjectInDataStoreStateMachine.State.Ready) {
+                        s_logger.info("Template " + template.getUniqueName() + " is already copied to primary storage, skip copying");
+                        result = new CommandResult();
+                    } else {
+                        CopyTemplateToPrimaryContext<CommandResult> context = new CopyTemplateToPrimaryContext<CommandResult>(null, templateOnPrimaryStoreObj, templatePoolRefId);
+                        AsyncCallbackDispatcher<VolumeServiceImpl, CopyCommandResult> caller = AsyncCallbackDispatcher.create(this);
+                        caller.setCallback(caller.getTarget().copyBaseImageCallback(null, null)).setContext(context);
+
+                        templateOnPrimaryStoreObj.processEvent(Event.CreateOnlyRequested);
+                        motionSrv.copyAsync(template, templateOnPrimaryStoreObj, caller);
+                        // its callback completes the copy
+                        copyStarted = true;
+                    }
+                } catch (Throwable e) {
+                    s_logger.debug("failed to create template on storage", e);
+                    result = new CommandResult();
+                    result.setResult(e.toString());
+                    templateOnPrimaryStoreObj.processEvent(Event.OperationFailed);
+                    dataStore.create(template);  // make sure that template_spool_ref entry is still present so that the second thread can acquire the lock
+                } finally {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.info("releasing lock for VMTemplateStoragePool " + templatePoolRefId);
+                    }
+                    _tmpltPoolDao.releaseFromLockTable(templatePoolRefId);
+                }
             }
-            templateOnPrimaryStoreObj.processEvent(Event.CreateOnlyRequested);
-            motionSrv.copyAsync(template, templateOnPrimaryStoreObj, caller);
         } catch (Throwable e) {
-            s_logger.debug("failed to create template on storage", e);
-            templateOnPrimaryStoreObj.processEvent(Event.OperationFailed);
-            dataStore.create(template);  // make sure that template_spool_ref entry is still present so that the second thread can acquire the lock
-            VolumeApiResult result = new VolumeApiResult(volume);
-            result.setResult(e.toString());
-            future.complete(result);
-        } finally {
-            if (s_logger.isDebugEnabled()) {
-                s_logger.info("releasing lock for VMTemplateStoragePool " + templatePoolRefId);
+            s_logger.warn("Failed to copy template " + template.getUniqueName() + " to storage pool " + dataStore.getId(), e);
+            if (!copyStarted && result == null) {
+                result = new CommandResult();
+                result.setResult(e.toString());
             }
-            _tmpltPoolDao.releaseFromLockTable(templatePoolRefId);
         }
-        return;
+
+        if (result != null) {
+            _templateCopies.complete(templatePoolRefId, result);
+        }
+    }
+
+    @Override
+    public AsyncCallFuture<TemplateApiResult> copyTemplateToPrimaryAsync(TemplateInfo template, long dataStoreId) {
+        final PrimaryDataStore pd = dataStoreMgr.getPrimaryDataStore(dataStoreId);
+        final long templateId = template.getId();
+        final AsyncCallFuture<TemplateApiResult> future = new AsyncCallFuture<TemplateApiResult>();
+
+        TemplateInfo templateOnPrimaryStore = pd.getTemplate(templateId);
+        if (templateOnPrimaryStore != null) {
+            future.complete(new TemplateApiResult(templateOnPrimaryStore));
+            return future;
+        }
+
+        copyTemplateToPrimary(pd, template, pd.create(template), new AsyncCompletionCallback<CommandResult>() {
+            @Override
+            public void complete(CommandResult result) {
+                TemplateApiResult res = new TemplateApiResult(pd.getTemplate(templateId));
+                if (result.isFailed()) {
+                    res.setResult(result.getResult());
+                }
+                future.complete(res);
+            }
+        });
+        return future;
     }
 
     protected Void managedCopyBaseImageCallback(AsyncCallbackDispatcher<VolumeServiceImpl, CopyCommandResult> callback,
@@ -684,21 +787,22 @@ public class VolumeServiceImpl implements VolumeService {
     }
 
     @DB
-    protected Void copyBaseImageCallback(AsyncCallbackDispatcher<VolumeServiceImpl, CopyCommandResult> callback, CreateBaseImageContext<VolumeApiResult> context) {
-        CopyCommandResult result = callback.getResult();
-        VolumeApiResult res = new VolumeApiResult(context.getVolume());
-
-        AsyncCallFuture<VolumeApiResult> future = context.getFuture();
-        DataObject templateOnPrimaryStoreObj = context.destObj;
-        if (!result.isSuccess()) {
-            templateOnPrimaryStoreObj.processEvent(Event.OperationFailed);
-            res.setResult(result.getResult());
-            future.complete(res);
-            return null;
+    protected Void copyBaseImageCallback(AsyncCallbackDispatcher<VolumeServiceImpl, CopyCommandResult> callback, CopyTemplateToPrimaryContext<CommandResult> context) {
+        CopyCommandResult copyResult = callback.getResult();
+        CommandResult result = copyResult;
+        DataObject templateOnPrimaryStoreObj = context.templateOnPrimaryStore;
+        try {
+            if (copyResult.isSuccess()) {
+                templateOnPrimaryStoreObj.processEvent(Event.OperationSuccessed, copyResult.getAnswer());
+            } else {
+                templateOnPrimaryStoreObj.processEvent(Event.OperationFailed);
+            }
+        } catch (Throwable e) {
+            s_logger.debug("failed to update template on storage after copying it", e);
+            result = new CommandResult();
+            result.setResult(e.toString());
         }
-
-        templateOnPrimaryStoreObj.processEvent(Event.OperationSuccessed, result.getAnswer());
-        createVolumeFromBaseImageAsync(context.volume, templateOnPrimaryStoreObj, context.dataStore, future);
+        _templateCopies.complete(context.templatePoolRefId, result);
         return null;
     }
 
@@ -1229,10 +1333,12 @@ public class VolumeServiceImpl implements VolumeService {
         AsyncCallFuture<VolumeApiResult> future = new AsyncCallFuture<VolumeApiResult>();
 
         if (templateOnPrimaryStore == null) {
+            _deployStats.cold();
             createBaseImageAsync(volume, pd, template, future);
             return future;
         }
 
+        _deployStats.staged();
         createVolumeFromBaseImageAsync(volume, templateOnPrimaryStore, pd, future);
         return future;
     }
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.storage.volume;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cloudstack.framework.async.AsyncCompletionCallback;
+import org.apache.cloudstack.storage.command.CommandResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TemplateCopyFlightsTest {
+
+    static class Listener implements AsyncCompletionCallback<CommandResult> {
+        final List<CommandResult> results = Collections.synchronizedList(new ArrayList<CommandResult>());
+
+        @Override
+        public void complete(CommandResult result) {
+            results.add(result);
+        }
+    }
+
+    @Test
+    public void testWaitersJoinTheCopyInProgress() {
+        TemplateCopyFlights flights = new TemplateCopyFlights();
+        Listener leader = new Listener();
+        Listener waiter = new Listener();
+        Listener other = new Listener();
+
+        Assert.assertTrue(flights.join(1L, leader));
+        Assert.assertFalse(flights.join(1L, waiter));
+        Assert.assertTrue(flights.join(2L, other));
+        Assert.assertEquals(2, flights.getInProgressCount());
+
+        CommandResult result = new CommandResult();
+        flights.complete(1L, result);
+        Assert.assertEquals(Collections.singletonList(result), leader.results);
+        Assert.assertEquals(Collections.singletonList(result), waiter.results);
+        Assert.assertTrue(other.results.isEmpty());
+        Assert.assertEquals(1, flights.getInProgressCount());
+
+        // the next volume that needs the template starts over
+        Assert.assertTrue(flights.join(1L, new Listener()));
+    }
+
+    @Test
+    public void testFailureReachesEveryWaiter() {
+        TemplateCopyFlights flights = new TemplateCopyFlights();
+        Listener waiter = new Listener();
+        flights.join(1L, new AsyncCompletionCallback<CommandResult>() {
+            @Override
+            public void complete(CommandResult result) {
+                throw new RuntimeException("volume creation failed");
+            }
+        });
+        flights.join(1L, waiter);
+
+        CommandResult result = new CommandResult();
+        result.setResult("copy failed");
+        flights.complete(1L, result);
+
+        Assert.assertEquals(1, waiter.results.size());
+        Assert.assertTrue(waiter.results.get(0).isFailed());
+        Assert.assertEquals(0, flights.getInProgressCount());
+    }
+
+    @Test
+    public void testSingleCopyForConcurrentDeploys() throws Exception {
+        final TemplateCopyFlights flights = new TemplateCopyFlights();
+        final Listener listener = new Listener();
+        final AtomicInteger leaders = new AtomicInteger();
+        final int deploys = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(deploys);
+
+        for (int i = 0; i < deploys; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        if (flights.join(1L, listener)) {
+                            leaders.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        Assert.assertEquals(1, leaders.get());
+        flights.complete(1L, new CommandResult());
+        Assert.assertEquals(deploys, listener.results.size());
+    }
+}
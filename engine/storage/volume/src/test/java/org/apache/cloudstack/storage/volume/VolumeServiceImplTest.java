@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.storage.volume;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.DataObject;
+import org.apache.cloudstack.engine.subsystem.api.storage.PrimaryDataStore;
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateInfo;
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateService.TemplateApiResult;
+import org.apache.cloudstack.framework.async.AsyncCallFuture;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.storage.datastore.PrimaryDataStoreProviderManager;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.storage.VMTemplateStoragePoolVO;
+import com.cloud.storage.dao.VMTemplatePoolDao;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class VolumeServiceImplTest {
+
+    @Mock
+    PrimaryDataStoreProviderManager dataStoreMgr;
+
+    @Mock
+    ConfigurationDao configDao;
+
+    @Mock
+    VMTemplatePoolDao _tmpltPoolDao;
+
+    @InjectMocks
+    VolumeServiceImpl volumeService = new VolumeServiceImpl();
+
+    TemplateInfo template;
+
+    @Before
+    public void setUp() {
+        PrimaryDataStore dataStore = Mockito.mock(PrimaryDataStore.class);
+        Mockito.when(dataStore.getId()).thenReturn(1L);
+        Mockito.when(dataStore.create(Mockito.any(TemplateInfo.class))).thenReturn(Mockito.mock(DataObject.class));
+        Mockito.when(dataStoreMgr.getPrimaryDataStore(1L)).thenReturn(dataStore);
+
+        template = Mockito.mock(TemplateInfo.class);
+        Mockito.when(template.getId()).thenReturn(2L);
+
+        VMTemplateStoragePoolVO templatePoolRef = Mockito.mock(VMTemplateStoragePoolVO.class);
+        Mockito.when(templatePoolRef.getId()).thenReturn(3L);
+        Mockito.when(_tmpltPoolDao.findByPoolTemplate(1L, 2L)).thenReturn(templatePoolRef);
+    }
+
+    @Test
+    public void testCopyThatFailsToStartIsCompleted() throws Exception {
+        Mockito.when(configDao.getValue(Mockito.anyString())).thenThrow(new CloudRuntimeException("database unavailable"));
+
+        AsyncCallFuture<TemplateApiResult> future = volumeService.copyTemplateToPrimaryAsync(template, 1L);
+        Assert.assertTrue(future.isDone());
+        Assert.assertTrue(future.get().isFailed());
+
+        // the next deploy of the template leads a copy of its own instead of waiting for the failed one
+        future = volumeService.copyTemplateToPrimaryAsync(template, 1L);
+        Assert.assertTrue(future.isDone());
+        Mockito.verify(configDao, Mockito.times(2)).getValue(Mockito.anyString());
+    }
+}
@@ -31,4 +31,16 @@ public interface ConfigDepot {
     <T> void set(ConfigKey<T> key, T value);
 
     <T> void createOrUpdateConfigObject(String componentName, ConfigKey<T> key, String value);
+
+    /**
+     * @return the config change version the cached config values were read at.
+     */
+    long getConfigVersion();
+
+    /**
+     * Discards all cached config values, to be called once a config change is committed
+     * on this or on a peer management server.
+     * @return the new config change version.
+     */
+    long invalidateConfigCache();
 }
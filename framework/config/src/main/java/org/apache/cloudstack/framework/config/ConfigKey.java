@@ -137,27 +137,53 @@ public class ConfigKey<T> {
         throw new CloudRuntimeException("Comparing ConfigKey to " + obj.toString());
     }
 
+    @SuppressWarnings("unchecked")
     public T value() {
         if (_value == null || isDynamic()) {
-            ConfigurationVO vo = s_depot != null ? s_depot.global().findById(key()) : null;
+            final ConfigDepotImpl depot = s_depot;
+            if (depot != null && isDynamic()) {
+                final ConfigDepotImpl.CachedValue cached = depot.getCachedValue(this, null);
+                if (cached != null) {
+                    return (T)cached.getValue();
+                }
+            }
+
+            final long version = depot != null ? depot.getConfigVersion() : 0;
+            ConfigurationVO vo = depot != null ? depot.global().findById(key()) : null;
             final String value = (vo != null && vo.getValue() != null) ? vo.getValue() : defaultValue();
-            _value = ((value == null) ? (T)defaultValue() : valueOf(value));
+            final T parsed = ((value == null) ? (T)defaultValue() : valueOf(value));
+            if (depot != null && isDynamic()) {
+                depot.cacheValue(this, null, version, parsed);
+            }
+            _value = parsed;
+            return parsed;
         }
 
         return _value;
     }
 
+    @SuppressWarnings("unchecked")
     public T valueIn(Long id) {
         if (id == null) {
             return value();
         }
 
-        String value = s_depot != null ? s_depot.scoped(this).getConfigValue(id, this) : null;
-        if (value == null) {
+        final ConfigDepotImpl depot = s_depot;
+        if (depot == null) {
             return value();
+        }
+
+        T scopedValue;
+        final ConfigDepotImpl.CachedValue cached = depot.getCachedValue(this, id);
+        if (cached != null) {
+            scopedValue = (T)cached.getValue();
         } else {
-            return valueOf(value);
+            final long version = depot.getConfigVersion();
+            String value = depot.scoped(this).getConfigValue(id, this);
+            scopedValue = value != null ? valueOf(value) : null;
+            depot.cacheValue(this, id, version, scopedValue);
         }
+        return scopedValue != null ? scopedValue : value();
     }
 
     @SuppressWarnings("unchecked")
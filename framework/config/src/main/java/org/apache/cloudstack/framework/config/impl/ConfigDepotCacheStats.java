@@ -0,0 +1,51 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.config.impl;
+
+import javax.management.StandardMBean;
+
+/**
+ * Reads the counters of the config value cache, they are those since this management server started.
+ */
+public class ConfigDepotCacheStats extends StandardMBean implements ConfigDepotCacheStatsMBean {
+    private final ConfigDepotImpl _depot;
+
+    public ConfigDepotCacheStats(ConfigDepotImpl depot) {
+        super(ConfigDepotCacheStatsMBean.class, false);
+        _depot = depot;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return _depot.getCacheHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return _depot.getCacheMisses();
+    }
+
+    @Override
+    public long getConfigVersion() {
+        return _depot.getConfigVersion();
+    }
+
+    @Override
+    public int getCachedValues() {
+        return _depot.getCachedValueCount();
+    }
+}
@@ -23,6 +23,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -38,11 +40,15 @@ import org.apache.log4j.Logger;
 
 import com.cloud.utils.Pair;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 
 /**
  * ConfigDepotImpl implements the ConfigDepot and ConfigDepotAdmin interface.
  * Its functionalities include:
- *   - Control how dynamic config values are cached and refreshed.
+ *   - Control how dynamic config values are cached and refreshed.  Parsed
+ *     values are cached per key (and per resource for scoped keys) and
+ *     stamped with a config change version.  Bumping the version, locally
+ *     or on a peer's broadcast, discards all of them.
  *   - Control how scoped config values are stored.
  *   - Gather all of the Configurable interfaces and insert their config
  *     variables into the config table.
@@ -78,6 +84,38 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
 
     HashMap<ConfigKey.Scope, Set<ConfigKey<?>>> _scopeLevelConfigsMap = new HashMap<ConfigKey.Scope, Set<ConfigKey<?>>>();
 
+    /**
+     * Cached values are re-read after this long even without an invalidation, it bounds how stale a
+     * value written straight into a details table (not through updateConfiguration) can get.
+     */
+    static final long CACHE_MAX_AGE_MS = 30000;
+
+    private final AtomicLong _configVersion = new AtomicLong();
+    private final ConcurrentHashMap<String, CachedValue> _globalCache = new ConcurrentHashMap<String, CachedValue>(1007);
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Long, CachedValue>> _scopedCache = new ConcurrentHashMap<String, ConcurrentHashMap<Long, CachedValue>>();
+    private final AtomicLong _cacheHits = new AtomicLong();
+    private final AtomicLong _cacheMisses = new AtomicLong();
+
+    /**
+     * Parsed value of a config key, stamped with the config change version it was read at.
+     * For scoped entries a null value means there is no override for that resource.
+     */
+    public static final class CachedValue {
+        private final long _version;
+        private final long _loadedAt;
+        private final Object _value;
+
+        CachedValue(long version, long loadedAt, Object value) {
+            _version = version;
+            _loadedAt = loadedAt;
+            _value = value;
+        }
+
+        public Object getValue() {
+            return _value;
+        }
+    }
+
     public ConfigDepotImpl() {
         ConfigKey.init(this);
         _scopeLevelConfigsMap.put(ConfigKey.Scope.Zone, new HashSet<ConfigKey<?>>());
@@ -101,6 +139,12 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
         for (Configurable configurable : _configurables) {
             populateConfiguration(date, configurable);
         }
+
+        try {
+            JmxUtil.registerMBean("ConfigDepot", "CacheStats", new ConfigDepotCacheStats(this));
+        } catch (Exception e) {
+            s_logger.error("Failed to register MBean", e);
+        }
     }
 
     protected void populateConfiguration(Date date, Configurable configurable) {
@@ -202,11 +246,93 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
     @Override
     public <T> void set(ConfigKey<T> key, T value) {
         _configDao.update(key.key(), value.toString());
+        invalidateConfigCache();
     }
 
     @Override
     public <T> void createOrUpdateConfigObject(String componentName, ConfigKey<T> key, String value) {
         createOrupdateConfigObject(new Date(), componentName, key, value);
+        invalidateConfigCache();
+    }
 
+    /**
+     * Returns the cached value of the key, global when id is null or for the resource of the key's scope
+     * otherwise, or null when the value has to be read from the database.
+     */
+    public CachedValue getCachedValue(ConfigKey<?> key, Long id) {
+        CachedValue cached;
+        if (id == null) {
+            cached = _globalCache.get(key.key());
+        } else {
+            ConcurrentHashMap<Long, CachedValue> values = _scopedCache.get(key.key());
+            cached = values != null ? values.get(id) : null;
+        }
+
+        if (cached != null && cached._version == _configVersion.get() && System.currentTimeMillis() - cached._loadedAt < CACHE_MAX_AGE_MS) {
+            _cacheHits.incrementAndGet();
+            return cached;
+        }
+        _cacheMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches a value read from the database. The version must be read before the database so that a value
+     * loaded concurrently with an update is never served under the version of that update.
+     */
+    public void cacheValue(ConfigKey<?> key, Long id, long version, Object value) {
+        if (version != _configVersion.get()) {
+            return;
+        }
+
+        CachedValue cached = new CachedValue(version, System.currentTimeMillis(), value);
+        if (id == null) {
+            _globalCache.put(key.key(), cached);
+        } else {
+            ConcurrentHashMap<Long, CachedValue> values = _scopedCache.get(key.key());
+            if (values == null) {
+                ConcurrentHashMap<Long, CachedValue> created = new ConcurrentHashMap<Long, CachedValue>();
+                values = _scopedCache.putIfAbsent(key.key(), created);
+                if (values == null) {
+                    values = created;
+                }
+            }
+            values.put(id, cached);
+        }
+    }
+
+    @Override
+    public long getConfigVersion() {
+        return _configVersion.get();
+    }
+
+    @Override
+    public long invalidateConfigCache() {
+        long version = _configVersion.incrementAndGet();
+        _globalCache.clear();
+        _scopedCache.clear();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Config cache invalidated, config change version is now " + version);
+        }
+        return version;
+    }
+
+    /**
+     * @return the number of config reads served without a database lookup.
+     */
+    public long getCacheHits() {
+        return _cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return _cacheMisses.get();
+    }
+
+    public int getCachedValueCount() {
+        int count = _globalCache.size();
+        for (ConcurrentHashMap<Long, CachedValue> values : _scopedCache.values()) {
+            count += values.size();
+        }
+        return count;
     }
 }
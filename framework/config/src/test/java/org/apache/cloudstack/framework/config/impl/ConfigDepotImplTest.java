@@ -0,0 +1,143 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.config.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.ConfigKey.Scope;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.framework.config.ScopedConfigStorage;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+
+public class ConfigDepotImplTest {
+    private final static ConfigKey<Integer> DynamicIntCK = new ConfigKey<Integer>("Advanced", Integer.class, "cache.dyn.int", "10", "Test Key", true);
+    private final static ConfigKey<Integer> StaticIntCK = new ConfigKey<Integer>("Advanced", Integer.class, "cache.stat.int", "10", "Test Key", false);
+    private final static ConfigKey<Double> ZoneDoubleCK = new ConfigKey<Double>("Advanced", Double.class, "cache.zone.double", "0.85", "Test Key", true, Scope.Zone);
+
+    @Mock
+    ConfigurationDao _configDao;
+
+    @Mock
+    ScopedConfigStorage _zoneStorage;
+
+    ConfigDepotImpl _depot;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        _depot = new ConfigDepotImpl();
+        _depot._configDao = _configDao;
+        _depot._configurables = new ArrayList<Configurable>();
+        _depot._scopedStorages = new ArrayList<ScopedConfigStorage>();
+        _depot._scopedStorages.add(_zoneStorage);
+        when(_zoneStorage.getScope()).thenReturn(Scope.Zone);
+    }
+
+    @After
+    public void tearDown() {
+        ConfigKey.init(null);
+    }
+
+    private ConfigurationVO config(ConfigKey<?> key, String value) {
+        ConfigurationVO vo = new ConfigurationVO("UnitTestComponent", key);
+        vo.setValue(value);
+        return vo;
+    }
+
+    @Test
+    public void testDynamicValueIsCachedUntilInvalidated() {
+        when(_configDao.findById(DynamicIntCK.key())).thenReturn(config(DynamicIntCK, "20"));
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(20, DynamicIntCK.value().intValue());
+        }
+        verify(_configDao, times(1)).findById(DynamicIntCK.key());
+        assertEquals(99, _depot.getCacheHits());
+
+        when(_configDao.findById(DynamicIntCK.key())).thenReturn(config(DynamicIntCK, "30"));
+        long version = _depot.getConfigVersion();
+        assertEquals(version + 1, _depot.invalidateConfigCache());
+        assertEquals(30, DynamicIntCK.value().intValue());
+        verify(_configDao, times(2)).findById(DynamicIntCK.key());
+    }
+
+    @Test
+    public void testStaticValueIsReadOnce() {
+        when(_configDao.findById(StaticIntCK.key())).thenReturn(config(StaticIntCK, "5"));
+
+        assertEquals(5, StaticIntCK.value().intValue());
+        _depot.invalidateConfigCache();
+        assertEquals(5, StaticIntCK.value().intValue());
+    }
+
+    @Test
+    public void testScopedValueFallsBackToGlobal() {
+        when(_configDao.findById(ZoneDoubleCK.key())).thenReturn(config(ZoneDoubleCK, "0.75"));
+        when(_zoneStorage.getConfigValue(1L, ZoneDoubleCK)).thenReturn("0.5");
+        when(_zoneStorage.getConfigValue(2L, ZoneDoubleCK)).thenReturn(null);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0.5, ZoneDoubleCK.valueIn(1L), 0.0);
+            assertEquals(0.75, ZoneDoubleCK.valueIn(2L), 0.0);
+        }
+        verify(_zoneStorage, times(1)).getConfigValue(1L, ZoneDoubleCK);
+        verify(_zoneStorage, times(1)).getConfigValue(2L, ZoneDoubleCK);
+        verify(_configDao, times(1)).findById(ZoneDoubleCK.key());
+
+        when(_zoneStorage.getConfigValue(2L, ZoneDoubleCK)).thenReturn("0.6");
+        _depot.invalidateConfigCache();
+        assertEquals(0.6, ZoneDoubleCK.valueIn(2L), 0.0);
+    }
+
+    @Test
+    public void testValueLoadedBeforeInvalidationIsNotCached() {
+        long version = _depot.getConfigVersion();
+        _depot.invalidateConfigCache();
+        _depot.cacheValue(DynamicIntCK, null, version, 1);
+        assertEquals(null, _depot.getCachedValue(DynamicIntCK, null));
+    }
+
+    @Test
+    public void testOnlyReadsAfterInvalidationHitTheDao() {
+        when(_configDao.findById(DynamicIntCK.key())).thenReturn(config(DynamicIntCK, "20"));
+
+        for (int i = 0; i < 10; i++) {
+            _depot.invalidateConfigCache();
+            assertEquals(20, DynamicIntCK.value().intValue());
+        }
+        verify(_configDao, times(10)).findById(DynamicIntCK.key());
+
+        long hitsBefore = _depot.getCacheHits();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(20, DynamicIntCK.value().intValue());
+        }
+        verify(_configDao, times(10)).findById(DynamicIntCK.key());
+        assertEquals(hitsBefore + 1000, _depot.getCacheHits());
+    }
+}
@@ -20,12 +20,19 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.StandardMBean;
 
@@ -34,58 +41,123 @@ import org.apache.log4j.Logger;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
-import com.cloud.utils.time.InaccurateClock;
 
+/**
+ * The lock master holds the named locks of {@link TransactionLegacy#lock(String, int)} as rows of the op_lock
+ * table, so that a lock is held across all management servers.
+ *
+ * Threads of this management server asking for the same lock queue up locally. A lock is re-entered without
+ * going to the database, only the first local waiter asks the database for a lock held elsewhere, and the
+ * others are woken when it is released instead of polling. The op_lock row is written once per hold, its
+ * waiters column is no longer the re-entrance count. The statements are spread over a few connections, the
+ * statements of a lock always going to the same one.
+ */
 public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final Logger s_logger = Logger.getLogger(Merovingian2.class);
 
     private static final String ACQUIRE_SQL =
             "INSERT INTO op_lock (op_lock.key, op_lock.mac, op_lock.ip, op_lock.thread, op_lock.acquired_on, waiters) VALUES (?, ?, ?, ?, ?, 1)";
-    private static final String INCREMENT_SQL = "UPDATE op_lock SET waiters=waiters+1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
     private static final String SELECT_SQL = "SELECT op_lock.key, mac, ip, thread, acquired_on, waiters FROM op_lock";
     private static final String INQUIRE_SQL = SELECT_SQL + " WHERE op_lock.key=?";
-    private static final String DECREMENT_SQL = "UPDATE op_lock SET waiters=waiters-1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
     private static final String RELEASE_LOCK_SQL = "DELETE FROM op_lock WHERE op_lock.key = ?";
-    private static final String RELEASE_SQL = RELEASE_LOCK_SQL + " AND op_lock.mac=? AND waiters=0";
+    private static final String RELEASE_SQL = RELEASE_LOCK_SQL + " AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
     private static final String CLEANUP_MGMT_LOCKS_SQL = "DELETE FROM op_lock WHERE op_lock.mac = ?";
     private static final String SELECT_MGMT_LOCKS_SQL = SELECT_SQL + " WHERE mac=?";
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
+    private static final String INCREMENT_FENCING_TOKEN_SQL =
+            "INSERT INTO op_lock_fencing_token (op_lock_fencing_token.key, token) VALUES (?, 1) ON DUPLICATE KEY UPDATE token=token+1";
+    private static final String SELECT_FENCING_TOKEN_SQL = "SELECT token FROM op_lock_fencing_token WHERE op_lock_fencing_token.key=?";
+
+    public static final int DEFAULT_CONNECTIONS = 4;
+
+    // a lock held by another management server is asked for again after these intervals, doubling in between
+    private static final long MIN_POLL_INTERVAL = 50;
+    private static final long MAX_POLL_INTERVAL = 1000;
+
+    private static final int MAX_CONTENTION_ENTRIES = 1000;
 
     TimeZone _gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     private final long _msId;
 
     private static Merovingian2 s_instance = null;
-    private ConnectionConcierge _concierge = null;
+    private final ConnectionConcierge[] _concierges;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
-    private Merovingian2(long msId) {
+    private final ConcurrentHashMap<String, LocalLock> _locks = new ConcurrentHashMap<String, LocalLock>();
+    private final Map<String, Contention> _contention = new LinkedHashMap<String, Contention>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Contention> eldest) {
+            return size() > MAX_CONTENTION_ENTRIES;
+        }
+    };
+
+    private final AtomicLong _acquisitions = new AtomicLong();
+    private final AtomicLong _reentrantAcquisitions = new AtomicLong();
+    private final AtomicLong _contendedAcquisitions = new AtomicLong();
+    private final AtomicLong _timedOutAcquisitions = new AtomicLong();
+    private final AtomicLong _dbStatements = new AtomicLong();
+
+    private Merovingian2(long msId, int connections) {
+        this(msId, openConnections(connections));
+    }
+
+    protected Merovingian2(long msId, ConnectionConcierge[] concierges) {
         super(MerovingianMBean.class, false);
         _msId = msId;
-        Connection conn = null;
-        try {
-            conn = TransactionLegacy.getStandaloneConnectionWithException();
-            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
-            conn.setAutoCommit(true);
-            _concierge = new ConnectionConcierge("LockMaster", conn, true);
-        } catch (SQLException e) {
-            s_logger.error("Unable to get a new db connection", e);
-            throw new CloudRuntimeException("Unable to initialize a connection to the database for locking purposes", e);
-        } finally {
-            if (_concierge == null && conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                    s_logger.debug("closing connection failed after everything else.", e);
+        _concierges = concierges;
+    }
+
+    private static ConnectionConcierge[] openConnections(int count) {
+        ConnectionConcierge[] concierges = new ConnectionConcierge[Math.max(1, count)];
+        for (int i = 0; i < concierges.length; i++) {
+            Connection conn = null;
+            try {
+                conn = TransactionLegacy.getStandaloneConnectionWithException();
+                conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                conn.setAutoCommit(true);
+                concierges[i] = new ConnectionConcierge("LockMaster", conn, true);
+            } catch (SQLException e) {
+                s_logger.error("Unable to get a new db connection", e);
+                for (int j = 0; j < i; j++) {
+                    concierges[j].release();
+                }
+                throw new CloudRuntimeException("Unable to initialize a connection to the database for locking purposes", e);
+            } finally {
+                if (concierges[i] == null && conn != null) {
+                    try {
+                        conn.close();
+                    } catch (SQLException e) {
+                        s_logger.debug("closing connection failed after everything else.", e);
+                    }
                 }
             }
         }
+        return concierges;
+    }
+
+    private static int getConfiguredConnections() {
+        String connections = DbProperties.getDbProperties().getProperty("db.cloud.lockMaster.connections");
+        if (connections != null) {
+            try {
+                return Integer.parseInt(connections.trim());
+            } catch (NumberFormatException e) {
+                s_logger.warn("Invalid db.cloud.lockMaster.connections " + connections + ", using " + DEFAULT_CONNECTIONS);
+            }
+        }
+        return DEFAULT_CONNECTIONS;
     }
 
     public static synchronized Merovingian2 createLockMaster(long msId) {
+        return createLockMaster(msId, getConfiguredConnections());
+    }
+
+    public static synchronized Merovingian2 createLockMaster(long msId, int connections) {
         assert s_instance == null : "No lock can serve two masters.  Either he will hate the one and love the other, or he will be devoted to the one and despise the other.";
-        s_instance = new Merovingian2(msId);
+        s_instance = new Merovingian2(msId, connections);
         s_instance.cleanupThisServer();
         try {
             JmxUtil.registerMBean("Locks", "Locks", s_instance);
@@ -99,6 +171,17 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return s_instance;
     }
 
+    /**
+     * @return the connection for the statements of a lock, the same one for every statement of the lock
+     */
+    protected Connection conn(String key) {
+        return _concierges[(key.hashCode() & Integer.MAX_VALUE) % _concierges.length].conn();
+    }
+
+    protected Connection conn() {
+        return _concierges[0].conn();
+    }
+
     protected void incrCount() {
         Count count = s_tls.get();
         if (count == null) {
@@ -118,6 +201,34 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         count.count--;
     }
 
+    private LocalLock useLocalLock(String key) {
+        while (true) {
+            LocalLock lock = _locks.get(key);
+            if (lock == null) {
+                LocalLock created = new LocalLock(key);
+                lock = _locks.putIfAbsent(key, created);
+                if (lock == null) {
+                    lock = created;
+                }
+            }
+            synchronized (lock) {
+                if (!lock.removed) {
+                    lock.users++;
+                    return lock;
+                }
+            }
+        }
+    }
+
+    private void unuseLocalLock(LocalLock lock) {
+        synchronized (lock) {
+            if (--lock.users == 0) {
+                lock.removed = true;
+                _locks.remove(lock.key, lock);
+            }
+        }
+    }
+
     public boolean acquire(String key, int timeInSeconds) {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
@@ -126,98 +237,229 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
-        long startTime = InaccurateClock.getTime();
-
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000l)) {
-            int count = owns(key);
-
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + timeInSeconds * 1000L;
+
+        LocalLock lock = useLocalLock(key);
+        boolean acquired = false;
+        boolean reentered = false;
+        boolean timedOut = false;
+        boolean contended = false;
+        boolean heldElsewhere = false;
+        try {
+            synchronized (lock) {
+                if (lock.owner == th) {
+                    lock.count++;
+                    incrCount();
+                    reentered = true;
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("lck-" + key + " acquired again");
+                    }
                     return true;
                 }
+
+                // wait behind the local owner, and behind the local thread asking the database for the lock
+                while (lock.owner != null || lock.acquirer != null) {
+                    contended = true;
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    lock.waiters++;
+                    try {
+                        lock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        s_logger.debug("[ignored] interupted while aquiring " + key);
+                    } finally {
+                        lock.waiters--;
+                    }
+                }
+                if (lock.owner != null || lock.acquirer != null) {
+                    timedOut = true;
+                    return false;
+                }
+                lock.acquirer = th;
             }
+
             try {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                long interval = MIN_POLL_INTERVAL;
+                while (true) {
+                    if (doAcquire(key, threadName, threadId)) {
+                        acquired = true;
+                        break;
+                    }
+                    contended = true;
+                    heldElsewhere = true;
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        timedOut = true;
+                        break;
+                    }
+                    try {
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                        }
+                        Thread.sleep(Math.min(interval, remaining));
+                    } catch (InterruptedException e) {
+                        s_logger.debug("[ignored] interupted while aquiring " + key);
+                    }
+                    interval = Math.min(interval * 2, MAX_POLL_INTERVAL);
+                }
+            } finally {
+                synchronized (lock) {
+                    lock.acquirer = null;
+                    if (acquired) {
+                        lock.owner = th;
+                        lock.count = 1;
+                        lock.token = 0;
+                        incrCount();
+                    } else {
+                        // the next local waiter asks the database for the rest of its own wait time
+                        lock.notify();
+                    }
+                }
+            }
+            return acquired;
+        } finally {
+            if (!acquired) {
+                unuseLocalLock(lock);
+            }
+            if (reentered) {
+                _reentrantAcquisitions.incrementAndGet();
+            } else {
+                long waited = System.currentTimeMillis() - startTime;
+                if (acquired) {
+                    _acquisitions.incrementAndGet();
+                }
+                if (contended) {
+                    recordContention(key, waited, timedOut, heldElsewhere);
+                }
+                if (timedOut) {
+                    String msg = "Timed out on acquiring lock " + key + " .  Waited for " + (waited / 1000) + "seconds";
+                    Exception e = new CloudRuntimeException(msg);
+                    s_logger.warn(msg, e);
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
-                s_logger.debug("[ignored] interupted while aquiring " + key);
             }
         }
-        String msg = "Timed out on acquiring lock " + key + " .  Waited for " + ((InaccurateClock.getTime() - startTime)/1000) +  "seconds";
-        Exception e = new CloudRuntimeException(msg);
-        s_logger.warn(msg, e);
-        return false;
     }
 
-    protected boolean increment(String key, String threadName, int threadId) {
-      try (PreparedStatement pstmt = _concierge.conn().prepareStatement(INCREMENT_SQL);){
-            pstmt.setString(1, key);
-            pstmt.setLong(2, _msId);
-            pstmt.setString(3, threadName);
-            pstmt.setInt(4, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (rows <= 1) : "hmm...non unique key? " + pstmt;
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("lck-" + key + (rows == 1 ? " acquired again" : " failed to acquire again"));
+    private void recordContention(String key, long waited, boolean timedOut, boolean heldElsewhere) {
+        _contendedAcquisitions.incrementAndGet();
+        if (timedOut) {
+            _timedOutAcquisitions.incrementAndGet();
+        }
+        synchronized (_contention) {
+            Contention contention = _contention.get(key);
+            if (contention == null) {
+                contention = new Contention();
+                _contention.put(key, contention);
             }
-            if (rows == 1) {
-                incrCount();
-                return true;
+            contention.contended++;
+            if (timedOut) {
+                contention.timeouts++;
             }
-            return false;
-        } catch (Exception e) {
-            s_logger.error("increment:Exception:"+e.getMessage());
-            throw new CloudRuntimeException("increment:Exception:"+e.getMessage(), e);
+            if (heldElsewhere) {
+                contention.heldElsewhere++;
+            }
+            contention.waitMillis += waited;
+            contention.maxWaitMillis = Math.max(contention.maxWaitMillis, waited);
         }
     }
 
     protected boolean doAcquire(String key, String threadName, int threadId) {
-        long startTime = InaccurateClock.getTime();
-        try(PreparedStatement pstmt = _concierge.conn().prepareStatement(ACQUIRE_SQL);) {
-            pstmt.setString(1, key);
-            pstmt.setLong(2, _msId);
-            pstmt.setString(3, threadName);
-            pstmt.setInt(4, threadId);
-            pstmt.setString(5, DateUtil.getDateDisplayString(_gmtTimeZone, new Date()));
-            try {
-                int rows = pstmt.executeUpdate();
-                if (rows == 1) {
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace("Acquired for lck-" + key);
+        long startTime = System.currentTimeMillis();
+        Connection conn = conn(key);
+        try {
+            synchronized (conn) {
+                try (PreparedStatement pstmt = conn.prepareStatement(ACQUIRE_SQL);) {
+                    pstmt.setString(1, key);
+                    pstmt.setLong(2, _msId);
+                    pstmt.setString(3, threadName);
+                    pstmt.setInt(4, threadId);
+                    pstmt.setString(5, DateUtil.getDateDisplayString(_gmtTimeZone, new Date()));
+                    _dbStatements.incrementAndGet();
+                    try {
+                        int rows = pstmt.executeUpdate();
+                        if (rows == 1) {
+                            if (s_logger.isTraceEnabled()) {
+                                s_logger.trace("Acquired for lck-" + key);
+                            }
+                            return true;
+                        }
+                    } catch (SQLException e) {
+                        if (!(e.getSQLState().equals("23000") && e.getErrorCode() == 1062)) {
+                            throw new CloudRuntimeException("Unable to lock " + key + ".  Waited " + (System.currentTimeMillis() - startTime), e);
+                        }
                     }
-                    incrCount();
-                    return true;
-                }
-            } catch (SQLException e) {
-                if (!(e.getSQLState().equals("23000") && e.getErrorCode() == 1062)) {
-                    throw new CloudRuntimeException("Unable to lock " + key + ".  Waited " + (InaccurateClock.getTime() - startTime), e);
                 }
             }
         } catch (SQLException e) {
             s_logger.error("doAcquire:Exception:"+e.getMessage());
-            throw new CloudRuntimeException("Unable to lock " + key + ".  Waited " + (InaccurateClock.getTime() - startTime), e);
+            throw new CloudRuntimeException("Unable to lock " + key + ".  Waited " + (System.currentTimeMillis() - startTime), e);
         }
 
         s_logger.trace("Unable to acquire lck-" + key);
         return false;
     }
 
+    protected boolean doRelease(String key, String threadName, int threadId) {
+        Connection conn = conn(key);
+        try {
+            synchronized (conn) {
+                try (PreparedStatement pstmt = conn.prepareStatement(RELEASE_SQL);) {
+                    pstmt.setString(1, key);
+                    pstmt.setLong(2, _msId);
+                    pstmt.setString(3, threadName);
+                    pstmt.setInt(4, threadId);
+                    _dbStatements.incrementAndGet();
+                    return pstmt.executeUpdate() == 1;
+                }
+            }
+        } catch (SQLException e) {
+            s_logger.error("release:Exception:"+ e.getMessage());
+            throw new CloudRuntimeException("release:Exception:"+ e.getMessage(), e);
+        }
+    }
+
+    protected long doIncrementFencingToken(String key) {
+        Connection conn = conn(key);
+        try {
+            synchronized (conn) {
+                try (PreparedStatement pstmt = conn.prepareStatement(INCREMENT_FENCING_TOKEN_SQL);) {
+                    pstmt.setString(1, key);
+                    pstmt.executeUpdate();
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(SELECT_FENCING_TOKEN_SQL);) {
+                    pstmt.setString(1, key);
+                    _dbStatements.addAndGet(2);
+                    try (ResultSet rs = pstmt.executeQuery();) {
+                        if (rs.next()) {
+                            return rs.getLong(1);
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            s_logger.error("doIncrementFencingToken:Exception:" + e.getMessage());
+            throw new CloudRuntimeException("Unable to get a fencing token for lck-" + key, e);
+        }
+        throw new CloudRuntimeException("Unable to get a fencing token for lck-" + key);
+    }
+
     protected Map<String, String> isLocked(String key) {
-        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(INQUIRE_SQL);){
-            pstmt.setString(1, key);
-            try(ResultSet rs = pstmt.executeQuery();)
-            {
-                if (!rs.next()) {
-                    return null;
+        Connection conn = conn(key);
+        try {
+            synchronized (conn) {
+                try (PreparedStatement pstmt = conn.prepareStatement(INQUIRE_SQL);) {
+                    pstmt.setString(1, key);
+                    _dbStatements.incrementAndGet();
+                    try (ResultSet rs = pstmt.executeQuery();) {
+                        if (!rs.next()) {
+                            return null;
+                        }
+                        return toLock(rs);
+                    }
                 }
-                return toLock(rs);
-            }catch (SQLException e) {
-                s_logger.error("isLocked:Exception:"+e.getMessage());
-                throw new CloudRuntimeException("isLocked:Exception:"+e.getMessage(), e);
             }
         } catch (SQLException e) {
             s_logger.error("isLocked:Exception:"+e.getMessage());
@@ -232,15 +474,13 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     @Override
     public void cleanupForServer(long msId) {
         s_logger.info("Cleaning up locks for " + msId);
+        Connection conn = conn();
         try {
-            synchronized (_concierge.conn()) {
-                try(PreparedStatement pstmt = _concierge.conn().prepareStatement(CLEANUP_MGMT_LOCKS_SQL);) {
+            synchronized (conn) {
+                try(PreparedStatement pstmt = conn.prepareStatement(CLEANUP_MGMT_LOCKS_SQL);) {
                     pstmt.setLong(1, msId);
                     int rows = pstmt.executeUpdate();
                     s_logger.info("Released " + rows + " locks for " + msId);
-                }catch (Exception e) {
-                    s_logger.error("cleanupForServer:Exception:"+e.getMessage());
-                    throw new CloudRuntimeException("cleanupForServer:Exception:"+e.getMessage(), e);
                 }
             }
         } catch (Exception e) {
@@ -253,41 +493,70 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
         int threadId = System.identityHashCode(th);
-        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(DECREMENT_SQL);)
-        {
-            pstmt.setString(1, key);
-            pstmt.setLong(2, _msId);
-            pstmt.setString(3, threadName);
-            pstmt.setLong(4, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (rows <= 1) : "hmmm....keys not unique? " + pstmt;
-
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("lck-" + key + " released");
+
+        LocalLock lock = _locks.get(key);
+        if (lock != null) {
+            synchronized (lock) {
+                if (lock.owner == th) {
+                    decrCount();
+                    if (--lock.count > 0) {
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("lck-" + key + " released");
+                        }
+                        return true;
+                    }
+
+                    try {
+                        if (doRelease(key, threadName, threadId)) {
+                            if (s_logger.isTraceEnabled()) {
+                                s_logger.trace("lck-" + key + " removed");
+                            }
+                        } else {
+                            s_logger.warn("lck-" + key + " was already removed from the database, it was released from JMX or cleaned up for this server");
+                        }
+                    } finally {
+                        freeLocalLock(lock);
+                    }
+                    return true;
+                }
             }
-            if (rows == 1) {
-                try (PreparedStatement rel_sql_pstmt = _concierge.conn().prepareStatement(RELEASE_SQL);) {
-                    rel_sql_pstmt.setString(1, key);
-                    rel_sql_pstmt.setLong(2, _msId);
-                    int result = rel_sql_pstmt.executeUpdate();
-                    if (result == 1 && s_logger.isTraceEnabled()) {
-                        s_logger.trace("lck-" + key + " removed");
+        }
+
+        String msg = ("Was unable to find lock for the key " + key + " and thread id " + threadId);
+        Exception e = new CloudRuntimeException(msg);
+        s_logger.warn(msg, e);
+        return false;
+    }
+
+    /**
+     * Clears the owner of a lock and wakes the next local waiter, the caller holds the monitor of the lock.
+     */
+    private void freeLocalLock(LocalLock lock) {
+        lock.owner = null;
+        lock.count = 0;
+        lock.token = 0;
+        lock.notify();
+        unuseLocalLock(lock);
+    }
+
+    /**
+     * Returns the fencing token of the calling thread's hold of a lock. The token of a lock grows with every hold
+     * it is asked for, on any management server, so a resource that remembers the last token it saw can reject
+     * the writes of a holder that lost the lock, e.g. after its management server was taken for dead.
+     */
+    public long getFencingToken(String key) {
+        LocalLock lock = _locks.get(key);
+        if (lock != null) {
+            synchronized (lock) {
+                if (lock.owner == Thread.currentThread()) {
+                    if (lock.token == 0) {
+                        lock.token = doIncrementFencingToken(key);
                     }
-                    decrCount();
-                }catch (Exception e) {
-                    s_logger.error("release:Exception:"+ e.getMessage());
-                    throw new CloudRuntimeException("release:Exception:"+ e.getMessage(), e);
+                    return lock.token;
                 }
-            } else if (rows < 1) {
-                String msg = ("Was unable to find lock for the key " + key + " and thread id " + threadId);
-                Exception e = new CloudRuntimeException(msg);
-                s_logger.warn(msg, e);
             }
-            return rows == 1;
-        } catch (Exception e) {
-            s_logger.error("release:Exception:"+ e.getMessage());
-            throw new CloudRuntimeException("release:Exception:"+ e.getMessage(), e);
         }
+        throw new CloudRuntimeException("lck-" + key + " is not held by thread " + Thread.currentThread().getName());
     }
 
     protected Map<String, String> toLock(ResultSet rs) throws SQLException {
@@ -311,19 +580,19 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
     protected List<Map<String, String>> getLocks(String sql, Long msId) {
-        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(sql);)
-        {
-            if (msId != null) {
-                pstmt.setLong(1, msId);
-            }
-            try(ResultSet rs = pstmt.executeQuery();)
-            {
-                return toLocks(rs);
-            }catch (Exception e) {
-                s_logger.error("getLocks:Exception:"+e.getMessage());
-                throw new CloudRuntimeException("getLocks:Exception:"+e.getMessage(), e);
+        Connection conn = conn();
+        try {
+            synchronized (conn) {
+                try (PreparedStatement pstmt = conn.prepareStatement(sql);) {
+                    if (msId != null) {
+                        pstmt.setLong(1, msId);
+                    }
+                    try (ResultSet rs = pstmt.executeQuery();) {
+                        return toLocks(rs);
+                    }
+                }
             }
-       } catch (Exception e) {
+        } catch (Exception e) {
             s_logger.error("getLocks:Exception:"+e.getMessage());
             throw new CloudRuntimeException("getLocks:Exception:"+e.getMessage(), e);
         }
@@ -342,6 +611,18 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     public int owns(String key) {
         Thread th = Thread.currentThread();
         int threadId = System.identityHashCode(th);
+
+        LocalLock lock = _locks.get(key);
+        if (lock != null) {
+            synchronized (lock) {
+                if (lock.owner == th) {
+                    return lock.count;
+                } else if (lock.owner != null) {
+                    return -1;
+                }
+            }
+        }
+
         Map<String, String> owner = isLocked(key);
         if (owner == null) {
             return 0;
@@ -353,15 +634,16 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
     public List<Map<String, String>> getLocksAcquiredBy(long msId, String threadName) {
-        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(SELECT_THREAD_LOCKS_SQL);){
-            pstmt.setLong(1, msId);
-            pstmt.setString(2, threadName);
-            try (ResultSet rs =pstmt.executeQuery();) {
-                return toLocks(rs);
-            }
-            catch (Exception e) {
-                s_logger.error("getLocksAcquiredBy:Exception:"+e.getMessage());
-                throw new CloudRuntimeException("Can't get locks " + pstmt, e);
+        Connection conn = conn();
+        try {
+            synchronized (conn) {
+                try (PreparedStatement pstmt = conn.prepareStatement(SELECT_THREAD_LOCKS_SQL);) {
+                    pstmt.setLong(1, msId);
+                    pstmt.setString(2, threadName);
+                    try (ResultSet rs = pstmt.executeQuery();) {
+                        return toLocks(rs);
+                    }
+                }
             }
         } catch (Exception e) {
             s_logger.error("getLocksAcquiredBy:Exception:"+e.getMessage());
@@ -381,35 +663,170 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
         int threadId = System.identityHashCode(th);
-        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(CLEANUP_THREAD_LOCKS_SQL);)
-        {
-            pstmt.setLong(1, _msId);
-            pstmt.setString(2, threadName);
-            pstmt.setInt(3, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c +
-            " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
+        int rows = 0;
+        Connection conn = conn();
+        try {
+            synchronized (conn) {
+                try (PreparedStatement pstmt = conn.prepareStatement(CLEANUP_THREAD_LOCKS_SQL);) {
+                    pstmt.setLong(1, _msId);
+                    pstmt.setString(2, threadName);
+                    pstmt.setInt(3, threadId);
+                    rows = pstmt.executeUpdate();
+                }
+            }
         } catch (Exception e) {
             s_logger.error("cleanupThread:Exception:" +  e.getMessage());
             throw new CloudRuntimeException("cleanupThread:Exception:" +  e.getMessage(), e);
+        } finally {
+            for (LocalLock lock : _locks.values()) {
+                synchronized (lock) {
+                    if (lock.owner == th) {
+                        freeLocalLock(lock);
+                    }
+                }
+            }
         }
+        assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c +
+        " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
     }
 
     @Override
     public boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key) {
         s_logger.info("Releasing a lock from JMX lck-" + key);
-        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);)
-        {
-            pstmt.setString(1, key);
-            int rows = pstmt.executeUpdate();
-            return rows > 0;
+        Connection conn = conn(key);
+        try {
+            synchronized (conn) {
+                try (PreparedStatement pstmt = conn.prepareStatement(RELEASE_LOCK_SQL);) {
+                    pstmt.setString(1, key);
+                    int rows = pstmt.executeUpdate();
+                    return rows > 0;
+                }
+            }
         } catch (Exception e) {
             s_logger.error("releaseLockAsLastResortAndIReallyKnowWhatIAmDoing : Exception: " +  e.getMessage());
             return  false;
         }
     }
 
+    @Override
+    public int getConnections() {
+        return _concierges.length;
+    }
+
+    @Override
+    public long getAcquisitions() {
+        return _acquisitions.get();
+    }
+
+    @Override
+    public long getReentrantAcquisitions() {
+        return _reentrantAcquisitions.get();
+    }
+
+    @Override
+    public long getContendedAcquisitions() {
+        return _contendedAcquisitions.get();
+    }
+
+    @Override
+    public long getTimedOutAcquisitions() {
+        return _timedOutAcquisitions.get();
+    }
+
+    @Override
+    public long getDatabaseStatements() {
+        return _dbStatements.get();
+    }
+
+    @Override
+    public int getLocalWaiters() {
+        int waiters = 0;
+        for (LocalLock lock : _locks.values()) {
+            synchronized (lock) {
+                waiters += lock.waiters;
+            }
+        }
+        return waiters;
+    }
+
+    @Override
+    public List<Map<String, String>> getLockContention() {
+        List<Map.Entry<String, Contention>> entries = new ArrayList<Map.Entry<String, Contention>>();
+        synchronized (_contention) {
+            for (Map.Entry<String, Contention> entry : _contention.entrySet()) {
+                Contention copy = new Contention();
+                copy.add(entry.getValue());
+                entries.add(new AbstractMap.SimpleEntry<String, Contention>(entry.getKey(), copy));
+            }
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Contention>>() {
+            @Override
+            public int compare(Map.Entry<String, Contention> e1, Map.Entry<String, Contention> e2) {
+                return Long.compare(e2.getValue().waitMillis, e1.getValue().waitMillis);
+            }
+        });
+
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>(entries.size());
+        for (Map.Entry<String, Contention> entry : entries) {
+            Contention contention = entry.getValue();
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("key", entry.getKey());
+            map.put("contended", Long.toString(contention.contended));
+            map.put("timeouts", Long.toString(contention.timeouts));
+            map.put("heldElsewhere", Long.toString(contention.heldElsewhere));
+            map.put("waitMillis", Long.toString(contention.waitMillis));
+            map.put("maxWaitMillis", Long.toString(contention.maxWaitMillis));
+            map.put("averageWaitMillis", Long.toString(contention.waitMillis / contention.contended));
+            results.add(map);
+        }
+        return results;
+    }
+
+    @Override
+    public void resetLockContention() {
+        synchronized (_contention) {
+            _contention.clear();
+        }
+    }
+
     protected static class Count {
         public int count = 0;
     }
+
+    /**
+     * What this management server knows of a lock, kept while a local thread holds it or waits for it.
+     */
+    protected static class LocalLock {
+        final String key;
+        Thread owner;
+        int count;
+        // the local thread asking the database for the lock
+        Thread acquirer;
+        int waiters;
+        // the owner, the acquirer and the waiters
+        int users;
+        boolean removed;
+        long token;
+
+        LocalLock(String key) {
+            this.key = key;
+        }
+    }
+
+    protected static class Contention {
+        long contended;
+        long timeouts;
+        // how many of the waits were for a lock held by another management server
+        long heldElsewhere;
+        long waitMillis;
+        long maxWaitMillis;
+
+        void add(Contention other) {
+            contended += other.contended;
+            timeouts += other.timeouts;
+            heldElsewhere += other.heldElsewhere;
+            waitMillis += other.waitMillis;
+            maxWaitMillis = Math.max(maxWaitMillis, other.maxWaitMillis);
+        }
+    }
 }
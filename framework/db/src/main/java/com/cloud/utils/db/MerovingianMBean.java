@@ -28,4 +28,25 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
 
     void cleanupForServer(long msId);
+
+    int getConnections();
+
+    long getAcquisitions();
+
+    long getReentrantAcquisitions();
+
+    long getContendedAcquisitions();
+
+    long getTimedOutAcquisitions();
+
+    long getDatabaseStatements();
+
+    int getLocalWaiters();
+
+    /**
+     * @return the locks threads had to wait for, the ones waited for the longest first
+     */
+    List<Map<String, String>> getLockContention();
+
+    void resetLockContention();
 }
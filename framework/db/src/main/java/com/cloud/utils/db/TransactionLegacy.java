@@ -393,6 +393,14 @@ public class TransactionLegacy implements Closeable {
         return lockMaster.release(name);
     }
 
+    public long getFencingToken(final String name) {
+        Merovingian2 lockMaster = Merovingian2.getLockMaster();
+        if (lockMaster == null) {
+            throw new CloudRuntimeException("There's no support for locking yet");
+        }
+        return lockMaster.getFencingToken(name);
+    }
+
     /**
      * @deprecated Use {@link Transaction} for new code
      */
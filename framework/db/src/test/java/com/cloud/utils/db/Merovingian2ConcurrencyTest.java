@@ -0,0 +1,309 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class Merovingian2ConcurrencyTest {
+
+    /**
+     * The op_lock and op_lock_fencing_token tables shared by the management servers of a test.
+     */
+    static class LockTables {
+        final ConcurrentHashMap<String, String> locks = new ConcurrentHashMap<String, String>();
+        final ConcurrentHashMap<String, AtomicLong> tokens = new ConcurrentHashMap<String, AtomicLong>();
+    }
+
+    /**
+     * A lock master whose statements go to the shared tables, taking about as long as a round trip to the database.
+     */
+    static class LockMaster extends Merovingian2 {
+        final long msId;
+        final LockTables tables;
+        final AtomicInteger acquireStatements = new AtomicInteger();
+        final ConcurrentHashMap<String, AtomicInteger> asking = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger maxAsking = new AtomicInteger();
+
+        LockMaster(long msId, LockTables tables) {
+            super(msId, new ConnectionConcierge[1]);
+            this.msId = msId;
+            this.tables = tables;
+        }
+
+        private String owner(String threadName, int threadId) {
+            return msId + "/" + threadName + "/" + threadId;
+        }
+
+        private static void roundTrip() {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        protected boolean doAcquire(String key, String threadName, int threadId) {
+            acquireStatements.incrementAndGet();
+            asking.putIfAbsent(key, new AtomicInteger());
+            AtomicInteger askingForKey = asking.get(key);
+            int count = askingForKey.incrementAndGet();
+            try {
+                int max = maxAsking.get();
+                while (count > max && !maxAsking.compareAndSet(max, count)) {
+                    max = maxAsking.get();
+                }
+                roundTrip();
+                return tables.locks.putIfAbsent(key, owner(threadName, threadId)) == null;
+            } finally {
+                askingForKey.decrementAndGet();
+            }
+        }
+
+        @Override
+        protected boolean doRelease(String key, String threadName, int threadId) {
+            roundTrip();
+            return tables.locks.remove(key, owner(threadName, threadId));
+        }
+
+        @Override
+        protected long doIncrementFencingToken(String key) {
+            roundTrip();
+            tables.tokens.putIfAbsent(key, new AtomicLong());
+            return tables.tokens.get(key).incrementAndGet();
+        }
+
+        @Override
+        protected Map<String, String> isLocked(String key) {
+            String owner = tables.locks.get(key);
+            if (owner == null) {
+                return null;
+            }
+            String[] parts = owner.split("/");
+            Map<String, String> lock = new HashMap<String, String>();
+            lock.put("key", key);
+            lock.put("mgmt", parts[0]);
+            lock.put("name", parts[1]);
+            lock.put("tid", parts[2]);
+            lock.put("count", "1");
+            return lock;
+        }
+    }
+
+    private static Map<String, String> contention(LockMaster lockMaster, String key) {
+        for (Map<String, String> contention : lockMaster.getLockContention()) {
+            if (key.equals(contention.get("key"))) {
+                return contention;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testReentranceStaysLocal() {
+        LockTables tables = new LockTables();
+        LockMaster lockMaster = new LockMaster(1, tables);
+
+        assertTrue(lockMaster.acquire("first", 5));
+        assertTrue(lockMaster.acquire("first", 5));
+        assertEquals(2, lockMaster.owns("first"));
+        assertEquals(1, lockMaster.acquireStatements.get());
+
+        assertTrue(lockMaster.release("first"));
+        assertEquals(1, lockMaster.owns("first"));
+        assertTrue(tables.locks.containsKey("first"));
+
+        assertTrue(lockMaster.release("first"));
+        assertEquals(0, lockMaster.owns("first"));
+        assertFalse(tables.locks.containsKey("first"));
+        assertFalse(lockMaster.release("first"));
+
+        assertEquals(1, lockMaster.getAcquisitions());
+        assertEquals(1, lockMaster.getReentrantAcquisitions());
+        assertEquals(0, lockMaster.getContendedAcquisitions());
+    }
+
+    @Test
+    public void testMutualExclusionAcrossServers() throws Exception {
+        final LockTables tables = new LockTables();
+        final LockMaster[] lockMasters = new LockMaster[] {new LockMaster(1, tables), new LockMaster(2, tables)};
+        final int threadsPerServer = 8;
+        final int iterations = 50;
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final int[] counter = new int[1];
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[threadsPerServer * lockMasters.length];
+        for (int i = 0; i < threads.length; i++) {
+            final LockMaster lockMaster = lockMasters[i % lockMasters.length];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < iterations; j++) {
+                            if (!lockMaster.acquire("job-queue", 60)) {
+                                failures.incrementAndGet();
+                                continue;
+                            }
+                            try {
+                                if (inside.incrementAndGet() != 1) {
+                                    overlaps.incrementAndGet();
+                                }
+                                // re-entered by the holder, as nested DAO calls do
+                                assertTrue(lockMaster.acquire("job-queue", 60));
+                                counter[0]++;
+                                lockMaster.release("job-queue");
+                                inside.decrementAndGet();
+                            } finally {
+                                lockMaster.release("job-queue");
+                            }
+                        }
+                    } catch (Throwable th) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }, "Lock worker-" + i);
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.MINUTES.toMillis(2));
+            assertFalse(thread.isAlive());
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(0, overlaps.get());
+        assertEquals(threads.length * iterations, counter[0]);
+        assertTrue(tables.locks.isEmpty());
+        for (LockMaster lockMaster : lockMasters) {
+            // the other local threads waited for the one asking the database
+            assertEquals(1, lockMaster.maxAsking.get());
+            assertEquals(threadsPerServer * iterations, lockMaster.getAcquisitions());
+            assertTrue(lockMaster.getContendedAcquisitions() > 0);
+            assertEquals(0, lockMaster.getLocalWaiters());
+            assertEquals(0, lockMaster.getTimedOutAcquisitions());
+        }
+    }
+
+    @Test
+    public void testLocalWaiterIsWokenOnRelease() throws Exception {
+        LockTables tables = new LockTables();
+        final LockMaster lockMaster = new LockMaster(1, tables);
+        final AtomicLong acquiredAt = new AtomicLong();
+
+        assertTrue(lockMaster.acquire("vm-1", 5));
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (lockMaster.acquire("vm-1", 30)) {
+                    acquiredAt.set(System.currentTimeMillis());
+                    lockMaster.release("vm-1");
+                }
+            }
+        });
+        waiter.start();
+        while (lockMaster.getLocalWaiters() == 0) {
+            Thread.sleep(10);
+        }
+        // the waiter does not poll the database while the lock is held here
+        Thread.sleep(300);
+        assertEquals(1, lockMaster.acquireStatements.get());
+
+        long releasedAt = System.currentTimeMillis();
+        assertTrue(lockMaster.release("vm-1"));
+        waiter.join(10000);
+        assertTrue(acquiredAt.get() > 0);
+        assertTrue(acquiredAt.get() - releasedAt < 500);
+        assertEquals(2, lockMaster.acquireStatements.get());
+
+        Map<String, String> contention = contention(lockMaster, "vm-1");
+        assertEquals("1", contention.get("contended"));
+        assertEquals("0", contention.get("heldElsewhere"));
+        assertTrue(Long.parseLong(contention.get("waitMillis")) >= 300);
+    }
+
+    @Test
+    public void testTimeoutOnLockHeldElsewhere() {
+        LockTables tables = new LockTables();
+        LockMaster first = new LockMaster(1, tables);
+        LockMaster second = new LockMaster(2, tables);
+
+        assertTrue(first.acquire("vm-2", 5));
+        assertEquals(-1, second.owns("vm-2"));
+        assertFalse(second.acquire("vm-2", 1));
+        assertEquals(1, second.getTimedOutAcquisitions());
+        // polled with a growing interval, not on every round trip
+        assertTrue(second.acquireStatements.get() < 10);
+
+        List<Map<String, String>> contention = second.getLockContention();
+        assertEquals(1, contention.size());
+        assertEquals("1", contention.get(0).get("timeouts"));
+        assertEquals("1", contention.get(0).get("heldElsewhere"));
+
+        second.resetLockContention();
+        assertTrue(second.getLockContention().isEmpty());
+
+        assertTrue(first.release("vm-2"));
+        assertTrue(second.acquire("vm-2", 1));
+        assertTrue(second.release("vm-2"));
+    }
+
+    @Test
+    public void testFencingTokensGrowWithEveryHold() {
+        LockTables tables = new LockTables();
+        LockMaster first = new LockMaster(1, tables);
+        LockMaster second = new LockMaster(2, tables);
+
+        assertTrue(first.acquire("volume-3", 5));
+        long token = first.getFencingToken("volume-3");
+        assertTrue(first.acquire("volume-3", 5));
+        assertEquals(token, first.getFencingToken("volume-3"));
+        first.release("volume-3");
+        first.release("volume-3");
+
+        assertTrue(second.acquire("volume-3", 5));
+        long next = second.getFencingToken("volume-3");
+        assertTrue(next > token);
+        second.release("volume-3");
+
+        try {
+            second.getFencingToken("volume-3");
+            fail("a token was handed out for a lock that is not held");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+    }
+}
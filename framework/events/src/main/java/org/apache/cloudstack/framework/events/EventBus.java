@@ -19,6 +19,7 @@
 
 package org.apache.cloudstack.framework.events;
 
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -34,6 +35,15 @@ public interface EventBus {
      */
     void publish(Event event) throws EventBusException;
 
+    /**
+     * publish a batch of events on to the event bus, in the given order. Either all events
+     * are accepted by the bus or an exception is thrown, in which case the caller may publish
+     * the whole batch again.
+     *
+     * @param events events that need to be published on the event bus
+     */
+    void publish(List<Event> events) throws EventBusException;
+
     /**
      * subscribe to events that matches specified event topics
      *
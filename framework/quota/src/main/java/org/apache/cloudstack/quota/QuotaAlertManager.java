@@ -19,8 +19,10 @@ package org.apache.cloudstack.quota;
 import com.cloud.utils.component.Manager;
 
 import org.apache.cloudstack.quota.QuotaAlertManagerImpl.DeferredQuotaEmail;
+import org.apache.cloudstack.quota.vo.QuotaAccountVO;
 
 public interface QuotaAlertManager extends Manager {
     void checkAndSendQuotaAlertEmails();
+    void checkAndSendQuotaAlertEmails(QuotaAccountVO quotaAccount);
     void sendQuotaAlert(DeferredQuotaEmail emailToBeSent);
 }
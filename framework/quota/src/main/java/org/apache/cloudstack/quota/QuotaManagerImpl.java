@@ -23,11 +23,17 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.quota.constant.QuotaConfig;
 import org.apache.cloudstack.quota.constant.QuotaTypes;
 import org.apache.cloudstack.quota.dao.QuotaAccountDao;
 import org.apache.cloudstack.quota.dao.QuotaBalanceDao;
@@ -47,8 +53,14 @@ import com.cloud.usage.UsageVO;
 import com.cloud.usage.dao.UsageDao;
 import com.cloud.user.AccountVO;
 import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.db.TransactionCallback;
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.db.TransactionStatus;
 
 @Component
 public class QuotaManagerImpl extends ManagerBase implements QuotaManager {
@@ -70,9 +82,16 @@ public class QuotaManagerImpl extends ManagerBase implements QuotaManager {
     private QuotaBalanceDao _quotaBalanceDao;
     @Inject
     private ConfigurationDao _configDao;
+    @Inject
+    private QuotaAlertManager _alertManager;
 
     private TimeZone _usageTimezone;
     private int _aggregationDuration = 0;
+    private int _quotaWorkers = 4;
+
+    // tariffs looked up during the current calculation pass, keyed by usage type and effective date
+    private final Map<String, QuotaTariffVO> _tariffCache = new ConcurrentHashMap<String, QuotaTariffVO>();
+    private static final QuotaTariffVO s_noTariff = new QuotaTariffVO();
 
     final static BigDecimal s_hoursInMonth = new BigDecimal(30 * 24);
     final static BigDecimal s_minutesInMonth = new BigDecimal(30 * 24 * 60);
@@ -111,7 +130,8 @@ public class QuotaManagerImpl extends ManagerBase implements QuotaManager {
             s_logger.warn("Usage stats job aggregation range is to small, using the minimum value of " + UsageUtils.USAGE_AGGREGATION_RANGE_MIN);
             _aggregationDuration = UsageUtils.USAGE_AGGREGATION_RANGE_MIN;
         }
-        s_logger.info("Usage timezone = " + _usageTimezone + " AggregationDuration=" + _aggregationDuration);
+        _quotaWorkers = Math.max(1, NumbersUtil.parseInt(configs.get(QuotaConfig.QuotaUsageWorkers.key()), _quotaWorkers));
+        s_logger.info("Usage timezone = " + _usageTimezone + " AggregationDuration=" + _aggregationDuration + " QuotaWorkers=" + _quotaWorkers);
 
         return true;
     }
@@ -315,26 +335,217 @@ public class QuotaManagerImpl extends ManagerBase implements QuotaManager {
         return aggrUsage;
     }
 
+    /**
+     * Converts the usage records not yet accounted for into quota usage and moves the running
+     * balance of their accounts forward. Only accounts with pending records are visited, each
+     * starting from the balance and balance date kept in its quota account, so a pass costs
+     * in proportion to the new records rather than to the account history. Accounts are
+     * processed in parallel and alerts are checked as soon as an account is balanced.
+     */
     @Override
     public boolean calculateQuotaUsage() {
-        List<AccountVO> accounts = _accountDao.listAll();
-        for (AccountVO account : accounts) {
-            Pair<List<? extends UsageVO>, Integer> usageRecords = _usageDao.getUsageRecordsPendingQuotaAggregation(account.getAccountId(), account.getDomainId());
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Usage entries size = " + usageRecords.second().intValue() + ", accId" + account.getAccountId() + ", domId" + account.getDomainId());
+        _tariffCache.clear();
+        final List<Long> accountIds = _usageDao.listAccountsPendingQuotaAggregation();
+        if (accountIds == null || accountIds.isEmpty()) {
+            return true;
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Accounts with usage records pending quota aggregation = " + accountIds.size());
+        }
+        final BigDecimal aggregationRatio = new BigDecimal(_aggregationDuration).divide(s_minutesInMonth, 8, RoundingMode.HALF_EVEN);
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(_quotaWorkers, accountIds.size()), new NamedThreadFactory("Quota-Usage"));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(accountIds.size());
+            for (final Long accountId : accountIds) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+                        try {
+                            AccountVO account = _accountDao.findById(accountId);
+                            if (account != null) {
+                                processPendingUsageForAccount(account, aggregationRatio);
+                            }
+                        } finally {
+                            txn.close();
+                        }
+                    }
+                }));
             }
-            List<QuotaUsageVO> quotaListForAccount = aggregatePendingQuotaRecordsForAccount(account, usageRecords);
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Quota entries size = " + quotaListForAccount.size() + ", accId" + account.getAccountId() + ", domId" + account.getDomainId());
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    s_logger.error("Failed to calculate quota usage of an account", e.getCause());
+                }
             }
-            processQuotaBalanceForAccount(account, quotaListForAccount);
+        } catch (InterruptedException e) {
+            s_logger.warn("Interrupted while calculating quota usage");
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdownNow();
         }
         return true;
     }
 
+    /**
+     * Rates the pending usage records of one account and, in a single transaction, stores the
+     * quota usage, flags the records as calculated and updates the running balance.
+     */
+    public void processPendingUsageForAccount(final AccountVO account, final BigDecimal aggregationRatio) {
+        final Pair<List<? extends UsageVO>, Integer> usageRecords = _usageDao.getUsageRecordsPendingQuotaAggregation(account.getAccountId(), account.getDomainId());
+        if (usageRecords == null || usageRecords.first() == null || usageRecords.first().isEmpty()) {
+            return;
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Usage entries size = " + usageRecords.first().size() + ", accId" + account.getAccountId() + ", domId" + account.getDomainId());
+        }
+        final List<QuotaUsageVO> quotaListForAccount = new ArrayList<QuotaUsageVO>();
+        final List<Long> usageIds = new ArrayList<Long>(usageRecords.first().size());
+        for (UsageVO usageRecord : usageRecords.first()) {
+            quotaListForAccount.addAll(getQuotaUsage(usageRecord, aggregationRatio));
+            usageIds.add(usageRecord.getId());
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Quota entries size = " + quotaListForAccount.size() + ", accId" + account.getAccountId() + ", domId" + account.getDomainId());
+        }
+
+        QuotaAccountVO quotaAccount = Transaction.execute(TransactionLegacy.USAGE_DB, new TransactionCallback<QuotaAccountVO>() {
+            @Override
+            public QuotaAccountVO doInTransaction(final TransactionStatus status) {
+                for (QuotaUsageVO quotaUsage : quotaListForAccount) {
+                    _quotaUsageDao.persistQuotaUsage(quotaUsage);
+                }
+                _usageDao.markQuotaCalculated(usageIds);
+                return updateQuotaBalance(account, quotaListForAccount);
+            }
+        });
+
+        if (quotaAccount != null) {
+            _alertManager.checkAndSendQuotaAlertEmails(quotaAccount);
+        }
+    }
+
+    /**
+     * Applies the quota usage entries, ordered by start date, to the running balance of the
+     * account. Credits deposited after the balance date are added as the entries move past
+     * them and a balance entry is saved for every aggregation window. Accounts without a
+     * running balance yet are bootstrapped from the balance history.
+     *
+     * @return the updated quota account, null if there was nothing to balance
+     */
+    protected QuotaAccountVO updateQuotaBalance(final AccountVO account, final List<QuotaUsageVO> quotaListForAccount) {
+        if (quotaListForAccount.isEmpty()) {
+            return null;
+        }
+        QuotaAccountVO quotaAccount = _quotaAcc.findByIdQuotaAccount(account.getAccountId());
+        if (quotaAccount == null || quotaAccount.getQuotaBalance() == null || quotaAccount.getQuotaBalanceDate() == null) {
+            processQuotaBalanceForAccount(account, quotaListForAccount);
+            return _quotaAcc.findByIdQuotaAccount(account.getAccountId());
+        }
+
+        BigDecimal balance = quotaAccount.getQuotaBalance();
+        Date balanceDate = quotaAccount.getQuotaBalanceDate();
+        Date startDate = null;
+        Date endDate = null;
+        for (QuotaUsageVO entry : quotaListForAccount) {
+            if (startDate == null || startDate.compareTo(entry.getStartDate()) != 0) {
+                if (startDate != null) {
+                    saveQuotaBalance(account, balance, endDate);
+                }
+                startDate = entry.getStartDate();
+                endDate = entry.getEndDate();
+                if (endDate.after(balanceDate)) {
+                    // credits up to the balance date are already part of the balance
+                    balance = balance.add(aggregateCreditBetweenDates(account, new Date(balanceDate.getTime() + 1), endDate));
+                    balanceDate = endDate;
+                }
+            }
+            balance = balance.subtract(entry.getQuotaUsed());
+        }
+        saveQuotaBalance(account, balance, endDate);
+
+        quotaAccount.setQuotaBalance(balance);
+        quotaAccount.setQuotaBalanceDate(balanceDate);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(quotaAccount);
+        }
+        _quotaAcc.updateQuotaAccount(account.getAccountId(), quotaAccount);
+        return quotaAccount;
+    }
+
+    /**
+     * Rates a usage record without persisting anything.
+     */
+    protected List<QuotaUsageVO> getQuotaUsage(final UsageVO usageRecord, final BigDecimal aggregationRatio) {
+        List<QuotaUsageVO> quotaList = new ArrayList<QuotaUsageVO>();
+        QuotaUsageVO qu = null;
+        switch (usageRecord.getUsageType()) {
+        case QuotaTypes.RUNNING_VM:
+            quotaList.addAll(getQuotaRunningVMUsage(usageRecord, aggregationRatio));
+            break;
+        case QuotaTypes.ALLOCATED_VM:
+            qu = getQuotaAllocatedVMUsage(usageRecord, aggregationRatio);
+            break;
+        case QuotaTypes.SNAPSHOT:
+        case QuotaTypes.TEMPLATE:
+        case QuotaTypes.ISO:
+        case QuotaTypes.VOLUME:
+        case QuotaTypes.VM_SNAPSHOT:
+            qu = getQuotaDiskUsage(usageRecord, aggregationRatio, usageRecord.getUsageType());
+            break;
+        case QuotaTypes.LOAD_BALANCER_POLICY:
+        case QuotaTypes.PORT_FORWARDING_RULE:
+        case QuotaTypes.IP_ADDRESS:
+        case QuotaTypes.NETWORK_OFFERING:
+        case QuotaTypes.SECURITY_GROUP:
+        case QuotaTypes.VPN_USERS:
+            qu = getQuotaRaw(usageRecord, aggregationRatio, usageRecord.getUsageType());
+            break;
+        case QuotaTypes.NETWORK_BYTES_RECEIVED:
+        case QuotaTypes.NETWORK_BYTES_SENT:
+            qu = getQuotaNetwork(usageRecord, usageRecord.getUsageType());
+            break;
+        default:
+            break;
+        }
+        if (qu != null) {
+            quotaList.add(qu);
+        }
+        return quotaList;
+    }
+
+    /**
+     * Tariffs are effective per date, all records of an aggregation window share the same
+     * end date so a pass looks each tariff up once per window instead of once per record.
+     */
+    protected QuotaTariffVO findTariff(final int usageType, final Date onDate) {
+        if (onDate == null) {
+            return _quotaTariffDao.findTariffPlanByUsageType(usageType, onDate);
+        }
+        final String key = usageType + "@" + onDate.getTime();
+        QuotaTariffVO tariff = _tariffCache.get(key);
+        if (tariff == null) {
+            tariff = _quotaTariffDao.findTariffPlanByUsageType(usageType, onDate);
+            _tariffCache.put(key, tariff == null ? s_noTariff : tariff);
+        }
+        return tariff == s_noTariff ? null : tariff;
+    }
+
     public QuotaUsageVO updateQuotaDiskUsage(UsageVO usageRecord, final BigDecimal aggregationRatio, final int quotaType) {
+        QuotaUsageVO quota_usage = getQuotaDiskUsage(usageRecord, aggregationRatio, quotaType);
+        if (quota_usage != null) {
+            _quotaUsageDao.persistQuotaUsage(quota_usage);
+        }
+        usageRecord.setQuotaCalculated(1);
+        _usageDao.persistUsage(usageRecord);
+        return quota_usage;
+    }
+
+    protected QuotaUsageVO getQuotaDiskUsage(UsageVO usageRecord, final BigDecimal aggregationRatio, final int quotaType) {
         QuotaUsageVO quota_usage = null;
-        QuotaTariffVO tariff = _quotaTariffDao.findTariffPlanByUsageType(quotaType, usageRecord.getEndDate());
+        QuotaTariffVO tariff = findTariff(quotaType, usageRecord.getEndDate());
         if (tariff != null && tariff.getCurrencyValue().compareTo(BigDecimal.ZERO) != 0) {
             BigDecimal quotaUsgage;
             BigDecimal onehourcostpergb;
@@ -344,14 +555,21 @@ public class QuotaManagerImpl extends ManagerBase implements QuotaManager {
             quotaUsgage = new BigDecimal(usageRecord.getRawUsage()).multiply(onehourcostpergb).multiply(noofgbinuse);
             quota_usage = new QuotaUsageVO(usageRecord.getId(), usageRecord.getZoneId(), usageRecord.getAccountId(), usageRecord.getDomainId(), usageRecord.getUsageType(),
                     quotaUsgage, usageRecord.getStartDate(), usageRecord.getEndDate());
+        }
+        return quota_usage;
+    }
+
+    public List<QuotaUsageVO> updateQuotaRunningVMUsage(UsageVO usageRecord, final BigDecimal aggregationRatio) {
+        List<QuotaUsageVO> quotalist = getQuotaRunningVMUsage(usageRecord, aggregationRatio);
+        for (QuotaUsageVO quota_usage : quotalist) {
             _quotaUsageDao.persistQuotaUsage(quota_usage);
         }
         usageRecord.setQuotaCalculated(1);
         _usageDao.persistUsage(usageRecord);
-        return quota_usage;
+        return quotalist;
     }
 
-    public List<QuotaUsageVO> updateQuotaRunningVMUsage(UsageVO usageRecord, final BigDecimal aggregationRatio) {
+    protected List<QuotaUsageVO> getQuotaRunningVMUsage(UsageVO usageRecord, final BigDecimal aggregationRatio) {
         List<QuotaUsageVO> quotalist = new ArrayList<QuotaUsageVO>();
         QuotaUsageVO quota_usage;
         BigDecimal cpuquotausgage, speedquotausage, memoryquotausage, vmusage;
@@ -364,54 +582,57 @@ public class QuotaManagerImpl extends ManagerBase implements QuotaManager {
         }
         rawusage = new BigDecimal(usageRecord.getRawUsage());
 
-        QuotaTariffVO tariff = _quotaTariffDao.findTariffPlanByUsageType(QuotaTypes.CPU_NUMBER, usageRecord.getEndDate());
+        QuotaTariffVO tariff = findTariff(QuotaTypes.CPU_NUMBER, usageRecord.getEndDate());
         if (tariff != null && tariff.getCurrencyValue().compareTo(BigDecimal.ZERO) != 0 && serviceoffering.getCpu() != null) {
             BigDecimal cpu = new BigDecimal(serviceoffering.getCpu());
             onehourcostpercpu = tariff.getCurrencyValue().multiply(aggregationRatio);
             cpuquotausgage = rawusage.multiply(onehourcostpercpu).multiply(cpu);
             quota_usage = new QuotaUsageVO(usageRecord.getId(), usageRecord.getZoneId(), usageRecord.getAccountId(), usageRecord.getDomainId(), QuotaTypes.CPU_NUMBER,
                     cpuquotausgage, usageRecord.getStartDate(), usageRecord.getEndDate());
-            _quotaUsageDao.persistQuotaUsage(quota_usage);
             quotalist.add(quota_usage);
         }
-        tariff = _quotaTariffDao.findTariffPlanByUsageType(QuotaTypes.CPU_CLOCK_RATE, usageRecord.getEndDate());
+        tariff = findTariff(QuotaTypes.CPU_CLOCK_RATE, usageRecord.getEndDate());
         if (tariff != null && tariff.getCurrencyValue().compareTo(BigDecimal.ZERO) != 0 && serviceoffering.getSpeed() != null) {
             BigDecimal speed = new BigDecimal(serviceoffering.getSpeed() / 100.00);
             onehourcostper100mhz = tariff.getCurrencyValue().multiply(aggregationRatio);
             speedquotausage = rawusage.multiply(onehourcostper100mhz).multiply(speed);
             quota_usage = new QuotaUsageVO(usageRecord.getId(), usageRecord.getZoneId(), usageRecord.getAccountId(), usageRecord.getDomainId(), QuotaTypes.CPU_CLOCK_RATE,
                     speedquotausage, usageRecord.getStartDate(), usageRecord.getEndDate());
-            _quotaUsageDao.persistQuotaUsage(quota_usage);
             quotalist.add(quota_usage);
         }
-        tariff = _quotaTariffDao.findTariffPlanByUsageType(QuotaTypes.MEMORY, usageRecord.getEndDate());
+        tariff = findTariff(QuotaTypes.MEMORY, usageRecord.getEndDate());
         if (tariff != null && tariff.getCurrencyValue().compareTo(BigDecimal.ZERO) != 0 && serviceoffering.getRamSize() != null) {
             BigDecimal memory = new BigDecimal(serviceoffering.getRamSize());
             onehourcostper1mb = tariff.getCurrencyValue().multiply(aggregationRatio);
             memoryquotausage = rawusage.multiply(onehourcostper1mb).multiply(memory);
             quota_usage = new QuotaUsageVO(usageRecord.getId(), usageRecord.getZoneId(), usageRecord.getAccountId(), usageRecord.getDomainId(), QuotaTypes.MEMORY, memoryquotausage,
                     usageRecord.getStartDate(), usageRecord.getEndDate());
-            _quotaUsageDao.persistQuotaUsage(quota_usage);
             quotalist.add(quota_usage);
         }
-        tariff = _quotaTariffDao.findTariffPlanByUsageType(QuotaTypes.RUNNING_VM, usageRecord.getEndDate());
+        tariff = findTariff(QuotaTypes.RUNNING_VM, usageRecord.getEndDate());
         if (tariff != null && tariff.getCurrencyValue().compareTo(BigDecimal.ZERO) != 0) {
             onehourcostforvmusage = tariff.getCurrencyValue().multiply(aggregationRatio);
             vmusage = rawusage.multiply(onehourcostforvmusage);
             quota_usage = new QuotaUsageVO(usageRecord.getId(), usageRecord.getZoneId(), usageRecord.getAccountId(), usageRecord.getDomainId(), QuotaTypes.RUNNING_VM, vmusage,
                     usageRecord.getStartDate(), usageRecord.getEndDate());
-            _quotaUsageDao.persistQuotaUsage(quota_usage);
             quotalist.add(quota_usage);
         }
+        return quotalist;
+    }
 
+    public QuotaUsageVO updateQuotaAllocatedVMUsage(UsageVO usageRecord, final BigDecimal aggregationRatio) {
+        QuotaUsageVO quota_usage = getQuotaAllocatedVMUsage(usageRecord, aggregationRatio);
+        if (quota_usage != null) {
+            _quotaUsageDao.persistQuotaUsage(quota_usage);
+        }
         usageRecord.setQuotaCalculated(1);
         _usageDao.persistUsage(usageRecord);
-        return quotalist;
+        return quota_usage;
     }
 
-    public QuotaUsageVO updateQuotaAllocatedVMUsage(UsageVO usageRecord, final BigDecimal aggregationRatio) {
+    protected QuotaUsageVO getQuotaAllocatedVMUsage(UsageVO usageRecord, final BigDecimal aggregationRatio) {
         QuotaUsageVO quota_usage = null;
-        QuotaTariffVO tariff = _quotaTariffDao.findTariffPlanByUsageType(QuotaTypes.ALLOCATED_VM, usageRecord.getEndDate());
+        QuotaTariffVO tariff = findTariff(QuotaTypes.ALLOCATED_VM, usageRecord.getEndDate());
         if (tariff != null && tariff.getCurrencyValue().compareTo(BigDecimal.ZERO) != 0) {
             BigDecimal vmusage;
             BigDecimal onehourcostforvmusage;
@@ -419,17 +640,23 @@ public class QuotaManagerImpl extends ManagerBase implements QuotaManager {
             vmusage = new BigDecimal(usageRecord.getRawUsage()).multiply(onehourcostforvmusage);
             quota_usage = new QuotaUsageVO(usageRecord.getId(), usageRecord.getZoneId(), usageRecord.getAccountId(), usageRecord.getDomainId(), QuotaTypes.ALLOCATED_VM, vmusage,
                     usageRecord.getStartDate(), usageRecord.getEndDate());
-            _quotaUsageDao.persistQuotaUsage(quota_usage);
         }
+        return quota_usage;
+    }
 
+    public QuotaUsageVO updateQuotaRaw(UsageVO usageRecord, final BigDecimal aggregationRatio, final int ruleType) {
+        QuotaUsageVO quota_usage = getQuotaRaw(usageRecord, aggregationRatio, ruleType);
+        if (quota_usage != null) {
+            _quotaUsageDao.persistQuotaUsage(quota_usage);
+        }
         usageRecord.setQuotaCalculated(1);
         _usageDao.persistUsage(usageRecord);
         return quota_usage;
     }
 
-    public QuotaUsageVO updateQuotaRaw(UsageVO usageRecord, final BigDecimal aggregationRatio, final int ruleType) {
+    protected QuotaUsageVO getQuotaRaw(UsageVO usageRecord, final BigDecimal aggregationRatio, final int ruleType) {
         QuotaUsageVO quota_usage = null;
-        QuotaTariffVO tariff = _quotaTariffDao.findTariffPlanByUsageType(ruleType, usageRecord.getEndDate());
+        QuotaTariffVO tariff = findTariff(ruleType, usageRecord.getEndDate());
         if (tariff != null && tariff.getCurrencyValue().compareTo(BigDecimal.ZERO) != 0) {
             BigDecimal ruleusage;
             BigDecimal onehourcost;
@@ -437,17 +664,23 @@ public class QuotaManagerImpl extends ManagerBase implements QuotaManager {
             ruleusage = new BigDecimal(usageRecord.getRawUsage()).multiply(onehourcost);
             quota_usage = new QuotaUsageVO(usageRecord.getId(), usageRecord.getZoneId(), usageRecord.getAccountId(), usageRecord.getDomainId(), ruleType, ruleusage,
                     usageRecord.getStartDate(), usageRecord.getEndDate());
-            _quotaUsageDao.persistQuotaUsage(quota_usage);
         }
+        return quota_usage;
+    }
 
+    public QuotaUsageVO updateQuotaNetwork(UsageVO usageRecord, final int transferType) {
+        QuotaUsageVO quota_usage = getQuotaNetwork(usageRecord, transferType);
+        if (quota_usage != null) {
+            _quotaUsageDao.persistQuotaUsage(quota_usage);
+        }
         usageRecord.setQuotaCalculated(1);
         _usageDao.persistUsage(usageRecord);
         return quota_usage;
     }
 
-    public QuotaUsageVO updateQuotaNetwork(UsageVO usageRecord, final int transferType) {
+    protected QuotaUsageVO getQuotaNetwork(UsageVO usageRecord, final int transferType) {
         QuotaUsageVO quota_usage = null;
-        QuotaTariffVO tariff = _quotaTariffDao.findTariffPlanByUsageType(transferType, usageRecord.getEndDate());
+        QuotaTariffVO tariff = findTariff(transferType, usageRecord.getEndDate());
         if (tariff != null && tariff.getCurrencyValue().compareTo(BigDecimal.ZERO) != 0) {
             BigDecimal onegbcost;
             BigDecimal rawusageingb;
@@ -457,11 +690,7 @@ public class QuotaManagerImpl extends ManagerBase implements QuotaManager {
             networkusage = rawusageingb.multiply(onegbcost);
             quota_usage = new QuotaUsageVO(usageRecord.getId(), usageRecord.getZoneId(), usageRecord.getAccountId(), usageRecord.getDomainId(), transferType, networkusage,
                     usageRecord.getStartDate(), usageRecord.getEndDate());
-            _quotaUsageDao.persistQuotaUsage(quota_usage);
         }
-
-        usageRecord.setQuotaCalculated(1);
-        _usageDao.persistUsage(usageRecord);
         return quota_usage;
     }
 
@@ -51,6 +51,9 @@ public interface QuotaConfig {
     public static final ConfigKey<String> QuotaSmtpSender = new ConfigKey<String>("Advanced", String.class, "quota.usage.smtp.sender", "",
             "Sender of quota alert email (will be in the From header of the email)", true);
 
+    public static final ConfigKey<Integer> QuotaUsageWorkers = new ConfigKey<Integer>("Advanced", Integer.class, "quota.usage.workers", "4",
+            "Number of accounts whose pending usage records are converted to quota and balanced in parallel by the usage server.", true);
+
     enum QuotaEmailTemplateTypes {
         QUOTA_LOW, QUOTA_EMPTY, QUOTA_UNLOCK_ACCOUNT, QUOTA_STATEMENT
     }
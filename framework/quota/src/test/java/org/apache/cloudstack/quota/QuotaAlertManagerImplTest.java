@@ -117,6 +117,33 @@ public class QuotaAlertManagerImplTest extends TestCase {
         Mockito.verify(quotaAlertManager, Mockito.times(1)).sendQuotaAlert(Mockito.any(QuotaAlertManagerImpl.DeferredQuotaEmail.class));
     }
 
+    @Test
+    public void testCheckAndSendQuotaAlertEmailsForAccount() {
+        AccountVO accountVO = new AccountVO();
+        accountVO.setId(2L);
+        accountVO.setDomainId(1L);
+        accountVO.setType(Account.ACCOUNT_TYPE_NORMAL);
+        Mockito.when(accountDao.findById(Mockito.anyLong())).thenReturn(accountVO);
+
+        QuotaAccountVO acc = new QuotaAccountVO(2L);
+        acc.setQuotaBalance(new BigDecimal(404));
+        acc.setQuotaMinBalance(new BigDecimal(100));
+        acc.setQuotaBalanceDate(new Date());
+        acc.setQuotaAlertDate(null);
+        acc.setQuotaEnforce(0);
+
+        Mockito.doNothing().when(quotaAlertManager).sendQuotaAlert(Mockito.any(QuotaAlertManagerImpl.DeferredQuotaEmail.class));
+
+        quotaAlertManager.checkAndSendQuotaAlertEmails(acc);
+        Mockito.verify(quotaAlertManager, Mockito.times(0)).sendQuotaAlert(Mockito.any(QuotaAlertManagerImpl.DeferredQuotaEmail.class));
+
+        // only the given account is checked
+        acc.setQuotaBalance(new BigDecimal(99));
+        quotaAlertManager.checkAndSendQuotaAlertEmails(acc);
+        Mockito.verify(quotaAlertManager, Mockito.times(1)).sendQuotaAlert(Mockito.any(QuotaAlertManagerImpl.DeferredQuotaEmail.class));
+        Mockito.verify(quotaAcc, Mockito.never()).listAllQuotaAccount();
+    }
+
     @Test
     public void testSendQuotaAlert() throws UnsupportedEncodingException, MessagingException {
         Mockito.doCallRealMethod().when(quotaAlertManager).sendQuotaAlert(Mockito.any(QuotaAlertManagerImpl.DeferredQuotaEmail.class));
@@ -31,12 +31,14 @@ import org.apache.cloudstack.quota.dao.QuotaTariffDao;
 import org.apache.cloudstack.quota.dao.QuotaUsageDao;
 import org.apache.cloudstack.quota.dao.ServiceOfferingDao;
 import org.apache.cloudstack.quota.vo.QuotaAccountVO;
+import org.apache.cloudstack.quota.vo.QuotaBalanceVO;
 import org.apache.cloudstack.quota.vo.QuotaTariffVO;
 import org.apache.cloudstack.quota.vo.QuotaUsageVO;
 import org.apache.cloudstack.usage.UsageTypes;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.Spy;
@@ -46,6 +48,7 @@ import javax.naming.ConfigurationException;
 import java.lang.reflect.Field;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -70,6 +73,8 @@ public class QuotaManagerImplTest extends TestCase {
     private QuotaBalanceDao quotaBalanceDao;
     @Mock
     private ConfigurationDao configDao;
+    @Mock
+    private QuotaAlertManager alertManager;
 
     @Spy
     QuotaManagerImpl quotaManager = new QuotaManagerImpl();
@@ -93,6 +98,7 @@ public class QuotaManagerImplTest extends TestCase {
         injectMockToField(serviceOfferingDao, "_serviceOfferingDao");
         injectMockToField(quotaBalanceDao, "_quotaBalanceDao");
         injectMockToField(configDao, "_configDao");
+        injectMockToField(alertManager, "_alertManager");
     }
 
     @Test
@@ -197,6 +203,96 @@ public class QuotaManagerImplTest extends TestCase {
         Mockito.verify(quotaAcc, Mockito.times(1)).persistQuotaAccount(Mockito.any(QuotaAccountVO.class));
     }
 
+    private UsageVO networkUsage(long id, Date startDate, Date endDate) {
+        UsageVO usageVO = new UsageVO();
+        usageVO.setId(id);
+        usageVO.setAccountId(2L);
+        usageVO.setDomainId(1L);
+        usageVO.setQuotaCalculated(0);
+        usageVO.setUsageType(UsageTypes.NETWORK_BYTES_SENT);
+        usageVO.setRawUsage(1024.0 * 1024 * 1024);
+        usageVO.setStartDate(startDate);
+        usageVO.setEndDate(endDate);
+        return usageVO;
+    }
+
+    @Test
+    public void testCalculateQuotaUsageIncrementally() {
+        Date t0 = new Date(1500000000000L);
+        Date t1 = new Date(t0.getTime() + 3600000L);
+        Date t2 = new Date(t1.getTime() + 3600000L);
+        Date t3 = new Date(t2.getTime() + 3600000L);
+
+        AccountVO accountVO = new AccountVO();
+        accountVO.setId(2L);
+        accountVO.setDomainId(1L);
+        accountVO.setType(Account.ACCOUNT_TYPE_NORMAL);
+        Mockito.when(usageDao.listAccountsPendingQuotaAggregation()).thenReturn(Arrays.asList(2L));
+        Mockito.when(accountDao.findById(2L)).thenReturn(accountVO);
+
+        // two records in the first window, one in the second, 1 GB each
+        List<UsageVO> usageVOList = Arrays.asList(networkUsage(1L, t1, t2), networkUsage(2L, t1, t2), networkUsage(3L, t2, t3));
+        Mockito.when(usageDao.getUsageRecordsPendingQuotaAggregation(2L, 1L)).thenReturn(new Pair<List<? extends UsageVO>, Integer>(usageVOList, usageVOList.size()));
+
+        QuotaTariffVO tariffVO = new QuotaTariffVO();
+        tariffVO.setCurrencyValue(new BigDecimal(2));
+        Mockito.when(quotaTariffDao.findTariffPlanByUsageType(Mockito.anyInt(), Mockito.any(Date.class))).thenReturn(tariffVO);
+
+        QuotaAccountVO quotaAccount = new QuotaAccountVO(2L);
+        quotaAccount.setQuotaBalance(new BigDecimal(100));
+        quotaAccount.setQuotaBalanceDate(t0);
+        Mockito.when(quotaAcc.findByIdQuotaAccount(2L)).thenReturn(quotaAccount);
+
+        // a credit deposited after the last balance, before the end of the first window
+        List<QuotaBalanceVO> credits = new ArrayList<>();
+        credits.add(new QuotaBalanceVO(2L, 1L, new BigDecimal(10), t1));
+        Mockito.when(quotaBalanceDao.findCreditBalance(2L, 1L, new Date(t0.getTime() + 1), t2)).thenReturn(credits);
+
+        assertTrue(quotaManager.calculateQuotaUsage());
+
+        // 100 + 10 - 2 * 2 - 2
+        assertEquals(0, quotaAccount.getQuotaBalance().compareTo(new BigDecimal(104)));
+        assertEquals(t3, quotaAccount.getQuotaBalanceDate());
+        Mockito.verify(quotaAcc).updateQuotaAccount(2L, quotaAccount);
+        Mockito.verify(alertManager).checkAndSendQuotaAlertEmails(quotaAccount);
+
+        ArgumentCaptor<QuotaBalanceVO> balances = ArgumentCaptor.forClass(QuotaBalanceVO.class);
+        Mockito.verify(quotaBalanceDao, Mockito.times(2)).saveQuotaBalance(balances.capture());
+        assertEquals(0, balances.getAllValues().get(0).getCreditBalance().compareTo(new BigDecimal(106)));
+        assertEquals(t2, balances.getAllValues().get(0).getUpdatedOn());
+        assertEquals(0, balances.getAllValues().get(1).getCreditBalance().compareTo(new BigDecimal(104)));
+
+        // one tariff lookup per window, one batched update of the usage records, no balance history scan
+        Mockito.verify(quotaTariffDao, Mockito.times(2)).findTariffPlanByUsageType(Mockito.anyInt(), Mockito.any(Date.class));
+        Mockito.verify(quotaUsageDao, Mockito.times(3)).persistQuotaUsage(Mockito.any(QuotaUsageVO.class));
+        Mockito.verify(usageDao).markQuotaCalculated(Arrays.asList(1L, 2L, 3L));
+        Mockito.verify(usageDao, Mockito.never()).persistUsage(Mockito.any(UsageVO.class));
+        Mockito.verify(quotaBalanceDao, Mockito.never()).findLastBalanceEntry(Mockito.anyLong(), Mockito.anyLong(), Mockito.any(Date.class));
+    }
+
+    @Test
+    public void testProcessPendingUsageForAccountBootstrapsBalance() {
+        Date now = new Date();
+        AccountVO accountVO = new AccountVO();
+        accountVO.setId(2L);
+        accountVO.setDomainId(1L);
+        accountVO.setType(Account.ACCOUNT_TYPE_NORMAL);
+
+        List<UsageVO> usageVOList = Arrays.asList(networkUsage(1L, now, now));
+        Mockito.when(usageDao.getUsageRecordsPendingQuotaAggregation(2L, 1L)).thenReturn(new Pair<List<? extends UsageVO>, Integer>(usageVOList, usageVOList.size()));
+        QuotaTariffVO tariffVO = new QuotaTariffVO();
+        tariffVO.setCurrencyValue(new BigDecimal(1));
+        Mockito.when(quotaTariffDao.findTariffPlanByUsageType(Mockito.anyInt(), Mockito.any(Date.class))).thenReturn(tariffVO);
+        Mockito.doNothing().when(quotaManager).processQuotaBalanceForAccount(Mockito.eq(accountVO), Mockito.anyListOf(QuotaUsageVO.class));
+
+        quotaManager.processPendingUsageForAccount(accountVO, BigDecimal.ONE);
+
+        // no running balance yet, the balance history is used once
+        Mockito.verify(quotaManager).processQuotaBalanceForAccount(Mockito.eq(accountVO), Mockito.anyListOf(QuotaUsageVO.class));
+        Mockito.verify(usageDao).markQuotaCalculated(Arrays.asList(1L));
+        Mockito.verify(alertManager, Mockito.never()).checkAndSendQuotaAlertEmails(Mockito.any(QuotaAccountVO.class));
+    }
+
     private AccountVO accountVO = new AccountVO();
 
     @Test
@@ -19,6 +19,7 @@
 
 package org.apache.cloudstack.mom.inmemory;
 
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -101,6 +102,13 @@ public class InMemoryEventBus extends ManagerBase implements EventBus {
         }
     }
 
+    @Override
+    public void publish(List<Event> events) throws EventBusException {
+        for (Event event : events) {
+            publish(event);
+        }
+    }
+
     @Override
     public String getName() {
         return _name;
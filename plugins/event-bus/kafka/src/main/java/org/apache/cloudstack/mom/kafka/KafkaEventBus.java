@@ -21,9 +21,16 @@ package org.apache.cloudstack.mom.kafka;
 
 import java.io.FileInputStream;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.naming.ConfigurationException;
 
@@ -40,6 +47,7 @@ import com.cloud.utils.component.ManagerBase;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 
 import com.cloud.utils.PropertiesUtil;
 
@@ -47,6 +55,7 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
 
     public static final String DEFAULT_TOPIC = "cloudstack";
     public static final String DEFAULT_SERIALIZER = "org.apache.kafka.common.serialization.StringSerializer";
+    private static final long SEND_TIMEOUT_SECONDS = 60;
 
     private String _topic = null;
     private Producer<String,String> _producer;
@@ -72,6 +81,11 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
             if (!props.containsKey("value.serializer")) {
                 props.put("value.serializer", DEFAULT_SERIALIZER);
             }
+
+            // events are only removed from the outbox once acknowledged, wait for all in-sync replicas
+            if (!props.containsKey("acks")) {
+                props.put("acks", "all");
+            }
         } catch (Exception e) {
             throw new ConfigurationException("Could not read kafka properties");
         }
@@ -100,8 +114,27 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
 
     @Override
     public void publish(Event event) throws EventBusException {
-        ProducerRecord<String, String> record = new ProducerRecord<String,String>(_topic, event.getResourceUUID(), event.getDescription());
-        _producer.send(record);
+        publish(Collections.singletonList(event));
+    }
+
+    @Override
+    public void publish(List<Event> events) throws EventBusException {
+        // the producer batches the records, waiting for the acknowledgements gives back-pressure and lets the caller retry
+        List<Future<RecordMetadata>> results = new ArrayList<Future<RecordMetadata>>(events.size());
+        for (Event event : events) {
+            ProducerRecord<String, String> record = new ProducerRecord<String,String>(_topic, event.getResourceUUID(), event.getDescription());
+            results.add(_producer.send(record));
+        }
+        try {
+            for (Future<RecordMetadata> result : results) {
+                result.get(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EventBusException("Interrupted while publishing events to kafka");
+        } catch (ExecutionException | TimeoutException e) {
+            throw new EventBusException("Failed to publish events to kafka due to " + e.getMessage());
+        }
     }
 
     @Override
@@ -21,9 +21,13 @@ package org.apache.cloudstack.mom.rabbitmq;
 
 import java.io.IOException;
 import java.net.ConnectException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -91,6 +95,11 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     // AMQP server should consider messages acknowledged once delivered if _autoAck is true
     private static boolean s_autoAck = true;
 
+    // open channels in confirm mode reused for publishing, a channel is used by one publisher at a time
+    private static final int MAX_IDLE_PUBLISH_CHANNELS = 4;
+    private static final long PUBLISH_CONFIRM_TIMEOUT_MS = 30000;
+    private static final BlockingQueue<Channel> s_publishChannels = new LinkedBlockingQueue<Channel>(MAX_IDLE_PUBLISH_CHANNELS);
+
     private ExecutorService executorService;
     private static DisconnectHandler disconnectHandler;
     private static BlockedConnectionHandler blockedConnectionHandler;
@@ -264,21 +273,57 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     // publish event on to the exchange created on AMQP server
     @Override
     public void publish(Event event) throws EventBusException {
+        publish(Collections.singletonList(event));
+    }
 
-        String routingKey = createRoutingKey(event);
-        String eventDescription = event.getDescription();
-
+    // publish a batch of events on a pooled channel and wait for the broker to confirm them
+    @Override
+    public void publish(List<Event> events) throws EventBusException {
+        Channel channel = null;
         try {
-            Connection connection = getConnection();
-            Channel channel = createChannel(connection);
-            createExchange(channel, amqpExchangeName);
-            publishEventToExchange(channel, amqpExchangeName, routingKey, eventDescription);
-            channel.close();
+            channel = borrowPublishChannel();
+            for (Event event : events) {
+                publishEventToExchange(channel, amqpExchangeName, createRoutingKey(event), event.getDescription());
+            }
+            channel.waitForConfirmsOrDie(PUBLISH_CONFIRM_TIMEOUT_MS);
+            releasePublishChannel(channel);
+            channel = null;
         } catch (AlreadyClosedException e) {
             closeConnection();
             throw new EventBusException("Failed to publish event to message broker as connection to AMQP broker in lost");
         } catch (Exception e) {
             throw new EventBusException("Failed to publish event to message broker due to " + e.getMessage());
+        } finally {
+            if (channel != null) {
+                abortChannel(channel);
+            }
+        }
+    }
+
+    private Channel borrowPublishChannel() throws Exception {
+        Channel channel;
+        while ((channel = s_publishChannels.poll()) != null) {
+            if (channel.isOpen()) {
+                return channel;
+            }
+        }
+        channel = createChannel(getConnection());
+        createExchange(channel, amqpExchangeName);
+        channel.confirmSelect();
+        return channel;
+    }
+
+    private void releasePublishChannel(Channel channel) {
+        if (!channel.isOpen() || !s_publishChannels.offer(channel)) {
+            abortChannel(channel);
+        }
+    }
+
+    private void abortChannel(Channel channel) {
+        try {
+            channel.abort();
+        } catch (Exception e) {
+            s_logger.debug("Failed to abort publishing channel due to " + e.getMessage());
         }
     }
 
@@ -395,6 +440,7 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     }
 
     private synchronized void closeConnection() {
+        s_publishChannels.clear();
         try {
             if (s_connection != null) {
                 s_connection.close();
@@ -406,6 +452,7 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     }
 
     private synchronized void abortConnection() {
+        s_publishChannels.clear();
         if (s_connection == null)
             return;
 
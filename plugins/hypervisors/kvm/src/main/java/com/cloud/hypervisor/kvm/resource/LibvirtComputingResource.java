@@ -83,6 +83,7 @@ import com.cloud.agent.api.HostVmStateReportEntry;
 import com.cloud.agent.api.PingCommand;
 import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.SetupGuestNetworkCommand;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.StartupRoutingCommand;
@@ -101,7 +102,10 @@ import com.cloud.agent.api.to.IpAddressTO;
 import com.cloud.agent.api.to.NfsTO;
 import com.cloud.agent.api.to.NicTO;
 import com.cloud.agent.api.to.VirtualMachineTO;
+import com.cloud.agent.resource.virtualnetwork.ConfigItem;
+import com.cloud.agent.resource.virtualnetwork.VRControlChannel;
 import com.cloud.agent.resource.virtualnetwork.VRScripts;
+import com.cloud.agent.resource.virtualnetwork.VirtualRouterBatchDeployer;
 import com.cloud.agent.resource.virtualnetwork.VirtualRouterDeployer;
 import com.cloud.agent.resource.virtualnetwork.VirtualRoutingResource;
 import com.cloud.dc.Vlan;
@@ -192,7 +196,7 @@ import com.google.common.base.Strings;
  *         private mac addresses for domrs | mac address | start + 126 || ||
  *         pool | the parent of the storage pool hierarchy * }
  **/
-public class LibvirtComputingResource extends ServerResourceBase implements ServerResource, VirtualRouterDeployer {
+public class LibvirtComputingResource extends ServerResourceBase implements ServerResource, VirtualRouterDeployer, VirtualRouterBatchDeployer {
     private static final Logger s_logger = Logger.getLogger(LibvirtComputingResource.class);
 
     private String _modifyVlanPath;
@@ -208,6 +212,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     private String _ovsPvlanDhcpHostPath;
     private String _ovsPvlanVmPath;
     private String _routerProxyPath;
+    private VRControlChannel _vrControlChannel;
+    private LibvirtVmStateMonitor _vmStateMonitor;
+    private final LibvirtDomainDeviceCache _domainDeviceCache = new LibvirtDomainDeviceCache(this);
     private String _ovsTunnelPath;
     private String _host;
     private String _dcId;
@@ -282,6 +289,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     private final Map <String, String> _pifs = new HashMap<String, String>();
     private final Map<String, VmStats> _vmStats = new ConcurrentHashMap<String, VmStats>();
+    private final Map<String, SecurityGroupRulesCmd> _appliedSecurityGroupRules = new ConcurrentHashMap<String, SecurityGroupRulesCmd>();
 
     protected static final HashMap<DomainState, PowerState> s_powerStatesTable;
     static {
@@ -321,6 +329,11 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public ExecutionResult executeInVR(final String routerIp, final String script, final String args, final Duration timeout) {
+        if (_vrControlChannel != null) {
+            s_logger.debug("Executing script in VR over the control channel: " + script);
+            return _vrControlChannel.execute(routerIp, script, args, timeout);
+        }
+
         final Script command = new Script(_routerProxyPath, timeout, s_logger);
         final AllLinesParser parser = new AllLinesParser();
         command.add(script);
@@ -340,6 +353,10 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public ExecutionResult createFileInVR(final String routerIp, final String path, final String filename, final String content) {
+        if (_vrControlChannel != null) {
+            return _vrControlChannel.createFile(routerIp, path, filename, content, VRScripts.CONNECTION_TIMEOUT);
+        }
+
         final File permKey = new File("/root/.ssh/id_rsa.cloud");
         boolean success = true;
         String details = "Creating file in VR, with ip: " + routerIp + ", file: " + filename;
@@ -355,6 +372,14 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return new ExecutionResult(success, details);
     }
 
+    @Override
+    public List<ExecutionResult> applyConfigInVR(final String routerIp, final List<ConfigItem> cfg, final Duration timeout) {
+        if (_vrControlChannel == null) {
+            return null;
+        }
+        return _vrControlChannel.applyConfig(routerIp, cfg, timeout);
+    }
+
     @Override
     public ExecutionResult prepareCommand(final NetworkElementCommand cmd) {
         //Update IP used to access router
@@ -385,6 +410,17 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return libvirtUtilitiesHelper;
     }
 
+    protected LibvirtDomainDeviceCache getDomainDeviceCache() {
+        return _domainDeviceCache;
+    }
+
+    /**
+     * Drops the cached devices of the domain, to be called whenever a device is attached to or detached from it.
+     */
+    public void invalidateDomainDevices(final String vmName) {
+        _domainDeviceCache.invalidate(vmName);
+    }
+
     public CPUStat getCPUStat() {
         return _cpuStat;
     }
@@ -838,6 +874,12 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         value = (String)params.get("scripts.timeout");
         _timeout = Duration.standardSeconds(NumbersUtil.parseInt(value, 30 * 60));
 
+        value = (String)params.get("router.control.channel");
+        if (Boolean.parseBoolean(value)) {
+            value = (String)params.get("router.control.channel.idle.timeout");
+            _vrControlChannel = VRControlChannel.createSshChannel(VRScripts.CONNECTION_TIMEOUT, Duration.standardSeconds(NumbersUtil.parseInt(value, 600)));
+        }
+
         value = (String)params.get("stop.script.timeout");
         _stopTimeout = NumbersUtil.parseInt(value, 120) * 1000;
 
@@ -898,6 +940,25 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             _watchDogAction = WatchDogAction.valueOf(value.toUpperCase());
         }
 
+        value = (String)params.get("vm.stats.device.cache.ttl");
+        _domainDeviceCache.setTtl(NumbersUtil.parseInt(value, 300));
+
+        value = (String)params.get("vm.state.event.sync");
+        if (Boolean.parseBoolean(value)) {
+            try {
+                LibvirtDomainEventSource.startEventLoop();
+                final List<String> hypervisorTypes = new ArrayList<String>();
+                hypervisorTypes.add(HypervisorType.KVM.toString());
+                if (_hypervisorType == HypervisorType.LXC) {
+                    hypervisorTypes.add(HypervisorType.LXC.toString());
+                }
+                value = (String)params.get("vm.state.full.report.interval");
+                _vmStateMonitor = new LibvirtVmStateMonitor(new LibvirtDomainEventSource(this, hypervisorTypes), NumbersUtil.parseInt(value, 10));
+            } catch (final LibvirtException e) {
+                s_logger.warn("Unable to start libvirt event loop, VM states are reported in full on every ping: " + e.getMessage());
+            }
+        }
+
         LibvirtConnection.initialize(_hypervisorURI);
         Connect conn = null;
         try {
@@ -1422,6 +1483,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public boolean stop() {
+        if (_vrControlChannel != null) {
+            _vrControlChannel.closeAll();
+        }
         try {
             final Connect conn = LibvirtConnection.getConnection();
             conn.close();
@@ -1629,6 +1693,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
         final Domain vm = getDomain(conn, vmName);
         vm.attachDevice(getVifDriver(nicTO.getType()).plug(nicTO, "Other PV", "").toString());
+        invalidateDomainDevices(vmName);
     }
 
 
@@ -1640,6 +1705,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         for (final InterfaceDef pluggedNic : pluggedNics) {
             if (pluggedNic.getMacAddress().equalsIgnoreCase(macAddr)) {
                 vm.detachDevice(pluggedNic.toString());
+                invalidateDomainDevices(vmName);
                 // We don't know which "traffic type" is associated with
                 // each interface at this point, so inform all vif drivers
                 for (final VifDriver vifDriver : getAllVifDrivers()) {
@@ -2547,6 +2613,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 s_logger.debug("Detaching device: " + xml);
                 dm.detachDevice(xml);
             }
+            invalidateDomainDevices(vmName);
         } catch (final LibvirtException e) {
             if (attach) {
                 s_logger.warn("Failed to attach device to " + vmName + ": " + e.getMessage());
@@ -2570,12 +2637,25 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     @Override
     public PingCommand getCurrentStatus(final long id) {
 
+        Map<String, HostVmStateReportEntry> vmStates;
+        boolean delta = false;
+        if (_vmStateMonitor != null) {
+            final LibvirtVmStateMonitor.Report report = _vmStateMonitor.getReport();
+            vmStates = report.getStates();
+            delta = report.isDelta();
+        } else {
+            vmStates = this.getHostVmStateReport();
+        }
+
+        final PingRoutingCommand ping;
         if (!_canBridgeFirewall) {
-            return new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id, this.getHostVmStateReport());
+            ping = new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id, vmStates);
         } else {
             final HashMap<String, Pair<Long, Long>> nwGrpStates = syncNetworkGroups(id);
-            return new PingRoutingWithNwGroupsCommand(getType(), id, this.getHostVmStateReport(), nwGrpStates);
+            ping = new PingRoutingWithNwGroupsCommand(getType(), id, vmStates, nwGrpStates);
         }
+        ping.setHostVmStateReportDelta(delta);
+        return ping;
     }
 
     @Override
@@ -2597,6 +2677,11 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     @Override
     public StartupCommand[] initialize() {
 
+        if (_vmStateMonitor != null) {
+            // the management server rebuilds its view of the host from the next ping
+            _vmStateMonitor.requestFullReport();
+        }
+
         final List<Object> info = getHostInfo();
         _totalMemory = (Long)info.get(2);
 
@@ -2712,7 +2797,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return la;
     }
 
-    private HashMap<String, HostVmStateReportEntry> getHostVmStateReport() {
+    protected HashMap<String, HostVmStateReportEntry> getHostVmStateReport() {
         final HashMap<String, HostVmStateReportEntry> vmStates = new HashMap<String, HostVmStateReportEntry>();
         Connect conn = null;
 
@@ -3233,18 +3318,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         try {
             dm = getDomain(conn, vmName);
 
-            List<VmNetworkStatsEntry> stats = new ArrayList<VmNetworkStatsEntry>();
-
-            List<InterfaceDef> nics = getInterfaces(conn, vmName);
-
-            for (InterfaceDef nic : nics) {
-                DomainInterfaceStats nicStats = dm.interfaceStats(nic.getDevName());
-                String macAddress = nic.getMacAddress();
-                VmNetworkStatsEntry stat = new VmNetworkStatsEntry(vmName, macAddress, nicStats.tx_bytes, nicStats.rx_bytes);
-                stats.add(stat);
+            try {
+                return getVmNetworkStat(dm, vmName, _domainDeviceCache.get(conn, dm, vmName));
+            } catch (final LibvirtException e) {
+                // a cached interface may have been unplugged behind our back
+                _domainDeviceCache.invalidate(vmName);
+                return getVmNetworkStat(dm, vmName, _domainDeviceCache.get(conn, dm, vmName));
             }
-
-            return stats;
         } finally {
             if (dm != null) {
                 dm.free();
@@ -3252,33 +3332,31 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         }
     }
 
+    private List<VmNetworkStatsEntry> getVmNetworkStat(Domain dm, String vmName, LibvirtDomainDeviceCache.Devices devices) throws LibvirtException {
+        List<VmNetworkStatsEntry> stats = new ArrayList<VmNetworkStatsEntry>();
+
+        for (InterfaceDef nic : devices.getInterfaces()) {
+            DomainInterfaceStats nicStats = dm.interfaceStats(nic.getDevName());
+            String macAddress = nic.getMacAddress();
+            VmNetworkStatsEntry stat = new VmNetworkStatsEntry(vmName, macAddress, nicStats.tx_bytes, nicStats.rx_bytes);
+            stats.add(stat);
+        }
+
+        return stats;
+    }
+
     public List<VmDiskStatsEntry> getVmDiskStat(final Connect conn, final String vmName) throws LibvirtException {
         Domain dm = null;
         try {
             dm = getDomain(conn, vmName);
 
-            final List<VmDiskStatsEntry> stats = new ArrayList<VmDiskStatsEntry>();
-
-            final List<DiskDef> disks = getDisks(conn, vmName);
-
-            for (final DiskDef disk : disks) {
-                if (disk.getDeviceType() != DeviceType.DISK) {
-                    break;
-                }
-                final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
-                final String path = disk.getDiskPath(); // for example, path = /mnt/pool_uuid/disk_path/
-                String diskPath = null;
-                if (path != null) {
-                    final String[] token = path.split("/");
-                    if (token.length > 3) {
-                        diskPath = token[3];
-                        final VmDiskStatsEntry stat = new VmDiskStatsEntry(vmName, diskPath, blockStats.wr_req, blockStats.rd_req, blockStats.wr_bytes, blockStats.rd_bytes);
-                        stats.add(stat);
-                    }
-                }
+            try {
+                return getVmDiskStat(dm, vmName, _domainDeviceCache.get(conn, dm, vmName));
+            } catch (final LibvirtException e) {
+                // a cached disk may have been detached behind our back
+                _domainDeviceCache.invalidate(vmName);
+                return getVmDiskStat(dm, vmName, _domainDeviceCache.get(conn, dm, vmName));
             }
-
-            return stats;
         } finally {
             if (dm != null) {
                 dm.free();
@@ -3286,6 +3364,29 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         }
     }
 
+    private List<VmDiskStatsEntry> getVmDiskStat(final Domain dm, final String vmName, final LibvirtDomainDeviceCache.Devices devices) throws LibvirtException {
+        final List<VmDiskStatsEntry> stats = new ArrayList<VmDiskStatsEntry>();
+
+        for (final DiskDef disk : devices.getDisks()) {
+            if (disk.getDeviceType() != DeviceType.DISK) {
+                break;
+            }
+            final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
+            final String path = disk.getDiskPath(); // for example, path = /mnt/pool_uuid/disk_path/
+            String diskPath = null;
+            if (path != null) {
+                final String[] token = path.split("/");
+                if (token.length > 3) {
+                    diskPath = token[3];
+                    final VmDiskStatsEntry stat = new VmDiskStatsEntry(vmName, diskPath, blockStats.wr_req, blockStats.rd_req, blockStats.wr_bytes, blockStats.rd_bytes);
+                    stats.add(stat);
+                }
+            }
+        }
+
+        return stats;
+    }
+
     private class VmStats {
         long _usedTime;
         long _tx;
@@ -3298,116 +3399,154 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public VmStatsEntry getVmStat(final Connect conn, final String vmName) throws LibvirtException {
+        return getVmStat(conn, vmName, conn.nodeInfo().cpus);
+    }
+
+    /**
+     * Collects the stats of the VMs in one pass over the connection, reading the node info once and the
+     * devices of each domain from the device cache. VMs that are not found are left out.
+     */
+    public HashMap<String, VmStatsEntry> getVmStats(final Connect conn, final List<String> vmNames) throws LibvirtException {
+        final long begin = System.currentTimeMillis();
+        final HashMap<String, VmStatsEntry> vmStats = new HashMap<String, VmStatsEntry>();
+        final int cpus = conn.nodeInfo().cpus;
+        for (final String vmName : vmNames) {
+            try {
+                final VmStatsEntry stats = getVmStat(conn, vmName, cpus);
+                if (stats != null) {
+                    vmStats.put(vmName, stats);
+                }
+            } catch (final LibvirtException e) {
+                s_logger.warn("Can't get vm stats: " + e.toString() + ", continue");
+            }
+        }
+        _domainDeviceCache.purgeExpired();
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Collected stats of " + vmStats.size() + " of " + vmNames.size() + " VMs in " + (System.currentTimeMillis() - begin) + " ms");
+        }
+        return vmStats;
+    }
+
+    private VmStatsEntry getVmStat(final Connect conn, final String vmName, final int cpus) throws LibvirtException {
         Domain dm = null;
         try {
             dm = getDomain(conn, vmName);
             if (dm == null) {
                 return null;
             }
-            DomainInfo info = dm.getInfo();
-            final VmStatsEntry stats = new VmStatsEntry();
 
-            stats.setNumCPUs(info.nrVirtCpu);
-            stats.setEntityType("vm");
+            try {
+                return getVmStat(dm, vmName, cpus, _domainDeviceCache.get(conn, dm, vmName));
+            } catch (final LibvirtException e) {
+                // a cached device may have been detached behind our back
+                _domainDeviceCache.invalidate(vmName);
+                return getVmStat(dm, vmName, cpus, _domainDeviceCache.get(conn, dm, vmName));
+            }
+        } finally {
+            if (dm != null) {
+                dm.free();
+            }
+        }
+    }
+
+    private VmStatsEntry getVmStat(final Domain dm, final String vmName, final int cpus, final LibvirtDomainDeviceCache.Devices devices) throws LibvirtException {
+        DomainInfo info = dm.getInfo();
+        final VmStatsEntry stats = new VmStatsEntry();
 
-            stats.setMemoryKBs(info.maxMem);
-            stats.setTargetMemoryKBs(info.memory);
-            stats.setIntFreeMemoryKBs(getMemoryFreeInKBs(dm));
+        stats.setNumCPUs(info.nrVirtCpu);
+        stats.setEntityType("vm");
 
-            /* get cpu utilization */
-            VmStats oldStats = null;
+        stats.setMemoryKBs(info.maxMem);
+        stats.setTargetMemoryKBs(info.memory);
+        stats.setIntFreeMemoryKBs(getMemoryFreeInKBs(dm));
 
-            final Calendar now = Calendar.getInstance();
+        /* get cpu utilization */
+        VmStats oldStats = null;
 
-            oldStats = _vmStats.get(vmName);
+        final Calendar now = Calendar.getInstance();
 
-            long elapsedTime = 0;
-            if (oldStats != null) {
-                elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
-                double utilization = (info.cpuTime - oldStats._usedTime) / ((double)elapsedTime * 1000000);
+        oldStats = _vmStats.get(vmName);
 
-                final NodeInfo node = conn.nodeInfo();
-                utilization = utilization / node.cpus;
-                if (utilization > 0) {
-                    stats.setCPUUtilization(utilization * 100);
-                }
+        long elapsedTime = 0;
+        if (oldStats != null) {
+            elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
+            double utilization = (info.cpuTime - oldStats._usedTime) / ((double)elapsedTime * 1000000);
+
+            utilization = utilization / cpus;
+            if (utilization > 0) {
+                stats.setCPUUtilization(utilization * 100);
             }
+        }
+
+        /* get network stats */
 
-            /* get network stats */
+        long rx = 0;
+        long tx = 0;
+        for (final InterfaceDef vif : devices.getInterfaces()) {
+            final DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
+            rx += ifStats.rx_bytes;
+            tx += ifStats.tx_bytes;
+        }
 
-            final List<InterfaceDef> vifs = getInterfaces(conn, vmName);
-            long rx = 0;
-            long tx = 0;
-            for (final InterfaceDef vif : vifs) {
-                final DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
-                rx += ifStats.rx_bytes;
-                tx += ifStats.tx_bytes;
+        if (oldStats != null) {
+            final double deltarx = rx - oldStats._rx;
+            if (deltarx > 0) {
+                stats.setNetworkReadKBs(deltarx / 1024);
+            }
+            final double deltatx = tx - oldStats._tx;
+            if (deltatx > 0) {
+                stats.setNetworkWriteKBs(deltatx / 1024);
             }
+        }
 
-            if (oldStats != null) {
-                final double deltarx = rx - oldStats._rx;
-                if (deltarx > 0) {
-                    stats.setNetworkReadKBs(deltarx / 1024);
-                }
-                final double deltatx = tx - oldStats._tx;
-                if (deltatx > 0) {
-                    stats.setNetworkWriteKBs(deltatx / 1024);
-                }
+        /* get disk stats */
+        long io_rd = 0;
+        long io_wr = 0;
+        long bytes_rd = 0;
+        long bytes_wr = 0;
+        for (final DiskDef disk : devices.getDisks()) {
+            if (disk.getDeviceType() == DeviceType.CDROM || disk.getDeviceType() == DeviceType.FLOPPY) {
+                continue;
             }
+            final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
+            io_rd += blockStats.rd_req;
+            io_wr += blockStats.wr_req;
+            bytes_rd += blockStats.rd_bytes;
+            bytes_wr += blockStats.wr_bytes;
+        }
 
-            /* get disk stats */
-            final List<DiskDef> disks = getDisks(conn, vmName);
-            long io_rd = 0;
-            long io_wr = 0;
-            long bytes_rd = 0;
-            long bytes_wr = 0;
-            for (final DiskDef disk : disks) {
-                if (disk.getDeviceType() == DeviceType.CDROM || disk.getDeviceType() == DeviceType.FLOPPY) {
-                    continue;
-                }
-                final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
-                io_rd += blockStats.rd_req;
-                io_wr += blockStats.wr_req;
-                bytes_rd += blockStats.rd_bytes;
-                bytes_wr += blockStats.wr_bytes;
-            }
-
-            if (oldStats != null) {
-                final long deltaiord = io_rd - oldStats._ioRead;
-                if (deltaiord > 0) {
-                    stats.setDiskReadIOs(deltaiord);
-                }
-                final long deltaiowr = io_wr - oldStats._ioWrote;
-                if (deltaiowr > 0) {
-                    stats.setDiskWriteIOs(deltaiowr);
-                }
-                final double deltabytesrd = bytes_rd - oldStats._bytesRead;
-                if (deltabytesrd > 0) {
-                    stats.setDiskReadKBs(deltabytesrd / 1024);
-                }
-                final double deltabyteswr = bytes_wr - oldStats._bytesWrote;
-                if (deltabyteswr > 0) {
-                    stats.setDiskWriteKBs(deltabyteswr / 1024);
-                }
-            }
-
-            /* save to Hashmap */
-            final VmStats newStat = new VmStats();
-            newStat._usedTime = info.cpuTime;
-            newStat._rx = rx;
-            newStat._tx = tx;
-            newStat._ioRead = io_rd;
-            newStat._ioWrote = io_wr;
-            newStat._bytesRead = bytes_rd;
-            newStat._bytesWrote = bytes_wr;
-            newStat._timestamp = now;
-            _vmStats.put(vmName, newStat);
-            return stats;
-        } finally {
-            if (dm != null) {
-                dm.free();
+        if (oldStats != null) {
+            final long deltaiord = io_rd - oldStats._ioRead;
+            if (deltaiord > 0) {
+                stats.setDiskReadIOs(deltaiord);
+            }
+            final long deltaiowr = io_wr - oldStats._ioWrote;
+            if (deltaiowr > 0) {
+                stats.setDiskWriteIOs(deltaiowr);
+            }
+            final double deltabytesrd = bytes_rd - oldStats._bytesRead;
+            if (deltabytesrd > 0) {
+                stats.setDiskReadKBs(deltabytesrd / 1024);
+            }
+            final double deltabyteswr = bytes_wr - oldStats._bytesWrote;
+            if (deltabyteswr > 0) {
+                stats.setDiskWriteKBs(deltabyteswr / 1024);
             }
         }
+
+        /* save to Hashmap */
+        final VmStats newStat = new VmStats();
+        newStat._usedTime = info.cpuTime;
+        newStat._rx = rx;
+        newStat._tx = tx;
+        newStat._ioRead = io_rd;
+        newStat._ioWrote = io_wr;
+        newStat._bytesRead = bytes_rd;
+        newStat._bytesWrote = bytes_wr;
+        newStat._timestamp = now;
+        _vmStats.put(vmName, newStat);
+        return stats;
     }
 
     /**
@@ -3437,6 +3576,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public boolean destroyNetworkRulesForVM(final Connect conn, final String vmName) {
+        _appliedSecurityGroupRules.remove(vmName);
         if (!_canBridgeFirewall) {
             return false;
         }
@@ -3460,6 +3600,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public boolean defaultNetworkRules(final Connect conn, final String vmName, final NicTO nic, final Long vmId, final String secIpStr) {
+        _appliedSecurityGroupRules.remove(vmName);
         if (!_canBridgeFirewall) {
             return false;
         }
@@ -3576,6 +3717,25 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return true;
     }
 
+    /**
+     * @return the security group ruleset programmed last for the VM, null if unknown, e.g. since the agent restarted
+     */
+    public SecurityGroupRulesCmd getAppliedSecurityGroupRules(final String vmName) {
+        return _appliedSecurityGroupRules.get(vmName);
+    }
+
+    /**
+     * Records the security group ruleset programmed for the VM, the base of the deltas sent for it next.
+     * @param rules the ruleset, null if the rules of the VM are unknown
+     */
+    public void setAppliedSecurityGroupRules(final String vmName, final SecurityGroupRulesCmd rules) {
+        if (rules == null) {
+            _appliedSecurityGroupRules.remove(vmName);
+        } else {
+            _appliedSecurityGroupRules.put(vmName, rules);
+        }
+    }
+
     public boolean configureNetworkRulesVMSecondaryIP(final Connect conn, final String vmName, final String secIp, final String action) {
 
         if (!_canBridgeFirewall) {
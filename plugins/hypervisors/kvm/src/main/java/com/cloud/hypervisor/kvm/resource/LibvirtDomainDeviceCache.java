@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+
+/**
+ * The NICs and disks of the domains on this host, so that collecting stats does not fetch and parse the
+ * domain XML of every VM on every call.
+ *
+ * An entry is dropped when the agent attaches or detaches a device, on the domain lifecycle events when
+ * vm.state.event.sync is enabled, and when the domain got a new id since it was loaded, i.e. it was
+ * restarted. Devices hotplugged behind the agent's back are picked up after vm.stats.device.cache.ttl
+ * seconds at the latest.
+ */
+public class LibvirtDomainDeviceCache {
+    private static final Logger s_logger = Logger.getLogger(LibvirtDomainDeviceCache.class);
+
+    public static class Devices {
+        private final int _domainId;
+        private final long _loaded;
+        private final List<InterfaceDef> _interfaces;
+        private final List<DiskDef> _disks;
+
+        Devices(int domainId, long loaded, List<InterfaceDef> interfaces, List<DiskDef> disks) {
+            _domainId = domainId;
+            _loaded = loaded;
+            _interfaces = interfaces;
+            _disks = disks;
+        }
+
+        public List<InterfaceDef> getInterfaces() {
+            return _interfaces;
+        }
+
+        public List<DiskDef> getDisks() {
+            return _disks;
+        }
+    }
+
+    private final LibvirtComputingResource _resource;
+    private final ConcurrentHashMap<String, Devices> _devices = new ConcurrentHashMap<String, Devices>();
+    private volatile long _ttl = 300000;
+
+    public LibvirtDomainDeviceCache(LibvirtComputingResource resource) {
+        _resource = resource;
+    }
+
+    /**
+     * @param ttl seconds an entry is used before the domain XML is parsed again, 0 to parse it every time
+     */
+    public void setTtl(int ttl) {
+        _ttl = ttl * 1000L;
+    }
+
+    /**
+     * Returns the devices of the domain, parsing its XML when they are not cached or out of date.
+     */
+    public Devices get(final Connect conn, final Domain dm, final String vmName) throws LibvirtException {
+        final int domainId = dm.getID();
+        final long now = System.currentTimeMillis();
+        Devices devices = _devices.get(vmName);
+        if (devices != null && devices._domainId == domainId && now - devices._loaded < _ttl) {
+            return devices;
+        }
+
+        devices = new Devices(domainId, now, _resource.getInterfaces(conn, vmName), _resource.getDisks(conn, vmName));
+        // an empty domain is what a failure to read its XML looks like, try again next time
+        if (_ttl > 0 && !(devices._interfaces.isEmpty() && devices._disks.isEmpty())) {
+            _devices.put(vmName, devices);
+        }
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Loaded " + devices._interfaces.size() + " interfaces and " + devices._disks.size() + " disks of " + vmName);
+        }
+        return devices;
+    }
+
+    public void invalidate(final String vmName) {
+        _devices.remove(vmName);
+    }
+
+    public void invalidateAll() {
+        _devices.clear();
+    }
+
+    /**
+     * Drops the entries that are out of date, e.g. those of domains that left the host.
+     */
+    public void purgeExpired() {
+        final long now = System.currentTimeMillis();
+        for (final Iterator<Devices> it = _devices.values().iterator(); it.hasNext();) {
+            if (now - it.next()._loaded >= _ttl) {
+                it.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return _devices.size();
+    }
+}
@@ -0,0 +1,183 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.Library;
+import org.libvirt.LibvirtException;
+import org.libvirt.event.DomainEvent;
+import org.libvirt.event.DomainEventDetail;
+import org.libvirt.event.DomainEventType;
+import org.libvirt.event.LifecycleListener;
+import org.libvirt.event.StartedReason;
+import org.libvirt.event.StoppedReason;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+/**
+ * Delivers libvirt domain lifecycle events to a {@link LibvirtVmStateMonitor}.
+ *
+ * One listener is registered per libvirt connection, a new one is registered whenever
+ * {@link LibvirtConnection} had to reopen the connection.
+ */
+public class LibvirtDomainEventSource implements LibvirtVmStateMonitor.DomainStateSource {
+    private static final Logger s_logger = Logger.getLogger(LibvirtDomainEventSource.class);
+
+    private static boolean s_eventLoopStarted;
+    private static volatile boolean s_eventLoopRunning;
+
+    private final LibvirtComputingResource _resource;
+    private final List<String> _hypervisorTypes;
+    private final Map<String, Connect> _subscriptions = new HashMap<String, Connect>();
+
+    public LibvirtDomainEventSource(LibvirtComputingResource resource, List<String> hypervisorTypes) {
+        _resource = resource;
+        _hypervisorTypes = hypervisorTypes;
+    }
+
+    /**
+     * Starts the libvirt event loop, this has to happen before the first connection is opened.
+     */
+    static synchronized void startEventLoop() throws LibvirtException {
+        if (s_eventLoopStarted) {
+            return;
+        }
+
+        Library.initEventLoop();
+        Thread eventLoop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Library.runEventLoop();
+                } catch (LibvirtException | InterruptedException e) {
+                    s_logger.warn("Libvirt event loop stopped, falling back to full VM state reports: " + e.getMessage());
+                } finally {
+                    s_eventLoopRunning = false;
+                }
+            }
+        }, "Libvirt event loop");
+        eventLoop.setDaemon(true);
+        s_eventLoopRunning = true;
+        s_eventLoopStarted = true;
+        eventLoop.start();
+    }
+
+    @Override
+    public synchronized boolean ensureSubscribed(final LibvirtVmStateMonitor monitor) {
+        if (!s_eventLoopRunning) {
+            return false;
+        }
+
+        boolean intact = true;
+        for (String hypervisorType : _hypervisorTypes) {
+            try {
+                final Connect conn = LibvirtConnection.getConnectionByType(hypervisorType);
+                if (_subscriptions.get(hypervisorType) == conn) {
+                    continue;
+                }
+
+                s_logger.info("Registering for domain lifecycle events on " + hypervisorType + " connection");
+                conn.addLifecycleListener(new DomainLifecycleListener(monitor, _resource, conn.getHostName()));
+                _subscriptions.put(hypervisorType, conn);
+            } catch (final LibvirtException e) {
+                s_logger.warn("Unable to register for domain lifecycle events on " + hypervisorType + " connection: " + e.getMessage());
+                _subscriptions.remove(hypervisorType);
+            }
+            intact = false;
+        }
+        return intact;
+    }
+
+    @Override
+    public Map<String, HostVmStateReportEntry> getFullReport() {
+        return _resource.getHostVmStateReport();
+    }
+
+    /**
+     * Maps a lifecycle event to the power state reported for the domain, null for events that do
+     * not change it.
+     *
+     * A domain that is stopped or started because it was migrated, saved or reverted to a snapshot
+     * keeps running on some host, the orchestration that caused it updates the VM itself. Reporting
+     * such a stop as PowerOff would have the management server stop or restart the VM.
+     */
+    static PowerState getPowerState(DomainEventType type, DomainEventDetail detail) {
+        switch (type) {
+        case STARTED:
+            if (detail == StartedReason.MIGRATED || detail == StartedReason.FROM_SNAPSHOT) {
+                return null;
+            }
+            return PowerState.PowerOn;
+        case RESUMED:
+        case SUSPENDED:
+        case PMSUSPENDED:
+            return PowerState.PowerOn;
+        case STOPPED:
+            if (detail == StoppedReason.MIGRATED || detail == StoppedReason.SAVED || detail == StoppedReason.FROM_SNAPSHOT) {
+                return null;
+            }
+            return PowerState.PowerOff;
+        case SHUTDOWN:
+        case CRASHED:
+        case UNDEFINED:
+            return PowerState.PowerOff;
+        default:
+            return null;
+        }
+    }
+
+    private static class DomainLifecycleListener implements LifecycleListener {
+        private final LibvirtVmStateMonitor _monitor;
+        private final LibvirtComputingResource _resource;
+        private final String _hostName;
+
+        DomainLifecycleListener(LibvirtVmStateMonitor monitor, LibvirtComputingResource resource, String hostName) {
+            _monitor = monitor;
+            _resource = resource;
+            _hostName = hostName;
+        }
+
+        @Override
+        public int onLifecycleChange(Domain domain, DomainEvent event) {
+            final DomainEventType type = event.getType();
+            final PowerState state = getPowerState(type, event.getDetail());
+            if (state == null && type != DomainEventType.DEFINED) {
+                return 0;
+            }
+
+            try {
+                // the domain may have been (re)defined with other devices
+                _resource.invalidateDomainDevices(domain.getName());
+                if (state == null) {
+                    return 0;
+                }
+                _monitor.onDomainStateChange(domain.getName(), state, _hostName);
+            } catch (final LibvirtException e) {
+                // the next full report picks the change up
+                s_logger.warn("Unable to process " + type + " event: " + e.getMessage());
+            }
+            return 0;
+        }
+    }
+}
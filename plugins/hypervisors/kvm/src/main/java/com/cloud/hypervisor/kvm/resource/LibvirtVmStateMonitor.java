@@ -0,0 +1,159 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+/**
+ * Keeps the power state of the domains on this host up to date from libvirt lifecycle events, so a ping
+ * only needs to carry the VMs whose state changed since the previous ping.
+ *
+ * A full report is still produced every fullReportInterval pings, and whenever the event subscription
+ * had to be (re)established, since events may have been missed in the meantime.
+ */
+public class LibvirtVmStateMonitor {
+    private static final Logger s_logger = Logger.getLogger(LibvirtVmStateMonitor.class);
+
+    /**
+     * The libvirt side of the monitor, see {@link LibvirtDomainEventSource}.
+     */
+    public interface DomainStateSource {
+        /**
+         * Makes sure lifecycle events are delivered to the monitor.
+         *
+         * @return true if the existing subscription is still in place, false if it had to be
+         *         (re)established or could not be established, in which case a full report is needed
+         */
+        boolean ensureSubscribed(LibvirtVmStateMonitor monitor);
+
+        /**
+         * Lists the powered on domains of the host, the same content as a full ping report.
+         */
+        Map<String, HostVmStateReportEntry> getFullReport();
+    }
+
+    public static class Report {
+        private final Map<String, HostVmStateReportEntry> _states;
+        private final boolean _delta;
+
+        public Report(Map<String, HostVmStateReportEntry> states, boolean delta) {
+            _states = states;
+            _delta = delta;
+        }
+
+        public Map<String, HostVmStateReportEntry> getStates() {
+            return _states;
+        }
+
+        public boolean isDelta() {
+            return _delta;
+        }
+    }
+
+    private final DomainStateSource _source;
+    private final int _fullReportInterval;
+
+    // powered on domains as last reported
+    private Map<String, HostVmStateReportEntry> _states = new HashMap<String, HostVmStateReportEntry>();
+    // changes not yet sent to the management server
+    private Map<String, HostVmStateReportEntry> _pending = new HashMap<String, HostVmStateReportEntry>();
+    private int _deltaReports;
+    private boolean _fullReportDone;
+
+    public LibvirtVmStateMonitor(DomainStateSource source, int fullReportInterval) {
+        _source = source;
+        _fullReportInterval = fullReportInterval;
+    }
+
+    /**
+     * Called from the libvirt event thread when a domain changed state.
+     */
+    public synchronized void onDomainStateChange(String vmName, PowerState state, String hostName) {
+        HostVmStateReportEntry current = _states.get(vmName);
+        if (state == PowerState.PowerOn) {
+            if (current != null) {
+                return;
+            }
+            HostVmStateReportEntry entry = new HostVmStateReportEntry(state, hostName);
+            _states.put(vmName, entry);
+            _pending.put(vmName, entry);
+        } else {
+            if (current == null) {
+                return;
+            }
+            _states.remove(vmName);
+            _pending.put(vmName, new HostVmStateReportEntry(state, hostName));
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Domain " + vmName + " changed power state to " + state);
+        }
+    }
+
+    /**
+     * Returns the report for the next ping: the changes since the previous ping, or all powered on
+     * domains when a full report is due.
+     */
+    public Report getReport() {
+        synchronized (this) {
+            boolean subscribed = _source.ensureSubscribed(this);
+            if (subscribed && _fullReportDone && _deltaReports < _fullReportInterval) {
+                _deltaReports++;
+                Map<String, HostVmStateReportEntry> delta = _pending;
+                _pending = new HashMap<String, HostVmStateReportEntry>();
+                return new Report(delta, true);
+            }
+            _pending.clear();
+        }
+
+        // list the domains outside the lock so that events keep flowing in the meantime
+        Map<String, HostVmStateReportEntry> full = _source.getFullReport();
+
+        synchronized (this) {
+            // events received during the scan may or may not be in it, keep them for the next delta
+            Map<String, HostVmStateReportEntry> states = new HashMap<String, HostVmStateReportEntry>(full);
+            for (Map.Entry<String, HostVmStateReportEntry> change : _pending.entrySet()) {
+                if (change.getValue().getState() == PowerState.PowerOn) {
+                    states.put(change.getKey(), change.getValue());
+                } else {
+                    states.remove(change.getKey());
+                }
+            }
+            _states = states;
+            _deltaReports = 0;
+            _fullReportDone = true;
+        }
+        return new Report(full, false);
+    }
+
+    /**
+     * Forces the next ping to carry a full report, used after the management server lost track of the host.
+     */
+    public synchronized void requestFullReport() {
+        _fullReportDone = false;
+    }
+
+    public synchronized Map<String, HostVmStateReportEntry> getStates() {
+        return new HashMap<String, HostVmStateReportEntry>(_states);
+    }
+}
@@ -0,0 +1,62 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.hypervisor.kvm.resource.wrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.BatchSecurityGroupRulesAnswer;
+import com.cloud.agent.api.BatchSecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRuleAnswer;
+import com.cloud.agent.api.SecurityGroupRuleAnswer.FailureReason;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesDelta;
+import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
+import com.cloud.resource.CommandWrapper;
+import com.cloud.resource.ResourceWrapper;
+
+@ResourceWrapper(handles =  BatchSecurityGroupRulesCmd.class)
+public final class LibvirtBatchSecurityGroupRulesCommandWrapper extends CommandWrapper<BatchSecurityGroupRulesCmd, Answer, LibvirtComputingResource> {
+
+    private static final Logger s_logger = Logger.getLogger(LibvirtBatchSecurityGroupRulesCommandWrapper.class);
+
+    private final LibvirtSecurityGroupRulesCommandWrapper rulesWrapper = new LibvirtSecurityGroupRulesCommandWrapper();
+
+    @Override
+    public Answer execute(final BatchSecurityGroupRulesCmd command, final LibvirtComputingResource libvirtComputingResource) {
+        final List<SecurityGroupRuleAnswer> answers = new ArrayList<SecurityGroupRuleAnswer>(command.size());
+        for (final SecurityGroupRulesCmd ruleset : command.getRulesets()) {
+            answers.add((SecurityGroupRuleAnswer)rulesWrapper.execute(ruleset, libvirtComputingResource));
+        }
+        for (final SecurityGroupRulesDelta delta : command.getDeltas()) {
+            final SecurityGroupRulesCmd ruleset = delta.applyTo(libvirtComputingResource.getAppliedSecurityGroupRules(delta.getVmName()));
+            if (ruleset == null) {
+                s_logger.debug("Network rules of vm " + delta.getVmName() + " are not the ones with signature " + delta.getBaseSignature() + ", asking for its full ruleset");
+                answers.add(new SecurityGroupRuleAnswer(delta, command, false, "ruleset out of sync", FailureReason.RULESET_OUT_OF_SYNC));
+            } else {
+                answers.add((SecurityGroupRuleAnswer)rulesWrapper.execute(ruleset, libvirtComputingResource));
+            }
+        }
+        return new BatchSecurityGroupRulesAnswer(command, answers);
+    }
+}
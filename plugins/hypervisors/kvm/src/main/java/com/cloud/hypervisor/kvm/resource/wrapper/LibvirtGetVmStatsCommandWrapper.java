@@ -19,8 +19,11 @@
 
 package com.cloud.hypervisor.kvm.resource.wrapper;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
@@ -44,18 +47,23 @@ public final class LibvirtGetVmStatsCommandWrapper extends CommandWrapper<GetVmS
         final List<String> vmNames = command.getVmNames();
         try {
             final HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>();
-            for (final String vmName : vmNames) {
-
-                final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
+            final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
 
+            // collect the VMs of each connection in one pass
+            final Map<Connect, List<String>> vmNamesByConnection = new LinkedHashMap<Connect, List<String>>();
+            for (final String vmName : vmNames) {
                 final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(vmName);
-                try {
-                    final VmStatsEntry statEntry = libvirtComputingResource.getVmStat(conn, vmName);
-                    if (statEntry == null) {
-                        continue;
-                    }
+                List<String> connectionVmNames = vmNamesByConnection.get(conn);
+                if (connectionVmNames == null) {
+                    connectionVmNames = new ArrayList<String>();
+                    vmNamesByConnection.put(conn, connectionVmNames);
+                }
+                connectionVmNames.add(vmName);
+            }
 
-                    vmStatsNameMap.put(vmName, statEntry);
+            for (final Map.Entry<Connect, List<String>> entry : vmNamesByConnection.entrySet()) {
+                try {
+                    vmStatsNameMap.putAll(libvirtComputingResource.getVmStats(entry.getKey(), entry.getValue()));
                 } catch (LibvirtException e) {
                     s_logger.warn("Can't get vm stats: " + e.toString() + ", continue");
                 }
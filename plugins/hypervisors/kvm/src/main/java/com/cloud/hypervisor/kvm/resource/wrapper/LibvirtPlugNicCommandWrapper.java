@@ -63,6 +63,7 @@ public final class LibvirtPlugNicCommandWrapper extends CommandWrapper<PlugNicCo
             final VifDriver vifDriver = libvirtComputingResource.getVifDriver(nic.getType(), nic.getName());
             final InterfaceDef interfaceDef = vifDriver.plug(nic, "Other PV", "");
             vm.attachDevice(interfaceDef.toString());
+            libvirtComputingResource.invalidateDomainDevices(vmName);
 
             return new PlugNicAnswer(command, true, "success");
         } catch (final LibvirtException e) {
@@ -51,6 +51,7 @@ public final class LibvirtSecurityGroupRulesCommandWrapper extends CommandWrappe
             vif = nics.get(0).getDevName();
             brname = nics.get(0).getBrName();
         } catch (final LibvirtException e) {
+            libvirtComputingResource.setAppliedSecurityGroupRules(command.getVmName(), null);
             return new SecurityGroupRuleAnswer(command, false, e.toString());
         }
 
@@ -58,9 +59,11 @@ public final class LibvirtSecurityGroupRulesCommandWrapper extends CommandWrappe
                 Long.toString(command.getSeqNum()), command.getGuestMac(), command.stringifyRules(), vif, brname, command.getSecIpsString());
 
         if (!result) {
+            libvirtComputingResource.setAppliedSecurityGroupRules(command.getVmName(), null);
             s_logger.warn("Failed to program network rules for vm " + command.getVmName());
             return new SecurityGroupRuleAnswer(command, false, "programming network rules failed");
         } else {
+            libvirtComputingResource.setAppliedSecurityGroupRules(command.getVmName(), command);
             s_logger.debug("Programmed network rules for vm " + command.getVmName() + " guestIp=" + command.getGuestIp() + ",ingress numrules="
                     + command.getIngressRuleSet().size() + ",egress numrules=" + command.getEgressRuleSet().size());
             return new SecurityGroupRuleAnswer(command);
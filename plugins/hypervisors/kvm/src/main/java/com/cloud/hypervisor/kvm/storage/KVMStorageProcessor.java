@@ -109,6 +109,7 @@ import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.StoragePoolType;
 import com.cloud.storage.StorageLayer;
 import com.cloud.storage.resource.StorageProcessor;
+import com.cloud.storage.template.BandwidthLimiter;
 import com.cloud.storage.template.Processor;
 import com.cloud.storage.template.Processor.FormatInfo;
 import com.cloud.storage.template.QCOW2Processor;
@@ -126,6 +127,8 @@ public class KVMStorageProcessor implements StorageProcessor {
     private String _createTmplPath;
     private String _manageSnapshotPath;
     private int _cmdsTimeout;
+    private int directDownloadParallelSegments;
+    private final BandwidthLimiter directDownloadBandwidthLimiter = new BandwidthLimiter(0);
 
     public KVMStorageProcessor(final KVMStoragePoolManager storagePoolMgr, final LibvirtComputingResource resource) {
         this.storagePoolMgr = storagePoolMgr;
@@ -157,6 +160,11 @@ public class KVMStorageProcessor implements StorageProcessor {
 
         final String value = (String)params.get("cmds.timeout");
         _cmdsTimeout = NumbersUtil.parseInt(value, 7200) * 1000;
+
+        directDownloadParallelSegments = NumbersUtil.parseInt((String)params.get("direct.download.parallel.segments"), 1);
+        // shared by all direct downloads of this host, in megabits per second
+        final long bandwidthLimit = NumbersUtil.parseLong((String)params.get("direct.download.bandwidth.limit"), 0);
+        directDownloadBandwidthLimiter.setRate(bandwidthLimit * 1000 * 1000 / 8);
         return true;
     }
 
@@ -1600,17 +1608,21 @@ public class KVMStorageProcessor implements StorageProcessor {
      * Get direct template downloader from direct download command and destination pool
      */
     private DirectTemplateDownloader getDirectTemplateDownloaderFromCommand(DirectDownloadCommand cmd, KVMStoragePool destPool) {
+        HttpDirectTemplateDownloader httpDownloader;
         if (cmd instanceof HttpDirectDownloadCommand) {
-            return new HttpDirectTemplateDownloader(cmd.getUrl(), cmd.getTemplateId(), destPool.getLocalPath(), cmd.getChecksum(), cmd.getHeaders());
+            httpDownloader = new HttpDirectTemplateDownloader(cmd.getUrl(), cmd.getTemplateId(), destPool.getLocalPath(), cmd.getChecksum(), cmd.getHeaders());
         } else if (cmd instanceof HttpsDirectDownloadCommand) {
-            return new HttpsDirectTemplateDownloader(cmd.getUrl(), cmd.getTemplateId(), destPool.getLocalPath(), cmd.getChecksum(), cmd.getHeaders());
+            httpDownloader = new HttpsDirectTemplateDownloader(cmd.getUrl(), cmd.getTemplateId(), destPool.getLocalPath(), cmd.getChecksum(), cmd.getHeaders());
         } else if (cmd instanceof NfsDirectDownloadCommand) {
             return new NfsDirectTemplateDownloader(cmd.getUrl(), destPool.getLocalPath(), cmd.getTemplateId(), cmd.getChecksum());
         } else if (cmd instanceof MetalinkDirectDownloadCommand) {
-            return new MetalinkDirectTemplateDownloader(cmd.getUrl(), destPool.getLocalPath(), cmd.getTemplateId(), cmd.getChecksum(), cmd.getHeaders());
+            httpDownloader = new MetalinkDirectTemplateDownloader(cmd.getUrl(), destPool.getLocalPath(), cmd.getTemplateId(), cmd.getChecksum(), cmd.getHeaders());
         } else {
             throw new IllegalArgumentException("Unsupported protocol, please provide HTTP(S), NFS or a metalink");
         }
+        httpDownloader.setParallelSegments(directDownloadParallelSegments);
+        httpDownloader.setBandwidthLimiter(directDownloadBandwidthLimiter);
+        return httpDownloader;
     }
 
     @Override
@@ -1648,6 +1660,8 @@ public class KVMStorageProcessor implements StorageProcessor {
         }
 
         DirectTemplateInformation info = downloader.getTemplateInformation();
-        return new DirectDownloadAnswer(true, info.getSize(), info.getInstallPath());
+        DirectDownloadAnswer answer = new DirectDownloadAnswer(true, info.getSize(), info.getInstallPath());
+        answer.setDownloadStats(info.getDownloadedBytes(), info.getDownloadDuration());
+        return answer;
     }
 }
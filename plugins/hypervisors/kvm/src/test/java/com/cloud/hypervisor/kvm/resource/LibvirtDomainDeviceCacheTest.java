@@ -0,0 +1,187 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainBlockStats;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInterfaceStats;
+import org.libvirt.LibvirtException;
+import org.libvirt.NodeInfo;
+
+import com.cloud.agent.api.VmStatsEntry;
+
+public class LibvirtDomainDeviceCacheTest {
+    private static final Logger s_logger = Logger.getLogger(LibvirtDomainDeviceCacheTest.class);
+
+    private static final int VMS = 150;
+
+    Connect _conn;
+    LibvirtComputingResource _resource;
+    Map<String, Domain> _domains = new HashMap<String, Domain>();
+    List<String> _vmNames = new ArrayList<String>();
+
+    private static String domainXml(String vmName, int nics) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<domain type='kvm' id='1'><name>").append(vmName).append("</name><devices>");
+        xml.append("<disk type='file' device='disk'><driver name='qemu' type='qcow2' cache='none'/>");
+        xml.append("<source file='/mnt/pool/").append(vmName).append("-root'/><target dev='vda' bus='virtio'/></disk>");
+        xml.append("<disk type='file' device='disk'><driver name='qemu' type='qcow2' cache='none'/>");
+        xml.append("<source file='/mnt/pool/").append(vmName).append("-data'/><target dev='vdb' bus='virtio'/></disk>");
+        xml.append("<disk type='file' device='cdrom'><driver name='qemu' type='raw'/><target dev='hdc' bus='ide'/><readonly/></disk>");
+        for (int i = 0; i < nics; i++) {
+            xml.append("<interface type='bridge'><mac address='06:00:00:00:00:0").append(i).append("'/>");
+            xml.append("<source bridge='cloudbr0'/><target dev='vnet").append(i).append("'/><model type='virtio'/></interface>");
+        }
+        xml.append("</devices></domain>");
+        return xml.toString();
+    }
+
+    private Domain addDomain(String vmName) throws LibvirtException {
+        Domain dm = mock(Domain.class);
+        when(dm.getXMLDesc(0)).thenReturn(domainXml(vmName, 2));
+        when(dm.getID()).thenReturn(1);
+        when(dm.getInfo()).thenReturn(new DomainInfo());
+        when(dm.interfaceStats(anyString())).thenReturn(new DomainInterfaceStats());
+        when(dm.blockStats(anyString())).thenReturn(new DomainBlockStats());
+        when(_conn.domainLookupByName(vmName)).thenReturn(dm);
+        _domains.put(vmName, dm);
+        _vmNames.add(vmName);
+        return dm;
+    }
+
+    @Before
+    public void setup() throws LibvirtException {
+        _conn = mock(Connect.class);
+        NodeInfo nodeInfo = new NodeInfo();
+        nodeInfo.cpus = 32;
+        when(_conn.nodeInfo()).thenReturn(nodeInfo);
+        for (int i = 0; i < VMS; i++) {
+            addDomain("i-2-" + i + "-VM");
+        }
+        _resource = new LibvirtComputingResource();
+    }
+
+    @Test
+    public void testDomainXmlParsedOnce() throws LibvirtException {
+        for (int i = 0; i < 3; i++) {
+            Map<String, VmStatsEntry> stats = _resource.getVmStats(_conn, _vmNames);
+            Assert.assertEquals(VMS, stats.size());
+        }
+
+        // once for the interfaces and once for the disks, on the first collection only
+        for (Domain dm : _domains.values()) {
+            verify(dm, times(2)).getXMLDesc(0);
+            verify(dm, times(3 * 2)).interfaceStats(anyString());
+            // the cdrom is left out
+            verify(dm, times(3 * 2)).blockStats(anyString());
+        }
+        verify(_conn, times(3)).nodeInfo();
+    }
+
+    @Test
+    public void testDevicesReloadedAfterAttach() throws LibvirtException {
+        String vmName = _vmNames.get(0);
+        Domain dm = _domains.get(vmName);
+        _resource.getVmStats(_conn, _vmNames);
+
+        when(dm.getXMLDesc(0)).thenReturn(domainXml(vmName, 3));
+        _resource.invalidateDomainDevices(vmName);
+        _resource.getVmStats(_conn, _vmNames);
+
+        verify(dm, times(4)).getXMLDesc(0);
+        verify(dm, times(2 + 3)).interfaceStats(anyString());
+    }
+
+    @Test
+    public void testDevicesReloadedAfterRestart() throws LibvirtException {
+        Domain dm = _domains.get(_vmNames.get(0));
+        _resource.getVmStats(_conn, _vmNames);
+
+        when(dm.getID()).thenReturn(2);
+        _resource.getVmStats(_conn, _vmNames);
+
+        verify(dm, times(4)).getXMLDesc(0);
+    }
+
+    @Test
+    public void testDevicesReloadedWhenDeviceIsGone() throws LibvirtException {
+        String vmName = _vmNames.get(0);
+        Domain dm = _domains.get(vmName);
+        _resource.getVmStats(_conn, _vmNames);
+
+        // vnet1 got unplugged behind the agent's back
+        when(dm.getXMLDesc(0)).thenReturn(domainXml(vmName, 1));
+        when(dm.interfaceStats("vnet1")).thenThrow(LibvirtException.class);
+        Map<String, VmStatsEntry> stats = _resource.getVmStats(_conn, _vmNames);
+
+        Assert.assertNotNull(stats.get(vmName));
+        verify(dm, times(4)).getXMLDesc(0);
+    }
+
+    @Test
+    public void testMissingDomainIsLeftOut() throws LibvirtException {
+        List<String> vmNames = new ArrayList<String>(_vmNames);
+        vmNames.add("i-2-999-VM");
+        when(_conn.domainLookupByName("i-2-999-VM")).thenThrow(LibvirtException.class);
+
+        Assert.assertEquals(VMS, _resource.getVmStats(_conn, vmNames).size());
+    }
+
+    @Test
+    public void testCollectionTimePerHost() throws LibvirtException {
+        final int rounds = 20;
+        LibvirtComputingResource uncached = new LibvirtComputingResource();
+        uncached.getDomainDeviceCache().setTtl(0);
+        long parsing = collect(uncached, rounds);
+        long cached = collect(_resource, rounds);
+
+        s_logger.info(String.format("Stats of %d VMs per host: %.1f ms parsing the domain XML every time, %.1f ms with cached devices",
+                VMS, parsing / 1e6 / rounds, cached / 1e6 / rounds));
+        // every collection without the cache, the warm up only with it
+        for (Domain dm : _domains.values()) {
+            verify(dm, times(2 * (rounds + 1) + 2)).getXMLDesc(anyInt());
+        }
+    }
+
+    private long collect(LibvirtComputingResource resource, int rounds) throws LibvirtException {
+        // warm up
+        resource.getVmStats(_conn, _vmNames);
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Assert.assertEquals(VMS, resource.getVmStats(_conn, _vmNames).size());
+        }
+        return System.nanoTime() - begin;
+    }
+}
@@ -0,0 +1,51 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.libvirt.event.DomainEventType;
+import org.libvirt.event.StartedReason;
+import org.libvirt.event.StoppedReason;
+
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class LibvirtDomainEventSourceTest {
+
+    @Test
+    public void testStopAndStartAreReported() {
+        assertEquals(PowerState.PowerOff, LibvirtDomainEventSource.getPowerState(DomainEventType.STOPPED, StoppedReason.SHUTDOWN));
+        assertEquals(PowerState.PowerOff, LibvirtDomainEventSource.getPowerState(DomainEventType.STOPPED, StoppedReason.DESTROYED));
+        assertEquals(PowerState.PowerOn, LibvirtDomainEventSource.getPowerState(DomainEventType.STARTED, StartedReason.BOOTED));
+    }
+
+    @Test
+    public void testMigratedDomainIsNotReported() {
+        // source host after a live migration, the VM keeps running on the destination
+        assertNull(LibvirtDomainEventSource.getPowerState(DomainEventType.STOPPED, StoppedReason.MIGRATED));
+        assertNull(LibvirtDomainEventSource.getPowerState(DomainEventType.STARTED, StartedReason.MIGRATED));
+    }
+
+    @Test
+    public void testSavedOrSnapshotRevertedDomainIsNotReported() {
+        assertNull(LibvirtDomainEventSource.getPowerState(DomainEventType.STOPPED, StoppedReason.SAVED));
+        assertNull(LibvirtDomainEventSource.getPowerState(DomainEventType.STOPPED, StoppedReason.FROM_SNAPSHOT));
+        assertNull(LibvirtDomainEventSource.getPowerState(DomainEventType.STARTED, StartedReason.FROM_SNAPSHOT));
+    }
+}
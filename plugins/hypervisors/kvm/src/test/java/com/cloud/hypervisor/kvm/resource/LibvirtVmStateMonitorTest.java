@@ -0,0 +1,182 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class LibvirtVmStateMonitorTest {
+
+    /**
+     * Stands in for the libvirt connections: holds the running domains and fires lifecycle events.
+     */
+    static class FakeDomainStateSource implements LibvirtVmStateMonitor.DomainStateSource {
+        final Map<String, HostVmStateReportEntry> running = new HashMap<String, HostVmStateReportEntry>();
+        LibvirtVmStateMonitor monitor;
+        boolean subscribed;
+        int fullReports;
+        Runnable duringScan;
+
+        @Override
+        public boolean ensureSubscribed(LibvirtVmStateMonitor monitor) {
+            boolean intact = subscribed && this.monitor == monitor;
+            this.monitor = monitor;
+            subscribed = true;
+            return intact;
+        }
+
+        @Override
+        public Map<String, HostVmStateReportEntry> getFullReport() {
+            fullReports++;
+            Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>(running);
+            if (duringScan != null) {
+                duringScan.run();
+                duringScan = null;
+            }
+            return report;
+        }
+
+        void start(String vmName) {
+            running.put(vmName, new HostVmStateReportEntry(PowerState.PowerOn, "kvm1"));
+            if (subscribed)
+                monitor.onDomainStateChange(vmName, PowerState.PowerOn, "kvm1");
+        }
+
+        void stop(String vmName) {
+            running.remove(vmName);
+            if (subscribed)
+                monitor.onDomainStateChange(vmName, PowerState.PowerOff, "kvm1");
+        }
+
+        void reconnect() {
+            subscribed = false;
+        }
+    }
+
+    FakeDomainStateSource source;
+    LibvirtVmStateMonitor monitor;
+
+    @Before
+    public void setUp() {
+        source = new FakeDomainStateSource();
+        source.running.put("i-2-10-VM", new HostVmStateReportEntry(PowerState.PowerOn, "kvm1"));
+        source.running.put("r-11-VM", new HostVmStateReportEntry(PowerState.PowerOn, "kvm1"));
+        monitor = new LibvirtVmStateMonitor(source, 3);
+    }
+
+    @Test
+    public void testFirstReportIsFull() {
+        LibvirtVmStateMonitor.Report report = monitor.getReport();
+        assertFalse(report.isDelta());
+        assertEquals(2, report.getStates().size());
+        assertEquals(1, source.fullReports);
+    }
+
+    @Test
+    public void testDeltaReportsCarryOnlyChanges() {
+        monitor.getReport();
+
+        LibvirtVmStateMonitor.Report report = monitor.getReport();
+        assertTrue(report.isDelta());
+        assertTrue(report.getStates().isEmpty());
+
+        source.start("i-2-12-VM");
+        source.stop("r-11-VM");
+        report = monitor.getReport();
+        assertTrue(report.isDelta());
+        assertEquals(2, report.getStates().size());
+        assertEquals(PowerState.PowerOn, report.getStates().get("i-2-12-VM").getState());
+        assertEquals(PowerState.PowerOff, report.getStates().get("r-11-VM").getState());
+        assertEquals(1, source.fullReports);
+
+        assertTrue(monitor.getReport().getStates().isEmpty());
+        assertEquals(2, monitor.getStates().size());
+    }
+
+    @Test
+    public void testRedundantEventsAreIgnored() {
+        monitor.getReport();
+
+        // resume of a running domain, stop of a domain that was never reported
+        monitor.onDomainStateChange("i-2-10-VM", PowerState.PowerOn, "kvm1");
+        monitor.onDomainStateChange("i-2-99-VM", PowerState.PowerOff, "kvm1");
+        assertTrue(monitor.getReport().getStates().isEmpty());
+    }
+
+    @Test
+    public void testPeriodicFullReport() {
+        monitor.getReport();
+        for (int i = 0; i < 3; i++)
+            assertTrue(monitor.getReport().isDelta());
+
+        LibvirtVmStateMonitor.Report report = monitor.getReport();
+        assertFalse(report.isDelta());
+        assertEquals(2, report.getStates().size());
+        assertTrue(monitor.getReport().isDelta());
+    }
+
+    @Test
+    public void testFullReportAfterResubscribe() {
+        monitor.getReport();
+        source.reconnect();
+        // missed while the connection was down
+        source.running.remove("r-11-VM");
+
+        LibvirtVmStateMonitor.Report report = monitor.getReport();
+        assertFalse(report.isDelta());
+        assertEquals(1, report.getStates().size());
+        assertTrue(monitor.getReport().isDelta());
+    }
+
+    @Test
+    public void testRequestFullReport() {
+        monitor.getReport();
+        monitor.requestFullReport();
+        assertFalse(monitor.getReport().isDelta());
+    }
+
+    @Test
+    public void testEventsDuringFullScanAreNotLost() {
+        monitor.getReport();
+        monitor.requestFullReport();
+        source.duringScan = new Runnable() {
+            @Override
+            public void run() {
+                source.start("i-2-12-VM");
+            }
+        };
+
+        LibvirtVmStateMonitor.Report report = monitor.getReport();
+        assertFalse(report.isDelta());
+        assertFalse(report.getStates().containsKey("i-2-12-VM"));
+
+        report = monitor.getReport();
+        assertTrue(report.isDelta());
+        assertEquals(PowerState.PowerOn, report.getStates().get("i-2-12-VM").getState());
+        assertEquals(3, monitor.getStates().size());
+    }
+}
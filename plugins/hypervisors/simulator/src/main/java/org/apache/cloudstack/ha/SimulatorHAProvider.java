@@ -22,6 +22,7 @@ import com.cloud.host.Host;
 import com.cloud.hypervisor.Hypervisor;
 import com.cloud.utils.fsm.StateListener;
 import com.cloud.utils.fsm.StateMachine2;
+import org.apache.cloudstack.ha.provider.BatchHealthCheckerInterface;
 import org.apache.cloudstack.ha.provider.HACheckerException;
 import org.apache.cloudstack.ha.provider.HAFenceException;
 import org.apache.cloudstack.ha.provider.HAProvider;
@@ -32,11 +33,12 @@ import org.joda.time.DateTime;
 import javax.inject.Inject;
 import java.security.InvalidParameterException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-public class SimulatorHAProvider extends HAAbstractHostProvider implements HAProvider<Host>, StateListener<HAConfig.HAState, HAConfig.Event, HAConfig> {
+public class SimulatorHAProvider extends HAAbstractHostProvider implements HAProvider<Host>, BatchHealthCheckerInterface<Host>, StateListener<HAConfig.HAState, HAConfig.Event, HAConfig> {
 
     @Inject
     private HAManager haManager;
@@ -86,6 +88,15 @@ public class SimulatorHAProvider extends HAAbstractHostProvider implements HAPro
         return haState != null && haState.isHealthy();
     }
 
+    @Override
+    public Map<Long, Boolean> areHealthy(final List<Host> hosts) throws HACheckerException {
+        final Map<Long, Boolean> health = new HashMap<>();
+        for (final Host host : hosts) {
+            health.put(host.getId(), isHealthy(host));
+        }
+        return health;
+    }
+
     @Override
     public boolean hasActivity(final Host host, final DateTime afterThis) throws HACheckerException {
         final SimulatorHAState haState = hostHAStateMap.get(host.getId());
@@ -44,7 +44,6 @@ import java.util.TimeZone;
 import java.util.UUID;
 import javax.naming.ConfigurationException;
 
-import org.apache.commons.lang.math.NumberUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
@@ -68,18 +67,9 @@ import com.vmware.vim25.HostInternetScsiHba;
 import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.ObjectContent;
 import com.vmware.vim25.OptionValue;
-import com.vmware.vim25.PerfCounterInfo;
-import com.vmware.vim25.PerfEntityMetric;
-import com.vmware.vim25.PerfEntityMetricBase;
-import com.vmware.vim25.PerfMetricId;
-import com.vmware.vim25.PerfMetricIntSeries;
-import com.vmware.vim25.PerfMetricSeries;
-import com.vmware.vim25.PerfQuerySpec;
-import com.vmware.vim25.PerfSampleInfo;
 import com.vmware.vim25.RuntimeFaultFaultMsg;
 import com.vmware.vim25.ToolsUnavailableFaultMsg;
 import com.vmware.vim25.VMwareDVSPortSetting;
-import com.vmware.vim25.VimPortType;
 import com.vmware.vim25.VirtualDevice;
 import com.vmware.vim25.VirtualDeviceBackingInfo;
 import com.vmware.vim25.VirtualDeviceConfigSpec;
@@ -265,6 +255,7 @@ import com.cloud.hypervisor.vmware.mo.VirtualSwitchType;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHost;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHostNetworkSummary;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHostResourceSummary;
+import com.cloud.hypervisor.vmware.mo.VmwareStatsCollector;
 import com.cloud.hypervisor.vmware.util.VmwareContext;
 import com.cloud.hypervisor.vmware.util.VmwareContextPool;
 import com.cloud.hypervisor.vmware.util.VmwareHelper;
@@ -5548,145 +5539,13 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
     private HashMap<String, VmStatsEntry> getVmStats(List<String> vmNames) throws Exception {
         VmwareHypervisorHost hyperHost = getHyperHost(getServiceContext());
         HashMap<String, VmStatsEntry> vmResponseMap = new HashMap<String, VmStatsEntry>();
-        ManagedObjectReference perfMgr = getServiceContext().getServiceContent().getPerfManager();
-        VimPortType service = getServiceContext().getService();
-        PerfCounterInfo rxPerfCounterInfo = null;
-        PerfCounterInfo txPerfCounterInfo = null;
-
-        List<PerfCounterInfo> cInfo = getServiceContext().getVimClient().getDynamicProperty(perfMgr, "perfCounter");
-        for (PerfCounterInfo info : cInfo) {
-            if ("net".equalsIgnoreCase(info.getGroupInfo().getKey())) {
-                if ("transmitted".equalsIgnoreCase(info.getNameInfo().getKey())) {
-                    txPerfCounterInfo = info;
-                }
-                if ("received".equalsIgnoreCase(info.getNameInfo().getKey())) {
-                    rxPerfCounterInfo = info;
-                }
-            }
-        }
-
-        int key = ((HostMO)hyperHost).getCustomFieldKey("VirtualMachine", CustomFieldConstants.CLOUD_VM_INTERNAL_NAME);
-        if (key == 0) {
-            s_logger.warn("Custom field " + CustomFieldConstants.CLOUD_VM_INTERNAL_NAME + " is not registered ?!");
-        }
-        String instanceNameCustomField = "value[" + key + "]";
-
-        final String numCpuStr = "summary.config.numCpu";
-        final String cpuUseStr = "summary.quickStats.overallCpuUsage";
-        final String guestMemUseStr = "summary.quickStats.guestMemoryUsage";
-        final String memLimitStr = "resourceConfig.memoryAllocation.limit";
-        final String memMbStr = "config.hardware.memoryMB";
-        final String allocatedCpuStr = "summary.runtime.maxCpuUsage";
-
-        ObjectContent[] ocs =
-                hyperHost.getVmPropertiesOnHyperHost(new String[] {"name", numCpuStr, cpuUseStr ,guestMemUseStr ,memLimitStr ,memMbStr,allocatedCpuStr ,instanceNameCustomField});
-
-        if (ocs != null && ocs.length > 0) {
-            for (ObjectContent oc : ocs) {
-                List<DynamicProperty> objProps = oc.getPropSet();
-                if (objProps != null) {
-                    String name = null;
-                    String numberCPUs = null;
-                    double maxCpuUsage = 0;
-                    String memlimit = null;
-                    String memkb = null;
-                    String guestMemusage = null;
-                    String vmNameOnVcenter = null;
-                    String vmInternalCSName = null;
-                    double allocatedCpu = 0;
-                    for (DynamicProperty objProp : objProps) {
-                        if (objProp.getName().equals("name")) {
-                            vmNameOnVcenter = objProp.getVal().toString();
-                        } else if (objProp.getName().contains(instanceNameCustomField)) {
-                            if (objProp.getVal() != null)
-                                vmInternalCSName = ((CustomFieldStringValue)objProp.getVal()).getValue();
-                        } else if (objProp.getName().equals(guestMemusage)) {
-                            guestMemusage = objProp.getVal().toString();
-                        } else if (objProp.getName().equals(numCpuStr)) {
-                            numberCPUs = objProp.getVal().toString();
-                        } else if (objProp.getName().equals(cpuUseStr)) {
-                            maxCpuUsage = NumberUtils.toDouble(objProp.getVal().toString());
-                        } else if (objProp.getName().equals(memLimitStr)) {
-                            memlimit = objProp.getVal().toString();
-                        } else if (objProp.getName().equals(memMbStr)) {
-                            memkb = objProp.getVal().toString();
-                        } else if (objProp.getName().equals(allocatedCpuStr)){
-                            allocatedCpu  = NumberUtils.toDouble(objProp.getVal().toString());
-                        }
-                    }
-
-                    maxCpuUsage = (maxCpuUsage/allocatedCpu)*100;
-                    new VirtualMachineMO(hyperHost.getContext(), oc.getObj());
-                    if (vmInternalCSName != null) {
-                        name = vmInternalCSName;
-                    } else {
-                        name = vmNameOnVcenter;
-                    }
 
-                    if (!vmNames.contains(name)) {
-                        continue;
-                    }
-
-                    ManagedObjectReference vmMor = hyperHost.findVmOnHyperHost(name).getMor();
-                    assert (vmMor != null);
-
-                    ArrayList<PerfMetricId> vmNetworkMetrics = new ArrayList<PerfMetricId>();
-                    // get all the metrics from the available sample period
-                    List<PerfMetricId> perfMetrics = service.queryAvailablePerfMetric(perfMgr, vmMor, null, null, null);
-                    if (perfMetrics != null) {
-                        for (int index = 0; index < perfMetrics.size(); ++index) {
-                            if (((rxPerfCounterInfo != null) && (perfMetrics.get(index).getCounterId() == rxPerfCounterInfo.getKey()))
-                                    || ((txPerfCounterInfo != null) && (perfMetrics.get(index).getCounterId() == txPerfCounterInfo.getKey()))) {
-                                vmNetworkMetrics.add(perfMetrics.get(index));
-                            }
-                        }
-                    }
-
-                    double networkReadKBs = 0;
-                    double networkWriteKBs = 0;
-                    long sampleDuration = 0;
-
-                    if (vmNetworkMetrics.size() != 0) {
-                        PerfQuerySpec qSpec = new PerfQuerySpec();
-                        qSpec.setEntity(vmMor);
-                        PerfMetricId[] availableMetricIds = vmNetworkMetrics.toArray(new PerfMetricId[0]);
-                        qSpec.getMetricId().addAll(Arrays.asList(availableMetricIds));
-                        List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>();
-                        qSpecs.add(qSpec);
-                        List<PerfEntityMetricBase> values = service.queryPerf(perfMgr, qSpecs);
-
-                        for (int i = 0; i < values.size(); ++i) {
-                            List<PerfSampleInfo> infos = ((PerfEntityMetric)values.get(i)).getSampleInfo();
-                            if (infos != null && infos.size() > 0) {
-                                int endMs = infos.get(infos.size() - 1).getTimestamp().getSecond() * 1000 + infos.get(infos.size() - 1).getTimestamp().getMillisecond();
-                                int beginMs = infos.get(0).getTimestamp().getSecond() * 1000 + infos.get(0).getTimestamp().getMillisecond();
-                                sampleDuration = (endMs - beginMs) / 1000;
-                                List<PerfMetricSeries> vals = ((PerfEntityMetric)values.get(i)).getValue();
-                                for (int vi = 0; ((vals != null) && (vi < vals.size())); ++vi) {
-                                    if (vals.get(vi) instanceof PerfMetricIntSeries) {
-                                        PerfMetricIntSeries val = (PerfMetricIntSeries)vals.get(vi);
-                                        List<Long> perfValues = val.getValue();
-                                        Long sumRate = 0L;
-                                        for (int j = 0; j < infos.size(); j++) { // Size of the array matches the size as the PerfSampleInfo
-                                            sumRate += perfValues.get(j);
-                                        }
-                                        Long averageRate = sumRate / infos.size();
-                                        if (vals.get(vi).getId().getCounterId() == rxPerfCounterInfo.getKey()) {
-                                            networkReadKBs = sampleDuration * averageRate; //get the average RX rate multiplied by sampled duration
-                                        }
-                                        if (vals.get(vi).getId().getCounterId() == txPerfCounterInfo.getKey()) {
-                                            networkWriteKBs = sampleDuration * averageRate;//get the average TX rate multiplied by sampled duration
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    vmResponseMap.put(name, new VmStatsEntry( NumberUtils.toDouble(memkb)*1024,NumberUtils.toDouble(guestMemusage)*1024,NumberUtils.toDouble(memlimit)*1024,
-                            maxCpuUsage, networkReadKBs, networkWriteKBs, NumberUtils.toInt(numberCPUs), "vm"));
-
-                }
-            }
+        Map<String, VmwareStatsCollector.VmStats> statsMap = getServiceContext().getStatsCollector().getVmStats(hyperHost.getMor(), vmNames);
+        for (VmwareStatsCollector.VmStats stats : statsMap.values()) {
+            double maxCpuUsage = (stats.getDouble(VmwareStatsCollector.VM_CPU_USAGE) / stats.getDouble(VmwareStatsCollector.VM_MAX_CPU_USAGE)) * 100;
+            vmResponseMap.put(stats.getName(), new VmStatsEntry(stats.getDouble(VmwareStatsCollector.VM_MEMORY_MB) * 1024,
+                    stats.getDouble(VmwareStatsCollector.VM_GUEST_MEMORY_USAGE) * 1024, stats.getDouble(VmwareStatsCollector.VM_MEMORY_LIMIT) * 1024, maxCpuUsage,
+                    stats.getNetworkReadKBs(), stats.getNetworkWriteKBs(), (int)stats.getDouble(VmwareStatsCollector.VM_NUM_CPU), "vm"));
         }
         return vmResponseMap;
     }
@@ -5795,7 +5654,12 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
     }
 
     private static HostStatsEntry getHyperHostStats(VmwareHypervisorHost hyperHost) throws Exception {
-        ComputeResourceSummary hardwareSummary = hyperHost.getHyperHostHardwareSummary();
+        ComputeResourceSummary hardwareSummary;
+        if (hyperHost instanceof HostMO) {
+            hardwareSummary = hyperHost.getContext().getStatsCollector().getHostResourceSummary(hyperHost.getMor());
+        } else {
+            hardwareSummary = hyperHost.getHyperHostHardwareSummary();
+        }
         if (hardwareSummary == null)
             return null;
 
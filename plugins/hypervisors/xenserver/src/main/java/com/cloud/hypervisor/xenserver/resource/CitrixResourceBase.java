@@ -23,14 +23,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -46,8 +42,6 @@ import java.util.UUID;
 import java.util.concurrent.TimeoutException;
 
 import javax.naming.ConfigurationException;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.cloudstack.storage.to.TemplateObjectTO;
 import org.apache.cloudstack.storage.to.VolumeObjectTO;
@@ -58,11 +52,6 @@ import org.apache.commons.lang3.BooleanUtils;
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
 import org.joda.time.Duration;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import com.cloud.agent.IAgentControl;
 import com.cloud.agent.api.Answer;
@@ -258,6 +247,7 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
 
     protected String _pod;
     protected int _pollingIntervalInSeconds = 60;
+    protected final XenServerRrdReader _rrdReader = new XenServerRrdReader();
 
     protected String _privateNetworkName;
     protected String _publicNetworkName;
@@ -2045,37 +2035,6 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         }
     }
 
-    protected double getDataAverage(final Node dataNode, final int col, final int numRows) {
-        double value = 0;
-        final double dummy = 0;
-        int numRowsUsed = 0;
-        for (int row = 0; row < numRows; row++) {
-            final Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
-            final Double currentDataAsDouble = Double.valueOf(getXMLNodeValue(data));
-            if (!currentDataAsDouble.equals(Double.NaN)) {
-                numRowsUsed += 1;
-                value += currentDataAsDouble;
-            }
-        }
-
-        if (numRowsUsed == 0) {
-            if (!Double.isInfinite(value) && !Double.isNaN(value)) {
-                return value;
-            } else {
-                s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows=0");
-                return dummy;
-            }
-        } else {
-            if (!Double.isInfinite(value / numRowsUsed) && !Double.isNaN(value / numRowsUsed)) {
-                return value / numRowsUsed;
-            } else {
-                s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows>0");
-                return dummy;
-            }
-        }
-
-    }
-
     public HashMap<String, HashMap<String, VgpuTypesInfo>> getGPUGroupDetails(final Connection conn) throws XenAPIException, XmlRpcException {
         return null;
     }
@@ -2202,59 +2161,39 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     public HostStatsEntry getHostStats(final Connection conn, final GetHostStatsCommand cmd, final String hostGuid, final long hostId) {
 
         final HostStatsEntry hostStats = new HostStatsEntry(hostId, 0, 0, 0, "host", 0, 0, 0, 0);
-        final Object[] rrdData = getRRDData(conn, 1); // call rrd method with 1
-        // for host
+        final XenServerRrdReader.RrdData rrdData = getRrdData(conn, true);
 
         if (rrdData == null) {
             return null;
         }
 
-        final Integer numRows = (Integer)rrdData[0];
-        final Integer numColumns = (Integer)rrdData[1];
-        final Node legend = (Node)rrdData[2];
-        final Node dataNode = (Node)rrdData[3];
-
-        final NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            final String columnMetadata = getXMLNodeValue(legendChildren.item(col));
+        for (int col = 0; col < rrdData.getColumnCount(); col++) {
+            final String type = rrdData.getType(col);
+            final String param = rrdData.getParam(col);
 
-            if (columnMetadata == null) {
+            if (type == null) {
                 continue;
             }
 
-            final String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
-            }
-
-            final String type = columnMetadataList[1];
-            final String param = columnMetadataList[3];
-
             if (type.equalsIgnoreCase("host")) {
 
                 if (param.matches("pif_eth0_rx")) {
-                    hostStats.setNetworkReadKBs(getDataAverage(dataNode, col, numRows) / 1000);
+                    hostStats.setNetworkReadKBs(rrdData.getAverage(col) / 1000);
                 } else if (param.matches("pif_eth0_tx")) {
-                    hostStats.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows) / 1000);
+                    hostStats.setNetworkWriteKBs(rrdData.getAverage(col) / 1000);
                 } else if (param.contains("memory_total_kib")) {
-                    hostStats.setTotalMemoryKBs(getDataAverage(dataNode, col, numRows));
+                    hostStats.setTotalMemoryKBs(rrdData.getAverage(col));
                 } else if (param.contains("memory_free_kib")) {
-                    hostStats.setFreeMemoryKBs(getDataAverage(dataNode, col, numRows));
+                    hostStats.setFreeMemoryKBs(rrdData.getAverage(col));
                 } else if (param.matches("cpu_avg")) {
                     // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
-                    hostStats.setCpuUtilization(hostStats.getCpuUtilization() + getDataAverage(dataNode, col, numRows));
+                    hostStats.setCpuUtilization(hostStats.getCpuUtilization() + rrdData.getAverage(col));
                 }
 
                 /*
                  * if (param.contains("loadavg")) {
                  * hostStats.setAverageLoad((hostStats.getAverageLoad() +
-                 * getDataAverage(dataNode, col, numRows))); }
+                 * rrdData.getAverage(col))); }
                  */
             }
         }
@@ -2994,47 +2933,12 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return null;
     }
 
-    protected Object[] getRRDData(final Connection conn, final int flag) {
-
-        /*
-         * Note: 1 => called from host, hence host stats 2 => called from vm,
-         * hence vm stats
-         */
-        Document doc = null;
-
-        try {
-            doc = getStatsRawXML(conn, flag == 1 ? true : false);
-        } catch (final Exception e1) {
-            s_logger.warn("Error whilst collecting raw stats from plugin: ", e1);
-            return null;
-        }
-
-        if (doc == null) { // stats are null when the host plugin call fails
-            // (host down state)
-            return null;
-        }
-
-        final NodeList firstLevelChildren = doc.getChildNodes();
-        final NodeList secondLevelChildren = firstLevelChildren.item(0).getChildNodes();
-        final Node metaNode = secondLevelChildren.item(0);
-        final Node dataNode = secondLevelChildren.item(1);
-
-        Integer numRows = 0;
-        Integer numColumns = 0;
-        Node legend = null;
-        final NodeList metaNodeChildren = metaNode.getChildNodes();
-        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
-            final Node n = metaNodeChildren.item(i);
-            if (n.getNodeName().equals("rows")) {
-                numRows = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("columns")) {
-                numColumns = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("legend")) {
-                legend = n;
-            }
-        }
-
-        return new Object[] {numRows, numColumns, legend, dataNode};
+    /**
+     * @param host true for host stats, false for VM stats
+     * @return the averages of the stats collected since the last poll, null when the host plugin call fails (host down state)
+     */
+    protected XenServerRrdReader.RrdData getRrdData(final Connection conn, final boolean host) {
+        return _rrdReader.poll(_host.getIp(), conn.getSessionReference(), host, _consolidationFunction, _pollingIntervalInSeconds);
     }
 
     @Override
@@ -3092,47 +2996,6 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return dynamicMinRam;
     }
 
-    protected Document getStatsRawXML(final Connection conn, final boolean host) {
-        final Date currentDate = new Date();
-        String urlStr = "http://" + _host.getIp() + "/rrd_updates?";
-        urlStr += "session_id=" + conn.getSessionReference();
-        urlStr += "&host=" + (host ? "true" : "false");
-        urlStr += "&cf=" + _consolidationFunction;
-        urlStr += "&interval=" + _pollingIntervalInSeconds;
-        urlStr += "&start=" + (currentDate.getTime() / 1000 - 1000 - 100);
-
-        URL url;
-        BufferedReader in = null;
-        try {
-            url = new URL(urlStr);
-            url.openConnection();
-            final URLConnection uc = url.openConnection();
-            in = new BufferedReader(new InputStreamReader(uc.getInputStream()));
-            final InputSource statsSource = new InputSource(in);
-            return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(statsSource);
-        } catch (final MalformedURLException e) {
-            s_logger.warn("Malformed URL?  come on...." + urlStr);
-            return null;
-        } catch (final IOException e) {
-            s_logger.warn("Problems getting stats using " + urlStr, e);
-            return null;
-        } catch (final SAXException e) {
-            s_logger.warn("Problems getting stats using " + urlStr, e);
-            return null;
-        } catch (final ParserConfigurationException e) {
-            s_logger.warn("Problems getting stats using " + urlStr, e);
-            return null;
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (final IOException e) {
-                    s_logger.warn("Unable to close the buffer ", e);
-                }
-            }
-        }
-    }
-
     public SR getStorageRepository(final Connection conn, final String srNameLabel) {
         Set<SR> srs;
         try {
@@ -3384,41 +3247,21 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             vmResponseMap.put(vmUUID, new VmStatsEntry(0, 0, 0, 0, 0, 0, 0, "vm"));
         }
 
-        final Object[] rrdData = getRRDData(conn, 2); // call rrddata with 2 for
-        // vm
+        final XenServerRrdReader.RrdData rrdData = getRrdData(conn, false);
 
         if (rrdData == null) {
             return null;
         }
 
-        final Integer numRows = (Integer)rrdData[0];
-        final Integer numColumns = (Integer)rrdData[1];
-        final Node legend = (Node)rrdData[2];
-        final Node dataNode = (Node)rrdData[3];
-
-        final NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            final String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
-            }
-
-            final String[] columnMetadataList = columnMetadata.split(":");
+        for (int col = 0; col < rrdData.getColumnCount(); col++) {
+            final String type = rrdData.getType(col);
+            final String uuid = rrdData.getUuid(col);
+            final String param = rrdData.getParam(col);
 
-            if (columnMetadataList.length != 4) {
+            if (type == null) {
                 continue;
             }
 
-            final String type = columnMetadataList[1];
-            final String uuid = columnMetadataList[2];
-            final String param = columnMetadataList[3];
-
             if (type.equals("vm") && vmResponseMap.keySet().contains(uuid)) {
                 final VmStatsEntry vmStatsAnswer = vmResponseMap.get(uuid);
 
@@ -3426,21 +3269,21 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
 
                 if (param.contains("cpu")) {
                     vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
-                    vmStatsAnswer.setCPUUtilization(vmStatsAnswer.getCPUUtilization() + getDataAverage(dataNode, col, numRows));
+                    vmStatsAnswer.setCPUUtilization(vmStatsAnswer.getCPUUtilization() + rrdData.getAverage(col));
                 } else if (param.matches("vif_\\d*_rx")) {
-                    vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + getDataAverage(dataNode, col, numRows) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
+                    vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + rrdData.getAverage(col) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
                 } else if (param.matches("vif_\\d*_tx")) {
-                    vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + getDataAverage(dataNode, col, numRows) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
+                    vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + rrdData.getAverage(col) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
                 } else if (param.matches("vbd_.*_read")) {
-                    vmStatsAnswer.setDiskReadKBs(vmStatsAnswer.getDiskReadKBs() + getDataAverage(dataNode, col, numRows) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
+                    vmStatsAnswer.setDiskReadKBs(vmStatsAnswer.getDiskReadKBs() + rrdData.getAverage(col) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
                 } else if (param.matches("vbd_.*_write")) {
-                    vmStatsAnswer.setDiskWriteKBs(vmStatsAnswer.getDiskWriteKBs() + getDataAverage(dataNode, col, numRows) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
+                    vmStatsAnswer.setDiskWriteKBs(vmStatsAnswer.getDiskWriteKBs() + rrdData.getAverage(col) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
                 } else if (param.contains("memory_internal_free")) {
-                    vmStatsAnswer.setIntFreeMemoryKBs(vmStatsAnswer.getIntFreeMemoryKBs() + getDataAverage(dataNode, col, numRows) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
+                    vmStatsAnswer.setIntFreeMemoryKBs(vmStatsAnswer.getIntFreeMemoryKBs() + rrdData.getAverage(col) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
                 } else if (param.contains("memory_target")) {
-                    vmStatsAnswer.setTargetMemoryKBs(vmStatsAnswer.getTargetMemoryKBs() + getDataAverage(dataNode, col, numRows) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
+                    vmStatsAnswer.setTargetMemoryKBs(vmStatsAnswer.getTargetMemoryKBs() + rrdData.getAverage(col) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
                 } else if (param.contains("memory")) {
-                    vmStatsAnswer.setMemoryKBs(vmStatsAnswer.getMemoryKBs() + getDataAverage(dataNode, col, numRows) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
+                    vmStatsAnswer.setMemoryKBs(vmStatsAnswer.getMemoryKBs() + rrdData.getAverage(col) / BASE_TO_CONVERT_BYTES_INTO_KILOBYTES);
                 }
 
             }
@@ -3492,10 +3335,6 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return null;
     }
 
-    protected String getXMLNodeValue(final Node n) {
-        return n.getChildNodes().item(0).getNodeValue();
-    }
-
     public void handleSrAndVdiDetach(final String iqn, final Connection conn) throws Exception {
         final SR sr = getStorageRepository(conn, iqn);
 
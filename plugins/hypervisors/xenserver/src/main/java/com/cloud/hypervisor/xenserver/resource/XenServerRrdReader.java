@@ -0,0 +1,251 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xenserver.resource;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the rrd_updates of a XenServer host with a streaming parser.
+ *
+ * The document is never built in memory: the legend is kept as one entry per column and
+ * the rows are folded into per column sums while they are read. The end timestamp of each
+ * poll is remembered per query, so the next poll of the same query only asks for the rows
+ * added since, limited to the last {@link #WINDOW_SECONDS}.
+ *
+ * Responses are read to the end and the connection is left open, so the JDK keeps the
+ * connection to the host alive for the next poll.
+ */
+public class XenServerRrdReader {
+    private static final Logger s_logger = Logger.getLogger(XenServerRrdReader.class);
+
+    public static final long WINDOW_SECONDS = 1000 + 100;
+    private static final int TIMEOUT_MS = 60000;
+
+    private static final XMLInputFactory s_xmlInputFactory = XMLInputFactory.newInstance();
+
+    static {
+        s_xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        s_xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final Map<String, Long> _lastEnd = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Column averages of one rrd_updates response.
+     */
+    public static class RrdData {
+        private final List<String[]> _columns = new ArrayList<String[]>();
+        private double[] _sums;
+        private int[] _counts;
+        private int _rows;
+        private long _end;
+
+        protected void addColumn(final String legend) {
+            // AVERAGE:vm:<uuid>:<param>
+            final String[] parts = legend.split(":");
+            _columns.add(parts.length == 4 ? parts : null);
+        }
+
+        protected void addRow() {
+            if (_sums == null) {
+                _sums = new double[_columns.size()];
+                _counts = new int[_columns.size()];
+            }
+            _rows++;
+        }
+
+        protected void addValue(final int col, final String value) {
+            if (col >= _columns.size()) {
+                return;
+            }
+            final double v;
+            try {
+                v = Double.parseDouble(value);
+            } catch (final NumberFormatException e) {
+                return;
+            }
+            if (!Double.isNaN(v)) {
+                _sums[col] += v;
+                _counts[col]++;
+            }
+        }
+
+        public int getColumnCount() {
+            return _columns.size();
+        }
+
+        /**
+         * @return host or vm, null when the legend entry of the column is not understood
+         */
+        public String getType(final int col) {
+            final String[] column = _columns.get(col);
+            return column == null ? null : column[1];
+        }
+
+        public String getUuid(final int col) {
+            final String[] column = _columns.get(col);
+            return column == null ? null : column[2];
+        }
+
+        public String getParam(final int col) {
+            final String[] column = _columns.get(col);
+            return column == null ? null : column[3];
+        }
+
+        /**
+         * @return the average of the non NaN values of the column over all rows, 0 if there is none
+         */
+        public double getAverage(final int col) {
+            if (_sums == null || _counts[col] == 0) {
+                return 0;
+            }
+            final double average = _sums[col] / _counts[col];
+            if (Double.isInfinite(average) || Double.isNaN(average)) {
+                s_logger.warn("Found an invalid value (infinity/NaN) in the rrd_updates column " + Arrays.toString(_columns.get(col)));
+                return 0;
+            }
+            return average;
+        }
+
+        public int getRows() {
+            return _rows;
+        }
+
+        public long getEnd() {
+            return _end;
+        }
+    }
+
+    /**
+     * Polls the rrd_updates of a host.
+     *
+     * @param host true for the host and its VMs, false for the VMs only
+     * @return the column averages, null if the host could not be polled
+     */
+    public RrdData poll(final String hostIp, final String sessionRef, final boolean host, final String consolidationFunction, final int interval) {
+        final String baseUrl = "http://" + hostIp + "/rrd_updates?session_id=" + sessionRef + "&host=" + host + "&cf=" + consolidationFunction + "&interval=" + interval;
+        final String cursor = hostIp + (host ? "/host" : "/vm");
+        final long windowStart = System.currentTimeMillis() / 1000 - WINDOW_SECONDS;
+        final Long lastEnd = _lastEnd.get(cursor);
+        final long start = lastEnd != null && lastEnd > windowStart ? lastEnd : windowStart;
+
+        RrdData data = read(baseUrl + "&start=" + start, hostIp);
+        if (data != null && data.getRows() == 0 && start != windowStart) {
+            // polled again before the host added a row, average over the whole window instead
+            data = read(baseUrl + "&start=" + windowStart, hostIp);
+        }
+        if (data != null && data.getEnd() > 0) {
+            _lastEnd.put(cursor, data.getEnd());
+        }
+        return data;
+    }
+
+    protected RrdData read(final String url, final String hostIp) {
+        try {
+            final HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                s_logger.warn("Problems getting stats from " + hostIp + ": HTTP " + connection.getResponseCode());
+                final InputStream error = connection.getErrorStream();
+                if (error != null) {
+                    drain(error);
+                    error.close();
+                }
+                return null;
+            }
+            final InputStream in = connection.getInputStream();
+            try {
+                // the parser closes its input at the end of the document, keep the stream open to read it to the end
+                final RrdData data = parse(new FilterInputStream(in) {
+                    @Override
+                    public void close() {
+                    }
+                });
+                drain(in);
+                return data;
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            s_logger.warn("Problems getting stats from " + hostIp, e);
+            return null;
+        } catch (final XMLStreamException e) {
+            s_logger.warn("Problems parsing stats of " + hostIp, e);
+            return null;
+        }
+    }
+
+    /**
+     * Folds an rrd_updates document into column averages:
+     * <pre>
+     * &lt;xport&gt;&lt;meta&gt;...&lt;end&gt;..&lt;/end&gt;...&lt;legend&gt;&lt;entry&gt;AVERAGE:vm:uuid:cpu0&lt;/entry&gt;...&lt;/legend&gt;&lt;/meta&gt;
+     *   &lt;data&gt;&lt;row&gt;&lt;t&gt;..&lt;/t&gt;&lt;v&gt;..&lt;/v&gt;...&lt;/row&gt;...&lt;/data&gt;&lt;/xport&gt;
+     * </pre>
+     */
+    public static RrdData parse(final InputStream in) throws XMLStreamException {
+        final RrdData data = new RrdData();
+        final XMLStreamReader reader = s_xmlInputFactory.createXMLStreamReader(in);
+        try {
+            int col = 0;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                final String name = reader.getLocalName();
+                if ("v".equals(name)) {
+                    data.addValue(col++, reader.getElementText().trim());
+                } else if ("row".equals(name)) {
+                    data.addRow();
+                    col = 0;
+                } else if ("entry".equals(name)) {
+                    data.addColumn(reader.getElementText().trim());
+                } else if ("end".equals(name)) {
+                    data._end = Long.parseLong(reader.getElementText().trim());
+                }
+            }
+        } catch (final NumberFormatException e) {
+            throw new XMLStreamException("Invalid end timestamp in rrd_updates", e);
+        } finally {
+            reader.close();
+        }
+        return data;
+    }
+
+    private static void drain(final InputStream in) throws IOException {
+        final byte[] buffer = new byte[4096];
+        while (in.read(buffer) >= 0) {
+            continue;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xenserver.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class XenServerRrdReaderTest {
+    private static final String VM1 = "9c2d1a4e-4a7b-4b0b-9d61-3f0a5c1e2b11";
+    private static final String VM2 = "0f6e8d2c-7b1a-4c3e-8f5d-2a9b4c6d8e10";
+
+    private HttpServer server;
+    private final List<Map<String, String>> requests = new ArrayList<Map<String, String>>();
+    private volatile int rowsToServe = 3;
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/rrd_updates", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Map<String, String> query = new HashMap<String, String>();
+                for (String param : exchange.getRequestURI().getQuery().split("&")) {
+                    String[] pair = param.split("=", 2);
+                    query.put(pair[0], pair[1]);
+                }
+                requests.add(query);
+
+                long start = Long.parseLong(query.get("start"));
+                int rows = rowsToServe;
+                rowsToServe = 3;
+                byte[] body = generate(new Random(start), 2, rows, start + rows * 60).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * rrd_updates document with a host and the given number of VMs, rows from newest to oldest.
+     */
+    static String generate(Random random, int vms, int rows, long end) {
+        String[] params = {"cpu0", "cpu1", "vif_0_rx", "vif_0_tx", "vbd_xvda_read", "vbd_xvda_write", "memory_internal_free", "memory"};
+        StringBuilder sb = new StringBuilder("<xport><meta><start>").append(end - rows * 60).append("</start><step>60</step><end>").append(end)
+                .append("</end><rows>").append(rows).append("</rows><columns>").append(vms * params.length + 2).append("</columns><legend>");
+        for (int vm = 0; vm < vms; vm++) {
+            for (String param : params) {
+                sb.append("<entry>AVERAGE:vm:").append(String.format("%08d-0000-0000-0000-000000000000", vm)).append(':').append(param).append("</entry>");
+            }
+        }
+        sb.append("<entry>AVERAGE:host:4a3c2b1d-8e7f-4a5b-9c6d-1e2f3a4b5c6d:cpu_avg</entry>");
+        sb.append("<entry>AVERAGE:host:4a3c2b1d-8e7f-4a5b-9c6d-1e2f3a4b5c6d:memory_free_kib</entry>");
+        sb.append("</legend></meta><data>");
+        for (int row = 0; row < rows; row++) {
+            sb.append("<row><t>").append(end - row * 60).append("</t>");
+            for (int col = 0; col < vms * params.length + 2; col++) {
+                sb.append("<v>").append(random.nextInt(50) == 0 ? "NaN" : String.valueOf(random.nextDouble() * 100000)).append("</v>");
+            }
+            sb.append("</row>");
+        }
+        return sb.append("</data></xport>").toString();
+    }
+
+    /**
+     * Column averages computed from a DOM, the way the stats used to be read.
+     */
+    static double[] domAverages(byte[] xml) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        int columns = doc.getElementsByTagName("entry").getLength();
+        double[] sums = new double[columns];
+        int[] counts = new int[columns];
+        NodeList rows = doc.getElementsByTagName("row");
+        for (int row = 0; row < rows.getLength(); row++) {
+            NodeList values = ((Element)rows.item(row)).getElementsByTagName("v");
+            for (int col = 0; col < columns; col++) {
+                double value = Double.valueOf(values.item(col).getTextContent());
+                if (!Double.isNaN(value)) {
+                    sums[col] += value;
+                    counts[col]++;
+                }
+            }
+        }
+        double[] averages = new double[columns];
+        for (int col = 0; col < columns; col++) {
+            averages[col] = counts[col] == 0 ? 0 : sums[col] / counts[col];
+        }
+        return averages;
+    }
+
+    @Test
+    public void testParseRecordedFixture() throws Exception {
+        InputStream in = getClass().getResourceAsStream("/rrd_updates.xml");
+        byte[] xml = IOUtils.toByteArray(in);
+        XenServerRrdReader.RrdData data = XenServerRrdReader.parse(new ByteArrayInputStream(xml));
+
+        assertEquals(3, data.getRows());
+        assertEquals(12, data.getColumnCount());
+        assertEquals(1538049720L, data.getEnd());
+        assertEquals("vm", data.getType(0));
+        assertEquals(VM1, data.getUuid(0));
+        assertEquals("cpu0", data.getParam(0));
+        assertEquals((0.0412 + 0.0388 + 0.0401) / 3, data.getAverage(0), 1e-9);
+        // NaN samples are left out of the average
+        assertEquals(VM2, data.getUuid(7));
+        assertEquals(512.0, data.getAverage(7), 1e-9);
+        assertEquals("host", data.getType(9));
+        assertEquals(16671980.0, data.getAverage(9), 1e-6);
+
+        double[] expected = domAverages(xml);
+        for (int col = 0; col < data.getColumnCount(); col++) {
+            assertEquals(expected[col], data.getAverage(col), 1e-9);
+        }
+    }
+
+    @Test
+    public void testInvalidLegendEntry() throws Exception {
+        String xml = "<xport><meta><end>10</end><legend><entry>garbage</entry><entry>AVERAGE:vm:u:cpu0</entry></legend></meta>"
+                + "<data><row><t>10</t><v>1</v><v>NaN</v></row></data></xport>";
+        XenServerRrdReader.RrdData data = XenServerRrdReader.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        assertNull(data.getType(0));
+        assertEquals("vm", data.getType(1));
+        assertEquals(0.0, data.getAverage(1), 0);
+    }
+
+    @Test
+    public void testPollOnlyFetchesNewRows() {
+        XenServerRrdReader reader = new XenServerRrdReader();
+        String host = "127.0.0.1:" + server.getAddress().getPort();
+        long now = System.currentTimeMillis() / 1000;
+
+        XenServerRrdReader.RrdData first = reader.poll(host, "OpaqueRef:1", false, "AVERAGE", 60);
+        assertNotNull(first);
+        assertEquals(1, requests.size());
+        long firstStart = Long.parseLong(requests.get(0).get("start"));
+        assertTrue(Math.abs(now - XenServerRrdReader.WINDOW_SECONDS - firstStart) <= 2);
+        assertEquals("false", requests.get(0).get("host"));
+
+        // the next poll starts where the previous one ended
+        reader.poll(host, "OpaqueRef:1", false, "AVERAGE", 60);
+        assertEquals(String.valueOf(first.getEnd()), requests.get(1).get("start"));
+
+        // host polls have their own cursor, they start a window back from now as well
+        reader.poll(host, "OpaqueRef:1", true, "AVERAGE", 60);
+        long hostStart = Long.parseLong(requests.get(2).get("start"));
+        assertTrue(Math.abs(now - XenServerRrdReader.WINDOW_SECONDS - hostStart) <= 2);
+        assertTrue(hostStart < first.getEnd());
+
+        // no new row yet, the whole window is read again
+        rowsToServe = 0;
+        XenServerRrdReader.RrdData data = reader.poll(host, "OpaqueRef:1", false, "AVERAGE", 60);
+        assertEquals(5, requests.size());
+        assertEquals(3, data.getRows());
+    }
+
+    @Test
+    public void testPollUnreachableHost() {
+        server.stop(0);
+        XenServerRrdReader reader = new XenServerRrdReader();
+        assertNull(reader.poll("127.0.0.1:" + server.getAddress().getPort(), "OpaqueRef:1", true, "AVERAGE", 60));
+    }
+
+    /**
+     * A host with 150 VMs and 20 minutes of rows reads the same as through a DOM.
+     */
+    @Test
+    public void testParseLargeHost() throws Exception {
+        byte[] xml = generate(new Random(1), 150, 20, 1538049720L).getBytes(StandardCharsets.UTF_8);
+        double[] expected = domAverages(xml);
+
+        XenServerRrdReader.RrdData data = XenServerRrdReader.parse(new ByteArrayInputStream(xml));
+
+        assertEquals(20, data.getRows());
+        assertEquals(150 * 8 + 2, data.getColumnCount());
+        assertEquals(1538049720L, data.getEnd());
+        assertEquals("00000149-0000-0000-0000-000000000000", data.getUuid(149 * 8));
+        assertEquals("cpu0", data.getParam(149 * 8));
+        assertEquals("host", data.getType(150 * 8 + 1));
+        assertEquals("memory_free_kib", data.getParam(150 * 8 + 1));
+        for (int col = 0; col < data.getColumnCount(); col++) {
+            assertEquals(expected[col], data.getAverage(col), 1e-6);
+        }
+    }
+}
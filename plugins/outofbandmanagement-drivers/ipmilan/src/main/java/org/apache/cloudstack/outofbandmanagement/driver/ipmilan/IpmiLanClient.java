@@ -0,0 +1,269 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Sends IPMI requests to many BMCs from a few threads. Each thread runs a selector over one UDP socket and
+ * owns the sessions of the BMCs assigned to it, so that a BMC that is slow or down only holds on to the
+ * state of its session instead of a thread or a process.
+ */
+public final class IpmiLanClient {
+    public static final Logger LOG = Logger.getLogger(IpmiLanClient.class);
+
+    /**
+     * Called on the I/O thread, so it must not block.
+     */
+    public interface ResponseHandler {
+        /**
+         * @param data the response data, starting with the completion code
+         */
+        void onResponse(byte[] data);
+
+        void onFailure(String error, boolean authFailure);
+    }
+
+    private final IoLoop[] loops;
+    private final int retries;
+    private final long retransmitTimeout;
+    private final long sessionIdleTimeout;
+
+    /**
+     * @param threads the number of I/O threads
+     * @param retries the number of times a packet is sent again when the BMC does not answer it
+     * @param retransmitTimeout the milliseconds to wait for an answer before sending a packet again
+     * @param sessionIdleTimeout the milliseconds after which an unused session is closed
+     */
+    public IpmiLanClient(final int threads, final int retries, final long retransmitTimeout, final long sessionIdleTimeout) {
+        this.loops = new IoLoop[Math.max(1, threads)];
+        this.retries = Math.max(0, retries);
+        this.retransmitTimeout = Math.max(1L, retransmitTimeout);
+        this.sessionIdleTimeout = sessionIdleTimeout;
+    }
+
+    public synchronized void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i] == null) {
+                loops[i] = new IoLoop("IpmiLanClient-" + i);
+                loops[i].start();
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i] != null) {
+                loops[i].shutdown();
+                loops[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Queues a request on the session with the BMC, setting the session up first if there is none.
+     *
+     * @param timeout the milliseconds after which the request fails, including the session setup
+     */
+    public void execute(final InetSocketAddress address, final String username, final String password, final int netFn, final int cmd,
+                        final byte[] data, final long timeout, final ResponseHandler handler) {
+        final IoLoop loop = loops[(address.hashCode() & Integer.MAX_VALUE) % loops.length];
+        if (loop == null) {
+            handler.onFailure("IPMI client is not running", false);
+            return;
+        }
+        final IpmiLanSession.Request request = new IpmiLanSession.Request(netFn, cmd, data, System.currentTimeMillis() + timeout, handler);
+        loop.submit(new Runnable() {
+            @Override
+            public void run() {
+                loop.submit(address, username, password, request);
+            }
+        });
+    }
+
+    /**
+     * @return the number of sessions held, active or being set up
+     */
+    public int getSessionCount() {
+        int count = 0;
+        for (final IoLoop loop : loops) {
+            if (loop != null) {
+                count += loop.sessionCount;
+            }
+        }
+        return count;
+    }
+
+    private final class IoLoop implements Runnable, IpmiLanSession.Transport {
+        private final Thread thread;
+        private final Selector selector;
+        private final DatagramChannel channel;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final Map<InetSocketAddress, IpmiLanSession> sessions = new HashMap<InetSocketAddress, IpmiLanSession>();
+        private final ByteBuffer in = ByteBuffer.allocate(65536);
+        private final ByteBuffer out = ByteBuffer.allocate(1024);
+        private volatile boolean running = true;
+        private volatile int sessionCount;
+        private long nextSweep;
+
+        IoLoop(final String name) throws IOException {
+            selector = Selector.open();
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(null);
+            channel.register(selector, SelectionKey.OP_READ);
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void shutdown() {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    running = false;
+                }
+            });
+            try {
+                thread.join(5000);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void submit(final Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void submit(final InetSocketAddress address, final String username, final String password, final IpmiLanSession.Request request) {
+            IpmiLanSession session = sessions.get(address);
+            if (session != null && !session.hasCredentials(username, password)) {
+                session.close("The BMC credentials have changed");
+                session = null;
+            }
+            if (session == null) {
+                session = new IpmiLanSession(address, username, password, this, retries, retransmitTimeout);
+                sessions.put(address, session);
+                sessionCount = sessions.size();
+            }
+            session.submit(request, System.currentTimeMillis(), sessionIdleTimeout);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    long now = System.currentTimeMillis();
+                    long deadline = nextSweep;
+                    for (final IpmiLanSession session : sessions.values()) {
+                        deadline = Math.min(deadline, session.getDeadline());
+                    }
+                    selector.select(Math.max(1L, Math.min(1000L, deadline - now)));
+                    selector.selectedKeys().clear();
+
+                    receive();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    now = System.currentTimeMillis();
+                    for (final IpmiLanSession session : sessions.values()) {
+                        session.onTimer(now);
+                    }
+                    if (now >= nextSweep) {
+                        sweep(now);
+                        nextSweep = now + Math.max(1000L, sessionIdleTimeout / 2);
+                    }
+                }
+            } catch (final Throwable t) {
+                LOG.error("IPMI I/O loop " + thread.getName() + " failed", t);
+            } finally {
+                for (final IpmiLanSession session : sessions.values()) {
+                    session.close("IPMI client has been stopped");
+                }
+                sessions.clear();
+                sessionCount = 0;
+                try {
+                    channel.close();
+                    selector.close();
+                } catch (final IOException e) {
+                    LOG.debug("Failed to close the IPMI socket", e);
+                }
+            }
+        }
+
+        private void receive() throws IOException {
+            while (true) {
+                in.clear();
+                final SocketAddress source = channel.receive(in);
+                if (source == null) {
+                    return;
+                }
+                in.flip();
+                final IpmiLanSession session = sessions.get(source);
+                if (session == null) {
+                    continue;
+                }
+                final IpmiLanPacket packet = IpmiLanPacket.decode(in, session.getIntegrityKey(), session.getConfidentialityKey());
+                if (packet != null) {
+                    session.onPacket(packet, System.currentTimeMillis());
+                }
+            }
+        }
+
+        private void sweep(final long now) {
+            for (final Iterator<IpmiLanSession> it = sessions.values().iterator(); it.hasNext();) {
+                final IpmiLanSession session = it.next();
+                if (session.isIdle() && now - session.getLastActivity() >= sessionIdleTimeout) {
+                    session.close("Session is idle");
+                    it.remove();
+                }
+            }
+            sessionCount = sessions.size();
+        }
+
+        @Override
+        public void send(final InetSocketAddress address, final IpmiLanPacket packet, final byte[] k1, final byte[] k2) {
+            out.clear();
+            packet.encode(out, k1, k2);
+            out.flip();
+            try {
+                // UDP, a full socket buffer is the same as a lost packet and the retransmit timer deals with both
+                channel.send(out, address);
+            } catch (final IOException e) {
+                LOG.debug("Failed to send an IPMI packet to " + address + ": " + e.getMessage());
+            }
+        }
+    }
+}
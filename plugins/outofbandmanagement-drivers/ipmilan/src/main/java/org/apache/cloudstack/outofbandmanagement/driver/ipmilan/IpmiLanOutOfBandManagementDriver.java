@@ -0,0 +1,346 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import com.cloud.utils.component.AdapterBase;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.outofbandmanagement.OutOfBandManagement;
+import org.apache.cloudstack.outofbandmanagement.OutOfBandManagementAsyncDriver;
+import org.apache.cloudstack.outofbandmanagement.OutOfBandManagementService;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverChangePasswordCommand;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverCommand;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverPowerCommand;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverResponse;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Talks IPMI v2.0 over LAN to the BMCs itself instead of running ipmitool for every command. Sessions are
+ * kept open between commands and all BMCs are served by a few I/O threads.
+ */
+public final class IpmiLanOutOfBandManagementDriver extends AdapterBase implements OutOfBandManagementAsyncDriver, Configurable {
+    public static final Logger LOG = Logger.getLogger(IpmiLanOutOfBandManagementDriver.class);
+
+    public final ConfigKey<Integer> IpmiLanThreads = new ConfigKey<Integer>("Advanced", Integer.class, "outofbandmanagement.ipmilan.threads", "2",
+            "The number of I/O threads used by the IpmiLan driver to talk to the BMCs. Default: 2.", false, ConfigKey.Scope.Global);
+
+    public final ConfigKey<Integer> IpmiLanRetries = new ConfigKey<Integer>("Advanced", Integer.class, "outofbandmanagement.ipmilan.retries", "3",
+            "The number of times the IpmiLan driver sends a packet again when the BMC does not answer it. Default: 3.", false, ConfigKey.Scope.Global);
+
+    public final ConfigKey<Integer> IpmiLanRetransmitTimeout = new ConfigKey<Integer>("Advanced", Integer.class, "outofbandmanagement.ipmilan.retransmit.timeout", "1000",
+            "The milliseconds the IpmiLan driver waits for the BMC to answer before sending a packet again. Default: 1000.", false, ConfigKey.Scope.Global);
+
+    public final ConfigKey<Integer> IpmiLanSessionIdleTimeout = new ConfigKey<Integer>("Advanced", Integer.class, "outofbandmanagement.ipmilan.session.idle.timeout", "50",
+            "The seconds after which the IpmiLan driver closes an unused BMC session, BMCs usually drop them after 60 seconds. Default: 50.", false, ConfigKey.Scope.Global);
+
+    private static final int CHASSIS_POWER_DOWN = 0x00;
+    private static final int CHASSIS_POWER_UP = 0x01;
+    private static final int CHASSIS_POWER_CYCLE = 0x02;
+    private static final int CHASSIS_HARD_RESET = 0x03;
+    private static final int CHASSIS_SOFT_SHUTDOWN = 0x05;
+
+    private volatile IpmiLanClient client;
+
+    public OutOfBandManagementDriverResponse execute(final OutOfBandManagementDriverCommand cmd) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<OutOfBandManagementDriverResponse> result = new AtomicReference<OutOfBandManagementDriverResponse>();
+        executeAsync(cmd, new Callback() {
+            @Override
+            public void complete(final OutOfBandManagementDriverResponse response) {
+                result.set(response);
+                latch.countDown();
+            }
+        });
+        try {
+            // the client times the command out itself, this only guards against a lost callback
+            if (!latch.await(getTimeout(cmd) + 5000L, TimeUnit.MILLISECONDS)) {
+                return new OutOfBandManagementDriverResponse(null, "Timed out waiting for the BMC", false);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new OutOfBandManagementDriverResponse(null, "Interrupted waiting for the BMC", false);
+        }
+        return result.get();
+    }
+
+    @Override
+    public void executeAsync(final OutOfBandManagementDriverCommand cmd, final Callback callback) {
+        final IpmiLanClient ipmiLanClient = client;
+        if (ipmiLanClient == null) {
+            callback.complete(new OutOfBandManagementDriverResponse(null, "Driver not enabled or shutdown", false));
+            return;
+        }
+        final InetSocketAddress address;
+        try {
+            address = getAddress(cmd.getOptions());
+        } catch (final IllegalArgumentException | UnknownHostException e) {
+            callback.complete(new OutOfBandManagementDriverResponse(null, "Invalid BMC address: " + e.getMessage(), false));
+            return;
+        }
+
+        final Bmc bmc = new Bmc(ipmiLanClient, address, cmd.getOptions(), getTimeout(cmd));
+        if (cmd instanceof OutOfBandManagementDriverPowerCommand) {
+            execute(bmc, (OutOfBandManagementDriverPowerCommand) cmd, callback);
+        } else if (cmd instanceof OutOfBandManagementDriverChangePasswordCommand) {
+            execute(bmc, (OutOfBandManagementDriverChangePasswordCommand) cmd, callback);
+        } else {
+            callback.complete(new OutOfBandManagementDriverResponse(null, "Unsupported Command", false));
+        }
+    }
+
+    private void execute(final Bmc bmc, final OutOfBandManagementDriverPowerCommand cmd, final Callback callback) {
+        final OutOfBandManagement.PowerOperation operation = cmd.getPowerOperation();
+        if (operation == OutOfBandManagement.PowerOperation.STATUS) {
+            bmc.execute(IpmiLanPacket.NETFN_CHASSIS, IpmiLanPacket.CMD_GET_CHASSIS_STATUS, new byte[0], new Step(callback) {
+                @Override
+                void onSuccess(final byte[] data) {
+                    if (data.length < 2) {
+                        failed("Invalid chassis status from the BMC");
+                        return;
+                    }
+                    final boolean on = (data[1] & 0x01) != 0;
+                    final OutOfBandManagementDriverResponse response = new OutOfBandManagementDriverResponse(on ? "Chassis Power is on" : "Chassis Power is off", null, true);
+                    response.setPowerState(on ? OutOfBandManagement.PowerState.On : OutOfBandManagement.PowerState.Off);
+                    callback.complete(response);
+                }
+            });
+            return;
+        }
+
+        final int control;
+        final String result;
+        switch (operation) {
+            case ON:
+                control = CHASSIS_POWER_UP;
+                result = "Up/On";
+                break;
+            case OFF:
+                control = CHASSIS_POWER_DOWN;
+                result = "Down/Off";
+                break;
+            case CYCLE:
+                control = CHASSIS_POWER_CYCLE;
+                result = "Cycle";
+                break;
+            case RESET:
+                control = CHASSIS_HARD_RESET;
+                result = "Reset";
+                break;
+            case SOFT:
+                control = CHASSIS_SOFT_SHUTDOWN;
+                result = "Soft";
+                break;
+            default:
+                callback.complete(new OutOfBandManagementDriverResponse(null, "Invalid power operation requested", false));
+                return;
+        }
+        bmc.execute(IpmiLanPacket.NETFN_CHASSIS, IpmiLanPacket.CMD_CHASSIS_CONTROL, new byte[] {(byte) control}, new Step(callback) {
+            @Override
+            void onSuccess(final byte[] data) {
+                callback.complete(new OutOfBandManagementDriverResponse("Chassis Power Control: " + result, null, true));
+            }
+        });
+    }
+
+    private void execute(final Bmc bmc, final OutOfBandManagementDriverChangePasswordCommand cmd, final Callback callback) {
+        final String username = cmd.getOptions().get(OutOfBandManagement.Option.USERNAME);
+        if (Strings.isNullOrEmpty(username)) {
+            callback.complete(new OutOfBandManagementDriverResponse(null, "Empty IPMI user configured, cannot proceed to find user's ID", false));
+            return;
+        }
+        final byte[] newPassword = Strings.nullToEmpty(cmd.getNewPassword()).getBytes();
+        if (newPassword.length > 20) {
+            callback.complete(new OutOfBandManagementDriverResponse(null, "IPMI passwords are at most 20 characters long", false));
+            return;
+        }
+
+        // the number of user ids from the access of the first user on the current channel
+        bmc.execute(IpmiLanPacket.NETFN_APP, IpmiLanPacket.CMD_GET_USER_ACCESS, new byte[] {0x0E, 0x01}, new Step(callback) {
+            @Override
+            void onSuccess(final byte[] data) {
+                if (data.length < 2) {
+                    failed("Invalid user access from the BMC");
+                    return;
+                }
+                findUser(bmc, username, 1, data[1] & 0x3F, newPassword, callback);
+            }
+        });
+    }
+
+    private void findUser(final Bmc bmc, final String username, final int userId, final int maxUserId, final byte[] newPassword, final Callback callback) {
+        if (userId > maxUserId) {
+            callback.complete(new OutOfBandManagementDriverResponse(null, "No IPMI user ID found for the username: " + username, false));
+            return;
+        }
+        bmc.execute(IpmiLanPacket.NETFN_APP, IpmiLanPacket.CMD_GET_USER_NAME, new byte[] {(byte) userId}, new Step(callback) {
+            @Override
+            void onSuccess(final byte[] data) {
+                int length = 1;
+                while (length < data.length && data[length] != 0) {
+                    length++;
+                }
+                if (!username.equals(new String(data, 1, length - 1))) {
+                    findUser(bmc, username, userId + 1, maxUserId, newPassword, callback);
+                    return;
+                }
+                setPassword(bmc, userId, newPassword, callback);
+            }
+
+            @Override
+            void onError(final int completionCode) {
+                // unused user ids may answer with an error
+                findUser(bmc, username, userId + 1, maxUserId, newPassword, callback);
+            }
+        });
+    }
+
+    private void setPassword(final Bmc bmc, final int userId, final byte[] newPassword, final Callback callback) {
+        // set password, in the 20 bytes format when it does not fit in 16
+        final boolean longPassword = newPassword.length > 16;
+        final byte[] data = Arrays.copyOf(new byte[] {(byte) (userId | (longPassword ? 0x80 : 0)), 0x02}, 2 + (longPassword ? 20 : 16));
+        System.arraycopy(newPassword, 0, data, 2, newPassword.length);
+        bmc.execute(IpmiLanPacket.NETFN_APP, IpmiLanPacket.CMD_SET_USER_PASSWORD, data, new Step(callback) {
+            @Override
+            void onSuccess(final byte[] response) {
+                callback.complete(new OutOfBandManagementDriverResponse("Set User Password command successful (user " + userId + ")", null, true));
+            }
+        });
+    }
+
+    private long getTimeout(final OutOfBandManagementDriverCommand cmd) {
+        if (cmd.getTimeout() != null && cmd.getTimeout().getMillis() > 0) {
+            return cmd.getTimeout().getMillis();
+        }
+        return OutOfBandManagementService.ActionTimeout.value() * 1000L;
+    }
+
+    private static InetSocketAddress getAddress(final ImmutableMap<OutOfBandManagement.Option, String> options) throws UnknownHostException {
+        final String address = options.get(OutOfBandManagement.Option.ADDRESS);
+        if (Strings.isNullOrEmpty(address)) {
+            throw new IllegalArgumentException("no address configured");
+        }
+        final String port = options.get(OutOfBandManagement.Option.PORT);
+        return new InetSocketAddress(InetAddress.getByName(address), Strings.isNullOrEmpty(port) ? IpmiLanPacket.RMCP_PORT : Integer.parseInt(port.trim()));
+    }
+
+    private static final class Bmc {
+        private final IpmiLanClient client;
+        private final InetSocketAddress address;
+        private final String username;
+        private final String password;
+        private final long timeout;
+
+        Bmc(final IpmiLanClient client, final InetSocketAddress address, final ImmutableMap<OutOfBandManagement.Option, String> options, final long timeout) {
+            this.client = client;
+            this.address = address;
+            this.username = options.get(OutOfBandManagement.Option.USERNAME);
+            this.password = options.get(OutOfBandManagement.Option.PASSWORD);
+            this.timeout = timeout;
+        }
+
+        void execute(final int netFn, final int cmd, final byte[] data, final IpmiLanClient.ResponseHandler handler) {
+            client.execute(address, username, password, netFn, cmd, data, timeout, handler);
+        }
+    }
+
+    /**
+     * One request of a command, completing the command on failures.
+     */
+    private abstract static class Step implements IpmiLanClient.ResponseHandler {
+        private final Callback callback;
+
+        Step(final Callback callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * @param data the response data, starting with a successful completion code
+         */
+        abstract void onSuccess(byte[] data);
+
+        void onError(final int completionCode) {
+            failed(String.format("BMC failed the command with completion code 0x%02x", completionCode));
+        }
+
+        void failed(final String error) {
+            callback.complete(new OutOfBandManagementDriverResponse(null, error, false));
+        }
+
+        @Override
+        public final void onResponse(final byte[] data) {
+            if (data[0] != 0) {
+                onError(data[0] & 0xFF);
+            } else {
+                onSuccess(data);
+            }
+        }
+
+        @Override
+        public final void onFailure(final String error, final boolean authFailure) {
+            final OutOfBandManagementDriverResponse response = new OutOfBandManagementDriverResponse(null, error, false);
+            response.setAuthFailure(authFailure);
+            callback.complete(response);
+        }
+    }
+
+    @Override
+    public boolean start() {
+        final IpmiLanClient ipmiLanClient = new IpmiLanClient(IpmiLanThreads.value(), IpmiLanRetries.value(),
+                IpmiLanRetransmitTimeout.value(), IpmiLanSessionIdleTimeout.value() * 1000L);
+        try {
+            ipmiLanClient.start();
+        } catch (final IOException e) {
+            LOG.error("OutOfBandManagementDriver ipmilan failed initialization: " + e.getMessage(), e);
+            ipmiLanClient.stop();
+            return true;
+        }
+        client = ipmiLanClient;
+        LOG.debug("OutOfBandManagementDriver ipmilan initialized with " + IpmiLanThreads.value() + " I/O threads");
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        final IpmiLanClient ipmiLanClient = client;
+        client = null;
+        if (ipmiLanClient != null) {
+            ipmiLanClient.stop();
+        }
+        return true;
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return IpmiLanOutOfBandManagementDriver.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {IpmiLanThreads, IpmiLanRetries, IpmiLanRetransmitTimeout, IpmiLanSessionIdleTimeout};
+    }
+}
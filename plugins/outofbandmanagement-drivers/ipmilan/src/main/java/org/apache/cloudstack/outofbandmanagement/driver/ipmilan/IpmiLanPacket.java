@@ -0,0 +1,360 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * An RMCP packet carrying an IPMI v1.5 or v2.0 (RMCP+) session, see sections 13 and 22 of the IPMI v2.0
+ * specification. Only cipher suite 3 is used: RAKP-HMAC-SHA1 authentication, HMAC-SHA1-96 integrity and
+ * AES-CBC-128 confidentiality.
+ */
+public final class IpmiLanPacket {
+    public static final int RMCP_PORT = 623;
+
+    public static final int PAYLOAD_IPMI = 0x00;
+    public static final int PAYLOAD_OPEN_SESSION_REQUEST = 0x10;
+    public static final int PAYLOAD_OPEN_SESSION_RESPONSE = 0x11;
+    public static final int PAYLOAD_RAKP1 = 0x12;
+    public static final int PAYLOAD_RAKP2 = 0x13;
+    public static final int PAYLOAD_RAKP3 = 0x14;
+    public static final int PAYLOAD_RAKP4 = 0x15;
+
+    public static final int NETFN_CHASSIS = 0x00;
+    public static final int NETFN_APP = 0x06;
+
+    public static final int CMD_GET_CHASSIS_STATUS = 0x01;
+    public static final int CMD_CHASSIS_CONTROL = 0x02;
+    public static final int CMD_GET_CHANNEL_AUTH_CAPABILITIES = 0x38;
+    public static final int CMD_SET_SESSION_PRIVILEGE = 0x3B;
+    public static final int CMD_CLOSE_SESSION = 0x3C;
+    public static final int CMD_GET_USER_ACCESS = 0x44;
+    public static final int CMD_GET_USER_NAME = 0x46;
+    public static final int CMD_SET_USER_PASSWORD = 0x47;
+
+    public static final int PRIVILEGE_ADMINISTRATOR = 0x04;
+
+    private static final int RMCP_CLASS_IPMI = 0x07;
+    private static final int AUTH_TYPE_NONE = 0x00;
+    private static final int AUTH_TYPE_RMCP_PLUS = 0x06;
+    private static final int ENCRYPTED = 0x80;
+    private static final int AUTHENTICATED = 0x40;
+    private static final int AUTH_CODE_LENGTH = 12;
+    private static final int AES_BLOCK = 16;
+
+    private static final int BMC_ADDRESS = 0x20;
+    private static final int REMOTE_CONSOLE_ADDRESS = 0x81;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final boolean v20;
+    private final int payloadType;
+    private final boolean encrypted;
+    private final boolean authenticated;
+    private final int sessionId;
+    private final int sequence;
+    private final byte[] payload;
+
+    public IpmiLanPacket(final boolean v20, final int payloadType, final boolean encrypted, final boolean authenticated, final int sessionId, final int sequence, final byte[] payload) {
+        this.v20 = v20;
+        this.payloadType = payloadType;
+        this.encrypted = encrypted;
+        this.authenticated = authenticated;
+        this.sessionId = sessionId;
+        this.sequence = sequence;
+        this.payload = payload;
+    }
+
+    /**
+     * A packet outside of a session: IPMI v1.5 for an IPMI message, IPMI v2.0 for the session setup payloads.
+     */
+    public static IpmiLanPacket sessionless(final int payloadType, final byte[] payload) {
+        return new IpmiLanPacket(payloadType != PAYLOAD_IPMI, payloadType, false, false, 0, 0, payload);
+    }
+
+    public boolean isV20() {
+        return v20;
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * @param k1 the integrity key, used when the packet is authenticated
+     * @param k2 the confidentiality key, used when the packet is encrypted
+     */
+    public void encode(final ByteBuffer out, final byte[] k1, final byte[] k2) {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put((byte) 0x06).put((byte) 0x00).put((byte) 0xFF).put((byte) RMCP_CLASS_IPMI);
+        if (!v20) {
+            out.put((byte) AUTH_TYPE_NONE);
+            out.putInt(sequence);
+            out.putInt(sessionId);
+            out.put((byte) payload.length);
+            out.put(payload);
+            return;
+        }
+
+        final int start = out.position();
+        out.put((byte) AUTH_TYPE_RMCP_PLUS);
+        out.put((byte) (payloadType | (encrypted ? ENCRYPTED : 0) | (authenticated ? AUTHENTICATED : 0)));
+        out.putInt(sessionId);
+        out.putInt(sequence);
+        final byte[] body = encrypted ? encrypt(k2, payload) : payload;
+        out.putShort((short) body.length);
+        out.put(body);
+        if (authenticated) {
+            // the bytes from the auth type through the next header are a multiple of 4
+            final int pad = (4 - (out.position() - start + 2) % 4) % 4;
+            for (int i = 0; i < pad; i++) {
+                out.put((byte) 0xFF);
+            }
+            out.put((byte) pad);
+            out.put((byte) RMCP_CLASS_IPMI);
+            final byte[] signed = new byte[out.position() - start];
+            final ByteBuffer view = out.duplicate();
+            view.position(start);
+            view.get(signed);
+            out.put(Arrays.copyOf(hmacSha1(k1, signed), AUTH_CODE_LENGTH));
+        }
+    }
+
+    /**
+     * @return the packet, or null if it is not an IPMI packet or fails its integrity check
+     */
+    public static IpmiLanPacket decode(final ByteBuffer in, final byte[] k1, final byte[] k2) {
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (in.get() != 0x06) {
+                return null;
+            }
+            in.get();
+            in.get();
+            if ((in.get() & 0x1F) != RMCP_CLASS_IPMI) {
+                return null;
+            }
+
+            final int start = in.position();
+            final int authType = in.get() & 0xFF;
+            if (authType != AUTH_TYPE_RMCP_PLUS) {
+                final int sequence = in.getInt();
+                final int sessionId = in.getInt();
+                if (authType != AUTH_TYPE_NONE) {
+                    in.position(in.position() + 16);
+                }
+                final byte[] payload = new byte[in.get() & 0xFF];
+                in.get(payload);
+                return new IpmiLanPacket(false, PAYLOAD_IPMI, false, false, sessionId, sequence, payload);
+            }
+
+            final int type = in.get() & 0xFF;
+            final int sessionId = in.getInt();
+            final int sequence = in.getInt();
+            final byte[] body = new byte[in.getShort() & 0xFFFF];
+            in.get(body);
+            final boolean encrypted = (type & ENCRYPTED) != 0;
+            final boolean authenticated = (type & AUTHENTICATED) != 0;
+            if (authenticated) {
+                if (k1 == null) {
+                    return null;
+                }
+                final int pad = (4 - (in.position() - start + 2) % 4) % 4;
+                in.position(in.position() + pad + 2);
+                final byte[] signed = new byte[in.position() - start];
+                final ByteBuffer view = in.duplicate();
+                view.position(start);
+                view.get(signed);
+                final byte[] authCode = new byte[AUTH_CODE_LENGTH];
+                in.get(authCode);
+                if (!MessageDigest.isEqual(authCode, Arrays.copyOf(hmacSha1(k1, signed), AUTH_CODE_LENGTH))) {
+                    return null;
+                }
+            }
+            if (encrypted && k2 == null) {
+                return null;
+            }
+            final byte[] payload = encrypted ? decrypt(k2, body) : body;
+            if (payload == null) {
+                return null;
+            }
+            return new IpmiLanPacket(true, type & 0x3F, encrypted, authenticated, sessionId, sequence, payload);
+        } catch (final RuntimeException e) {
+            // truncated or garbled
+            return null;
+        }
+    }
+
+    /**
+     * Wraps a request in an IPMI LAN message addressed to the BMC.
+     */
+    public static byte[] request(final int rqSeq, final int netFn, final int cmd, final byte[] data) {
+        final byte[] message = new byte[7 + data.length];
+        message[0] = (byte) BMC_ADDRESS;
+        message[1] = (byte) (netFn << 2);
+        message[2] = checksum(message, 0, 2);
+        message[3] = (byte) REMOTE_CONSOLE_ADDRESS;
+        message[4] = (byte) (rqSeq << 2);
+        message[5] = (byte) cmd;
+        System.arraycopy(data, 0, message, 6, data.length);
+        message[message.length - 1] = checksum(message, 3, message.length - 1);
+        return message;
+    }
+
+    /**
+     * Wraps a response in an IPMI LAN message addressed to the remote console.
+     */
+    public static byte[] response(final int rqSeq, final int netFn, final int cmd, final byte[] data) {
+        final byte[] message = request(rqSeq, netFn | 1, cmd, data);
+        message[0] = (byte) REMOTE_CONSOLE_ADDRESS;
+        message[2] = checksum(message, 0, 2);
+        message[3] = (byte) BMC_ADDRESS;
+        message[message.length - 1] = checksum(message, 3, message.length - 1);
+        return message;
+    }
+
+    public static int getNetFn(final byte[] message) {
+        return (message[1] & 0xFF) >> 2;
+    }
+
+    public static int getRqSeq(final byte[] message) {
+        return (message[4] & 0xFF) >> 2;
+    }
+
+    public static int getCommand(final byte[] message) {
+        return message[5] & 0xFF;
+    }
+
+    /**
+     * @return the data of the message, starting with the completion code for a response, or null if the
+     *         message is too short or its checksums do not match
+     */
+    public static byte[] getData(final byte[] message) {
+        if (message.length < 7 || checksum(message, 0, 2) != message[2] || checksum(message, 3, message.length - 1) != message[message.length - 1]) {
+            return null;
+        }
+        return Arrays.copyOfRange(message, 6, message.length - 1);
+    }
+
+    private static byte checksum(final byte[] data, final int from, final int to) {
+        int sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += data[i];
+        }
+        return (byte) -sum;
+    }
+
+    public static byte[] random(final int length) {
+        final byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    public static int randomInt() {
+        return RANDOM.nextInt();
+    }
+
+    public static byte[] hmacSha1(final byte[] key, final byte[]... data) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(key, "HmacSHA1"));
+            for (final byte[] d : data) {
+                mac.update(d);
+            }
+            return mac.doFinal();
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA1 is not available", e);
+        }
+    }
+
+    /**
+     * The key of a user is its password, zero padded to 20 bytes.
+     */
+    public static byte[] userKey(final String password) {
+        return Arrays.copyOf(password == null ? new byte[0] : password.getBytes(), 20);
+    }
+
+    private static byte[] encrypt(final byte[] k2, final byte[] payload) {
+        // pad bytes 1, 2, .. n followed by n, up to a multiple of the block size
+        final int pad = (AES_BLOCK - (payload.length + 1) % AES_BLOCK) % AES_BLOCK;
+        final byte[] plain = Arrays.copyOf(payload, payload.length + pad + 1);
+        for (int i = 0; i < pad; i++) {
+            plain[payload.length + i] = (byte) (i + 1);
+        }
+        plain[plain.length - 1] = (byte) pad;
+
+        final byte[] iv = random(AES_BLOCK);
+        try {
+            final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(k2, 0, AES_BLOCK, "AES"), new IvParameterSpec(iv));
+            final byte[] encrypted = cipher.doFinal(plain);
+            final byte[] body = Arrays.copyOf(iv, AES_BLOCK + encrypted.length);
+            System.arraycopy(encrypted, 0, body, AES_BLOCK, encrypted.length);
+            return body;
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("AES-CBC-128 is not available", e);
+        }
+    }
+
+    private static byte[] decrypt(final byte[] k2, final byte[] body) {
+        if (body.length < 2 * AES_BLOCK || body.length % AES_BLOCK != 0) {
+            return null;
+        }
+        try {
+            final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(k2, 0, AES_BLOCK, "AES"), new IvParameterSpec(body, 0, AES_BLOCK));
+            final byte[] plain = cipher.doFinal(body, AES_BLOCK, body.length - AES_BLOCK);
+            final int pad = plain[plain.length - 1] & 0xFF;
+            if (pad >= AES_BLOCK) {
+                return null;
+            }
+            return Arrays.copyOf(plain, plain.length - pad - 1);
+        } catch (final GeneralSecurityException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,529 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import org.apache.log4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * An RMCP+ session with one BMC, established on the first request and reused by the following ones. The
+ * requests are sent one at a time, in the order they were queued.
+ *
+ * Not thread safe, a session is only used by the {@link IpmiLanClient} I/O thread it belongs to.
+ */
+final class IpmiLanSession {
+    public static final Logger LOG = Logger.getLogger(IpmiLanSession.class);
+
+    interface Transport {
+        void send(InetSocketAddress address, IpmiLanPacket packet, byte[] k1, byte[] k2);
+    }
+
+    static final class Request {
+        private final int netFn;
+        private final int cmd;
+        private final byte[] data;
+        private final long deadline;
+        private final IpmiLanClient.ResponseHandler handler;
+        private boolean reconnected;
+
+        Request(final int netFn, final int cmd, final byte[] data, final long deadline, final IpmiLanClient.ResponseHandler handler) {
+            this.netFn = netFn;
+            this.cmd = cmd;
+            this.data = data;
+            this.deadline = deadline;
+            this.handler = handler;
+        }
+    }
+
+    private enum State {
+        Closed, AuthCapabilities, OpenSession, Rakp1, Rakp3, SetPrivilege, Active
+    }
+
+    // RMCP+ status codes of a failed authentication: invalid role, unauthorized role, unauthorized name,
+    // unauthorized GUID, invalid integrity check value
+    private static final int[] AUTH_FAILURE_STATUSES = {0x09, 0x0A, 0x0D, 0x0E, 0x0F};
+
+    // administrator, with a lookup by name only
+    private static final int REQUESTED_ROLE = IpmiLanPacket.PRIVILEGE_ADMINISTRATOR | 0x10;
+
+    private final InetSocketAddress address;
+    private final String username;
+    private final String password;
+    private final Transport transport;
+    private final int retries;
+    private final long retransmitTimeout;
+
+    private final Deque<Request> queue = new ArrayDeque<Request>();
+    private Request current;
+
+    private State state = State.Closed;
+    private int consoleSessionId;
+    private int bmcSessionId;
+    private int messageTag;
+    private byte[] rm;
+    private byte[] rc;
+    private byte[] guid;
+    private byte[] sik;
+    private byte[] k1;
+    private byte[] k2;
+    private int outSequence;
+    private int rqSeq;
+
+    private IpmiLanPacket sent;
+    private int attempts;
+    private long attemptDeadline;
+    private long lastActivity;
+
+    IpmiLanSession(final InetSocketAddress address, final String username, final String password, final Transport transport,
+                   final int retries, final long retransmitTimeout) {
+        this.address = address;
+        this.username = username == null ? "" : username;
+        this.password = password == null ? "" : password;
+        this.transport = transport;
+        this.retries = retries;
+        this.retransmitTimeout = retransmitTimeout;
+    }
+
+    boolean hasCredentials(final String username, final String password) {
+        return this.username.equals(username == null ? "" : username) && this.password.equals(password == null ? "" : password);
+    }
+
+    boolean isActive() {
+        return state == State.Active;
+    }
+
+    boolean isIdle() {
+        return current == null && queue.isEmpty();
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    byte[] getIntegrityKey() {
+        return k1;
+    }
+
+    byte[] getConfidentialityKey() {
+        return k2;
+    }
+
+    /**
+     * @return when {@link #onTimer} next needs to run, or Long.MAX_VALUE
+     */
+    long getDeadline() {
+        long deadline = sent != null ? attemptDeadline : Long.MAX_VALUE;
+        for (final Request request : queue) {
+            deadline = Math.min(deadline, request.deadline);
+        }
+        return deadline;
+    }
+
+    void submit(final Request request, final long now, final long idleTimeout) {
+        queue.add(request);
+        if (state == State.Active && current == null && now - lastActivity >= idleTimeout) {
+            // the BMC has likely timed the session out in the meantime
+            state = State.Closed;
+        }
+        if (state == State.Closed) {
+            connect(now);
+        } else if (state == State.Active && current == null) {
+            next(now);
+        }
+    }
+
+    /**
+     * Closes the session, failing the requests still queued.
+     */
+    void close(final String reason) {
+        if (state == State.Active) {
+            final byte[] data = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(bmcSessionId).array();
+            sendInSession(IpmiLanPacket.NETFN_APP, IpmiLanPacket.CMD_CLOSE_SESSION, data);
+        }
+        state = State.Closed;
+        sent = null;
+        failAll(reason, false);
+    }
+
+    private void connect(final long now) {
+        state = State.AuthCapabilities;
+        consoleSessionId = IpmiLanPacket.randomInt() | 1;
+        bmcSessionId = 0;
+        k1 = null;
+        k2 = null;
+        outSequence = 0;
+        // IPMI v2.0 extended data on the current channel, at the administrator level
+        send(IpmiLanPacket.sessionless(IpmiLanPacket.PAYLOAD_IPMI, IpmiLanPacket.request(nextRqSeq(), IpmiLanPacket.NETFN_APP,
+                IpmiLanPacket.CMD_GET_CHANNEL_AUTH_CAPABILITIES, new byte[] {(byte) 0x8E, IpmiLanPacket.PRIVILEGE_ADMINISTRATOR})), now, true);
+    }
+
+    void onPacket(final IpmiLanPacket packet, final long now) {
+        lastActivity = now;
+        switch (state) {
+            case AuthCapabilities:
+                onAuthCapabilities(packet, now);
+                break;
+            case OpenSession:
+                onOpenSessionResponse(packet, now);
+                break;
+            case Rakp1:
+                onRakp2(packet, now);
+                break;
+            case Rakp3:
+                onRakp4(packet, now);
+                break;
+            case SetPrivilege:
+            case Active:
+                onResponse(packet, now);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onAuthCapabilities(final IpmiLanPacket packet, final long now) {
+        final byte[] data = responseData(packet, IpmiLanPacket.CMD_GET_CHANNEL_AUTH_CAPABILITIES);
+        if (data == null) {
+            return;
+        }
+        if (data.length < 3 || data[0] != 0 || (data[2] & 0x80) == 0) {
+            fail("BMC does not support IPMI v2.0 RMCP+ sessions", false);
+            return;
+        }
+
+        messageTag = (messageTag + 1) & 0xFF;
+        final ByteBuffer payload = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        payload.put((byte) messageTag).put((byte) IpmiLanPacket.PRIVILEGE_ADMINISTRATOR).putShort((short) 0);
+        payload.putInt(consoleSessionId);
+        // cipher suite 3: RAKP-HMAC-SHA1, HMAC-SHA1-96, AES-CBC-128
+        payload.put(new byte[] {0x00, 0, 0, 0x08, 0x01, 0, 0, 0});
+        payload.put(new byte[] {0x01, 0, 0, 0x08, 0x01, 0, 0, 0});
+        payload.put(new byte[] {0x02, 0, 0, 0x08, 0x01, 0, 0, 0});
+        state = State.OpenSession;
+        send(IpmiLanPacket.sessionless(IpmiLanPacket.PAYLOAD_OPEN_SESSION_REQUEST, payload.array()), now, true);
+    }
+
+    private void onOpenSessionResponse(final IpmiLanPacket packet, final long now) {
+        final ByteBuffer payload = handshakePayload(packet, IpmiLanPacket.PAYLOAD_OPEN_SESSION_RESPONSE, 12);
+        if (payload == null) {
+            return;
+        }
+        final int status = payload.get(1) & 0xFF;
+        if (status != 0) {
+            fail(String.format("BMC refused to open a session, status 0x%02x", status), isAuthFailure(status));
+            return;
+        }
+        if (payload.getInt(4) != consoleSessionId) {
+            return;
+        }
+        bmcSessionId = payload.getInt(8);
+
+        rm = IpmiLanPacket.random(16);
+        final byte[] name = username.getBytes();
+        final ByteBuffer rakp1 = ByteBuffer.allocate(28 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        rakp1.put((byte) messageTag).put(new byte[3]).putInt(bmcSessionId).put(rm);
+        rakp1.put((byte) REQUESTED_ROLE).putShort((short) 0).put((byte) name.length).put(name);
+        state = State.Rakp1;
+        send(IpmiLanPacket.sessionless(IpmiLanPacket.PAYLOAD_RAKP1, rakp1.array()), now, true);
+    }
+
+    private void onRakp2(final IpmiLanPacket packet, final long now) {
+        final ByteBuffer payload = handshakePayload(packet, IpmiLanPacket.PAYLOAD_RAKP2, 8);
+        if (payload == null) {
+            return;
+        }
+        final int status = payload.get(1) & 0xFF;
+        if (status != 0) {
+            fail(String.format("BMC rejected the session authentication, status 0x%02x", status), isAuthFailure(status));
+            return;
+        }
+        if (payload.getInt(4) != consoleSessionId || payload.remaining() < 60) {
+            return;
+        }
+
+        rc = new byte[16];
+        guid = new byte[16];
+        final byte[] authCode = new byte[20];
+        payload.position(8);
+        payload.get(rc).get(guid).get(authCode);
+
+        final byte[] kuid = IpmiLanPacket.userKey(password);
+        final byte[] name = username.getBytes();
+        final byte[] roleAndName = roleAndName(name);
+        final byte[] expected = IpmiLanPacket.hmacSha1(kuid, intLE(consoleSessionId), intLE(bmcSessionId), rm, rc, guid, roleAndName);
+        if (!MessageDigest.isEqual(authCode, expected)) {
+            fail("RAKP 2 HMAC is invalid", true);
+            return;
+        }
+
+        sik = IpmiLanPacket.hmacSha1(kuid, rm, rc, roleAndName);
+        k1 = IpmiLanPacket.hmacSha1(sik, constant(0x01));
+        k2 = IpmiLanPacket.hmacSha1(sik, constant(0x02));
+
+        final ByteBuffer rakp3 = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+        rakp3.put((byte) messageTag).put((byte) 0).putShort((short) 0).putInt(bmcSessionId);
+        rakp3.put(IpmiLanPacket.hmacSha1(kuid, rc, intLE(consoleSessionId), roleAndName));
+        state = State.Rakp3;
+        send(IpmiLanPacket.sessionless(IpmiLanPacket.PAYLOAD_RAKP3, rakp3.array()), now, true);
+    }
+
+    private void onRakp4(final IpmiLanPacket packet, final long now) {
+        final ByteBuffer payload = handshakePayload(packet, IpmiLanPacket.PAYLOAD_RAKP4, 8);
+        if (payload == null) {
+            return;
+        }
+        final int status = payload.get(1) & 0xFF;
+        if (status != 0) {
+            fail(String.format("BMC rejected the session authentication, status 0x%02x", status), isAuthFailure(status));
+            return;
+        }
+        if (payload.getInt(4) != consoleSessionId || payload.remaining() < 20) {
+            return;
+        }
+        final byte[] icv = Arrays.copyOfRange(payload.array(), 8, 20);
+        final byte[] expected = Arrays.copyOf(IpmiLanPacket.hmacSha1(sik, rm, intLE(bmcSessionId), guid), 12);
+        if (!MessageDigest.isEqual(icv, expected)) {
+            fail("RAKP 4 integrity check value is invalid", true);
+            return;
+        }
+
+        // sessions start at the user level
+        state = State.SetPrivilege;
+        sent = null;
+        sendInSession(IpmiLanPacket.NETFN_APP, IpmiLanPacket.CMD_SET_SESSION_PRIVILEGE, new byte[] {IpmiLanPacket.PRIVILEGE_ADMINISTRATOR});
+        armTimer(now, true);
+    }
+
+    private void onResponse(final IpmiLanPacket packet, final long now) {
+        if (!packet.isV20() || packet.getPayloadType() != IpmiLanPacket.PAYLOAD_IPMI || packet.getSessionId() != consoleSessionId
+                || !packet.isAuthenticated() || !packet.isEncrypted()) {
+            return;
+        }
+        final byte[] message = packet.getPayload();
+        final byte[] data = IpmiLanPacket.getData(message);
+        if (data == null || data.length < 1 || IpmiLanPacket.getRqSeq(message) != rqSeq) {
+            return;
+        }
+
+        if (state == State.SetPrivilege) {
+            if (IpmiLanPacket.getCommand(message) != IpmiLanPacket.CMD_SET_SESSION_PRIVILEGE) {
+                return;
+            }
+            sent = null;
+            if (data[0] != 0) {
+                fail(String.format("BMC refused the administrator privilege level, completion code 0x%02x", data[0] & 0xFF), true);
+                return;
+            }
+            state = State.Active;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Established IPMI session with BMC " + address);
+            }
+            next(now);
+            return;
+        }
+
+        if (current == null || IpmiLanPacket.getCommand(message) != current.cmd) {
+            return;
+        }
+        final Request request = current;
+        current = null;
+        sent = null;
+        complete(request, data);
+        next(now);
+    }
+
+    void onTimer(final long now) {
+        for (final Iterator<Request> it = queue.iterator(); it.hasNext();) {
+            final Request request = it.next();
+            if (now >= request.deadline) {
+                it.remove();
+                failed(request, "Timed out waiting for the BMC", false);
+            }
+        }
+
+        if (sent == null || now < attemptDeadline) {
+            return;
+        }
+        if (attempts <= retries && (current == null || now < current.deadline)) {
+            resend(now);
+            return;
+        }
+
+        sent = null;
+        if (state == State.Active && current != null) {
+            final Request request = current;
+            current = null;
+            if (!request.reconnected && now < request.deadline) {
+                // the BMC may have dropped the session, set up a new one once
+                request.reconnected = true;
+                queue.addFirst(request);
+                connect(now);
+            } else {
+                failed(request, "Timed out waiting for the BMC", false);
+                next(now);
+            }
+            return;
+        }
+        fail("Timed out setting up a session with the BMC", false);
+    }
+
+    private void next(final long now) {
+        if (current != null || state != State.Active) {
+            return;
+        }
+        current = queue.poll();
+        if (current == null) {
+            return;
+        }
+        sendInSession(current.netFn, current.cmd, current.data);
+        armTimer(now, true);
+    }
+
+    private void resend(final long now) {
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Resending to BMC " + address + " in state " + state);
+        }
+        if (sent.isV20() && sent.getSessionId() != 0) {
+            // a new session sequence number, keeping the request sequence number
+            sent = new IpmiLanPacket(true, sent.getPayloadType(), true, true, bmcSessionId, nextOutSequence(), sent.getPayload());
+        }
+        transport.send(address, sent, k1, k2);
+        armTimer(now, false);
+    }
+
+    private void send(final IpmiLanPacket packet, final long now, final boolean first) {
+        sent = packet;
+        transport.send(address, packet, k1, k2);
+        armTimer(now, first);
+    }
+
+    private void sendInSession(final int netFn, final int cmd, final byte[] data) {
+        final byte[] message = IpmiLanPacket.request(nextRqSeq(), netFn, cmd, data);
+        sent = new IpmiLanPacket(true, IpmiLanPacket.PAYLOAD_IPMI, true, true, bmcSessionId, nextOutSequence(), message);
+        transport.send(address, sent, k1, k2);
+    }
+
+    private void armTimer(final long now, final boolean first) {
+        attempts = first ? 1 : attempts + 1;
+        attemptDeadline = now + retransmitTimeout;
+    }
+
+    private void fail(final String error, final boolean authFailure) {
+        LOG.debug("IPMI session with BMC " + address + " failed: " + error);
+        state = State.Closed;
+        sent = null;
+        failAll(error, authFailure);
+    }
+
+    private void failAll(final String error, final boolean authFailure) {
+        if (current != null) {
+            failed(current, error, authFailure);
+            current = null;
+        }
+        Request request;
+        while ((request = queue.poll()) != null) {
+            failed(request, error, authFailure);
+        }
+    }
+
+    private void complete(final Request request, final byte[] data) {
+        try {
+            request.handler.onResponse(data);
+        } catch (final Throwable t) {
+            LOG.warn("IPMI response handler failed", t);
+        }
+    }
+
+    private void failed(final Request request, final String error, final boolean authFailure) {
+        try {
+            request.handler.onFailure(error, authFailure);
+        } catch (final Throwable t) {
+            LOG.warn("IPMI response handler failed", t);
+        }
+    }
+
+    private byte[] responseData(final IpmiLanPacket packet, final int cmd) {
+        if (packet.isV20() || packet.getPayload().length < 7) {
+            return null;
+        }
+        final byte[] message = packet.getPayload();
+        if (IpmiLanPacket.getCommand(message) != cmd || IpmiLanPacket.getRqSeq(message) != rqSeq) {
+            return null;
+        }
+        return IpmiLanPacket.getData(message);
+    }
+
+    private ByteBuffer handshakePayload(final IpmiLanPacket packet, final int payloadType, final int minLength) {
+        if (!packet.isV20() || packet.getPayloadType() != payloadType || packet.getPayload().length < minLength
+                || (packet.getPayload()[0] & 0xFF) != messageTag) {
+            return null;
+        }
+        return ByteBuffer.wrap(packet.getPayload()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private byte[] roleAndName(final byte[] name) {
+        final byte[] roleAndName = new byte[2 + name.length];
+        roleAndName[0] = (byte) REQUESTED_ROLE;
+        roleAndName[1] = (byte) name.length;
+        System.arraycopy(name, 0, roleAndName, 2, name.length);
+        return roleAndName;
+    }
+
+    private int nextRqSeq() {
+        rqSeq = (rqSeq + 1) & 0x3F;
+        if (rqSeq == 0) {
+            rqSeq = 1;
+        }
+        return rqSeq;
+    }
+
+    private int nextOutSequence() {
+        outSequence++;
+        if (outSequence == 0) {
+            outSequence = 1;
+        }
+        return outSequence;
+    }
+
+    private static boolean isAuthFailure(final int status) {
+        for (final int authFailure : AUTH_FAILURE_STATUSES) {
+            if (status == authFailure) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static byte[] intLE(final int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    private static byte[] constant(final int value) {
+        final byte[] constant = new byte[20];
+        Arrays.fill(constant, (byte) value);
+        return constant;
+    }
+}
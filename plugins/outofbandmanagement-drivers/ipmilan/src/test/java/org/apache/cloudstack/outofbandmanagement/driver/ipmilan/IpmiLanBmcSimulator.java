@@ -0,0 +1,395 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in BMCs answering IPMI v2.0 over LAN on local UDP ports, with cipher suite 3 and the chassis and
+ * user commands the driver uses. All of them are served by one thread.
+ */
+public final class IpmiLanBmcSimulator {
+    private static final Logger LOG = Logger.getLogger(IpmiLanBmcSimulator.class);
+
+    private static final int MAX_USERS = 4;
+
+    public static final class Bmc {
+        private final DatagramChannel channel;
+        private final String[] usernames = new String[MAX_USERS + 1];
+        private final String[] passwords = new String[MAX_USERS + 1];
+        private final byte[] guid = IpmiLanPacket.random(16);
+        private final Map<Integer, Session> sessions = new ConcurrentHashMap<Integer, Session>();
+        private final AtomicInteger sessionsOpened = new AtomicInteger();
+        private final AtomicInteger commands = new AtomicInteger();
+        private volatile boolean responding = true;
+        private volatile boolean powerOn;
+
+        Bmc(final DatagramChannel channel) {
+            this.channel = channel;
+            usernames[2] = "ADMIN";
+            passwords[2] = "password";
+        }
+
+        public InetSocketAddress getAddress() throws IOException {
+            return (InetSocketAddress) channel.getLocalAddress();
+        }
+
+        public void setUser(final int userId, final String username, final String password) {
+            usernames[userId] = username;
+            passwords[userId] = password;
+        }
+
+        public String getPassword(final int userId) {
+            return passwords[userId];
+        }
+
+        public void setResponding(final boolean responding) {
+            this.responding = responding;
+        }
+
+        public boolean isPowerOn() {
+            return powerOn;
+        }
+
+        public void setPowerOn(final boolean powerOn) {
+            this.powerOn = powerOn;
+        }
+
+        /**
+         * Forgets the sessions as if they had timed out.
+         */
+        public void dropSessions() {
+            sessions.clear();
+        }
+
+        public int getSessionsOpened() {
+            return sessionsOpened.get();
+        }
+
+        public int getActiveSessions() {
+            int active = 0;
+            for (final Session session : sessions.values()) {
+                if (session.k1 != null) {
+                    active++;
+                }
+            }
+            return active;
+        }
+
+        public int getCommands() {
+            return commands.get();
+        }
+
+        private int findUser(final String username) {
+            for (int i = 1; i <= MAX_USERS; i++) {
+                if (username.equals(usernames[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static final class Session {
+        private final int consoleSessionId;
+        private final int bmcSessionId;
+        private byte[] rm;
+        private byte[] rc;
+        private byte[] roleAndName;
+        private int userId;
+        private byte[] k1;
+        private byte[] k2;
+        private int outSequence;
+
+        Session(final int consoleSessionId, final int bmcSessionId) {
+            this.consoleSessionId = consoleSessionId;
+            this.bmcSessionId = bmcSessionId;
+        }
+    }
+
+    private final Selector selector;
+    private final List<Bmc> bmcs = new ArrayList<Bmc>();
+    private final Thread thread;
+    private final ByteBuffer in = ByteBuffer.allocate(65536);
+    private final ByteBuffer out = ByteBuffer.allocate(1024);
+    private volatile boolean running = true;
+
+    public IpmiLanBmcSimulator(final int count) throws IOException {
+        selector = Selector.open();
+        for (int i = 0; i < count; i++) {
+            final DatagramChannel channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final Bmc bmc = new Bmc(channel);
+            channel.register(selector, SelectionKey.OP_READ, bmc);
+            bmcs.add(bmc);
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "IpmiLanBmcSimulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Bmc getBmc(final int index) {
+        return bmcs.get(index);
+    }
+
+    public List<Bmc> getBmcs() {
+        return bmcs;
+    }
+
+    public void stop() throws InterruptedException, IOException {
+        running = false;
+        selector.wakeup();
+        thread.join();
+        for (final Bmc bmc : bmcs) {
+            bmc.channel.close();
+        }
+        selector.close();
+    }
+
+    private void serve() {
+        try {
+            while (running) {
+                selector.select(100);
+                for (final SelectionKey key : selector.selectedKeys()) {
+                    final Bmc bmc = (Bmc) key.attachment();
+                    SocketAddress source;
+                    while (true) {
+                        in.clear();
+                        source = bmc.channel.receive(in);
+                        if (source == null) {
+                            break;
+                        }
+                        in.flip();
+                        if (bmc.responding) {
+                            handle(bmc, source);
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (final IOException e) {
+            LOG.error("BMC simulator failed", e);
+        }
+    }
+
+    private void handle(final Bmc bmc, final SocketAddress source) throws IOException {
+        Session session = null;
+        if (in.limit() >= 10 && in.get(4) == 0x06) {
+            session = bmc.sessions.get(in.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(6));
+        }
+        final IpmiLanPacket packet = IpmiLanPacket.decode(in, session == null ? null : session.k1, session == null ? null : session.k2);
+        if (packet == null) {
+            return;
+        }
+
+        if (!packet.isV20()) {
+            final byte[] message = packet.getPayload();
+            if (IpmiLanPacket.getCommand(message) == IpmiLanPacket.CMD_GET_CHANNEL_AUTH_CAPABILITIES) {
+                // channel 1, IPMI v2.0 extended capabilities, non-null user names
+                final byte[] data = {0x00, 0x01, (byte) 0x80, 0x10, 0x02, 0, 0, 0, 0};
+                send(bmc, source, IpmiLanPacket.sessionless(IpmiLanPacket.PAYLOAD_IPMI, IpmiLanPacket.response(IpmiLanPacket.getRqSeq(message),
+                        IpmiLanPacket.getNetFn(message), IpmiLanPacket.CMD_GET_CHANNEL_AUTH_CAPABILITIES, data)), null, null);
+            }
+            return;
+        }
+
+        final ByteBuffer payload = ByteBuffer.wrap(packet.getPayload()).order(ByteOrder.LITTLE_ENDIAN);
+        switch (packet.getPayloadType()) {
+            case IpmiLanPacket.PAYLOAD_OPEN_SESSION_REQUEST:
+                openSession(bmc, source, payload);
+                break;
+            case IpmiLanPacket.PAYLOAD_RAKP1:
+                rakp1(bmc, source, payload);
+                break;
+            case IpmiLanPacket.PAYLOAD_RAKP3:
+                rakp3(bmc, source, payload);
+                break;
+            case IpmiLanPacket.PAYLOAD_IPMI:
+                if (session != null && session.k1 != null && packet.isAuthenticated() && packet.isEncrypted()) {
+                    command(bmc, source, session, packet.getPayload());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void openSession(final Bmc bmc, final SocketAddress source, final ByteBuffer request) throws IOException {
+        final Session session = new Session(request.getInt(4), IpmiLanPacket.randomInt() | 1);
+        bmc.sessions.put(session.bmcSessionId, session);
+        final ByteBuffer response = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+        response.put(request.get(0)).put((byte) 0).put((byte) IpmiLanPacket.PRIVILEGE_ADMINISTRATOR).put((byte) 0);
+        response.putInt(session.consoleSessionId).putInt(session.bmcSessionId);
+        response.put(Arrays.copyOfRange(request.array(), 8, 32));
+        sendSessionless(bmc, source, IpmiLanPacket.PAYLOAD_OPEN_SESSION_RESPONSE, response.array());
+    }
+
+    private void rakp1(final Bmc bmc, final SocketAddress source, final ByteBuffer request) throws IOException {
+        final Session session = bmc.sessions.get(request.getInt(4));
+        if (session == null) {
+            return;
+        }
+        session.rm = Arrays.copyOfRange(request.array(), 8, 24);
+        final int nameLength = request.get(27) & 0xFF;
+        final byte[] name = Arrays.copyOfRange(request.array(), 28, 28 + nameLength);
+        session.roleAndName = new byte[2 + nameLength];
+        session.roleAndName[0] = request.get(24);
+        session.roleAndName[1] = (byte) nameLength;
+        System.arraycopy(name, 0, session.roleAndName, 2, nameLength);
+
+        session.userId = bmc.findUser(new String(name));
+        if (session.userId < 0) {
+            sendStatus(bmc, source, IpmiLanPacket.PAYLOAD_RAKP2, request.get(0), 0x0D, session.consoleSessionId);
+            return;
+        }
+        if (session.rc == null) {
+            // the same random number when the console sends RAKP 1 again
+            session.rc = IpmiLanPacket.random(16);
+        }
+        final ByteBuffer response = ByteBuffer.allocate(60).order(ByteOrder.LITTLE_ENDIAN);
+        response.put(request.get(0)).put((byte) 0).putShort((short) 0).putInt(session.consoleSessionId);
+        response.put(session.rc).put(bmc.guid);
+        response.put(IpmiLanPacket.hmacSha1(IpmiLanPacket.userKey(bmc.passwords[session.userId]), IpmiLanSession.intLE(session.consoleSessionId),
+                IpmiLanSession.intLE(session.bmcSessionId), session.rm, session.rc, bmc.guid, session.roleAndName));
+        sendSessionless(bmc, source, IpmiLanPacket.PAYLOAD_RAKP2, response.array());
+    }
+
+    private void rakp3(final Bmc bmc, final SocketAddress source, final ByteBuffer request) throws IOException {
+        final Session session = bmc.sessions.get(request.getInt(4));
+        if (session == null || session.rc == null) {
+            return;
+        }
+        final byte[] kuid = IpmiLanPacket.userKey(bmc.passwords[session.userId]);
+        final byte[] expected = IpmiLanPacket.hmacSha1(kuid, session.rc, IpmiLanSession.intLE(session.consoleSessionId), session.roleAndName);
+        if (!Arrays.equals(expected, Arrays.copyOfRange(request.array(), 8, 28))) {
+            sendStatus(bmc, source, IpmiLanPacket.PAYLOAD_RAKP4, request.get(0), 0x0F, session.consoleSessionId);
+            return;
+        }
+        final byte[] sik = IpmiLanPacket.hmacSha1(kuid, session.rm, session.rc, session.roleAndName);
+        final byte[] one = new byte[20];
+        final byte[] two = new byte[20];
+        Arrays.fill(one, (byte) 0x01);
+        Arrays.fill(two, (byte) 0x02);
+        if (session.k1 == null) {
+            bmc.sessionsOpened.incrementAndGet();
+        }
+        session.k1 = IpmiLanPacket.hmacSha1(sik, one);
+        session.k2 = IpmiLanPacket.hmacSha1(sik, two);
+
+        final ByteBuffer response = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        response.put(request.get(0)).put((byte) 0).putShort((short) 0).putInt(session.consoleSessionId);
+        response.put(Arrays.copyOf(IpmiLanPacket.hmacSha1(sik, session.rm, IpmiLanSession.intLE(session.bmcSessionId), bmc.guid), 12));
+        sendSessionless(bmc, source, IpmiLanPacket.PAYLOAD_RAKP4, response.array());
+    }
+
+    private void command(final Bmc bmc, final SocketAddress source, final Session session, final byte[] message) throws IOException {
+        final byte[] data = IpmiLanPacket.getData(message);
+        if (data == null) {
+            return;
+        }
+        bmc.commands.incrementAndGet();
+        final int cmd = IpmiLanPacket.getCommand(message);
+        byte[] response = {(byte) 0xC1};
+        switch (cmd) {
+            case IpmiLanPacket.CMD_SET_SESSION_PRIVILEGE:
+                response = new byte[] {0x00, data[0]};
+                break;
+            case IpmiLanPacket.CMD_CLOSE_SESSION:
+                bmc.sessions.remove(session.bmcSessionId);
+                response = new byte[] {0x00};
+                break;
+            case IpmiLanPacket.CMD_GET_CHASSIS_STATUS:
+                response = new byte[] {0x00, (byte) (bmc.powerOn ? 0x01 : 0x00), 0x00, 0x00};
+                break;
+            case IpmiLanPacket.CMD_CHASSIS_CONTROL:
+                if (data[0] == 0x00 || data[0] == 0x05) {
+                    bmc.powerOn = false;
+                } else if (data[0] == 0x01) {
+                    bmc.powerOn = true;
+                }
+                response = new byte[] {0x00};
+                break;
+            case IpmiLanPacket.CMD_GET_USER_ACCESS:
+                response = new byte[] {0x00, MAX_USERS, 0x02, 0x00, 0x04};
+                break;
+            case IpmiLanPacket.CMD_GET_USER_NAME:
+                final int userId = data[0] & 0x3F;
+                if (userId < 1 || userId > MAX_USERS) {
+                    response = new byte[] {(byte) 0xC9};
+                    break;
+                }
+                response = new byte[17];
+                if (bmc.usernames[userId] != null) {
+                    final byte[] name = bmc.usernames[userId].getBytes();
+                    System.arraycopy(name, 0, response, 1, name.length);
+                }
+                break;
+            case IpmiLanPacket.CMD_SET_USER_PASSWORD:
+                final int length = (data[0] & 0x80) != 0 ? 20 : 16;
+                int end = 2;
+                while (end < 2 + length && data[end] != 0) {
+                    end++;
+                }
+                bmc.passwords[data[0] & 0x3F] = new String(data, 2, end - 2);
+                response = new byte[] {0x00};
+                break;
+            default:
+                break;
+        }
+        send(bmc, source, new IpmiLanPacket(true, IpmiLanPacket.PAYLOAD_IPMI, true, true, session.consoleSessionId, ++session.outSequence,
+                IpmiLanPacket.response(IpmiLanPacket.getRqSeq(message), IpmiLanPacket.getNetFn(message), cmd, response)), session.k1, session.k2);
+    }
+
+    private void sendStatus(final Bmc bmc, final SocketAddress source, final int payloadType, final byte tag, final int status, final int consoleSessionId) throws IOException {
+        final ByteBuffer response = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        response.put(tag).put((byte) status).putShort((short) 0).putInt(consoleSessionId);
+        sendSessionless(bmc, source, payloadType, response.array());
+    }
+
+    private void sendSessionless(final Bmc bmc, final SocketAddress source, final int payloadType, final byte[] payload) throws IOException {
+        send(bmc, source, IpmiLanPacket.sessionless(payloadType, payload), null, null);
+    }
+
+    private void send(final Bmc bmc, final SocketAddress source, final IpmiLanPacket packet, final byte[] k1, final byte[] k2) throws IOException {
+        out.clear();
+        packet.encode(out, k1, k2);
+        out.flip();
+        bmc.channel.send(out, source);
+    }
+}
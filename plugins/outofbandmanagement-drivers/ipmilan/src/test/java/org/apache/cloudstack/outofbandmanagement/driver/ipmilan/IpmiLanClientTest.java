@@ -0,0 +1,180 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IpmiLanClientTest {
+    private static final Logger LOG = Logger.getLogger(IpmiLanClientTest.class);
+
+    private static final int BMCS = 500;
+
+    private IpmiLanBmcSimulator simulator;
+    private IpmiLanClient client;
+
+    private static final class Result implements IpmiLanClient.ResponseHandler {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile byte[] data;
+        private volatile String error;
+        private volatile boolean authFailure;
+
+        @Override
+        public void onResponse(final byte[] data) {
+            this.data = data;
+            latch.countDown();
+        }
+
+        @Override
+        public void onFailure(final String error, final boolean authFailure) {
+            this.error = error;
+            this.authFailure = authFailure;
+            latch.countDown();
+        }
+
+        Result await() throws InterruptedException {
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+            return this;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        simulator = new IpmiLanBmcSimulator(BMCS);
+        client = new IpmiLanClient(2, 2, 200L, 60000L);
+        client.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.stop();
+        simulator.stop();
+    }
+
+    private Result chassisStatus(final InetSocketAddress address, final String password) throws InterruptedException {
+        final Result result = new Result();
+        client.execute(address, "ADMIN", password, IpmiLanPacket.NETFN_CHASSIS, IpmiLanPacket.CMD_GET_CHASSIS_STATUS, new byte[0], 5000L, result);
+        return result.await();
+    }
+
+    @Test
+    public void testPacketRoundTrip() {
+        final byte[] k1 = IpmiLanPacket.random(20);
+        final byte[] k2 = IpmiLanPacket.random(20);
+        final byte[] message = IpmiLanPacket.request(5, IpmiLanPacket.NETFN_CHASSIS, IpmiLanPacket.CMD_CHASSIS_CONTROL, new byte[] {0x01});
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        new IpmiLanPacket(true, IpmiLanPacket.PAYLOAD_IPMI, true, true, 42, 7, message).encode(buffer, k1, k2);
+        buffer.flip();
+
+        final IpmiLanPacket packet = IpmiLanPacket.decode(buffer.duplicate(), k1, k2);
+        Assert.assertNotNull(packet);
+        Assert.assertEquals(42, packet.getSessionId());
+        Assert.assertEquals(7, packet.getSequence());
+        Assert.assertEquals(5, IpmiLanPacket.getRqSeq(packet.getPayload()));
+        Assert.assertArrayEquals(new byte[] {0x01}, IpmiLanPacket.getData(packet.getPayload()));
+        // a packet signed with another key is dropped
+        Assert.assertNull(IpmiLanPacket.decode(buffer.duplicate(), IpmiLanPacket.random(20), k2));
+    }
+
+    @Test
+    public void testSessionIsReused() throws Exception {
+        final IpmiLanBmcSimulator.Bmc bmc = simulator.getBmc(0);
+        bmc.setPowerOn(true);
+        for (int i = 0; i < 5; i++) {
+            final Result result = chassisStatus(bmc.getAddress(), "password");
+            Assert.assertNull(result.error);
+            Assert.assertEquals(0x00, result.data[0]);
+            Assert.assertEquals(0x01, result.data[1] & 0x01);
+        }
+        Assert.assertEquals(1, bmc.getSessionsOpened());
+        Assert.assertEquals(1, client.getSessionCount());
+    }
+
+    @Test
+    public void testWrongPasswordIsAuthFailure() throws Exception {
+        final Result result = chassisStatus(simulator.getBmc(0).getAddress(), "wrong");
+        Assert.assertNull(result.data);
+        Assert.assertTrue(result.authFailure);
+        Assert.assertEquals("RAKP 2 HMAC is invalid", result.error);
+    }
+
+    @Test
+    public void testNewSessionWhenBmcDroppedIt() throws Exception {
+        final IpmiLanBmcSimulator.Bmc bmc = simulator.getBmc(0);
+        Assert.assertNull(chassisStatus(bmc.getAddress(), "password").error);
+
+        bmc.dropSessions();
+        Assert.assertNull(chassisStatus(bmc.getAddress(), "password").error);
+        Assert.assertEquals(2, bmc.getSessionsOpened());
+    }
+
+    @Test
+    public void testUnresponsiveBmcTimesOut() throws Exception {
+        final IpmiLanBmcSimulator.Bmc bmc = simulator.getBmc(0);
+        bmc.setResponding(false);
+        final Result result = chassisStatus(bmc.getAddress(), "password");
+        Assert.assertNull(result.data);
+        Assert.assertFalse(result.authFailure);
+
+        // the other BMCs served by the same threads are not held up
+        Assert.assertNull(chassisStatus(simulator.getBmc(1).getAddress(), "password").error);
+    }
+
+    @Test
+    public void testManyBmcsOnFewThreads() throws Exception {
+        final int rounds = 3;
+        final AtomicInteger failures = new AtomicInteger();
+        final long begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            final CountDownLatch latch = new CountDownLatch(BMCS);
+            for (final IpmiLanBmcSimulator.Bmc bmc : simulator.getBmcs()) {
+                client.execute(bmc.getAddress(), "ADMIN", "password", IpmiLanPacket.NETFN_CHASSIS, IpmiLanPacket.CMD_GET_CHASSIS_STATUS, new byte[0], 30000L,
+                        new IpmiLanClient.ResponseHandler() {
+                            @Override
+                            public void onResponse(final byte[] data) {
+                                latch.countDown();
+                            }
+
+                            @Override
+                            public void onFailure(final String error, final boolean authFailure) {
+                                failures.incrementAndGet();
+                                latch.countDown();
+                            }
+                        });
+            }
+            Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+        }
+        LOG.info(String.format("Polled the power state of %d BMCs %d times on 2 threads in %d ms", BMCS, rounds,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)));
+
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals(BMCS, client.getSessionCount());
+        for (final IpmiLanBmcSimulator.Bmc bmc : simulator.getBmcs()) {
+            Assert.assertEquals(1, bmc.getSessionsOpened());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement.driver.ipmilan;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.cloudstack.outofbandmanagement.OutOfBandManagement;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverChangePasswordCommand;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverPowerCommand;
+import org.apache.cloudstack.outofbandmanagement.driver.OutOfBandManagementDriverResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IpmiLanOutOfBandManagementDriverTest {
+
+    private IpmiLanBmcSimulator simulator;
+    private IpmiLanBmcSimulator.Bmc bmc;
+    private IpmiLanOutOfBandManagementDriver driver = new IpmiLanOutOfBandManagementDriver();
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new IpmiLanBmcSimulator(1);
+        bmc = simulator.getBmc(0);
+        driver.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        driver.stop();
+        simulator.stop();
+    }
+
+    private ImmutableMap<OutOfBandManagement.Option, String> options(final String username, final String password) throws Exception {
+        return ImmutableMap.of(OutOfBandManagement.Option.ADDRESS, bmc.getAddress().getAddress().getHostAddress(),
+                OutOfBandManagement.Option.PORT, String.valueOf(bmc.getAddress().getPort()),
+                OutOfBandManagement.Option.USERNAME, username,
+                OutOfBandManagement.Option.PASSWORD, password);
+    }
+
+    private OutOfBandManagementDriverResponse power(final OutOfBandManagement.PowerOperation operation, final String password) throws Exception {
+        return driver.execute(new OutOfBandManagementDriverPowerCommand(options("ADMIN", password), 10L, operation));
+    }
+
+    @Test
+    public void testPowerOperations() throws Exception {
+        OutOfBandManagementDriverResponse response = power(OutOfBandManagement.PowerOperation.STATUS, "password");
+        Assert.assertTrue(response.isSuccess());
+        Assert.assertEquals("Chassis Power is off", response.getResult());
+        Assert.assertEquals(OutOfBandManagement.PowerState.Off, response.getPowerState());
+
+        response = power(OutOfBandManagement.PowerOperation.ON, "password");
+        Assert.assertTrue(response.isSuccess());
+        Assert.assertEquals("Chassis Power Control: Up/On", response.getResult());
+        Assert.assertTrue(bmc.isPowerOn());
+
+        response = power(OutOfBandManagement.PowerOperation.STATUS, "password");
+        Assert.assertEquals(OutOfBandManagement.PowerState.On, response.getPowerState());
+        Assert.assertEquals(OutOfBandManagement.PowerState.Event.On, response.toEvent());
+
+        response = power(OutOfBandManagement.PowerOperation.SOFT, "password");
+        Assert.assertTrue(response.isSuccess());
+        Assert.assertFalse(bmc.isPowerOn());
+        Assert.assertEquals(1, bmc.getSessionsOpened());
+    }
+
+    @Test
+    public void testAuthFailure() throws Exception {
+        final OutOfBandManagementDriverResponse response = power(OutOfBandManagement.PowerOperation.STATUS, "wrong");
+        Assert.assertFalse(response.isSuccess());
+        Assert.assertTrue(response.hasAuthFailure());
+        Assert.assertEquals(OutOfBandManagement.PowerState.Event.AuthError, response.toEvent());
+    }
+
+    @Test
+    public void testUnknownUserIsAuthFailure() throws Exception {
+        final OutOfBandManagementDriverResponse response = driver.execute(new OutOfBandManagementDriverPowerCommand(options("nobody", "password"), 10L,
+                OutOfBandManagement.PowerOperation.STATUS));
+        Assert.assertFalse(response.isSuccess());
+        Assert.assertTrue(response.hasAuthFailure());
+    }
+
+    @Test
+    public void testChangePassword() throws Exception {
+        bmc.setUser(3, "operator", "secret");
+        OutOfBandManagementDriverResponse response = driver.execute(new OutOfBandManagementDriverChangePasswordCommand(options("ADMIN", "password"), 10L, "new-password"));
+        Assert.assertTrue(response.isSuccess());
+        Assert.assertEquals("new-password", bmc.getPassword(2));
+        Assert.assertEquals("secret", bmc.getPassword(3));
+
+        response = power(OutOfBandManagement.PowerOperation.STATUS, "new-password");
+        Assert.assertTrue(response.isSuccess());
+    }
+
+    @Test
+    public void testChangePasswordTooLong() throws Exception {
+        final OutOfBandManagementDriverResponse response = driver.execute(new OutOfBandManagementDriverChangePasswordCommand(options("ADMIN", "password"), 10L,
+                "a-password-that-is-way-too-long"));
+        Assert.assertFalse(response.isSuccess());
+        Assert.assertEquals("password", bmc.getPassword(2));
+    }
+
+    @Test
+    public void testInvalidAddress() {
+        final OutOfBandManagementDriverResponse response = driver.execute(new OutOfBandManagementDriverPowerCommand(
+                ImmutableMap.of(OutOfBandManagement.Option.USERNAME, "ADMIN"), 10L, OutOfBandManagement.PowerOperation.STATUS));
+        Assert.assertFalse(response.isSuccess());
+        Assert.assertFalse(response.hasAuthFailure());
+    }
+}
@@ -346,6 +346,14 @@ public enum Config {
             "100",
             "The number of outstanding security group work items that can be queued to a host. If exceeded, work items will get dropped to conserve memory. Security Group Sync will take care of ensuring that the host gets updated eventually",
             null),
+    SecurityGroupWorkBatchSize(
+            "Network",
+            ManagementServer.class,
+            Integer.class,
+            "network.securitygroups.work.batch.size",
+            "100",
+            "The number of security group work items a worker takes from the work queue at once. The rulesets of the vms on a KVM host are sent to it in one command, as changes against the rulesets it applied last. 1 sends every ruleset on its own",
+            null),
 
     SecurityGroupDefaultAdding(
             "Network",
@@ -1290,6 +1298,30 @@ public enum Config {
             "Interval (in days) to check sanity of usage data. To disable set it to 0 or negative.",
             null),
     UsageAggregationTimezone("Usage", ManagementServer.class, String.class, "usage.aggregation.timezone", "GMT", "The timezone to use for usage stats aggregation", null),
+    UsageParseWorkers(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.parse.workers",
+            "4",
+            "Number of threads the usage job parses accounts on.",
+            null),
+    UsageParsePartitions(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.parse.partitions",
+            "16",
+            "Number of partitions accounts are split into by id when parsing usage, each partition is committed and checkpointed on its own so a failed job resumes with the partitions not parsed yet.",
+            null),
+    UsageParseSetBased(
+            "Usage",
+            ManagementServer.class,
+            Boolean.class,
+            "usage.parse.set.based",
+            "false",
+            "If true, VM, volume and network usage is parsed for all accounts of a partition at once with one query per usage table and batched inserts, instead of account by account.",
+            null),
     TrafficSentinelIncludeZones(
             "Usage",
             ManagementServer.class,
@@ -97,10 +97,13 @@ import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
 import org.apache.log4j.Logger;
 
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.InvalidateConfigCacheCommand;
 import com.cloud.alert.AlertManager;
 import com.cloud.api.ApiDBUtils;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Resource.ResourceType;
 import com.cloud.dc.AccountVlanMapVO;
 import com.cloud.dc.ClusterDetailsDao;
@@ -184,6 +187,7 @@ import com.cloud.org.Grouping;
 import com.cloud.org.Grouping.AllocationState;
 import com.cloud.projects.Project;
 import com.cloud.projects.ProjectManager;
+import com.cloud.serializer.GsonHelper;
 import com.cloud.server.ConfigurationServer;
 import com.cloud.server.ManagementService;
 import com.cloud.service.ServiceOfferingDetailsVO;
@@ -356,6 +360,8 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
     ImageStoreDetailsDao _imageStoreDetailsDao;
     @Inject
     MessageBus messageBus;
+    @Inject
+    ClusterManager _clusterMgr;
 
 
     // FIXME - why don't we have interface for DataCenterLinkLocalIpAddressDao?
@@ -574,6 +580,7 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
             default:
                 throw new InvalidParameterValueException("Scope provided is invalid");
             }
+            invalidateConfigCache(name);
             return value;
         }
 
@@ -664,10 +671,21 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
         }
 
         txn.commit();
+        invalidateConfigCache(name);
         messageBus.publish(_name, EventTypes.EVENT_CONFIGURATION_VALUE_EDIT, PublishScope.GLOBAL, name);
         return _configDao.getValue(name);
     }
 
+    /**
+     * Moves the config change version forward and has the other management servers drop their
+     * cached config values, so the committed change is seen cluster wide on the next read.
+     */
+    protected void invalidateConfigCache(final String name) {
+        final long version = _configDepot.invalidateConfigCache();
+        final Command[] cmds = new Command[] {new InvalidateConfigCacheCommand(name, version)};
+        _clusterMgr.broadcast(0, GsonHelper.getGson().toJson(cmds));
+    }
+
     @Override
     @ActionEvent(eventType = EventTypes.EVENT_CONFIGURATION_VALUE_EDIT, eventDescription = "updating configuration")
     public Configuration updateConfiguration(final UpdateCfgCmd cmd) throws InvalidParameterValueException {
@@ -0,0 +1,245 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.framework.events.EventBus;
+import org.apache.cloudstack.framework.events.EventBusException;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.cloudstack.utils.identity.ManagementServerNode;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ClusterManagerListener;
+import com.cloud.cluster.ManagementServerHost;
+import com.cloud.event.ActionEventUtils.PendingEvent;
+import com.cloud.event.dao.EventOutboxDao;
+import com.cloud.utils.component.ComponentContext;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Publishes action events on the event bus off the API and job threads.
+ *
+ * Events are written to the event_outbox table by the caller, in its transaction, so an event is
+ * never lost once the action that raised it is committed. A delivery thread publishes the outbox
+ * in order and removes what the bus accepted, failed batches are retried with a growing delay.
+ * Whatever is in the outbox when the management server stops is delivered after it starts again,
+ * the outbox of a management server that left the cluster is taken over by the one that notices.
+ */
+public class ActionEventPublisher extends ManagerBase implements Configurable, ClusterManagerListener {
+    private static final Logger s_logger = Logger.getLogger(ActionEventPublisher.class);
+
+    static final ConfigKey<Integer> EventPublishBatchSize = new ConfigKey<Integer>("Advanced", Integer.class, "event.publish.batch.size", "100",
+            "Maximum number of action events published on the event bus at once", true);
+    static final ConfigKey<Integer> EventPublishRetryInterval = new ConfigKey<Integer>("Advanced", Integer.class, "event.publish.retry.interval", "5",
+            "Initial interval in seconds before publishing a failed batch of events again, doubled on each failure up to 5 minutes", true);
+
+    private static final long MAX_RETRY_INTERVAL_MS = 300000;
+    private static final long IDLE_WAIT_MS = 1000;
+
+    @Inject
+    EventOutboxDao eventOutboxDao;
+    @Inject
+    ClusterManager clusterManager;
+
+    private volatile EventBus eventBus;
+
+    private ExecutorService executor;
+    private volatile boolean running = false;
+    private final Object outboxSignal = new Object();
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        clusterManager.registerListener(this);
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        running = true;
+        executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("ActionEventPublisher"));
+        executor.submit(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                deliverLoop();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        running = false;
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                s_logger.debug("[ignored] interrupted while waiting for the action event publisher to stop");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes an action event to the event outbox in the caller's transaction, never waits for the event bus.
+     */
+    public void enqueue(PendingEvent event) {
+        org.apache.cloudstack.framework.events.Event busEvent;
+        try {
+            busEvent = ActionEventUtils.toBusEvent(event);
+        } catch (RuntimeException e) {
+            s_logger.warn("Dropping action event " + event.type + " that could not be prepared for the event bus: " + e.getMessage());
+            return;
+        }
+        if (busEvent == null) {
+            return;
+        }
+
+        eventOutboxDao.persist(new EventOutboxVO(ManagementServerNode.getManagementServerId(), busEvent.getEventSource(), busEvent.getEventCategory(),
+                busEvent.getEventType(), busEvent.getResourceType(), busEvent.getResourceUUID(), busEvent.getDescription()));
+        synchronized (outboxSignal) {
+            outboxSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Event bus to deliver to, looked up from the component context when not set.
+     */
+    public void setEventBus(EventBus eventBus) {
+        this.eventBus = eventBus;
+    }
+
+    private void deliverLoop() {
+        long msid = ManagementServerNode.getManagementServerId();
+        long retryDelay = 0;
+        while (running) {
+            try {
+                if (retryDelay > 0) {
+                    Thread.sleep(retryDelay);
+                }
+                List<EventOutboxVO> rows = eventOutboxDao.listPending(msid, EventPublishBatchSize.value());
+                if (rows.isEmpty()) {
+                    synchronized (outboxSignal) {
+                        outboxSignal.wait(IDLE_WAIT_MS);
+                    }
+                    continue;
+                }
+                if (deliver(rows)) {
+                    retryDelay = 0;
+                } else {
+                    retryDelay = retryDelay == 0 ? EventPublishRetryInterval.value() * 1000L : Math.min(retryDelay * 2, MAX_RETRY_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable e) {
+                s_logger.error("Unexpected error while delivering action events from the event outbox", e);
+                retryDelay = Math.max(retryDelay, EventPublishRetryInterval.value() * 1000L);
+            }
+        }
+    }
+
+    private EventBus lookupEventBus() {
+        EventBus bus = eventBus;
+        if (bus == null) {
+            // event bus providers are plugins, they may come up after this manager or not at all
+            try {
+                bus = ComponentContext.getComponent(EventBus.class);
+                eventBus = bus;
+            } catch (NoSuchBeanDefinitionException e) {
+                return null;
+            }
+        }
+        return bus;
+    }
+
+    private boolean deliver(List<EventOutboxVO> rows) {
+        EventBus eventBus = lookupEventBus();
+        if (eventBus == null) {
+            s_logger.debug("No event bus to deliver " + rows.size() + " action events to yet");
+            return false;
+        }
+
+        List<org.apache.cloudstack.framework.events.Event> events = new ArrayList<org.apache.cloudstack.framework.events.Event>(rows.size());
+        List<Long> ids = new ArrayList<Long>(rows.size());
+        for (EventOutboxVO row : rows) {
+            org.apache.cloudstack.framework.events.Event event = new org.apache.cloudstack.framework.events.Event(row.getSource(), row.getCategory(), row.getType(),
+                    row.getResourceType(), row.getResourceUuid());
+            event.setDescription(row.getDescription());
+            events.add(event);
+            ids.add(row.getId());
+        }
+
+        try {
+            eventBus.publish(events);
+        } catch (EventBusException e) {
+            s_logger.warn("Failed to publish " + events.size() + " action events on the event bus, will retry: " + e.getMessage());
+            return false;
+        }
+        eventOutboxDao.expunge(ids);
+        return true;
+    }
+
+    @Override
+    public void onManagementNodeJoined(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+    }
+
+    @Override
+    public void onManagementNodeLeft(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+        long msid = ManagementServerNode.getManagementServerId();
+        for (ManagementServerHost node : nodeList) {
+            if (node.getMsid() == msid) {
+                continue;
+            }
+            int transferred = eventOutboxDao.transfer(node.getMsid(), msid);
+            if (transferred > 0) {
+                s_logger.info("Took over " + transferred + " undelivered action events of management server " + node.getMsid());
+                synchronized (outboxSignal) {
+                    outboxSignal.notifyAll();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onManagementNodeIsolated() {
+        // the other management servers take our outbox over once they see us leave
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return ActionEventPublisher.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {EventPublishBatchSize, EventPublishRetryInterval};
+    }
+}
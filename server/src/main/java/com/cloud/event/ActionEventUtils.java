@@ -21,6 +21,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -47,6 +48,8 @@ import com.cloud.user.dao.UserDao;
 import com.cloud.projects.dao.ProjectDao;
 import com.cloud.projects.Project;
 import com.cloud.utils.component.ComponentContext;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 public class ActionEventUtils {
     private static final Logger s_logger = Logger.getLogger(ActionEventUtils.class);
@@ -55,9 +58,16 @@ public class ActionEventUtils {
     private static AccountDao s_accountDao;
     private static ProjectDao s_projectDao;
     protected static UserDao s_userDao;
-    protected static EventBus s_eventBus = null;
+    protected static volatile EventBus s_eventBus = null;
     protected static EntityManager s_entityMgr;
     protected static ConfigurationDao s_configDao;
+    private static ActionEventPublisher s_eventPublisher;
+
+    private static final long PUBLISH_SETTING_REFRESH_MS = 30000;
+    private static volatile boolean s_publishEnabled;
+    private static volatile long s_publishSettingCheckTime;
+    // UUIDs never change, cache them so that enriching events does not hit the database every time
+    private static final Cache<String, String> s_uuidCache = CacheBuilder.newBuilder().maximumSize(10000).expireAfterWrite(10, TimeUnit.MINUTES).build();
 
     public static final String EventDetails = "event_details";
     public static final String EventId = "event_id";
@@ -77,6 +87,8 @@ public class ActionEventUtils {
     EntityManager entityMgr;
     @Inject
     ConfigurationDao configDao;
+    @Inject
+    ActionEventPublisher eventPublisher;
 
     public ActionEventUtils() {
     }
@@ -89,6 +101,9 @@ public class ActionEventUtils {
         s_projectDao = projectDao;
         s_entityMgr = entityMgr;
         s_configDao = configDao;
+        s_eventPublisher = eventPublisher;
+        s_publishSettingCheckTime = 0;
+        s_uuidCache.invalidateAll();
     }
 
     public static Long onActionEvent(Long userId, Long accountId, Long domainId, String type, String description) {
@@ -188,70 +203,163 @@ public class ActionEventUtils {
     }
 
     private static void publishOnEventBus(long userId, long accountId, String eventCategory, String eventType, Event.State state, String description) {
-        String configKey = Config.PublishActionEvent.key();
-        String value = s_configDao.getValue(configKey);
-        boolean configValue = Boolean.parseBoolean(value);
-        if(!configValue)
+        if (!isPublishingEnabled())
             return;
-        try {
-            s_eventBus = ComponentContext.getComponent(EventBus.class);
-        } catch (NoSuchBeanDefinitionException nbe) {
-            return; // no provider is configured to provide events bus, so just return
-        }
 
-        // get the entity details for which ActionEvent is generated
-        String entityType = null;
-        String entityUuid = null;
+        // capture what depends on the calling thread, the rest is looked up by the publisher
         CallContext context = CallContext.current();
         //Get entity Class(Example - VirtualMachine.class) from the event Type eg. - VM.CREATE
         Class<?> entityClass = EventTypes.getEntityClassForEvent(eventType);
-        if (entityClass != null){
-            //Get uuid from id
-            Object param = context.getContextParameter(entityClass);
-            if(param != null){
+        Object entityParam = entityClass != null ? context.getContextParameter(entityClass) : null;
+        PendingEvent pending = new PendingEvent(userId, accountId, eventCategory, eventType, state, description, entityParam,
+            new HashMap<Object, Object>(context.getContextParameters()), new Date());
+
+        if (s_eventPublisher != null) {
+            s_eventPublisher.enqueue(pending);
+            return;
+        }
+
+        // no asynchronous publisher in this context, publish right away
+        org.apache.cloudstack.framework.events.Event event = toBusEvent(pending);
+        if (event == null)
+            return;
+        try {
+            s_eventBus.publish(event);
+        } catch (EventBusException e) {
+            s_logger.warn("Failed to publish action event on the the event bus.");
+        }
+    }
+
+    /**
+     * Action event captured on the API/job thread, waiting to be turned into an event bus message.
+     */
+    static class PendingEvent {
+        final long userId;
+        final long accountId;
+        final String category;
+        final String type;
+        final Event.State state;
+        final String description;
+        final Object entityParam;
+        final Map<Object, Object> contextParameters;
+        final Date date;
+
+        PendingEvent(long userId, long accountId, String category, String type, Event.State state, String description, Object entityParam,
+            Map<Object, Object> contextParameters, Date date) {
+            this.userId = userId;
+            this.accountId = accountId;
+            this.category = category;
+            this.type = type;
+            this.state = state;
+            this.description = description;
+            this.entityParam = entityParam;
+            this.contextParameters = contextParameters;
+            this.date = date;
+        }
+    }
+
+    /**
+     * Returns whether action events are published, the setting and the event bus lookup are refreshed periodically.
+     */
+    static boolean isPublishingEnabled() {
+        long now = System.currentTimeMillis();
+        if (now - s_publishSettingCheckTime > PUBLISH_SETTING_REFRESH_MS) {
+            boolean enabled = Boolean.parseBoolean(s_configDao.getValue(Config.PublishActionEvent.key()));
+            if (enabled) {
                 try {
-                    entityUuid = getEntityUuid(entityClass, param);
-                    entityType = entityClass.getName();
-                } catch (Exception e){
-                    s_logger.debug("Caught exception while finding entityUUID, moving on");
+                    s_eventBus = ComponentContext.getComponent(EventBus.class);
+                } catch (NoSuchBeanDefinitionException nbe) {
+                    enabled = false; // no provider is configured to provide events bus
                 }
             }
+            s_publishEnabled = enabled;
+            s_publishSettingCheckTime = now;
+        }
+        return s_publishEnabled;
+    }
+
+    /**
+     * Builds the event bus message, looking up account, user, project and entity UUIDs through caches.
+     * @return null if the account or user no longer exist
+     */
+    static org.apache.cloudstack.framework.events.Event toBusEvent(PendingEvent pending) {
+        // get the entity details for which ActionEvent is generated
+        String entityType = null;
+        String entityUuid = null;
+        Class<?> entityClass = EventTypes.getEntityClassForEvent(pending.type);
+        if (entityClass != null && pending.entityParam != null) {
+            try {
+                entityUuid = getEntityUuid(entityClass, pending.entityParam);
+                entityType = entityClass.getName();
+            } catch (Exception e) {
+                s_logger.debug("Caught exception while finding entityUUID, moving on");
+            }
         }
 
         org.apache.cloudstack.framework.events.Event event =
-            new org.apache.cloudstack.framework.events.Event(ManagementService.Name, eventCategory, eventType, EventTypes.getEntityForEvent(eventType), entityUuid);
+            new org.apache.cloudstack.framework.events.Event(ManagementService.Name, pending.category, pending.type, EventTypes.getEntityForEvent(pending.type), entityUuid);
 
         Map<String, String> eventDescription = new HashMap<String, String>();
-        Project project = s_projectDao.findByProjectAccountId(accountId);
-        Account account = s_accountDao.findById(accountId);
-        User user = s_userDao.findById(userId);
+        String projectUuid = getProjectUuid(pending.accountId);
+        String accountUuid = getAccountUuid(pending.accountId);
+        String userUuid = getUserUuid(pending.userId);
         // if account has been deleted, this might be called during cleanup of resources and results in null pointer
-        if (account == null)
-            return;
-        if (user == null)
-            return;
-        if (project != null)
-            eventDescription.put("project", project.getUuid());
-        eventDescription.put("user", user.getUuid());
-        eventDescription.put("account", account.getUuid());
-        eventDescription.put("event", eventType);
-        eventDescription.put("status", state.toString());
+        if (accountUuid == null)
+            return null;
+        if (userUuid == null)
+            return null;
+        if (projectUuid != null)
+            eventDescription.put("project", projectUuid);
+        eventDescription.put("user", userUuid);
+        eventDescription.put("account", accountUuid);
+        eventDescription.put("event", pending.type);
+        eventDescription.put("status", pending.state.toString());
         eventDescription.put("entity", entityType);
         eventDescription.put("entityuuid", entityUuid);
         //Put all the first class entities that are touched during the action. For now atleast put in the vmid.
-        populateFirstClassEntities(eventDescription);
-        eventDescription.put("description", description);
+        populateFirstClassEntities(eventDescription, pending.contextParameters);
+        eventDescription.put("description", pending.description);
 
-        String eventDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z").format(new Date());
+        String eventDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z").format(pending.date);
         eventDescription.put("eventDateTime", eventDate);
 
         event.setDescription(eventDescription);
+        return event;
+    }
 
-        try {
-            s_eventBus.publish(event);
-        } catch (EventBusException e) {
-            s_logger.warn("Failed to publish action event on the the event bus.");
+    private static String getAccountUuid(long accountId) {
+        String uuid = s_uuidCache.getIfPresent("account-" + accountId);
+        if (uuid == null) {
+            Account account = s_accountDao.findById(accountId);
+            if (account == null)
+                return null;
+            uuid = account.getUuid();
+            s_uuidCache.put("account-" + accountId, uuid);
+        }
+        return uuid;
+    }
+
+    private static String getUserUuid(long userId) {
+        String uuid = s_uuidCache.getIfPresent("user-" + userId);
+        if (uuid == null) {
+            User user = s_userDao.findById(userId);
+            if (user == null)
+                return null;
+            uuid = user.getUuid();
+            s_uuidCache.put("user-" + userId, uuid);
+        }
+        return uuid;
+    }
+
+    private static String getProjectUuid(long accountId) {
+        // most accounts are not project accounts, remember that as an empty uuid
+        String uuid = s_uuidCache.getIfPresent("project-" + accountId);
+        if (uuid == null) {
+            Project project = s_projectDao.findByProjectAccountId(accountId);
+            uuid = project != null ? project.getUuid() : "";
+            s_uuidCache.put("project-" + accountId, uuid);
         }
+        return uuid.isEmpty() ? null : uuid;
     }
 
     private static String getEntityUuid(Class<?> entityType, Object entityId){
@@ -260,14 +368,12 @@ public class ActionEventUtils {
 
         if (entityId instanceof Long){
             // Its internal db id - use findById
-            final Object objVO = s_entityMgr.findById(entityType, (Long)entityId);
-            return ((Identity)objVO).getUuid();
+            return findEntityUuid(entityType, (Long)entityId);
         } else if(entityId instanceof String){
             try{
                 // In case its an async job the internal db id would be a string because of json deserialization
                 Long internalId = Long.valueOf((String) entityId);
-                final Object objVO = s_entityMgr.findById(entityType, internalId);
-                return ((Identity)objVO).getUuid();
+                return findEntityUuid(entityType, internalId);
             } catch (NumberFormatException e){
                 // It is uuid - so return it
                 return (String)entityId;
@@ -277,6 +383,17 @@ public class ActionEventUtils {
         return null;
     }
 
+    private static String findEntityUuid(Class<?> entityType, Long id) {
+        String key = entityType.getName() + "-" + id;
+        String uuid = s_uuidCache.getIfPresent(key);
+        if (uuid == null) {
+            final Object objVO = s_entityMgr.findById(entityType, id);
+            uuid = ((Identity)objVO).getUuid();
+            s_uuidCache.put(key, uuid);
+        }
+        return uuid;
+    }
+
     private static long getDomainId(long accountId) {
         AccountVO account = s_accountDao.findByIdIncludingRemoved(accountId);
         if (account == null) {
@@ -286,10 +403,7 @@ public class ActionEventUtils {
         return account.getDomainId();
     }
 
-    private static void populateFirstClassEntities(Map<String, String> eventDescription){
-
-        CallContext context = CallContext.current();
-        Map<Object, Object> contextMap = context.getContextParameters();
+    private static void populateFirstClassEntities(Map<String, String> eventDescription, Map<Object, Object> contextMap){
 
         for(Map.Entry<Object, Object> entry : contextMap.entrySet()){
             try{
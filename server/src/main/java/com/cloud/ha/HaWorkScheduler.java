@@ -0,0 +1,370 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+import com.cloud.ha.HighAvailabilityManager.Step;
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * Schedules the HA work of a management server. A dispatcher thread claims the work items that are due in
+ * batches whenever it is woken up: when work is scheduled here or on a peer, when a work item is done, when
+ * a rescheduled work item becomes due, and at the latest every time.to.sleep. Claimed work is started in
+ * priority order on a bounded pool of workers, with no more than a given number of work items running for
+ * the VMs of one host and of one cluster. Work held back by these limits stays claimed until a worker is
+ * free for it, at most as many work items as there are workers are held back.
+ */
+public abstract class HaWorkScheduler {
+    private static final Logger s_logger = Logger.getLogger(HaWorkScheduler.class);
+
+    /**
+     * System VMs first, the user VMs depend on their routers, then restarts before stops, destroys and
+     * migrations, then the work that has been due for the longest.
+     */
+    static final Comparator<HaWorkVO> PRIORITY = new Comparator<HaWorkVO>() {
+        @Override
+        public int compare(HaWorkVO w1, HaWorkVO w2) {
+            int result = Integer.compare(rank(w1.getType()), rank(w2.getType()));
+            if (result == 0) {
+                result = Integer.compare(rank(w1.getWorkType()), rank(w2.getWorkType()));
+            }
+            if (result == 0) {
+                result = Long.compare(w1.getTimeToTry(), w2.getTimeToTry());
+            }
+            return result == 0 ? Long.compare(w1.getId(), w2.getId()) : result;
+        }
+    };
+
+    private static int rank(VirtualMachine.Type type) {
+        if (type == VirtualMachine.Type.DomainRouter) {
+            return 0;
+        }
+        return type == VirtualMachine.Type.User ? 2 : 1;
+    }
+
+    private static int rank(WorkType type) {
+        switch (type) {
+            case HA:
+                return 0;
+            case Stop:
+            case CheckStop:
+            case ForceStop:
+                return 1;
+            case Destroy:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    private static class Claimed {
+        final HaWorkVO work;
+        final Long clusterId;
+
+        Claimed(HaWorkVO work, Long clusterId) {
+            this.work = work;
+            this.clusterId = clusterId;
+        }
+    }
+
+    private final int _workers;
+    private final long _timeToSleep;
+    private final HaWorkStats _stats;
+    private final ThreadPoolExecutor _executor;
+    private final Thread _dispatcher;
+
+    private final Object _lock = new Object();
+    private final List<Claimed> _pending = new ArrayList<Claimed>();
+    private final Map<Long, Integer> _runningPerHost = new HashMap<Long, Integer>();
+    private final Map<Long, Integer> _runningPerCluster = new HashMap<Long, Integer>();
+    private int _running;
+    private boolean _scheduled = true;
+    private boolean _woken;
+    private long _nextTimeToTry = Long.MAX_VALUE;
+    private volatile boolean _stopped;
+
+    /**
+     * @param workers number of work items run at the same time
+     * @param timeToSleep milliseconds between two claims when nothing wakes the dispatcher up
+     */
+    public HaWorkScheduler(int workers, long timeToSleep, HaWorkStats stats) {
+        _workers = Math.max(1, workers);
+        _timeToSleep = timeToSleep;
+        _stats = stats;
+        _executor = new ThreadPoolExecutor(_workers, _workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("HA-Worker"));
+        _dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "HA-Scheduler");
+        _dispatcher.setDaemon(true);
+    }
+
+    /**
+     * Claims up to limit work items that are due for this management server.
+     */
+    protected abstract List<HaWorkVO> claim(int limit);
+
+    /**
+     * Runs the work item and records its outcome, it is rescheduled unless its step is Done or Cancelled.
+     */
+    protected abstract void process(HaWorkVO work);
+
+    /**
+     * Hands a claimed work item that was not started back to the other management servers.
+     */
+    protected abstract void release(HaWorkVO work);
+
+    protected abstract Long getClusterId(long hostId);
+
+    /**
+     * @return most work items run at the same time for the VMs of a host, 0 for no limit
+     */
+    protected abstract int getMaxPerHost();
+
+    /**
+     * @return most work items run at the same time for the VMs of a cluster, 0 for no limit
+     */
+    protected abstract int getMaxPerCluster();
+
+    public void start() {
+        _dispatcher.start();
+    }
+
+    public void stop() {
+        _stopped = true;
+        wakeup();
+        try {
+            _dispatcher.join(_timeToSleep);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _executor.shutdown();
+
+        final List<Claimed> pending;
+        synchronized (_lock) {
+            pending = new ArrayList<Claimed>(_pending);
+            _pending.clear();
+        }
+        for (Claimed claimed : pending) {
+            try {
+                release(claimed.work);
+            } catch (Exception e) {
+                s_logger.warn("Unable to release " + claimed.work, e);
+            }
+        }
+    }
+
+    /**
+     * Has the dispatcher claim work right away, e.g. because work was scheduled.
+     */
+    public void wakeup() {
+        synchronized (_lock) {
+            _scheduled = true;
+            _woken = true;
+            _lock.notifyAll();
+        }
+    }
+
+    public int getRunningCount() {
+        synchronized (_lock) {
+            return _running;
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (_lock) {
+            return _pending.size();
+        }
+    }
+
+    private int getClaimLimit() {
+        return 2 * _workers - _running - _pending.size();
+    }
+
+    private void dispatch() {
+        s_logger.info("Starting work");
+        long lastClaim = 0;
+        boolean claimMore = false;
+        while (!_stopped) {
+            try {
+                final long now = System.currentTimeMillis();
+                int limit = 0;
+                synchronized (_lock) {
+                    if (_scheduled || claimMore || now - lastClaim >= _timeToSleep || now >= _nextTimeToTry) {
+                        limit = getClaimLimit();
+                    }
+                    if (limit > 0) {
+                        _scheduled = false;
+                        if (now >= _nextTimeToTry) {
+                            _nextTimeToTry = Long.MAX_VALUE;
+                        }
+                    }
+                }
+
+                if (limit > 0) {
+                    s_logger.trace("Checking the database for work");
+                    lastClaim = now;
+                    final List<HaWorkVO> works = claim(limit);
+                    claimMore = works.size() >= limit;
+                    if (!works.isEmpty()) {
+                        _stats.claimed(works.size());
+                        final List<Claimed> claimed = new ArrayList<Claimed>(works.size());
+                        for (HaWorkVO work : works) {
+                            claimed.add(new Claimed(work, getClusterId(work.getHostId())));
+                        }
+                        synchronized (_lock) {
+                            _pending.addAll(claimed);
+                        }
+                    }
+                }
+
+                startPending();
+                await(lastClaim, claimMore);
+            } catch (InterruptedException e) {
+                s_logger.info("Interrupted");
+                return;
+            } catch (Throwable th) {
+                s_logger.error("Caught this throwable, ", th);
+                lastClaim = System.currentTimeMillis();
+                claimMore = false;
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        s_logger.info("Time to go home!");
+    }
+
+    private void await(long lastClaim, boolean claimMore) throws InterruptedException {
+        synchronized (_lock) {
+            if (!_woken && !_stopped && !(claimMore && getClaimLimit() > 0)) {
+                final long timeout = Math.min(lastClaim + _timeToSleep, _nextTimeToTry) - System.currentTimeMillis();
+                if (timeout > 0) {
+                    _lock.wait(timeout);
+                }
+            }
+            _woken = false;
+        }
+    }
+
+    private void startPending() {
+        final int maxPerHost = getMaxPerHost();
+        final int maxPerCluster = getMaxPerCluster();
+        synchronized (_lock) {
+            if (_pending.size() > 1) {
+                Collections.sort(_pending, new Comparator<Claimed>() {
+                    @Override
+                    public int compare(Claimed c1, Claimed c2) {
+                        return PRIORITY.compare(c1.work, c2.work);
+                    }
+                });
+            }
+            for (Iterator<Claimed> it = _pending.iterator(); it.hasNext() && _running < _workers;) {
+                final Claimed claimed = it.next();
+                if (isAtLimit(_runningPerHost, claimed.work.getHostId(), maxPerHost) || isAtLimit(_runningPerCluster, claimed.clusterId, maxPerCluster)) {
+                    continue;
+                }
+                it.remove();
+                _running++;
+                increment(_runningPerHost, claimed.work.getHostId(), 1);
+                increment(_runningPerCluster, claimed.clusterId, 1);
+                _executor.execute(new WorkTask(claimed));
+            }
+            _stats.queued(_running, _pending.size());
+        }
+    }
+
+    private static boolean isAtLimit(Map<Long, Integer> running, Long id, int max) {
+        if (id == null || max <= 0) {
+            return false;
+        }
+        final Integer count = running.get(id);
+        return count != null && count >= max;
+    }
+
+    private static void increment(Map<Long, Integer> running, Long id, int delta) {
+        if (id == null) {
+            return;
+        }
+        final Integer count = running.get(id);
+        final int updated = (count == null ? 0 : count) + delta;
+        if (updated <= 0) {
+            running.remove(id);
+        } else {
+            running.put(id, updated);
+        }
+    }
+
+    private void done(Claimed claimed) {
+        final HaWorkVO work = claimed.work;
+        synchronized (_lock) {
+            _running--;
+            increment(_runningPerHost, work.getHostId(), -1);
+            increment(_runningPerCluster, claimed.clusterId, -1);
+            if (work.getStep() != Step.Done && work.getStep() != Step.Cancelled) {
+                // time to try is in the unit the work queue uses, milliseconds shifted by 10
+                _nextTimeToTry = Math.min(_nextTimeToTry, work.getTimeToTry() << 10);
+            }
+            _woken = true;
+            _lock.notifyAll();
+        }
+    }
+
+    private class WorkTask extends ManagedContextRunnable {
+        private final Claimed _claimed;
+
+        WorkTask(Claimed claimed) {
+            _claimed = claimed;
+        }
+
+        @Override
+        protected void runInContext() {
+            final HaWorkVO work = _claimed.work;
+            NDC.push("work-" + work.getId());
+            try {
+                _stats.started(System.currentTimeMillis() - (work.getTimeToTry() << 10));
+                s_logger.info("Processing work " + work);
+                process(work);
+            } catch (Throwable th) {
+                s_logger.error("Caught this throwable, ", th);
+            } finally {
+                done(_claimed);
+                NDC.pop();
+            }
+        }
+    }
+}
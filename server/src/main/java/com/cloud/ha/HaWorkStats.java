@@ -0,0 +1,138 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+/**
+ * Counts the HA work claimed and started by a management server. The dispatch delay is the time a work item
+ * waited to be started after it was due, the restart time is the time from scheduling the HA of a VM, which
+ * is when its host was found to be down, to the VM running again.
+ */
+public class HaWorkStats extends StandardMBean implements HaWorkStatsMBean {
+    private final AtomicLong _claimed = new AtomicLong();
+    private final AtomicLong _claimBatches = new AtomicLong();
+    private final AtomicLong _started = new AtomicLong();
+    private final AtomicLong _dispatchDelayMillis = new AtomicLong();
+    private final AtomicLong _maxDispatchDelayMillis = new AtomicLong();
+    private final AtomicLong _restarts = new AtomicLong();
+    private final AtomicLong _restartMillis = new AtomicLong();
+    private final AtomicLong _maxRestartMillis = new AtomicLong();
+    private final AtomicInteger _running = new AtomicInteger();
+    private final AtomicInteger _pending = new AtomicInteger();
+
+    public HaWorkStats() {
+        super(HaWorkStatsMBean.class, false);
+    }
+
+    private static void max(AtomicLong max, long millis) {
+        long current = max.get();
+        while (millis > current && !max.compareAndSet(current, millis)) {
+            current = max.get();
+        }
+    }
+
+    public void claimed(int workItems) {
+        _claimBatches.incrementAndGet();
+        _claimed.addAndGet(workItems);
+    }
+
+    public void started(long dispatchDelayMillis) {
+        final long millis = Math.max(0, dispatchDelayMillis);
+        _started.incrementAndGet();
+        _dispatchDelayMillis.addAndGet(millis);
+        max(_maxDispatchDelayMillis, millis);
+    }
+
+    public void restarted(long millis) {
+        _restarts.incrementAndGet();
+        _restartMillis.addAndGet(millis);
+        max(_maxRestartMillis, millis);
+    }
+
+    public void queued(int running, int pending) {
+        _running.set(running);
+        _pending.set(pending);
+    }
+
+    @Override
+    public long getClaimedWorkItems() {
+        return _claimed.get();
+    }
+
+    @Override
+    public long getClaimBatches() {
+        return _claimBatches.get();
+    }
+
+    @Override
+    public long getStartedWorkItems() {
+        return _started.get();
+    }
+
+    @Override
+    public long getAverageDispatchDelayMillis() {
+        long started = _started.get();
+        return started == 0 ? 0 : _dispatchDelayMillis.get() / started;
+    }
+
+    @Override
+    public long getMaxDispatchDelayMillis() {
+        return _maxDispatchDelayMillis.get();
+    }
+
+    @Override
+    public long getRestartedVms() {
+        return _restarts.get();
+    }
+
+    @Override
+    public long getAverageRestartMillis() {
+        long restarts = _restarts.get();
+        return restarts == 0 ? 0 : _restartMillis.get() / restarts;
+    }
+
+    @Override
+    public long getMaxRestartMillis() {
+        return _maxRestartMillis.get();
+    }
+
+    @Override
+    public int getRunningWorkItems() {
+        return _running.get();
+    }
+
+    @Override
+    public int getPendingWorkItems() {
+        return _pending.get();
+    }
+
+    @Override
+    public void reset() {
+        _claimed.set(0);
+        _claimBatches.set(0);
+        _started.set(0);
+        _dispatchDelayMillis.set(0);
+        _maxDispatchDelayMillis.set(0);
+        _restarts.set(0);
+        _restartMillis.set(0);
+        _maxRestartMillis.set(0);
+    }
+}
@@ -0,0 +1,44 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+/**
+ * Allows JMX access to how quickly the HA work of a management server is picked up and VMs are restarted
+ */
+public interface HaWorkStatsMBean {
+    long getClaimedWorkItems();
+
+    long getClaimBatches();
+
+    long getStartedWorkItems();
+
+    long getAverageDispatchDelayMillis();
+
+    long getMaxDispatchDelayMillis();
+
+    long getRestartedVms();
+
+    long getAverageRestartMillis();
+
+    long getMaxRestartMillis();
+
+    int getRunningWorkItems();
+
+    int getPendingWorkItems();
+
+    void reset();
+}
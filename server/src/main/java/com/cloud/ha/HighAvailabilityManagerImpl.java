@@ -24,19 +24,23 @@ import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
 import org.apache.log4j.Logger;
-import org.apache.log4j.NDC;
 import org.apache.cloudstack.engine.orchestration.service.VolumeOrchestrationService;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
-import org.apache.cloudstack.managed.context.ManagedContext;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
 import com.cloud.agent.AgentManager;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.WakeupHaWorkersCommand;
 import com.cloud.alert.AlertManager;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.cluster.ClusterManagerListener;
 import com.cloud.cluster.ManagementServerHost;
 import com.cloud.configuration.Config;
@@ -61,6 +65,7 @@ import com.cloud.host.Status;
 import com.cloud.host.dao.HostDao;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.resource.ResourceManager;
+import com.cloud.serializer.GsonHelper;
 import com.cloud.server.ManagementServer;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
@@ -72,6 +77,7 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -101,10 +107,12 @@ import com.cloud.vm.dao.VMInstanceDao;
  *         ha.retry.wait | time to wait before retrying the work item | seconds | 120 || || stop.retry.wait | time to wait
  *         before retrying the stop | seconds | 120 || * }
  **/
-public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvailabilityManager, ClusterManagerListener {
+public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvailabilityManager, ClusterManagerListener, Configurable {
 
     protected static final Logger s_logger = Logger.getLogger(HighAvailabilityManagerImpl.class);
-    WorkerThread[] _workers;
+    HaWorkScheduler _scheduler;
+    final HaWorkStats _haStats = new HaWorkStats();
+    final AtomicBoolean _peerWakeupPending = new AtomicBoolean();
     boolean _stopped;
     long _timeToSleep;
     @Inject
@@ -125,9 +133,6 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
     long _serverId;
 
-    @Inject
-    ManagedContext _managedContext;
-
     List<Investigator> investigators;
 
     public List<Investigator> getInvestigators() {
@@ -180,6 +185,8 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     ConfigurationDao _configDao;
     @Inject
     VolumeOrchestrationService volumeMgr;
+    @Inject
+    ClusterManager _clusterMgr;
 
     String _instance;
     ScheduledExecutorService _executor;
@@ -300,13 +307,37 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled " + work);
         }
-        wakeupWorkers();
+        workScheduled();
+    }
+
+    @Override
+    public void wakeupWorkers() {
+        if (_scheduler != null) {
+            _scheduler.wakeup();
+        }
     }
 
-    protected void wakeupWorkers() {
-        for (WorkerThread worker : _workers) {
-            worker.wakup();
+    /**
+     * Wakes up the workers here and, once for all the work scheduled while a broadcast is on
+     * its way, on the peer management servers.
+     */
+    protected void workScheduled() {
+        wakeupWorkers();
+        if (_executor == null || !_peerWakeupPending.compareAndSet(false, true)) {
+            return;
         }
+        _executor.execute(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                _peerWakeupPending.set(false);
+                try {
+                    final Command[] cmds = new Command[] {new WakeupHaWorkersCommand()};
+                    _clusterMgr.broadcast(0, GsonHelper.getGson().toJson(cmds));
+                } catch (Exception e) {
+                    s_logger.warn("Unable to wake up the HA workers of the peer management servers", e);
+                }
+            }
+        });
     }
 
     @Override
@@ -314,7 +345,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (vm.getHostId() != null) {
             final HaWorkVO work = new HaWorkVO(vm.getId(), vm.getType(), WorkType.Migration, Step.Scheduled, vm.getHostId(), vm.getState(), 0, vm.getUpdated());
             _haDao.persist(work);
-            wakeupWorkers();
+            workScheduled();
         }
         return true;
     }
@@ -409,7 +440,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             s_logger.info("Schedule vm for HA:  " + vm);
         }
 
-        wakeupWorkers();
+        workScheduled();
 
     }
 
@@ -598,6 +629,9 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             VMInstanceVO started = _instanceDao.findById(vm.getId());
             if (started != null && started.getState() == VirtualMachine.State.Running) {
                 s_logger.info("VM is now restarted: " + vmId + " on " + started.getHostId());
+                if (work.getCreated() != null) {
+                    _haStats.restarted(System.currentTimeMillis() - work.getCreated().getTime());
+                }
                 return null;
             }
 
@@ -656,7 +690,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled " + work.toString());
         }
-        wakeupWorkers();
+        workScheduled();
     }
 
     @Override
@@ -836,10 +870,6 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
         String value = params.get(Config.HAWorkers.key());
         final int count = NumbersUtil.parseInt(value, 1);
-        _workers = new WorkerThread[count];
-        for (int i = 0; i < _workers.length; i++) {
-            _workers[i] = new WorkerThread("HA-Worker-" + i);
-        }
 
         value = params.get("force.ha");
         _forceHA = Boolean.parseBoolean(value);
@@ -881,6 +911,41 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
         _executor = Executors.newScheduledThreadPool(count, new NamedThreadFactory("HA"));
 
+        _scheduler = new HaWorkScheduler(count, _timeToSleep, _haStats) {
+            @Override
+            protected List<HaWorkVO> claim(int limit) {
+                return _haDao.take(_serverId, limit);
+            }
+
+            @Override
+            protected void process(HaWorkVO work) {
+                processWork(work);
+            }
+
+            @Override
+            protected void release(HaWorkVO work) {
+                work.setServerId(null);
+                work.setDateTaken(null);
+                _haDao.update(work.getId(), work);
+            }
+
+            @Override
+            protected Long getClusterId(long hostId) {
+                final HostVO host = _hostDao.findByIdIncludingRemoved(hostId);
+                return host == null ? null : host.getClusterId();
+            }
+
+            @Override
+            protected int getMaxPerHost() {
+                return HaWorkersPerHost.value();
+            }
+
+            @Override
+            protected int getMaxPerCluster() {
+                return HaWorkersPerCluster.value();
+            }
+        };
+
         return true;
     }
 
@@ -888,10 +953,14 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     public boolean start() {
         _stopped = false;
 
-        for (final WorkerThread thread : _workers) {
-            thread.start();
+        try {
+            JmxUtil.registerMBean("HighAvailabilityManager", "HaWorkStats", _haStats);
+        } catch (Exception e) {
+            s_logger.error("Failed to register MBean", e);
         }
 
+        _scheduler.start();
+
         _executor.scheduleAtFixedRate(new CleanupTask(), _timeBetweenCleanups, _timeBetweenCleanups, TimeUnit.SECONDS);
 
         return true;
@@ -901,7 +970,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     public boolean stop() {
         _stopped = true;
 
-        wakeupWorkers();
+        _scheduler.stop();
 
         _executor.shutdown();
 
@@ -921,59 +990,6 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         }
     }
 
-    protected class WorkerThread extends Thread {
-        public WorkerThread(String name) {
-            super(name);
-        }
-
-        @Override
-        public void run() {
-            s_logger.info("Starting work");
-            while (!_stopped) {
-                _managedContext.runWithContext(new Runnable() {
-                    @Override
-                    public void run() {
-                        runWithContext();
-                    }
-                });
-            }
-            s_logger.info("Time to go home!");
-        }
-
-        private void runWithContext() {
-            HaWorkVO work = null;
-            try {
-                s_logger.trace("Checking the database for work");
-                work = _haDao.take(_serverId);
-                if (work == null) {
-                    try {
-                        synchronized (this) {
-                            wait(_timeToSleep);
-                        }
-                        return;
-                    } catch (final InterruptedException e) {
-                        s_logger.info("Interrupted");
-                        return;
-                    }
-                }
-
-                NDC.push("work-" + work.getId());
-                s_logger.info("Processing work " + work);
-                processWork(work);
-            } catch (final Throwable th) {
-                s_logger.error("Caught this throwable, ", th);
-            } finally {
-                if (work != null) {
-                    NDC.pop();
-                }
-            }
-        }
-
-        public synchronized void wakup() {
-            notifyAll();
-        }
-    }
-
     @Override
     public void onManagementNodeJoined(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
     }
@@ -983,6 +999,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         for (ManagementServerHost node : nodeList) {
             _haDao.releaseWorkItems(node.getMsid());
         }
+        wakeupWorkers();
     }
 
     @Override
@@ -1004,4 +1021,14 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         List<HaWorkVO> haWorks = _haDao.listPendingHaWorkForVm(vmId);
         return haWorks.size() > 0;
     }
+
+    @Override
+    public String getConfigComponentName() {
+        return HighAvailabilityManager.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {HaWorkersPerHost, HaWorkersPerCluster};
+    }
 }
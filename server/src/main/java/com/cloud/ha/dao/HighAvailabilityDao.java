@@ -32,6 +32,15 @@ public interface HighAvailabilityDao extends GenericDao<HaWorkVO, Long> {
      */
     HaWorkVO take(long serverId);
 
+    /**
+     * Takes the available HA work items that have been due for the longest, in one transaction.
+     *
+     * @param serverId server that is taking them.
+     * @param limit most work items to take.
+     * @return the work items taken, empty if none.
+     */
+    List<HaWorkVO> take(long serverId, int limit);
+
     /**
      * Finds all the work items related to this instance.
      *
@@ -176,6 +176,33 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
         }
     }
 
+    @Override
+    public List<HaWorkVO> take(final long serverId, final int limit) {
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            final SearchCriteria<HaWorkVO> sc = TBASearch.create();
+            sc.setParameters("time", System.currentTimeMillis() >> 10);
+            sc.setParameters("step", Step.Done, Step.Cancelled);
+
+            final Filter filter = new Filter(HaWorkVO.class, "timeToTry", true, 0l, (long)limit);
+
+            txn.start();
+            final List<HaWorkVO> vos = lockRows(sc, filter, true);
+            final Date taken = new Date();
+            for (final HaWorkVO work : vos) {
+                work.setServerId(serverId);
+                work.setDateTaken(taken);
+                update(work.getId(), work);
+            }
+            txn.commit();
+
+            return vos;
+
+        } catch (final Throwable e) {
+            throw new CloudRuntimeException("Unable to execute take", e);
+        }
+    }
+
     @Override
     public List<HaWorkVO> findPreviousHA(final long instanceId) {
         final SearchCriteria<HaWorkVO> sc = PreviousInstanceSearch.create();
@@ -0,0 +1,249 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.apache.cloudstack.lb.dao.ApplicationLoadBalancerRuleDao;
+import org.apache.log4j.Logger;
+
+import com.cloud.network.dao.GuestIpReservationDao;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.net.Ip;
+import com.cloud.utils.net.Ip4AddressBitmap;
+import com.cloud.utils.net.NetUtils;
+import com.cloud.vm.dao.NicDao;
+import com.cloud.vm.dao.NicSecondaryIpDao;
+
+/**
+ * Hands out guest addresses from a per network index of the used addresses, instead of building the
+ * set of free addresses of the cidr on every allocation.
+ *
+ * The index is built from the nics, secondary ips and internal load balancer ips of the network and
+ * reused for guest.ip.index.cache.ttl seconds. Addresses handed out by this management server are
+ * marked in it right away. Since other management servers allocate from the same network, an address
+ * picked from the index is checked against the nic tables and reserved in op_guest_ip_reservation in
+ * the caller's transaction before it is returned.
+ */
+public class GuestIpAllocator {
+    private static final Logger s_logger = Logger.getLogger(GuestIpAllocator.class);
+
+    // only keeps the table small, a reservation whose address was released is taken over right away
+    private static final int RESERVATION_EXPIRY_SECONDS = 600;
+
+    // the most addresses returned by getAvailableIps, as NetUtils.getAllIpsFromCidr did
+    private static final int MAX_AVAILABLE_IPS = 255;
+
+    @Inject
+    NicDao _nicDao;
+    @Inject
+    NicSecondaryIpDao _nicSecondaryIpDao;
+    @Inject
+    ApplicationLoadBalancerRuleDao _appLbRuleDao;
+    @Inject
+    GuestIpReservationDao _reservationDao;
+
+    private final ConcurrentHashMap<Long, NetworkIndex> _indexes = new ConcurrentHashMap<Long, NetworkIndex>();
+    private final Random _rand = new Random(System.currentTimeMillis());
+
+    static class NetworkIndex {
+        private final String _cidr;
+        private final Ip4AddressBitmap _bitmap;
+        private final long _built;
+
+        NetworkIndex(String cidr, Ip4AddressBitmap bitmap, long built) {
+            _cidr = cidr;
+            _bitmap = bitmap;
+            _built = built;
+        }
+
+        synchronized boolean isFree(long ip) {
+            return _bitmap.isFree(ip);
+        }
+
+        synchronized boolean markUsed(long ip) {
+            return _bitmap.markUsed(ip);
+        }
+
+        synchronized int getFreeCount() {
+            return _bitmap.getFreeCount();
+        }
+
+        synchronized Set<Long> freeIps(int max) {
+            return _bitmap.freeIps(max);
+        }
+
+        /**
+         * Picks a random free address and marks it used, -1 if there is none
+         */
+        synchronized long take(Random random) {
+            long ip = _bitmap.randomFree(random);
+            if (ip != -1) {
+                _bitmap.markUsed(ip);
+            }
+            return ip;
+        }
+    }
+
+    /**
+     * Picks a free address in the network, or takes the requested one if it is free.
+     *
+     * @return the address, or null if the network has no free address or the requested one is in use
+     */
+    public String allocate(final Network network, final String requestedIp) {
+        if (network.getCidr() == null) {
+            return null;
+        }
+
+        if (requestedIp != null) {
+            return allocateRequested(network, requestedIp);
+        }
+
+        String ip = allocateFrom(network, getIndex(network));
+        if (ip == null) {
+            // addresses released since the index was built are only seen after a rebuild
+            ip = allocateFrom(network, buildIndex(network));
+        }
+        return ip;
+    }
+
+    public boolean hasFreeIp(final Network network) {
+        if (network.getCidr() == null) {
+            return false;
+        }
+        return getIndex(network).getFreeCount() > 0 || buildIndex(network).getFreeCount() > 0;
+    }
+
+    /**
+     * Lists up to 255 free addresses of the network, in the way NetworkModel.getAvailableIps always did.
+     *
+     * @return null if the requested address is in use
+     */
+    public Set<Long> getAvailableIps(final Network network, final String requestedIp) {
+        if (network.getCidr() == null) {
+            return Collections.emptySet();
+        }
+
+        NetworkIndex index = getIndex(network);
+        if (requestedIp != null && isUsed(index, NetUtils.ip2Long(requestedIp))) {
+            index = buildIndex(network);
+            if (isUsed(index, NetUtils.ip2Long(requestedIp))) {
+                s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
+                return null;
+            }
+        }
+        return index.freeIps(MAX_AVAILABLE_IPS);
+    }
+
+    private String allocateRequested(final Network network, final String requestedIp) {
+        final long ip = NetUtils.ip2Long(requestedIp);
+        NetworkIndex index = getIndex(network);
+        if (isUsed(index, ip)) {
+            index = buildIndex(network);
+        }
+        if (isUsed(index, ip) || isUsedInDb(network.getId(), requestedIp)) {
+            s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
+            return null;
+        }
+
+        index.markUsed(ip);
+        // a reservation left by an allocation that has since been released does not block the requested address,
+        // the reservation only keeps random allocations on other management servers away from it
+        _reservationDao.reserve(network.getId(), requestedIp);
+        return requestedIp;
+    }
+
+    private String allocateFrom(final Network network, final NetworkIndex index) {
+        for (long ip = index.take(_rand); ip != -1; ip = index.take(_rand)) {
+            final String address = NetUtils.long2Ip(ip);
+            if (isUsedInDb(network.getId(), address)) {
+                // taken by another management server after the index was built
+                continue;
+            }
+            if (_reservationDao.reserve(network.getId(), address)) {
+                return address;
+            }
+            // reserving waits for a concurrent allocation of the address to commit, so a reservation
+            // whose address is still unused is left over from a nic that has been released since
+            if (!isUsedInDb(network.getId(), address) && !isInternalLbIp(network.getId(), address) && _reservationDao.takeOver(network.getId(), address)) {
+                return address;
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Ip address " + address + " in network " + network + " is reserved by another allocation, trying another one");
+            }
+        }
+        return null;
+    }
+
+    private static boolean isUsed(final NetworkIndex index, final long ip) {
+        // addresses outside the host range are left to the cidr checks of the caller
+        return index._bitmap.contains(ip) && !index.isFree(ip);
+    }
+
+    private boolean isUsedInDb(final long networkId, final String address) {
+        return _nicDao.findByIp4AddressAndNetworkId(address, networkId) != null || _nicSecondaryIpDao.findByIp4AddressAndNetworkId(address, networkId) != null;
+    }
+
+    private boolean isInternalLbIp(final long networkId, final String address) {
+        return _appLbRuleDao.countBySourceIp(new Ip(address), networkId) > 0;
+    }
+
+    private NetworkIndex getIndex(final Network network) {
+        final NetworkIndex index = _indexes.get(network.getId());
+        final long ttl = IpAddressManager.GuestIpIndexCacheTtl.value() * 1000L;
+        if (index != null && index._cidr.equals(network.getCidr()) && System.currentTimeMillis() - index._built < ttl) {
+            return index;
+        }
+        return buildIndex(network);
+    }
+
+    private NetworkIndex buildIndex(final Network network) {
+        final long networkId = network.getId();
+        final long now = System.currentTimeMillis();
+        _reservationDao.expire(networkId, new Date(DateUtil.currentGMTTime().getTime() - RESERVATION_EXPIRY_SECONDS * 1000L));
+
+        final Ip4AddressBitmap bitmap = new Ip4AddressBitmap(network.getCidr());
+        if (network.getGateway() != null) {
+            bitmap.markUsed(NetUtils.ip2Long(network.getGateway()));
+        }
+        markUsed(bitmap, _nicDao.listIpAddressInNetwork(networkId));
+        markUsed(bitmap, _nicSecondaryIpDao.listSecondaryIpAddressInNetwork(networkId));
+        markUsed(bitmap, _appLbRuleDao.listLbIpsBySourceIpNetworkId(networkId));
+
+        final NetworkIndex index = new NetworkIndex(network.getCidr(), bitmap, now);
+        _indexes.put(networkId, index);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Indexed guest addresses of network " + network + ", " + bitmap.getFreeCount() + " of " + bitmap.getCapacity() + " free");
+        }
+        return index;
+    }
+
+    private static void markUsed(final Ip4AddressBitmap bitmap, final List<String> ips) {
+        for (final String ip : ips) {
+            if (ip != null) {
+                bitmap.markUsed(NetUtils.ip2Long(ip));
+            }
+        }
+    }
+}
@@ -18,12 +18,12 @@ package com.cloud.network;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 
@@ -288,6 +288,10 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
     DataCenterIpAddressDao _privateIPAddressDao;
     @Inject
     HostPodDao _hpDao;
+    @Inject
+    GuestIpAllocator _guestIpAllocator;
+    @Inject
+    PublicIpLeasePool _publicIpLeasePool;
 
     SearchBuilder<IPAddressVO> AssignIpAddressSearch;
     SearchBuilder<IPAddressVO> AssignIpAddressFromPodVlanSearch;
@@ -727,10 +731,13 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
                             dedicatedVlanDbIds.add(map.getVlanDbId());
                     }
                 }
+                List<Long> leasableVlanDbIds = new ArrayList<Long>();
                 List<VlanVO> nonDedicatedVlans = _vlanDao.listZoneWideNonDedicatedVlans(dcId);
                 for (VlanVO nonDedicatedVlan : nonDedicatedVlans) {
                     if (vlanDbIds == null || vlanDbIds.contains(nonDedicatedVlan.getId()))
                         nonDedicatedVlanDbIds.add(nonDedicatedVlan.getId());
+                    if (nonDedicatedVlan.getVlanType() == VlanType.VirtualNetwork)
+                        leasableVlanDbIds.add(nonDedicatedVlan.getId());
                 }
                 if (dedicatedVlanDbIds != null && !dedicatedVlanDbIds.isEmpty()) {
                     fetchFromDedicatedRange = true;
@@ -773,7 +780,17 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
 
                 filter.addOrderBy(IPAddressVO.class,"vlanId", true);
 
-                List<IPAddressVO> addrs = _ipAddressDao.search(sc, filter, false);
+                List<IPAddressVO> addrs = null;
+                // zone wide allocations from the system pool take an address leased to this management server
+                if (!fetchFromDedicatedRange && podId == null && vlanDbIds == null && requestedIp == null && vlanUse == VlanType.VirtualNetwork) {
+                    IPAddressVO leased = takeLeasedPublicIp(dcId, forSystemVms, leasableVlanDbIds);
+                    if (leased != null) {
+                        addrs = Collections.singletonList(leased);
+                    }
+                }
+                if (addrs == null) {
+                    addrs = _ipAddressDao.search(sc, filter, false);
+                }
 
                 // If all the dedicated IPs of the owner are in use fetch an IP from the system pool
                 if (addrs.size() == 0 && fetchFromDedicatedRange) {
@@ -823,6 +840,7 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
                     addr.setAllocatedInDomainId(owner.getDomainId());
                     addr.setAllocatedToAccountId(owner.getId());
                     addr.setSystem(isSystem);
+                    addr.setLeaseManagementServerId(null);
 
                     if (displayIp != null) {
                         addr.setDisplay(displayIp);
@@ -870,6 +888,21 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
         return PublicIp.createFromAddrAndVlan(addr, _vlanDao.findById(addr.getVlanId()));
     }
 
+    /**
+     * Locks the next free address leased to this management server, skipping the ones taken since they were leased.
+     *
+     * @return the locked address, or null if there is no leased address left
+     */
+    private IPAddressVO takeLeasedPublicIp(final long dcId, final boolean forSystemVms, final List<Long> vlanDbIds) {
+        for (Long id = _publicIpLeasePool.next(dcId, forSystemVms, vlanDbIds); id != null; id = _publicIpLeasePool.next(dcId, forSystemVms, vlanDbIds)) {
+            final IPAddressVO addr = _ipAddressDao.lockRow(id, true);
+            if (addr != null && addr.getState() == IpAddress.State.Free && addr.getAllocatedTime() == null) {
+                return addr;
+            }
+        }
+        return null;
+    }
+
     @DB
     @Override
     public void markPublicIpAsAllocated(final IPAddressVO addr) {
@@ -1811,19 +1844,10 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
             return null;
         }
 
-        Set<Long> availableIps = _networkModel.getAvailableIps(network, requestedIp);
-
-        if (availableIps == null || availableIps.isEmpty()) {
-            s_logger.debug("There are no free ips in the  network " + network);
-            return null;
-        }
-
-        Long[] array = availableIps.toArray(new Long[availableIps.size()]);
-
-        if (requestedIp != null) {
+        if (requestedIp != null && network.getCidr() != null) {
             // check that requested ip has the same cidr
             String[] cidr = network.getCidr().split("/");
-            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, NetUtils.long2Ip(array[0]), Integer.parseInt(cidr[1]));
+            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, cidr[0], Integer.parseInt(cidr[1]));
             if (!isSameCidr) {
                 s_logger.warn("Requested ip address " + requestedIp + " doesn't belong to the network " + network + " cidr");
                 return null;
@@ -1831,14 +1855,15 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
                 s_logger.warn("Requested ip address " + requestedIp + " is equal to the to the network/broadcast ip of the network" + network);
                 return null;
             }
-            return requestedIp;
         }
 
-        return NetUtils.long2Ip(array[_rand.nextInt(array.length)]);
+        String ip = _guestIpAllocator.allocate(network, requestedIp);
+        if (ip == null && requestedIp == null) {
+            s_logger.debug("There are no free ips in the  network " + network);
+        }
+        return ip;
     }
 
-    Random _rand = new Random(System.currentTimeMillis());
-
     /**
      * Get the list of public IPs that need to be applied for a static NAT enable/disable operation.
      * Manipulating only these ips prevents concurrency issues when disabling static nat at the same time.
@@ -2176,6 +2201,7 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {UseSystemPublicIps, RulesContinueOnError, SystemVmPublicIpReservationModeStrictness};
+        return new ConfigKey<?>[] {UseSystemPublicIps, RulesContinueOnError, SystemVmPublicIpReservationModeStrictness, GuestIpIndexCacheTtl,
+                PublicIpLeaseBlockSize};
     }
 }
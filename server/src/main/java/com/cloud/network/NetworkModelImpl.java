@@ -22,14 +22,12 @@ import java.security.InvalidParameterException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -199,6 +197,8 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel, Confi
     @Inject
     ApplicationLoadBalancerRuleDao _appLbRuleDao;
     @Inject
+    GuestIpAllocator _guestIpAllocator;
+    @Inject
     private ProjectAccountDao _projectAccountDao;
     @Inject
     NetworkOfferingDetailsDao _ntwkOffDetailsDao;
@@ -599,7 +599,7 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel, Confi
                 s_logger.debug("Network - " + network.getId() +  " has NULL CIDR.");
                 return false;
             }
-            hasFreeIps = (getAvailableIps(network, null)).size() > 0;
+            hasFreeIps = _guestIpAllocator.hasFreeIp(network);
         }
 
         return hasFreeIps;
@@ -1834,29 +1834,7 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel, Confi
 
     @Override
     public Set<Long> getAvailableIps(Network network, String requestedIp) {
-        if (network.getCidr() == null) {
-            return Collections.emptySet();
-        }
-        String[] cidr = network.getCidr().split("/");
-        List<String> ips = getUsedIpsInNetwork(network);
-        Set<Long> usedIps = new TreeSet<Long>();
-
-        for (String ip : ips) {
-            if (requestedIp != null && requestedIp.equals(ip)) {
-                s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
-                return null;
-            }
-
-            usedIps.add(NetUtils.ip2Long(ip));
-        }
-
-        Set<Long> allPossibleIps = NetUtils.getAllIpsFromCidr(cidr[0], Integer.parseInt(cidr[1]), usedIps);
-
-        String gateway = network.getGateway();
-        if ((gateway != null) && (allPossibleIps.contains(NetUtils.ip2Long(gateway))))
-            allPossibleIps.remove(NetUtils.ip2Long(gateway));
-
-        return allPossibleIps;
+        return _guestIpAllocator.getAvailableIps(network, requestedIp);
     }
 
     @Override
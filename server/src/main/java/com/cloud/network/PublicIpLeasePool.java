@@ -0,0 +1,297 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.cloudstack.utils.identity.ManagementServerNode;
+import org.apache.log4j.Logger;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ClusterManagerListener;
+import com.cloud.cluster.ManagementServerHost;
+import com.cloud.network.dao.IPAddressDao;
+import com.cloud.network.dao.IPAddressVO;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Free public ip addresses leased to this management server, so that concurrent allocations do not all
+ * lock the same first free rows of user_ip_address.
+ *
+ * Addresses are leased in blocks of public.ip.lease.block.size with a single update that sets
+ * lease_mgmt_server_id, and the block is refilled in the background once half of it has been handed
+ * out. A leased address is still locked and checked to be free by the allocation, it may have been
+ * taken by an allocation that does not go through the leases, e.g. for a requested address.
+ * Leases are given back when the management server stops, and by the other management servers when
+ * it leaves the cluster.
+ */
+public class PublicIpLeasePool extends ManagerBase implements ClusterManagerListener {
+    private static final Logger s_logger = Logger.getLogger(PublicIpLeasePool.class);
+
+    // an address handed out is not handed out again for this long, unless its allocation went through
+    private static final long HANDED_OUT_EXPIRY_MS = 60000;
+
+    @Inject
+    IPAddressDao _ipAddressDao;
+    @Inject
+    ClusterManager _clusterMgr;
+
+    long _msId;
+    private ExecutorService _refillExecutor;
+    private final ConcurrentHashMap<String, Pool> _pools = new ConcurrentHashMap<String, Pool>();
+
+    static class Pool {
+        private final long _dcId;
+        private final boolean _forSystemVms;
+        private final Deque<IPAddressVO> _leases = new ArrayDeque<IPAddressVO>();
+        private final Set<Long> _queued = new HashSet<Long>();
+        private final Map<Long, Long> _handedOut = new HashMap<Long, Long>();
+        private List<Long> _vlanDbIds;
+        private boolean _refillScheduled;
+
+        Pool(long dcId, boolean forSystemVms) {
+            _dcId = dcId;
+            _forSystemVms = forSystemVms;
+        }
+    }
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        _msId = ManagementServerNode.getManagementServerId();
+        _refillExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("PublicIpLeaseRefill"));
+        _clusterMgr.registerListener(this);
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        // leases left behind by a previous run of this management server
+        int released = _ipAddressDao.releaseLeases(_msId);
+        if (released > 0) {
+            s_logger.info("Released " + released + " public ip address leases left by a previous run");
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        _refillExecutor.shutdownNow();
+        _pools.clear();
+        _ipAddressDao.releaseLeases(_msId);
+        return true;
+    }
+
+    /**
+     * Hands out a free address leased to this management server, leasing a new block when none is left.
+     *
+     * @param vlanDbIds the zone wide, non dedicated, virtual network vlans to allocate from
+     * @return the id of the address, or null when leasing is disabled or no free address could be leased
+     */
+    public Long next(final long dcId, final boolean forSystemVms, final List<Long> vlanDbIds) {
+        final int blockSize = IpAddressManager.PublicIpLeaseBlockSize.value();
+        if (blockSize <= 0 || vlanDbIds.isEmpty()) {
+            return null;
+        }
+
+        final Pool pool = getPool(dcId, forSystemVms);
+        final List<Long> stale = new ArrayList<Long>();
+        Long id = null;
+        for (int attempt = 0; attempt < 2 && id == null; attempt++) {
+            if (attempt > 0) {
+                refill(pool, blockSize, true);
+            }
+            synchronized (pool) {
+                pool._vlanDbIds = vlanDbIds;
+                id = poll(pool, vlanDbIds, stale);
+                if (id != null && pool._leases.size() < (blockSize + 1) / 2 && !pool._refillScheduled) {
+                    pool._refillScheduled = true;
+                    refill(pool, blockSize, false);
+                }
+            }
+            releaseStale(stale);
+        }
+        return id;
+    }
+
+    private void releaseStale(final List<Long> stale) {
+        if (!stale.isEmpty()) {
+            // leased before their vlan was dedicated or removed
+            _ipAddressDao.releaseLeases(_msId, stale);
+            stale.clear();
+        }
+    }
+
+    private Long poll(final Pool pool, final List<Long> vlanDbIds, final List<Long> stale) {
+        while (!pool._leases.isEmpty()) {
+            final IPAddressVO lease = pool._leases.poll();
+            pool._queued.remove(lease.getId());
+            if (!vlanDbIds.contains(lease.getVlanId())) {
+                stale.add(lease.getId());
+                continue;
+            }
+            pool._handedOut.put(lease.getId(), System.currentTimeMillis());
+            return lease.getId();
+        }
+        return null;
+    }
+
+    private Pool getPool(final long dcId, final boolean forSystemVms) {
+        final String key = dcId + "-" + forSystemVms;
+        Pool pool = _pools.get(key);
+        if (pool == null) {
+            final Pool created = new Pool(dcId, forSystemVms);
+            pool = _pools.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Leases a new block on the refill thread, so that the leases are committed right away whatever
+     * transaction the caller is in.
+     */
+    private void refill(final Pool pool, final int blockSize, final boolean wait) {
+        final Future<?> future;
+        try {
+            future = _refillExecutor.submit(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    try {
+                        leaseBlock(pool, blockSize);
+                    } catch (final RuntimeException e) {
+                        s_logger.warn("Unable to lease public ip addresses in zone " + pool._dcId, e);
+                    } finally {
+                        synchronized (pool) {
+                            pool._refillScheduled = false;
+                        }
+                    }
+                }
+            });
+        } catch (final RuntimeException e) {
+            // stopping
+            synchronized (pool) {
+                pool._refillScheduled = false;
+            }
+            return;
+        }
+
+        if (wait) {
+            try {
+                future.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final ExecutionException e) {
+                s_logger.warn("Unable to lease public ip addresses in zone " + pool._dcId, e.getCause());
+            }
+        }
+    }
+
+    void leaseBlock(final Pool pool, final int blockSize) {
+        final List<Long> vlanDbIds;
+        final int count;
+        synchronized (pool) {
+            vlanDbIds = pool._vlanDbIds;
+            count = blockSize - pool._leases.size();
+        }
+        if (count <= 0) {
+            return;
+        }
+
+        final int leased = _ipAddressDao.leaseFreeIps(_msId, pool._dcId, vlanDbIds, pool._forSystemVms, count);
+        final List<IPAddressVO> free = _ipAddressDao.listLeasedFreeIps(_msId, pool._dcId, pool._forSystemVms);
+
+        final long now = System.currentTimeMillis();
+        final Set<Long> freeIds = new HashSet<Long>();
+        final List<Long> stale = new ArrayList<Long>();
+        int added = 0;
+        synchronized (pool) {
+            for (final IPAddressVO ip : free) {
+                freeIds.add(ip.getId());
+                if (!vlanDbIds.contains(ip.getVlanId())) {
+                    stale.add(ip.getId());
+                    continue;
+                }
+                if (pool._queued.contains(ip.getId())) {
+                    continue;
+                }
+                final Long handedOut = pool._handedOut.get(ip.getId());
+                if (handedOut != null && now - handedOut < HANDED_OUT_EXPIRY_MS) {
+                    // its allocation is not committed yet
+                    continue;
+                }
+                pool._handedOut.remove(ip.getId());
+                pool._leases.add(ip);
+                pool._queued.add(ip.getId());
+                added++;
+            }
+            // the ones no longer free have been allocated
+            for (final Iterator<Long> it = pool._handedOut.keySet().iterator(); it.hasNext();) {
+                if (!freeIds.contains(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+        releaseStale(stale);
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Leased " + leased + " public ip addresses in zone " + pool._dcId + ", " + added + " added to the pool");
+        }
+    }
+
+    @Override
+    public void onManagementNodeJoined(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+    }
+
+    @Override
+    public void onManagementNodeLeft(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+        for (ManagementServerHost node : nodeList) {
+            if (node.getMsid() == _msId) {
+                continue;
+            }
+            int released = _ipAddressDao.releaseLeases(node.getMsid());
+            if (released > 0) {
+                s_logger.info("Released " + released + " public ip address leases of management server " + node.getMsid());
+            }
+        }
+    }
+
+    @Override
+    public void onManagementNodeIsolated() {
+        // the other management servers release our leases once they see us leave
+        _pools.clear();
+    }
+}
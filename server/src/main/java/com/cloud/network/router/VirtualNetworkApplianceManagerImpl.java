@@ -38,6 +38,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -84,6 +85,7 @@ import com.cloud.agent.api.NetworkUsageAnswer;
 import com.cloud.agent.api.NetworkUsageCommand;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.check.CheckSshCommand;
+import com.cloud.agent.api.routing.AggregationControlAnswer;
 import com.cloud.agent.api.routing.AggregationControlCommand;
 import com.cloud.agent.api.routing.AggregationControlCommand.Action;
 import com.cloud.agent.api.routing.GetRouterAlertsCommand;
@@ -333,6 +335,8 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
     private boolean _disableRpFilter = false;
     private int _routerExtraPublicNics = 2;
     private int _usageAggregationRange = 1440;
+    private final AtomicLong _configSyncCommandsSent = new AtomicLong();
+    private final AtomicLong _configSyncCommandsSkipped = new AtomicLong();
     private String _usageTimeZone = "GMT";
     private final long mgmtSrvrId = MacAddress.getMacAddress().toLong();
     private static final int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 5; // 5 seconds
@@ -1658,6 +1662,7 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
             throw new CloudRuntimeException("Cannot find related provider of virtual router provider: " + vrProvider.getType().toString());
         }
 
+        // a router that just booted has none of its rules and addresses applied, always send the full config
         final List<Long> routerGuestNtwkIds = _routerDao.getRouterNetworks(router.getId());
         for (final Long guestNetworkId : routerGuestNtwkIds) {
             final AggregationControlCommand startCmd = new AggregationControlCommand(Action.Start, router.getInstanceName(), controlNic.getIPv4Address(), _routerControlHelper.getRouterIpInNetwork(
@@ -2052,6 +2057,8 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
             }
         }
 
+        recordConfigSync(router, cmds);
+
         // at this point, all the router command are successful.
         boolean result = true;
         // Get guest networks info
@@ -2594,7 +2601,7 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] { UseExternalDnsServers, routerVersionCheckEnabled, SetServiceMonitor, RouterAlertsCheckInterval };
+        return new ConfigKey<?>[] { UseExternalDnsServers, routerVersionCheckEnabled, SetServiceMonitor, RouterAlertsCheckInterval, RouterConfigDifferentialSync };
     }
 
     @Override
@@ -2641,6 +2648,34 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
         return false;
     }
 
+    /**
+     * Accounts the commands a config sync sent to the router and the ones it skipped as already applied.
+     */
+    protected void recordConfigSync(final VirtualRouter router, final Commands cmds) {
+        if (cmds.getAnswers() == null) {
+            return;
+        }
+        for (final Answer answer : cmds.getAnswers()) {
+            if (answer instanceof AggregationControlAnswer) {
+                final AggregationControlAnswer syncAnswer = (AggregationControlAnswer)answer;
+                final long sent = _configSyncCommandsSent.addAndGet(syncAnswer.getSentCommands());
+                final long skipped = _configSyncCommandsSkipped.addAndGet(syncAnswer.getSkippedCommands());
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Config sync of " + router.getInstanceName() + " sent " + syncAnswer.getSentCommands() + " commands and skipped " + syncAnswer.getSkippedCommands()
+                            + ", in total " + sent + " sent and " + skipped + " skipped");
+                }
+            }
+        }
+    }
+
+    public long getConfigSyncCommandsSent() {
+        return _configSyncCommandsSent.get();
+    }
+
+    public long getConfigSyncCommandsSkipped() {
+        return _configSyncCommandsSkipped.get();
+    }
+
     protected boolean aggregationExecution(final AggregationControlCommand.Action action, final Network network, final List<DomainRouterVO> routers)
             throws AgentUnavailableException, ResourceUnavailableException {
 
@@ -2658,11 +2693,13 @@ Configurable, StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualM
                 continue;
             }
 
-            final AggregationControlCommand cmd = new AggregationControlCommand(action, router.getInstanceName(), routerControlIp, routerIpInNetwork);
+            final AggregationControlCommand cmd = new AggregationControlCommand(action, router.getInstanceName(), routerControlIp, routerIpInNetwork,
+                    RouterConfigDifferentialSync.valueIn(router.getDataCenterId()));
             final Commands cmds = new Commands(cmd);
             if (!_nwHelper.sendCommandsToRouter(router, cmds)) {
                 return false;
             }
+            recordConfigSync(router, cmds);
         }
         if (errors == routers.size()) {
             s_logger.error("aggregationExecution() on " + getClass().getName() + " failed! Network is not configured in any router.");
@@ -29,6 +29,7 @@ import com.cloud.agent.Listener;
 import com.cloud.agent.api.AgentControlAnswer;
 import com.cloud.agent.api.AgentControlCommand;
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.BatchSecurityGroupRulesAnswer;
 import com.cloud.agent.api.CleanupNetworkRulesCmd;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
@@ -36,6 +37,7 @@ import com.cloud.agent.api.SecurityGroupRuleAnswer;
 import com.cloud.agent.api.SecurityGroupRuleAnswer.FailureReason;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.StartupRoutingCommand;
+import com.cloud.agent.api.UnsupportedAnswer;
 import com.cloud.agent.manager.Commands;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.host.Host;
@@ -60,6 +62,7 @@ public class SecurityGroupListener implements Listener {
     Map<Long, Integer> _vmFailureCounts = new ConcurrentHashMap<Long, Integer>();
 
     private SecurityGroupWorkTracker _workTracker;
+    private SecurityGroupRulesetDelivery _rulesetDelivery;
 
     public SecurityGroupListener(SecurityGroupManagerImpl securityGroupManager, AgentManager agentMgr, SecurityGroupWorkDao workDao) {
         super();
@@ -84,31 +87,40 @@ public class SecurityGroupListener implements Listener {
 
         for (Answer ans : answers) {
             if (ans instanceof SecurityGroupRuleAnswer) {
-                SecurityGroupRuleAnswer ruleAnswer = (SecurityGroupRuleAnswer)ans;
-                if (ans.getResult()) {
-                    s_logger.debug("Successfully programmed rule " + ruleAnswer.toString() + " into host " + agentId);
-                    _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Done);
-                    recordSuccess(ruleAnswer.getVmId());
-                } else {
-                    _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Error);
-                    ;
-                    s_logger.debug("Failed to program rule " + ruleAnswer.toString() + " into host " + agentId + " due to " + ruleAnswer.getDetails() +
-                        " and updated  jobs");
-                    if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
-                        s_logger.debug("Not retrying security group rules for vm " + ruleAnswer.getVmId() + " on failure since host " + agentId +
-                            " cannot do bridge firewalling");
-                    } else if (ruleAnswer.getReason() == FailureReason.PROGRAMMING_FAILED) {
-                        if (checkShouldRetryOnFailure(ruleAnswer.getVmId())) {
-                            s_logger.debug("Retrying security group rules on failure for vm " + ruleAnswer.getVmId());
-                            affectedVms.add(ruleAnswer.getVmId());
-                        } else {
-                            s_logger.debug("Not retrying security group rules for vm " + ruleAnswer.getVmId() + " on failure: too many retries");
-                        }
-                    }
+                processRuleAnswer(agentId, (SecurityGroupRuleAnswer)ans, affectedVms);
+
+                if (_workTracker != null)
+                    _workTracker.processAnswers(agentId, seq, answers);
+            } else if (ans instanceof BatchSecurityGroupRulesAnswer) {
+                if (_rulesetDelivery != null) {
+                    _rulesetDelivery.batchAnswered(agentId, seq);
+                }
+                List<SecurityGroupRuleAnswer> ruleAnswers = ((BatchSecurityGroupRulesAnswer)ans).getAnswers();
+                s_logger.debug("Received " + ruleAnswers.size() + " security group rule answers in a batch from host " + agentId);
+                for (SecurityGroupRuleAnswer ruleAnswer : ruleAnswers) {
+                    processRuleAnswer(agentId, ruleAnswer, affectedVms);
                 }
 
                 if (_workTracker != null)
                     _workTracker.processAnswers(agentId, seq, answers);
+            } else if (_rulesetDelivery != null) {
+                List<Long> batchVms = _rulesetDelivery.batchAnswered(agentId, seq);
+                if (batchVms != null) {
+                    // agents that are not upgraded yet do not know the batch command, its vms get their rules one by one
+                    if (ans instanceof UnsupportedAnswer) {
+                        s_logger.info("Host " + agentId + " does not support batched security group rules, sending them one vm at a time");
+                        _rulesetDelivery.batchUnsupported(agentId);
+                    } else {
+                        s_logger.debug("Failed to program a batch of security group rules into host " + agentId + " due to " + ans.getDetails());
+                    }
+                    for (Long vmId : batchVms) {
+                        _rulesetDelivery.failed(vmId, false);
+                    }
+                    affectedVms.addAll(batchVms);
+
+                    if (_workTracker != null)
+                        _workTracker.processAnswers(agentId, seq, answers);
+                }
             }
         }
 
@@ -119,6 +131,40 @@ public class SecurityGroupListener implements Listener {
         return true;
     }
 
+    private void processRuleAnswer(long agentId, SecurityGroupRuleAnswer ruleAnswer, List<Long> affectedVms) {
+        if (ruleAnswer.getResult()) {
+            s_logger.debug("Successfully programmed rule " + ruleAnswer.toString() + " into host " + agentId);
+            _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Done);
+            recordSuccess(ruleAnswer.getVmId());
+            if (_rulesetDelivery != null) {
+                _rulesetDelivery.applied(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), System.currentTimeMillis());
+            }
+        } else {
+            _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Error);
+            ;
+            s_logger.debug("Failed to program rule " + ruleAnswer.toString() + " into host " + agentId + " due to " + ruleAnswer.getDetails() +
+                " and updated  jobs");
+            if (_rulesetDelivery != null) {
+                _rulesetDelivery.failed(ruleAnswer.getVmId(), ruleAnswer.getReason() == FailureReason.RULESET_OUT_OF_SYNC);
+            }
+            if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
+                s_logger.debug("Not retrying security group rules for vm " + ruleAnswer.getVmId() + " on failure since host " + agentId +
+                    " cannot do bridge firewalling");
+            } else if (ruleAnswer.getReason() == FailureReason.RULESET_OUT_OF_SYNC) {
+                // nothing was programmed, the full ruleset is sent next and that is not a retry
+                s_logger.debug("Host " + agentId + " does not have the rules the delta for vm " + ruleAnswer.getVmId() + " was made against, sending its full ruleset");
+                affectedVms.add(ruleAnswer.getVmId());
+            } else if (ruleAnswer.getReason() == FailureReason.PROGRAMMING_FAILED) {
+                if (checkShouldRetryOnFailure(ruleAnswer.getVmId())) {
+                    s_logger.debug("Retrying security group rules on failure for vm " + ruleAnswer.getVmId());
+                    affectedVms.add(ruleAnswer.getVmId());
+                } else {
+                    s_logger.debug("Not retrying security group rules for vm " + ruleAnswer.getVmId() + " on failure: too many retries");
+                }
+            }
+        }
+    }
+
     protected boolean checkShouldRetryOnFailure(long vmId) {
         Integer currCount = _vmFailureCounts.get(vmId);
         if (currCount == null)
@@ -176,6 +222,9 @@ public class SecurityGroupListener implements Listener {
             if (_workTracker != null) {
                 _workTracker.processConnect(host.getId());
             }
+            if (_rulesetDelivery != null) {
+                _rulesetDelivery.hostConnected(host.getId());
+            }
         }
     }
 
@@ -189,6 +238,9 @@ public class SecurityGroupListener implements Listener {
         if (_workTracker != null) {
             _workTracker.processDisconnect(agentId);
         }
+        if (_rulesetDelivery != null) {
+            _rulesetDelivery.hostDisconnected(agentId);
+        }
         return true;
     }
 
@@ -205,10 +257,22 @@ public class SecurityGroupListener implements Listener {
         if (_workTracker != null) {
             _workTracker.processTimeout(agentId, seq);
         }
+        if (_rulesetDelivery != null) {
+            List<Long> batchVms = _rulesetDelivery.batchAnswered(agentId, seq);
+            if (batchVms != null) {
+                for (Long vmId : batchVms) {
+                    _rulesetDelivery.failed(vmId, false);
+                }
+            }
+        }
         return true;
     }
 
     public void setWorkDispatcher(SecurityGroupWorkTracker workDispatcher) {
         this._workTracker = workDispatcher;
     }
+
+    public void setRulesetDelivery(SecurityGroupRulesetDelivery rulesetDelivery) {
+        this._rulesetDelivery = rulesetDelivery;
+    }
 }
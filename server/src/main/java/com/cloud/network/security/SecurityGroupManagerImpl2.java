@@ -16,7 +16,9 @@
 // under the License.
 package com.cloud.network.security;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -29,10 +31,13 @@ import javax.naming.ConfigurationException;
 
 import org.apache.cloudstack.managed.context.ManagedContext;
 
+import com.cloud.agent.api.BatchSecurityGroupRulesCmd;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesDelta;
 import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.network.security.SecurityGroupWork.Step;
 import com.cloud.network.security.SecurityRule.SecurityRuleType;
 import com.cloud.uservm.UserVm;
@@ -51,6 +56,11 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     SecurityGroupWorkQueue _workQueue = new LocalSecurityGroupWorkQueue();
     SecurityGroupWorkTracker _workTracker;
     SecurityManagerMBeanImpl _mBean;
+    SecurityGroupRulesetDelivery _rulesetDelivery = new SecurityGroupRulesetDelivery();
+    int _batchSize = 1;
+
+    // a change still being propagated after this long is given up on, a later sync brings its vms up to date
+    private static final long PROPAGATION_TIMEOUT = 10 * 60 * 1000L;
 
     @Inject
     ManagedContext _managedContext;
@@ -119,6 +129,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
             }
         }
         int newJobs = _workQueue.submitWorkForVms(workItems);
+        _rulesetDelivery.scheduled(workItems, System.currentTimeMillis());
         _mBean.logScheduledDetails(workItems);
         p.stop();
         if (s_logger.isDebugEnabled()) {
@@ -140,7 +151,8 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         s_logger.trace("Checking the work queue");
         List<SecurityGroupWork> workItems;
         try {
-            workItems = _workQueue.getWork(1);
+            workItems = _workQueue.getWork(_batchSize);
+            List<SecurityGroupWork> ready = new ArrayList<SecurityGroupWork>(workItems.size());
             for (SecurityGroupWork work : workItems) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Processing " + work.getInstanceId());
@@ -153,42 +165,100 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                         continue;
                     }
                     work.setLogsequenceNumber(rulesetLog.getLogsequence());
-                    sendRulesetUpdates(work);
-                    _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
+                    ready.add(work);
                 } catch (Exception e) {
                     s_logger.error("Problem during SG work " + work, e);
                     work.setStep(Step.Error);
                 }
             }
+            sendRulesetUpdates(ready);
         } catch (InterruptedException e1) {
             s_logger.warn("SG work: caught InterruptException", e1);
         }
     }
 
+    /**
+     * Sends the rulesets of the vms, those running on KVM hosts in one command per host that carries only the
+     * deltas against the rulesets the host applied last, where those are known.
+     */
+    protected void sendRulesetUpdates(List<SecurityGroupWork> workItems) {
+        final SecurityGroupRulesetCache cache = new SecurityGroupRulesetCache();
+        final Map<Long, BatchSecurityGroupRulesCmd> batches = new HashMap<Long, BatchSecurityGroupRulesCmd>();
+        final Map<Long, List<Long>> batchVms = new HashMap<Long, List<Long>>();
+        for (SecurityGroupWork work : workItems) {
+            try {
+                final Long userVmId = work.getInstanceId();
+                final UserVm vm = _userVMDao.findById(userVmId);
+                if (vm == null || vm.getState() != State.Running || vm.getHostId() == null || _batchSize <= 1 || vm.getHypervisorType() != HypervisorType.KVM
+                        || !_rulesetDelivery.canBatch(vm.getHostId())) {
+                    sendRulesetUpdates(work, vm, cache);
+                    continue;
+                }
+                final Long agentId = vm.getHostId();
+                final SecurityGroupRulesCmd cmd = generateRulesetCmd(vm, work.getLogsequenceNumber(), cache);
+                BatchSecurityGroupRulesCmd batch = batches.get(agentId);
+                if (batch == null) {
+                    batch = new BatchSecurityGroupRulesCmd();
+                    batch.setMsId(_serverId);
+                    batches.put(agentId, batch);
+                    batchVms.put(agentId, new ArrayList<Long>());
+                }
+                final SecurityGroupRulesCmd applied = _rulesetDelivery.getApplied(userVmId, agentId);
+                if (applied != null) {
+                    batch.addDelta(SecurityGroupRulesDelta.between(applied, cmd));
+                } else {
+                    batch.addRuleset(cmd);
+                }
+                _rulesetDelivery.sending(agentId, cmd, applied != null);
+                batchVms.get(agentId).add(userVmId);
+                _mBean.logUpdateDetails(userVmId, work.getLogsequenceNumber());
+            } catch (Exception e) {
+                s_logger.error("Problem during SG work " + work, e);
+                work.setStep(Step.Error);
+            }
+        }
+        if (s_logger.isTraceEnabled() && !batches.isEmpty()) {
+            s_logger.trace("SecurityGroupManager v2: rule and member lookups for " + workItems.size() + " vms, cached=" + cache.getHits() + " queried=" + cache.getMisses());
+        }
+
+        for (Map.Entry<Long, BatchSecurityGroupRulesCmd> entry : batches.entrySet()) {
+            final Long agentId = entry.getKey();
+            final BatchSecurityGroupRulesCmd batch = entry.getValue();
+            final List<Long> vmIds = batchVms.get(agentId);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("SecurityGroupManager v2: sending ruleset updates for " + vmIds.size() + " vms to host " + agentId + ": full rulesets=" +
+                    batch.getRulesets().size() + " deltas=" + batch.getDeltas().size() + " num cidrs=" + batch.getTotalNumCidrs());
+            }
+            try {
+                // the batch is recorded before its answer can be processed, the listener waits on the same lock
+                synchronized (_rulesetDelivery) {
+                    final long seq = _agentMgr.send(agentId, new Commands(batch), _answerListener);
+                    _rulesetDelivery.batchSent(agentId, seq, vmIds);
+                }
+            } catch (AgentUnavailableException e) {
+                s_logger.debug("Unable to send updates for " + vmIds.size() + " vms (agentid=" + agentId + ")");
+                _workTracker.handleException(agentId);
+                for (Long vmId : vmIds) {
+                    _rulesetDelivery.failed(vmId, false);
+                }
+            }
+        }
+    }
+
     public void sendRulesetUpdates(SecurityGroupWork work) {
+        sendRulesetUpdates(work, _userVMDao.findById(work.getInstanceId()), new SecurityGroupRulesetCache());
+    }
+
+    protected void sendRulesetUpdates(SecurityGroupWork work, UserVm vm, SecurityGroupRulesetCache cache) {
         Long userVmId = work.getInstanceId();
-        UserVm vm = _userVMDao.findById(userVmId);
 
         if (vm != null && vm.getState() == State.Running) {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
             }
-            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule);
-            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
             Long agentId = vm.getHostId();
             if (agentId != null) {
-                String privateIp = vm.getPrivateIpAddress();
-                NicVO nic = _nicDao.findByIp4AddressAndVmId(privateIp, vm.getId());
-                List<String> nicSecIps = null;
-                if (nic != null) {
-                    if (nic.getSecondaryIp()) {
-                        nicSecIps = _nicSecIpDao.getSecondaryIpAddressesForNic(nic.getId());
-                    }
-                }
-                SecurityGroupRulesCmd cmd =
-                    generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), nic.getIPv6Address(), vm.getPrivateMacAddress(), vm.getId(), null, work.getLogsequenceNumber(),
-                        ingressRules, egressRules, nicSecIps);
-                cmd.setMsId(_serverId);
+                SecurityGroupRulesCmd cmd = generateRulesetCmd(vm, work.getLogsequenceNumber(), cache);
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + ":ingress num rules=" +
                         cmd.getIngressRuleSet().size() + ":egress num rules=" + cmd.getEgressRuleSet().size() + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" +
@@ -197,6 +267,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                 Commands cmds = new Commands(cmd);
                 try {
                     _agentMgr.send(agentId, cmds, _answerListener);
+                    _mBean.logUpdateDetails(userVmId, work.getLogsequenceNumber());
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + vm.getInstanceName() + " curr queue size=" + _workQueue.size());
                     }
@@ -204,8 +275,11 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                     s_logger.debug("Unable to send updates for vm: " + userVmId + "(agentid=" + agentId + ")");
                     _workTracker.handleException(agentId);
                 }
+            } else {
+                _rulesetDelivery.forget(userVmId, System.currentTimeMillis());
             }
         } else {
+            _rulesetDelivery.forget(userVmId, System.currentTimeMillis());
             if (s_logger.isDebugEnabled()) {
                 if (vm != null)
                     s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
@@ -215,9 +289,28 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         }
     }
 
+    protected SecurityGroupRulesCmd generateRulesetCmd(UserVm vm, Long seqnum, SecurityGroupRulesetCache cache) {
+        Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(vm.getId(), SecurityRuleType.IngressRule, cache);
+        Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(vm.getId(), SecurityRuleType.EgressRule, cache);
+        String privateIp = vm.getPrivateIpAddress();
+        NicVO nic = _nicDao.findByIp4AddressAndVmId(privateIp, vm.getId());
+        List<String> nicSecIps = null;
+        if (nic != null) {
+            if (nic.getSecondaryIp()) {
+                nicSecIps = _nicSecIpDao.getSecondaryIpAddressesForNic(nic.getId());
+            }
+        }
+        SecurityGroupRulesCmd cmd =
+            generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), nic.getIPv6Address(), vm.getPrivateMacAddress(), vm.getId(), null, seqnum,
+                ingressRules, egressRules, nicSecIps);
+        cmd.setMsId(_serverId);
+        return cmd;
+    }
+
     @Override
     public void cleanupFinishedWork() {
         //TODO: over time clean up op_vm_ruleset_log table for destroyed vms
+        _rulesetDelivery.expire(System.currentTimeMillis() - PROPAGATION_TIMEOUT);
     }
 
     /*
@@ -228,12 +321,23 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
      */
     @Override
     protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
+        return generateRulesForVM(userVmId, type, new SecurityGroupRulesetCache());
+    }
+
+    /*
+     * The rules of a group and the members of an allowed group are looked up once per batch of vms.
+     */
+    protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type, SecurityGroupRulesetCache cache) {
 
         Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
 
         List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
         for (SecurityGroupVMMapVO mapVO : groupsForVm) {
-            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId(), type);
+            List<SecurityGroupRuleVO> rules = cache.getRules(mapVO.getSecurityGroupId(), type);
+            if (rules == null) {
+                rules = _securityGroupRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId(), type);
+                cache.putRules(mapVO.getSecurityGroupId(), type, rules);
+            }
             for (SecurityGroupRuleVO rule : rules) {
                 PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
                 Set<String> cidrs = allowed.get(portAndProto);
@@ -241,14 +345,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                     cidrs = new TreeSet<String>(new CidrComparator());
                 }
                 if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        //here, we differ from the superclass: instead of creating N more queries to the
-                        //nics table, we use what's already there in the VO since the listBySecurityGroup already
-                        //did a join with the nics table
-                        String cidr = ngmapVO.getGuestIpAddress() + "/32";
-                        cidrs.add(cidr);
-                    }
+                    cidrs.addAll(getMemberCidrs(rule.getAllowedNetworkId(), cache));
                 } else if (rule.getAllowedSourceIpCidr() != null) {
                     cidrs.add(rule.getAllowedSourceIpCidr());
                 }
@@ -258,9 +355,28 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
             }
         }
 
+        for (Map.Entry<PortAndProto, Set<String>> entry : allowed.entrySet()) {
+            entry.setValue(cache.intern(entry.getValue()));
+        }
         return allowed;
     }
 
+    private Set<String> getMemberCidrs(long securityGroupId, SecurityGroupRulesetCache cache) {
+        Set<String> cidrs = cache.getMemberCidrs(securityGroupId);
+        if (cidrs == null) {
+            cidrs = new TreeSet<String>(new CidrComparator());
+            List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(securityGroupId, State.Running);
+            for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
+                //here, we differ from the superclass: instead of creating N more queries to the
+                //nics table, we use what's already there in the VO since the listBySecurityGroup already
+                //did a join with the nics table
+                cidrs.add(ngmapVO.getGuestIpAddress() + "/32");
+            }
+            cache.putMemberCidrs(securityGroupId, cidrs);
+        }
+        return cidrs;
+    }
+
     public int getQueueSize() {
         return _workQueue.size();
     }
@@ -269,6 +385,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         return _workQueue;
     }
 
+    public SecurityGroupRulesetDelivery getRulesetDelivery() {
+        return _rulesetDelivery;
+    }
+
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         _mBean = new SecurityManagerMBeanImpl(this);
@@ -280,8 +400,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         boolean result = super.configure(name, params);
         Map<String, String> configs = _configDao.getConfiguration("Network", params);
         int bufferLength = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkPerAgentMaxQueueSize.key()), 100);
+        _batchSize = Math.max(1, NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkBatchSize.key()), 100));
         _workTracker = new SecurityGroupWorkTracker(_agentMgr, _answerListener, bufferLength);
         _answerListener.setWorkDispatcher(_workTracker);
+        _answerListener.setRulesetDelivery(_rulesetDelivery);
         return result;
     }
 
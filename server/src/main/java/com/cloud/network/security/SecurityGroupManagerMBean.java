@@ -54,4 +54,24 @@ public interface SecurityGroupManagerMBean {
     boolean isSchedulerDisabledEntirely();
 
     void clearSchedulerQueueVeryDangerous();
+
+    long getRulesetPropagations();
+
+    long getAverageRulesetPropagationMillis();
+
+    long getMaxRulesetPropagationMillis();
+
+    long getLastRulesetPropagationMillis();
+
+    int getPendingRulesetPropagations();
+
+    long getExpiredRulesetPropagations();
+
+    long getBatchedRulesetCommands();
+
+    long getFullRulesetsSent();
+
+    long getDeltaRulesetsSent();
+
+    long getRulesetsOutOfSync();
 }
@@ -0,0 +1,92 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cloud.network.security.SecurityRule.SecurityRuleType;
+
+/**
+ * Computes the parts of the rulesets shared by the VMs of one batch once: the rules of each security group
+ * and the addresses of the running members of each group that rules allow. Identical CIDR sets are interned
+ * so the rulesets of VMs in the same groups share them.
+ */
+public class SecurityGroupRulesetCache {
+    private final Map<String, List<SecurityGroupRuleVO>> _rules = new HashMap<String, List<SecurityGroupRuleVO>>();
+    private final Map<Long, Set<String>> _memberCidrs = new HashMap<Long, Set<String>>();
+    private final Map<Set<String>, Set<String>> _interned = new HashMap<Set<String>, Set<String>>();
+    private int _hits;
+    private int _misses;
+
+    private static String key(long securityGroupId, SecurityRuleType type) {
+        return securityGroupId + ":" + type;
+    }
+
+    /**
+     * @return the rules of the group, null if not looked up yet
+     */
+    public List<SecurityGroupRuleVO> getRules(long securityGroupId, SecurityRuleType type) {
+        return count(_rules.get(key(securityGroupId, type)));
+    }
+
+    public void putRules(long securityGroupId, SecurityRuleType type, List<SecurityGroupRuleVO> rules) {
+        _rules.put(key(securityGroupId, type), rules);
+    }
+
+    /**
+     * @return the CIDRs of the running members of the group, null if not looked up yet
+     */
+    public Set<String> getMemberCidrs(long securityGroupId) {
+        return count(_memberCidrs.get(securityGroupId));
+    }
+
+    public void putMemberCidrs(long securityGroupId, Set<String> cidrs) {
+        _memberCidrs.put(securityGroupId, cidrs);
+    }
+
+    /**
+     * @return the set equal to the given one that was interned first, the given one if none was
+     */
+    public Set<String> intern(Set<String> cidrs) {
+        final Set<String> interned = _interned.get(cidrs);
+        if (interned != null) {
+            return interned;
+        }
+        _interned.put(cidrs, cidrs);
+        return cidrs;
+    }
+
+    private <T> T count(T value) {
+        if (value == null) {
+            _misses++;
+        } else {
+            _hits++;
+        }
+        return value;
+    }
+
+    public int getHits() {
+        return _hits;
+    }
+
+    public int getMisses() {
+        return _misses;
+    }
+}
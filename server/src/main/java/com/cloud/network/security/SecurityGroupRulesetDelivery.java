@@ -0,0 +1,272 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+
+/**
+ * Keeps what the batched delivery of security group rulesets needs to know: the ruleset each host applied
+ * last for its VMs, which the next update of a VM is sent as a delta against, the VMs of the batches that
+ * are not answered yet, and the hosts whose agent does not take batches. It also measures how long a
+ * change takes from being scheduled until the last of the VMs it affects has its rules applied.
+ */
+public class SecurityGroupRulesetDelivery {
+    private static final class Sent {
+        private final long _hostId;
+        private final SecurityGroupRulesCmd _ruleset;
+
+        private Sent(long hostId, SecurityGroupRulesCmd ruleset) {
+            _hostId = hostId;
+            _ruleset = ruleset;
+        }
+    }
+
+    private static final class Change {
+        private final long _scheduled;
+        private int _remaining;
+
+        private Change(long scheduled, int remaining) {
+            _scheduled = scheduled;
+            _remaining = remaining;
+        }
+    }
+
+    private final Map<Long, Sent> _applied = new HashMap<Long, Sent>();
+    private final Map<Long, Sent> _inFlight = new HashMap<Long, Sent>();
+    private final Map<Long, Map<Long, List<Long>>> _batches = new HashMap<Long, Map<Long, List<Long>>>();
+    private final Set<Long> _batchUnsupported = new HashSet<Long>();
+    private final Map<Long, List<Change>> _changes = new HashMap<Long, List<Change>>();
+
+    private final AtomicLong _batchesSent = new AtomicLong();
+    private final AtomicLong _fullRulesetsSent = new AtomicLong();
+    private final AtomicLong _deltasSent = new AtomicLong();
+    private final AtomicLong _outOfSync = new AtomicLong();
+    private long _propagations;
+    private long _totalPropagationMillis;
+    private long _maxPropagationMillis;
+    private long _lastPropagationMillis;
+    private long _expiredPropagations;
+
+    /**
+     * @return the ruleset last applied for the VM by the host, null if it is not known
+     */
+    public synchronized SecurityGroupRulesCmd getApplied(long vmId, long hostId) {
+        final Sent applied = _applied.get(vmId);
+        return applied != null && applied._hostId == hostId ? applied._ruleset : null;
+    }
+
+    public synchronized void sending(long hostId, SecurityGroupRulesCmd ruleset, boolean delta) {
+        _inFlight.put(ruleset.getVmId(), new Sent(hostId, ruleset));
+        if (delta) {
+            _deltasSent.incrementAndGet();
+        } else {
+            _fullRulesetsSent.incrementAndGet();
+        }
+    }
+
+    public synchronized void batchSent(long hostId, long seq, List<Long> vmIds) {
+        Map<Long, List<Long>> batches = _batches.get(hostId);
+        if (batches == null) {
+            batches = new HashMap<Long, List<Long>>();
+            _batches.put(hostId, batches);
+        }
+        batches.put(seq, vmIds);
+        _batchesSent.incrementAndGet();
+    }
+
+    /**
+     * @return the VMs of the batch, null if the answer is not for a batch
+     */
+    public synchronized List<Long> batchAnswered(long hostId, long seq) {
+        final Map<Long, List<Long>> batches = _batches.get(hostId);
+        return batches == null ? null : batches.remove(seq);
+    }
+
+    /**
+     * The agent of the host does not take batches, e.g. since it was not upgraded yet.
+     */
+    public synchronized void batchUnsupported(long hostId) {
+        _batchUnsupported.add(hostId);
+    }
+
+    public synchronized boolean canBatch(long hostId) {
+        return !_batchUnsupported.contains(hostId);
+    }
+
+    /**
+     * The agent of the host (re)connected: it may have been upgraded and knows none of the rulesets any more.
+     */
+    public synchronized void hostConnected(long hostId) {
+        _batchUnsupported.remove(hostId);
+        _batches.remove(hostId);
+        for (final Iterator<Sent> it = _applied.values().iterator(); it.hasNext();) {
+            if (it.next()._hostId == hostId) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void hostDisconnected(long hostId) {
+        _batches.remove(hostId);
+    }
+
+    /**
+     * The ruleset with the sequence number was applied, the next update of the VM can be a delta against it.
+     */
+    public synchronized void applied(long vmId, Long seqNum, long now) {
+        final Sent sent = _inFlight.get(vmId);
+        if (sent != null && seqNum != null && seqNum.equals(sent._ruleset.getSeqNum())) {
+            _inFlight.remove(vmId);
+            _applied.put(vmId, sent);
+        }
+        done(vmId, now);
+    }
+
+    /**
+     * The rules of the VM are not known any more, its next update is its full ruleset.
+     */
+    public synchronized void failed(long vmId, boolean outOfSync) {
+        _inFlight.remove(vmId);
+        _applied.remove(vmId);
+        if (outOfSync) {
+            _outOfSync.incrementAndGet();
+        }
+    }
+
+    /**
+     * The VM does not need its rules applied, e.g. since it stopped.
+     */
+    public synchronized void forget(long vmId, long now) {
+        _inFlight.remove(vmId);
+        _applied.remove(vmId);
+        done(vmId, now);
+    }
+
+    /**
+     * A change affecting the VMs was scheduled, its propagation ends when the rules of all of them are applied.
+     */
+    public synchronized void scheduled(Collection<Long> vmIds, long now) {
+        if (vmIds.isEmpty()) {
+            return;
+        }
+        final Change change = new Change(now, vmIds.size());
+        for (final Long vmId : vmIds) {
+            List<Change> changes = _changes.get(vmId);
+            if (changes == null) {
+                changes = new ArrayList<Change>(1);
+                _changes.put(vmId, changes);
+            }
+            changes.add(change);
+        }
+    }
+
+    private void done(long vmId, long now) {
+        final List<Change> changes = _changes.remove(vmId);
+        if (changes == null) {
+            return;
+        }
+        for (final Change change : changes) {
+            if (--change._remaining == 0) {
+                final long millis = now - change._scheduled;
+                _propagations++;
+                _totalPropagationMillis += millis;
+                _maxPropagationMillis = Math.max(_maxPropagationMillis, millis);
+                _lastPropagationMillis = millis;
+            }
+        }
+    }
+
+    /**
+     * Stops waiting for the VMs of changes scheduled before the given time, e.g. VMs whose update was dropped
+     * and that are brought up to date by a later sync.
+     */
+    public synchronized void expire(long before) {
+        final Set<Change> expired = new HashSet<Change>();
+        for (final Iterator<List<Change>> it = _changes.values().iterator(); it.hasNext();) {
+            final List<Change> changes = it.next();
+            for (final Iterator<Change> changeIt = changes.iterator(); changeIt.hasNext();) {
+                final Change change = changeIt.next();
+                if (change._scheduled < before) {
+                    expired.add(change);
+                    changeIt.remove();
+                }
+            }
+            if (changes.isEmpty()) {
+                it.remove();
+            }
+        }
+        _expiredPropagations += expired.size();
+    }
+
+    public long getBatchesSent() {
+        return _batchesSent.get();
+    }
+
+    public long getFullRulesetsSent() {
+        return _fullRulesetsSent.get();
+    }
+
+    public long getDeltasSent() {
+        return _deltasSent.get();
+    }
+
+    public long getOutOfSync() {
+        return _outOfSync.get();
+    }
+
+    public synchronized long getPropagations() {
+        return _propagations;
+    }
+
+    public synchronized long getAveragePropagationMillis() {
+        return _propagations == 0 ? 0 : _totalPropagationMillis / _propagations;
+    }
+
+    public synchronized long getMaxPropagationMillis() {
+        return _maxPropagationMillis;
+    }
+
+    public synchronized long getLastPropagationMillis() {
+        return _lastPropagationMillis;
+    }
+
+    public synchronized long getExpiredPropagations() {
+        return _expiredPropagations;
+    }
+
+    public synchronized int getPendingPropagations() {
+        final Set<Change> pending = new HashSet<Change>();
+        for (final List<Change> changes : _changes.values()) {
+            pending.addAll(changes);
+        }
+        return pending.size();
+    }
+
+    public synchronized int getAppliedCount() {
+        return _applied.size();
+    }
+}
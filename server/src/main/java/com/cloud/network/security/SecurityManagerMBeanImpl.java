@@ -146,4 +146,54 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
     public void clearSchedulerQueueVeryDangerous() {
         _sgMgr.clearWorkQueue();
     }
+
+    @Override
+    public long getRulesetPropagations() {
+        return _sgMgr.getRulesetDelivery().getPropagations();
+    }
+
+    @Override
+    public long getAverageRulesetPropagationMillis() {
+        return _sgMgr.getRulesetDelivery().getAveragePropagationMillis();
+    }
+
+    @Override
+    public long getMaxRulesetPropagationMillis() {
+        return _sgMgr.getRulesetDelivery().getMaxPropagationMillis();
+    }
+
+    @Override
+    public long getLastRulesetPropagationMillis() {
+        return _sgMgr.getRulesetDelivery().getLastPropagationMillis();
+    }
+
+    @Override
+    public int getPendingRulesetPropagations() {
+        return _sgMgr.getRulesetDelivery().getPendingPropagations();
+    }
+
+    @Override
+    public long getExpiredRulesetPropagations() {
+        return _sgMgr.getRulesetDelivery().getExpiredPropagations();
+    }
+
+    @Override
+    public long getBatchedRulesetCommands() {
+        return _sgMgr.getRulesetDelivery().getBatchesSent();
+    }
+
+    @Override
+    public long getFullRulesetsSent() {
+        return _sgMgr.getRulesetDelivery().getFullRulesetsSent();
+    }
+
+    @Override
+    public long getDeltaRulesetsSent() {
+        return _sgMgr.getRulesetDelivery().getDeltasSent();
+    }
+
+    @Override
+    public long getRulesetsOutOfSync() {
+        return _sgMgr.getRulesetDelivery().getOutOfSync();
+    }
 }
@@ -2160,7 +2160,8 @@ public class TemplateManagerImpl extends ManagerBase implements TemplateManager,
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {AllowPublicUserTemplates, TemplatePreloaderPoolSize};
+        return new ConfigKey<?>[] {AllowPublicUserTemplates, TemplatePreloaderPoolSize, TemplatePrestageInterval, TemplatePrestageCount, TemplatePrestageDeployWindow,
+                TemplatePrestagePoolBudget};
     }
 
     public List<TemplateAdapter> getTemplateAdapters() {
@@ -0,0 +1,287 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.template;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateDataFactory;
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateInfo;
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateService.TemplateApiResult;
+import org.apache.cloudstack.engine.subsystem.api.storage.VolumeService;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
+import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
+import org.apache.log4j.Logger;
+
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.storage.ScopeType;
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.storage.StoragePoolStatus;
+import com.cloud.storage.VMTemplateStoragePoolVO;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.dao.VMTemplateDao;
+import com.cloud.storage.dao.VMTemplatePoolDao;
+import com.cloud.storage.dao.VolumeDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.GlobalLock;
+
+/**
+ * Copies the most deployed templates of each zone to its shared primary storage pools ahead of the
+ * deployments, so that the first volumes created from them do not wait for the copy from secondary storage.
+ *
+ * Templates are ranked by the root volumes created from them over template.prestage.deploy.window hours.
+ * The template copies on a pool are kept within template.prestage.pool.budget, evicting unused copies of
+ * the least recently deployed templates to make room. Copies of the ranked templates are kept from being
+ * garbage collected as unused while they stay ranked.
+ */
+public class TemplatePrestager extends ManagerBase {
+    private static final Logger s_logger = Logger.getLogger(TemplatePrestager.class);
+
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    @Inject
+    DataCenterDao _dcDao;
+    @Inject
+    ClusterDao _clusterDao;
+    @Inject
+    PrimaryDataStoreDao _poolDao;
+    @Inject
+    VolumeDao _volumeDao;
+    @Inject
+    VMTemplateDao _templateDao;
+    @Inject
+    VMTemplatePoolDao _templatePoolDao;
+    @Inject
+    TemplateDataFactory _templateFactory;
+    @Inject
+    VolumeService _volumeService;
+    @Inject
+    TemplateManager _templateMgr;
+
+    private ScheduledExecutorService _executor;
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("TemplatePrestager"));
+        return true;
+    }
+
+    @Override
+    public boolean start() {
+        int interval = TemplateManager.TemplatePrestageInterval.value();
+        if (interval > 0) {
+            _executor.scheduleWithFixedDelay(new PrestageTask(), interval, interval, TimeUnit.SECONDS);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        _executor.shutdownNow();
+        return true;
+    }
+
+    protected class PrestageTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            GlobalLock lock = GlobalLock.getInternLock("template.prestage");
+            try {
+                if (lock.lock(3)) {
+                    try {
+                        for (DataCenterVO zone : _dcDao.listEnabledZones()) {
+                            try {
+                                prestage(zone.getId());
+                            } catch (Exception e) {
+                                s_logger.warn("Unable to pre-stage templates in zone " + zone.getId(), e);
+                            }
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } finally {
+                lock.releaseRef();
+            }
+        }
+    }
+
+    /**
+     * Copies the most deployed templates of the zone to the pools that have room for them.
+     *
+     * @return the number of template copies made
+     */
+    int prestage(long zoneId) {
+        int count = TemplateManager.TemplatePrestageCount.valueIn(zoneId);
+        if (count <= 0) {
+            return 0;
+        }
+
+        Date since = new Date(System.currentTimeMillis() - TemplateManager.TemplatePrestageDeployWindow.value() * 3600000L);
+        Map<Long, Date> lastDeployed = new HashMap<Long, Date>();
+        List<VMTemplateVO> ranked = new ArrayList<VMTemplateVO>();
+        for (Pair<Long, Date> deployed : _volumeDao.listRecentlyDeployedTemplates(zoneId, since)) {
+            lastDeployed.put(deployed.first(), deployed.second());
+            VMTemplateVO template = _templateDao.findById(deployed.first());
+            if (ranked.size() < count && template != null && template.getFormat() != ImageFormat.ISO) {
+                ranked.add(template);
+            }
+        }
+        if (ranked.isEmpty()) {
+            return 0;
+        }
+
+        int copied = 0;
+        for (StoragePoolVO pool : _poolDao.listByStatusInZone(zoneId, StoragePoolStatus.Up)) {
+            if (!pool.isShared() || pool.isManaged()) {
+                continue;
+            }
+            long budget = TemplateManager.TemplatePrestagePoolBudget.valueIn(pool.getId()) * GB;
+            if (budget <= 0) {
+                continue;
+            }
+            copied += prestage(pool, getHypervisorType(pool), ranked, lastDeployed, budget);
+        }
+        if (copied > 0) {
+            s_logger.info("Pre-staged " + copied + " template copies on the primary storage pools of zone " + zoneId);
+        }
+        return copied;
+    }
+
+    private int prestage(StoragePoolVO pool, HypervisorType hypervisorType, List<VMTemplateVO> ranked, final Map<Long, Date> lastDeployed, long budget) {
+        long used = 0;
+        for (VMTemplateStoragePoolVO copy : _templatePoolDao.listByPoolId(pool.getId())) {
+            used += copy.getTemplateSize();
+        }
+
+        List<Long> rankedIds = new ArrayList<Long>();
+        for (VMTemplateVO template : ranked) {
+            rankedIds.add(template.getId());
+        }
+
+        int copied = 0;
+        for (VMTemplateVO template : ranked) {
+            if (hypervisorType != null && hypervisorType != HypervisorType.Any && template.getHypervisorType() != hypervisorType) {
+                continue;
+            }
+
+            VMTemplateStoragePoolVO copy = _templatePoolDao.findByPoolTemplate(pool.getId(), template.getId());
+            if (copy != null) {
+                if (copy.getMarkedForGC()) {
+                    // still deployed, keep the storage garbage collector from evicting it
+                    copy.setMarkedForGC(false);
+                    _templatePoolDao.update(copy.getId(), copy);
+                }
+                continue;
+            }
+
+            long size = template.getSize() != null ? template.getSize() : 0;
+            if (used + size > budget) {
+                used -= evict(pool, rankedIds, lastDeployed, used + size - budget);
+                if (used + size > budget) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("No room left in the budget of storage pool " + pool.getId() + " to pre-stage template " + template.getId());
+                    }
+                    break;
+                }
+            }
+
+            TemplateInfo srcTemplate = _templateFactory.getReadyTemplateOnImageStore(template.getId(), pool.getDataCenterId());
+            if (srcTemplate == null) {
+                continue;
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Pre-staging template " + template.getId() + " on storage pool " + pool.getId());
+            }
+            try {
+                TemplateApiResult result = _volumeService.copyTemplateToPrimaryAsync(srcTemplate, pool.getId()).get();
+                if (result.isFailed()) {
+                    s_logger.warn("Unable to pre-stage template " + template.getId() + " on storage pool " + pool.getId() + ": " + result.getResult());
+                    continue;
+                }
+            } catch (Exception e) {
+                s_logger.warn("Unable to pre-stage template " + template.getId() + " on storage pool " + pool.getId(), e);
+                continue;
+            }
+            used += size;
+            copied++;
+        }
+        return copied;
+    }
+
+    /**
+     * Evicts unused copies of templates that are not ranked, least recently deployed first.
+     *
+     * @return the size of the copies evicted
+     */
+    private long evict(StoragePoolVO pool, List<Long> rankedIds, final Map<Long, Date> lastDeployed, long needed) {
+        List<VMTemplateStoragePoolVO> unused = new ArrayList<VMTemplateStoragePoolVO>();
+        for (VMTemplateStoragePoolVO copy : _templateMgr.getUnusedTemplatesInPool(pool)) {
+            if (!rankedIds.contains(copy.getTemplateId())) {
+                unused.add(copy);
+            }
+        }
+        Collections.sort(unused, new Comparator<VMTemplateStoragePoolVO>() {
+            @Override
+            public int compare(VMTemplateStoragePoolVO copy1, VMTemplateStoragePoolVO copy2) {
+                Date deployed1 = lastDeployed.get(copy1.getTemplateId());
+                Date deployed2 = lastDeployed.get(copy2.getTemplateId());
+                long time1 = deployed1 != null ? deployed1.getTime() : 0;
+                long time2 = deployed2 != null ? deployed2.getTime() : 0;
+                return Long.compare(time1, time2);
+            }
+        });
+
+        long evicted = 0;
+        for (VMTemplateStoragePoolVO copy : unused) {
+            if (evicted >= needed) {
+                break;
+            }
+            _templateMgr.evictTemplateFromStoragePool(copy);
+            if (_templatePoolDao.findByPoolTemplate(pool.getId(), copy.getTemplateId()) == null) {
+                s_logger.info("Evicted unused copy of template " + copy.getTemplateId() + " from storage pool " + pool.getId() + " to pre-stage more deployed templates");
+                evicted += copy.getTemplateSize();
+            }
+        }
+        return evicted;
+    }
+
+    private HypervisorType getHypervisorType(StoragePoolVO pool) {
+        if (pool.getScope() == ScopeType.ZONE) {
+            return pool.getHypervisor();
+        }
+        ClusterVO cluster = pool.getClusterId() != null ? _clusterDao.findById(pool.getClusterId()) : null;
+        return cluster != null ? cluster.getHypervisorType() : null;
+    }
+}
@@ -218,6 +218,11 @@ public class DirectDownloadManagerImpl extends ManagerBase implements DirectDown
         DirectDownloadCommand cmd = getDirectDownloadCommandFromProtocol(protocol, url, templateId, to, checksum, headers);
 
         Answer answer = sendDirectDownloadCommand(cmd, template, poolId, host);
+        DirectDownloadAnswer downloadAnswer = (DirectDownloadAnswer) answer;
+        if (s_logger.isDebugEnabled() && downloadAnswer.getDownloadDuration() > 0) {
+            s_logger.debug("Template " + templateId + " downloaded to pool " + poolId + ": " + downloadAnswer.getDownloadedBytes() + " bytes in " +
+                    downloadAnswer.getDownloadDuration() + " ms (" + downloadAnswer.getDownloadRate() / 1024 + " KB/s)");
+        }
 
         VMTemplateStoragePoolVO sPoolRef = vmTemplatePoolDao.findByPoolTemplate(poolId, templateId);
         if (sPoolRef == null) {
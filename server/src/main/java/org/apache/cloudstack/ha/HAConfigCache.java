@@ -0,0 +1,103 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.ha;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.cloudstack.ha.dao.HAConfigDao;
+
+/**
+ * Keeps the HA configs of all the resources, so that the background poller does not list them every round.
+ * Entries are refreshed when a config changes here or on a peer management server, and when a transition
+ * fails because the cached entry was stale. Everything is reloaded on a longer interval to pick up changes
+ * made some other way.
+ */
+public final class HAConfigCache {
+    private final HAConfigDao haConfigDao;
+    private final Map<Long, HAConfig> configs = new ConcurrentHashMap<>();
+    private volatile long lastReload = 0L;
+
+    public HAConfigCache(final HAConfigDao haConfigDao) {
+        this.haConfigDao = haConfigDao;
+    }
+
+    /**
+     * Reloads all configs if none were loaded yet, if invalidated or if the reload interval has passed.
+     *
+     * @return ids of the configs that were not cached before
+     */
+    public synchronized List<Long> reloadIfDue(final long now, final long reloadIntervalMillis) {
+        if (lastReload != 0L && now - lastReload < reloadIntervalMillis) {
+            return new ArrayList<>();
+        }
+        final List<Long> added = new ArrayList<>();
+        final Set<Long> ids = new HashSet<>();
+        for (final HAConfigVO config : haConfigDao.listAll()) {
+            if (config == null) {
+                continue;
+            }
+            ids.add(config.getId());
+            if (configs.put(config.getId(), config) == null) {
+                added.add(config.getId());
+            }
+        }
+        configs.keySet().retainAll(ids);
+        lastReload = now;
+        return added;
+    }
+
+    /**
+     * Reads the config from the database again.
+     *
+     * @return the config, null if it does not exist anymore
+     */
+    public HAConfig refresh(final long id) {
+        final HAConfig config = haConfigDao.findById(id);
+        if (config == null) {
+            configs.remove(id);
+        } else {
+            configs.put(id, config);
+        }
+        return config;
+    }
+
+    public HAConfig get(final long id) {
+        return configs.get(id);
+    }
+
+    public Collection<HAConfig> values() {
+        return configs.values();
+    }
+
+    /**
+     * Has the next {@link #reloadIfDue} reload all configs.
+     */
+    public void invalidate() {
+        lastReload = 0L;
+    }
+
+    public int size() {
+        return configs.size();
+    }
+}
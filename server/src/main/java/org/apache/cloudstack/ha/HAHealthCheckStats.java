@@ -0,0 +1,132 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.ha;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+/**
+ * Counts the HA health checks of a management server. The check latency is the time from submitting a check
+ * to having its result, including the time it was queued. A check is deferred to the resource's next round
+ * when the health check queue is too full to take it.
+ */
+public final class HAHealthCheckStats extends StandardMBean implements HAHealthCheckStatsMBean {
+    private final HAConfigCache cache;
+    private final HATimingWheel wheel;
+    private volatile ThreadPoolExecutor executor;
+
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong batchedChecks = new AtomicLong();
+    private final AtomicLong latencyMillis = new AtomicLong();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+
+    public HAHealthCheckStats(final HAConfigCache cache, final HATimingWheel wheel) {
+        super(HAHealthCheckStatsMBean.class, false);
+        this.cache = cache;
+        this.wheel = wheel;
+    }
+
+    public void setExecutor(final ThreadPoolExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param resources number of resources the check covered, more than one for a batch
+     */
+    public void checked(final int resources, final long millis) {
+        checks.addAndGet(resources);
+        if (resources > 1) {
+            batchedChecks.addAndGet(resources);
+        }
+        latencyMillis.addAndGet(millis * resources);
+        long max = maxLatencyMillis.get();
+        while (millis > max && !maxLatencyMillis.compareAndSet(max, millis)) {
+            max = maxLatencyMillis.get();
+        }
+    }
+
+    public void deferred(final int resources) {
+        deferred.addAndGet(resources);
+    }
+
+    @Override
+    public long getHealthChecks() {
+        return checks.get();
+    }
+
+    @Override
+    public long getBatchedHealthChecks() {
+        return batchedChecks.get();
+    }
+
+    @Override
+    public long getAverageCheckLatencyMillis() {
+        final long count = checks.get();
+        return count == 0 ? 0 : latencyMillis.get() / count;
+    }
+
+    @Override
+    public long getMaxCheckLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    @Override
+    public long getDeferredHealthChecks() {
+        return deferred.get();
+    }
+
+    @Override
+    public int getQueuedHealthChecks() {
+        final ThreadPoolExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    @Override
+    public int getRemainingQueueCapacity() {
+        final ThreadPoolExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getQueue().remainingCapacity();
+    }
+
+    @Override
+    public int getActiveHealthChecks() {
+        final ThreadPoolExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    @Override
+    public int getCachedResources() {
+        return cache.size();
+    }
+
+    @Override
+    public int getScheduledResources() {
+        return wheel.size();
+    }
+
+    @Override
+    public void reset() {
+        checks.set(0);
+        batchedChecks.set(0);
+        latencyMillis.set(0);
+        maxLatencyMillis.set(0);
+        deferred.set(0);
+    }
+}
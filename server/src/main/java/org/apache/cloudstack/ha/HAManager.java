@@ -66,6 +66,21 @@ public interface HAManager extends HAConfigManager {
             "2500",
             "The number of pending fence operations per management server. This setting determines the size of the size of the FENCE queue.", true);
 
+    ConfigKey<Integer> HealthCheckInterval = new ConfigKey<>("Advanced", Integer.class,
+            "ha.health.check.interval",
+            "4",
+            "The interval in seconds between two health checks of a HA enabled resource. Checks are spread over the interval so that they are not all sent at once.", true);
+
+    ConfigKey<Integer> HealthCheckBatchSize = new ConfigKey<>("Advanced", Integer.class,
+            "ha.health.check.batch.size",
+            "50",
+            "The most resources checked with one call to a HA provider that supports batched health checks.", true);
+
+    ConfigKey<Integer> HAConfigCacheReloadInterval = new ConfigKey<>("Advanced", Integer.class,
+            "ha.config.cache.reload.interval",
+            "300",
+            "The interval in seconds at which the HA configs of all resources are reloaded from the database. Changes made through the API are picked up right away.", true);
+
     boolean transitionHAState(final HAConfig.Event event, final HAConfig haConfig);
     HAProvider getHAProvider(final String name);
     HAResourceCounter getHACounter(final Long resourceId, final HAResource.ResourceType resourceType);
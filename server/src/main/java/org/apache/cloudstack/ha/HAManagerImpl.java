@@ -18,10 +18,15 @@
 package org.apache.cloudstack.ha;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -45,10 +50,14 @@ import org.apache.cloudstack.api.command.admin.ha.ListHostHAResourcesCmd;
 import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.ha.dao.HAConfigDao;
+import org.apache.cloudstack.ha.provider.BatchHealthCheckerInterface;
 import org.apache.cloudstack.ha.provider.HAProvider;
 import org.apache.cloudstack.ha.provider.HAProvider.HAProviderConfig;
 import org.apache.cloudstack.ha.task.ActivityCheckTask;
+import org.apache.cloudstack.ha.task.BatchHealthCheckTask;
 import org.apache.cloudstack.ha.task.FenceTask;
 import org.apache.cloudstack.ha.task.HealthCheckTask;
 import org.apache.cloudstack.ha.task.RecoveryTask;
@@ -59,8 +68,13 @@ import org.apache.cloudstack.poll.BackgroundPollTask;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
 import org.apache.log4j.Logger;
 
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.HAConfigChangedCommand;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.cluster.ClusterManagerListener;
 import com.cloud.cluster.ManagementServerHost;
+import com.cloud.cluster.ManagementServerHostVO;
+import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
 import com.cloud.dc.DataCenter;
@@ -75,6 +89,7 @@ import com.cloud.host.Host;
 import com.cloud.host.Status;
 import com.cloud.host.dao.HostDao;
 import com.cloud.org.Cluster;
+import com.cloud.serializer.GsonHelper;
 import com.cloud.utils.component.ComponentContext;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.component.PluggableService;
@@ -85,6 +100,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.fsm.NoTransitionException;
 import com.cloud.utils.fsm.StateListener;
 import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 
@@ -106,6 +122,15 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
     @Inject
     private BackgroundPollManager pollManager;
 
+    @Inject
+    private ManagementServerHostDao managementServerHostDao;
+
+    @Inject
+    private ClusterManager clusterManager;
+
+    @Inject
+    private MessageBus messageBus;
+
     private List<HAProvider<HAResource>> haProviders;
     private Map<String, HAProvider<HAResource>> haProviderMap = new HashMap<>();
 
@@ -116,6 +141,18 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
 
     private static final String HA_ENABLED_DETAIL = "resourceHAEnabled";
 
+    private static final long HEALTH_CHECK_TICK = 1000L;
+    private static final int HEALTH_CHECK_SLOTS = 512;
+
+    private HAConfigCache haConfigCache;
+    private HATimingWheel healthCheckWheel;
+    private HAHealthCheckStats healthCheckStats;
+    private final HAResourceShards resourceShards = new HAResourceShards();
+    private final Set<Long> healthChecksInFlight = ConcurrentHashMap.newKeySet();
+    private final Random jitter = new Random();
+    private volatile boolean managementServersChanged = true;
+    private long lastManagementServerRefresh = 0L;
+
     //////////////////////////////////////////////////////
     //////////////// HA Manager methods //////////////////
     //////////////////////////////////////////////////////
@@ -150,9 +187,14 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
             return false;
         }
         final HAConfig.HAState currentHAState = haConfig.getState();
+        final long updateCount = haConfig instanceof HAConfigVO ? ((HAConfigVO)haConfig).getUpdateCount() : 0L;
         try {
             final HAConfig.HAState nextState = HAConfig.HAState.getStateMachine().getNextState(currentHAState, event);
             boolean result = HAConfig.HAState.getStateMachine().transitTo(haConfig, event, null, haConfigDao);
+            if (!result && haConfig instanceof HAConfigVO && ((HAConfigVO)haConfig).getUpdateCount() != updateCount && haConfigCache != null) {
+                // the config was changed by someone else, the cached one is stale
+                haConfigCache.refresh(haConfig.getId());
+            }
             if (result) {
                 final String message = String.format("Transitioned host HA state from:%s to:%s due to event:%s for the host id:%d",
                         currentHAState, nextState, event, haConfig.getResourceId());
@@ -335,7 +377,7 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
     //////////////////////////////////////////////////////
 
     private boolean configureHA(final Long resourceId, final HAResource.ResourceType resourceType, final Boolean enable, final String haProvider) {
-        return Transaction.execute(new TransactionCallback<Boolean>() {
+        final boolean result = Transaction.execute(new TransactionCallback<Boolean>() {
             @Override
             public Boolean doInTransaction(TransactionStatus status) {
                 HAConfigVO haConfig = (HAConfigVO) haConfigDao.findHAResource(resourceId, resourceType);
@@ -371,6 +413,33 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
                 return false;
             }
         });
+        if (result) {
+            final HAConfig haConfig = haConfigDao.findHAResource(resourceId, resourceType);
+            if (haConfig != null) {
+                haConfigChanged(haConfig.getId());
+                notifyHAConfigChanged(haConfig.getId());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Has the poller use the current config of the resource, and check it soon if it was not scheduled yet.
+     */
+    private void haConfigChanged(final long haConfigId) {
+        if (haConfigCache == null || haConfigCache.refresh(haConfigId) == null) {
+            return;
+        }
+        healthCheckWheel.scheduleIfAbsent(haConfigId, System.currentTimeMillis());
+    }
+
+    private void notifyHAConfigChanged(final long haConfigId) {
+        try {
+            final Command[] cmds = new Command[] {new HAConfigChangedCommand(haConfigId)};
+            clusterManager.broadcast(0, GsonHelper.getGson().toJson(cmds));
+        } catch (final Exception e) {
+            LOG.warn("Unable to notify the peer management servers of the change of HA config id:" + haConfigId, e);
+        }
     }
 
     @Override
@@ -473,10 +542,16 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
 
     @Override
     public void onManagementNodeJoined(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+        managementServersChanged = true;
     }
 
     @Override
     public void onManagementNodeLeft(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+        // the resources the nodes that left owned are reassigned, pick up their new owners
+        managementServersChanged = true;
+        if (haConfigCache != null) {
+            haConfigCache.invalidate();
+        }
     }
 
     @Override
@@ -563,6 +638,11 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
         for (final HAProvider<HAResource> haProvider : haProviders) {
             haProviderMap.put(haProvider.getClass().getSimpleName().toLowerCase(), haProvider);
         }
+        try {
+            JmxUtil.registerMBean("HAManager", "HealthCheckStats", healthCheckStats);
+        } catch (final Exception e) {
+            LOG.error("Failed to register MBean", e);
+        }
         return true;
     }
 
@@ -602,6 +682,21 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
                 0L, TimeUnit.MILLISECONDS,
                 new ArrayBlockingQueue<Runnable>(fenceOperationQueueSize, true), new ThreadPoolExecutor.CallerRunsPolicy());
 
+        haConfigCache = new HAConfigCache(haConfigDao);
+        healthCheckWheel = new HATimingWheel(HEALTH_CHECK_TICK, HEALTH_CHECK_SLOTS, System.currentTimeMillis());
+        healthCheckStats = new HAHealthCheckStats(haConfigCache, healthCheckWheel);
+        healthCheckStats.setExecutor((ThreadPoolExecutor)healthCheckExecutor);
+
+        clusterManager.registerListener(this);
+        messageBus.subscribe(HAConfigManager.MESSAGE_HA_CONFIG_CHANGED_EVENT, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(final String senderAddress, final String subject, final Object args) {
+                if (args instanceof Long) {
+                    haConfigChanged((Long)args);
+                }
+            }
+        });
+
         pollManager.submitTask(new HAManagerBgPollTask());
         HAConfig.HAState.getStateMachine().registerListener(this);
 
@@ -628,7 +723,10 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
                 MaxConcurrentRecoveryOperations,
                 MaxPendingRecoveryOperations,
                 MaxConcurrentFenceOperations,
-                MaxPendingFenceOperations
+                MaxPendingFenceOperations,
+                HealthCheckInterval,
+                HealthCheckBatchSize,
+                HAConfigCacheReloadInterval
         };
     }
 
@@ -636,6 +734,77 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
     //////////////// Poll Tasks /////////////////////
     /////////////////////////////////////////////////
 
+    private void refreshManagementServers(final long now, final long reloadInterval) {
+        if (!managementServersChanged && now - lastManagementServerRefresh < reloadInterval) {
+            return;
+        }
+        managementServersChanged = false;
+        lastManagementServerRefresh = now;
+        final List<Long> ids = new ArrayList<>();
+        for (final ManagementServerHostVO managementServer : managementServerHostDao.listBy(ManagementServerHost.State.Up)) {
+            ids.add(managementServer.getMsid());
+        }
+        resourceShards.setManagementServerIds(ids);
+    }
+
+    private long nextHealthCheck(final long now, final long interval) {
+        // +/-10% so that resources scheduled together drift apart
+        final long spread = Math.max(1L, interval / 5);
+        return now + interval - spread / 2 + (long)(jitter.nextDouble() * spread);
+    }
+
+    /**
+     * Submits a health check, unless the queue is too full to take it together with the provider call it
+     * makes: a caller run check would hold up the poller. The resources are checked again on the next interval.
+     */
+    private void submitHealthCheck(final Callable<Boolean> check, final List<Long> haConfigIds) {
+        if (((ThreadPoolExecutor)healthCheckExecutor).getQueue().remainingCapacity() < 2) {
+            healthCheckStats.deferred(haConfigIds.size());
+            return;
+        }
+        healthChecksInFlight.addAll(haConfigIds);
+        final long submitted = System.currentTimeMillis();
+        try {
+            healthCheckExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    try {
+                        return check.call();
+                    } finally {
+                        healthCheckStats.checked(haConfigIds.size(), System.currentTimeMillis() - submitted);
+                        healthChecksInFlight.removeAll(haConfigIds);
+                    }
+                }
+            });
+        } catch (final RuntimeException e) {
+            healthChecksInFlight.removeAll(haConfigIds);
+            throw e;
+        }
+    }
+
+    private void submitBatchHealthChecks(final Map<HAProvider<HAResource>, List<HealthCheckTask>> batches) {
+        final int batchSize = Math.max(1, HealthCheckBatchSize.value());
+        for (final Map.Entry<HAProvider<HAResource>, List<HealthCheckTask>> entry : batches.entrySet()) {
+            @SuppressWarnings("unchecked")
+            final BatchHealthCheckerInterface<HAResource> checker = (BatchHealthCheckerInterface<HAResource>)entry.getKey();
+            final List<HealthCheckTask> tasks = entry.getValue();
+            for (int from = 0; from < tasks.size(); from += batchSize) {
+                final List<HealthCheckTask> batch = new ArrayList<>(tasks.subList(from, Math.min(from + batchSize, tasks.size())));
+                final List<Long> haConfigIds = new ArrayList<>(batch.size());
+                for (final HealthCheckTask task : batch) {
+                    haConfigIds.add(task.getHaConfig().getId());
+                }
+                final Long timeout = (Long)entry.getKey().getConfigValue(HAProviderConfig.HealthCheckTimeout, batch.get(0).getResource());
+                submitHealthCheck(new BatchHealthCheckTask(checker, batch, timeout, healthCheckExecutor), haConfigIds);
+            }
+        }
+    }
+
+    /**
+     * Runs every tick and only visits the resources that are due, read from the config cache. Each resource is
+     * checked once per health check interval, by its owner or, while it has none, by the one management
+     * server its id hashes to.
+     */
     private final class HAManagerBgPollTask extends ManagedContextRunnable implements BackgroundPollTask {
         @Override
         protected void runInContext() {
@@ -643,13 +812,24 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
                 if (LOG.isTraceEnabled()) {
                     LOG.trace("HA health check task is running...");
                 }
-                final List<HAConfig> haConfigList = new ArrayList<HAConfig>(haConfigDao.listAll());
-                for (final HAConfig haConfig : haConfigList) {
+                final long now = System.currentTimeMillis();
+                final long interval = Math.max(1, HealthCheckInterval.value()) * 1000L;
+                final long reloadInterval = Math.max(1, HAConfigCacheReloadInterval.value()) * 1000L;
+                refreshManagementServers(now, reloadInterval);
+                for (final Long id : haConfigCache.reloadIfDue(now, reloadInterval)) {
+                    healthCheckWheel.scheduleIfAbsent(id, now + (long)(jitter.nextDouble() * interval));
+                }
+
+                final long managementServerId = ManagementServerNode.getManagementServerId();
+                final Map<HAProvider<HAResource>, List<HealthCheckTask>> batches = new LinkedHashMap<>();
+                for (final Long id : healthCheckWheel.advance(now)) {
+                    final HAConfig haConfig = haConfigCache.get(id);
                     if (haConfig == null) {
                         continue;
                     }
+                    healthCheckWheel.scheduleIfAbsent(id, nextHealthCheck(now, interval));
 
-                    if (!checkHAOwnership(haConfig)) {
+                    if (!checkHAOwnership(haConfig) || !resourceShards.isCheckedBy(haConfig, managementServerId)) {
                         continue;
                     }
 
@@ -668,9 +848,21 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
                         case Suspect:
                         case Degraded:
                         case Fenced:
+                            if (healthChecksInFlight.contains(id)) {
+                                break;
+                            }
                             final HealthCheckTask task = ComponentContext.inject(new HealthCheckTask(resource, haProvider, haConfig,
                                     HAProviderConfig.HealthCheckTimeout, healthCheckExecutor));
-                            healthCheckExecutor.submit(task);
+                            if (haProvider instanceof BatchHealthCheckerInterface) {
+                                List<HealthCheckTask> tasks = batches.get(haProvider);
+                                if (tasks == null) {
+                                    tasks = new ArrayList<>();
+                                    batches.put(haProvider, tasks);
+                                }
+                                tasks.add(task);
+                            } else {
+                                submitHealthCheck(task, Collections.singletonList(id));
+                            }
                             break;
                     default:
                         break;
@@ -711,6 +903,7 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
                         transitionHAState(HAConfig.Event.RetryFencing, haConfig);
                     }
                 }
+                submitBatchHealthChecks(batches);
             } catch (Throwable t) {
                 LOG.error("Error trying to perform health checks in HA manager", t);
             }
@@ -718,7 +911,7 @@ public final class HAManagerImpl extends ManagerBase implements HAManager, Clust
 
         @Override
         public Long getDelay() {
-            return null;
+            return HEALTH_CHECK_TICK;
         }
     }
 }
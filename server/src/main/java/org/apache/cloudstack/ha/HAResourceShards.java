@@ -0,0 +1,74 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.ha;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decides which management server checks an HA resource. A resource owned by a management server that is up
+ * is checked by its owner. The others, not owned yet or owned by a management server that is gone, are spread
+ * over the management servers that are up with rendezvous hashing, so only the resources of a management
+ * server that joins or leaves move to another one.
+ */
+public final class HAResourceShards {
+    private volatile List<Long> managementServerIds = Collections.emptyList();
+
+    public void setManagementServerIds(final Collection<Long> ids) {
+        managementServerIds = Collections.unmodifiableList(new ArrayList<>(ids));
+    }
+
+    public List<Long> getManagementServerIds() {
+        return managementServerIds;
+    }
+
+    public boolean isCheckedBy(final HAConfig haConfig, final long msId) {
+        final List<Long> ids = managementServerIds;
+        final Long owner = haConfig.getManagementServerId();
+        if (owner != null && (owner == msId || ids.contains(owner))) {
+            return owner == msId;
+        }
+        if (ids.isEmpty() || !ids.contains(msId)) {
+            // until the management servers are known every one checks the resources it may claim
+            return true;
+        }
+        return shardOf(haConfig.getResourceId(), ids) == msId;
+    }
+
+    static long shardOf(final long resourceId, final List<Long> ids) {
+        long shard = ids.get(0);
+        long best = Long.MIN_VALUE;
+        for (final Long id : ids) {
+            final long weight = mix(resourceId * 31 + id);
+            if (weight > best || (weight == best && id < shard)) {
+                best = weight;
+                shard = id;
+            }
+        }
+        return shard;
+    }
+
+    private static long mix(long z) {
+        // splitmix64 finalizer
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
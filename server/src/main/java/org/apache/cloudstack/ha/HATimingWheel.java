@@ -0,0 +1,103 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.ha;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashed timing wheel of the HA resources to check, by HA config id. A resource is in the wheel at most
+ * once, in the slot of the tick it is due on. Advancing the wheel only visits the slots of the ticks that
+ * passed, so the cost of a poll round depends on the resources that are due rather than on all of them.
+ */
+public final class HATimingWheel {
+    private static final class Entry {
+        private final long id;
+        private final long deadline;
+
+        private Entry(final long id, final long deadline) {
+            this.id = id;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<List<Entry>> slots;
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private long lastTick;
+
+    public HATimingWheel(final long tickMillis, final int slotCount, final long now) {
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayList<Entry>());
+        }
+        this.lastTick = now / tickMillis;
+    }
+
+    /**
+     * Schedules the resource, unless it already is.
+     *
+     * @return true if it was scheduled
+     */
+    public synchronized boolean scheduleIfAbsent(final long id, final long deadline) {
+        if (entries.containsKey(id)) {
+            return false;
+        }
+        final Entry entry = new Entry(id, deadline);
+        entries.put(id, entry);
+        // anything due before the next tick goes in the next tick's slot
+        final long tick = Math.max(deadline / tickMillis, lastTick + 1);
+        slots.get((int)(tick % slots.size())).add(entry);
+        return true;
+    }
+
+    /**
+     * Removes and returns the resources that are due.
+     */
+    public synchronized List<Long> advance(final long now) {
+        final List<Long> due = new ArrayList<>();
+        final long tick = now / tickMillis;
+        // after a pause longer than a round every slot is visited once
+        final long first = Math.max(lastTick + 1, tick - slots.size() + 1);
+        for (long t = first; t <= tick; t++) {
+            final Iterator<Entry> it = slots.get((int)(t % slots.size())).iterator();
+            while (it.hasNext()) {
+                final Entry entry = it.next();
+                if (entry.deadline < (tick + 1) * tickMillis) {
+                    it.remove();
+                    entries.remove(entry.id);
+                    due.add(entry.id);
+                }
+            }
+        }
+        lastTick = Math.max(lastTick, tick);
+        return due;
+    }
+
+    public synchronized boolean isScheduled(final long id) {
+        return entries.containsKey(id);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
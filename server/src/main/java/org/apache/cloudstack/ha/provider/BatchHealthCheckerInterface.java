@@ -0,0 +1,39 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.ha.provider;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cloudstack.ha.HAResource;
+
+/**
+ * Implemented by HA providers that can check the health of many resources with one call, e.g. one query
+ * against a management endpoint that knows all of them. The background poller then batches the health
+ * checks of the provider's resources that are due together.
+ *
+ * @param <R>
+ */
+public interface BatchHealthCheckerInterface<R extends HAResource> {
+
+    /**
+     * @return health of the resources by resource id, resources left out are not healthy
+     */
+    Map<Long, Boolean> areHealthy(List<R> resources) throws HACheckerException;
+
+}
@@ -0,0 +1,95 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.ha.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.cloudstack.ha.HAResource;
+import org.apache.cloudstack.ha.provider.BatchHealthCheckerInterface;
+import org.apache.cloudstack.ha.provider.HACheckerException;
+import org.apache.log4j.Logger;
+
+/**
+ * Checks the health of the resources of a provider that supports batched checks with one provider call,
+ * and has each resource's health check task process its result.
+ */
+public class BatchHealthCheckTask implements Callable<Boolean> {
+    public static final Logger LOG = Logger.getLogger(BatchHealthCheckTask.class);
+
+    private final BatchHealthCheckerInterface<HAResource> checker;
+    private final List<HealthCheckTask> tasks;
+    private final Long timeout;
+    private final ExecutorService executor;
+
+    public BatchHealthCheckTask(final BatchHealthCheckerInterface<HAResource> checker, final List<HealthCheckTask> tasks, final Long timeout,
+                                final ExecutorService executor) {
+        this.checker = checker;
+        this.tasks = tasks;
+        this.timeout = timeout;
+        this.executor = executor;
+    }
+
+    public List<HealthCheckTask> getTasks() {
+        return tasks;
+    }
+
+    @Override
+    public Boolean call() {
+        final List<HAResource> resources = new ArrayList<>(tasks.size());
+        for (final HealthCheckTask task : tasks) {
+            resources.add(task.getResource());
+        }
+        final Future<Map<Long, Boolean>> future = executor.submit(new Callable<Map<Long, Boolean>>() {
+            @Override
+            public Map<Long, Boolean> call() throws HACheckerException {
+                return checker.areHealthy(resources);
+            }
+        });
+
+        Map<Long, Boolean> results = null;
+        Throwable throwable = null;
+        try {
+            if (timeout == null) {
+                results = future.get();
+            } else {
+                results = future.get(timeout, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            LOG.warn("Exception occurred while running a batched health check on " + resources.size() + " resources: " + e.getMessage(), e.getCause());
+            throwable = e.getCause();
+        } catch (TimeoutException e) {
+            LOG.trace("Batched health check timed out for " + resources.size() + " resources");
+        }
+
+        boolean result = true;
+        for (final HealthCheckTask task : tasks) {
+            final boolean healthy = results != null && Boolean.TRUE.equals(results.get(task.getResource().getId()));
+            task.processResult(healthy, throwable);
+            result = result && healthy;
+        }
+        return result;
+    }
+}
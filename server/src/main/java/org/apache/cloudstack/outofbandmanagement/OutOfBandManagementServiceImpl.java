@@ -31,6 +31,7 @@ import com.cloud.host.dao.HostDao;
 import com.cloud.org.Cluster;
 import com.cloud.utils.component.Manager;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionStatus;
@@ -64,6 +65,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -94,6 +97,10 @@ public class OutOfBandManagementServiceImpl extends ManagerBase implements OutOf
 
     private static Cache<Long, Long> hostAlertCache;
     private static ExecutorService backgroundSyncBlockingExecutor;
+    // processes the responses of async drivers, handing a response over never blocks the driver's I/O thread
+    private static ExecutorService backgroundSyncResultExecutor;
+
+    private final PowerStateSyncSchedule powerStateSyncSchedule = new PowerStateSyncSchedule();
 
     private String getOutOfBandManagementHostLock(long id) {
         return "oobm.host." + id;
@@ -287,6 +294,83 @@ public class OutOfBandManagementServiceImpl extends ManagerBase implements OutOf
         }
     }
 
+    /**
+     * Polls the power state of the host unless it is not due yet. A driver that can run the poll
+     * asynchronously only holds a thread of the background sync pool to process the result.
+     */
+    private void syncPowerState(final Host host, final OutOfBandManagement outOfBandManagementHost) {
+        if (!powerStateSyncSchedule.begin(host.getId())) {
+            return;
+        }
+        final OutOfBandManagementDriver driver;
+        try {
+            driver = getDriver(outOfBandManagementHost);
+        } catch (CloudRuntimeException e) {
+            powerStateSyncSchedule.end(host.getId(), null, SyncBackoffMax.value());
+            submitBackgroundPowerSyncTask(host);
+            return;
+        }
+
+        if (!(driver instanceof OutOfBandManagementAsyncDriver)) {
+            backgroundSyncBlockingExecutor.submit(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    try {
+                        new PowerOperationTask(OutOfBandManagementServiceImpl.this, host, OutOfBandManagement.PowerOperation.STATUS).run();
+                    } finally {
+                        final OutOfBandManagement updatedOutOfBandManagementHost = outOfBandManagementDao.findByHost(host.getId());
+                        powerStateSyncSchedule.end(host.getId(), updatedOutOfBandManagementHost == null ? null : updatedOutOfBandManagementHost.getPowerState(),
+                                SyncBackoffMax.value());
+                    }
+                }
+            });
+            return;
+        }
+
+        final OutOfBandManagementDriverPowerCommand cmd = new OutOfBandManagementDriverPowerCommand(getOptions(outOfBandManagementHost),
+                ActionTimeout.valueIn(host.getClusterId()), OutOfBandManagement.PowerOperation.STATUS);
+        try {
+            ((OutOfBandManagementAsyncDriver) driver).executeAsync(cmd, new OutOfBandManagementAsyncDriver.Callback() {
+                @Override
+                public void complete(final OutOfBandManagementDriverResponse driverResponse) {
+                    try {
+                        backgroundSyncResultExecutor.submit(new ManagedContextRunnable() {
+                            @Override
+                            protected void runInContext() {
+                                try {
+                                    processPowerStateSyncResponse(host, driverResponse);
+                                } finally {
+                                    powerStateSyncSchedule.end(host.getId(), driverResponse.isSuccess() ? driverResponse.getPowerState() : null, SyncBackoffMax.value());
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // shutting down, the host is synced again by whichever management server owns it next
+                        powerStateSyncSchedule.end(host.getId(), null, SyncBackoffMax.value());
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            powerStateSyncSchedule.end(host.getId(), null, SyncBackoffMax.value());
+            LOG.warn(String.format("Out-of-band management background task operation=%s for host id=%d failed with: %s",
+                    OutOfBandManagement.PowerOperation.STATUS.name(), host.getId(), e.getMessage()));
+        }
+    }
+
+    private void processPowerStateSyncResponse(final Host host, final OutOfBandManagementDriverResponse driverResponse) {
+        transitionPowerState(driverResponse.toEvent(), outOfBandManagementDao.findByHost(host.getId()));
+        if (driverResponse.isSuccess()) {
+            return;
+        }
+        String errorMessage = String.format("Out-of-band Management action (%s) on host (%s) failed with error: %s", OutOfBandManagement.PowerOperation.STATUS, host.getUuid(), driverResponse.getError());
+        if (driverResponse.hasAuthFailure()) {
+            errorMessage = String.format("Out-of-band Management action (%s) on host (%s) failed due to authentication error: %s. Please check configured credentials.", OutOfBandManagement.PowerOperation.STATUS, host.getUuid(), driverResponse.getError());
+            sendAuthError(host, errorMessage);
+        }
+        LOG.warn(String.format("Out-of-band management background task operation=%s for host id=%d failed with: %s",
+                OutOfBandManagement.PowerOperation.STATUS.name(), host.getId(), errorMessage));
+    }
+
     private OutOfBandManagementResponse buildEnableDisableResponse(final boolean enabled) {
         final OutOfBandManagementResponse response = new OutOfBandManagementResponse();
         response.setEnabled(enabled);
@@ -409,6 +493,8 @@ public class OutOfBandManagementServiceImpl extends ManagerBase implements OutOf
 
         if (powerOperation.equals(OutOfBandManagement.PowerOperation.STATUS)) {
             transitionPowerState(driverResponse.toEvent(), outOfBandManagementConfig);
+        } else {
+            powerStateSyncSchedule.reset(host.getId());
         }
 
         if (!driverResponse.isSuccess()) {
@@ -507,6 +593,10 @@ public class OutOfBandManagementServiceImpl extends ManagerBase implements OutOf
         backgroundSyncBlockingExecutor = new ThreadPoolExecutor(poolSize, poolSize,
                 0L, TimeUnit.MILLISECONDS,
                 new ArrayBlockingQueue<Runnable>(10 * poolSize, true), new ThreadPoolExecutor.CallerRunsPolicy());
+        // unbounded, there is at most one sync of a host in progress so it never holds more than one response per host
+        backgroundSyncResultExecutor = new ThreadPoolExecutor(poolSize, poolSize,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("OutOfBandManagementSyncResult"));
 
         backgroundPollManager.submitTask(new OutOfBandManagementPowerStatePollTask());
 
@@ -523,6 +613,7 @@ public class OutOfBandManagementServiceImpl extends ManagerBase implements OutOf
     @Override
     public boolean stop() {
         backgroundSyncBlockingExecutor.shutdown();
+        backgroundSyncResultExecutor.shutdown();
         outOfBandManagementDao.expireServerOwnership(getId());
         return true;
     }
@@ -534,7 +625,7 @@ public class OutOfBandManagementServiceImpl extends ManagerBase implements OutOf
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {ActionTimeout, SyncThreadPoolSize};
+        return new ConfigKey<?>[] {ActionTimeout, SyncThreadPoolSize, SyncBackoffMax};
     }
 
     public List<OutOfBandManagementDriver> getOutOfBandManagementDrivers() {
@@ -554,15 +645,21 @@ public class OutOfBandManagementServiceImpl extends ManagerBase implements OutOf
                 }
                 final List<OutOfBandManagementVO> outOfBandManagementHosts = outOfBandManagementDao.findAllByManagementServer(ManagementServerNode.getManagementServerId());
                 if (outOfBandManagementHosts == null || outOfBandManagementHosts.isEmpty()) {
+                    powerStateSyncSchedule.retain(Collections.<Long>emptyList());
                     return;
                 }
+                final List<Long> hostIds = new ArrayList<>(outOfBandManagementHosts.size());
+                for (final OutOfBandManagement outOfBandManagementHost : outOfBandManagementHosts) {
+                    hostIds.add(outOfBandManagementHost.getHostId());
+                }
+                powerStateSyncSchedule.retain(hostIds);
                 for (final OutOfBandManagement outOfBandManagementHost : outOfBandManagementHosts) {
                     final Host host = hostDao.findById(outOfBandManagementHost.getHostId());
                     if (host == null) {
                         continue;
                     }
                     if (isOutOfBandManagementEnabled(host)) {
-                        submitBackgroundPowerSyncTask(host);
+                        syncPowerState(host, outOfBandManagementHost);
                     } else if (outOfBandManagementHost.getPowerState() != OutOfBandManagement.PowerState.Disabled) {
                         if (transitionPowerStateToDisabled(Collections.singletonList(host))) {
                             if (LOG.isDebugEnabled()) {
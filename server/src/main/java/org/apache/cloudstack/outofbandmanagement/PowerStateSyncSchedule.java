@@ -0,0 +1,102 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides on every background sync interval which hosts get their power state polled. A host is not polled
+ * again while its last poll is still running, and the interval between two polls doubles, up to a maximum,
+ * while its power state stays the same. Failures, changes and power operations bring it back to every
+ * interval.
+ */
+final class PowerStateSyncSchedule {
+    private static final class Entry {
+        private boolean inFlight;
+        private int interval = 1;
+        private int skip;
+        private OutOfBandManagement.PowerState powerState;
+    }
+
+    private final Map<Long, Entry> entries = new HashMap<>();
+
+    /**
+     * @return true when the host is due, it is then in flight until {@link #end}
+     */
+    synchronized boolean begin(final long hostId) {
+        Entry entry = entries.get(hostId);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(hostId, entry);
+        }
+        if (entry.inFlight) {
+            return false;
+        }
+        if (entry.skip > 0) {
+            entry.skip--;
+            return false;
+        }
+        entry.inFlight = true;
+        return true;
+    }
+
+    /**
+     * @param powerState the power state the poll found, null if it failed
+     * @param maxInterval the most intervals between two polls of a host
+     */
+    synchronized void end(final long hostId, final OutOfBandManagement.PowerState powerState, final int maxInterval) {
+        final Entry entry = entries.get(hostId);
+        if (entry == null) {
+            return;
+        }
+        entry.inFlight = false;
+        final boolean steady = powerState != null && powerState == entry.powerState
+                && (powerState == OutOfBandManagement.PowerState.On || powerState == OutOfBandManagement.PowerState.Off);
+        entry.interval = steady ? Math.min(entry.interval * 2, Math.max(1, maxInterval)) : 1;
+        entry.skip = entry.interval - 1;
+        entry.powerState = powerState;
+    }
+
+    /**
+     * Polls the host on the next interval, e.g. after a power operation.
+     */
+    synchronized void reset(final long hostId) {
+        final Entry entry = entries.get(hostId);
+        if (entry != null) {
+            entry.interval = 1;
+            entry.skip = 0;
+            entry.powerState = null;
+        }
+    }
+
+    /**
+     * Forgets the hosts that are not in the given ones anymore.
+     */
+    synchronized void retain(final Collection<Long> hostIds) {
+        final Set<Long> retained = new HashSet<>(hostIds);
+        entries.keySet().retainAll(retained);
+    }
+
+    synchronized int getInterval(final long hostId) {
+        final Entry entry = entries.get(hostId);
+        return entry == null ? 1 : entry.interval;
+    }
+}
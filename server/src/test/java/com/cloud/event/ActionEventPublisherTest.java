@@ -0,0 +1,270 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cloudstack.framework.events.Event;
+import org.apache.cloudstack.framework.events.EventBus;
+import org.apache.cloudstack.framework.events.EventBusException;
+import org.apache.cloudstack.framework.events.EventSubscriber;
+import org.apache.cloudstack.framework.events.EventTopic;
+import org.apache.cloudstack.utils.identity.ManagementServerNode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.cluster.ManagementServerHost;
+import com.cloud.event.ActionEventUtils.PendingEvent;
+import com.cloud.event.dao.EventOutboxDao;
+import com.cloud.projects.dao.ProjectDao;
+import com.cloud.user.AccountVO;
+import com.cloud.user.User;
+import com.cloud.user.UserVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.user.dao.UserDao;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ActionEventPublisherTest {
+    private static final long USER_ID = 2;
+    private static final long ACCOUNT_ID = 3;
+
+    @Mock
+    private AccountDao accountDao;
+    @Mock
+    private UserDao userDao;
+    @Mock
+    private ProjectDao projectDao;
+    @Mock
+    private EventOutboxDao eventOutboxDao;
+
+    // the outbox table, kept in memory by the mocked dao
+    private final List<EventOutboxVO> outbox = Collections.synchronizedList(new ArrayList<EventOutboxVO>());
+    private long nextOutboxId = 1;
+    private RecordingEventBus eventBus;
+    private ActionEventPublisher publisher;
+
+    /**
+     * Event bus stand-in, like the inmemory bus it delivers in the caller's thread.
+     */
+    static class RecordingEventBus implements EventBus {
+        final List<Event> published = Collections.synchronizedList(new ArrayList<Event>());
+        final AtomicInteger batches = new AtomicInteger();
+        volatile int failuresLeft = 0;
+        volatile CountDownLatch gate = new CountDownLatch(0);
+
+        @Override
+        public void publish(Event event) throws EventBusException {
+            publish(Collections.singletonList(event));
+        }
+
+        @Override
+        public void publish(List<Event> events) throws EventBusException {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new EventBusException("interrupted");
+            }
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new EventBusException("broker unavailable");
+            }
+            batches.incrementAndGet();
+            published.addAll(events);
+        }
+
+        @Override
+        public UUID subscribe(EventTopic topic, EventSubscriber subscriber) throws EventBusException {
+            return UUID.randomUUID();
+        }
+
+        @Override
+        public void unsubscribe(UUID subscriberId, EventSubscriber subscriber) throws EventBusException {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ActionEventUtils utils = new ActionEventUtils();
+        utils.accountDao = accountDao;
+        utils.userDao = userDao;
+        utils.projectDao = projectDao;
+        utils.init();
+        eventBus = new RecordingEventBus();
+        ActionEventUtils.s_eventBus = eventBus;
+
+        AccountVO account = new AccountVO("account", 1L, null, (short)0, UUID.randomUUID().toString());
+        account.setId(ACCOUNT_ID);
+        UserVO user = new UserVO(ACCOUNT_ID, "user", "password", "first", "last", "email", "timezone", UUID.randomUUID().toString(), User.Source.UNKNOWN);
+        Mockito.when(accountDao.findById(ACCOUNT_ID)).thenReturn(account);
+        Mockito.when(userDao.findById(USER_ID)).thenReturn(user);
+
+        Mockito.when(eventOutboxDao.persist(Mockito.any(EventOutboxVO.class))).thenAnswer(new Answer<EventOutboxVO>() {
+            @Override
+            public EventOutboxVO answer(InvocationOnMock invocation) throws Throwable {
+                EventOutboxVO row = (EventOutboxVO)invocation.getArguments()[0];
+                Field id = EventOutboxVO.class.getDeclaredField("id");
+                id.setAccessible(true);
+                synchronized (outbox) {
+                    id.set(row, nextOutboxId++);
+                    outbox.add(row);
+                }
+                return row;
+            }
+        });
+        Mockito.when(eventOutboxDao.listPending(Mockito.anyLong(), Mockito.anyInt())).thenAnswer(new Answer<List<EventOutboxVO>>() {
+            @Override
+            public List<EventOutboxVO> answer(InvocationOnMock invocation) throws Throwable {
+                int limit = (Integer)invocation.getArguments()[1];
+                synchronized (outbox) {
+                    return new ArrayList<EventOutboxVO>(outbox.subList(0, Math.min(limit, outbox.size())));
+                }
+            }
+        });
+        Mockito.when(eventOutboxDao.expunge(Mockito.anyListOf(Long.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                List<?> ids = (List<?>)invocation.getArguments()[0];
+                int removed = 0;
+                synchronized (outbox) {
+                    for (int i = outbox.size() - 1; i >= 0; i--) {
+                        if (ids.contains(outbox.get(i).getId())) {
+                            outbox.remove(i);
+                            removed++;
+                        }
+                    }
+                }
+                return removed;
+            }
+        });
+
+        publisher = new ActionEventPublisher();
+        publisher.eventOutboxDao = eventOutboxDao;
+        publisher.setEventBus(eventBus);
+    }
+
+    @After
+    public void tearDown() {
+        publisher.stop();
+        new ActionEventUtils().init();
+        ActionEventUtils.s_eventBus = null;
+    }
+
+    private PendingEvent event(int i) {
+        return new PendingEvent(USER_ID, ACCOUNT_ID, EventCategory.ACTION_EVENT.getName(), EventTypes.EVENT_VM_CREATE, com.cloud.event.Event.State.Completed,
+                "event " + i, null, new HashMap<Object, Object>(), new Date());
+    }
+
+    private void waitForPublished(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (eventBus.published.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testCallersDoNotWaitForTheEventBus() throws Exception {
+        eventBus.gate = new CountDownLatch(1);
+        publisher.start();
+
+        // the bus is stuck, queuing must still go through
+        for (int i = 0; i < 500; i++) {
+            publisher.enqueue(event(i));
+        }
+        Assert.assertEquals(0, eventBus.published.size());
+        // written to the outbox before enqueue returns, nothing is only held in memory
+        Assert.assertEquals(500, outbox.size());
+
+        eventBus.gate.countDown();
+        waitForPublished(500);
+
+        Assert.assertEquals(500, eventBus.published.size());
+        for (int i = 0; i < 500; i++) {
+            Assert.assertTrue(eventBus.published.get(i).getDescription().contains("\"event " + i + "\""));
+        }
+        // delivered in batches, not one by one
+        Assert.assertTrue(eventBus.batches.get() < 500);
+        Assert.assertTrue(outbox.isEmpty());
+        // the account and user are looked up once, not per event
+        Mockito.verify(accountDao, Mockito.times(1)).findById(ACCOUNT_ID);
+        Mockito.verify(userDao, Mockito.times(1)).findById(USER_ID);
+    }
+
+    @Test
+    public void testFailedBatchStaysInOutboxAndIsRetried() throws Exception {
+        eventBus.failuresLeft = 1;
+        publisher.start();
+
+        for (int i = 0; i < 10; i++) {
+            publisher.enqueue(event(i));
+        }
+        waitForPublished(10);
+
+        Assert.assertEquals(10, eventBus.published.size());
+        Assert.assertEquals(0, eventBus.failuresLeft);
+        Assert.assertTrue(outbox.isEmpty());
+    }
+
+    @Test
+    public void testEventsAreKeptInOutboxWhenNotRunning() throws Exception {
+        // not started, e.g. while shutting down: events go straight to the outbox for the next start
+        publisher.enqueue(event(0));
+        publisher.enqueue(event(1));
+
+        Assert.assertEquals(2, outbox.size());
+        Assert.assertEquals(0, eventBus.published.size());
+
+        publisher.start();
+        waitForPublished(2);
+        Assert.assertEquals(2, eventBus.published.size());
+        Assert.assertTrue(outbox.isEmpty());
+    }
+
+    @Test
+    public void testOutboxOfLeftManagementServerIsTakenOver() throws Exception {
+        long self = ManagementServerNode.getManagementServerId();
+        long peer = self + 1;
+        ManagementServerHost selfHost = Mockito.mock(ManagementServerHost.class);
+        Mockito.when(selfHost.getMsid()).thenReturn(self);
+        ManagementServerHost peerHost = Mockito.mock(ManagementServerHost.class);
+        Mockito.when(peerHost.getMsid()).thenReturn(peer);
+        Mockito.when(eventOutboxDao.transfer(peer, self)).thenReturn(3);
+
+        List<ManagementServerHost> left = new ArrayList<ManagementServerHost>();
+        left.add(selfHost);
+        left.add(peerHost);
+        publisher.onManagementNodeLeft(left, 1L);
+
+        Mockito.verify(eventOutboxDao).transfer(peer, self);
+        Mockito.verify(eventOutboxDao, Mockito.never()).transfer(Mockito.eq(self), Mockito.anyLong());
+    }
+}
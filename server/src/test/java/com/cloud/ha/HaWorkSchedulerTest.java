@@ -0,0 +1,200 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.ha.HighAvailabilityManager.Step;
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.vm.VirtualMachine;
+
+public class HaWorkSchedulerTest {
+
+    private TestScheduler scheduler;
+
+    private static class TestScheduler extends HaWorkScheduler {
+        final LinkedList<HaWorkVO> queue = new LinkedList<HaWorkVO>();
+        final List<HaWorkVO> processed = Collections.synchronizedList(new ArrayList<HaWorkVO>());
+        final List<HaWorkVO> released = new ArrayList<HaWorkVO>();
+        final Map<Long, Long> clusters = new ConcurrentHashMap<Long, Long>();
+        volatile CountDownLatch blocker = new CountDownLatch(0);
+        volatile CountDownLatch done = new CountDownLatch(0);
+        int claims;
+        int maxPerHost;
+        int maxPerCluster;
+
+        TestScheduler(int workers, long timeToSleep) {
+            super(workers, timeToSleep, new HaWorkStats());
+        }
+
+        synchronized void add(HaWorkVO... works) {
+            queue.addAll(Arrays.asList(works));
+        }
+
+        @Override
+        protected synchronized List<HaWorkVO> claim(int limit) {
+            claims++;
+            final List<HaWorkVO> claimed = new ArrayList<HaWorkVO>();
+            while (claimed.size() < limit && !queue.isEmpty()) {
+                claimed.add(queue.poll());
+            }
+            return claimed;
+        }
+
+        @Override
+        protected void process(HaWorkVO work) {
+            try {
+                blocker.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            work.setStep(Step.Done);
+            processed.add(work);
+            done.countDown();
+        }
+
+        @Override
+        protected void release(HaWorkVO work) {
+            released.add(work);
+        }
+
+        @Override
+        protected Long getClusterId(long hostId) {
+            return clusters.get(hostId);
+        }
+
+        @Override
+        protected int getMaxPerHost() {
+            return maxPerHost;
+        }
+
+        @Override
+        protected int getMaxPerCluster() {
+            return maxPerCluster;
+        }
+    }
+
+    private static HaWorkVO work(VirtualMachine.Type type, WorkType workType, long hostId) {
+        return new HaWorkVO(1L, type, workType, Step.Scheduled, hostId, VirtualMachine.State.Running, 0, 0L);
+    }
+
+    private static void waitFor(TestScheduler scheduler, int running, int pending) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ((scheduler.getRunningCount() != running || scheduler.getPendingCount() != pending) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(running, scheduler.getRunningCount());
+        Assert.assertEquals(pending, scheduler.getPendingCount());
+    }
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.blocker.countDown();
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void testPriority() {
+        final HaWorkVO userRestart = work(VirtualMachine.Type.User, WorkType.HA, 1L);
+        final HaWorkVO userStop = work(VirtualMachine.Type.User, WorkType.ForceStop, 1L);
+        final HaWorkVO routerRestart = work(VirtualMachine.Type.DomainRouter, WorkType.HA, 1L);
+        final HaWorkVO proxyMigration = work(VirtualMachine.Type.ConsoleProxy, WorkType.Migration, 1L);
+        final HaWorkVO olderUserRestart = work(VirtualMachine.Type.User, WorkType.HA, 1L);
+        olderUserRestart.setTimeToTry(userRestart.getTimeToTry() - 10);
+
+        final List<HaWorkVO> works = new ArrayList<HaWorkVO>(Arrays.asList(userStop, userRestart, proxyMigration, olderUserRestart, routerRestart));
+        Collections.sort(works, HaWorkScheduler.PRIORITY);
+        Assert.assertEquals(Arrays.asList(routerRestart, proxyMigration, olderUserRestart, userRestart, userStop), works);
+    }
+
+    @Test
+    public void testWakeupClaimsRightAway() throws Exception {
+        scheduler = new TestScheduler(2, 60000);
+        scheduler.start();
+        waitFor(scheduler, 0, 0);
+
+        scheduler.done = new CountDownLatch(2);
+        scheduler.add(work(VirtualMachine.Type.User, WorkType.HA, 1L), work(VirtualMachine.Type.User, WorkType.HA, 2L));
+        scheduler.wakeup();
+        Assert.assertTrue(scheduler.done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testClaimsInBatches() throws Exception {
+        scheduler = new TestScheduler(4, 60000);
+        scheduler.done = new CountDownLatch(20);
+        for (long i = 0; i < 20; i++) {
+            scheduler.add(work(VirtualMachine.Type.User, WorkType.HA, i));
+        }
+        scheduler.start();
+        Assert.assertTrue(scheduler.done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(20, scheduler.processed.size());
+        Assert.assertTrue(scheduler.claims < 20);
+    }
+
+    @Test
+    public void testHostAndClusterLimits() throws Exception {
+        scheduler = new TestScheduler(8, 60000);
+        scheduler.maxPerHost = 2;
+        scheduler.maxPerCluster = 3;
+        scheduler.blocker = new CountDownLatch(1);
+        scheduler.clusters.put(1L, 10L);
+        scheduler.clusters.put(2L, 10L);
+        scheduler.clusters.put(3L, 20L);
+        scheduler.done = new CountDownLatch(7);
+        scheduler.add(work(VirtualMachine.Type.User, WorkType.HA, 1L), work(VirtualMachine.Type.User, WorkType.HA, 1L),
+                work(VirtualMachine.Type.User, WorkType.HA, 1L), work(VirtualMachine.Type.User, WorkType.HA, 2L),
+                work(VirtualMachine.Type.User, WorkType.HA, 2L), work(VirtualMachine.Type.User, WorkType.HA, 3L),
+                work(VirtualMachine.Type.User, WorkType.HA, 3L));
+        scheduler.start();
+
+        // two on host 1 and one on host 2 fill cluster 10, host 3 runs both of its own
+        waitFor(scheduler, 5, 2);
+
+        scheduler.blocker.countDown();
+        Assert.assertTrue(scheduler.done.await(10, TimeUnit.SECONDS));
+        waitFor(scheduler, 0, 0);
+    }
+
+    @Test
+    public void testStopReleasesPendingWork() throws Exception {
+        scheduler = new TestScheduler(1, 60000);
+        scheduler.blocker = new CountDownLatch(1);
+        final HaWorkVO second = work(VirtualMachine.Type.User, WorkType.HA, 2L);
+        scheduler.add(work(VirtualMachine.Type.User, WorkType.HA, 1L), second);
+        scheduler.start();
+        waitFor(scheduler, 1, 1);
+
+        scheduler.stop();
+        Assert.assertEquals(Arrays.asList(second), scheduler.released);
+        Assert.assertEquals(0, scheduler.getPendingCount());
+    }
+}
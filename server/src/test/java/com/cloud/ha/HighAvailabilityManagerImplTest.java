@@ -20,7 +20,6 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
-import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -32,7 +31,6 @@ import javax.inject.Inject;
 
 import org.apache.cloudstack.engine.orchestration.service.VolumeOrchestrationService;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
-import org.apache.cloudstack.managed.context.ManagedContext;
 import org.apache.log4j.Logger;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -44,6 +42,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.alert.AlertManager;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.DataCenterVO;
 import com.cloud.dc.HostPodVO;
@@ -88,7 +87,7 @@ public class HighAvailabilityManagerImplTest {
     @Mock
     ServiceOfferingDao _serviceOfferingDao;
     @Mock
-    ManagedContext _managedContext;
+    ClusterManager _clusterMgr;
     @Mock
     AgentManager _agentMgr;
     @Mock
@@ -136,14 +135,6 @@ public class HighAvailabilityManagerImplTest {
             if (injectField.isAnnotationPresent(Inject.class)) {
                 injectField.setAccessible(true);
                 injectField.set(highAvailabilityManager, this.getClass().getDeclaredField(injectField.getName()).get(this));
-            } else if (injectField.getName().equals("_workers")) {
-                injectField.setAccessible(true);
-                for (Class<?> clz : HighAvailabilityManagerImpl.class.getDeclaredClasses()) {
-                    if (clz.getName().equals("com.cloud.ha.HighAvailabilityManagerImpl$WorkerThread")) {
-                        Object obj = Array.newInstance(clz, 0);
-                        injectField.set(highAvailabilityManager, obj);
-                    }
-                }
             } else if (injectField.getName().equals("_maxRetries")) {
                 injectField.setAccessible(true);
                 injectField.set(highAvailabilityManager, 5);
@@ -0,0 +1,186 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.cloudstack.lb.dao.ApplicationLoadBalancerRuleDao;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.cloud.network.dao.GuestIpReservationDao;
+import com.cloud.utils.net.NetUtils;
+import com.cloud.vm.NicVO;
+import com.cloud.vm.dao.NicDao;
+import com.cloud.vm.dao.NicSecondaryIpDao;
+
+public class GuestIpAllocatorTest {
+
+    @Mock
+    NicDao _nicDao;
+    @Mock
+    NicSecondaryIpDao _nicSecondaryIpDao;
+    @Mock
+    ApplicationLoadBalancerRuleDao _appLbRuleDao;
+    @Mock
+    GuestIpReservationDao _reservationDao;
+
+    @InjectMocks
+    GuestIpAllocator _allocator = new GuestIpAllocator();
+
+    Network _network;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        // 10.1.1.1 - 10.1.1.6, the gateway and two nics leave three free addresses
+        _network = mock(Network.class);
+        when(_network.getId()).thenReturn(200L);
+        when(_network.getCidr()).thenReturn("10.1.1.0/29");
+        when(_network.getGateway()).thenReturn("10.1.1.1");
+
+        when(_nicDao.listIpAddressInNetwork(200L)).thenReturn(new ArrayList<String>(Arrays.asList("10.1.1.2", "10.1.1.3")));
+        when(_nicSecondaryIpDao.listSecondaryIpAddressInNetwork(200L)).thenReturn(new ArrayList<String>());
+        when(_appLbRuleDao.listLbIpsBySourceIpNetworkId(200L)).thenReturn(new ArrayList<String>());
+        when(_reservationDao.reserve(anyLong(), anyString())).thenReturn(true);
+    }
+
+    @Test
+    public void testAllocateHandsOutEachFreeAddressOnce() {
+        Set<String> allocated = new HashSet<String>();
+        for (int i = 0; i < 3; i++) {
+            String ip = _allocator.allocate(_network, null);
+            Assert.assertNotNull(ip);
+            Assert.assertTrue(allocated.add(ip));
+            verify(_reservationDao).reserve(200L, ip);
+        }
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("10.1.1.4", "10.1.1.5", "10.1.1.6")), allocated);
+
+        // the nics got persisted, the network is full and the index is read again once before giving up
+        when(_nicDao.listIpAddressInNetwork(200L)).thenReturn(new ArrayList<String>(Arrays.asList("10.1.1.2", "10.1.1.3", "10.1.1.4", "10.1.1.5", "10.1.1.6")));
+        Assert.assertNull(_allocator.allocate(_network, null));
+        verify(_nicDao, times(2)).listIpAddressInNetwork(200L);
+        verify(_reservationDao, times(2)).expire(eq(200L), any(Date.class));
+    }
+
+    @Test
+    public void testAllocateSkipsAddressReservedElsewhere() {
+        when(_reservationDao.reserve(200L, "10.1.1.4")).thenReturn(false);
+        when(_reservationDao.reserve(200L, "10.1.1.5")).thenReturn(false);
+
+        Assert.assertEquals("10.1.1.6", _allocator.allocate(_network, null));
+    }
+
+    @Test
+    public void testAllocateTakesOverReservationOfReleasedAddress() {
+        // every free address is still reserved by nics that have been released since
+        when(_reservationDao.reserve(anyLong(), anyString())).thenReturn(false);
+        when(_reservationDao.takeOver(200L, "10.1.1.5")).thenReturn(true);
+
+        Assert.assertEquals("10.1.1.5", _allocator.allocate(_network, null));
+    }
+
+    @Test
+    public void testAllocateKeepsReservationOfCommittedNic() {
+        _allocator.hasFreeIp(_network);
+        when(_reservationDao.reserve(200L, "10.1.1.4")).thenReturn(false);
+        when(_reservationDao.reserve(200L, "10.1.1.5")).thenReturn(false);
+        // the nics of the reservations were committed while this allocation waited for them
+        when(_nicDao.findByIp4AddressAndNetworkId("10.1.1.4", 200L)).thenReturn(null, mock(NicVO.class));
+        when(_nicDao.findByIp4AddressAndNetworkId("10.1.1.5", 200L)).thenReturn(null, mock(NicVO.class));
+
+        Assert.assertEquals("10.1.1.6", _allocator.allocate(_network, null));
+        verify(_reservationDao, never()).takeOver(anyLong(), anyString());
+    }
+
+    @Test
+    public void testAllocateSkipsAddressUsedSinceIndexed() {
+        _allocator.hasFreeIp(_network);
+        // nics created by another management server after the index was built
+        when(_nicDao.findByIp4AddressAndNetworkId("10.1.1.4", 200L)).thenReturn(mock(NicVO.class));
+        when(_nicDao.findByIp4AddressAndNetworkId("10.1.1.6", 200L)).thenReturn(mock(NicVO.class));
+
+        Assert.assertEquals("10.1.1.5", _allocator.allocate(_network, null));
+        verify(_reservationDao, times(1)).reserve(anyLong(), anyString());
+    }
+
+    @Test
+    public void testAllocateRequestedIp() {
+        Assert.assertEquals("10.1.1.5", _allocator.allocate(_network, "10.1.1.5"));
+        verify(_reservationDao).reserve(200L, "10.1.1.5");
+        when(_nicDao.findByIp4AddressAndNetworkId("10.1.1.5", 200L)).thenReturn(mock(NicVO.class));
+
+        Assert.assertNull(_allocator.allocate(_network, "10.1.1.5"));
+        Assert.assertNull(_allocator.allocate(_network, "10.1.1.2"));
+    }
+
+    @Test
+    public void testAllocateRequestedIpReleasedSinceIndexed() {
+        Assert.assertNull(_allocator.allocate(_network, "10.1.1.3"));
+
+        List<String> remaining = new ArrayList<String>(Arrays.asList("10.1.1.2"));
+        when(_nicDao.listIpAddressInNetwork(200L)).thenReturn(remaining);
+
+        Assert.assertEquals("10.1.1.3", _allocator.allocate(_network, "10.1.1.3"));
+    }
+
+    @Test
+    public void testRequestedIpNotBlockedByStaleReservation() {
+        when(_reservationDao.reserve(200L, "10.1.1.4")).thenReturn(false);
+
+        Assert.assertEquals("10.1.1.4", _allocator.allocate(_network, "10.1.1.4"));
+    }
+
+    @Test
+    public void testGetAvailableIps() {
+        Set<Long> available = _allocator.getAvailableIps(_network, null);
+        Assert.assertEquals(3, available.size());
+        Assert.assertFalse(available.contains(NetUtils.ip2Long("10.1.1.1")));
+        Assert.assertTrue(available.contains(NetUtils.ip2Long("10.1.1.4")));
+
+        Assert.assertNull(_allocator.getAvailableIps(_network, "10.1.1.2"));
+        Assert.assertTrue(_allocator.hasFreeIp(_network));
+    }
+
+    @Test
+    public void testIndexIsRebuiltWhenCidrChanges() {
+        Assert.assertEquals(3, _allocator.getAvailableIps(_network, null).size());
+
+        when(_network.getCidr()).thenReturn("10.1.1.0/28");
+        Assert.assertEquals(11, _allocator.getAvailableIps(_network, null).size());
+    }
+}
@@ -0,0 +1,299 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ManagementServerHost;
+import com.cloud.network.dao.IPAddressDao;
+import com.cloud.network.dao.IPAddressVO;
+
+public class PublicIpLeasePoolTest {
+    private static final Logger s_logger = Logger.getLogger(PublicIpLeasePoolTest.class);
+
+    @Mock
+    IPAddressDao _ipAddressDao;
+    @Mock
+    ClusterManager _clusterMgr;
+
+    FakeIpTable _table;
+    List<PublicIpLeasePool> _pools = new ArrayList<PublicIpLeasePool>();
+
+    /**
+     * user_ip_address of a zone, addresses 1 - n; the first half in vlan 10, the second half in vlan 20
+     */
+    static class FakeIpTable {
+        final IPAddressVO[] _ips;
+        final Long[] _lease;
+        final boolean[] _allocated;
+
+        FakeIpTable(int n) {
+            _ips = new IPAddressVO[n + 1];
+            _lease = new Long[n + 1];
+            _allocated = new boolean[n + 1];
+            for (int id = 1; id <= n; id++) {
+                IPAddressVO ip = mock(IPAddressVO.class);
+                when(ip.getId()).thenReturn((long)id);
+                when(ip.getVlanId()).thenReturn(id <= n / 2 ? 10L : 20L);
+                _ips[id] = ip;
+            }
+        }
+
+        synchronized int lease(long msId, List<Long> vlanDbIds, int count) {
+            int leased = 0;
+            for (int id = 1; id < _ips.length && leased < count; id++) {
+                if (!_allocated[id] && _lease[id] == null && vlanDbIds.contains(_ips[id].getVlanId())) {
+                    _lease[id] = msId;
+                    leased++;
+                }
+            }
+            return leased;
+        }
+
+        synchronized List<IPAddressVO> listLeasedFree(long msId) {
+            List<IPAddressVO> free = new ArrayList<IPAddressVO>();
+            for (int id = 1; id < _ips.length; id++) {
+                if (!_allocated[id] && _lease[id] != null && _lease[id] == msId) {
+                    free.add(_ips[id]);
+                }
+            }
+            return free;
+        }
+
+        synchronized int release(long msId, List<Long> ids) {
+            int released = 0;
+            for (int id = 1; id < _ips.length; id++) {
+                if (_lease[id] != null && _lease[id] == msId && (ids == null || ids.contains((long)id))) {
+                    _lease[id] = null;
+                    released++;
+                }
+            }
+            return released;
+        }
+
+        /**
+         * What fetchNewPublicIp does with the locked row: only a free address is taken, and its lease is cleared
+         */
+        synchronized boolean allocate(long id) {
+            if (_allocated[(int)id]) {
+                return false;
+            }
+            _allocated[(int)id] = true;
+            _lease[(int)id] = null;
+            return true;
+        }
+
+        /**
+         * The search for the first free address done when no leased address is left
+         */
+        synchronized Long allocateFirstFree() {
+            for (int id = 1; id < _ips.length; id++) {
+                if (allocate(id)) {
+                    return (long)id;
+                }
+            }
+            return null;
+        }
+    }
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        _table = new FakeIpTable(1000);
+
+        when(_ipAddressDao.leaseFreeIps(anyLong(), anyLong(), anyListOf(Long.class), anyBoolean(), anyInt())).thenAnswer(new Answer<Integer>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return _table.lease((Long)args[0], (List<Long>)args[2], (Integer)args[4]);
+            }
+        });
+        when(_ipAddressDao.listLeasedFreeIps(anyLong(), anyLong(), anyBoolean())).thenAnswer(new Answer<List<IPAddressVO>>() {
+            @Override
+            public List<IPAddressVO> answer(InvocationOnMock invocation) throws Throwable {
+                return _table.listLeasedFree((Long)invocation.getArguments()[0]);
+            }
+        });
+        when(_ipAddressDao.releaseLeases(anyLong(), anyListOf(Long.class))).thenAnswer(new Answer<Integer>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return _table.release((Long)args[0], (List<Long>)args[1]);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        for (PublicIpLeasePool pool : _pools) {
+            pool.stop();
+        }
+    }
+
+    private PublicIpLeasePool createPool(long msId) throws Exception {
+        PublicIpLeasePool pool = new PublicIpLeasePool();
+        pool._ipAddressDao = _ipAddressDao;
+        pool._clusterMgr = _clusterMgr;
+        pool.configure("PublicIpLeasePool", Collections.<String, Object> emptyMap());
+        pool._msId = msId;
+        _pools.add(pool);
+        return pool;
+    }
+
+    @Test
+    public void testHandsOutLeasedAddressesOnce() throws Exception {
+        PublicIpLeasePool pool = createPool(1L);
+        List<Long> vlans = Arrays.asList(10L, 20L);
+
+        Set<Long> handedOut = new HashSet<Long>();
+        for (int i = 0; i < 40; i++) {
+            Long id = pool.next(1L, false, vlans);
+            Assert.assertNotNull(id);
+            Assert.assertTrue(handedOut.add(id));
+            Assert.assertTrue(_table.allocate(id));
+        }
+        // no more than a block is leased ahead of the allocations
+        Assert.assertTrue(_table.listLeasedFree(1L).size() <= IpAddressManager.PublicIpLeaseBlockSize.value());
+    }
+
+    @Test
+    public void testLeaseOfRemovedVlanIsReleased() throws Exception {
+        PublicIpLeasePool pool = createPool(1L);
+
+        Assert.assertEquals(Long.valueOf(1L), pool.next(1L, false, Arrays.asList(10L)));
+        // vlan 10 got dedicated, its leased addresses are given back
+        Assert.assertEquals(Long.valueOf(501L), pool.next(1L, false, Arrays.asList(20L)));
+        verify(_ipAddressDao, atLeastOnce()).releaseLeases(anyLong(), anyListOf(Long.class));
+        for (IPAddressVO ip : _table.listLeasedFree(1L)) {
+            Assert.assertEquals(20L, ip.getVlanId());
+        }
+    }
+
+    @Test
+    public void testNoVlans() throws Exception {
+        PublicIpLeasePool pool = createPool(1L);
+
+        Assert.assertNull(pool.next(1L, false, new ArrayList<Long>()));
+        verify(_ipAddressDao, never()).leaseFreeIps(anyLong(), anyLong(), anyListOf(Long.class), anyBoolean(), anyInt());
+    }
+
+    @Test
+    public void testLeasesOfLeftNodeAreReleased() throws Exception {
+        PublicIpLeasePool pool = createPool(1L);
+        ManagementServerHost self = mock(ManagementServerHost.class);
+        when(self.getMsid()).thenReturn(1L);
+        ManagementServerHost other = mock(ManagementServerHost.class);
+        when(other.getMsid()).thenReturn(2L);
+
+        pool.onManagementNodeLeft(Arrays.asList(self, other), 1L);
+
+        verify(_ipAddressDao).releaseLeases(2L);
+        verify(_ipAddressDao, never()).releaseLeases(1L);
+    }
+
+    @Test
+    public void testConcurrentAllocationsFromTwoManagementServers() throws Exception {
+        final PublicIpLeasePool[] pools = new PublicIpLeasePool[] {createPool(1L), createPool(2L)};
+        final List<Long> vlans = Arrays.asList(10L, 20L);
+        final int threads = 8;
+        final Set<Long> allocated = Collections.synchronizedSet(new HashSet<Long>());
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger fallbacks = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final List<Set<Long>> handedOut = new ArrayList<Set<Long>>();
+        for (int i = 0; i < pools.length; i++) {
+            handedOut.add(Collections.synchronizedSet(new HashSet<Long>()));
+        }
+
+        for (int t = 0; t < threads; t++) {
+            final int ms = t % pools.length;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (true) {
+                            Long id = pools[ms].next(1L, false, vlans);
+                            if (id != null) {
+                                if (!handedOut.get(ms).add(id)) {
+                                    duplicates.incrementAndGet();
+                                }
+                                if (!_table.allocate(id)) {
+                                    continue;
+                                }
+                            } else {
+                                id = _table.allocateFirstFree();
+                                if (id == null) {
+                                    break;
+                                }
+                                fallbacks.incrementAndGet();
+                            }
+                            if (!allocated.add(id)) {
+                                duplicates.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        Assert.assertEquals(0, duplicates.get());
+        Assert.assertEquals(1000, allocated.size());
+        s_logger.info(String.format("%d public ip allocations from two management servers with %d threads, %.0f/s, %d without a lease",
+                allocated.size(), threads, allocated.size() / seconds, fallbacks.get()));
+    }
+}
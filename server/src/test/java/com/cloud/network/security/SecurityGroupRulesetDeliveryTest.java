@@ -0,0 +1,101 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+
+public class SecurityGroupRulesetDeliveryTest {
+
+    private static SecurityGroupRulesCmd ruleset(long vmId, long seqNum) {
+        return new SecurityGroupRulesCmd("10.10.10.10", null, "aa:aa:aa:aa:aa:aa", "vm-" + vmId, vmId, "sig-" + seqNum, seqNum,
+                new IpPortAndProto[] {new IpPortAndProto("tcp", 22, 22, "10.0.0.1/32")}, new IpPortAndProto[0], new ArrayList<String>());
+    }
+
+    @Test
+    public void testAppliedRulesetIsBaseOfNextUpdate() {
+        SecurityGroupRulesetDelivery delivery = new SecurityGroupRulesetDelivery();
+        SecurityGroupRulesCmd ruleset = ruleset(1L, 5L);
+        delivery.sending(10L, ruleset, false);
+        assertNull(delivery.getApplied(1L, 10L));
+
+        // an answer for an older update does not make the ruleset the base
+        delivery.applied(1L, 4L, 0L);
+        assertNull(delivery.getApplied(1L, 10L));
+
+        delivery.applied(1L, 5L, 0L);
+        assertEquals(ruleset, delivery.getApplied(1L, 10L));
+        assertNull(delivery.getApplied(1L, 11L));
+
+        delivery.failed(1L, true);
+        assertNull(delivery.getApplied(1L, 10L));
+        assertEquals(1, delivery.getOutOfSync());
+    }
+
+    @Test
+    public void testReconnectForgetsAppliedRulesets() {
+        SecurityGroupRulesetDelivery delivery = new SecurityGroupRulesetDelivery();
+        delivery.sending(10L, ruleset(1L, 1L), false);
+        delivery.applied(1L, 1L, 0L);
+        delivery.batchUnsupported(10L);
+        assertFalse(delivery.canBatch(10L));
+
+        delivery.hostConnected(10L);
+        assertTrue(delivery.canBatch(10L));
+        assertNull(delivery.getApplied(1L, 10L));
+        assertEquals(0, delivery.getAppliedCount());
+    }
+
+    @Test
+    public void testBatchAnsweredOnce() {
+        SecurityGroupRulesetDelivery delivery = new SecurityGroupRulesetDelivery();
+        delivery.batchSent(10L, 7L, Arrays.asList(1L, 2L));
+        assertNull(delivery.batchAnswered(10L, 8L));
+        assertEquals(Arrays.asList(1L, 2L), delivery.batchAnswered(10L, 7L));
+        assertNull(delivery.batchAnswered(10L, 7L));
+        assertEquals(1, delivery.getBatchesSent());
+    }
+
+    @Test
+    public void testPropagationEndsWithLastVm() {
+        SecurityGroupRulesetDelivery delivery = new SecurityGroupRulesetDelivery();
+        delivery.scheduled(Arrays.asList(1L, 2L), 1000L);
+        delivery.scheduled(Arrays.asList(3L), 1500L);
+        assertEquals(2, delivery.getPendingPropagations());
+
+        delivery.applied(1L, 1L, 1200L);
+        assertEquals(0, delivery.getPropagations());
+        delivery.forget(2L, 1400L);
+        assertEquals(1, delivery.getPropagations());
+        assertEquals(400, delivery.getLastPropagationMillis());
+
+        delivery.expire(2000L);
+        assertEquals(0, delivery.getPendingPropagations());
+        assertEquals(1, delivery.getExpiredPropagations());
+        assertEquals(400, delivery.getAveragePropagationMillis());
+    }
+}
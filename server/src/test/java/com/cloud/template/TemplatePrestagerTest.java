@@ -0,0 +1,186 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.template;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateDataFactory;
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateInfo;
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateService.TemplateApiResult;
+import org.apache.cloudstack.engine.subsystem.api.storage.VolumeService;
+import org.apache.cloudstack.framework.async.AsyncCallFuture;
+import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
+import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.storage.ScopeType;
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.storage.StoragePoolStatus;
+import com.cloud.storage.VMTemplateStoragePoolVO;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.dao.VMTemplateDao;
+import com.cloud.storage.dao.VMTemplatePoolDao;
+import com.cloud.storage.dao.VolumeDao;
+import com.cloud.utils.Pair;
+
+public class TemplatePrestagerTest {
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    @Mock
+    DataCenterDao _dcDao;
+    @Mock
+    ClusterDao _clusterDao;
+    @Mock
+    PrimaryDataStoreDao _poolDao;
+    @Mock
+    VolumeDao _volumeDao;
+    @Mock
+    VMTemplateDao _templateDao;
+    @Mock
+    VMTemplatePoolDao _templatePoolDao;
+    @Mock
+    TemplateDataFactory _templateFactory;
+    @Mock
+    VolumeService _volumeService;
+    @Mock
+    TemplateManager _templateMgr;
+
+    @InjectMocks
+    TemplatePrestager _prestager = new TemplatePrestager();
+
+    StoragePoolVO _pool;
+    List<VMTemplateStoragePoolVO> _copies = new ArrayList<VMTemplateStoragePoolVO>();
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        _pool = mock(StoragePoolVO.class);
+        when(_pool.getId()).thenReturn(100L);
+        when(_pool.getDataCenterId()).thenReturn(1L);
+        when(_pool.isShared()).thenReturn(true);
+        when(_pool.getScope()).thenReturn(ScopeType.CLUSTER);
+        when(_pool.getClusterId()).thenReturn(5L);
+        when(_poolDao.listByStatusInZone(1L, StoragePoolStatus.Up)).thenReturn(Arrays.asList(_pool));
+        ClusterVO cluster = mock(ClusterVO.class);
+        when(cluster.getHypervisorType()).thenReturn(HypervisorType.KVM);
+        when(_clusterDao.findById(5L)).thenReturn(cluster);
+        when(_templatePoolDao.listByPoolId(100L)).thenReturn(_copies);
+
+        AsyncCallFuture<TemplateApiResult> future = new AsyncCallFuture<TemplateApiResult>();
+        future.complete(new TemplateApiResult(null));
+        when(_volumeService.copyTemplateToPrimaryAsync(any(TemplateInfo.class), anyLong())).thenReturn(future);
+    }
+
+    private VMTemplateVO template(long id, HypervisorType hypervisorType) {
+        VMTemplateVO template = mock(VMTemplateVO.class);
+        when(template.getId()).thenReturn(id);
+        when(template.getFormat()).thenReturn(ImageFormat.QCOW2);
+        when(template.getHypervisorType()).thenReturn(hypervisorType);
+        when(template.getSize()).thenReturn(40 * GB);
+        when(_templateDao.findById(id)).thenReturn(template);
+        when(_templateFactory.getReadyTemplateOnImageStore(id, 1L)).thenReturn(mock(TemplateInfo.class));
+        return template;
+    }
+
+    private VMTemplateStoragePoolVO copy(long templateId, long sizeInGb) {
+        VMTemplateStoragePoolVO copy = mock(VMTemplateStoragePoolVO.class);
+        when(copy.getId()).thenReturn(1000L + templateId);
+        when(copy.getTemplateId()).thenReturn(templateId);
+        when(copy.getPoolId()).thenReturn(100L);
+        when(copy.getTemplateSize()).thenReturn(sizeInGb * GB);
+        _copies.add(copy);
+        return copy;
+    }
+
+    private void deployed(Long... templateIds) {
+        List<Pair<Long, Date>> deploys = new ArrayList<Pair<Long, Date>>();
+        for (Long templateId : templateIds) {
+            template(templateId, HypervisorType.KVM);
+            deploys.add(new Pair<Long, Date>(templateId, new Date()));
+        }
+        when(_volumeDao.listRecentlyDeployedTemplates(eq(1L), any(Date.class))).thenReturn(deploys);
+    }
+
+    @Test
+    public void testCopiesMostDeployedTemplatesWithinBudget() {
+        deployed(10L, 11L, 12L);
+
+        // 3 copies of 40GB do not fit in the 100GB budget
+        Assert.assertEquals(2, _prestager.prestage(1L));
+        verify(_volumeService).copyTemplateToPrimaryAsync(_templateFactory.getReadyTemplateOnImageStore(10L, 1L), 100L);
+        verify(_volumeService).copyTemplateToPrimaryAsync(_templateFactory.getReadyTemplateOnImageStore(11L, 1L), 100L);
+        verify(_volumeService, never()).copyTemplateToPrimaryAsync(_templateFactory.getReadyTemplateOnImageStore(12L, 1L), 100L);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyDeployedUnusedCopy() {
+        deployed(10L);
+        VMTemplateStoragePoolVO first = copy(20L, 30L);
+        VMTemplateStoragePoolVO second = copy(21L, 40L);
+        when(_templateMgr.getUnusedTemplatesInPool(_pool)).thenReturn(Arrays.asList(first, second));
+
+        // 70GB used, the 40GB template needs 10GB more so evicting the first unused copy is enough
+        Assert.assertEquals(1, _prestager.prestage(1L));
+        verify(_templateMgr).evictTemplateFromStoragePool(first);
+        verify(_templateMgr, never()).evictTemplateFromStoragePool(second);
+    }
+
+    @Test
+    public void testKeepsRankedCopyFromGarbageCollection() {
+        deployed(10L);
+        VMTemplateStoragePoolVO staged = copy(10L, 40L);
+        when(staged.getMarkedForGC()).thenReturn(true);
+        when(_templatePoolDao.findByPoolTemplate(100L, 10L)).thenReturn(staged);
+
+        Assert.assertEquals(0, _prestager.prestage(1L));
+        verify(staged).setMarkedForGC(false);
+        verify(_templatePoolDao).update(staged.getId(), staged);
+        verify(_volumeService, never()).copyTemplateToPrimaryAsync(any(TemplateInfo.class), anyLong());
+    }
+
+    @Test
+    public void testSkipsTemplateOfOtherHypervisor() {
+        template(10L, HypervisorType.XenServer);
+        List<Pair<Long, Date>> deploys = new ArrayList<Pair<Long, Date>>();
+        deploys.add(new Pair<Long, Date>(10L, new Date()));
+        when(_volumeDao.listRecentlyDeployedTemplates(eq(1L), any(Date.class))).thenReturn(deploys);
+
+        Assert.assertEquals(0, _prestager.prestage(1L));
+        verify(_volumeService, never()).copyTemplateToPrimaryAsync(any(TemplateInfo.class), anyLong());
+    }
+}
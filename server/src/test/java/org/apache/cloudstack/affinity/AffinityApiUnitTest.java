@@ -33,6 +33,7 @@ import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
 import com.cloud.utils.db.EntityManager;
+import com.cloud.event.ActionEventPublisher;
 import com.cloud.event.ActionEventUtils;
 import com.cloud.user.User;
 import org.apache.cloudstack.affinity.dao.AffinityGroupDao;
@@ -221,6 +222,11 @@ public class AffinityApiUnitTest {
                    useDefaultFilters = false)
     public static class TestConfiguration extends SpringUtils.CloudStackTestConfiguration {
 
+        @Bean
+        public ActionEventPublisher actionEventPublisher() {
+            return Mockito.mock(ActionEventPublisher.class);
+        }
+
         @Bean
         public AccountDao accountDao() {
             return Mockito.mock(AccountDao.class);
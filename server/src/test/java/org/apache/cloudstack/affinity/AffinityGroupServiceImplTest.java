@@ -62,6 +62,7 @@ import org.springframework.test.context.support.AnnotationConfigContextLoader;
 
 import com.cloud.dc.dao.DedicatedResourceDao;
 import com.cloud.domain.dao.DomainDao;
+import com.cloud.event.ActionEventPublisher;
 import com.cloud.event.ActionEventUtils;
 import com.cloud.event.EventVO;
 import com.cloud.event.dao.EventDao;
@@ -282,6 +283,11 @@ public class AffinityGroupServiceImplTest {
     @ComponentScan(basePackageClasses = {AffinityGroupServiceImpl.class, ActionEventUtils.class}, includeFilters = {@Filter(value = TestConfiguration.Library.class, type = FilterType.CUSTOM)}, useDefaultFilters = false)
     public static class TestConfiguration extends SpringUtils.CloudStackTestConfiguration {
 
+        @Bean
+        public ActionEventPublisher actionEventPublisher() {
+            return Mockito.mock(ActionEventPublisher.class);
+        }
+
         @Bean
         public AccountDao accountDao() {
             return Mockito.mock(AccountDao.class);
@@ -0,0 +1,98 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ha;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HAResourceShardsTest {
+
+    private static HAConfig haConfig(final long resourceId, final Long owner) {
+        final HAConfig haConfig = Mockito.mock(HAConfig.class);
+        Mockito.when(haConfig.getResourceId()).thenReturn(resourceId);
+        Mockito.when(haConfig.getManagementServerId()).thenReturn(owner);
+        return haConfig;
+    }
+
+    @Test
+    public void testResourcesAreSpreadOverManagementServers() {
+        final List<Long> ids = Arrays.asList(1L, 2L, 3L);
+        final Map<Long, Integer> counts = new HashMap<>();
+        for (long resourceId = 1; resourceId <= 3000; resourceId++) {
+            final long shard = HAResourceShards.shardOf(resourceId, ids);
+            counts.put(shard, counts.containsKey(shard) ? counts.get(shard) + 1 : 1);
+        }
+        Assert.assertEquals(3, counts.size());
+        for (final Integer count : counts.values()) {
+            Assert.assertTrue(count > 800 && count < 1200);
+        }
+    }
+
+    @Test
+    public void testOnlyResourcesOfLeavingServerMove() {
+        final List<Long> before = Arrays.asList(1L, 2L, 3L);
+        final List<Long> after = Arrays.asList(1L, 3L);
+        for (long resourceId = 1; resourceId <= 1000; resourceId++) {
+            final long shard = HAResourceShards.shardOf(resourceId, before);
+            if (shard != 2L) {
+                Assert.assertEquals(shard, HAResourceShards.shardOf(resourceId, after));
+            }
+        }
+    }
+
+    @Test
+    public void testOwnerThatIsUpChecksResource() {
+        final HAResourceShards shards = new HAResourceShards();
+        shards.setManagementServerIds(Arrays.asList(1L, 2L));
+        final HAConfig haConfig = haConfig(10L, 2L);
+        Assert.assertTrue(shards.isCheckedBy(haConfig, 2L));
+        Assert.assertFalse(shards.isCheckedBy(haConfig, 1L));
+    }
+
+    @Test
+    public void testUnownedResourceIsCheckedByOneServer() {
+        final HAResourceShards shards = new HAResourceShards();
+        shards.setManagementServerIds(Arrays.asList(1L, 2L, 3L));
+        for (long resourceId = 1; resourceId <= 100; resourceId++) {
+            final HAConfig haConfig = haConfig(resourceId, resourceId % 2 == 0 ? null : 4L);
+            int checkers = 0;
+            for (long msId = 1; msId <= 3; msId++) {
+                if (shards.isCheckedBy(haConfig, msId)) {
+                    checkers++;
+                }
+            }
+            Assert.assertEquals(1, checkers);
+        }
+    }
+
+    @Test
+    public void testEveryServerChecksUntilServersAreKnown() {
+        final HAResourceShards shards = new HAResourceShards();
+        final HAConfig haConfig = haConfig(10L, null);
+        Assert.assertTrue(shards.isCheckedBy(haConfig, 1L));
+        Assert.assertTrue(shards.isCheckedBy(haConfig, 2L));
+    }
+}
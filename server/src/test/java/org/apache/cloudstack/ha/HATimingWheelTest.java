@@ -0,0 +1,72 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ha;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HATimingWheelTest {
+
+    @Test
+    public void testDueResourcesAreReturnedOnce() {
+        final HATimingWheel wheel = new HATimingWheel(1000L, 8, 0L);
+        Assert.assertTrue(wheel.scheduleIfAbsent(1L, 1500L));
+        Assert.assertTrue(wheel.scheduleIfAbsent(2L, 3200L));
+        Assert.assertFalse(wheel.scheduleIfAbsent(1L, 2500L));
+        Assert.assertEquals(2, wheel.size());
+
+        Assert.assertTrue(wheel.advance(999L).isEmpty());
+        Assert.assertEquals(Collections.singletonList(1L), wheel.advance(1999L));
+        Assert.assertFalse(wheel.isScheduled(1L));
+        Assert.assertTrue(wheel.advance(2500L).isEmpty());
+        Assert.assertEquals(Collections.singletonList(2L), wheel.advance(3000L));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPastDeadlineIsDueOnNextTick() {
+        final HATimingWheel wheel = new HATimingWheel(1000L, 8, 5000L);
+        wheel.scheduleIfAbsent(1L, 100L);
+        Assert.assertTrue(wheel.advance(5500L).isEmpty());
+        Assert.assertEquals(Collections.singletonList(1L), wheel.advance(6000L));
+    }
+
+    @Test
+    public void testDeadlineBeyondOneRound() {
+        final HATimingWheel wheel = new HATimingWheel(1000L, 4, 0L);
+        wheel.scheduleIfAbsent(1L, 9000L);
+        Assert.assertTrue(wheel.advance(1000L).isEmpty());
+        Assert.assertTrue(wheel.advance(5000L).isEmpty());
+        Assert.assertTrue(wheel.isScheduled(1L));
+        Assert.assertEquals(Collections.singletonList(1L), wheel.advance(9000L));
+    }
+
+    @Test
+    public void testLongPauseVisitsEverySlot() {
+        final HATimingWheel wheel = new HATimingWheel(1000L, 4, 0L);
+        wheel.scheduleIfAbsent(1L, 1000L);
+        wheel.scheduleIfAbsent(2L, 2000L);
+        wheel.scheduleIfAbsent(3L, 3000L);
+        final List<Long> due = wheel.advance(60000L);
+        Collections.sort(due);
+        Assert.assertEquals(Arrays.asList(1L, 2L, 3L), due);
+    }
+}
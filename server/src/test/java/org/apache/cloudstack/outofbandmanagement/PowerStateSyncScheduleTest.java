@@ -0,0 +1,79 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.outofbandmanagement;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class PowerStateSyncScheduleTest {
+
+    private final PowerStateSyncSchedule schedule = new PowerStateSyncSchedule();
+
+    private int polls(final long hostId, final int intervals, final OutOfBandManagement.PowerState powerState) {
+        int polls = 0;
+        for (int i = 0; i < intervals; i++) {
+            if (schedule.begin(hostId)) {
+                polls++;
+                schedule.end(hostId, powerState, 4);
+            }
+        }
+        return polls;
+    }
+
+    @Test
+    public void testHostInFlightIsNotPolledAgain() {
+        Assert.assertTrue(schedule.begin(1L));
+        Assert.assertFalse(schedule.begin(1L));
+        Assert.assertTrue(schedule.begin(2L));
+        schedule.end(1L, null, 4);
+        Assert.assertTrue(schedule.begin(1L));
+    }
+
+    @Test
+    public void testSteadyPowerStateBacksOff() {
+        // polled on intervals 0, 1, 3, 7, 11, 15 and 19
+        Assert.assertEquals(7, polls(1L, 20, OutOfBandManagement.PowerState.On));
+        Assert.assertEquals(4, schedule.getInterval(1L));
+    }
+
+    @Test
+    public void testUnknownPowerStateIsPolledEveryInterval() {
+        Assert.assertEquals(10, polls(1L, 10, OutOfBandManagement.PowerState.Unknown));
+        Assert.assertEquals(10, polls(2L, 10, null));
+    }
+
+    @Test
+    public void testChangeAndResetPollOnNextInterval() {
+        polls(1L, 20, OutOfBandManagement.PowerState.On);
+        Assert.assertEquals(4, schedule.getInterval(1L));
+
+        schedule.reset(1L);
+        Assert.assertTrue(schedule.begin(1L));
+        schedule.end(1L, OutOfBandManagement.PowerState.Off, 4);
+        Assert.assertEquals(1, schedule.getInterval(1L));
+        Assert.assertTrue(schedule.begin(1L));
+    }
+
+    @Test
+    public void testRetainForgetsOtherHosts() {
+        polls(1L, 20, OutOfBandManagement.PowerState.On);
+        schedule.retain(Collections.singletonList(2L));
+        Assert.assertEquals(1, schedule.getInterval(1L));
+    }
+}
@@ -24,6 +24,7 @@ import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Hashtable;
@@ -33,7 +34,11 @@ import java.util.concurrent.Executor;
 
 import org.apache.log4j.xml.DOMConfigurator;
 
+import com.cloud.consoleproxy.util.ImageEncoderPool;
 import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.vnc.nio.VncNioEngine;
+import com.cloud.consoleproxy.websocket.ConsoleProxyRegionEncoder;
+import com.cloud.consoleproxy.websocket.ConsoleProxyWebSocketServer;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.ReflectUtil;
 import com.google.gson.Gson;
@@ -65,6 +70,15 @@ public class ConsoleProxy {
     static Hashtable<String, ConsoleProxyClient> connectionMap = new Hashtable<String, ConsoleProxyClient>();
     static int httpListenPort = 80;
     static int httpCmdListenPort = 8001;
+    static int webSocketListenPort = 0;
+    static String webSocketCodec = "auto";
+    static float webSocketJpegQuality = 0.7f;
+    static int webSocketWindow = 2;
+    static boolean vncNioEngineEnabled = false;
+    static int vncNioSelectorThreads = 2;
+    static int vncNioWorkerThreads = 4;
+    static int imageEncoderThreads = 0;
+    private static VncNioEngine vncNioEngine;
     static int reconnectMaxRetry = 5;
     static int readTimeoutSeconds = 90;
     static int keyboardType = KEYBOARD_RAW;
@@ -130,6 +144,56 @@ public class ConsoleProxy {
             s_logger.info("Setting httpCmdListenPort=" + s);
         }
 
+        s = conf.getProperty("consoleproxy.webSocketListenPort");
+        if (s != null) {
+            webSocketListenPort = Integer.parseInt(s);
+            s_logger.info("Setting webSocketListenPort=" + s);
+        }
+
+        s = conf.getProperty("consoleproxy.webSocketCodec");
+        if (s != null) {
+            webSocketCodec = s;
+            s_logger.info("Setting webSocketCodec=" + s);
+        }
+
+        s = conf.getProperty("consoleproxy.webSocketJpegQuality");
+        if (s != null) {
+            webSocketJpegQuality = Float.parseFloat(s);
+            s_logger.info("Setting webSocketJpegQuality=" + s);
+        }
+
+        s = conf.getProperty("consoleproxy.webSocketWindow");
+        if (s != null) {
+            webSocketWindow = Integer.parseInt(s);
+            s_logger.info("Setting webSocketWindow=" + s);
+        }
+
+        s = conf.getProperty("consoleproxy.vncNioEngine");
+        if (s != null) {
+            vncNioEngineEnabled = Boolean.parseBoolean(s);
+            s_logger.info("Setting vncNioEngine=" + s);
+        }
+
+        s = conf.getProperty("consoleproxy.vncNioSelectorThreads");
+        if (s != null) {
+            vncNioSelectorThreads = Integer.parseInt(s);
+            s_logger.info("Setting vncNioSelectorThreads=" + s);
+        }
+
+        s = conf.getProperty("consoleproxy.vncNioWorkerThreads");
+        if (s != null) {
+            vncNioWorkerThreads = Integer.parseInt(s);
+            s_logger.info("Setting vncNioWorkerThreads=" + s);
+        }
+
+        s = conf.getProperty("consoleproxy.imageEncoderThreads");
+        if (s != null) {
+            imageEncoderThreads = Integer.parseInt(s);
+            s_logger.info("Setting imageEncoderThreads=" + s);
+            if (imageEncoderThreads > 0)
+                ImageEncoderPool.configure(imageEncoderThreads);
+        }
+
         s = conf.getProperty("consoleproxy.reconnectMaxRetry");
         if (s != null) {
             reconnectMaxRetry = Integer.parseInt(s);
@@ -218,6 +282,24 @@ public class ConsoleProxy {
         }
     }
 
+    /**
+     * @return the shared NIO engine for VNC sessions, or null when sessions use a receiver thread each
+     */
+    public static synchronized VncNioEngine getVncNioEngine() {
+        if (!vncNioEngineEnabled)
+            return null;
+
+        if (vncNioEngine == null) {
+            try {
+                vncNioEngine = new VncNioEngine(vncNioSelectorThreads, vncNioWorkerThreads, readTimeoutSeconds * 1000L);
+            } catch (IOException e) {
+                s_logger.error("Unable to start VNC NIO engine, falling back to a thread per session", e);
+                vncNioEngineEnabled = false;
+            }
+        }
+        return vncNioEngine;
+    }
+
     public static void ensureRoute(String address) {
         if (ensureRouteMethod != null) {
             try {
@@ -325,6 +407,12 @@ public class ConsoleProxy {
             s_logger.info("HTTP command port is disabled");
         }
 
+        if (webSocketListenPort > 0) {
+            startupWebSocket();
+        } else {
+            s_logger.info("WebSocket console transport is disabled");
+        }
+
         ConsoleProxyGCThread cthread = new ConsoleProxyGCThread(connectionMap);
         cthread.setName("Console Proxy GC Thread");
         cthread.start();
@@ -351,6 +439,23 @@ public class ConsoleProxy {
         }
     }
 
+    private static void startupWebSocket() {
+        try {
+            ConsoleProxyServerFactory factory = getHttpServerFactory();
+            ServerSocket serverSocket = factory != null ? factory.createSSLServerSocket(webSocketListenPort) : null;
+            if (serverSocket == null)
+                serverSocket = new ServerSocket(webSocketListenPort);
+
+            ConsoleProxyWebSocketServer server = new ConsoleProxyWebSocketServer(serverSocket, ConsoleProxyRegionEncoder.parseCodec(webSocketCodec),
+                    webSocketJpegQuality, webSocketWindow);
+            Thread t = new Thread(server, "Console Proxy WebSocket Listener");
+            t.setDaemon(true);
+            t.start();
+        } catch (Exception e) {
+            s_logger.error("Unable to start WebSocket console transport on port " + webSocketListenPort, e);
+        }
+    }
+
     private static void startupHttpCmdPort() {
         try {
             s_logger.info("Listening for HTTP CMDs on port " + httpCmdListenPort);
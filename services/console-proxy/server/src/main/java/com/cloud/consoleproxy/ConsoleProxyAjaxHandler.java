@@ -72,37 +72,13 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 
         Map<String, String> queryMap = ConsoleProxyHttpHandlerHelper.getQueryMap(queries);
 
-        String host = queryMap.get("host");
-        String portStr = queryMap.get("port");
-        String sid = queryMap.get("sid");
-        String tag = queryMap.get("tag");
-        String ticket = queryMap.get("ticket");
         String ajaxSessionIdStr = queryMap.get("sess");
         String eventStr = queryMap.get("event");
-        String console_url = queryMap.get("consoleurl");
-        String console_host_session = queryMap.get("sessionref");
-        String vm_locale = queryMap.get("locale");
-        String hypervHost = queryMap.get("hypervHost");
-        String username = queryMap.get("username");
-        String password = queryMap.get("password");
-
-        if (tag == null)
-            tag = "";
 
         long ajaxSessionId = 0;
         int event = 0;
 
-        int port;
-
-        if (host == null || portStr == null || sid == null)
-            throw new IllegalArgumentException();
-
-        try {
-            port = Integer.parseInt(portStr);
-        } catch (NumberFormatException e) {
-            s_logger.warn("Invalid number parameter in query string: " + portStr);
-            throw new IllegalArgumentException(e);
-        }
+        ConsoleProxyClientParam param = ConsoleProxyHttpHandlerHelper.getClientParam(queryMap);
 
         if (ajaxSessionIdStr != null) {
             try {
@@ -124,19 +100,6 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 
         ConsoleProxyClient viewer = null;
         try {
-            ConsoleProxyClientParam param = new ConsoleProxyClientParam();
-            param.setClientHostAddress(host);
-            param.setClientHostPort(port);
-            param.setClientHostPassword(sid);
-            param.setClientTag(tag);
-            param.setTicket(ticket);
-            param.setClientTunnelUrl(console_url);
-            param.setClientTunnelSession(console_host_session);
-            param.setLocale(vm_locale);
-            param.setHypervHost(hypervHost);
-            param.setUsername(username);
-            param.setPassword(password);
-
             viewer = ConsoleProxy.getAjaxVncViewer(param, ajaxSessionIdStr);
         } catch (Exception e) {
 
@@ -16,10 +16,7 @@
 // under the License.
 package com.cloud.consoleproxy;
 
-import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Map;
@@ -28,6 +25,7 @@ import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+import com.cloud.consoleproxy.util.ImageHelper;
 import com.cloud.consoleproxy.util.Logger;
 
 public class ConsoleProxyAjaxImageHandler implements HttpHandler {
@@ -120,13 +118,9 @@ public class ConsoleProxyAjaxImageHandler implements HttpHandler {
         ConsoleProxyClient viewer = ConsoleProxy.getVncViewer(param);
 
         if (key == 0) {
-            Image scaledImage = viewer.getClientScaledImage(width, height);
-            BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-            Graphics2D bufImageGraphics = bufferedImage.createGraphics();
-            bufImageGraphics.drawImage(scaledImage, 0, 0, null);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
-            javax.imageio.ImageIO.write(bufferedImage, "jpg", bos);
-            byte[] bs = bos.toByteArray();
+            byte[] bs = viewer.getClientThumbnailJpeg(width, height);
+            if (bs == null)
+                bs = ImageHelper.jpegFromImage(new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR));
             Headers hds = t.getResponseHeaders();
             hds.set("Content-Type", "image/jpeg");
             hds.set("Cache-Control", "no-cache");
@@ -141,7 +135,7 @@ public class ConsoleProxyAjaxImageHandler implements HttpHandler {
 
             if (img != null) {
                 Headers hds = t.getResponseHeaders();
-                hds.set("Content-Type", "image/jpeg");
+                hds.set("Content-Type", ImageHelper.getContentType(img));
                 t.sendResponseHeaders(200, img.length);
 
                 OutputStream os = t.getResponseBody();
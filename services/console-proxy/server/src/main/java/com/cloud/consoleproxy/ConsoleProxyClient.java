@@ -44,6 +44,8 @@ public interface ConsoleProxyClient {
 
     Image getClientScaledImage(int width, int height);                  // client thumbnail support
 
+    byte[] getClientThumbnailJpeg(int width, int height);
+
     String onAjaxClientStart(String title, List<String> languages, String guest);
 
     String onAjaxClientUpdate();
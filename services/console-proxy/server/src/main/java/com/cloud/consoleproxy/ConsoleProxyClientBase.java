@@ -18,10 +18,15 @@ package com.cloud.consoleproxy;
 
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.consoleproxy.util.ImageEncoderPool;
+import com.cloud.consoleproxy.util.ThumbnailTileCache;
+import com.cloud.consoleproxy.util.TileImageCache;
 import com.cloud.consoleproxy.util.TileInfo;
 import com.cloud.consoleproxy.util.TileTracker;
 import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
@@ -36,6 +41,8 @@ import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
 public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, ConsoleProxyClientListener {
     private static final Logger s_logger = Logger.getLogger(ConsoleProxyClientBase.class);
 
+    private static final int TILE_IMAGE_CACHE_BYTES = 512 * 1024;
+
     private static int s_nextClientId = 0;
     protected int clientId = getNextClientId();
 
@@ -45,6 +52,8 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     protected Object tileDirtyEvent = new Object();
     protected TileTracker tracker;
     protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2);
+    protected TileImageCache tileImageCache = new TileImageCache(ImageEncoderPool.getInstance(), TILE_IMAGE_CACHE_BYTES);
+    protected ThumbnailTileCache thumbnailCache;
 
     protected ConsoleProxyClientParam clientParam;
     protected String clientToken;
@@ -56,9 +65,13 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     protected int resizedFramebufferWidth;
     protected int resizedFramebufferHeight;
 
+    // other front ends (WebSocket sessions) tracking the frame buffer on their own
+    protected final List<ConsoleProxyClientListener> frameBufferListeners = new CopyOnWriteArrayList<ConsoleProxyClientListener>();
+
     public ConsoleProxyClientBase() {
         tracker = new TileTracker();
         tracker.initTracking(64, 64, 800, 600);
+        thumbnailCache = new ThumbnailTileCache(64, 64, 800, 600);
     }
 
     //
@@ -94,6 +107,20 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         return null;
     }
 
+    @Override
+    public byte[] getClientThumbnailJpeg(int width, int height) {
+        FrameBufferCanvas canvas = getFrameBufferCavas();
+        if (canvas == null)
+            return null;
+
+        try {
+            return thumbnailCache.getThumbnail(canvas, width, height, ImageEncoderPool.getInstance());
+        } catch (IOException e) {
+            s_logger.info("[ignored] unable to encode thumbnail", e);
+            return null;
+        }
+    }
+
     @Override
     public abstract void sendClientRawKeyboardEvent(InputEventType event, int code, int modifiers);
 
@@ -144,6 +171,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     @Override
     public void onFramebufferSizeChange(int w, int h) {
         tracker.resize(w, h);
+        thumbnailCache.resize(w, h);
 
         synchronized (this) {
             framebufferResized = true;
@@ -152,15 +180,23 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         }
 
         signalTileDirtyEvent();
+
+        for (ConsoleProxyClientListener listener : frameBufferListeners)
+            listener.onFramebufferSizeChange(w, h);
     }
 
     @Override
     public void onFramebufferUpdate(int x, int y, int w, int h) {
         if (s_logger.isTraceEnabled())
             s_logger.trace("Frame buffer update {" + x + "," + y + "," + w + "," + h + "}");
-        tracker.invalidate(new Rectangle(x, y, w, h));
+        Rectangle rect = new Rectangle(x, y, w, h);
+        tracker.invalidate(rect);
+        thumbnailCache.invalidate(rect);
 
         signalTileDirtyEvent();
+
+        for (ConsoleProxyClientListener listener : frameBufferListeners)
+            listener.onFramebufferUpdate(x, y, w, h);
     }
 
     //
@@ -181,18 +217,25 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         return null;
     }
 
+    /**
+     * Tiles whose content the viewer already shows are removed from the list, the update leaves them as they are.
+     */
     private String prepareAjaxImage(List<TileInfo> tiles, boolean init) {
-        byte[] imgBits;
-        if (init)
-            imgBits = getFrameBufferJpeg();
-        else
-            imgBits = getTilesMergedJpeg(tiles, tracker.getTileWidth(), tracker.getTileHeight());
+        byte[] imgBits = null;
+        FrameBufferCanvas canvas = getFrameBufferCavas();
+        if (canvas != null) {
+            if (init)
+                imgBits = tileImageCache.getFrame(canvas, tracker.getTrackWidth(), tracker.getTrackHeight(), tracker.getTileWidth(), tracker.getTileHeight());
+            else
+                imgBits = tileImageCache.getTiles(canvas, tiles, tracker.getTileWidth(), tracker.getTileHeight());
+        }
 
         if (imgBits == null) {
-            s_logger.warn("Unable to generate jpeg image");
+            s_logger.warn("Unable to generate image");
         } else {
             if (s_logger.isTraceEnabled())
-                s_logger.trace("Generated jpeg image size: " + imgBits.length);
+                s_logger.trace("Generated image size: " + imgBits.length + ", tiles: " + tiles.size() + ", cache hits: " + tileImageCache.getHits() + "/" +
+                    tileImageCache.getLookups());
         }
 
         int key = ajaxImageCache.putImage(imgBits);
@@ -338,30 +381,19 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         if (!waitForViewerReady())
             return onAjaxClientDisconnected();
 
-        synchronized (tileDirtyEvent) {
-            if (!dirtyFlag) {
-                try {
-                    tileDirtyEvent.wait(3000);
-                } catch (InterruptedException e) {
-                    s_logger.debug("[ignored] Console proxy ajax update was interupted while waiting for viewer to become ready.");
-                }
-            }
-        }
+        waitForTileDirtyEvent(3000);
 
-        boolean doResize = false;
-        synchronized (this) {
-            if (framebufferResized) {
-                framebufferResized = false;
-                doResize = true;
-            }
-        }
+        boolean doResize = checkFramebufferResized();
 
         List<TileInfo> tiles;
 
-        if (doResize)
+        if (doResize) {
+            // the viewer lays out new tiles, none of them shows what was sent before
+            tileImageCache.reset();
             tiles = tracker.scan(true);
-        else
+        } else {
             tiles = tracker.scan(false);
+        }
         dirtyFlag = false;
 
         String imgUrl = prepareAjaxImage(tiles, false);
@@ -407,6 +439,59 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         }
     }
 
+    /**
+     * Waits until some tiles are invalidated or the timeout expires, the dirty state is
+     * not cleared here, it is up to the caller to scan the tile tracker.
+     */
+    public void waitForTileDirtyEvent(long timeoutMs) {
+        synchronized (tileDirtyEvent) {
+            if (!dirtyFlag) {
+                try {
+                    tileDirtyEvent.wait(timeoutMs);
+                } catch (InterruptedException e) {
+                    s_logger.debug("[ignored] Console proxy was interupted while waiting for tile dirty event.");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true once after the frame buffer has been resized.
+     */
+    public boolean checkFramebufferResized() {
+        synchronized (this) {
+            if (framebufferResized) {
+                framebufferResized = false;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers a front end that keeps its own dirty state, so that it does not consume
+     * the tiles the AJAX client is waiting for.
+     */
+    public void addFrameBufferListener(ConsoleProxyClientListener listener) {
+        frameBufferListeners.add(listener);
+    }
+
+    public void removeFrameBufferListener(ConsoleProxyClientListener listener) {
+        frameBufferListeners.remove(listener);
+    }
+
+    public TileTracker getTileTracker() {
+        return tracker;
+    }
+
+    public FrameBufferCanvas getFrameBufferCanvas() {
+        return getFrameBufferCavas();
+    }
+
+    public boolean isViewerReady() {
+        return waitForViewerReady();
+    }
+
     public void updateFrontEndActivityTime() {
         lastFrontEndActivityTime = System.currentTimeMillis();
     }
@@ -102,6 +102,46 @@ public class ConsoleProxyHttpHandlerHelper {
         return map;
     }
 
+    /**
+     * Builds the client parameters out of a query map returned by {@link #getQueryMap(String)}.
+     *
+     * @throws IllegalArgumentException if the map misses the host, port or sid
+     */
+    public static ConsoleProxyClientParam getClientParam(Map<String, String> queryMap) throws IllegalArgumentException {
+        String host = queryMap.get("host");
+        String portStr = queryMap.get("port");
+        String sid = queryMap.get("sid");
+        String tag = queryMap.get("tag");
+
+        if (tag == null)
+            tag = "";
+
+        if (host == null || portStr == null || sid == null)
+            throw new IllegalArgumentException();
+
+        int port;
+        try {
+            port = Integer.parseInt(portStr);
+        } catch (NumberFormatException e) {
+            s_logger.warn("Invalid number parameter in query string: " + portStr);
+            throw new IllegalArgumentException(e);
+        }
+
+        ConsoleProxyClientParam param = new ConsoleProxyClientParam();
+        param.setClientHostAddress(host);
+        param.setClientHostPort(port);
+        param.setClientHostPassword(sid);
+        param.setClientTag(tag);
+        param.setTicket(queryMap.get("ticket"));
+        param.setClientTunnelUrl(queryMap.get("consoleurl"));
+        param.setClientTunnelSession(queryMap.get("sessionref"));
+        param.setLocale(queryMap.get("locale"));
+        param.setHypervHost(queryMap.get("hypervHost"));
+        param.setUsername(queryMap.get("username"));
+        param.setPassword(queryMap.get("password"));
+        return param;
+    }
+
     private static void guardUserInput(Map<String, String> map) {
         map.remove("host");
         map.remove("port");
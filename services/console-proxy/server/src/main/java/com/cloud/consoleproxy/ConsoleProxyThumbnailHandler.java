@@ -20,7 +20,6 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -32,6 +31,7 @@ import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+import com.cloud.consoleproxy.util.ImageHelper;
 import com.cloud.consoleproxy.util.Logger;
 
 public class ConsoleProxyThumbnailHandler implements HttpHandler {
@@ -163,13 +163,9 @@ public class ConsoleProxyThumbnailHandler implements HttpHandler {
         }
 
         {
-            Image scaledImage = viewer.getClientScaledImage(width, height);
-            BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-            Graphics2D bufImageGraphics = bufferedImage.createGraphics();
-            bufImageGraphics.drawImage(scaledImage, 0, 0, null);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
-            javax.imageio.ImageIO.write(bufferedImage, "jpg", bos);
-            byte[] bs = bos.toByteArray();
+            byte[] bs = viewer.getClientThumbnailJpeg(width, height);
+            if (bs == null)
+                bs = ImageHelper.jpegFromImage(new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR));
             Headers hds = t.getResponseHeaders();
             hds.set("Content-Type", "image/jpeg");
             hds.set("Cache-Control", "no-cache");
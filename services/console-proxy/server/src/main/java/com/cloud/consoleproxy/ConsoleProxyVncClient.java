@@ -25,6 +25,8 @@ import org.apache.log4j.Logger;
 import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
 import com.cloud.consoleproxy.vnc.RfbConstants;
 import com.cloud.consoleproxy.vnc.VncClient;
+import com.cloud.consoleproxy.vnc.VncConnection;
+import com.cloud.consoleproxy.vnc.nio.VncNioEngine;
 
 /**
  *
@@ -44,7 +46,7 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
     private static final int X11_KEY_ALT = 0xffe9;
     private static final int X11_KEY_META = 0xffe7;
 
-    private VncClient client;
+    private VncConnection client;
     private Thread worker;
     private volatile boolean workerDone = false;
 
@@ -75,7 +77,25 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
     public void initClient(ConsoleProxyClientParam param) {
         setClientParam(param);
 
-        client = new VncClient(this);
+        String tunnelUrl = param.getClientTunnelUrl();
+        String tunnelSession = param.getClientTunnelSession();
+        VncNioEngine engine = ConsoleProxy.getVncNioEngine();
+        if (engine != null && (tunnelUrl == null || tunnelUrl.isEmpty() || tunnelSession == null || tunnelSession.isEmpty())) {
+            // direct connections are multiplexed by the NIO engine, tunnelled ones keep a receiver thread
+            try {
+                s_logger.info("Connect to VNC server directly via NIO engine. host: " + getClientHostAddress() + ", port: " + getClientHostPort());
+                ConsoleProxy.ensureRoute(getClientHostAddress());
+                client = engine.connect(getClientHostAddress(), getClientHostPort(), getClientHostPassword(), this);
+            } catch (IOException e) {
+                s_logger.error("Unexpected exception", e);
+                workerDone = true;
+                onClientClose();
+            }
+            return;
+        }
+
+        final VncClient vncClient = new VncClient(this);
+        client = vncClient;
         worker = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -88,7 +108,7 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
                         s_logger.info("Connect to VNC server via tunnel. url: " + tunnelUrl + ", session: " + tunnelSession);
 
                         ConsoleProxy.ensureRoute(uri.getHost());
-                        client.connectTo(
+                        vncClient.connectTo(
                                 uri.getHost(), uri.getPort(),
                                 uri.getPath() + "?" + uri.getQuery(),
                                 tunnelSession, "https".equalsIgnoreCase(uri.getScheme()),
@@ -96,7 +116,7 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
                     } else {
                         s_logger.info("Connect to VNC server directly. host: " + getClientHostAddress() + ", port: " + getClientHostPort());
                         ConsoleProxy.ensureRoute(getClientHostAddress());
-                        client.connectTo(getClientHostAddress(), getClientHostPort(), getClientHostPassword());
+                        vncClient.connectTo(getClientHostAddress(), getClientHostPort(), getClientHostPassword());
                     }
                 } catch (UnknownHostException e) {
                     s_logger.error("Unexpected exception", e);
@@ -108,7 +128,7 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
 
                 s_logger.info("Receiver thread stopped.");
                 workerDone = true;
-                client.getClientListener().onClientClose();
+                vncClient.getClientListener().onClientClose();
             }
         });
 
@@ -130,6 +150,7 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
     @Override
     public void onClientClose() {
         s_logger.info("Received client close indication. remove viewer from map.");
+        workerDone = true;
 
         ConsoleProxy.removeViewer(this);
     }
@@ -137,7 +158,8 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
     @Override
     public void onFramebufferUpdate(int x, int y, int w, int h) {
         super.onFramebufferUpdate(x, y, w, h);
-        client.requestUpdate(false);
+        if (client != null)
+            client.requestUpdate(false);
     }
 
     @Override
@@ -0,0 +1,218 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import com.cloud.consoleproxy.websocket.EncodeBufferPool;
+import com.cloud.consoleproxy.websocket.EncodeBufferPool.EncodeBuffer;
+
+/**
+ * Encodes the images of the AJAX viewer and the thumbnails on a few threads shared by all sessions.
+ * HTTP requests each run on a thread of their own, encoding here bounds the CPU spent on images and
+ * lets every worker keep its JPEG and PNG writers, instead of ImageIO looking up and creating a
+ * writer and a fresh output array per image.
+ */
+public class ImageEncoderPool {
+    private static final Logger s_logger = Logger.getLogger(ImageEncoderPool.class);
+
+    // the quality ImageIO.write() uses
+    public static final float JPEG_QUALITY = 0.75f;
+
+    private static ImageEncoderPool s_instance;
+
+    public enum Format {
+        JPEG("jpg", "image/jpeg"), PNG("png", "image/png");
+
+        private final String formatName;
+        private final String contentType;
+
+        private Format(String formatName, String contentType) {
+            this.formatName = formatName;
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    private static class Writers {
+        private final ImageWriter[] writers = new ImageWriter[Format.values().length];
+        private final ImageWriteParam[] params = new ImageWriteParam[Format.values().length];
+    }
+
+    private final ExecutorService executor;
+    private final EncodeBufferPool buffers;
+    private final ThreadLocal<Writers> writers = new ThreadLocal<Writers>() {
+        @Override
+        protected Writers initialValue() {
+            return new Writers();
+        }
+    };
+
+    private final AtomicLong encodedImages = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong encodeCpuNanos = new AtomicLong();
+
+    /**
+     * Sets the number of encoder threads, takes effect if called before the pool is first used.
+     */
+    public static synchronized void configure(int threads) {
+        if (s_instance == null)
+            s_instance = new ImageEncoderPool(threads, EncodeBufferPool.getInstance());
+    }
+
+    public static synchronized ImageEncoderPool getInstance() {
+        if (s_instance == null)
+            s_instance = new ImageEncoderPool(Math.min(4, Runtime.getRuntime().availableProcessors()), EncodeBufferPool.getInstance());
+        return s_instance;
+    }
+
+    public ImageEncoderPool(int threads, EncodeBufferPool buffers) {
+        this.buffers = buffers;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Image encoder-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Encodes the image on one of the encoder threads, the calling thread waits for the result.
+     */
+    public byte[] encode(final BufferedImage image, final Format format) throws IOException {
+        Future<byte[]> future;
+        try {
+            future = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return encodeInCurrentThread(image, format);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return encodeInCurrentThread(image, format);
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding image", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException("Unable to encode image", e.getCause());
+        }
+    }
+
+    private byte[] encodeInCurrentThread(BufferedImage image, Format format) throws IOException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        boolean cpuTime = threadBean.isCurrentThreadCpuTimeSupported();
+        long startTick = cpuTime ? threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+
+        Writers cached = writers.get();
+        ImageWriter writer = cached.writers[format.ordinal()];
+        if (writer == null) {
+            Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format.formatName);
+            if (!it.hasNext())
+                throw new IOException("No " + format + " image writer available");
+            writer = it.next();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format == Format.JPEG) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            cached.writers[format.ordinal()] = writer;
+            cached.params[format.ordinal()] = param;
+        }
+
+        EncodeBuffer out = buffers.acquire();
+        try {
+            MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+            try {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, null), cached.params[format.ordinal()]);
+            } finally {
+                writer.setOutput(null);
+                ios.close();
+            }
+            byte[] bits = out.toByteArray();
+
+            encodedImages.incrementAndGet();
+            encodedBytes.addAndGet(bits.length);
+            encodeCpuNanos.addAndGet((cpuTime ? threadBean.getCurrentThreadCpuTime() : System.nanoTime()) - startTick);
+            return bits;
+        } catch (IOException e) {
+            // the writer may be left in a bad state, have the next image use a new one
+            writer.dispose();
+            cached.writers[format.ordinal()] = null;
+            throw e;
+        } finally {
+            buffers.release(out);
+        }
+    }
+
+    public long getEncodedImages() {
+        return encodedImages.get();
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    /**
+     * @return CPU time spent encoding, wall clock time where the JVM does not measure thread CPU time
+     */
+    public long getEncodeCpuNanos() {
+        return encodeCpuNanos.get();
+    }
+
+    public void logStats(String prefix) {
+        if (s_logger.isDebugEnabled())
+            s_logger.debug(prefix + " images: " + encodedImages.get() + ", bytes: " + encodedBytes.get() + ", encode CPU ms: " + encodeCpuNanos.get() / 1000000);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -17,16 +17,21 @@
 package com.cloud.consoleproxy.util;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
+import com.cloud.consoleproxy.util.ImageEncoderPool.Format;
+
 public class ImageHelper {
     public static byte[] jpegFromImage(BufferedImage image) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(128000);
-        javax.imageio.ImageIO.write(image, "jpg", bos);
+        return ImageEncoderPool.getInstance().encode(image, Format.JPEG);
+    }
 
-        byte[] jpegBits = bos.toByteArray();
-        bos.close();
-        return jpegBits;
+    /**
+     * @return the content type of an image encoded by the image encoder pool
+     */
+    public static String getContentType(byte[] image) {
+        if (image.length >= 4 && (image[0] & 0xFF) == 0x89 && image[1] == 'P' && image[2] == 'N' && image[3] == 'G')
+            return Format.PNG.getContentType();
+        return Format.JPEG.getContentType();
     }
 }
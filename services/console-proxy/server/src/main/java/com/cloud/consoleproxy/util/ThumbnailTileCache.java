@@ -0,0 +1,115 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+
+import com.cloud.consoleproxy.util.ImageEncoderPool.Format;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+
+/**
+ * The thumbnail of a session, kept as a downscaled copy of the frame buffer in which only the tiles
+ * updated since the last request are scaled again. The encoded thumbnail is reused until a tile changes.
+ */
+public class ThumbnailTileCache {
+    private final TileTracker tracker = new TileTracker();
+
+    private BufferedImage thumbnail;
+    private BufferedImage tileImage;
+    private int[] tilePixels;
+    private byte[] encoded;
+
+    private long requests;
+    private long hits;
+    private long tilesScaled;
+
+    public ThumbnailTileCache(int tileWidth, int tileHeight, int width, int height) {
+        tracker.initTracking(tileWidth, tileHeight, width, height);
+    }
+
+    public void resize(int width, int height) {
+        tracker.resize(width, height);
+    }
+
+    public void invalidate(Rectangle rect) {
+        tracker.invalidate(rect);
+    }
+
+    /**
+     * @return the JPEG thumbnail of the frame buffer with the given size
+     */
+    public synchronized byte[] getThumbnail(FrameBufferCanvas canvas, int width, int height, ImageEncoderPool encoder) throws IOException {
+        requests++;
+        boolean redraw = thumbnail == null || thumbnail.getWidth() != width || thumbnail.getHeight() != height;
+        List<TileInfo> tiles = tracker.scan(redraw);
+        if (tiles.isEmpty() && encoded != null) {
+            hits++;
+            return encoded;
+        }
+
+        if (redraw)
+            thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        if (tileImage == null || tileImage.getWidth() < tracker.getTileWidth() || tileImage.getHeight() < tracker.getTileHeight())
+            tileImage = new BufferedImage(tracker.getTileWidth(), tracker.getTileHeight(), BufferedImage.TYPE_INT_RGB);
+
+        int frameWidth = tracker.getTrackWidth();
+        int frameHeight = tracker.getTrackHeight();
+        Graphics2D g = thumbnail.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            for (TileInfo tile : tiles) {
+                Rectangle rc = tile.getTileRect();
+                // scale the tile edges, not the tile size, so that neighbouring tiles meet without gaps
+                int dx1 = rc.x * width / frameWidth;
+                int dy1 = rc.y * height / frameHeight;
+                int dx2 = (rc.x + rc.width) * width / frameWidth;
+                int dy2 = (rc.y + rc.height) * height / frameHeight;
+                if (dx2 <= dx1 || dy2 <= dy1)
+                    continue;
+
+                tilePixels = canvas.getFrameBufferPixels(rc, tilePixels);
+                tileImage.setRGB(0, 0, rc.width, rc.height, tilePixels, 0, rc.width);
+                g.drawImage(tileImage, dx1, dy1, dx2, dy2, 0, 0, rc.width, rc.height, null);
+                tilesScaled++;
+            }
+        } finally {
+            g.dispose();
+        }
+
+        // the thumbnail has changed, a failed encode must not leave the old image to be served
+        encoded = null;
+        encoded = encoder.encode(thumbnail, Format.JPEG);
+        return encoded;
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getTilesScaled() {
+        return tilesScaled;
+    }
+}
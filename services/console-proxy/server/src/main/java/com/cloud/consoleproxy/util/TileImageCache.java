@@ -0,0 +1,275 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.consoleproxy.util.ImageEncoderPool.Format;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+
+/**
+ * Encoded images of the AJAX viewer of a session, keyed by a hash of the content of the tiles they show.
+ *
+ * Tiles are invalidated for every frame buffer update, also when the update repaints what is already
+ * there. Tiles whose content is the one last sent to the viewer are dropped from an update, and an
+ * update showing content that was encoded before (a blinking cursor, a window toggled back and forth)
+ * reuses that image. Images with few colors (text, desktop chrome) are encoded as palette PNG, the
+ * others as JPEG.
+ */
+public class TileImageCache {
+    private static final Logger s_logger = Logger.getLogger(TileImageCache.class);
+
+    public static final int PALETTE_LIMIT = 256;
+
+    private final ImageEncoderPool encoder;
+    private final int maxCachedBytes;
+
+    private final Map<Long, byte[]> encoded = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+    private int cachedBytes;
+    private final Map<Integer, Long> sentTiles = new HashMap<Integer, Long>();
+
+    private final int[] colorSet = new int[PALETTE_LIMIT * 2];
+    private final byte[] colorIndex = new byte[PALETTE_LIMIT * 2];
+    private int[] tilePixels;
+    private int[] pixels;
+
+    private long lookups;
+    private long hits;
+    private long tilesScanned;
+    private long tilesUnchanged;
+    private long pngImages;
+    private long jpegImages;
+
+    public TileImageCache(ImageEncoderPool encoder, int maxCachedBytes) {
+        this.encoder = encoder;
+        this.maxCachedBytes = maxCachedBytes;
+    }
+
+    /**
+     * Forgets what the viewer was sent, e.g. since it starts over or the frame buffer was resized.
+     */
+    public synchronized void reset() {
+        sentTiles.clear();
+    }
+
+    /**
+     * @return the image of the whole frame buffer for the start of a viewer session
+     */
+    public synchronized byte[] getFrame(FrameBufferCanvas canvas, int width, int height, int tileWidth, int tileHeight) {
+        pixels = canvas.getFrameBufferPixels(new Rectangle(0, 0, width, height), pixels);
+
+        sentTiles.clear();
+        long key = mix(width * 31L + height);
+        for (int y = 0, row = 0; y < height; y += tileHeight, row++) {
+            for (int x = 0, col = 0; x < width; x += tileWidth, col++) {
+                long hash = hash(pixels, y * width + x, width, Math.min(tileWidth, width - x), Math.min(tileHeight, height - y));
+                sentTiles.put(tileKey(row, col), hash);
+                key = mix(key ^ hash);
+            }
+        }
+        tilesScanned += sentTiles.size();
+        return getImage(key, width, height, width);
+    }
+
+    /**
+     * Drops the tiles whose content is the one last sent from the list and returns the image of the
+     * remaining ones, merged side by side the way the AJAX viewer expects them.
+     */
+    public synchronized byte[] getTiles(FrameBufferCanvas canvas, List<TileInfo> tiles, int tileWidth, int tileHeight) {
+        int stride = Math.max(tileWidth, tileWidth * tiles.size());
+        int size = stride * tileHeight;
+        if (pixels == null || pixels.length < size)
+            pixels = new int[size];
+        Arrays.fill(pixels, 0, size, 0);
+
+        long key = mix(tileWidth * 31L + tileHeight);
+        int slot = 0;
+        for (Iterator<TileInfo> it = tiles.iterator(); it.hasNext();) {
+            TileInfo tile = it.next();
+            Rectangle rc = tile.getTileRect();
+            tilePixels = canvas.getFrameBufferPixels(rc, tilePixels);
+            tilesScanned++;
+
+            long hash = hash(tilePixels, 0, rc.width, rc.width, rc.height);
+            Long sent = sentTiles.put(tileKey(tile.getRow(), tile.getCol()), hash);
+            if (sent != null && sent.longValue() == hash) {
+                tilesUnchanged++;
+                it.remove();
+                continue;
+            }
+
+            for (int y = 0; y < rc.height; y++)
+                System.arraycopy(tilePixels, y * rc.width, pixels, y * stride + slot * tileWidth, rc.width);
+            key = mix(key ^ hash);
+            slot++;
+        }
+
+        byte[] image = getImage(key, Math.max(tileWidth, tileWidth * slot), tileHeight, stride);
+        if (image == null) {
+            // the viewer did not get these tiles, do not take them for sent
+            for (TileInfo tile : tiles)
+                sentTiles.remove(tileKey(tile.getRow(), tile.getCol()));
+        }
+        return image;
+    }
+
+    private byte[] getImage(long key, int width, int height, int stride) {
+        lookups++;
+        byte[] image = encoded.get(key);
+        if (image != null) {
+            hits++;
+            return image;
+        }
+
+        try {
+            int colors = countColors(width, height, stride);
+            if (colors <= PALETTE_LIMIT) {
+                image = encoder.encode(toIndexed(width, height, stride, colors), Format.PNG);
+                pngImages++;
+            } else {
+                BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                bufferedImage.setRGB(0, 0, width, height, pixels, 0, stride);
+                image = encoder.encode(bufferedImage, Format.JPEG);
+                jpegImages++;
+            }
+        } catch (IOException e) {
+            s_logger.info("[ignored] unable to encode image tiles", e);
+            return null;
+        }
+
+        if (image.length <= maxCachedBytes) {
+            encoded.put(key, image);
+            cachedBytes += image.length;
+            for (Iterator<byte[]> it = encoded.values().iterator(); cachedBytes > maxCachedBytes && it.hasNext();) {
+                cachedBytes -= it.next().length;
+                it.remove();
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Counts the distinct colors in a small open addressing set, gives up past the palette limit.
+     */
+    private int countColors(int width, int height, int stride) {
+        Arrays.fill(colorSet, -1);
+        int colors = 0;
+        for (int y = 0; y < height; y++) {
+            for (int i = y * stride, end = i + width; i < end; i++) {
+                int slot = findSlot(pixels[i] & 0xFFFFFF);
+                if (colorSet[slot] == -1) {
+                    if (colors == PALETTE_LIMIT)
+                        return colors + 1;
+                    colorSet[slot] = pixels[i] & 0xFFFFFF;
+                    colorIndex[slot] = (byte)colors++;
+                }
+            }
+        }
+        return colors;
+    }
+
+    private int findSlot(int color) {
+        int mask = colorSet.length - 1;
+        int slot = (color * 0x9E3779B1) >>> 23 & mask;
+        while (colorSet[slot] != -1 && colorSet[slot] != color)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private BufferedImage toIndexed(int width, int height, int stride, int colors) {
+        byte[] r = new byte[Math.max(colors, 1)];
+        byte[] g = new byte[r.length];
+        byte[] b = new byte[r.length];
+        for (int slot = 0; slot < colorSet.length; slot++) {
+            int color = colorSet[slot];
+            if (color != -1) {
+                int index = colorIndex[slot] & 0xFF;
+                r[index] = (byte)(color >>> 16);
+                g[index] = (byte)(color >>> 8);
+                b[index] = (byte)color;
+            }
+        }
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, new IndexColorModel(8, r.length, r, g, b));
+        byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        for (int y = 0, j = 0; y < height; y++) {
+            for (int i = y * stride, end = i + width; i < end; i++)
+                data[j++] = colorIndex[findSlot(pixels[i] & 0xFFFFFF)];
+        }
+        return image;
+    }
+
+    private static Integer tileKey(int row, int col) {
+        return (row << 16) | col;
+    }
+
+    private static long hash(int[] pixels, int offset, int stride, int width, int height) {
+        // 64-bit FNV-1a over the RGB values of the rectangle, and its size
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ width) * 0x100000001b3L;
+        hash = (hash ^ height) * 0x100000001b3L;
+        for (int y = 0; y < height; y++) {
+            for (int i = offset + y * stride, end = i + width; i < end; i++)
+                hash = (hash ^ (pixels[i] & 0xFFFFFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    public synchronized long getLookups() {
+        return lookups;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getTilesScanned() {
+        return tilesScanned;
+    }
+
+    public synchronized long getTilesUnchanged() {
+        return tilesUnchanged;
+    }
+
+    public synchronized long getPngImages() {
+        return pngImages;
+    }
+
+    public synchronized long getJpegImages() {
+        return jpegImages;
+    }
+
+    public synchronized int getCachedBytes() {
+        return cachedBytes;
+    }
+}
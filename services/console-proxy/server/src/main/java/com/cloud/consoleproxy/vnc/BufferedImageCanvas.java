@@ -151,4 +151,16 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
         }
         return imgBits;
     }
-}
\ No newline at end of file
+
+    @Override
+    public int[] getFrameBufferPixels(Rectangle rect, int[] buffer) {
+        int size = rect.width * rect.height;
+        if (buffer == null || buffer.length < size)
+            buffer = new int[size];
+
+        synchronized (offlineImage) {
+            offlineImage.getRGB(rect.x, rect.y, rect.width, rect.height, buffer, 0, rect.width);
+        }
+        return buffer;
+    }
+}
@@ -17,6 +17,7 @@
 package com.cloud.consoleproxy.vnc;
 
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.util.List;
 
 import com.cloud.consoleproxy.util.TileInfo;
@@ -27,4 +28,10 @@ public interface FrameBufferCanvas {
     public byte[] getFrameBufferJpeg();
 
     public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight);
+
+    /**
+     * Copies the RGB pixels of a frame buffer rectangle, row by row, into the given buffer.
+     * A new buffer is allocated when the given one is null or too small.
+     */
+    public int[] getFrameBufferPixels(Rectangle rect, int[] buffer);
 }
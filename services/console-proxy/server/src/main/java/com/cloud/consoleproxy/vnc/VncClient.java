@@ -38,7 +38,7 @@ import com.cloud.consoleproxy.util.RawHTTP;
 import com.cloud.consoleproxy.vnc.packet.client.KeyboardEventPacket;
 import com.cloud.consoleproxy.vnc.packet.client.MouseEventPacket;
 
-public class VncClient {
+public class VncClient implements VncConnection {
     private static final Logger s_logger = Logger.getLogger(VncClient.class);
 
     private Socket socket;
@@ -97,6 +97,7 @@ public class VncClient {
         connectTo(host, port, password);
     }
 
+    @Override
     public void shutdown() {
         if (sender != null)
             sender.closeConnection();
@@ -334,7 +335,7 @@ public class VncClient {
      *            a password
      * @return DES hash of password and challenge
      */
-    public byte[] encodePassword(byte[] challenge, String password) throws Exception {
+    public static byte[] encodePassword(byte[] challenge, String password) throws Exception {
         // VNC password consist of up to eight ASCII characters.
         byte[] key = {0, 0, 0, 0, 0, 0, 0, 0}; // Padding
         byte[] passwordAsciiBytes = password.getBytes(RfbConstants.CHARSET);
@@ -430,6 +431,7 @@ public class VncClient {
         }
     }
 
+    @Override
     public FrameBufferCanvas getFrameBufferCanvas() {
         if (receiver != null)
             return receiver.getCanvas();
@@ -437,6 +439,7 @@ public class VncClient {
         return null;
     }
 
+    @Override
     public void requestUpdate(boolean fullUpdate) {
         if (fullUpdate)
             sender.requestFullScreenUpdate();
@@ -444,14 +447,17 @@ public class VncClient {
             sender.imagePaintedOnScreen();
     }
 
+    @Override
     public void sendClientKeyboardEvent(int event, int code, int modifiers) {
         sender.sendClientPacket(new KeyboardEventPacket(event, code));
     }
 
+    @Override
     public void sendClientMouseEvent(int event, int x, int y, int code, int modifiers) {
         sender.sendClientPacket(new MouseEventPacket(event, x, y));
     }
 
+    @Override
     public boolean isHostConnected() {
         return receiver != null && receiver.isConnectionAlive();
     }
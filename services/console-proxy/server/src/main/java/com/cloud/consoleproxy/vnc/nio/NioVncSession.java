@@ -0,0 +1,330 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.vnc.nio;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import com.cloud.consoleproxy.ConsoleProxyClientListener;
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.vnc.BufferedImageCanvas;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+import com.cloud.consoleproxy.vnc.PaintNotificationListener;
+import com.cloud.consoleproxy.vnc.RfbConstants;
+import com.cloud.consoleproxy.vnc.VncConnection;
+import com.cloud.consoleproxy.vnc.VncScreenDescription;
+import com.cloud.consoleproxy.vnc.packet.client.ClientPacket;
+import com.cloud.consoleproxy.vnc.packet.client.FramebufferUpdateRequestPacket;
+import com.cloud.consoleproxy.vnc.packet.client.KeyboardEventPacket;
+import com.cloud.consoleproxy.vnc.packet.client.MouseEventPacket;
+import com.cloud.consoleproxy.vnc.packet.client.SetEncodingsPacket;
+import com.cloud.consoleproxy.vnc.packet.client.SetPixelFormatPacket;
+
+/**
+ * A VNC session driven by {@link VncNioEngine}.
+ *
+ * Incoming data is read into a fixed size buffer and parsed incrementally, raw pixels are copied
+ * straight into the canvas row by row, so no per-update buffers are allocated no matter how large
+ * the update is.
+ */
+public class NioVncSession implements VncConnection, RfbProtocolParser.Handler, PaintNotificationListener {
+    private static final Logger s_logger = Logger.getLogger(NioVncSession.class);
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final VncNioEngine engine;
+    private final VncNioEngine.SelectorLoop loop;
+    private final SocketChannel channel;
+    private final ConsoleProxyClientListener clientListener;
+    private final RfbProtocolParser parser;
+    private final VncScreenDescription screen = new VncScreenDescription();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Queue<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+    private final long connectDeadline;
+
+    private volatile SelectionKey key;
+    private volatile BufferedImageCanvas canvas;
+    private volatile boolean initialized = false;
+    private volatile boolean closed = false;
+    private volatile boolean updateRequestSent = false;
+
+    private final Runnable readTask = new Runnable() {
+        @Override
+        public void run() {
+            processInput();
+        }
+    };
+
+    NioVncSession(VncNioEngine engine, VncNioEngine.SelectorLoop loop, SocketChannel channel, String password, ConsoleProxyClientListener clientListener,
+            long connectDeadline) {
+        this.engine = engine;
+        this.loop = loop;
+        this.channel = channel;
+        this.clientListener = clientListener;
+        this.connectDeadline = connectDeadline;
+        parser = new RfbProtocolParser(password, this);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+        if (closed)
+            key.cancel();
+    }
+
+    void scheduleRead() {
+        engine.execute(readTask);
+    }
+
+    void checkTimeout(long now) {
+        if (!initialized && now > connectDeadline)
+            close("timed out connecting to VNC server");
+    }
+
+    private void processInput() {
+        if (closed)
+            return;
+
+        try {
+            int n;
+            while ((n = channel.read(readBuffer)) > 0) {
+                readBuffer.flip();
+                parser.parse(readBuffer);
+                readBuffer.compact();
+            }
+
+            if (n < 0) {
+                close("connection closed by VNC server");
+                return;
+            }
+            loop.addInterest(this, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close(e.getMessage());
+        } catch (Throwable e) {
+            s_logger.error("Unexpected exception in VNC NIO session", e);
+            close(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes queued data until done or the socket buffer fills up, then waits for write readiness.
+     */
+    void flush() {
+        synchronized (writeQueue) {
+            try {
+                ByteBuffer buf;
+                while ((buf = writeQueue.peek()) != null) {
+                    channel.write(buf);
+                    if (buf.hasRemaining()) {
+                        loop.addInterest(this, SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writeQueue.poll();
+                }
+            } catch (IOException e) {
+                writeQueue.clear();
+                close(e.getMessage());
+            }
+        }
+    }
+
+    private void send(ClientPacket packet) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32);
+        try {
+            packet.write(new DataOutputStream(bos));
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        sendToServer(bos.toByteArray());
+    }
+
+    @Override
+    public void sendToServer(byte[] data) {
+        if (closed)
+            return;
+
+        synchronized (writeQueue) {
+            boolean idle = writeQueue.isEmpty();
+            writeQueue.add(ByteBuffer.wrap(data));
+            if (idle)
+                flush();
+        }
+    }
+
+    public void close(String reason) {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+
+        s_logger.info("VNC NIO session closed: " + reason);
+        parser.close();
+        SelectionKey k = key;
+        if (k != null)
+            k.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            s_logger.info("[ignored] failed to close VNC NIO channel: " + e.getLocalizedMessage());
+        }
+        engine.onSessionClosed();
+
+        if (clientListener != null)
+            clientListener.onClientClose();
+    }
+
+    //
+    // VncConnection
+    //
+    @Override
+    public FrameBufferCanvas getFrameBufferCanvas() {
+        return canvas;
+    }
+
+    @Override
+    public void requestUpdate(boolean fullUpdate) {
+        if (!initialized)
+            return;
+
+        if (fullUpdate) {
+            send(new FramebufferUpdateRequestPacket(RfbConstants.FRAMEBUFFER_FULL_UPDATE_REQUEST, 0, 0, parser.getFramebufferWidth(), parser.getFramebufferHeight()));
+            updateRequestSent = true;
+        } else {
+            imagePaintedOnScreen();
+        }
+    }
+
+    @Override
+    public void imagePaintedOnScreen() {
+        // don't send update request again until we receive next frame buffer update
+        if (!updateRequestSent) {
+            updateRequestSent = true;
+            send(new FramebufferUpdateRequestPacket(RfbConstants.FRAMEBUFFER_INCREMENTAL_UPDATE_REQUEST, 0, 0, parser.getFramebufferWidth(),
+                parser.getFramebufferHeight()));
+        }
+    }
+
+    @Override
+    public void sendClientKeyboardEvent(int event, int code, int modifiers) {
+        if (initialized)
+            send(new KeyboardEventPacket(event, code));
+    }
+
+    @Override
+    public void sendClientMouseEvent(int event, int x, int y, int code, int modifiers) {
+        if (initialized)
+            send(new MouseEventPacket(event, x, y));
+    }
+
+    @Override
+    public boolean isHostConnected() {
+        return initialized && !closed;
+    }
+
+    @Override
+    public void shutdown() {
+        close("shutdown requested");
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    //
+    // RfbProtocolParser.Handler, called on a worker thread
+    //
+    @Override
+    public void onServerInit(int width, int height, boolean rgb888le, String desktopName) {
+        s_logger.info("Connecting to VNC server succeeded, desktop: " + desktopName + ", " + width + "x" + height);
+        screen.setFramebufferSize(width, height);
+        screen.setDesktopName(desktopName);
+        if (clientListener != null)
+            clientListener.onFramebufferSizeChange(width, height);
+
+        canvas = new BufferedImageCanvas(this, width, height);
+        if (!rgb888le)
+            send(new SetPixelFormatPacket(screen, 32, 24, RfbConstants.LITTLE_ENDIAN, RfbConstants.TRUE_COLOR, 255, 255, 255, 16, 8, 0));
+        send(new SetEncodingsPacket(RfbConstants.SUPPORTED_ENCODINGS_ARRAY));
+        initialized = true;
+        requestUpdate(true);
+    }
+
+    @Override
+    public void onFramebufferUpdateBegin(int rectangles) {
+        updateRequestSent = false;
+    }
+
+    @Override
+    public void onRawRows(int x, int y, int width, int rows, int[] pixels) {
+        BufferedImage image = canvas.getOfflineImage();
+        int[] imageBuffer = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        int imageWidth = image.getWidth();
+        int copyWidth = Math.min(width, imageWidth - x);
+        for (int row = 0; row < rows && y + row < image.getHeight() && copyWidth > 0; row++)
+            System.arraycopy(pixels, row * width, imageBuffer, x + (y + row) * imageWidth, copyWidth);
+    }
+
+    @Override
+    public void onCopyRect(int x, int y, int width, int height, int srcX, int srcY) {
+        canvas.getOfflineGraphics().copyArea(srcX, srcY, width, height, x - srcX, y - srcY);
+    }
+
+    @Override
+    public void onDesktopSize(int width, int height) {
+        screen.setFramebufferSize(width, height);
+        canvas.setCanvasSize(width, height);
+        if (clientListener != null)
+            clientListener.onFramebufferSizeChange(width, height);
+    }
+
+    @Override
+    public void onRectangleEnd(int x, int y, int width, int height) {
+        if (clientListener != null)
+            clientListener.onFramebufferUpdate(x, y, width, height);
+    }
+
+    @Override
+    public void onFramebufferUpdateEnd() {
+    }
+
+    @Override
+    public void onBell() {
+    }
+
+    @Override
+    public void onCutText(String text) {
+        if (s_logger.isDebugEnabled())
+            s_logger.debug("Server clipboard buffer: " + text);
+    }
+}
@@ -0,0 +1,417 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.vnc.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.cloud.consoleproxy.vnc.RfbConstants;
+import com.cloud.consoleproxy.vnc.VncClient;
+
+/**
+ * Non-blocking RFB 3.3 client protocol state machine.
+ *
+ * The parser is fed with whatever bytes the socket had to offer and consumes as much as it
+ * can, leaving incomplete units in the buffer for the next call. Raw rectangles are delivered
+ * row by row as soon as whole rows are available, and variable length fields (texts, colour maps)
+ * are consumed in chunks, so the input buffer never has to hold a complete unit. Pixel data is expected in the 32 bit little endian RGB888 format that
+ * the client asks for right after initialization.
+ */
+public class RfbProtocolParser {
+
+    public interface Handler {
+        void sendToServer(byte[] data);
+
+        void onServerInit(int width, int height, boolean rgb888le, String desktopName);
+
+        void onFramebufferUpdateBegin(int rectangles);
+
+        void onRawRows(int x, int y, int width, int rows, int[] pixels);
+
+        void onCopyRect(int x, int y, int width, int height, int srcX, int srcY);
+
+        void onDesktopSize(int width, int height);
+
+        void onRectangleEnd(int x, int y, int width, int height);
+
+        void onFramebufferUpdateEnd();
+
+        void onBell();
+
+        void onCutText(String text);
+    }
+
+    public enum State {
+        VERSION, SECURITY_TYPE, FAILURE_REASON_LENGTH, FAILURE_REASON, AUTH_CHALLENGE, AUTH_RESULT, SERVER_INIT, DESKTOP_NAME, MESSAGE_TYPE, FBU_HEADER, RECT_HEADER, RAW_ROWS, COPY_RECT, COLOUR_MAP_HEADER, COLOUR_MAP_ENTRIES, CUT_TEXT_HEADER, CUT_TEXT, CLOSED
+    }
+
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int MAX_TEXT_LENGTH = 1024 * 1024;
+
+    private final String password;
+    private final Handler handler;
+
+    private State state = State.VERSION;
+    private int fbWidth;
+    private int fbHeight;
+    private boolean rgb888le;
+
+    // in-flight unit lengths
+    private int pendingLength;
+    private int rectanglesLeft;
+    private int rectX, rectY, rectWidth, rectHeight;
+    private int rowsLeft;
+    private int[] rowPixels;
+    private int rowPixelsFilled;
+    private byte[] text;
+    private int textFilled;
+
+    public RfbProtocolParser(String password, Handler handler) {
+        this.password = password;
+        this.handler = handler;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getFramebufferWidth() {
+        return fbWidth;
+    }
+
+    public int getFramebufferHeight() {
+        return fbHeight;
+    }
+
+    /**
+     * Consumes as many complete protocol units as available from the buffer, which must be in read mode.
+     */
+    public void parse(ByteBuffer in) throws IOException {
+        while (state != State.CLOSED && step(in)) {
+            // keep going while progress is made
+        }
+    }
+
+    private boolean step(ByteBuffer in) throws IOException {
+        switch (state) {
+            case VERSION: {
+                if (in.remaining() < 12)
+                    return false;
+                byte[] buf = new byte[12];
+                in.get(buf);
+                String rfbProtocol = new String(buf, RfbConstants.CHARSET);
+                if (!rfbProtocol.contains(RfbConstants.RFB_PROTOCOL_VERSION_MAJOR))
+                    throw new IOException("Cannot handshake with VNC server. Unsupported protocol version: \"" + rfbProtocol + "\".");
+                handler.sendToServer((RfbConstants.RFB_PROTOCOL_VERSION + "\n").getBytes(RfbConstants.CHARSET));
+                state = State.SECURITY_TYPE;
+                return true;
+            }
+
+            case SECURITY_TYPE: {
+                if (in.remaining() < 4)
+                    return false;
+                int authType = in.getInt();
+                switch (authType) {
+                    case RfbConstants.CONNECTION_FAILED:
+                        state = State.FAILURE_REASON_LENGTH;
+                        break;
+                    case RfbConstants.NO_AUTH:
+                        sendClientInit();
+                        break;
+                    case RfbConstants.VNC_AUTH:
+                        state = State.AUTH_CHALLENGE;
+                        break;
+                    default:
+                        throw new IOException("Unsupported VNC protocol authorization scheme, scheme code: " + authType + ".");
+                }
+                return true;
+            }
+
+            case FAILURE_REASON_LENGTH: {
+                if (in.remaining() < 4)
+                    return false;
+                beginText(in.getInt(), "Connection failure reason");
+                state = State.FAILURE_REASON;
+                return true;
+            }
+
+            case FAILURE_REASON: {
+                String reason = readText(in);
+                if (reason == null)
+                    return false;
+                throw new IOException("Authentication to VNC server is failed. Reason: " + reason);
+            }
+
+            case AUTH_CHALLENGE: {
+                if (in.remaining() < 16)
+                    return false;
+                byte[] challenge = new byte[16];
+                in.get(challenge);
+                try {
+                    handler.sendToServer(VncClient.encodePassword(challenge, password));
+                } catch (Exception e) {
+                    throw new IOException("Cannot encrypt client password to send to server: " + e.getMessage());
+                }
+                state = State.AUTH_RESULT;
+                return true;
+            }
+
+            case AUTH_RESULT: {
+                if (in.remaining() < 4)
+                    return false;
+                int authResult = in.getInt();
+                switch (authResult) {
+                    case RfbConstants.VNC_AUTH_OK:
+                        sendClientInit();
+                        break;
+                    case RfbConstants.VNC_AUTH_TOO_MANY:
+                        throw new IOException("Connection to VNC server failed: too many wrong attempts.");
+                    case RfbConstants.VNC_AUTH_FAILED:
+                        throw new IOException("Connection to VNC server failed: wrong password.");
+                    default:
+                        throw new IOException("Connection to VNC server failed, reason code: " + authResult);
+                }
+                return true;
+            }
+
+            case SERVER_INIT: {
+                // width, height, 16 bytes pixel format, name length
+                if (in.remaining() < 24)
+                    return false;
+                fbWidth = in.getShort() & 0xFFFF;
+                fbHeight = in.getShort() & 0xFFFF;
+                int bitsPerPixel = in.get() & 0xFF;
+                int depth = in.get() & 0xFF;
+                int bigEndianFlag = in.get() & 0xFF;
+                int trueColorFlag = in.get() & 0xFF;
+                int redMax = in.getShort() & 0xFFFF;
+                int greenMax = in.getShort() & 0xFFFF;
+                int blueMax = in.getShort() & 0xFFFF;
+                int redShift = in.get() & 0xFF;
+                int greenShift = in.get() & 0xFF;
+                int blueShift = in.get() & 0xFF;
+                in.position(in.position() + 3);
+                beginText(in.getInt(), "Desktop name");
+
+                rgb888le = bitsPerPixel == 32 && depth == 24 && bigEndianFlag == RfbConstants.LITTLE_ENDIAN && trueColorFlag == RfbConstants.TRUE_COLOR &&
+                    redMax == 255 && greenMax == 255 && blueMax == 255 && redShift == 16 && greenShift == 8 && blueShift == 0;
+                state = State.DESKTOP_NAME;
+                return true;
+            }
+
+            case DESKTOP_NAME: {
+                String desktopName = readText(in);
+                if (desktopName == null)
+                    return false;
+                state = State.MESSAGE_TYPE;
+                handler.onServerInit(fbWidth, fbHeight, rgb888le, desktopName);
+                return true;
+            }
+
+            case MESSAGE_TYPE: {
+                if (in.remaining() < 1)
+                    return false;
+                int messageType = in.get() & 0xFF;
+                switch (messageType) {
+                    case RfbConstants.SERVER_FRAMEBUFFER_UPDATE:
+                        state = State.FBU_HEADER;
+                        break;
+                    case RfbConstants.SERVER_SET_COLOURMAP_ENTRIES:
+                        state = State.COLOUR_MAP_HEADER;
+                        break;
+                    case RfbConstants.SERVER_BELL:
+                        handler.onBell();
+                        break;
+                    case RfbConstants.SERVER_CUT_TEXT:
+                        state = State.CUT_TEXT_HEADER;
+                        break;
+                    default:
+                        throw new IOException("Unknown server packet type: " + messageType + ".");
+                }
+                return true;
+            }
+
+            case FBU_HEADER: {
+                if (in.remaining() < 3)
+                    return false;
+                in.get(); // padding
+                rectanglesLeft = in.getShort() & 0xFFFF;
+                handler.onFramebufferUpdateBegin(rectanglesLeft);
+                nextRectangle();
+                return true;
+            }
+
+            case RECT_HEADER: {
+                if (in.remaining() < 12)
+                    return false;
+                rectX = in.getShort() & 0xFFFF;
+                rectY = in.getShort() & 0xFFFF;
+                rectWidth = in.getShort() & 0xFFFF;
+                rectHeight = in.getShort() & 0xFFFF;
+                int encodingType = in.getInt();
+                switch (encodingType) {
+                    case RfbConstants.ENCODING_RAW:
+                        rowsLeft = rectHeight;
+                        rowPixelsFilled = 0;
+                        if (rowPixels == null || rowPixels.length < rectWidth)
+                            rowPixels = new int[Math.max(rectWidth, 64)];
+                        state = State.RAW_ROWS;
+                        if (rowsLeft == 0 || rectWidth == 0)
+                            endRectangle();
+                        break;
+                    case RfbConstants.ENCODING_COPY_RECT:
+                        state = State.COPY_RECT;
+                        break;
+                    case RfbConstants.ENCODING_DESKTOP_SIZE:
+                        fbWidth = rectWidth;
+                        fbHeight = rectHeight;
+                        handler.onDesktopSize(rectWidth, rectHeight);
+                        endRectangle();
+                        break;
+                    default:
+                        throw new IOException("Unsupported encoding: " + encodingType);
+                }
+                return true;
+            }
+
+            case RAW_ROWS: {
+                int available = in.remaining() / BYTES_PER_PIXEL;
+                if (available == 0)
+                    return false;
+
+                // hand out at most a buffer's worth of rows per callback, a row may span several reads
+                int chunkRows = Math.min(rowsLeft, Math.max(1, rowPixels.length / rectWidth));
+                int count = Math.min(available, chunkRows * rectWidth - rowPixelsFilled);
+                for (int i = 0; i < count; i++) {
+                    rowPixels[rowPixelsFilled++] = (in.get() & 0xFF) | ((in.get() & 0xFF) << 8) | ((in.get() & 0xFF) << 16) | ((in.get() & 0xFF) << 24);
+                }
+
+                int rows = rowPixelsFilled / rectWidth;
+                if (rows > 0 && (rows == chunkRows || in.remaining() < BYTES_PER_PIXEL)) {
+                    handler.onRawRows(rectX, rectY + rectHeight - rowsLeft, rectWidth, rows, rowPixels);
+                    rowsLeft -= rows;
+                    // keep the partial row for the next read
+                    rowPixelsFilled -= rows * rectWidth;
+                    System.arraycopy(rowPixels, rows * rectWidth, rowPixels, 0, rowPixelsFilled);
+                    if (rowsLeft == 0)
+                        endRectangle();
+                }
+                return true;
+            }
+
+            case COPY_RECT: {
+                if (in.remaining() < 4)
+                    return false;
+                int srcX = in.getShort() & 0xFFFF;
+                int srcY = in.getShort() & 0xFFFF;
+                handler.onCopyRect(rectX, rectY, rectWidth, rectHeight, srcX, srcY);
+                endRectangle();
+                return true;
+            }
+
+            case COLOUR_MAP_HEADER: {
+                // padding, first colour, number of colours
+                if (in.remaining() < 5)
+                    return false;
+                in.get();
+                in.getShort();
+                pendingLength = (in.getShort() & 0xFFFF) * 6;
+                state = State.COLOUR_MAP_ENTRIES;
+                return true;
+            }
+
+            case COLOUR_MAP_ENTRIES: {
+                // true colour is always requested, colour map entries are skipped as they arrive
+                int skip = Math.min(in.remaining(), pendingLength);
+                in.position(in.position() + skip);
+                pendingLength -= skip;
+                if (pendingLength > 0)
+                    return false;
+                state = State.MESSAGE_TYPE;
+                return true;
+            }
+
+            case CUT_TEXT_HEADER: {
+                if (in.remaining() < 7)
+                    return false;
+                in.position(in.position() + 3);
+                beginText(in.getInt(), "Server cut text");
+                state = State.CUT_TEXT;
+                return true;
+            }
+
+            case CUT_TEXT: {
+                String cutText = readText(in);
+                if (cutText == null)
+                    return false;
+                state = State.MESSAGE_TYPE;
+                handler.onCutText(cutText);
+                return true;
+            }
+
+            default:
+                return false;
+        }
+    }
+
+    public void close() {
+        state = State.CLOSED;
+    }
+
+    private void sendClientInit() {
+        handler.sendToServer(new byte[] {(byte)RfbConstants.EXCLUSIVE_ACCESS});
+        state = State.SERVER_INIT;
+    }
+
+    private void beginText(int length, String what) throws IOException {
+        if (length < 0 || length > MAX_TEXT_LENGTH)
+            throw new IOException(what + " is too large: " + length);
+        text = new byte[length];
+        textFilled = 0;
+    }
+
+    /**
+     * Collects the text started by {@link #beginText(int, String)} across reads.
+     *
+     * @return the text once complete, null if the buffer ran out before
+     */
+    private String readText(ByteBuffer in) {
+        int n = Math.min(in.remaining(), text.length - textFilled);
+        in.get(text, textFilled, n);
+        textFilled += n;
+        if (textFilled < text.length)
+            return null;
+
+        String s = new String(text, RfbConstants.CHARSET);
+        text = null;
+        return s;
+    }
+
+    private void nextRectangle() {
+        if (rectanglesLeft-- > 0) {
+            state = State.RECT_HEADER;
+        } else {
+            state = State.MESSAGE_TYPE;
+            handler.onFramebufferUpdateEnd();
+        }
+    }
+
+    private void endRectangle() {
+        handler.onRectangleEnd(rectX, rectY, rectWidth, rectHeight);
+        nextRectangle();
+    }
+}
@@ -0,0 +1,255 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.vnc.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cloud.consoleproxy.ConsoleProxyClientListener;
+import com.cloud.consoleproxy.util.Logger;
+
+/**
+ * Multiplexes many VNC sessions over a few selector threads.
+ *
+ * Selector threads only watch for readiness. When a session becomes readable its read interest
+ * is dropped and the session drains and parses its socket on the shared worker pool, then asks
+ * its selector to watch it again. A session is therefore never parsed by two threads at the same
+ * time and a slow session cannot stall the others on the same selector. Outbound messages are
+ * written directly by the sending thread and only fall back to write interest when the socket
+ * buffer is full.
+ */
+public class VncNioEngine {
+    private static final Logger s_logger = Logger.getLogger(VncNioEngine.class);
+
+    private static final long SELECT_TIMEOUT_MS = 1000;
+
+    private final SelectorLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final long connectTimeoutMs;
+    private volatile boolean running = true;
+
+    public VncNioEngine(int selectorThreads, int workerThreads, long connectTimeoutMs) throws IOException {
+        this.connectTimeoutMs = connectTimeoutMs;
+        workers = Executors.newFixedThreadPool(Math.max(1, workerThreads), new NamedThreadFactory("VNC NIO worker"));
+
+        loops = new SelectorLoop[Math.max(1, selectorThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(Selector.open());
+            Thread t = new Thread(loops[i], "VNC NIO selector-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        s_logger.info("Started VNC NIO engine with " + loops.length + " selector threads and " + Math.max(1, workerThreads) + " worker threads");
+    }
+
+    /**
+     * Starts connecting to a VNC server, the handshake completes asynchronously. The listener is told
+     * about the frame buffer size once the server is initialized, and about the close of the session.
+     */
+    public NioVncSession connect(String host, int port, String password, ConsoleProxyClientListener listener) throws IOException {
+        if (!running)
+            throw new IOException("VNC NIO engine is stopped");
+
+        s_logger.info("Connecting to VNC server " + host + ":" + port + " via NIO engine");
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+            NioVncSession session = new NioVncSession(this, loop, channel, password, listener, System.currentTimeMillis() + connectTimeoutMs);
+            boolean connected = channel.connect(new InetSocketAddress(host, port));
+            activeSessions.incrementAndGet();
+            loop.register(session, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+            return session;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    void onSessionClosed() {
+        activeSessions.decrementAndGet();
+    }
+
+    void execute(Runnable task) {
+        workers.execute(task);
+    }
+
+    public void stop() {
+        running = false;
+        for (SelectorLoop loop : loops)
+            loop.stop();
+        workers.shutdown();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            s_logger.debug("[ignored] interrupted while waiting for VNC NIO workers to stop");
+        }
+    }
+
+    /**
+     * One selector thread and the sessions registered with it. Interest changes requested by
+     * other threads are queued and applied by the selector thread itself.
+     */
+    class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(final NioVncSession session, final int ops) {
+            enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session.setKey(session.getChannel().register(selector, ops, session));
+                    } catch (IOException e) {
+                        session.close("unable to register with selector: " + e.getMessage());
+                    }
+                }
+            });
+        }
+
+        void addInterest(final NioVncSession session, final int ops) {
+            enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    SelectionKey key = session.getKey();
+                    if (key != null && key.isValid())
+                        key.interestOps(key.interestOps() | ops);
+                }
+            });
+        }
+
+        private void enqueue(Runnable task) {
+            pending.add(task);
+            selector.wakeup();
+        }
+
+        void stop() {
+            try {
+                selector.wakeup();
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioVncSession)
+                        ((NioVncSession)key.attachment()).close("engine stopped");
+                }
+                selector.close();
+            } catch (ClosedSelectorException | IOException e) {
+                s_logger.debug("[ignored] error closing VNC NIO selector: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastTimeoutCheck = System.currentTimeMillis();
+            while (running && selector.isOpen()) {
+                try {
+                    selector.select(SELECT_TIMEOUT_MS);
+
+                    Runnable task;
+                    while ((task = pending.poll()) != null)
+                        task.run();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handleKey(key);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastTimeoutCheck >= SELECT_TIMEOUT_MS) {
+                        lastTimeoutCheck = now;
+                        for (SelectionKey key : selector.keys())
+                            ((NioVncSession)key.attachment()).checkTimeout(now);
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (Throwable e) {
+                    s_logger.error("Unexpected exception in VNC NIO selector loop", e);
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            final NioVncSession session = (NioVncSession)key.attachment();
+            try {
+                if (!key.isValid())
+                    return;
+
+                if (key.isConnectable()) {
+                    if (session.getChannel().finishConnect())
+                        key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+
+                if (key.isWritable()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            session.flush();
+                        }
+                    });
+                }
+
+                if (key.isValid() && key.isReadable()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    session.scheduleRead();
+                }
+            } catch (IOException e) {
+                session.close(e.getMessage());
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.websocket;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.Region;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+import com.cloud.consoleproxy.websocket.EncodeBufferPool.EncodeBuffer;
+
+/**
+ * Encodes dirty frame buffer regions into binary WebSocket update messages.
+ *
+ * Update message layout (big endian):
+ * <pre>
+ *   byte  type (MSG_UPDATE)
+ *   int   sequence, echoed back by the client as its acknowledgement
+ *   short rectangle count
+ *   per rectangle: short x, short y, short width, short height, byte codec, int length, byte[length] data
+ * </pre>
+ * RAW data is packed 24-bit RGB, ZLIB is the deflated RAW data and JPEG is a baseline JPEG image.
+ *
+ * With automatic codec choice, small regions go RAW, regions with few distinct colors
+ * (text, desktop chrome) go ZLIB and the rest (pictures, video) go JPEG.
+ * An encoder keeps per-session state and is not thread safe.
+ */
+public class ConsoleProxyRegionEncoder {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyRegionEncoder.class);
+
+    public static final int MSG_UPDATE = 1;
+    public static final int MSG_RESIZE = 2;
+
+    public static final int RAW_MAX_PIXELS = 1024;
+    public static final int PALETTE_LIMIT = 64;
+
+    public enum Codec {
+        RAW(0), ZLIB(1), JPEG(2);
+
+        private final int id;
+
+        private Codec(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+    }
+
+    private final Codec forcedCodec;
+    private final float jpegQuality;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final int[] colorSet = new int[PALETTE_LIMIT * 4];
+
+    private int[] pixels;
+    private byte[] rgb;
+    private byte[] deflateBuffer = new byte[16 * 1024];
+    private BufferedImage jpegImage;
+    private ImageWriter jpegWriter;
+    private ImageWriteParam jpegParam;
+
+    private long encodedRects;
+    private long encodedBytes;
+    private long encodeNanos;
+    private final long[] codecRects = new long[Codec.values().length];
+
+    /**
+     * @param forcedCodec codec to use for all regions, null to choose per region
+     */
+    public ConsoleProxyRegionEncoder(Codec forcedCodec, float jpegQuality) {
+        this.forcedCodec = forcedCodec;
+        this.jpegQuality = jpegQuality;
+    }
+
+    public static Codec parseCodec(String codec) {
+        if (codec == null || codec.isEmpty() || "auto".equalsIgnoreCase(codec))
+            return null;
+        return Codec.valueOf(codec.toUpperCase());
+    }
+
+    /**
+     * Appends an update message for the given regions to the buffer.
+     *
+     * @return the number of rectangles encoded.
+     */
+    public int encodeUpdate(FrameBufferCanvas canvas, List<Region> regions, int seq, int fbWidth, int fbHeight, EncodeBuffer out) throws IOException {
+        long startTick = System.nanoTime();
+        int start = out.size();
+
+        out.write(MSG_UPDATE);
+        out.writeInt(seq);
+        int countPos = out.size();
+        out.writeShort(0);
+
+        int count = 0;
+        Rectangle screen = new Rectangle(0, 0, fbWidth, fbHeight);
+        for (Region region : regions) {
+            Rectangle rc = region.getBound().intersection(screen);
+            if (rc.isEmpty())
+                continue;
+
+            encodeRect(canvas, rc, out);
+            count++;
+        }
+
+        byte[] buf = out.getBuffer();
+        buf[countPos] = (byte)(count >>> 8);
+        buf[countPos + 1] = (byte)count;
+
+        encodedRects += count;
+        encodedBytes += out.size() - start;
+        encodeNanos += System.nanoTime() - startTick;
+        return count;
+    }
+
+    public static void encodeResize(int seq, int width, int height, int tileWidth, int tileHeight, EncodeBuffer out) {
+        out.write(MSG_RESIZE);
+        out.writeInt(seq);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.writeShort(tileWidth);
+        out.writeShort(tileHeight);
+    }
+
+    private void encodeRect(FrameBufferCanvas canvas, Rectangle rc, EncodeBuffer out) throws IOException {
+        int count = rc.width * rc.height;
+        pixels = canvas.getFrameBufferPixels(rc, pixels);
+
+        Codec codec = forcedCodec != null ? forcedCodec : classify(pixels, count);
+
+        out.writeShort(rc.x);
+        out.writeShort(rc.y);
+        out.writeShort(rc.width);
+        out.writeShort(rc.height);
+        int codecPos = out.size();
+        out.write(codec.getId());
+        int lengthPos = out.size();
+        out.writeInt(0);
+
+        if (codec == Codec.JPEG) {
+            writeJpeg(rc, out);
+        } else {
+            int rawLength = toRgb(pixels, count);
+            if (codec == Codec.ZLIB && !writeZlib(rawLength, out)) {
+                // incompressible content, not worth the inflate on the client side
+                codec = Codec.RAW;
+                out.getBuffer()[codecPos] = (byte)codec.getId();
+            }
+            if (codec == Codec.RAW)
+                out.write(rgb, 0, rawLength);
+        }
+
+        out.putInt(lengthPos, out.size() - lengthPos - 4);
+        codecRects[codec.ordinal()]++;
+    }
+
+    protected Codec classify(int[] pixels, int count) {
+        if (count <= RAW_MAX_PIXELS)
+            return Codec.RAW;
+
+        // count distinct colors in a small open addressing set, give up past the palette limit
+        Arrays.fill(colorSet, -1);
+        int colors = 0;
+        int mask = colorSet.length - 1;
+        for (int i = 0; i < count; i++) {
+            int color = pixels[i] & 0xFFFFFF;
+            int slot = (color * 0x9E3779B1) >>> 24 & mask;
+            while (colorSet[slot] != -1 && colorSet[slot] != color)
+                slot = (slot + 1) & mask;
+            if (colorSet[slot] == -1) {
+                if (++colors > PALETTE_LIMIT)
+                    return Codec.JPEG;
+                colorSet[slot] = color;
+            }
+        }
+        return Codec.ZLIB;
+    }
+
+    private int toRgb(int[] pixels, int count) {
+        int length = count * 3;
+        if (rgb == null || rgb.length < length)
+            rgb = new byte[length];
+
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            int p = pixels[i];
+            rgb[j++] = (byte)(p >>> 16);
+            rgb[j++] = (byte)(p >>> 8);
+            rgb[j++] = (byte)p;
+        }
+        return length;
+    }
+
+    private boolean writeZlib(int rawLength, EncodeBuffer out) {
+        int start = out.size();
+        deflater.reset();
+        deflater.setInput(rgb, 0, rawLength);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(deflateBuffer);
+            out.write(deflateBuffer, 0, n);
+            if (out.size() - start >= rawLength) {
+                // roll back, the caller falls back to RAW
+                truncate(out, start);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeJpeg(Rectangle rc, EncodeBuffer out) throws IOException {
+        if (jpegImage == null || jpegImage.getWidth() != rc.width || jpegImage.getHeight() != rc.height)
+            jpegImage = new BufferedImage(rc.width, rc.height, BufferedImage.TYPE_INT_RGB);
+        jpegImage.setRGB(0, 0, rc.width, rc.height, pixels, 0, rc.width);
+
+        ImageWriter writer = getJpegWriter();
+        MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(jpegImage, null, null), jpegParam);
+        } finally {
+            writer.setOutput(null);
+            ios.close();
+        }
+    }
+
+    private ImageWriter getJpegWriter() {
+        if (jpegWriter == null) {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+            if (!writers.hasNext())
+                throw new IllegalStateException("No JPEG image writer available");
+            jpegWriter = writers.next();
+            jpegParam = jpegWriter.getDefaultWriteParam();
+            jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            jpegParam.setCompressionQuality(jpegQuality);
+        }
+        return jpegWriter;
+    }
+
+    private static void truncate(EncodeBuffer out, int size) {
+        // ByteArrayOutputStream has no truncate, rewind by resetting and re-writing the kept prefix
+        byte[] buf = out.getBuffer();
+        out.reset();
+        out.write(buf, 0, size);
+    }
+
+    public void close() {
+        deflater.end();
+        if (jpegWriter != null)
+            jpegWriter.dispose();
+    }
+
+    public long getEncodedRects() {
+        return encodedRects;
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    public long getCodecRects(Codec codec) {
+        return codecRects[codec.ordinal()];
+    }
+
+    public void logStats(String prefix) {
+        if (s_logger.isDebugEnabled())
+            s_logger.debug(prefix + " rects: " + encodedRects + ", bytes: " + encodedBytes + ", encode ms: " + encodeNanos / 1000000 + ", raw/zlib/jpeg: "
+                + codecRects[Codec.RAW.ordinal()] + "/" + codecRects[Codec.ZLIB.ordinal()] + "/" + codecRects[Codec.JPEG.ordinal()]);
+    }
+}
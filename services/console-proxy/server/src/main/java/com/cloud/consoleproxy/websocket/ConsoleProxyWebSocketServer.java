@@ -0,0 +1,191 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.websocket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cloud.consoleproxy.ConsoleProxy;
+import com.cloud.consoleproxy.ConsoleProxyClient;
+import com.cloud.consoleproxy.ConsoleProxyClientBase;
+import com.cloud.consoleproxy.ConsoleProxyClientParam;
+import com.cloud.consoleproxy.ConsoleProxyHttpHandlerHelper;
+import com.cloud.consoleproxy.util.Logger;
+
+/**
+ * Accepts WebSocket connections for the console viewer.
+ *
+ * The upgrade request carries the same query string as the AJAX viewer, e.g.
+ * <code>/websocket?token=...&amp;sess=...</code>, and attaches to the same viewer object.
+ */
+public class ConsoleProxyWebSocketServer implements Runnable {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyWebSocketServer.class);
+
+    private static final int MAX_REQUEST_HEADER = 16 * 1024;
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+    private final ServerSocket serverSocket;
+    private final ConsoleProxyRegionEncoder.Codec codec;
+    private final float jpegQuality;
+    private final int window;
+
+    public ConsoleProxyWebSocketServer(ServerSocket serverSocket, ConsoleProxyRegionEncoder.Codec codec, float jpegQuality, int window) {
+        this.serverSocket = serverSocket;
+        this.codec = codec;
+        this.jpegQuality = jpegQuality;
+        this.window = window;
+    }
+
+    @Override
+    public void run() {
+        s_logger.info("Listening for WebSocket console connections on port " + serverSocket.getLocalPort());
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                }, "WebSocket session " + socket.getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            } catch (SocketException e) {
+                if (!serverSocket.isClosed())
+                    s_logger.warn("WebSocket listener error: " + e.getMessage());
+            } catch (IOException e) {
+                s_logger.warn("Unable to accept WebSocket connection: " + e.getMessage());
+            }
+        }
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            s_logger.debug("[ignored] error closing WebSocket listener: " + e.getMessage());
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            InputStream is = new BufferedInputStream(socket.getInputStream());
+            OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+
+            Map<String, String> headers = new HashMap<String, String>();
+            String requestLine = readRequestHeader(is, headers);
+            String key = headers.get("sec-websocket-key");
+            if (requestLine == null || key == null || !"websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                writeStatus(os, "400 Bad Request");
+                socket.close();
+                return;
+            }
+
+            ConsoleProxyClientBase viewer = getViewer(requestLine);
+            if (viewer == null) {
+                writeStatus(os, "403 Forbidden");
+                socket.close();
+                return;
+            }
+
+            String response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: " +
+                WebSocketFrames.getAcceptKey(key) + "\r\n\r\n";
+            os.write(response.getBytes(StandardCharsets.US_ASCII));
+            os.flush();
+            socket.setSoTimeout(0);
+
+            new ConsoleProxyWebSocketSession(is, os, viewer, new ConsoleProxyRegionEncoder(codec, jpegQuality), window).run();
+        } catch (Throwable e) {
+            s_logger.warn("WebSocket connection from " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                s_logger.debug("[ignored] error closing WebSocket connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private ConsoleProxyClientBase getViewer(String requestLine) {
+        // GET /websocket?token=... HTTP/1.1
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || !"GET".equals(parts[0]))
+            return null;
+        int queryStart = parts[1].indexOf('?');
+        if (queryStart < 0)
+            return null;
+
+        try {
+            Map<String, String> queryMap = ConsoleProxyHttpHandlerHelper.getQueryMap(parts[1].substring(queryStart + 1));
+            ConsoleProxyClientParam param = ConsoleProxyHttpHandlerHelper.getClientParam(queryMap);
+            ConsoleProxyClient viewer = ConsoleProxy.getAjaxVncViewer(param, queryMap.get("sess"));
+            if (viewer instanceof ConsoleProxyClientBase)
+                return (ConsoleProxyClientBase)viewer;
+        } catch (Exception e) {
+            s_logger.warn("Failed to attach WebSocket to viewer due to " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Reads the HTTP request line and headers, header names are lower-cased.
+     */
+    protected static String readRequestHeader(InputStream is, Map<String, String> headers) throws IOException {
+        StringBuilder line = new StringBuilder();
+        String requestLine = null;
+        int total = 0;
+        int c;
+        while ((c = is.read()) >= 0) {
+            if (++total > MAX_REQUEST_HEADER)
+                throw new IOException("WebSocket handshake request is too large");
+            if (c == '\r')
+                continue;
+            if (c != '\n') {
+                line.append((char)c);
+                continue;
+            }
+
+            if (line.length() == 0)
+                return requestLine;
+            if (requestLine == null) {
+                requestLine = line.toString();
+            } else {
+                int colon = line.indexOf(":");
+                if (colon > 0)
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+            line.setLength(0);
+        }
+        return null;
+    }
+
+    private static void writeStatus(OutputStream os, String status) throws IOException {
+        os.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+    }
+}
@@ -0,0 +1,327 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.websocket;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.consoleproxy.ConsoleProxyClientBase;
+import com.cloud.consoleproxy.ConsoleProxyClientListener;
+import com.cloud.consoleproxy.InputEventType;
+import com.cloud.consoleproxy.util.ITileScanListener;
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.Region;
+import com.cloud.consoleproxy.util.TileTracker;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+import com.cloud.consoleproxy.websocket.EncodeBufferPool.EncodeBuffer;
+
+/**
+ * Streams frame buffer updates of one viewer over an established WebSocket.
+ *
+ * Updates are pushed as binary messages built by {@link ConsoleProxyRegionEncoder}. The client
+ * acknowledges each update with a text message "ack &lt;seq&gt;"; at most <code>window</code>
+ * updates are left unacknowledged, further damage accumulates in the tile tracker and goes out
+ * merged with the next update. Input comes in as text messages:
+ * <pre>
+ *   key &lt;event&gt; &lt;code&gt; &lt;modifiers&gt;
+ *   mouse &lt;event&gt; &lt;x&gt; &lt;y&gt; &lt;code&gt; &lt;modifiers&gt;
+ * </pre>
+ * with event codes of {@link InputEventType}.
+ *
+ * The session tracks dirty tiles in its own {@link TileTracker}, fed by the viewer's frame buffer
+ * updates, so an AJAX client attached to the same viewer keeps receiving its own updates.
+ */
+public class ConsoleProxyWebSocketSession implements Runnable, ConsoleProxyClientListener {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyWebSocketSession.class);
+
+    private static final int MAX_CLIENT_MESSAGE = 64 * 1024;
+    private static final long DIRTY_WAIT_MS = 1000;
+
+    private final InputStream is;
+    private final OutputStream os;
+    private final ConsoleProxyClientBase viewer;
+    private final ConsoleProxyRegionEncoder encoder;
+    private final int window;
+
+    private final Object ackLock = new Object();
+    private int sentSeq = 0;
+    private int ackedSeq = 0;
+    private volatile boolean closed = false;
+
+    private final TileTracker tracker = new TileTracker();
+    private final Object dirtyEvent = new Object();
+    private boolean dirty = false;
+    private boolean resized = false;
+    private int resizedWidth;
+    private int resizedHeight;
+
+    public ConsoleProxyWebSocketSession(InputStream is, OutputStream os, ConsoleProxyClientBase viewer, ConsoleProxyRegionEncoder encoder, int window) {
+        this.is = is;
+        this.os = os;
+        this.viewer = viewer;
+        this.encoder = encoder;
+        this.window = Math.max(1, window);
+    }
+
+    @Override
+    public void run() {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "WebSocket reader " + viewer.getClientId());
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            if (!viewer.isViewerReady()) {
+                s_logger.info("Viewer " + viewer.getClientId() + " is not ready, closing WebSocket session");
+                return;
+            }
+
+            TileTracker viewerTracker = viewer.getTileTracker();
+            tracker.initTracking(viewerTracker.getTileWidth(), viewerTracker.getTileHeight(), viewerTracker.getTrackWidth(), viewerTracker.getTrackHeight());
+            viewer.addFrameBufferListener(this);
+            // the frame buffer may have been resized before we got registered
+            if (viewerTracker.getTrackWidth() != tracker.getTrackWidth() || viewerTracker.getTrackHeight() != tracker.getTrackHeight())
+                tracker.resize(viewerTracker.getTrackWidth(), viewerTracker.getTrackHeight());
+            sendResize(tracker.getTrackWidth(), tracker.getTrackHeight());
+            tracker.invalidate(null);
+
+            while (!closed && viewer.isFrontEndAlive()) {
+                viewer.updateFrontEndActivityTime();
+                if (!waitForWindow())
+                    continue;
+
+                int resizeWidth = 0;
+                int resizeHeight = 0;
+                synchronized (dirtyEvent) {
+                    if (!dirty && !resized) {
+                        try {
+                            dirtyEvent.wait(DIRTY_WAIT_MS);
+                        } catch (InterruptedException e) {
+                            s_logger.debug("[ignored] interrupted while waiting for frame buffer updates");
+                        }
+                    }
+                    if (resized) {
+                        resizeWidth = resizedWidth;
+                        resizeHeight = resizedHeight;
+                        resized = false;
+                    }
+                    dirty = false;
+                }
+                if (resizeWidth > 0)
+                    sendResize(resizeWidth, resizeHeight);
+
+                List<Region> regions = captureRegions();
+                if (!regions.isEmpty())
+                    sendUpdate(regions);
+            }
+        } catch (IOException e) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("WebSocket session of viewer " + viewer.getClientId() + " ended: " + e.getMessage());
+        } catch (Throwable e) {
+            s_logger.error("Unexpected exception in WebSocket session of viewer " + viewer.getClientId(), e);
+        } finally {
+            viewer.removeFrameBufferListener(this);
+            close();
+            encoder.logStats("WebSocket session of viewer " + viewer.getClientId());
+            encoder.close();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        synchronized (ackLock) {
+            ackLock.notifyAll();
+        }
+        try {
+            synchronized (os) {
+                WebSocketFrames.writeFrame(os, WebSocketFrames.OPCODE_CLOSE, new byte[0], 0, 0);
+            }
+        } catch (IOException e) {
+            s_logger.debug("[ignored] unable to send WebSocket close frame: " + e.getMessage());
+        }
+        try {
+            os.close();
+        } catch (IOException e) {
+            s_logger.debug("[ignored] unable to close WebSocket output: " + e.getMessage());
+        }
+        try {
+            is.close();
+        } catch (IOException e) {
+            s_logger.debug("[ignored] unable to close WebSocket input: " + e.getMessage());
+        }
+    }
+
+    private boolean waitForWindow() {
+        synchronized (ackLock) {
+            if (sentSeq - ackedSeq < window)
+                return true;
+            try {
+                ackLock.wait(DIRTY_WAIT_MS);
+            } catch (InterruptedException e) {
+                s_logger.debug("[ignored] interrupted while waiting for WebSocket client acknowledgement");
+            }
+            return sentSeq - ackedSeq < window;
+        }
+    }
+
+    private int nextSeq() {
+        synchronized (ackLock) {
+            return ++sentSeq;
+        }
+    }
+
+    @Override
+    public void onFramebufferSizeChange(int w, int h) {
+        tracker.resize(w, h);
+        synchronized (dirtyEvent) {
+            resized = true;
+            resizedWidth = w;
+            resizedHeight = h;
+            dirtyEvent.notifyAll();
+        }
+    }
+
+    @Override
+    public void onFramebufferUpdate(int x, int y, int w, int h) {
+        tracker.invalidate(new Rectangle(x, y, w, h));
+        synchronized (dirtyEvent) {
+            dirty = true;
+            dirtyEvent.notifyAll();
+        }
+    }
+
+    @Override
+    public void onClientConnected() {
+    }
+
+    @Override
+    public void onClientClose() {
+    }
+
+    private List<Region> captureRegions() {
+        final List<Region> captured = new ArrayList<Region>();
+        tracker.capture(new ITileScanListener() {
+            @Override
+            public boolean onTileChange(Rectangle rowMergedRect, int row, int col) {
+                return true;
+            }
+
+            @Override
+            public void onRegionChange(List<Region> regionList) {
+                captured.addAll(regionList);
+            }
+        });
+        return captured;
+    }
+
+    private void sendResize(int width, int height) throws IOException {
+        EncodeBuffer buffer = EncodeBufferPool.getInstance().acquire();
+        try {
+            ConsoleProxyRegionEncoder.encodeResize(nextSeq(), width, height, tracker.getTileWidth(), tracker.getTileHeight(), buffer);
+            send(buffer);
+        } finally {
+            EncodeBufferPool.getInstance().release(buffer);
+        }
+    }
+
+    private void sendUpdate(List<Region> regions) throws IOException {
+        FrameBufferCanvas canvas = viewer.getFrameBufferCanvas();
+        if (canvas == null)
+            return;
+
+        EncodeBuffer buffer = EncodeBufferPool.getInstance().acquire();
+        try {
+            if (encoder.encodeUpdate(canvas, regions, nextSeq(), tracker.getTrackWidth(), tracker.getTrackHeight(), buffer) > 0)
+                send(buffer);
+        } finally {
+            EncodeBufferPool.getInstance().release(buffer);
+        }
+    }
+
+    private void send(EncodeBuffer buffer) throws IOException {
+        synchronized (os) {
+            WebSocketFrames.writeFrame(os, WebSocketFrames.OPCODE_BINARY, buffer.getBuffer(), 0, buffer.size());
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                WebSocketFrames.Message message = WebSocketFrames.readMessage(is, MAX_CLIENT_MESSAGE);
+                switch (message.getOpcode()) {
+                    case WebSocketFrames.OPCODE_CLOSE:
+                        close();
+                        return;
+                    case WebSocketFrames.OPCODE_PING:
+                        synchronized (os) {
+                            WebSocketFrames.writeFrame(os, WebSocketFrames.OPCODE_PONG, message.getPayload(), 0, message.getPayload().length);
+                        }
+                        break;
+                    case WebSocketFrames.OPCODE_TEXT:
+                        handleClientMessage(message.getText());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("WebSocket reader of viewer " + viewer.getClientId() + " ended: " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    protected void handleClientMessage(String text) {
+        String[] tokens = text.trim().split(" ");
+        try {
+            if ("ack".equals(tokens[0]) && tokens.length == 2) {
+                int seq = Integer.parseInt(tokens[1]);
+                synchronized (ackLock) {
+                    if (seq - ackedSeq > 0 && sentSeq - seq >= 0)
+                        ackedSeq = seq;
+                    ackLock.notifyAll();
+                }
+            } else if ("key".equals(tokens[0]) && tokens.length == 4) {
+                viewer.updateFrontEndActivityTime();
+                viewer.sendClientRawKeyboardEvent(InputEventType.fromEventCode(Integer.parseInt(tokens[1])), Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+            } else if ("mouse".equals(tokens[0]) && tokens.length == 6) {
+                viewer.updateFrontEndActivityTime();
+                viewer.sendClientMouseEvent(InputEventType.fromEventCode(Integer.parseInt(tokens[1])), Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]),
+                    Integer.parseInt(tokens[4]), Integer.parseInt(tokens[5]));
+            } else {
+                s_logger.debug("Unrecognized WebSocket client message: " + text);
+            }
+        } catch (IllegalArgumentException e) {
+            s_logger.warn("Invalid WebSocket client message: " + text);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of growable byte buffers shared by the encoders of all sessions, so that
+ * steady-state updates do not allocate a new output array per frame.
+ */
+public class EncodeBufferPool {
+    private static final EncodeBufferPool s_instance = new EncodeBufferPool(64, 128 * 1024, 4 * 1024 * 1024);
+
+    private final BlockingQueue<EncodeBuffer> pool;
+    private final int initialSize;
+    private final int maxRetainedSize;
+
+    public static class EncodeBuffer extends ByteArrayOutputStream {
+        public EncodeBuffer(int size) {
+            super(size);
+        }
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+
+        public int capacity() {
+            return buf.length;
+        }
+
+        /**
+         * Overwrites a 4-byte big endian value at an already written position.
+         */
+        public void putInt(int pos, int value) {
+            buf[pos] = (byte)(value >>> 24);
+            buf[pos + 1] = (byte)(value >>> 16);
+            buf[pos + 2] = (byte)(value >>> 8);
+            buf[pos + 3] = (byte)value;
+        }
+
+        public void writeShort(int value) {
+            write(value >>> 8);
+            write(value);
+        }
+
+        public void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+    }
+
+    public static EncodeBufferPool getInstance() {
+        return s_instance;
+    }
+
+    public EncodeBufferPool(int poolSize, int initialSize, int maxRetainedSize) {
+        this.pool = new ArrayBlockingQueue<EncodeBuffer>(poolSize);
+        this.initialSize = initialSize;
+        this.maxRetainedSize = maxRetainedSize;
+    }
+
+    public EncodeBuffer acquire() {
+        EncodeBuffer buffer = pool.poll();
+        if (buffer == null)
+            buffer = new EncodeBuffer(initialSize);
+        buffer.reset();
+        return buffer;
+    }
+
+    public void release(EncodeBuffer buffer) {
+        // do not pin buffers that grew for an exceptionally large update
+        if (buffer != null && buffer.capacity() <= maxRetainedSize)
+            pool.offer(buffer);
+    }
+
+    public int getPooledCount() {
+        return pool.size();
+    }
+}
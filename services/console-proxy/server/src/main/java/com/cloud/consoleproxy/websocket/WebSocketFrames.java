@@ -0,0 +1,164 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.websocket;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Minimal RFC 6455 framing, enough for the console viewer: unfragmented binary/text
+ * messages from the server, masked (and possibly fragmented) messages from the browser.
+ */
+public class WebSocketFrames {
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+    public static final int OPCODE_PING = 0x9;
+    public static final int OPCODE_PONG = 0xA;
+
+    private static final String HANDSHAKE_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    public static class Message {
+        private final int opcode;
+        private final byte[] payload;
+
+        public Message(int opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public String getText() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    public static String getAcceptKey(String secWebSocketKey) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((secWebSocketKey.trim() + HANDSHAKE_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.encodeBase64String(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    public static void writeFrame(OutputStream os, int opcode, byte[] data, int offset, int length) throws IOException {
+        byte[] header = new byte[10];
+        int headerLen;
+        header[0] = (byte)(0x80 | opcode);
+        if (length < 126) {
+            header[1] = (byte)length;
+            headerLen = 2;
+        } else if (length < 65536) {
+            header[1] = 126;
+            header[2] = (byte)(length >>> 8);
+            header[3] = (byte)length;
+            headerLen = 4;
+        } else {
+            header[1] = 127;
+            long len = length;
+            for (int i = 0; i < 8; i++)
+                header[2 + i] = (byte)(len >>> (56 - i * 8));
+            headerLen = 10;
+        }
+
+        os.write(header, 0, headerLen);
+        if (length > 0)
+            os.write(data, offset, length);
+        os.flush();
+    }
+
+    public static void writeText(OutputStream os, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeFrame(os, OPCODE_TEXT, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Reads the next complete message, reassembling fragments. Control frames are returned as they come.
+     */
+    public static Message readMessage(InputStream is, int maxPayload) throws IOException {
+        DataInputStream dis = new DataInputStream(is);
+        int messageOpcode = -1;
+        byte[] message = null;
+
+        while (true) {
+            int b0 = dis.read();
+            if (b0 < 0)
+                throw new EOFException("WebSocket closed by peer");
+
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            int b1 = dis.readUnsignedByte();
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            if (length == 126)
+                length = dis.readUnsignedShort();
+            else if (length == 127)
+                length = dis.readLong();
+
+            int total = message != null && opcode == OPCODE_CONTINUATION ? message.length : 0;
+            if (length < 0 || length + total > maxPayload)
+                throw new IOException("WebSocket frame too large: " + length);
+
+            byte[] mask = new byte[4];
+            if (masked)
+                dis.readFully(mask);
+
+            byte[] payload = new byte[(int)length];
+            dis.readFully(payload);
+            if (masked) {
+                for (int i = 0; i < payload.length; i++)
+                    payload[i] ^= mask[i & 3];
+            }
+
+            if (opcode >= OPCODE_CLOSE)
+                return new Message(opcode, payload);
+
+            if (opcode != OPCODE_CONTINUATION) {
+                messageOpcode = opcode;
+                message = payload;
+            } else {
+                if (message == null)
+                    throw new IOException("Unexpected WebSocket continuation frame");
+                byte[] merged = new byte[message.length + payload.length];
+                System.arraycopy(message, 0, merged, 0, message.length);
+                System.arraycopy(payload, 0, merged, message.length, payload.length);
+                message = merged;
+            }
+
+            if (fin)
+                return new Message(messageOpcode, message);
+        }
+    }
+}
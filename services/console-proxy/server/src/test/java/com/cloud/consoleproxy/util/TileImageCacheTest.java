@@ -0,0 +1,249 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.cloud.consoleproxy.util.ImageEncoderPool.Format;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+import com.cloud.consoleproxy.websocket.EncodeBufferPool;
+
+public class TileImageCacheTest {
+    private static final Logger s_logger = Logger.getLogger(TileImageCacheTest.class);
+
+    private final ImageEncoderPool encoder = new ImageEncoderPool(2, new EncodeBufferPool(4, 64 * 1024, 4 * 1024 * 1024));
+
+    /**
+     * Headless frame buffer standing in for a VNC/RDP canvas.
+     */
+    static class SyntheticCanvas implements FrameBufferCanvas {
+        final BufferedImage image;
+
+        SyntheticCanvas(int width, int height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        @Override
+        public Image getFrameBufferScaledImage(int width, int height) {
+            return image.getScaledInstance(width, height, Image.SCALE_DEFAULT);
+        }
+
+        @Override
+        public byte[] getFrameBufferJpeg() {
+            return null;
+        }
+
+        @Override
+        public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
+            return null;
+        }
+
+        @Override
+        public int[] getFrameBufferPixels(Rectangle rect, int[] buffer) {
+            int size = rect.width * rect.height;
+            if (buffer == null || buffer.length < size)
+                buffer = new int[size];
+            image.getRGB(rect.x, rect.y, rect.width, rect.height, buffer, 0, rect.width);
+            return buffer;
+        }
+
+        void fillSolid(Rectangle rc, int rgb) {
+            Graphics2D g = image.createGraphics();
+            g.setColor(new java.awt.Color(rgb));
+            g.fillRect(rc.x, rc.y, rc.width, rc.height);
+            g.dispose();
+        }
+
+        void fillNoise(Rectangle rc, Random random) {
+            for (int y = rc.y; y < rc.y + rc.height; y++)
+                for (int x = rc.x; x < rc.x + rc.width; x++)
+                    image.setRGB(x, y, random.nextInt(0xFFFFFF));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        encoder.shutdown();
+    }
+
+    private static TileTracker tracker(int width, int height) {
+        TileTracker tracker = new TileTracker();
+        tracker.initTracking(64, 64, width, height);
+        return tracker;
+    }
+
+    @Test
+    public void testUnchangedTilesAreDropped() throws Exception {
+        SyntheticCanvas canvas = new SyntheticCanvas(256, 128);
+        canvas.fillSolid(new Rectangle(0, 0, 256, 128), 0x336699);
+        TileTracker tracker = tracker(256, 128);
+        TileImageCache cache = new TileImageCache(encoder, 64 * 1024);
+        assertNotNull(cache.getFrame(canvas, 256, 128, 64, 64));
+
+        // repainted with the same content, then one tile really changes
+        tracker.invalidate(new Rectangle(0, 0, 256, 64));
+        canvas.fillSolid(new Rectangle(70, 10, 20, 20), 0xFFFFFF);
+        List<TileInfo> tiles = tracker.scan(false);
+        assertEquals(4, tiles.size());
+
+        byte[] image = cache.getTiles(canvas, tiles, 64, 64);
+        assertEquals(1, tiles.size());
+        assertEquals(1, tiles.get(0).getCol());
+        assertEquals(3, cache.getTilesUnchanged());
+
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(image));
+        assertEquals(64, decoded.getWidth());
+        assertEquals(0xFFFFFF, decoded.getRGB(10, 15) & 0xFFFFFF);
+        assertEquals(0x336699, decoded.getRGB(0, 0) & 0xFFFFFF);
+    }
+
+    @Test
+    public void testFewColorsArePalettePng() throws Exception {
+        SyntheticCanvas canvas = new SyntheticCanvas(128, 64);
+        canvas.fillSolid(new Rectangle(0, 0, 128, 64), 0xEEEEEE);
+        canvas.fillSolid(new Rectangle(10, 10, 30, 8), 0x000000);
+        canvas.fillNoise(new Rectangle(64, 0, 64, 64), new Random(1));
+        TileImageCache cache = new TileImageCache(encoder, 64 * 1024);
+        cache.getFrame(canvas, 128, 64, 64, 64);
+
+        TileTracker tracker = tracker(128, 64);
+        canvas.fillSolid(new Rectangle(10, 30, 30, 8), 0x0000FF);
+        tracker.invalidate(new Rectangle(10, 30, 30, 8));
+        byte[] text = cache.getTiles(canvas, tracker.scan(false), 64, 64);
+        assertEquals(Format.PNG.getContentType(), ImageHelper.getContentType(text));
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(text));
+        assertEquals(0x0000FF, decoded.getRGB(20, 32) & 0xFFFFFF);
+        assertEquals(0xEEEEEE, decoded.getRGB(50, 50) & 0xFFFFFF);
+
+        canvas.fillNoise(new Rectangle(64, 0, 64, 64), new Random(2));
+        tracker.invalidate(new Rectangle(64, 0, 64, 64));
+        byte[] picture = cache.getTiles(canvas, tracker.scan(false), 64, 64);
+        assertEquals(Format.JPEG.getContentType(), ImageHelper.getContentType(picture));
+        // the first frame has the picture as well
+        assertEquals(1, cache.getPngImages());
+        assertEquals(2, cache.getJpegImages());
+    }
+
+    @Test
+    public void testRepeatedContentIsEncodedOnce() throws Exception {
+        SyntheticCanvas canvas = new SyntheticCanvas(128, 64);
+        TileTracker tracker = tracker(128, 64);
+        TileImageCache cache = new TileImageCache(encoder, 64 * 1024);
+        cache.getFrame(canvas, 128, 64, 64, 64);
+
+        // a blinking cursor
+        byte[][] images = new byte[6][];
+        for (int i = 0; i < images.length; i++) {
+            canvas.fillSolid(new Rectangle(20, 20, 8, 16), i % 2 == 0 ? 0xFFFFFF : 0x000000);
+            tracker.invalidate(new Rectangle(20, 20, 8, 16));
+            images[i] = cache.getTiles(canvas, tracker.scan(false), 64, 64);
+        }
+        assertSame(images[0], images[2]);
+        assertSame(images[1], images[5]);
+        assertEquals(7, cache.getLookups());
+        assertEquals(4, cache.getHits());
+    }
+
+    @Test
+    public void testThumbnailScalesDirtyTilesOnly() throws Exception {
+        SyntheticCanvas canvas = new SyntheticCanvas(256, 128);
+        canvas.fillSolid(new Rectangle(0, 0, 256, 128), 0x00FF00);
+        ThumbnailTileCache thumbnails = new ThumbnailTileCache(64, 64, 256, 128);
+
+        byte[] first = thumbnails.getThumbnail(canvas, 128, 64, encoder);
+        assertEquals(8, thumbnails.getTilesScaled());
+        assertSame(first, thumbnails.getThumbnail(canvas, 128, 64, encoder));
+
+        canvas.fillSolid(new Rectangle(192, 64, 64, 64), 0xFF0000);
+        thumbnails.invalidate(new Rectangle(192, 64, 64, 64));
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(thumbnails.getThumbnail(canvas, 128, 64, encoder)));
+        assertEquals(9, thumbnails.getTilesScaled());
+        assertEquals(128, decoded.getWidth());
+        assertTrue(((decoded.getRGB(112, 48) >> 16) & 0xFF) > 200);
+        assertTrue(((decoded.getRGB(16, 16) >> 8) & 0xFF) > 200);
+        assertEquals(1, thumbnails.getHits());
+    }
+
+    /**
+     * Headless benchmark: a blinking cursor over a 1024x768 desktop, with text-like and picture-like updates
+     * in between and repaints of unchanged content, served the way the AJAX viewer polls.
+     */
+    @Test
+    public void benchmarkSyntheticAjaxSession() throws Exception {
+        final int width = 1024;
+        final int height = 768;
+        final int updates = 60;
+        Random random = new Random(3);
+
+        SyntheticCanvas canvas = new SyntheticCanvas(width, height);
+        canvas.fillSolid(new Rectangle(0, 0, width, height), 0xEEEEEE);
+        TileTracker tracker = tracker(width, height);
+        TileImageCache cache = new TileImageCache(encoder, 512 * 1024);
+        cache.getFrame(canvas, width, height, 64, 64);
+
+        long cpuStart = encoder.getEncodeCpuNanos();
+        long imagesStart = encoder.getEncodedImages();
+        long bytes = 0;
+        for (int i = 0; i < updates; i++) {
+            // typing in between idle updates
+            if (i % 3 == 0) {
+                Rectangle text = new Rectangle(random.nextInt(width - 300), random.nextInt(height - 104), 300, 40);
+                canvas.fillSolid(text, random.nextInt(0xFFFFFF));
+                tracker.invalidate(text);
+            }
+            // the guest repaints a panel that did not change
+            tracker.invalidate(new Rectangle(0, height - 64, width, 64));
+            Rectangle cursor = new Rectangle(500, 300, 8, 16);
+            canvas.fillSolid(cursor, i % 2 == 0 ? 0x000000 : 0xEEEEEE);
+            tracker.invalidate(cursor);
+            if (i % 6 == 0) {
+                Rectangle picture = new Rectangle(random.nextInt(width - 160), random.nextInt(height - 184), 160, 120);
+                canvas.fillNoise(picture, random);
+                tracker.invalidate(picture);
+            }
+
+            byte[] image = cache.getTiles(canvas, tracker.scan(false), 64, 64);
+            bytes += image.length;
+        }
+
+        long cpuNanos = encoder.getEncodeCpuNanos() - cpuStart;
+        s_logger.info(String.format("AJAX encode benchmark: %d updates, %.2f ms encode CPU per update, %d images encoded, cache hit rate %.0f%%, "
+            + "%d of %d tiles unchanged, png/jpeg %d/%d, %d KB sent", updates, cpuNanos / 1e6 / updates, encoder.getEncodedImages() - imagesStart,
+            100.0 * cache.getHits() / cache.getLookups(), cache.getTilesUnchanged(), cache.getTilesScanned(), cache.getPngImages(), cache.getJpegImages(), bytes / 1024));
+
+        assertTrue(cache.getTilesUnchanged() >= updates * width / 64);
+        assertTrue(cache.getHits() > 0);
+        assertTrue(cache.getPngImages() > 0);
+        assertTrue(cache.getJpegImages() > 0);
+    }
+}
@@ -0,0 +1,338 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.vnc.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cloud.consoleproxy.vnc.RfbConstants;
+import com.cloud.consoleproxy.vnc.VncClient;
+
+public class RfbProtocolParserTest {
+
+    static class RecordingHandler implements RfbProtocolParser.Handler {
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        final List<String> events = new ArrayList<String>();
+        int[] framebuffer;
+        int fbWidth;
+
+        @Override
+        public void sendToServer(byte[] data) {
+            sent.write(data, 0, data.length);
+        }
+
+        @Override
+        public void onServerInit(int width, int height, boolean rgb888le, String desktopName) {
+            events.add("init " + width + "x" + height + " " + rgb888le + " " + desktopName);
+            framebuffer = new int[width * height];
+            fbWidth = width;
+        }
+
+        @Override
+        public void onFramebufferUpdateBegin(int rectangles) {
+            events.add("begin " + rectangles);
+        }
+
+        @Override
+        public void onRawRows(int x, int y, int width, int rows, int[] pixels) {
+            for (int row = 0; row < rows; row++)
+                System.arraycopy(pixels, row * width, framebuffer, (y + row) * fbWidth + x, width);
+        }
+
+        @Override
+        public void onCopyRect(int x, int y, int width, int height, int srcX, int srcY) {
+            events.add("copy " + x + "," + y + " from " + srcX + "," + srcY);
+        }
+
+        @Override
+        public void onDesktopSize(int width, int height) {
+            events.add("size " + width + "x" + height);
+        }
+
+        @Override
+        public void onRectangleEnd(int x, int y, int width, int height) {
+            events.add("rect " + x + "," + y + " " + width + "x" + height);
+        }
+
+        @Override
+        public void onFramebufferUpdateEnd() {
+            events.add("end");
+        }
+
+        @Override
+        public void onBell() {
+            events.add("bell");
+        }
+
+        @Override
+        public void onCutText(String text) {
+            events.add("cut " + text);
+        }
+    }
+
+    static void writeServerInit(DataOutputStream os, int width, int height, String name) throws IOException {
+        os.writeShort(width);
+        os.writeShort(height);
+        // 32 bpp, depth 24, little endian, true color, 255/255/255, shifts 16/8/0
+        os.write(new byte[] {32, 24, 0, 1, 0, (byte)255, 0, (byte)255, 0, (byte)255, 16, 8, 0, 0, 0, 0});
+        os.writeInt(name.length());
+        os.write(name.getBytes(RfbConstants.CHARSET));
+    }
+
+    static void writeRawRect(DataOutputStream os, int x, int y, int width, int height, int[] pixels) throws IOException {
+        os.writeShort(x);
+        os.writeShort(y);
+        os.writeShort(width);
+        os.writeShort(height);
+        os.writeInt(RfbConstants.ENCODING_RAW);
+        for (int p : pixels) {
+            os.write(p);
+            os.write(p >>> 8);
+            os.write(p >>> 16);
+            os.write(0);
+        }
+    }
+
+    /**
+     * Feeds the stream a byte at a time, growing the buffer just as a socket read would.
+     */
+    private static void feedByteByByte(RfbProtocolParser parser, byte[] stream) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        for (byte b : stream) {
+            buf.put(b);
+            buf.flip();
+            parser.parse(buf);
+            buf.compact();
+        }
+        assertEquals(0, buf.position());
+    }
+
+    @Test
+    public void testHandshakeAndUpdateFedByteByByte() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+        os.write("RFB 003.008\n".getBytes(RfbConstants.CHARSET));
+        os.writeInt(RfbConstants.NO_AUTH);
+        writeServerInit(os, 8, 4, "test");
+
+        int[] pixels = new int[5 * 3];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = 0x010203 * (i + 1);
+
+        os.writeByte(RfbConstants.SERVER_FRAMEBUFFER_UPDATE);
+        os.writeByte(0);
+        os.writeShort(3);
+        writeRawRect(os, 2, 1, 5, 3, pixels);
+        os.writeShort(0);
+        os.writeShort(0);
+        os.writeShort(2);
+        os.writeShort(2);
+        os.writeInt(RfbConstants.ENCODING_COPY_RECT);
+        os.writeShort(4);
+        os.writeShort(2);
+        os.writeShort(0);
+        os.writeShort(0);
+        os.writeShort(16);
+        os.writeShort(8);
+        os.writeInt(RfbConstants.ENCODING_DESKTOP_SIZE);
+        os.writeByte(RfbConstants.SERVER_BELL);
+        os.writeByte(RfbConstants.SERVER_CUT_TEXT);
+        os.write(new byte[3]);
+        os.writeInt(5);
+        os.write("hello".getBytes(RfbConstants.CHARSET));
+
+        RecordingHandler handler = new RecordingHandler();
+        RfbProtocolParser parser = new RfbProtocolParser("", handler);
+        feedByteByByte(parser, bos.toByteArray());
+
+        assertEquals(RfbProtocolParser.State.MESSAGE_TYPE, parser.getState());
+        assertEquals(16, parser.getFramebufferWidth());
+        assertEquals(8, parser.getFramebufferHeight());
+
+        // version reply followed by the exclusive access client init
+        byte[] sent = handler.sent.toByteArray();
+        assertEquals(13, sent.length);
+        assertEquals("RFB 003.003\n", new String(sent, 0, 12, RfbConstants.CHARSET));
+        assertEquals(RfbConstants.EXCLUSIVE_ACCESS, sent[12]);
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("init 8x4 true test");
+        expected.add("begin 3");
+        expected.add("rect 2,1 5x3");
+        expected.add("copy 0,0 from 4,2");
+        expected.add("rect 0,0 2x2");
+        expected.add("size 16x8");
+        expected.add("rect 0,0 16x8");
+        expected.add("end");
+        expected.add("bell");
+        expected.add("cut hello");
+        assertEquals(expected, handler.events);
+
+        for (int row = 0; row < 3; row++)
+            for (int col = 0; col < 5; col++)
+                assertEquals(pixels[row * 5 + col], handler.framebuffer[(row + 1) * 8 + col + 2]);
+    }
+
+    @Test
+    public void testVncAuthentication() throws Exception {
+        byte[] challenge = new byte[16];
+        for (int i = 0; i < challenge.length; i++)
+            challenge[i] = (byte)(i * 7);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+        os.write("RFB 003.003\n".getBytes(RfbConstants.CHARSET));
+        os.writeInt(RfbConstants.VNC_AUTH);
+        os.write(challenge);
+        os.writeInt(RfbConstants.VNC_AUTH_OK);
+        writeServerInit(os, 4, 4, "");
+
+        RecordingHandler handler = new RecordingHandler();
+        RfbProtocolParser parser = new RfbProtocolParser("secret", handler);
+        parser.parse(ByteBuffer.wrap(bos.toByteArray()));
+
+        byte[] sent = handler.sent.toByteArray();
+        assertEquals(12 + 16 + 1, sent.length);
+        byte[] response = new byte[16];
+        System.arraycopy(sent, 12, response, 0, 16);
+        assertArrayEquals(VncClient.encodePassword(challenge, "secret"), response);
+        assertEquals("init 4x4 true ", handler.events.get(0));
+    }
+
+    @Test
+    public void testAuthenticationFailure() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+        os.write("RFB 003.003\n".getBytes(RfbConstants.CHARSET));
+        os.writeInt(RfbConstants.CONNECTION_FAILED);
+        os.writeInt(4);
+        os.write("busy".getBytes(RfbConstants.CHARSET));
+
+        RfbProtocolParser parser = new RfbProtocolParser("", new RecordingHandler());
+        try {
+            parser.parse(ByteBuffer.wrap(bos.toByteArray()));
+            fail("connection failure must be reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("busy"));
+        }
+    }
+
+    @Test
+    public void testLargeRawRectangleIsStreamedInRows() throws Exception {
+        final int width = 1024;
+        final int height = 64;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+        os.write("RFB 003.003\n".getBytes(RfbConstants.CHARSET));
+        os.writeInt(RfbConstants.NO_AUTH);
+        writeServerInit(os, width, height, "big");
+        os.writeByte(RfbConstants.SERVER_FRAMEBUFFER_UPDATE);
+        os.writeByte(0);
+        os.writeShort(1);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = i & 0xFFFFFF;
+        writeRawRect(os, 0, 0, width, height, pixels);
+
+        // the read buffer holds only a few rows, the parser must never need the whole rectangle at once
+        RecordingHandler handler = new RecordingHandler();
+        RfbProtocolParser parser = new RfbProtocolParser("", handler);
+        byte[] stream = bos.toByteArray();
+        ByteBuffer buf = ByteBuffer.allocate(width * 4 * 3);
+        int offset = 0;
+        while (offset < stream.length) {
+            int n = Math.min(buf.remaining(), stream.length - offset);
+            buf.put(stream, offset, n);
+            offset += n;
+            buf.flip();
+            parser.parse(buf);
+            buf.compact();
+        }
+
+        assertEquals(RfbProtocolParser.State.MESSAGE_TYPE, parser.getState());
+        assertArrayEquals(pixels, handler.framebuffer);
+    }
+
+    @Test
+    public void testFieldsLargerThanReadBufferAreStreamed() throws Exception {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 300; i++)
+            name.append((char)('a' + i % 26));
+        final int width = 40;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+        os.write("RFB 003.003\n".getBytes(RfbConstants.CHARSET));
+        os.writeInt(RfbConstants.NO_AUTH);
+        writeServerInit(os, width, 2, name.toString());
+        // 50 colour map entries, 300 bytes
+        os.writeByte(RfbConstants.SERVER_SET_COLOURMAP_ENTRIES);
+        os.writeByte(0);
+        os.writeShort(0);
+        os.writeShort(50);
+        os.write(new byte[50 * 6]);
+        // rows of 160 bytes do not fit in the 64 byte read buffer
+        int[] pixels = new int[width * 2];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = 0x010101 * (i + 1);
+        os.writeByte(RfbConstants.SERVER_FRAMEBUFFER_UPDATE);
+        os.writeByte(0);
+        os.writeShort(1);
+        writeRawRect(os, 0, 0, width, 2, pixels);
+        os.writeByte(RfbConstants.SERVER_BELL);
+
+        RecordingHandler handler = new RecordingHandler();
+        RfbProtocolParser parser = new RfbProtocolParser("", handler);
+        feedByteByByte(parser, bos.toByteArray());
+
+        assertEquals(RfbProtocolParser.State.MESSAGE_TYPE, parser.getState());
+        assertEquals("init " + width + "x2 true " + name, handler.events.get(0));
+        assertEquals("bell", handler.events.get(handler.events.size() - 1));
+        assertArrayEquals(pixels, handler.framebuffer);
+    }
+
+    @Test
+    public void testOversizedDesktopNameIsRejected() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+        os.write("RFB 003.003\n".getBytes(RfbConstants.CHARSET));
+        os.writeInt(RfbConstants.NO_AUTH);
+        writeServerInit(os, 4, 4, "");
+        byte[] stream = bos.toByteArray();
+        // overwrite the name length
+        ByteBuffer.wrap(stream).putInt(stream.length - 4, Integer.MAX_VALUE);
+
+        RfbProtocolParser parser = new RfbProtocolParser("", new RecordingHandler());
+        try {
+            parser.parse(ByteBuffer.wrap(stream));
+            fail("an over-large desktop name must close the session");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("too large"));
+        }
+    }
+}
@@ -0,0 +1,274 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.vnc.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.consoleproxy.ConsoleProxyClientListener;
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.vnc.RfbConstants;
+
+public class VncNioEngineTest {
+    private static final Logger s_logger = Logger.getLogger(VncNioEngineTest.class);
+
+    private static final int FB_WIDTH = 64;
+    private static final int FB_HEIGHT = 48;
+
+    /**
+     * RFB 3.3 server without authentication, answers each full update request with one raw
+     * rectangle covering the screen, painted with a color derived from the connection number.
+     */
+    static class FakeVncServer implements Runnable {
+        final ServerSocket serverSocket;
+        final AtomicInteger connections = new AtomicInteger();
+        final List<Socket> sockets = new ArrayList<Socket>();
+
+        FakeVncServer() throws IOException {
+            serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    synchronized (sockets) {
+                        sockets.add(socket);
+                    }
+                    final int color = connections.incrementAndGet();
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket, color);
+                        }
+                    });
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket, int color) {
+            try {
+                DataInputStream is = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream os = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                os.write("RFB 003.003\n".getBytes(RfbConstants.CHARSET));
+                os.flush();
+                is.readFully(new byte[12]);
+                os.writeInt(RfbConstants.NO_AUTH);
+                os.flush();
+                is.readUnsignedByte();
+                RfbProtocolParserTest.writeServerInit(os, FB_WIDTH, FB_HEIGHT, "fake");
+                os.flush();
+
+                int[] pixels = new int[FB_WIDTH * FB_HEIGHT];
+                for (int i = 0; i < pixels.length; i++)
+                    pixels[i] = color;
+
+                while (true) {
+                    int type = is.readUnsignedByte();
+                    switch (type) {
+                        case RfbConstants.CLIENT_SET_PIXEL_FORMAT:
+                            is.readFully(new byte[19]);
+                            break;
+                        case RfbConstants.CLIENT_SET_ENCODINGS:
+                            is.readUnsignedByte();
+                            is.readFully(new byte[is.readUnsignedShort() * 4]);
+                            break;
+                        case RfbConstants.CLIENT_FRAMEBUFFER_UPDATE_REQUEST:
+                            int incremental = is.readUnsignedByte();
+                            is.readFully(new byte[8]);
+                            if (incremental == RfbConstants.FRAMEBUFFER_FULL_UPDATE_REQUEST) {
+                                os.writeByte(RfbConstants.SERVER_FRAMEBUFFER_UPDATE);
+                                os.writeByte(0);
+                                os.writeShort(1);
+                                RfbProtocolParserTest.writeRawRect(os, 0, 0, FB_WIDTH, FB_HEIGHT, pixels);
+                                os.flush();
+                            }
+                            break;
+                        case RfbConstants.CLIENT_KEYBOARD_EVENT:
+                            is.readFully(new byte[7]);
+                            break;
+                        case RfbConstants.CLIENT_POINTER_EVENT:
+                            is.readFully(new byte[5]);
+                            break;
+                        default:
+                            return;
+                    }
+                }
+            } catch (IOException e) {
+                // client went away
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        void stop() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets)
+                    socket.close();
+            }
+        }
+    }
+
+    static class CountingListener implements ConsoleProxyClientListener {
+        final CountDownLatch updated;
+        final CountDownLatch closed;
+
+        CountingListener(CountDownLatch updated, CountDownLatch closed) {
+            this.updated = updated;
+            this.closed = closed;
+        }
+
+        @Override
+        public void onFramebufferSizeChange(int w, int h) {
+        }
+
+        @Override
+        public void onFramebufferUpdate(int x, int y, int w, int h) {
+            if (w == FB_WIDTH && h == FB_HEIGHT)
+                updated.countDown();
+        }
+
+        @Override
+        public void onClientConnected() {
+        }
+
+        @Override
+        public void onClientClose() {
+            closed.countDown();
+        }
+    }
+
+    private FakeVncServer server;
+    private VncNioEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeVncServer();
+        Thread t = new Thread(server, "Fake VNC server");
+        t.setDaemon(true);
+        t.start();
+        engine = new VncNioEngine(2, 4, 10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.stop();
+        server.stop();
+    }
+
+    private static int countEngineThreads() {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("VNC NIO"))
+                count++;
+        }
+        return count;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * The heap taken per session and the resulting sessions per GB are logged, not asserted.
+     */
+    @Test
+    public void testManySessionsOnFewThreads() throws Exception {
+        final int sessions = 200;
+        CountDownLatch updated = new CountDownLatch(sessions);
+        CountDownLatch closed = new CountDownLatch(sessions);
+        long heapBefore = usedHeap();
+
+        List<NioVncSession> list = new ArrayList<NioVncSession>();
+        for (int i = 0; i < sessions; i++)
+            list.add(engine.connect("127.0.0.1", server.getPort(), "", new CountingListener(updated, closed)));
+
+        assertTrue("all sessions must receive their first frame", updated.await(30, TimeUnit.SECONDS));
+        long perSession = Math.max(1, (usedHeap() - heapBefore) / sessions);
+        s_logger.info(String.format("VNC NIO engine: %d sessions on %d threads, ~%d KB heap per session (%d sessions per GB, frame buffer %d KB)", sessions,
+            countEngineThreads(), perSession / 1024, (1L << 30) / perSession, FB_WIDTH * FB_HEIGHT * 4 / 1024));
+
+        assertEquals(sessions, engine.getActiveSessions());
+        assertEquals(6, countEngineThreads());
+
+        // every session painted its own color into its own canvas
+        int[] pixels = null;
+        for (NioVncSession session : list) {
+            assertTrue(session.isHostConnected());
+            pixels = session.getFrameBufferCanvas().getFrameBufferPixels(new Rectangle(0, 0, FB_WIDTH, FB_HEIGHT), pixels);
+            int color = pixels[0] & 0xFFFFFF;
+            assertTrue(color > 0 && color <= sessions);
+            assertEquals(color, pixels[pixels.length - 1] & 0xFFFFFF);
+            session.sendClientKeyboardEvent(RfbConstants.KEY_DOWN, 'a', 0);
+            session.sendClientMouseEvent(0, 10, 10, 0, 0);
+        }
+
+        for (NioVncSession session : list)
+            session.shutdown();
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertEquals(0, engine.getActiveSessions());
+    }
+
+    @Test
+    public void testServerDisconnectClosesSession() throws Exception {
+        CountDownLatch updated = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        NioVncSession session = engine.connect("127.0.0.1", server.getPort(), "", new CountingListener(updated, closed));
+        assertTrue(updated.await(10, TimeUnit.SECONDS));
+
+        server.stop();
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertTrue(session.isClosed());
+        assertEquals(0, engine.getActiveSessions());
+    }
+}
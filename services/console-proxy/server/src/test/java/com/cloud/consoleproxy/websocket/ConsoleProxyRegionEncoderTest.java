@@ -0,0 +1,280 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.websocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+import com.cloud.consoleproxy.util.ITileScanListener;
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.Region;
+import com.cloud.consoleproxy.util.TileInfo;
+import com.cloud.consoleproxy.util.TileTracker;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+import com.cloud.consoleproxy.websocket.ConsoleProxyRegionEncoder.Codec;
+import com.cloud.consoleproxy.websocket.EncodeBufferPool.EncodeBuffer;
+
+public class ConsoleProxyRegionEncoderTest {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyRegionEncoderTest.class);
+
+    /**
+     * Headless frame buffer standing in for a VNC/RDP canvas.
+     */
+    static class SyntheticCanvas implements FrameBufferCanvas {
+        final BufferedImage image;
+
+        SyntheticCanvas(int width, int height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        @Override
+        public Image getFrameBufferScaledImage(int width, int height) {
+            return image.getScaledInstance(width, height, Image.SCALE_DEFAULT);
+        }
+
+        @Override
+        public byte[] getFrameBufferJpeg() {
+            return null;
+        }
+
+        @Override
+        public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
+            return null;
+        }
+
+        @Override
+        public int[] getFrameBufferPixels(Rectangle rect, int[] buffer) {
+            int size = rect.width * rect.height;
+            if (buffer == null || buffer.length < size)
+                buffer = new int[size];
+            image.getRGB(rect.x, rect.y, rect.width, rect.height, buffer, 0, rect.width);
+            return buffer;
+        }
+
+        void fillSolid(Rectangle rc, int rgb) {
+            Graphics2D g = image.createGraphics();
+            g.setColor(new java.awt.Color(rgb));
+            g.fillRect(rc.x, rc.y, rc.width, rc.height);
+            g.dispose();
+        }
+
+        void fillNoise(Rectangle rc, Random random) {
+            for (int y = rc.y; y < rc.y + rc.height; y++)
+                for (int x = rc.x; x < rc.x + rc.width; x++)
+                    image.setRGB(x, y, random.nextInt(0xFFFFFF));
+        }
+    }
+
+    private static List<Region> regions(Rectangle... rects) {
+        List<Region> list = new ArrayList<Region>();
+        for (Rectangle rc : rects)
+            list.add(new Region(rc));
+        return list;
+    }
+
+    @Test
+    public void testClassify() {
+        ConsoleProxyRegionEncoder encoder = new ConsoleProxyRegionEncoder(null, 0.7f);
+        SyntheticCanvas canvas = new SyntheticCanvas(128, 128);
+        canvas.fillSolid(new Rectangle(0, 0, 128, 128), 0x336699);
+        canvas.fillNoise(new Rectangle(64, 64, 64, 64), new Random(1));
+
+        int[] small = canvas.getFrameBufferPixels(new Rectangle(0, 0, 16, 16), null);
+        assertEquals(Codec.RAW, encoder.classify(small, 256));
+
+        int[] solid = canvas.getFrameBufferPixels(new Rectangle(0, 0, 64, 64), null);
+        assertEquals(Codec.ZLIB, encoder.classify(solid, 64 * 64));
+
+        int[] noise = canvas.getFrameBufferPixels(new Rectangle(64, 64, 64, 64), null);
+        assertEquals(Codec.JPEG, encoder.classify(noise, 64 * 64));
+        encoder.close();
+    }
+
+    @Test
+    public void testEncodeUpdateLayoutAndZlibRoundTrip() throws Exception {
+        ConsoleProxyRegionEncoder encoder = new ConsoleProxyRegionEncoder(null, 0.7f);
+        SyntheticCanvas canvas = new SyntheticCanvas(256, 128);
+        canvas.fillSolid(new Rectangle(0, 0, 256, 128), 0xFFFFFF);
+        canvas.fillSolid(new Rectangle(10, 10, 40, 20), 0x000000);
+        canvas.fillNoise(new Rectangle(128, 0, 128, 128), new Random(2));
+
+        EncodeBuffer out = new EncodeBuffer(1024);
+        int count = encoder.encodeUpdate(canvas, regions(new Rectangle(0, 0, 64, 64), new Rectangle(128, 0, 128, 128)), 7, 256, 128, out);
+        assertEquals(2, count);
+
+        ByteBuffer msg = ByteBuffer.wrap(out.getBuffer(), 0, out.size());
+        assertEquals(ConsoleProxyRegionEncoder.MSG_UPDATE, msg.get());
+        assertEquals(7, msg.getInt());
+        assertEquals(2, msg.getShort());
+
+        // first rectangle, lossless
+        assertEquals(0, msg.getShort());
+        assertEquals(0, msg.getShort());
+        assertEquals(64, msg.getShort());
+        assertEquals(64, msg.getShort());
+        assertEquals(Codec.ZLIB.getId(), msg.get());
+        byte[] data = new byte[msg.getInt()];
+        msg.get(data);
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] rgb = new byte[64 * 64 * 3];
+        assertEquals(rgb.length, inflater.inflate(rgb));
+        inflater.end();
+
+        int[] expected = canvas.getFrameBufferPixels(new Rectangle(0, 0, 64, 64), null);
+        byte[] expectedRgb = new byte[rgb.length];
+        for (int i = 0; i < expected.length; i++) {
+            expectedRgb[i * 3] = (byte)(expected[i] >>> 16);
+            expectedRgb[i * 3 + 1] = (byte)(expected[i] >>> 8);
+            expectedRgb[i * 3 + 2] = (byte)expected[i];
+        }
+        assertArrayEquals(expectedRgb, rgb);
+
+        // second rectangle, photo-like
+        assertEquals(128, msg.getShort());
+        assertEquals(0, msg.getShort());
+        assertEquals(128, msg.getShort());
+        assertEquals(128, msg.getShort());
+        assertEquals(Codec.JPEG.getId(), msg.get());
+        int jpegLength = msg.getInt();
+        assertTrue(jpegLength > 0);
+        assertEquals(out.size(), msg.position() + jpegLength);
+        encoder.close();
+    }
+
+    @Test
+    public void testForcedRawCodec() throws Exception {
+        ConsoleProxyRegionEncoder encoder = new ConsoleProxyRegionEncoder(Codec.RAW, 0.7f);
+        SyntheticCanvas canvas = new SyntheticCanvas(64, 64);
+        EncodeBuffer out = new EncodeBuffer(1024);
+
+        encoder.encodeUpdate(canvas, regions(new Rectangle(0, 0, 64, 64)), 1, 64, 64, out);
+        // header 7 + rectangle header 13 + 64x64 RGB
+        assertEquals(7 + 13 + 64 * 64 * 3, out.size());
+        assertEquals(1, encoder.getCodecRects(Codec.RAW));
+        encoder.close();
+    }
+
+    @Test
+    public void testWebSocketHandshakeAndMaskedFrame() throws Exception {
+        // sample from RFC 6455 section 1.3
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketFrames.getAcceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+
+        byte[] mask = {0x37, (byte)0xfa, 0x21, 0x3d};
+        byte[] text = "ack 42".getBytes("UTF-8");
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(0x81);
+        frame.write(0x80 | text.length);
+        frame.write(mask);
+        for (int i = 0; i < text.length; i++)
+            frame.write(text[i] ^ mask[i & 3]);
+
+        WebSocketFrames.Message message = WebSocketFrames.readMessage(new ByteArrayInputStream(frame.toByteArray()), 1024);
+        assertEquals(WebSocketFrames.OPCODE_TEXT, message.getOpcode());
+        assertEquals("ack 42", message.getText());
+
+        ByteArrayOutputStream server = new ByteArrayOutputStream();
+        byte[] payload = new byte[70000];
+        WebSocketFrames.writeFrame(server, WebSocketFrames.OPCODE_BINARY, payload, 0, payload.length);
+        assertEquals(10 + payload.length, server.size());
+    }
+
+    /**
+     * Random damage over a 1024x768 desktop, mixing text-like and picture-like content,
+     * encoded the way a WebSocket session does it. The frame rate and CPU time per frame are
+     * logged, not asserted.
+     */
+    @Test
+    public void testSyntheticSession() throws Exception {
+        final int width = 1024;
+        final int height = 768;
+        final int frames = 60;
+        Random random = new Random(3);
+
+        SyntheticCanvas canvas = new SyntheticCanvas(width, height);
+        canvas.fillSolid(new Rectangle(0, 0, width, height), 0xEEEEEE);
+        TileTracker tracker = new TileTracker();
+        tracker.initTracking(64, 64, width, height);
+        ConsoleProxyRegionEncoder encoder = new ConsoleProxyRegionEncoder(null, 0.7f);
+        EncodeBufferPool pool = new EncodeBufferPool(4, 64 * 1024, 4 * 1024 * 1024);
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long cpuStart = threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : 0;
+        long wallStart = System.nanoTime();
+        long bytes = 0;
+
+        for (int i = 0; i < frames; i++) {
+            Rectangle text = new Rectangle(random.nextInt(width - 300), random.nextInt(height - 40), 300, 40);
+            canvas.fillSolid(text, random.nextInt(0xFFFFFF));
+            tracker.invalidate(text);
+            if (i % 4 == 0) {
+                Rectangle picture = new Rectangle(random.nextInt(width - 160), random.nextInt(height - 120), 160, 120);
+                canvas.fillNoise(picture, random);
+                tracker.invalidate(picture);
+            }
+
+            final List<Region> captured = new ArrayList<Region>();
+            tracker.capture(new ITileScanListener() {
+                @Override
+                public boolean onTileChange(Rectangle rowMergedRect, int row, int col) {
+                    return true;
+                }
+
+                @Override
+                public void onRegionChange(List<Region> regionList) {
+                    captured.addAll(regionList);
+                }
+            });
+
+            EncodeBuffer out = pool.acquire();
+            encoder.encodeUpdate(canvas, captured, i + 1, width, height, out);
+            bytes += out.size();
+            pool.release(out);
+        }
+
+        long wallNanos = System.nanoTime() - wallStart;
+        long cpuNanos = threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() - cpuStart : wallNanos;
+        s_logger.info(String.format("WebSocket encode benchmark: %d frames, %.1f fps, %.2f ms CPU per frame, %d KB sent, raw/zlib/jpeg rects %d/%d/%d", frames,
+            frames * 1e9 / wallNanos, cpuNanos / 1e6 / frames, bytes / 1024, encoder.getCodecRects(Codec.RAW), encoder.getCodecRects(Codec.ZLIB),
+            encoder.getCodecRects(Codec.JPEG)));
+
+        assertTrue(bytes > 0);
+        assertTrue(encoder.getEncodedRects() >= frames);
+        assertEquals(encoder.getEncodedRects(), encoder.getCodecRects(Codec.RAW) + encoder.getCodecRects(Codec.ZLIB) + encoder.getCodecRects(Codec.JPEG));
+        assertTrue(encoder.getCodecRects(Codec.JPEG) > 0);
+        assertEquals(1, pool.getPooledCount());
+        encoder.close();
+    }
+}
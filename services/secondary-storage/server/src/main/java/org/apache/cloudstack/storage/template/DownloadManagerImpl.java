@@ -232,6 +232,7 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
     private String listTmpltScr;
     private String listVolScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
+    private int downloadParallelSegments = 1;
 
     public void setThreadPool(ExecutorService threadPool) {
         this.threadPool = threadPool;
@@ -375,10 +376,16 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         File originalTemplate = new File(td.getDownloadLocalPath());
         ChecksumValue oldValue = new ChecksumValue(dnld.getChecksum());
         ChecksumValue newValue = null;
-        try {
-            newValue = computeCheckSum(oldValue.getAlgorithm(), originalTemplate);
-        } catch (NoSuchAlgorithmException e) {
-            return "checksum algorithm not recognised: " + oldValue.getAlgorithm();
+        if (td instanceof HttpTemplateDownloader) {
+            // computed while downloading, saves reading the whole file again
+            newValue = ((HttpTemplateDownloader)td).getChecksum();
+        }
+        if (newValue == null || !oldValue.getAlgorithm().equals(newValue.getAlgorithm())) {
+            try {
+                newValue = computeCheckSum(oldValue.getAlgorithm(), originalTemplate);
+            } catch (NoSuchAlgorithmException e) {
+                return "checksum algorithm not recognised: " + oldValue.getAlgorithm();
+            }
         }
         if(StringUtils.isNotBlank(dnld.getChecksum()) && ! oldValue.equals(newValue)) {
             return "checksum \"" + newValue +"\" didn't match the given value, \"" + oldValue + "\"";
@@ -564,7 +571,11 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
                         if (uri.getPath().endsWith(".metalink")) {
                             td = new MetalinkTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes);
                         } else if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                            td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                            HttpTemplateDownloader httpDownloader = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user,
+                                    password, proxy, resourceType);
+                            httpDownloader.setChecksumAlgorithm(new ChecksumValue(cksum).getAlgorithm());
+                            httpDownloader.setParallelSegments(downloadParallelSegments);
+                            td = httpDownloader;
                         } else if (uri.getScheme().equalsIgnoreCase("file")) {
                             td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                         } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -972,6 +983,9 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         value = (String)params.get("install.timeout.pergig");
         installTimeoutPerGig = NumbersUtil.parseInt(value, 15 * 60) * 1000;
 
+        value = (String)params.get("download.parallel.segments");
+        downloadParallelSegments = NumbersUtil.parseInt(value, 1);
+
         value = (String)params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
@@ -0,0 +1,77 @@
+#!/bin/bash
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+#
+#   http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+
+# Content hashes of the config sections applied by the management server, one
+# "<section> <hash>" line per section, a section being "<guest ip>/<json file>".
+#
+#   config_hashes.sh -l                        list the applied hashes
+#   config_hashes.sh -s section hash [...]     record hashes after a successful sync
+#   config_hashes.sh -i section|file [...]     forget sections, a bare json file name
+#                                              forgets that file for every guest network
+#   config_hashes.sh -r                        forget everything, next sync is a full one
+
+__HASHFILE=/etc/cloudstack/config_hashes
+__LOCKFILE=/var/lock/config_hashes.lock
+
+forget() {
+    [ -f $__HASHFILE ] || return 0
+    awk -v names="$*" '
+        BEGIN { n = split(names, list, " "); for (i = 1; i <= n; i++) drop[list[i]] = 1 }
+        {
+            file = $1; sub(/^.*\//, "", file)
+            if (!($1 in drop) && !(file in drop)) print
+        }' $__HASHFILE > $__HASHFILE.new && mv -f $__HASHFILE.new $__HASHFILE
+}
+
+mkdir -p $(dirname $__HASHFILE)
+exec 200>$__LOCKFILE
+flock -x 200
+
+case "$1" in
+    -l)
+        [ -f $__HASHFILE ] && cat $__HASHFILE
+        ;;
+    -s)
+        shift
+        if [ $(($# % 2)) -ne 0 ]; then
+            echo "config_hashes.sh: -s takes section and hash pairs" 1>&2
+            exit 1
+        fi
+        sections=
+        lines=
+        while [ $# -gt 0 ]; do
+            sections="$sections $1"
+            lines="$lines$1 $2\n"
+            shift 2
+        done
+        forget $sections
+        printf "$lines" >> $__HASHFILE
+        ;;
+    -i)
+        shift
+        forget "$@"
+        ;;
+    -r)
+        rm -f $__HASHFILE
+        ;;
+    *)
+        echo "Usage: config_hashes.sh -l | -s section hash [...] | -i section [...] | -r" 1>&2
+        exit 1
+        ;;
+esac
+exit 0
@@ -25,6 +25,7 @@ import os
 import os.path
 import configure
 import json
+import fcntl
 
 logging.basicConfig(filename='/var/log/cloud.log', level=logging.INFO, format='%(asctime)s  %(filename)s %(funcName)s:%(lineno)d %(message)s')
 
@@ -38,6 +39,8 @@ jsonPath = "/var/cache/cloud/%s"
 jsonFilename = sys.argv[1]
 jsonConfigFile = jsonPath % jsonFilename
 currentGuestNetConfig = "/etc/cloudstack/guestnetwork.json"
+configHashFile = "/etc/cloudstack/config_hashes"
+configHashLock = "/var/lock/config_hashes.lock"
 
 
 def finish_config():
@@ -57,6 +60,18 @@ def process_file():
         finish_config()
 
 
+def forget_config_hash(section):
+    if not os.path.isfile(configHashFile):
+        return
+    with open(configHashLock, "w") as lock:
+        fcntl.flock(lock, fcntl.LOCK_EX)
+        with open(configHashFile) as f:
+            lines = [line for line in f if line.split(" ")[0].split("/")[-1] != section]
+        with open(configHashFile + ".new", "w") as f:
+            f.writelines(lines)
+        os.rename(configHashFile + ".new", configHashFile)
+
+
 def is_guestnet_configured(guestnet_dict, keys):
 
     existing_keys = []
@@ -124,6 +139,11 @@ if not (os.path.isfile(jsonConfigFile) and os.access(jsonConfigFile, os.R_OK)):
     print "[ERROR] update_config.py :: Unable to read and access %s to process it" % jsonConfigFile
     sys.exit(1)
 
+# The hash recorded for the section by config_hashes.sh no longer matches once the file is applied,
+# a differential sync records it again after it has applied all of its files
+if ".json" in jsonFilename:
+    forget_config_hash(jsonFilename[:jsonFilename.index(".json") + 5])
+
 # If the guest network is already configured and have the same IP, do not try to configure it again otherwise it will break
 if jsonFilename.startswith("guest_network.json"):
     if os.path.isfile(currentGuestNetConfig):
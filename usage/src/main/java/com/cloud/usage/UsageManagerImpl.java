@@ -22,8 +22,10 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -55,6 +57,7 @@ import com.cloud.usage.dao.UsageJobDao;
 import com.cloud.usage.dao.UsageLoadBalancerPolicyDao;
 import com.cloud.usage.dao.UsageNetworkDao;
 import com.cloud.usage.dao.UsageNetworkOfferingDao;
+import com.cloud.usage.dao.UsageParseCheckpointDao;
 import com.cloud.usage.dao.UsagePortForwardingRuleDao;
 import com.cloud.usage.dao.UsageSecurityGroupDao;
 import com.cloud.usage.dao.UsageVMSnapshotOnPrimaryDao;
@@ -70,6 +73,7 @@ import com.cloud.usage.parser.NetworkOfferingUsageParser;
 import com.cloud.usage.parser.NetworkUsageParser;
 import com.cloud.usage.parser.PortForwardingUsageParser;
 import com.cloud.usage.parser.SecurityGroupUsageParser;
+import com.cloud.usage.parser.SetBasedUsageParser;
 import com.cloud.usage.parser.StorageUsageParser;
 import com.cloud.usage.parser.VMInstanceUsageParser;
 import com.cloud.usage.parser.VMSnapshotUsageParser;
@@ -84,6 +88,8 @@ import com.cloud.user.VmDiskStatisticsVO;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserStatisticsDao;
 import com.cloud.user.dao.VmDiskStatisticsDao;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
@@ -134,6 +140,8 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     @Inject
     private UsageJobDao _usageJobDao;
     @Inject
+    private UsageParseCheckpointDao _usageParseCheckpointDao;
+    @Inject
     private VmDiskStatisticsDao _vmDiskStatsDao;
     @Inject
     private UsageVmDiskDao _usageVmDiskDao;
@@ -175,6 +183,8 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private Future _heartbeat = null;
     private Future _sanity = null;
     private boolean  usageSnapshotSelection = false;
+    private UsageParsingEngine _parsingEngine;
+    private boolean _setBasedParsing = false;
 
     public UsageManagerImpl() {
     }
@@ -213,6 +223,9 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         String aggreagationTimeZone = configs.get("usage.aggregation.timezone");
         String sanityCheckInterval = configs.get("usage.sanity.check.interval");
         String quotaEnable = configs.get("quota.enable.service");
+        int parseWorkers = NumbersUtil.parseInt(configs.get("usage.parse.workers"), 4);
+        int parsePartitions = NumbersUtil.parseInt(configs.get("usage.parse.partitions"), 16);
+        _setBasedParsing = Boolean.valueOf(configs.get("usage.parse.set.based"));
         _runQuota = Boolean.valueOf(quotaEnable == null ? "false" : quotaEnable );
         usageSnapshotSelection  = Boolean.valueOf(configs.get("usage.snapshot.virtualsize.select"));
         if (sanityCheckInterval != null) {
@@ -272,6 +285,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             throw new ConfigurationException("Unhandled exception configuring UsageManager " + e.toString());
         }
         _pid = Integer.parseInt(System.getProperty("pid"));
+        _parsingEngine = new UsageParsingEngine(parseWorkers, parsePartitions, getAccountParsers(_setBasedParsing));
         return true;
     }
 
@@ -322,6 +336,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         if (_sanity != null) {
             _sanity.cancel(true);
         }
+        _parsingEngine.shutdown();
         return true;
     }
 
@@ -441,6 +456,37 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 startDateMillis = lastSuccess + 1; // 1 millisecond after
             }
 
+            // a job that failed part way left checkpoints for the partitions it committed, resume it over the same range
+            final long requestedStartMillis = startDateMillis;
+            UsageParseCheckpointVO resumeCheckpoint = null;
+            final Set<Integer> parsedPartitions = new HashSet<Integer>();
+            TransactionLegacy checkpointTxn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+            try {
+                List<UsageParseCheckpointVO> checkpoints = _usageParseCheckpointDao.listCheckpoints();
+                if (!checkpoints.isEmpty()) {
+                    UsageParseCheckpointVO checkpoint = checkpoints.get(0);
+                    if (checkpoint.getRangeStartMillis() == startDateMillis) {
+                        resumeCheckpoint = checkpoint;
+                        for (UsageParseCheckpointVO parsedPartition : checkpoints) {
+                            parsedPartitions.add(parsedPartition.getPartitionId());
+                        }
+                        endDateMillis = checkpoint.getEndMillis();
+                        if (s_logger.isInfoEnabled()) {
+                            s_logger.info("resuming usage job over " + new Date(checkpoint.getStartMillis()) + " to " + new Date(endDateMillis) + ", " + parsedPartitions.size()
+                                    + " of " + checkpoint.getPartitions() + " partitions already parsed");
+                        }
+                    } else {
+                        s_logger.warn("discarding usage parse checkpoints of a job starting at " + new Date(checkpoint.getRangeStartMillis()) + ", last successful job ended at "
+                                + new Date(lastSuccess));
+                        _usageParseCheckpointDao.removeCheckpoints();
+                    }
+                }
+            } finally {
+                checkpointTxn.close();
+            }
+            // partition the accounts the same way as the job being resumed, so committed partitions are not parsed twice
+            final int partitions = resumeCheckpoint != null ? resumeCheckpoint.getPartitions() : _parsingEngine.getPartitions();
+
             if (startDateMillis >= endDateMillis) {
                 if (s_logger.isInfoEnabled()) {
                     s_logger.info("not parsing usage records since start time mills (" + startDateMillis + ") is on or after end time millis (" + endDateMillis + ")");
@@ -636,6 +682,12 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                     }
                 }
 
+                if (resumeCheckpoint != null) {
+                    // use the aggregation windows of the job being resumed
+                    startDateMillis = resumeCheckpoint.getStartMillis();
+                    startDate = new Date(startDateMillis);
+                }
+
                 // TODO:  Fetch a maximum number of user stats and process them before moving on to the next range of user stats
 
                 // get user stats in order to compute network usage
@@ -743,92 +795,65 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 usageTxn.commit();
                 usageTxn.start();
 
-                boolean parsed = false;
-                numAcctsProcessed = 0;
-
-                Date currentStartDate = startDate;
-                Date currentEndDate = endDate;
-                Date tempDate = endDate;
-
-                Calendar aggregateCal = Calendar.getInstance(_usageTimezone);
+                // parse every aggregation window of the range, partition by partition on the parsing engine's workers
+                final List<Pair<Date, Date>> windows = getAggregationWindows(startDate, endDate);
+                final List<AccountVO> activeAccounts = listAccounts(null);
+                final List<AccountVO> deletedAccounts = listAccounts(recentlyDeletedDate);
+                final long rangeStartMillis = resumeCheckpoint != null ? resumeCheckpoint.getRangeStartMillis() : requestedStartMillis;
+                final long parseStartMillis = startDateMillis;
+                final long parseEndMillis = endDateMillis;
 
-                while ((tempDate.after(startDate)) && ((tempDate.getTime() - startDate.getTime()) > 60000)) {
-                    currentEndDate = tempDate;
-                    aggregateCal.setTime(tempDate);
-                    aggregateCal.add(Calendar.MINUTE, -_aggregationDuration);
-                    tempDate = aggregateCal.getTime();
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("parsing " + windows.size() + " aggregation windows for " + activeAccounts.size() + " ACTIVE and " + deletedAccounts.size()
+                            + " RECENTLY DELETED accts on " + _parsingEngine.getWorkers() + " workers, " + parsedPartitions.size() + " of " + partitions
+                            + " partitions already parsed");
                 }
 
-                while (!currentEndDate.after(endDate) || (currentEndDate.getTime() - endDate.getTime() < 60000)) {
-                    Long offset = Long.valueOf(0);
-                    Long limit = Long.valueOf(500);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-                        accounts = _accountDao.listAll(filter);
-                        if ((accounts != null) && !accounts.isEmpty()) {
+                _parsingEngine.resetParserTimings();
+                success = _parsingEngine.run(activeAccounts, deletedAccounts, partitions, parsedPartitions, new UsageParsingEngine.PartitionWork() {
+                    @Override
+                    public void parsePartition(int partition, List<AccountVO> accounts, List<AccountVO> deleted) throws Exception {
+                        Map<Long, AccountVO> accountsById = new HashMap<Long, AccountVO>();
+                        if (_setBasedParsing) {
                             for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
+                                accountsById.put(account.getId(), account);
+                            }
+                            for (AccountVO account : deleted) {
+                                accountsById.put(account.getId(), account);
                             }
                         }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
-
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
-                    }
-                    numAcctsProcessed = 0;
-
-                    // reset offset
-                    offset = Long.valueOf(0);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
 
-                        accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
-
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
-                                for (Long templateId : publicTemplates) {
-                                    //mark public templates owned by deleted accounts as deleted
-                                    List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
-                                    if (storageVOs.size() > 1) {
-                                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
-                                                "; marking them all as deleted...");
-                                    }
-                                    for (UsageStorageVO storageVO : storageVOs) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
-                                        }
-                                        storageVO.setDeleted(account.getRemoved());
-                                        _usageStorageDao.update(storageVO);
-                                    }
+                        TransactionLegacy partitionTxn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+                        try {
+                            partitionTxn.start();
+                            for (Pair<Date, Date> window : windows) {
+                                if (_setBasedParsing) {
+                                    SetBasedUsageParser.parse(accountsById, window.first(), window.second());
+                                }
+                                for (AccountVO account : accounts) {
+                                    _parsingEngine.parseAccount(account, window.first(), window.second());
                                 }
-                                numAcctsProcessed++;
+                                for (AccountVO account : deleted) {
+                                    _parsingEngine.parseAccount(account, window.first(), window.second());
+                                }
+                            }
+                            for (AccountVO account : deleted) {
+                                markPublicTemplatesDeleted(account);
                             }
+                            _usageParseCheckpointDao.persist(new UsageParseCheckpointVO(rangeStartMillis, parseStartMillis, parseEndMillis, partition, partitions));
+                            partitionTxn.commit();
+                        } catch (Exception e) {
+                            partitionTxn.rollback();
+                            throw e;
+                        } finally {
+                            partitionTxn.close();
                         }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
-
-                    currentStartDate = new Date(currentEndDate.getTime() + 1);
-                    aggregateCal.setTime(currentEndDate);
-                    aggregateCal.add(Calendar.MINUTE, _aggregationDuration);
-                    currentEndDate = aggregateCal.getTime();
-                }
-
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
-                }
+                    }
+                });
+                _parsingEngine.logParserTimings();
 
-                // FIXME: we don't break the above loop if something fails to parse, so it gets reset every account,
-                //        do we want to break out of processing accounts and rollback if there are errors?
-                if (!parsed) {
-                    usageTxn.rollback();
-                } else {
-                    success = true;
+                if (success) {
+                    _usageParseCheckpointDao.removeCheckpoints();
                 }
             } catch (Exception ex) {
                 s_logger.error("Exception in usage manager", ex);
@@ -860,103 +885,165 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
     }
 
-    private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate) {
-        boolean parsed = false;
+    /**
+     * Splits the range into aggregation windows, aligned backwards from the end date.
+     */
+    protected List<Pair<Date, Date>> getAggregationWindows(Date startDate, Date endDate) {
+        List<Pair<Date, Date>> windows = new ArrayList<Pair<Date, Date>>();
+        Date currentStartDate = startDate;
+        Date currentEndDate = endDate;
+        Date tempDate = endDate;
 
-        parsed = VMInstanceUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("vm usage instances successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
-        }
+        Calendar aggregateCal = Calendar.getInstance(_usageTimezone);
 
-        parsed = NetworkUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("network usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+        while ((tempDate.after(startDate)) && ((tempDate.getTime() - startDate.getTime()) > 60000)) {
+            currentEndDate = tempDate;
+            aggregateCal.setTime(tempDate);
+            aggregateCal.add(Calendar.MINUTE, -_aggregationDuration);
+            tempDate = aggregateCal.getTime();
         }
 
-        parsed = VmDiskUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("vm disk usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
-        }
+        while (!currentEndDate.after(endDate) || (currentEndDate.getTime() - endDate.getTime() < 60000)) {
+            windows.add(new Pair<Date, Date>(currentStartDate, currentEndDate));
 
-        parsed = VolumeUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("volume usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+            currentStartDate = new Date(currentEndDate.getTime() + 1);
+            aggregateCal.setTime(currentEndDate);
+            aggregateCal.add(Calendar.MINUTE, _aggregationDuration);
+            currentEndDate = aggregateCal.getTime();
         }
+        return windows;
+    }
 
-        parsed = StorageUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("storage usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    /**
+     * Lists all active accounts, or the accounts removed after recentlyDeletedDate when it is given.
+     */
+    private List<AccountVO> listAccounts(Date recentlyDeletedDate) {
+        List<AccountVO> all = new ArrayList<AccountVO>();
+        List<AccountVO> accounts = null;
+        Long offset = Long.valueOf(0);
+        Long limit = Long.valueOf(500);
+        do {
+            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+            if (recentlyDeletedDate == null) {
+                accounts = _accountDao.listAll(filter);
+            } else {
+                accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
             }
-        }
-
-        parsed = SecurityGroupUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("Security Group usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+            if (accounts != null) {
+                all.addAll(accounts);
             }
-        }
+            offset = new Long(offset.longValue() + limit.longValue());
+        } while ((accounts != null) && !accounts.isEmpty());
+        return all;
+    }
 
-        parsed = LoadBalancerUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("load balancer usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    private void markPublicTemplatesDeleted(AccountVO account) {
+        List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
+        for (Long templateId : publicTemplates) {
+            //mark public templates owned by deleted accounts as deleted
+            List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
+            if (storageVOs.size() > 1) {
+                s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
+                        "; marking them all as deleted...");
             }
-        }
-
-        parsed = PortForwardingUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("port forwarding usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+            for (UsageStorageVO storageVO : storageVOs) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
+                }
+                storageVO.setDeleted(account.getRemoved());
+                _usageStorageDao.update(storageVO);
             }
         }
+    }
 
-        parsed = NetworkOfferingUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("network offering usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+    /**
+     * @param setBased leave out the parsers covered by {@link SetBasedUsageParser}
+     */
+    private static List<UsageParsingEngine.AccountParser> getAccountParsers(boolean setBased) {
+        List<UsageParsingEngine.AccountParser> parsers = new ArrayList<UsageParsingEngine.AccountParser>();
+        if (!setBased) {
+            parsers.add(new UsageParsingEngine.AccountParser("vm usage instances") {
+                @Override
+                public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                    return VMInstanceUsageParser.parse(account, startDate, endDate);
+                }
+            });
+            parsers.add(new UsageParsingEngine.AccountParser("network usage") {
+                @Override
+                public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                    return NetworkUsageParser.parse(account, startDate, endDate);
+                }
+            });
         }
-
-        parsed = IPAddressUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("IPAddress usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+        parsers.add(new UsageParsingEngine.AccountParser("vm disk usage") {
+            @Override
+            public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return VmDiskUsageParser.parse(account, startDate, endDate);
+            }
+        });
+        if (!setBased) {
+            parsers.add(new UsageParsingEngine.AccountParser("volume usage") {
+                @Override
+                public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                    return VolumeUsageParser.parse(account, startDate, endDate);
+                }
+            });
         }
-        parsed = VPNUserUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("VPN user usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+        parsers.add(new UsageParsingEngine.AccountParser("storage usage") {
+            @Override
+            public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return StorageUsageParser.parse(account, startDate, endDate);
             }
-        }
-        parsed = VMSnapshotUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("VM Snapshot usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+        });
+        parsers.add(new UsageParsingEngine.AccountParser("Security Group usage") {
+            @Override
+            public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return SecurityGroupUsageParser.parse(account, startDate, endDate);
             }
-        }
-        parsed = VMSnapshotUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("VM Snapshot usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+        });
+        parsers.add(new UsageParsingEngine.AccountParser("load balancer usage") {
+            @Override
+            public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return LoadBalancerUsageParser.parse(account, startDate, endDate);
             }
-        }
-        parsed = VMSanpshotOnPrimaryParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("VM Snapshot on primary usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+        });
+        parsers.add(new UsageParsingEngine.AccountParser("port forwarding usage") {
+            @Override
+            public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return PortForwardingUsageParser.parse(account, startDate, endDate);
             }
-        }
-        return parsed;
+        });
+        parsers.add(new UsageParsingEngine.AccountParser("network offering usage") {
+            @Override
+            public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return NetworkOfferingUsageParser.parse(account, startDate, endDate);
+            }
+        });
+        parsers.add(new UsageParsingEngine.AccountParser("IPAddress usage") {
+            @Override
+            public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return IPAddressUsageParser.parse(account, startDate, endDate);
+            }
+        });
+        parsers.add(new UsageParsingEngine.AccountParser("VPN user usage") {
+            @Override
+            public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return VPNUserUsageParser.parse(account, startDate, endDate);
+            }
+        });
+        parsers.add(new UsageParsingEngine.AccountParser("VM Snapshot usage") {
+            @Override
+            public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return VMSnapshotUsageParser.parse(account, startDate, endDate);
+            }
+        });
+        parsers.add(new UsageParsingEngine.AccountParser("VM Snapshot on primary usage") {
+            @Override
+            public boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return VMSanpshotOnPrimaryParser.parse(account, startDate, endDate);
+            }
+        });
+        return parsers;
     }
 
     private void createHelperRecord(UsageEventVO event) {
@@ -0,0 +1,265 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+import com.cloud.user.AccountVO;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Runs the usage parsers for all accounts on a pool of workers.
+ *
+ * Accounts are split into a fixed number of partitions by account id. Each partition is handed
+ * to a {@link PartitionWork} on a worker thread, which parses it in its own usage DB transaction
+ * and checkpoints it in that same transaction, so a job failing part way is resumed by parsing
+ * only the partitions without a checkpoint. The time spent in every parser is accounted for
+ * so slow parsers show up in the job log.
+ */
+public class UsageParsingEngine {
+    public static final Logger s_logger = Logger.getLogger(UsageParsingEngine.class.getName());
+
+    /**
+     * One usage parser, run for an account over one aggregation window.
+     */
+    public static abstract class AccountParser {
+        private final String _name;
+
+        protected AccountParser(String name) {
+            _name = name;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public abstract boolean parse(AccountVO account, Date startDate, Date endDate);
+    }
+
+    /**
+     * Parses the accounts of one partition, called on a worker thread.
+     */
+    public interface PartitionWork {
+        void parsePartition(int partition, List<AccountVO> accounts, List<AccountVO> deletedAccounts) throws Exception;
+    }
+
+    private final int _workers;
+    private final int _partitions;
+    private final List<AccountParser> _parsers;
+    private final Map<String, AtomicLong> _parserNanos = new LinkedHashMap<String, AtomicLong>();
+    private final Map<String, AtomicLong> _parserCalls = new LinkedHashMap<String, AtomicLong>();
+    private final ExecutorService _executor;
+
+    public UsageParsingEngine(int workers, int partitions, List<AccountParser> parsers) {
+        _workers = Math.max(1, workers);
+        _partitions = Math.max(1, partitions);
+        _parsers = new ArrayList<AccountParser>(parsers);
+        for (AccountParser parser : _parsers) {
+            _parserNanos.put(parser.getName(), new AtomicLong());
+            _parserCalls.put(parser.getName(), new AtomicLong());
+        }
+        _executor = Executors.newFixedThreadPool(_workers, new NamedThreadFactory("Usage-Parse"));
+    }
+
+    public int getWorkers() {
+        return _workers;
+    }
+
+    public int getPartitions() {
+        return _partitions;
+    }
+
+    public static int partitionOf(long accountId, int partitions) {
+        return (int)(accountId % partitions);
+    }
+
+    protected static List<List<AccountVO>> split(List<AccountVO> accounts, int partitions) {
+        List<List<AccountVO>> partitioned = new ArrayList<List<AccountVO>>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            partitioned.add(new ArrayList<AccountVO>());
+        }
+        if (accounts != null) {
+            for (AccountVO account : accounts) {
+                partitioned.get(partitionOf(account.getId(), partitions)).add(account);
+            }
+        }
+        return partitioned;
+    }
+
+    /**
+     * Runs all parsers for the account over one aggregation window, in the caller's transaction.
+     *
+     * @return false if any of the parsers reported a failure.
+     */
+    public boolean parseAccount(AccountVO account, Date startDate, Date endDate) {
+        boolean parsed = true;
+        for (AccountParser parser : _parsers) {
+            long start = nanoTime();
+            boolean result = parser.parse(account, startDate, endDate);
+            _parserNanos.get(parser.getName()).addAndGet(nanoTime() - start);
+            _parserCalls.get(parser.getName()).incrementAndGet();
+
+            if (!result) {
+                parsed = false;
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug(parser.getName() + " successfully parsed? false (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+                }
+            }
+        }
+        return parsed;
+    }
+
+    public boolean run(List<AccountVO> accounts, List<AccountVO> deletedAccounts, Set<Integer> skipPartitions, PartitionWork work) {
+        return run(accounts, deletedAccounts, _partitions, skipPartitions, work);
+    }
+
+    /**
+     * Splits the accounts into the given number of partitions and parses every partition that is not
+     * in skipPartitions and has accounts, then waits for all of them.
+     *
+     * @return true if all of the partitions were parsed.
+     */
+    public boolean run(List<AccountVO> accounts, List<AccountVO> deletedAccounts, final int partitions, Set<Integer> skipPartitions, final PartitionWork work) {
+        final List<List<AccountVO>> active = split(accounts, partitions);
+        final List<List<AccountVO>> deleted = split(deletedAccounts, partitions);
+        final Set<Integer> skip = skipPartitions != null ? skipPartitions : Collections.<Integer>emptySet();
+
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < partitions; i++) {
+            if (skip.contains(i)) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Skipping usage partition " + i + " of " + partitions + ", it has been parsed already");
+                }
+                continue;
+            }
+            if (active.get(i).isEmpty() && deleted.get(i).isEmpty()) {
+                continue;
+            }
+
+            final int partition = i;
+            futures.add(_executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    final boolean[] parsed = new boolean[1];
+                    new ManagedContextRunnable() {
+                        @Override
+                        protected void runInContext() {
+                            long start = System.currentTimeMillis();
+                            try {
+                                work.parsePartition(partition, active.get(partition), deleted.get(partition));
+                                parsed[0] = true;
+                            } catch (Exception e) {
+                                s_logger.error("Failed to parse usage partition " + partition + " of " + partitions, e);
+                            }
+                            if (s_logger.isDebugEnabled()) {
+                                s_logger.debug("Usage partition " + partition + " with " + active.get(partition).size() + " active and " + deleted.get(partition).size()
+                                        + " recently deleted accounts parsed in " + (System.currentTimeMillis() - start) + " ms, success: " + parsed[0]);
+                            }
+                        }
+                    }.run();
+                    return parsed[0];
+                }
+            }));
+        }
+
+        boolean success = true;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                if (!futures.get(i).get()) {
+                    success = false;
+                }
+            } catch (InterruptedException e) {
+                s_logger.warn("Interrupted while waiting for usage partitions, cancelling the remaining ones");
+                for (int j = i; j < futures.size(); j++) {
+                    futures.get(j).cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                s_logger.error("Unexpected failure parsing usage partition", e.getCause());
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * @return milliseconds spent in every parser since the last reset, in parser order.
+     */
+    public Map<String, Long> getParserTimings() {
+        Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : _parserNanos.entrySet()) {
+            timings.put(entry.getKey(), entry.getValue().get() / 1000000);
+        }
+        return timings;
+    }
+
+    /**
+     * @return number of times every parser ran since the last reset, in parser order.
+     */
+    public Map<String, Long> getParserCalls() {
+        Map<String, Long> calls = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : _parserCalls.entrySet()) {
+            calls.put(entry.getKey(), entry.getValue().get());
+        }
+        return calls;
+    }
+
+    public void logParserTimings() {
+        if (!s_logger.isInfoEnabled()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("Usage parser timings:");
+        for (Map.Entry<String, AtomicLong> entry : _parserNanos.entrySet()) {
+            sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue().get() / 1000000).append("ms/").append(_parserCalls.get(entry.getKey()).get());
+        }
+        s_logger.info(sb.toString());
+    }
+
+    public void resetParserTimings() {
+        for (AtomicLong nanos : _parserNanos.values()) {
+            nanos.set(0);
+        }
+        for (AtomicLong calls : _parserCalls.values()) {
+            calls.set(0);
+        }
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+}
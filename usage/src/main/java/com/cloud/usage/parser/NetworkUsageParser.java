@@ -96,44 +96,8 @@ public class NetworkUsageParser {
         List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String key : networkUsageByZone.keySet()) {
             NetworkInfo networkInfo = networkUsageByZone.get(key);
-            long totalBytesSent = networkInfo.getBytesSent();
-            long totalBytesReceived = networkInfo.getBytesRcvd();
-
-            if ((totalBytesSent > 0L) || (totalBytesReceived > 0L)) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Creating usage record, total bytes sent:" + totalBytesSent + ", total bytes received: " + totalBytesReceived + " for account: " +
-                        account.getId() + " in availability zone " + networkInfo.getZoneId() + ", start: " + startDate + ", end: " + endDate);
-                }
-
-                Long hostId = null;
-
-                // Create the usage record for bytes sent
-                String usageDesc = "network bytes sent";
-                if (networkInfo.getHostId() != 0) {
-                    hostId = networkInfo.getHostId();
-                    usageDesc += " for Host: " + networkInfo.getHostId();
-                }
-                UsageVO usageRecord =
-                    new UsageVO(networkInfo.getZoneId(), account.getId(), account.getDomainId(), usageDesc, totalBytesSent + " bytes sent",
-                        UsageTypes.NETWORK_BYTES_SENT, new Double(totalBytesSent), hostId, networkInfo.getHostType(), networkInfo.getNetworkId(), startDate, endDate);
-                usageRecords.add(usageRecord);
-
-                // Create the usage record for bytes received
-                usageDesc = "network bytes received";
-                if (networkInfo.getHostId() != 0) {
-                    usageDesc += " for Host: " + networkInfo.getHostId();
-                }
-                usageRecord =
-                    new UsageVO(networkInfo.getZoneId(), account.getId(), account.getDomainId(), usageDesc, totalBytesReceived + " bytes received",
-                        UsageTypes.NETWORK_BYTES_RECEIVED, new Double(totalBytesReceived), hostId, networkInfo.getHostType(), networkInfo.getNetworkId(), startDate,
-                        endDate);
-                usageRecords.add(usageRecord);
-            } else {
-                // Don't charge anything if there were zero bytes processed
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("No usage record (0 bytes used) generated for account: " + account.getId());
-                }
-            }
+            addUsageRecords(usageRecords, account, networkInfo.getZoneId(), networkInfo.getHostId(), networkInfo.getHostType(), networkInfo.getNetworkId(),
+                networkInfo.getBytesSent(), networkInfo.getBytesRcvd(), startDate, endDate);
         }
 
         s_usageDao.saveUsageRecords(usageRecords);
@@ -141,6 +105,48 @@ public class NetworkUsageParser {
         return true;
     }
 
+    /**
+     * Adds the bytes sent and received records of one zone (and host) of the account, if any bytes were transferred.
+     */
+    static void addUsageRecords(List<UsageVO> usageRecords, AccountVO account, long zoneId, long hostId, String hostType, Long networkId, long totalBytesSent,
+        long totalBytesReceived, Date startDate, Date endDate) {
+        if ((totalBytesSent > 0L) || (totalBytesReceived > 0L)) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Creating usage record, total bytes sent:" + totalBytesSent + ", total bytes received: " + totalBytesReceived + " for account: " +
+                    account.getId() + " in availability zone " + zoneId + ", start: " + startDate + ", end: " + endDate);
+            }
+
+            Long usageHostId = null;
+
+            // Create the usage record for bytes sent
+            String usageDesc = "network bytes sent";
+            if (hostId != 0) {
+                usageHostId = hostId;
+                usageDesc += " for Host: " + hostId;
+            }
+            UsageVO usageRecord =
+                new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, totalBytesSent + " bytes sent",
+                    UsageTypes.NETWORK_BYTES_SENT, new Double(totalBytesSent), usageHostId, hostType, networkId, startDate, endDate);
+            usageRecords.add(usageRecord);
+
+            // Create the usage record for bytes received
+            usageDesc = "network bytes received";
+            if (hostId != 0) {
+                usageDesc += " for Host: " + hostId;
+            }
+            usageRecord =
+                new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, totalBytesReceived + " bytes received",
+                    UsageTypes.NETWORK_BYTES_RECEIVED, new Double(totalBytesReceived), usageHostId, hostType, networkId, startDate,
+                    endDate);
+            usageRecords.add(usageRecord);
+        } else {
+            // Don't charge anything if there were zero bytes processed
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("No usage record (0 bytes used) generated for account: " + account.getId());
+            }
+        }
+    }
+
     private static class NetworkInfo {
         private long zoneId;
         private long hostId;
@@ -0,0 +1,317 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+import org.apache.cloudstack.usage.UsageTypes;
+
+import com.cloud.usage.UsageNetworkVO;
+import com.cloud.usage.UsageVMInstanceVO;
+import com.cloud.usage.UsageVO;
+import com.cloud.usage.UsageVolumeVO;
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageNetworkDao;
+import com.cloud.usage.dao.UsageVMInstanceDao;
+import com.cloud.usage.dao.UsageVolumeDao;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.StringUtils;
+
+/**
+ * Parses VM instance, volume and network usage of a whole account partition at once.
+ *
+ * Instead of one query per account and parser, the helper table rows of the accounts in the partition are read a
+ * chunk of accounts at a time, ordered by account, durations and byte counts are summed per account as the rows go
+ * by and the resulting cloud_usage records are written with batched inserts. The records are the same as the ones
+ * the per-account {@link VMInstanceUsageParser}, {@link VolumeUsageParser} and {@link NetworkUsageParser} create.
+ */
+@Component
+public class SetBasedUsageParser {
+    public static final Logger s_logger = Logger.getLogger(SetBasedUsageParser.class.getName());
+
+    protected static final int BATCH_SIZE = 500;
+    // accounts per helper table query, bounds both the IN list and the rows held at a time
+    protected static final int ACCOUNT_CHUNK_SIZE = 100;
+
+    private static UsageDao s_usageDao;
+    private static UsageVMInstanceDao s_usageInstanceDao;
+    private static UsageVolumeDao s_usageVolumeDao;
+    private static UsageNetworkDao s_usageNetworkDao;
+
+    @Inject
+    private UsageDao _usageDao;
+    @Inject
+    private UsageVMInstanceDao _usageInstanceDao;
+    @Inject
+    private UsageVolumeDao _usageVolumeDao;
+    @Inject
+    private UsageNetworkDao _usageNetworkDao;
+
+    @PostConstruct
+    void init() {
+        s_usageDao = _usageDao;
+        s_usageInstanceDao = _usageInstanceDao;
+        s_usageVolumeDao = _usageVolumeDao;
+        s_usageNetworkDao = _usageNetworkDao;
+    }
+
+    /**
+     * Parses the usage of the given accounts. Database errors are not caught, the partition they belong to is rolled
+     * back and parsed again by the next job.
+     */
+    public static boolean parse(Map<Long, AccountVO> accounts, Date startDate, Date endDate) {
+        if ((endDate == null) || endDate.after(new Date())) {
+            endDate = new Date();
+        }
+
+        List<Long> accountIds = new ArrayList<Long>(accounts.keySet());
+        Collections.sort(accountIds);
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>(BATCH_SIZE);
+        for (int i = 0; i < accountIds.size(); i += ACCOUNT_CHUNK_SIZE) {
+            // chunks never share an account, so every chunk is summed up on its own
+            List<Long> chunk = accountIds.subList(i, Math.min(i + ACCOUNT_CHUNK_SIZE, accountIds.size()));
+            parseVmInstances(accounts, s_usageInstanceDao.getUsageRecords(chunk, startDate, endDate), startDate, endDate, usageRecords);
+            parseVolumes(accounts, s_usageVolumeDao.getUsageRecords(chunk, startDate, endDate), startDate, endDate, usageRecords);
+            parseNetworks(accounts, s_usageNetworkDao.getUsageRecords(chunk, startDate.getTime(), endDate.getTime()), startDate, endDate, usageRecords);
+        }
+        flush(usageRecords, 1);
+        return true;
+    }
+
+    protected static void parseVmInstances(Map<Long, AccountVO> accounts, List<UsageVMInstanceVO> usageInstances, Date startDate, Date endDate, List<UsageVO> usageRecords) {
+        Map<String, VmUsage> vmUsages = new LinkedHashMap<String, VmUsage>();
+        AccountVO account = null;
+        long accountId = -1;
+
+        for (UsageVMInstanceVO usageInstance : usageInstances) {
+            if (usageInstance.getAccountId() != accountId) {
+                addVmUsageRecords(account, vmUsages, startDate, endDate, usageRecords);
+                accountId = usageInstance.getAccountId();
+                account = accounts.get(accountId);
+            }
+            if (account == null) {
+                continue;
+            }
+
+            String key = StringUtils.join("-", usageInstance.getVmInstanceId(), usageInstance.getSerivceOfferingId(), usageInstance.getUsageType(),
+                usageInstance.getCpuCores(), usageInstance.getCpuSpeed(), usageInstance.getMemory());
+            VmUsage vmUsage = vmUsages.get(key);
+            if (vmUsage == null) {
+                vmUsage = new VmUsage();
+                vmUsages.put(key, vmUsage);
+            }
+            // like the per-account parser, the last record describes the VM, the first counted one names it
+            vmUsage.describe(usageInstance);
+
+            long vmStartDate = Math.max(usageInstance.getStartDate().getTime(), startDate.getTime());
+            long vmEndDate = usageInstance.getEndDate() == null ? endDate.getTime() : Math.min(usageInstance.getEndDate().getTime(), endDate.getTime());
+            if (vmStartDate > endDate.getTime()) {
+                continue;
+            }
+            vmUsage.count(usageInstance.getVmName(), vmEndDate - vmStartDate + 1);
+        }
+        addVmUsageRecords(account, vmUsages, startDate, endDate, usageRecords);
+    }
+
+    private static void addVmUsageRecords(AccountVO account, Map<String, VmUsage> vmUsages, Date startDate, Date endDate, List<UsageVO> usageRecords) {
+        if (account != null) {
+            for (int type : new int[] {UsageTypes.RUNNING_VM, UsageTypes.ALLOCATED_VM}) {
+                for (VmUsage vmUsage : vmUsages.values()) {
+                    if (vmUsage.usageType == type && vmUsage.counted && vmUsage.duration > 0L) {
+                        usageRecords.add(VMInstanceUsageParser.buildUsageRecord(type, vmUsage.duration, startDate, endDate, account, vmUsage.vmId, vmUsage.vmName,
+                            vmUsage.zoneId, vmUsage.serviceOfferingId, vmUsage.templateId, vmUsage.hypervisorType, vmUsage.cpuCores, vmUsage.cpuSpeed, vmUsage.memory));
+                        flush(usageRecords, BATCH_SIZE);
+                    }
+                }
+            }
+        }
+        vmUsages.clear();
+    }
+
+    protected static void parseVolumes(Map<Long, AccountVO> accounts, List<UsageVolumeVO> usageVolumes, Date startDate, Date endDate, List<UsageVO> usageRecords) {
+        Map<String, VolumeUsage> volumeUsages = new LinkedHashMap<String, VolumeUsage>();
+        AccountVO account = null;
+        long accountId = -1;
+
+        for (UsageVolumeVO usageVolume : usageVolumes) {
+            if (usageVolume.getAccountId() != accountId) {
+                addVolumeUsageRecords(account, volumeUsages, startDate, endDate, usageRecords);
+                accountId = usageVolume.getAccountId();
+                account = accounts.get(accountId);
+            }
+            if (account == null) {
+                continue;
+            }
+
+            String key = usageVolume.getId() + "-" + usageVolume.getDiskOfferingId() + "-" + usageVolume.getSize();
+            VolumeUsage volumeUsage = volumeUsages.get(key);
+            if (volumeUsage == null) {
+                volumeUsage = new VolumeUsage();
+                volumeUsages.put(key, volumeUsage);
+            }
+            volumeUsage.describe(usageVolume);
+
+            long volCreateDate = Math.max(usageVolume.getCreated().getTime(), startDate.getTime());
+            long volDeleteDate = usageVolume.getDeleted() == null ? endDate.getTime() : Math.min(usageVolume.getDeleted().getTime(), endDate.getTime());
+            if (volCreateDate > endDate.getTime()) {
+                continue;
+            }
+            volumeUsage.counted = true;
+            volumeUsage.duration += volDeleteDate - volCreateDate + 1;
+        }
+        addVolumeUsageRecords(account, volumeUsages, startDate, endDate, usageRecords);
+    }
+
+    private static void addVolumeUsageRecords(AccountVO account, Map<String, VolumeUsage> volumeUsages, Date startDate, Date endDate, List<UsageVO> usageRecords) {
+        if (account != null) {
+            for (VolumeUsage volumeUsage : volumeUsages.values()) {
+                if (volumeUsage.counted && volumeUsage.duration > 0L) {
+                    usageRecords.add(VolumeUsageParser.buildUsageRecord(UsageTypes.VOLUME, volumeUsage.duration, startDate, endDate, account, volumeUsage.volumeId,
+                        volumeUsage.zoneId, volumeUsage.diskOfferingId, volumeUsage.templateId, volumeUsage.size));
+                    flush(usageRecords, BATCH_SIZE);
+                }
+            }
+        }
+        volumeUsages.clear();
+    }
+
+    protected static void parseNetworks(Map<Long, AccountVO> accounts, List<UsageNetworkVO> usageNetworks, Date startDate, Date endDate, List<UsageVO> usageRecords) {
+        Map<String, NetworkUsage> networkUsages = new LinkedHashMap<String, NetworkUsage>();
+        AccountVO account = null;
+        long accountId = -1;
+
+        for (UsageNetworkVO usageNetwork : usageNetworks) {
+            if (usageNetwork.getAccountId() != accountId) {
+                addNetworkUsageRecords(account, networkUsages, startDate, endDate, usageRecords);
+                accountId = usageNetwork.getAccountId();
+                account = accounts.get(accountId);
+            }
+            if (account == null) {
+                continue;
+            }
+
+            String key = "" + usageNetwork.getZoneId();
+            if (usageNetwork.getHostId() != 0) {
+                key += "-Host" + usageNetwork.getHostId();
+            }
+            NetworkUsage networkUsage = networkUsages.get(key);
+            if (networkUsage == null) {
+                networkUsage = new NetworkUsage();
+                networkUsages.put(key, networkUsage);
+            }
+            networkUsage.zoneId = usageNetwork.getZoneId();
+            networkUsage.hostId = usageNetwork.getHostId();
+            networkUsage.hostType = usageNetwork.getHostType();
+            networkUsage.networkId = usageNetwork.getNetworkId();
+            networkUsage.bytesSent += usageNetwork.getBytesSent();
+            networkUsage.bytesReceived += usageNetwork.getBytesReceived();
+        }
+        addNetworkUsageRecords(account, networkUsages, startDate, endDate, usageRecords);
+    }
+
+    private static void addNetworkUsageRecords(AccountVO account, Map<String, NetworkUsage> networkUsages, Date startDate, Date endDate, List<UsageVO> usageRecords) {
+        if (account != null) {
+            for (NetworkUsage networkUsage : networkUsages.values()) {
+                // a network adds up to two records, keep the batch within its size
+                flush(usageRecords, BATCH_SIZE - 1);
+                NetworkUsageParser.addUsageRecords(usageRecords, account, networkUsage.zoneId, networkUsage.hostId, networkUsage.hostType, networkUsage.networkId,
+                    networkUsage.bytesSent, networkUsage.bytesReceived, startDate, endDate);
+                flush(usageRecords, BATCH_SIZE);
+            }
+        }
+        networkUsages.clear();
+    }
+
+    private static void flush(List<UsageVO> usageRecords, int threshold) {
+        if (!usageRecords.isEmpty() && usageRecords.size() >= threshold) {
+            s_usageDao.saveUsageRecords(usageRecords);
+            usageRecords.clear();
+        }
+    }
+
+    private static class VmUsage {
+        long vmId;
+        long zoneId;
+        long serviceOfferingId;
+        long templateId;
+        int usageType;
+        String hypervisorType;
+        Long cpuCores;
+        Long cpuSpeed;
+        Long memory;
+        String vmName;
+        boolean counted;
+        long duration;
+
+        void describe(UsageVMInstanceVO usageInstance) {
+            vmId = usageInstance.getVmInstanceId();
+            zoneId = usageInstance.getZoneId();
+            serviceOfferingId = usageInstance.getSerivceOfferingId();
+            templateId = usageInstance.getTemplateId();
+            usageType = usageInstance.getUsageType();
+            hypervisorType = usageInstance.getHypervisorType();
+            cpuCores = usageInstance.getCpuCores();
+            cpuSpeed = usageInstance.getCpuSpeed();
+            memory = usageInstance.getMemory();
+        }
+
+        void count(String name, long currentDuration) {
+            if (!counted) {
+                vmName = name;
+                counted = true;
+            }
+            duration += currentDuration;
+        }
+    }
+
+    private static class VolumeUsage {
+        long volumeId;
+        long zoneId;
+        Long diskOfferingId;
+        Long templateId;
+        long size;
+        boolean counted;
+        long duration;
+
+        void describe(UsageVolumeVO usageVolume) {
+            volumeId = usageVolume.getId();
+            zoneId = usageVolume.getZoneId();
+            diskOfferingId = usageVolume.getDiskOfferingId();
+            templateId = usageVolume.getTemplateId();
+            size = usageVolume.getSize();
+        }
+    }
+
+    private static class NetworkUsage {
+        long zoneId;
+        long hostId;
+        String hostType;
+        Long networkId;
+        long bytesSent;
+        long bytesReceived;
+    }
+}
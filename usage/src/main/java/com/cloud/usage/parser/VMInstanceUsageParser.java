@@ -161,6 +161,12 @@ public class VMInstanceUsageParser {
     }
 
     private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, String vmName, long zoneId,
+        long serviceOfferingId, long templateId, String hypervisorType, Long cpuCores, Long cpuSpeed, Long memory) {
+        s_usageDao.persist(buildUsageRecord(type, runningTime, startDate, endDate, account, vmId, vmName, zoneId, serviceOfferingId, templateId, hypervisorType, cpuCores,
+            cpuSpeed, memory));
+    }
+
+    static UsageVO buildUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, String vmName, long zoneId,
         long serviceOfferingId, long templateId, String hypervisorType, Long cpuCores, Long cpuSpeed, Long memory) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
@@ -188,7 +194,7 @@ public class VMInstanceUsageParser {
         UsageVO usageRecord =
             new UsageVO(Long.valueOf(zoneId), account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type, new Double(usage), Long.valueOf(vmId),
                 vmName, cpuCores, cpuSpeed, memory, Long.valueOf(serviceOfferingId), Long.valueOf(templateId), Long.valueOf(vmId), startDate, endDate, hypervisorType);
-        s_usageDao.persist(usageRecord);
+        return usageRecord;
     }
 
     private static class VMInfo {
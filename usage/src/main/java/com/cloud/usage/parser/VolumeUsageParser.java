@@ -141,6 +141,11 @@ public class VolumeUsageParser {
     }
 
     private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long volId, long zoneId, Long doId,
+        Long templateId, long size) {
+        s_usageDao.persist(buildUsageRecord(type, runningTime, startDate, endDate, account, volId, zoneId, doId, templateId, size));
+    }
+
+    static UsageVO buildUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long volId, long zoneId, Long doId,
         Long templateId, long size) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
@@ -169,7 +174,7 @@ public class VolumeUsageParser {
         UsageVO usageRecord =
             new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type, new Double(usage), null, null, doId, templateId, volId,
                 size, startDate, endDate);
-        s_usageDao.persist(usageRecord);
+        return usageRecord;
     }
 
     private static class VolInfo {
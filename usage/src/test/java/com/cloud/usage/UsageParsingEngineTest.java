@@ -0,0 +1,206 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.cloud.user.AccountVO;
+
+public class UsageParsingEngineTest {
+
+    /**
+     * Clock of the engines under test, only moved by the synthetic parsers.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Stands in for a usage parser, every call advances the test clock by a fixed number of milliseconds like a database round trip would.
+     */
+    class SyntheticParser extends UsageParsingEngine.AccountParser {
+        final long costMillis;
+        final AtomicInteger calls = new AtomicInteger();
+
+        SyntheticParser(String name, long costMillis) {
+            super(name);
+            this.costMillis = costMillis;
+        }
+
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            calls.incrementAndGet();
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(costMillis));
+            return true;
+        }
+    }
+
+    private UsageParsingEngine engine(int workers, int partitions, List<UsageParsingEngine.AccountParser> parsers) {
+        return new UsageParsingEngine(workers, partitions, parsers) {
+            @Override
+            protected long nanoTime() {
+                return clock.get();
+            }
+        };
+    }
+
+    private static List<AccountVO> accounts(long firstId, int count) {
+        List<AccountVO> accounts = new ArrayList<AccountVO>();
+        for (long id = firstId; id < firstId + count; id++) {
+            accounts.add(new AccountVO(id));
+        }
+        return accounts;
+    }
+
+    private static UsageParsingEngine.PartitionWork parseAll(final UsageParsingEngine engine, final Map<Long, Integer> seen) {
+        return new UsageParsingEngine.PartitionWork() {
+            @Override
+            public void parsePartition(int partition, List<AccountVO> accounts, List<AccountVO> deletedAccounts) {
+                for (AccountVO account : accounts) {
+                    assertEquals(partition, UsageParsingEngine.partitionOf(account.getId(), engine.getPartitions()));
+                    engine.parseAccount(account, new Date(0), new Date(1));
+                    seen.put(account.getId(), partition);
+                }
+                for (AccountVO account : deletedAccounts) {
+                    engine.parseAccount(account, new Date(0), new Date(1));
+                    seen.put(account.getId(), partition);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testEveryAccountIsParsedOnce() {
+        SyntheticParser parser = new SyntheticParser("synthetic", 0);
+        UsageParsingEngine engine = engine(4, 16, Collections.<UsageParsingEngine.AccountParser>singletonList(parser));
+        Map<Long, Integer> seen = new ConcurrentHashMap<Long, Integer>();
+
+        assertTrue(engine.run(accounts(1, 1000), accounts(2001, 50), null, parseAll(engine, seen)));
+        assertEquals(1050, seen.size());
+        assertEquals(1050, parser.calls.get());
+        engine.shutdown();
+    }
+
+    @Test
+    public void testCheckpointedPartitionsAreSkipped() {
+        SyntheticParser parser = new SyntheticParser("synthetic", 0);
+        UsageParsingEngine engine = engine(2, 4, Collections.<UsageParsingEngine.AccountParser>singletonList(parser));
+        Map<Long, Integer> seen = new ConcurrentHashMap<Long, Integer>();
+        Set<Integer> parsed = new HashSet<Integer>(Arrays.asList(0, 2));
+
+        assertTrue(engine.run(accounts(1, 100), null, parsed, parseAll(engine, seen)));
+        assertEquals(50, seen.size());
+        for (Integer partition : seen.values()) {
+            assertTrue(partition == 1 || partition == 3);
+        }
+        engine.shutdown();
+    }
+
+    @Test
+    public void testFailedPartitionFailsTheRunOnly() {
+        final SyntheticParser parser = new SyntheticParser("synthetic", 0);
+        final UsageParsingEngine engine = engine(4, 8, Collections.<UsageParsingEngine.AccountParser>singletonList(parser));
+        final Set<Integer> committed = Collections.synchronizedSet(new HashSet<Integer>());
+
+        boolean success = engine.run(accounts(1, 80), null, null, new UsageParsingEngine.PartitionWork() {
+            @Override
+            public void parsePartition(int partition, List<AccountVO> accounts, List<AccountVO> deletedAccounts) {
+                if (partition == 5) {
+                    throw new IllegalStateException("simulated database failure");
+                }
+                committed.add(partition);
+            }
+        });
+
+        assertFalse(success);
+        assertEquals(7, committed.size());
+        assertFalse(committed.contains(5));
+        engine.shutdown();
+    }
+
+    @Test
+    public void testParserTimings() {
+        SyntheticParser fast = new SyntheticParser("fast", 0);
+        SyntheticParser slow = new SyntheticParser("slow", 2);
+        UsageParsingEngine engine = engine(1, 1, Arrays.<UsageParsingEngine.AccountParser>asList(fast, slow));
+
+        for (AccountVO account : accounts(1, 10)) {
+            assertTrue(engine.parseAccount(account, new Date(0), new Date(1)));
+        }
+
+        Map<String, Long> timings = engine.getParserTimings();
+        assertEquals(Arrays.asList("fast", "slow"), new ArrayList<String>(timings.keySet()));
+        assertEquals(Long.valueOf(0), timings.get("fast"));
+        assertEquals(Long.valueOf(20), timings.get("slow"));
+        assertEquals(Long.valueOf(10), engine.getParserCalls().get("fast"));
+        assertEquals(Long.valueOf(10), engine.getParserCalls().get("slow"));
+
+        engine.resetParserTimings();
+        assertEquals(Long.valueOf(0), engine.getParserTimings().get("slow"));
+        assertEquals(Long.valueOf(0), engine.getParserCalls().get("slow"));
+        engine.shutdown();
+    }
+
+    @Test
+    public void testPartitionsRunConcurrentlyUpToTheWorkerCount() {
+        final int workers = 4;
+        SyntheticParser parser = new SyntheticParser("synthetic", 0);
+        UsageParsingEngine engine = engine(workers, 16, Collections.<UsageParsingEngine.AccountParser>singletonList(parser));
+        final CountDownLatch allWorkersBusy = new CountDownLatch(workers);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final Set<Integer> parsed = Collections.synchronizedSet(new HashSet<Integer>());
+
+        boolean success = engine.run(accounts(1, 160), null, null, new UsageParsingEngine.PartitionWork() {
+            @Override
+            public void parsePartition(int partition, List<AccountVO> accounts, List<AccountVO> deletedAccounts) throws Exception {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+                // the first partitions only finish once every worker holds one
+                allWorkersBusy.countDown();
+                if (!allWorkersBusy.await(30, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("partitions were not parsed concurrently");
+                }
+                parsed.add(partition);
+                running.decrementAndGet();
+            }
+        });
+
+        assertTrue(success);
+        assertEquals(16, parsed.size());
+        assertEquals(workers, maxRunning.get());
+        engine.shutdown();
+    }
+}
@@ -0,0 +1,388 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.cloudstack.usage.UsageTypes;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.usage.UsageNetworkVO;
+import com.cloud.usage.UsageVMInstanceVO;
+import com.cloud.usage.UsageVO;
+import com.cloud.usage.UsageVolumeVO;
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageNetworkDao;
+import com.cloud.usage.dao.UsageVMInstanceDao;
+import com.cloud.usage.dao.UsageVolumeDao;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Runs the per-account parsers and the set-based parser over the same synthetic helper tables and
+ * checks they produce the same cloud_usage records.
+ */
+public class SetBasedUsageParserTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final int ACCOUNTS = 300;
+    // more accounts per partition than fit in one helper table query
+    private static final int PARTITIONS = 2;
+
+    @Mock
+    private UsageDao usageDao;
+    @Mock
+    private UsageVMInstanceDao usageInstanceDao;
+    @Mock
+    private UsageVolumeDao usageVolumeDao;
+    @Mock
+    private UsageNetworkDao usageNetworkDao;
+    @Mock
+    private SearchCriteria<UsageNetworkVO> networkSearch;
+
+    @InjectMocks
+    private VMInstanceUsageParser vmInstanceParser = new VMInstanceUsageParser();
+    @InjectMocks
+    private VolumeUsageParser volumeParser = new VolumeUsageParser();
+    @InjectMocks
+    private NetworkUsageParser networkParser = new NetworkUsageParser();
+    @InjectMocks
+    private SetBasedUsageParser setBasedParser = new SetBasedUsageParser();
+
+    private final List<AccountVO> accounts = new ArrayList<AccountVO>();
+    private final List<UsageVMInstanceVO> vmInstances = new ArrayList<UsageVMInstanceVO>();
+    private final List<UsageVolumeVO> volumes = new ArrayList<UsageVolumeVO>();
+    private final List<UsageNetworkVO> networks = new ArrayList<UsageNetworkVO>();
+
+    private final List<UsageVO> created = new ArrayList<UsageVO>();
+    private final List<Integer> batchSizes = new ArrayList<Integer>();
+    private final Object[] networkQuery = new Object[3];
+
+    private Date startDate;
+    private Date endDate;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        vmInstanceParser.init();
+        volumeParser.init();
+        networkParser.init();
+        setBasedParser.init();
+
+        startDate = new Date(1514764800000L); // 2018-01-01 00:00 GMT
+        endDate = new Date(startDate.getTime() + 24 * HOUR - 1);
+        createFixture(new Random(42));
+
+        Mockito.when(usageDao.persist(Mockito.any(UsageVO.class))).thenAnswer(new Answer<UsageVO>() {
+            @Override
+            public UsageVO answer(InvocationOnMock invocation) {
+                UsageVO usage = (UsageVO)invocation.getArguments()[0];
+                created.add(usage);
+                return usage;
+            }
+        });
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                List<UsageVO> batch = (List<UsageVO>)invocation.getArguments()[0];
+                created.addAll(batch);
+                batchSizes.add(batch.size());
+                return null;
+            }
+        }).when(usageDao).saveUsageRecords(Mockito.anyListOf(UsageVO.class));
+
+        // per account queries
+        Mockito.when(usageInstanceDao.getUsageRecords(Mockito.anyLong(), Mockito.any(Date.class), Mockito.any(Date.class))).thenAnswer(new Answer<List<UsageVMInstanceVO>>() {
+            @Override
+            public List<UsageVMInstanceVO> answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                return vmInstancesOf((Long)args[0], null, (Date)args[1], (Date)args[2]);
+            }
+        });
+        Mockito.when(usageVolumeDao.getUsageRecords(Mockito.anyLong(), Mockito.anyLong(), Mockito.any(Date.class), Mockito.any(Date.class), Mockito.eq(false), Mockito.eq(0)))
+            .thenAnswer(new Answer<List<UsageVolumeVO>>() {
+                @Override
+                public List<UsageVolumeVO> answer(InvocationOnMock invocation) {
+                    Object[] args = invocation.getArguments();
+                    return volumesOf((Long)args[0], null, (Date)args[2], (Date)args[3]);
+                }
+            });
+        Mockito.when(usageNetworkDao.createSearchCriteria()).thenReturn(networkSearch);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                if ("accountId".equals(args[0])) {
+                    networkQuery[0] = args[2];
+                } else if ("eventTimeMillis".equals(args[0])) {
+                    networkQuery[1] = args[2];
+                    networkQuery[2] = args[3];
+                }
+                return null;
+            }
+        }).when(networkSearch).addAnd(Mockito.anyString(), Mockito.any(SearchCriteria.Op.class), Mockito.<Object>anyVararg());
+        Mockito.when(usageNetworkDao.search(Mockito.any(SearchCriteria.class), Mockito.any(Filter.class))).thenAnswer(new Answer<List<UsageNetworkVO>>() {
+            @Override
+            public List<UsageNetworkVO> answer(InvocationOnMock invocation) {
+                return networksOf((Long)networkQuery[0], null, (Long)networkQuery[1], (Long)networkQuery[2]);
+            }
+        });
+
+        // account chunk queries
+        Mockito.when(usageInstanceDao.getUsageRecords(Mockito.anyListOf(Long.class), Mockito.any(Date.class), Mockito.any(Date.class))).thenAnswer(
+            new Answer<List<UsageVMInstanceVO>>() {
+                @Override
+                public List<UsageVMInstanceVO> answer(InvocationOnMock invocation) {
+                    Object[] args = invocation.getArguments();
+                    return vmInstancesOf(null, (List<Long>)args[0], (Date)args[1], (Date)args[2]);
+                }
+            });
+        Mockito.when(usageVolumeDao.getUsageRecords(Mockito.anyListOf(Long.class), Mockito.any(Date.class), Mockito.any(Date.class))).thenAnswer(
+            new Answer<List<UsageVolumeVO>>() {
+                @Override
+                public List<UsageVolumeVO> answer(InvocationOnMock invocation) {
+                    Object[] args = invocation.getArguments();
+                    return volumesOf(null, (List<Long>)args[0], (Date)args[1], (Date)args[2]);
+                }
+            });
+        Mockito.when(usageNetworkDao.getUsageRecords(Mockito.anyListOf(Long.class), Mockito.anyLong(), Mockito.anyLong())).thenAnswer(new Answer<List<UsageNetworkVO>>() {
+            @Override
+            public List<UsageNetworkVO> answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                return networksOf(null, (List<Long>)args[0], (Long)args[1], (Long)args[2]);
+            }
+        });
+    }
+
+    /**
+     * Random helper table rows around the aggregation window: running and allocated VMs that started
+     * before or after the window start, are still running or ended inside or after it, changed service
+     * offering or name; volumes that were resized; network stats of routers and hosts. Accounts 1001 and
+     * up own rows but are not parsed, like long removed accounts.
+     */
+    private void createFixture(Random random) {
+        for (long id = 1; id <= ACCOUNTS; id++) {
+            AccountVO account = new AccountVO(id);
+            account.setDomainId(1 + id % 7);
+            accounts.add(account);
+        }
+
+        long vmId = 1;
+        long volumeId = 1;
+        for (long accountId = 1; accountId <= ACCOUNTS + 20; accountId++) {
+            long owner = accountId <= ACCOUNTS ? accountId : 1000 + accountId;
+            for (int vm = random.nextInt(5); vm > 0; vm--, vmId++) {
+                for (int row = 1 + random.nextInt(4); row > 0; row--) {
+                    int usageType = random.nextBoolean() ? UsageTypes.RUNNING_VM : UsageTypes.ALLOCATED_VM;
+                    Date rowStart = randomDate(random);
+                    Date rowEnd = random.nextInt(3) == 0 ? null : new Date(rowStart.getTime() + random.nextInt(30) * HOUR + random.nextInt(1000));
+                    Long cpu = random.nextInt(4) == 0 ? null : Long.valueOf(1 + random.nextInt(2));
+                    vmInstances.add(new UsageVMInstanceVO(usageType, 1 + random.nextInt(2), owner, vmId, "vm-" + vmId + (random.nextInt(4) == 0 ? "-renamed" : ""),
+                        1 + random.nextInt(2), 200 + random.nextInt(3), cpu == null ? null : 2000L, cpu, cpu == null ? null : 1024 * cpu, "KVM", rowStart, rowEnd));
+                }
+            }
+            for (int volume = random.nextInt(4); volume > 0; volume--, volumeId++) {
+                for (int row = 1 + random.nextInt(3); row > 0; row--) {
+                    Date created = randomDate(random);
+                    Date deleted = random.nextInt(3) == 0 ? null : new Date(created.getTime() + random.nextInt(30) * HOUR);
+                    Long template = random.nextInt(3) == 0 ? Long.valueOf(200) : null;
+                    Long offering = random.nextInt(4) == 0 ? null : Long.valueOf(10 + random.nextInt(2));
+                    volumes.add(new UsageVolumeVO(volumeId, 1, owner, 1 + owner % 7, offering, template, (1L + random.nextInt(2)) << 30, created, deleted));
+                }
+            }
+            for (int stat = random.nextInt(6); stat > 0; stat--) {
+                long hostId = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(3);
+                long sent = random.nextInt(4) == 0 ? 0 : random.nextInt(1 << 20);
+                long received = random.nextInt(4) == 0 ? 0 : random.nextInt(1 << 20);
+                networks.add(new UsageNetworkVO(owner, 1 + random.nextInt(2), hostId, hostId == 0 ? "DomainRouter" : "Host", 300L + random.nextInt(2), sent, received,
+                    0, 0, randomDate(random).getTime()));
+            }
+        }
+    }
+
+    private Date randomDate(Random random) {
+        // from two days before the window to a few hours after it
+        return new Date(startDate.getTime() - 48 * HOUR + (long)(random.nextDouble() * 78 * HOUR));
+    }
+
+    private static boolean selected(long accountId, Long account, List<Long> accountIds) {
+        return account != null ? account.longValue() == accountId : accountIds.contains(accountId);
+    }
+
+    private static boolean overlaps(Date start, Date end, Date windowStart, Date windowEnd) {
+        // same criteria as the usage helper table queries
+        return end == null || !start.before(windowStart) && !start.after(windowEnd) || !end.before(windowStart) && !end.after(windowEnd)
+            || !start.after(windowStart) && !end.before(windowEnd);
+    }
+
+    private List<UsageVMInstanceVO> vmInstancesOf(Long account, List<Long> accountIds, Date start, Date end) {
+        List<UsageVMInstanceVO> rows = new ArrayList<UsageVMInstanceVO>();
+        for (UsageVMInstanceVO row : vmInstances) {
+            if (selected(row.getAccountId(), account, accountIds) && overlaps(row.getStartDate(), row.getEndDate(), start, end)) {
+                rows.add(row);
+            }
+        }
+        if (account == null) {
+            sortByAccount(rows);
+        }
+        return rows;
+    }
+
+    private List<UsageVolumeVO> volumesOf(Long account, List<Long> accountIds, Date start, Date end) {
+        List<UsageVolumeVO> rows = new ArrayList<UsageVolumeVO>();
+        for (UsageVolumeVO row : volumes) {
+            if (selected(row.getAccountId(), account, accountIds) && overlaps(row.getCreated(), row.getDeleted(), start, end)) {
+                rows.add(row);
+            }
+        }
+        if (account == null) {
+            sortByAccount(rows);
+        }
+        return rows;
+    }
+
+    private List<UsageNetworkVO> networksOf(Long account, List<Long> accountIds, long start, long end) {
+        List<UsageNetworkVO> rows = new ArrayList<UsageNetworkVO>();
+        for (UsageNetworkVO row : networks) {
+            if (selected(row.getAccountId(), account, accountIds) && row.getEventTimeMillis() >= start && row.getEventTimeMillis() <= end) {
+                rows.add(row);
+            }
+        }
+        if (account == null) {
+            sortByAccount(rows);
+        }
+        return rows;
+    }
+
+    private static <T> void sortByAccount(List<T> rows) {
+        // stable, keeps the row order within an account like ORDER BY account_id on an insertion ordered table
+        Collections.sort(rows, new java.util.Comparator<T>() {
+            @Override
+            public int compare(T a, T b) {
+                return Long.compare(accountOf(a), accountOf(b));
+            }
+        });
+    }
+
+    private static long accountOf(Object row) {
+        if (row instanceof UsageVMInstanceVO) {
+            return ((UsageVMInstanceVO)row).getAccountId();
+        } else if (row instanceof UsageVolumeVO) {
+            return ((UsageVolumeVO)row).getAccountId();
+        }
+        return ((UsageNetworkVO)row).getAccountId();
+    }
+
+    private List<String> parsePerAccount() {
+        created.clear();
+        for (AccountVO account : accounts) {
+            assertTrue(VMInstanceUsageParser.parse(account, startDate, endDate));
+            assertTrue(NetworkUsageParser.parse(account, startDate, endDate));
+            assertTrue(VolumeUsageParser.parse(account, startDate, endDate));
+        }
+        return describe(created);
+    }
+
+    private List<String> parseSetBased() {
+        created.clear();
+        batchSizes.clear();
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            Map<Long, AccountVO> partitionAccounts = new HashMap<Long, AccountVO>();
+            for (AccountVO account : accounts) {
+                if (account.getId() % PARTITIONS == partition) {
+                    partitionAccounts.put(account.getId(), account);
+                }
+            }
+            assertTrue(SetBasedUsageParser.parse(partitionAccounts, startDate, endDate));
+        }
+        return describe(created);
+    }
+
+    private static List<String> describe(List<UsageVO> records) {
+        List<String> described = new ArrayList<String>();
+        for (UsageVO r : records) {
+            described.add(r.getAccountId() + "|" + r.getDomainId() + "|" + r.getZoneId() + "|" + r.getUsageType() + "|" + r.getDescription() + "|" + r.getUsageDisplay() + "|"
+                + r.getRawUsage() + "|" + r.getVmInstanceId() + "|" + r.getVmName() + "|" + r.getCpuCores() + "|" + r.getCpuSpeed() + "|" + r.getMemory() + "|"
+                + r.getOfferingId() + "|" + r.getTemplateId() + "|" + r.getUsageId() + "|" + r.getType() + "|" + r.getSize() + "|" + r.getVirtualSize() + "|"
+                + r.getNetworkId() + "|" + r.getStartDate().getTime() + "|" + r.getEndDate().getTime());
+        }
+        Collections.sort(described);
+        return described;
+    }
+
+    @Test
+    public void testSetBasedParsingMatchesPerAccountParsing() {
+        List<String> perAccount = parsePerAccount();
+        List<String> setBased = parseSetBased();
+
+        assertTrue("fixture should produce usage of every kind", perAccount.size() > 1000);
+        assertEquals(perAccount, setBased);
+    }
+
+    @Test
+    public void testSetBasedParsingQueriesAccountChunksAndBatchesInserts() {
+        parseSetBased();
+
+        int chunks = PARTITIONS * ((ACCOUNTS / PARTITIONS + SetBasedUsageParser.ACCOUNT_CHUNK_SIZE - 1) / SetBasedUsageParser.ACCOUNT_CHUNK_SIZE);
+        Mockito.verify(usageInstanceDao, Mockito.never()).getUsageRecords(Mockito.anyLong(), Mockito.any(Date.class), Mockito.any(Date.class));
+        Mockito.verify(usageInstanceDao, Mockito.times(chunks)).getUsageRecords(Mockito.anyListOf(Long.class), Mockito.any(Date.class), Mockito.any(Date.class));
+        Mockito.verify(usageVolumeDao, Mockito.times(chunks)).getUsageRecords(Mockito.anyListOf(Long.class), Mockito.any(Date.class), Mockito.any(Date.class));
+        Mockito.verify(usageNetworkDao, Mockito.times(chunks)).getUsageRecords(Mockito.anyListOf(Long.class), Mockito.anyLong(), Mockito.anyLong());
+        Mockito.verify(usageDao, Mockito.never()).persist(Mockito.any(UsageVO.class));
+
+        int total = 0;
+        for (int size : batchSizes) {
+            assertTrue(size <= SetBasedUsageParser.BATCH_SIZE);
+            total += size;
+        }
+        assertEquals(created.size(), total);
+        assertTrue(batchSizes.size() < created.size() / 100);
+    }
+
+    /**
+     * A failed helper table read has to fail the partition, it must not be checkpointed as if the accounts had no usage.
+     */
+    @Test(expected = CloudRuntimeException.class)
+    public void testDatabaseErrorFailsTheParse() {
+        Mockito.when(usageVolumeDao.getUsageRecords(Mockito.anyListOf(Long.class), Mockito.any(Date.class), Mockito.any(Date.class)))
+            .thenThrow(new CloudRuntimeException("simulated database failure"));
+        Map<Long, AccountVO> partitionAccounts = new HashMap<Long, AccountVO>();
+        for (AccountVO account : accounts) {
+            partitionAccounts.put(account.getId(), account);
+        }
+
+        SetBasedUsageParser.parse(partitionAccounts, startDate, endDate);
+    }
+}
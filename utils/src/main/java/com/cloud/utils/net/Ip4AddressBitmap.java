@@ -0,0 +1,151 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.net;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tracks which host addresses of an IPv4 cidr are in use, one bit per address.
+ *
+ * Only the host range is covered, the network and broadcast addresses are never handed out.
+ * Lookups and updates are O(1) and picking a free address scans words of the bitset instead of
+ * building the set of free addresses like {@link NetUtils#getAllIpsFromCidr} does.
+ * Not thread safe.
+ */
+public class Ip4AddressBitmap {
+    private final long _first;
+    private final int _capacity;
+    private final BitSet _used;
+    private int _usedCount;
+
+    public Ip4AddressBitmap(final String cidr) {
+        final String[] parts = cidr.split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid cidr " + cidr);
+        }
+        final int size = Integer.parseInt(parts[1]);
+        if (size < 1 || size > 32) {
+            throw new IllegalArgumentException("Invalid cidr " + cidr);
+        }
+        final long mask = NetUtils.ip2Long(NetUtils.getCidrNetmask(size));
+        _first = (NetUtils.ip2Long(parts[0]) & mask) + 1;
+        // a /31 or /32 has no host range
+        _capacity = size > 30 ? 0 : (int)((1L << (32 - size)) - 2);
+        _used = new BitSet(_capacity);
+    }
+
+    public long getFirst() {
+        return _first;
+    }
+
+    public long getLast() {
+        return _first + _capacity - 1;
+    }
+
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    public int getFreeCount() {
+        return _capacity - _usedCount;
+    }
+
+    public boolean contains(final long ip) {
+        return ip >= _first && ip < _first + _capacity;
+    }
+
+    public boolean isFree(final long ip) {
+        return contains(ip) && !_used.get(offset(ip));
+    }
+
+    /**
+     * @return true if the address was free, addresses outside the host range are ignored
+     */
+    public boolean markUsed(final long ip) {
+        if (!contains(ip)) {
+            return false;
+        }
+        final int offset = offset(ip);
+        if (_used.get(offset)) {
+            return false;
+        }
+        _used.set(offset);
+        _usedCount++;
+        return true;
+    }
+
+    /**
+     * @return true if the address was in use
+     */
+    public boolean markFree(final long ip) {
+        if (!contains(ip)) {
+            return false;
+        }
+        final int offset = offset(ip);
+        if (!_used.get(offset)) {
+            return false;
+        }
+        _used.clear(offset);
+        _usedCount--;
+        return true;
+    }
+
+    /**
+     * @return the lowest free address at or after from, wrapping around to the start of the range, or -1 if the range is full
+     */
+    public long nextFree(final long from) {
+        if (getFreeCount() == 0) {
+            return -1;
+        }
+        final int start = contains(from) ? offset(from) : 0;
+        int offset = _used.nextClearBit(start);
+        if (offset >= _capacity) {
+            offset = _used.nextClearBit(0);
+        }
+        return offset < _capacity ? _first + offset : -1;
+    }
+
+    /**
+     * @return a free address starting the search at a random point of the range, or -1 if the range is full
+     */
+    public long randomFree(final Random random) {
+        if (getFreeCount() == 0) {
+            return -1;
+        }
+        return nextFree(_first + random.nextInt(_capacity));
+    }
+
+    /**
+     * @return up to max free addresses in ascending order
+     */
+    public Set<Long> freeIps(final int max) {
+        final Set<Long> result = new TreeSet<Long>();
+        int offset = _used.nextClearBit(0);
+        while (offset < _capacity && result.size() < max) {
+            result.add(_first + offset);
+            offset = _used.nextClearBit(offset + 1);
+        }
+        return result;
+    }
+
+    private int offset(final long ip) {
+        return (int)(ip - _first);
+    }
+}
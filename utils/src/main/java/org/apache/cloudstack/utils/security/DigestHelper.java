@@ -34,11 +34,18 @@ public class DigestHelper {
         while ((read = is.read(buffer)) > 0) {
             digest.update(buffer, 0, read);
         }
+        checksum = toChecksumValue(digest);
+        return checksum;
+    }
+
+    /**
+     * Completes a digest that was fed elsewhere, e.g. while the data was being downloaded.
+     */
+    public static ChecksumValue toChecksumValue(MessageDigest digest) {
         byte[] md5sum = digest.digest();
         // TODO make sure this is valid for all types of checksums !?!
         BigInteger bigInt = new BigInteger(1, md5sum);
-        checksum = new ChecksumValue(digest.getAlgorithm(), getPaddedDigestString(digest,bigInt));
-        return checksum;
+        return new ChecksumValue(digest.getAlgorithm(), getPaddedDigestString(digest,bigInt));
     }
 
     public static boolean check(String checksum, InputStream is) throws IOException, NoSuchAlgorithmException {
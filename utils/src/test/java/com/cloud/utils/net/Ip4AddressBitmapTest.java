@@ -0,0 +1,123 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class Ip4AddressBitmapTest {
+
+    @Test
+    public void testHostRange() {
+        Ip4AddressBitmap bitmap = new Ip4AddressBitmap("10.1.1.0/24");
+        assertEquals(254, bitmap.getCapacity());
+        assertEquals(NetUtils.ip2Long("10.1.1.1"), bitmap.getFirst());
+        assertEquals(NetUtils.ip2Long("10.1.1.254"), bitmap.getLast());
+        assertFalse(bitmap.contains(NetUtils.ip2Long("10.1.1.0")));
+        assertFalse(bitmap.contains(NetUtils.ip2Long("10.1.1.255")));
+
+        // host bits in the cidr are ignored
+        assertEquals(NetUtils.ip2Long("10.1.0.1"), new Ip4AddressBitmap("10.1.5.7/20").getFirst());
+        assertEquals(2, new Ip4AddressBitmap("192.168.0.0/30").getCapacity());
+    }
+
+    @Test
+    public void testNoHostRange() {
+        Ip4AddressBitmap bitmap = new Ip4AddressBitmap("192.168.0.0/31");
+        assertEquals(0, bitmap.getCapacity());
+        assertFalse(bitmap.markUsed(NetUtils.ip2Long("192.168.0.1")));
+        assertEquals(-1, bitmap.randomFree(new Random()));
+        assertTrue(bitmap.freeIps(255).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCidr() {
+        new Ip4AddressBitmap("192.168.0.0");
+    }
+
+    @Test
+    public void testMarkUsedAndFree() {
+        Ip4AddressBitmap bitmap = new Ip4AddressBitmap("10.1.1.0/24");
+        long ip = NetUtils.ip2Long("10.1.1.10");
+
+        assertTrue(bitmap.isFree(ip));
+        assertTrue(bitmap.markUsed(ip));
+        assertFalse(bitmap.markUsed(ip));
+        assertFalse(bitmap.isFree(ip));
+        assertEquals(253, bitmap.getFreeCount());
+
+        assertFalse(bitmap.markUsed(NetUtils.ip2Long("10.1.2.10")));
+        assertEquals(253, bitmap.getFreeCount());
+
+        assertTrue(bitmap.markFree(ip));
+        assertFalse(bitmap.markFree(ip));
+        assertEquals(254, bitmap.getFreeCount());
+    }
+
+    @Test
+    public void testNextFreeWrapsAround() {
+        Ip4AddressBitmap bitmap = new Ip4AddressBitmap("192.168.0.0/29");
+        for (int i = 1; i <= 6; i++) {
+            if (i != 2) {
+                bitmap.markUsed(NetUtils.ip2Long("192.168.0." + i));
+            }
+        }
+
+        assertEquals(NetUtils.ip2Long("192.168.0.2"), bitmap.nextFree(NetUtils.ip2Long("192.168.0.1")));
+        assertEquals(NetUtils.ip2Long("192.168.0.2"), bitmap.nextFree(NetUtils.ip2Long("192.168.0.5")));
+        assertEquals(NetUtils.ip2Long("192.168.0.2"), bitmap.randomFree(new Random()));
+
+        bitmap.markUsed(NetUtils.ip2Long("192.168.0.2"));
+        assertEquals(-1, bitmap.nextFree(bitmap.getFirst()));
+        assertEquals(-1, bitmap.randomFree(new Random()));
+    }
+
+    @Test
+    public void testFreeIpsMatchesGetAllIpsFromCidr() {
+        Random random = new Random(7);
+        Ip4AddressBitmap bitmap = new Ip4AddressBitmap("172.16.0.0/22");
+        Set<Long> used = new HashSet<Long>();
+        for (int i = 0; i < 300; i++) {
+            long ip = bitmap.getFirst() + random.nextInt(bitmap.getCapacity());
+            bitmap.markUsed(ip);
+            used.add(ip);
+        }
+
+        assertEquals(NetUtils.getAllIpsFromCidr("172.16.0.0", 22, used), bitmap.freeIps(255));
+        assertEquals(bitmap.getCapacity() - used.size(), bitmap.getFreeCount());
+    }
+
+    @Test
+    public void testRandomFreeHandsOutEveryAddressOnce() {
+        Random random = new Random(11);
+        Ip4AddressBitmap bitmap = new Ip4AddressBitmap("10.0.0.0/23");
+        Set<Long> allocated = new HashSet<Long>();
+        for (long ip = bitmap.randomFree(random); ip != -1; ip = bitmap.randomFree(random)) {
+            assertTrue(bitmap.markUsed(ip));
+            assertTrue(allocated.add(ip));
+        }
+        assertEquals(bitmap.getCapacity(), allocated.size());
+        assertEquals(0, bitmap.getFreeCount());
+    }
+}
@@ -0,0 +1,453 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.mo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.vmware.vim25.ComputeResourceSummary;
+import com.vmware.vim25.CustomFieldStringValue;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PerfSampleInfo;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.WaitOptions;
+
+import com.cloud.hypervisor.vmware.util.VmwareContext;
+
+/**
+ * Collects VM and host statistics on behalf of all commands sharing a {@link VmwareContext}.
+ *
+ * Instead of retrieving the VM properties of a host on every call, a PropertyCollector filter is registered
+ * once per host or cluster and kept current with WaitForUpdatesEx, so a stats cycle only transfers what changed
+ * since the previous one. Performance counter ids are looked up once, and the network counters of all VMs are
+ * fetched with a few batched queryPerf calls rather than one call per VM.
+ */
+public class VmwareStatsCollector {
+    private static final Logger s_logger = Logger.getLogger(VmwareStatsCollector.class);
+
+    public static final String VM_NAME = "name";
+    public static final String VM_POWER_STATE = "runtime.powerState";
+    public static final String VM_NUM_CPU = "summary.config.numCpu";
+    public static final String VM_CPU_USAGE = "summary.quickStats.overallCpuUsage";
+    public static final String VM_GUEST_MEMORY_USAGE = "summary.quickStats.guestMemoryUsage";
+    public static final String VM_MEMORY_LIMIT = "resourceConfig.memoryAllocation.limit";
+    public static final String VM_MEMORY_MB = "config.hardware.memoryMB";
+    public static final String VM_MAX_CPU_USAGE = "summary.runtime.maxCpuUsage";
+
+    public static final String HOST_CPU_MHZ = "summary.hardware.cpuMhz";
+    public static final String HOST_NUM_CPU_CORES = "summary.hardware.numCpuCores";
+    public static final String HOST_MEMORY_SIZE = "summary.hardware.memorySize";
+    public static final String HOST_CPU_USAGE = "summary.quickStats.overallCpuUsage";
+    public static final String HOST_MEMORY_USAGE = "summary.quickStats.overallMemoryUsage";
+
+    private static final String[] HOST_PROPERTIES = {HOST_CPU_MHZ, HOST_NUM_CPU_CORES, HOST_MEMORY_SIZE, HOST_CPU_USAGE, HOST_MEMORY_USAGE};
+
+    private static final int DEFAULT_PERF_BATCH_SIZE = 64;
+
+    private final VmwareContext _context;
+    private final int _perfBatchSize;
+
+    private ManagedObjectReference _propertyCollector;
+    private String _version = "";
+    private String _instanceNameField;
+
+    private boolean _countersLoaded;
+    private PerfCounterInfo _rxCounter;
+    private PerfCounterInfo _txCounter;
+
+    // filter -> host or cluster it was registered for
+    private final Map<String, String> _filterOwners = new HashMap<String, String>();
+    // host or cluster -> its filter
+    private final Map<String, ManagedObjectReference> _filters = new HashMap<String, ManagedObjectReference>();
+    // host or cluster -> (VM or host -> last known properties)
+    private final Map<String, Map<String, EntityProperties>> _entities = new HashMap<String, Map<String, EntityProperties>>();
+
+    public VmwareStatsCollector(VmwareContext context) {
+        this(context, DEFAULT_PERF_BATCH_SIZE);
+    }
+
+    public VmwareStatsCollector(VmwareContext context, int perfBatchSize) {
+        assert (context != null);
+        assert (perfBatchSize > 0);
+        _context = context;
+        _perfBatchSize = perfBatchSize;
+    }
+
+    public static class EntityProperties {
+        private final ManagedObjectReference _mor;
+        private final Map<String, Object> _properties = new HashMap<String, Object>();
+
+        public EntityProperties(ManagedObjectReference mor) {
+            _mor = mor;
+        }
+
+        public ManagedObjectReference getMor() {
+            return _mor;
+        }
+
+        public Object getProperty(String path) {
+            return _properties.get(path);
+        }
+
+        public double getDouble(String path) {
+            Object val = _properties.get(path);
+            if (val instanceof Number)
+                return ((Number)val).doubleValue();
+            return 0;
+        }
+    }
+
+    public static class VmStats {
+        private final String _name;
+        private final EntityProperties _properties;
+        private double _networkReadKBs;
+        private double _networkWriteKBs;
+
+        public VmStats(String name, EntityProperties properties) {
+            _name = name;
+            _properties = properties;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public ManagedObjectReference getMor() {
+            return _properties.getMor();
+        }
+
+        public Object getProperty(String path) {
+            return _properties.getProperty(path);
+        }
+
+        public double getDouble(String path) {
+            return _properties.getDouble(path);
+        }
+
+        public double getNetworkReadKBs() {
+            return _networkReadKBs;
+        }
+
+        public double getNetworkWriteKBs() {
+            return _networkWriteKBs;
+        }
+    }
+
+    /**
+     * Returns the stats of the given VMs that run on a host or on any host of a cluster, keyed by the VM internal
+     * name when it is set and by the vCenter name otherwise.
+     */
+    public synchronized Map<String, VmStats> getVmStats(ManagedObjectReference hostOrCluster, Collection<String> vmNames) throws Exception {
+        Map<String, EntityProperties> entities = sync(hostOrCluster);
+
+        Map<String, VmStats> statsMap = new HashMap<String, VmStats>();
+        List<VmStats> poweredOn = new ArrayList<VmStats>();
+        for (EntityProperties entity : entities.values()) {
+            if (!"VirtualMachine".equals(entity.getMor().getType()))
+                continue;
+
+            String name = null;
+            Object internalName = entity.getProperty(_instanceNameField);
+            if (internalName instanceof CustomFieldStringValue)
+                name = ((CustomFieldStringValue)internalName).getValue();
+            if (name == null)
+                name = (String)entity.getProperty(VM_NAME);
+            if (name == null || !vmNames.contains(name))
+                continue;
+
+            VmStats stats = new VmStats(name, entity);
+            statsMap.put(name, stats);
+            if (entity.getProperty(VM_POWER_STATE) == VirtualMachinePowerState.POWERED_ON)
+                poweredOn.add(stats);
+        }
+
+        queryNetworkStats(poweredOn);
+        return statsMap;
+    }
+
+    /**
+     * Returns the resource summary of a host in the same form as {@link HostMO#getHyperHostHardwareSummary()}.
+     */
+    public synchronized ComputeResourceSummary getHostResourceSummary(ManagedObjectReference hostMor) throws Exception {
+        EntityProperties host = sync(hostMor).get(hostMor.getValue());
+        if (host == null || host.getProperty(HOST_CPU_USAGE) == null || host.getProperty(HOST_MEMORY_USAGE) == null)
+            throw new Exception("Unable to get valid overal CPU/Memory usage data, host may be disconnected");
+
+        long memorySize = ((Number)host.getProperty(HOST_MEMORY_SIZE)).longValue();
+        int numCpuCores = ((Number)host.getProperty(HOST_NUM_CPU_CORES)).intValue();
+        int totalCpu = ((Number)host.getProperty(HOST_CPU_MHZ)).intValue() * numCpuCores;
+
+        ComputeResourceSummary resourceSummary = new ComputeResourceSummary();
+        resourceSummary.setNumCpuCores((short)numCpuCores);
+        resourceSummary.setTotalMemory(memorySize);
+        resourceSummary.setTotalCpu(totalCpu);
+        resourceSummary.setEffectiveCpu(totalCpu - ((Number)host.getProperty(HOST_CPU_USAGE)).intValue());
+        resourceSummary.setEffectiveMemory(memorySize / (1024 * 1024) - ((Number)host.getProperty(HOST_MEMORY_USAGE)).intValue());
+        return resourceSummary;
+    }
+
+    /**
+     * Drops the server side PropertyCollector and all cached state, the next call starts over with a full fetch.
+     */
+    public synchronized void reset() {
+        if (_propertyCollector != null) {
+            try {
+                _context.getService().destroyPropertyCollector(_propertyCollector);
+            } catch (Exception e) {
+                s_logger.debug("[ignored] unable to destroy property collector " + _propertyCollector.getValue() + ": " + e.getMessage());
+            }
+        }
+        _propertyCollector = null;
+        _version = "";
+        _filterOwners.clear();
+        _filters.clear();
+        _entities.clear();
+    }
+
+    private Map<String, EntityProperties> sync(ManagedObjectReference hostOrCluster) throws Exception {
+        try {
+            return track(hostOrCluster);
+        } catch (Exception e) {
+            // the session may have been re-established or the collector version expired, retry once from scratch
+            s_logger.info("Incremental property update failed, resetting stats collector: " + e.getMessage());
+            reset();
+            return track(hostOrCluster);
+        }
+    }
+
+    private Map<String, EntityProperties> track(ManagedObjectReference hostOrCluster) throws Exception {
+        if (_propertyCollector == null)
+            _propertyCollector = _context.getService().createPropertyCollector(_context.getPropertyCollector());
+
+        String owner = hostOrCluster.getValue();
+        if (!_filters.containsKey(owner)) {
+            ManagedObjectReference filter = _context.getService().createFilter(_propertyCollector, getFilterSpec(hostOrCluster), true);
+            _filters.put(owner, filter);
+            _filterOwners.put(filter.getValue(), owner);
+            _entities.put(owner, new HashMap<String, EntityProperties>());
+        }
+
+        WaitOptions options = new WaitOptions();
+        options.setMaxWaitSeconds(0);
+        UpdateSet updateSet;
+        do {
+            updateSet = _context.getService().waitForUpdatesEx(_propertyCollector, _version, options);
+            if (updateSet == null)
+                break;
+            _version = updateSet.getVersion();
+            applyUpdates(updateSet);
+        } while (Boolean.TRUE.equals(updateSet.isTruncated()));
+
+        return _entities.get(owner);
+    }
+
+    private void applyUpdates(UpdateSet updateSet) {
+        for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+            String owner = _filterOwners.get(filterUpdate.getFilter().getValue());
+            if (owner == null)
+                continue;
+
+            Map<String, EntityProperties> entities = _entities.get(owner);
+            for (ObjectUpdate objUpdate : filterUpdate.getObjectSet()) {
+                String key = objUpdate.getObj().getValue();
+                if (objUpdate.getKind() == ObjectUpdateKind.LEAVE) {
+                    entities.remove(key);
+                    continue;
+                }
+
+                EntityProperties entity = entities.get(key);
+                if (entity == null || objUpdate.getKind() == ObjectUpdateKind.ENTER) {
+                    entity = new EntityProperties(objUpdate.getObj());
+                    entities.put(key, entity);
+                }
+                for (PropertyChange change : objUpdate.getChangeSet()) {
+                    if (change.getOp() == PropertyChangeOp.REMOVE || change.getOp() == PropertyChangeOp.INDIRECT_REMOVE)
+                        entity._properties.remove(change.getName());
+                    else
+                        entity._properties.put(change.getName(), change.getVal());
+                }
+            }
+        }
+    }
+
+    private PropertyFilterSpec getFilterSpec(ManagedObjectReference hostOrCluster) throws Exception {
+        if (_instanceNameField == null) {
+            CustomFieldsManagerMO cfmMo = new CustomFieldsManagerMO(_context, _context.getServiceContent().getCustomFieldsManager());
+            int key = cfmMo.getCustomFieldKey("VirtualMachine", CustomFieldConstants.CLOUD_VM_INTERNAL_NAME);
+            if (key == 0)
+                s_logger.warn("Custom field " + CustomFieldConstants.CLOUD_VM_INTERNAL_NAME + " is not registered ?!");
+            _instanceNameField = "value[" + key + "]";
+        }
+
+        PropertySpec vmSpec = new PropertySpec();
+        vmSpec.setType("VirtualMachine");
+        vmSpec.getPathSet().add(VM_NAME);
+        vmSpec.getPathSet().add(VM_POWER_STATE);
+        vmSpec.getPathSet().add(VM_NUM_CPU);
+        vmSpec.getPathSet().add(VM_CPU_USAGE);
+        vmSpec.getPathSet().add(VM_GUEST_MEMORY_USAGE);
+        vmSpec.getPathSet().add(VM_MEMORY_LIMIT);
+        vmSpec.getPathSet().add(VM_MEMORY_MB);
+        vmSpec.getPathSet().add(VM_MAX_CPU_USAGE);
+        vmSpec.getPathSet().add(_instanceNameField);
+
+        PropertySpec hostSpec = new PropertySpec();
+        hostSpec.setType("HostSystem");
+        for (String path : HOST_PROPERTIES)
+            hostSpec.getPathSet().add(path);
+
+        TraversalSpec host2VmTraversal = new TraversalSpec();
+        host2VmTraversal.setType("HostSystem");
+        host2VmTraversal.setPath("vm");
+        host2VmTraversal.setName("host2VmTraversal");
+
+        ObjectSpec oSpec = new ObjectSpec();
+        oSpec.setObj(hostOrCluster);
+        if (hostOrCluster.getType().equals("ClusterComputeResource")) {
+            SelectionSpec host2VmSelection = new SelectionSpec();
+            host2VmSelection.setName("host2VmTraversal");
+
+            TraversalSpec cluster2HostTraversal = new TraversalSpec();
+            cluster2HostTraversal.setType("ClusterComputeResource");
+            cluster2HostTraversal.setPath("host");
+            cluster2HostTraversal.setName("cluster2HostTraversal");
+            cluster2HostTraversal.getSelectSet().add(host2VmSelection);
+
+            oSpec.setSkip(Boolean.TRUE);
+            oSpec.getSelectSet().add(cluster2HostTraversal);
+            oSpec.getSelectSet().add(host2VmTraversal);
+        } else {
+            oSpec.setSkip(Boolean.FALSE);
+            oSpec.getSelectSet().add(host2VmTraversal);
+        }
+
+        PropertyFilterSpec pfSpec = new PropertyFilterSpec();
+        pfSpec.getPropSet().add(vmSpec);
+        pfSpec.getPropSet().add(hostSpec);
+        pfSpec.getObjectSet().add(oSpec);
+        return pfSpec;
+    }
+
+    private void loadCounters() throws Exception {
+        if (_countersLoaded)
+            return;
+
+        ManagedObjectReference perfMgr = _context.getServiceContent().getPerfManager();
+        List<PerfCounterInfo> counters = _context.getVimClient().getDynamicProperty(perfMgr, "perfCounter");
+        PerfCounterInfoMapper mapper = new PerfCounterInfoMapper(counters != null ? counters.toArray(new PerfCounterInfo[0]) : null);
+        _rxCounter = mapper.lookupOne("net", "received", null);
+        _txCounter = mapper.lookupOne("net", "transmitted", null);
+        _countersLoaded = true;
+    }
+
+    private void queryNetworkStats(List<VmStats> vms) throws Exception {
+        if (vms.isEmpty())
+            return;
+
+        loadCounters();
+        if (_rxCounter == null && _txCounter == null)
+            return;
+
+        Map<String, VmStats> vmByMor = new HashMap<String, VmStats>();
+        List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>();
+        for (VmStats vm : vms) {
+            vmByMor.put(vm.getMor().getValue(), vm);
+
+            PerfQuerySpec qSpec = new PerfQuerySpec();
+            qSpec.setEntity(vm.getMor());
+            // the empty instance is the aggregate over all NICs of the VM
+            if (_rxCounter != null)
+                qSpec.getMetricId().add(getMetricId(_rxCounter));
+            if (_txCounter != null)
+                qSpec.getMetricId().add(getMetricId(_txCounter));
+            qSpecs.add(qSpec);
+        }
+
+        ManagedObjectReference perfMgr = _context.getServiceContent().getPerfManager();
+        for (int start = 0; start < qSpecs.size(); start += _perfBatchSize) {
+            List<PerfQuerySpec> batch = qSpecs.subList(start, Math.min(start + _perfBatchSize, qSpecs.size()));
+            List<PerfEntityMetricBase> values = _context.getService().queryPerf(perfMgr, batch);
+            if (values == null)
+                continue;
+
+            for (PerfEntityMetricBase value : values) {
+                VmStats vm = vmByMor.get(value.getEntity().getValue());
+                if (vm != null && value instanceof PerfEntityMetric)
+                    applyNetworkMetric(vm, (PerfEntityMetric)value);
+            }
+        }
+    }
+
+    private static PerfMetricId getMetricId(PerfCounterInfo counter) {
+        PerfMetricId metricId = new PerfMetricId();
+        metricId.setCounterId(counter.getKey());
+        metricId.setInstance("");
+        return metricId;
+    }
+
+    private void applyNetworkMetric(VmStats vm, PerfEntityMetric metric) {
+        List<PerfSampleInfo> infos = metric.getSampleInfo();
+        if (infos == null || infos.isEmpty())
+            return;
+
+        int endMs = infos.get(infos.size() - 1).getTimestamp().getSecond() * 1000 + infos.get(infos.size() - 1).getTimestamp().getMillisecond();
+        int beginMs = infos.get(0).getTimestamp().getSecond() * 1000 + infos.get(0).getTimestamp().getMillisecond();
+        long sampleDuration = (endMs - beginMs) / 1000;
+
+        List<PerfMetricSeries> vals = metric.getValue();
+        for (int vi = 0; vals != null && vi < vals.size(); ++vi) {
+            if (!(vals.get(vi) instanceof PerfMetricIntSeries))
+                continue;
+
+            List<Long> perfValues = ((PerfMetricIntSeries)vals.get(vi)).getValue();
+            long sumRate = 0;
+            for (int j = 0; j < infos.size() && j < perfValues.size(); j++)
+                sumRate += perfValues.get(j);
+            long averageRate = sumRate / infos.size();
+
+            // average rate multiplied by the sampled duration
+            int counterId = vals.get(vi).getId().getCounterId();
+            if (_rxCounter != null && counterId == _rxCounter.getKey())
+                vm._networkReadKBs = sampleDuration * averageRate;
+            if (_txCounter != null && counterId == _txCounter.getKey())
+                vm._networkWriteKBs = sampleDuration * averageRate;
+        }
+    }
+}
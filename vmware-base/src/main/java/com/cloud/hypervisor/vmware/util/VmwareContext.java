@@ -18,6 +18,7 @@ package com.cloud.hypervisor.vmware.util;
 
 import com.cloud.hypervisor.vmware.mo.DatacenterMO;
 import com.cloud.hypervisor.vmware.mo.DatastoreFile;
+import com.cloud.hypervisor.vmware.mo.VmwareStatsCollector;
 import com.cloud.utils.ActionDelegate;
 import com.cloud.utils.StringUtils;
 import com.vmware.vim25.ManagedObjectReference;
@@ -73,6 +74,8 @@ public class VmwareContext {
     private VmwareContextPool _pool;
     private String _poolKey;
 
+    private VmwareStatsCollector _statsCollector;
+
     private static volatile int s_outstandingCount = 0;
 
     static {
@@ -160,6 +163,16 @@ public class VmwareContext {
         return _vimClient;
     }
 
+    /**
+     * The stats collector is shared by every command executed on this context, so its incremental
+     * property updates and cached counter ids survive across stats cycles.
+     */
+    public synchronized VmwareStatsCollector getStatsCollector() {
+        if (_statsCollector == null)
+            _statsCollector = new VmwareStatsCollector(this);
+        return _statsCollector;
+    }
+
     public void setPoolInfo(VmwareContextPool pool, String poolKey) {
         _pool = pool;
         _poolKey = poolKey;
@@ -0,0 +1,303 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.mo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.datatype.DatatypeFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.hypervisor.vmware.util.VmwareClient;
+import com.cloud.hypervisor.vmware.util.VmwareContext;
+import com.vmware.vim25.ComputeResourceSummary;
+import com.vmware.vim25.CustomFieldDef;
+import com.vmware.vim25.CustomFieldStringValue;
+import com.vmware.vim25.ElementDescription;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PerfSampleInfo;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.WaitOptions;
+
+@RunWith(MockitoJUnitRunner.class)
+public class VmwareStatsCollectorTest {
+    private static final int RX_COUNTER = 100;
+    private static final int TX_COUNTER = 101;
+    private static final int INSTANCE_NAME_KEY = 7;
+
+    @Mock
+    VmwareContext context;
+    @Mock
+    VmwareClient client;
+    @Mock
+    VimPortType service;
+    @Mock
+    ServiceContent serviceContent;
+
+    ManagedObjectReference host = mor("HostSystem", "host-1");
+    ManagedObjectReference filter = mor("PropertyFilter", "filter-1");
+    ManagedObjectReference collector = mor("PropertyCollector", "collector-1");
+    ManagedObjectReference perfMgr = mor("PerformanceManager", "PerfMgr");
+
+    List<List<PerfQuerySpec>> perfQueries = new ArrayList<List<PerfQuerySpec>>();
+
+    @Before
+    public void setUp() throws Exception {
+        when(context.getService()).thenReturn(service);
+        when(context.getServiceContent()).thenReturn(serviceContent);
+        when(context.getVimClient()).thenReturn(client);
+        when(context.getPropertyCollector()).thenReturn(mor("PropertyCollector", "propertyCollector"));
+        when(serviceContent.getPerfManager()).thenReturn(perfMgr);
+        when(serviceContent.getCustomFieldsManager()).thenReturn(mor("CustomFieldsManager", "CustomFieldsManager"));
+
+        CustomFieldDef field = new CustomFieldDef();
+        field.setKey(INSTANCE_NAME_KEY);
+        field.setName(CustomFieldConstants.CLOUD_VM_INTERNAL_NAME);
+        field.setManagedObjectType("VirtualMachine");
+        when(client.getDynamicProperty(any(ManagedObjectReference.class), eq("field"))).thenReturn(Arrays.asList(field));
+        when(client.getDynamicProperty(perfMgr, "perfCounter")).thenReturn(Arrays.asList(counter(RX_COUNTER, "received"), counter(TX_COUNTER, "transmitted")));
+
+        when(service.createPropertyCollector(any(ManagedObjectReference.class))).thenReturn(collector);
+        when(service.createFilter(eq(collector), any(PropertyFilterSpec.class), anyBoolean())).thenReturn(filter);
+        when(service.queryPerf(eq(perfMgr), anyListOf(PerfQuerySpec.class))).thenAnswer(new Answer<List<PerfEntityMetricBase>>() {
+            @Override
+            public List<PerfEntityMetricBase> answer(InvocationOnMock invocation) throws Throwable {
+                @SuppressWarnings("unchecked")
+                List<PerfQuerySpec> specs = new ArrayList<PerfQuerySpec>((List<PerfQuerySpec>)invocation.getArguments()[1]);
+                perfQueries.add(specs);
+                List<PerfEntityMetricBase> values = new ArrayList<PerfEntityMetricBase>();
+                for (PerfQuerySpec spec : specs)
+                    values.add(metric(spec.getEntity(), 10, 20));
+                return values;
+            }
+        });
+    }
+
+    @Test
+    public void testBatchesPerfQueriesForAllVms() throws Exception {
+        UpdateSet initial = updateSet("1", vmUpdate(ObjectUpdateKind.ENTER, "vm-1", "i-2-10-VM", VirtualMachinePowerState.POWERED_ON, 500),
+                vmUpdate(ObjectUpdateKind.ENTER, "vm-2", "i-2-11-VM", VirtualMachinePowerState.POWERED_ON, 1000),
+                vmUpdate(ObjectUpdateKind.ENTER, "vm-3", "i-2-12-VM", VirtualMachinePowerState.POWERED_ON, 0),
+                vmUpdate(ObjectUpdateKind.ENTER, "vm-4", "i-2-13-VM", VirtualMachinePowerState.POWERED_OFF, 0));
+        when(service.waitForUpdatesEx(eq(collector), anyString(), any(WaitOptions.class))).thenReturn(initial);
+
+        VmwareStatsCollector statsCollector = new VmwareStatsCollector(context, 2);
+        Map<String, VmwareStatsCollector.VmStats> stats = statsCollector.getVmStats(host, Arrays.asList("i-2-10-VM", "i-2-11-VM", "i-2-12-VM", "i-2-13-VM", "i-2-99-VM"));
+
+        assertEquals(4, stats.size());
+        assertEquals(500, stats.get("i-2-10-VM").getDouble(VmwareStatsCollector.VM_CPU_USAGE), 0);
+        assertEquals(1000, stats.get("i-2-11-VM").getDouble(VmwareStatsCollector.VM_CPU_USAGE), 0);
+
+        // three powered on VMs in batches of two, the powered off one is not queried
+        assertEquals(2, perfQueries.size());
+        assertEquals(2, perfQueries.get(0).size());
+        assertEquals(1, perfQueries.get(1).size());
+        // 40 seconds of samples at an average rate of 10 and 20 KBps
+        assertEquals(400, stats.get("i-2-10-VM").getNetworkReadKBs(), 0);
+        assertEquals(800, stats.get("i-2-10-VM").getNetworkWriteKBs(), 0);
+        assertEquals(0, stats.get("i-2-13-VM").getNetworkReadKBs(), 0);
+    }
+
+    @Test
+    public void testAppliesIncrementalUpdates() throws Exception {
+        UpdateSet initial = updateSet("1", vmUpdate(ObjectUpdateKind.ENTER, "vm-1", "i-2-10-VM", VirtualMachinePowerState.POWERED_ON, 500),
+                vmUpdate(ObjectUpdateKind.ENTER, "vm-2", "i-2-11-VM", VirtualMachinePowerState.POWERED_ON, 1000));
+
+        ObjectUpdate modify = new ObjectUpdate();
+        modify.setKind(ObjectUpdateKind.MODIFY);
+        modify.setObj(mor("VirtualMachine", "vm-1"));
+        modify.getChangeSet().add(change(VmwareStatsCollector.VM_CPU_USAGE, 750));
+        ObjectUpdate leave = new ObjectUpdate();
+        leave.setKind(ObjectUpdateKind.LEAVE);
+        leave.setObj(mor("VirtualMachine", "vm-2"));
+        UpdateSet delta = updateSet("2", modify, leave);
+
+        when(service.waitForUpdatesEx(eq(collector), eq(""), any(WaitOptions.class))).thenReturn(initial);
+        when(service.waitForUpdatesEx(eq(collector), eq("1"), any(WaitOptions.class))).thenReturn(delta);
+        when(service.waitForUpdatesEx(eq(collector), eq("2"), any(WaitOptions.class))).thenReturn(null);
+
+        VmwareStatsCollector statsCollector = new VmwareStatsCollector(context);
+        List<String> vmNames = Arrays.asList("i-2-10-VM", "i-2-11-VM");
+        assertEquals(2, statsCollector.getVmStats(host, vmNames).size());
+
+        Map<String, VmwareStatsCollector.VmStats> stats = statsCollector.getVmStats(host, vmNames);
+        assertEquals(1, stats.size());
+        assertEquals(750, stats.get("i-2-10-VM").getDouble(VmwareStatsCollector.VM_CPU_USAGE), 0);
+        assertEquals(2, stats.get("i-2-10-VM").getDouble(VmwareStatsCollector.VM_NUM_CPU), 0);
+
+        // nothing changed since version 2, the cached properties are served as is
+        stats = statsCollector.getVmStats(host, vmNames);
+        assertEquals(750, stats.get("i-2-10-VM").getDouble(VmwareStatsCollector.VM_CPU_USAGE), 0);
+
+        verify(service, times(1)).createPropertyCollector(any(ManagedObjectReference.class));
+        verify(service, times(1)).createFilter(eq(collector), any(PropertyFilterSpec.class), anyBoolean());
+        verify(client, times(1)).getDynamicProperty(perfMgr, "perfCounter");
+        verify(client, times(1)).getDynamicProperty(any(ManagedObjectReference.class), eq("field"));
+    }
+
+    @Test
+    public void testStartsOverWhenUpdatesFail() throws Exception {
+        UpdateSet initial = updateSet("1", vmUpdate(ObjectUpdateKind.ENTER, "vm-1", "i-2-10-VM", VirtualMachinePowerState.POWERED_ON, 500));
+        when(service.waitForUpdatesEx(eq(collector), anyString(), any(WaitOptions.class))).thenThrow(new RuntimeException("The session is not authenticated")).thenReturn(initial);
+
+        VmwareStatsCollector statsCollector = new VmwareStatsCollector(context);
+        Map<String, VmwareStatsCollector.VmStats> stats = statsCollector.getVmStats(host, Arrays.asList("i-2-10-VM"));
+        assertEquals(1, stats.size());
+
+        verify(service, times(1)).destroyPropertyCollector(collector);
+        verify(service, times(2)).createPropertyCollector(any(ManagedObjectReference.class));
+        verify(service, times(2)).createFilter(eq(collector), any(PropertyFilterSpec.class), anyBoolean());
+    }
+
+    @Test
+    public void testHostResourceSummary() throws Exception {
+        ObjectUpdate hostUpdate = new ObjectUpdate();
+        hostUpdate.setKind(ObjectUpdateKind.ENTER);
+        hostUpdate.setObj(host);
+        hostUpdate.getChangeSet().add(change(VmwareStatsCollector.HOST_CPU_MHZ, 2000));
+        hostUpdate.getChangeSet().add(change(VmwareStatsCollector.HOST_NUM_CPU_CORES, (short)8));
+        hostUpdate.getChangeSet().add(change(VmwareStatsCollector.HOST_MEMORY_SIZE, 64L * 1024 * 1024 * 1024));
+        hostUpdate.getChangeSet().add(change(VmwareStatsCollector.HOST_CPU_USAGE, 4000));
+        hostUpdate.getChangeSet().add(change(VmwareStatsCollector.HOST_MEMORY_USAGE, 16 * 1024));
+        when(service.waitForUpdatesEx(eq(collector), anyString(), any(WaitOptions.class))).thenReturn(updateSet("1", hostUpdate));
+
+        VmwareStatsCollector statsCollector = new VmwareStatsCollector(context);
+        ComputeResourceSummary summary = statsCollector.getHostResourceSummary(host);
+        assertEquals(16000, summary.getTotalCpu());
+        assertEquals(12000, summary.getEffectiveCpu());
+        assertEquals(48 * 1024, summary.getEffectiveMemory());
+        assertTrue(perfQueries.isEmpty());
+        assertFalse(statsCollector.getVmStats(host, Arrays.asList("i-2-10-VM")).containsKey("i-2-10-VM"));
+    }
+
+    private static ManagedObjectReference mor(String type, String value) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(type);
+        mor.setValue(value);
+        return mor;
+    }
+
+    private static PropertyChange change(String name, Object val) {
+        PropertyChange change = new PropertyChange();
+        change.setName(name);
+        change.setOp(PropertyChangeOp.ASSIGN);
+        change.setVal(val);
+        return change;
+    }
+
+    private static PerfCounterInfo counter(int key, String name) {
+        ElementDescription group = new ElementDescription();
+        group.setKey("net");
+        ElementDescription counterName = new ElementDescription();
+        counterName.setKey(name);
+
+        PerfCounterInfo info = new PerfCounterInfo();
+        info.setKey(key);
+        info.setGroupInfo(group);
+        info.setNameInfo(counterName);
+        return info;
+    }
+
+    private ObjectUpdate vmUpdate(ObjectUpdateKind kind, String moref, String internalName, VirtualMachinePowerState powerState, int cpuUsage) {
+        CustomFieldStringValue nameValue = new CustomFieldStringValue();
+        nameValue.setKey(INSTANCE_NAME_KEY);
+        nameValue.setValue(internalName);
+
+        ObjectUpdate update = new ObjectUpdate();
+        update.setKind(kind);
+        update.setObj(mor("VirtualMachine", moref));
+        update.getChangeSet().add(change(VmwareStatsCollector.VM_NAME, internalName + "-vcenter"));
+        update.getChangeSet().add(change("value[" + INSTANCE_NAME_KEY + "]", nameValue));
+        update.getChangeSet().add(change(VmwareStatsCollector.VM_POWER_STATE, powerState));
+        update.getChangeSet().add(change(VmwareStatsCollector.VM_NUM_CPU, 2));
+        update.getChangeSet().add(change(VmwareStatsCollector.VM_CPU_USAGE, cpuUsage));
+        update.getChangeSet().add(change(VmwareStatsCollector.VM_MAX_CPU_USAGE, 4000));
+        return update;
+    }
+
+    private UpdateSet updateSet(String version, ObjectUpdate... updates) {
+        PropertyFilterUpdate filterUpdate = new PropertyFilterUpdate();
+        filterUpdate.setFilter(filter);
+        filterUpdate.getObjectSet().addAll(Arrays.asList(updates));
+
+        UpdateSet updateSet = new UpdateSet();
+        updateSet.setVersion(version);
+        updateSet.getFilterSet().add(filterUpdate);
+        return updateSet;
+    }
+
+    private static PerfEntityMetric metric(ManagedObjectReference entity, long rxRate, long txRate) throws Exception {
+        PerfEntityMetric metric = new PerfEntityMetric();
+        metric.setEntity(entity);
+        for (int second : new int[] {0, 20, 40}) {
+            PerfSampleInfo sample = new PerfSampleInfo();
+            sample.setInterval(20);
+            sample.setTimestamp(DatatypeFactory.newInstance().newXMLGregorianCalendar(2018, 1, 1, 0, 0, second, 0, 0));
+            metric.getSampleInfo().add(sample);
+        }
+        metric.getValue().add(series(RX_COUNTER, rxRate));
+        metric.getValue().add(series(TX_COUNTER, txRate));
+        return metric;
+    }
+
+    private static PerfMetricIntSeries series(int counterId, long rate) {
+        PerfMetricId id = new PerfMetricId();
+        id.setCounterId(counterId);
+        id.setInstance("");
+
+        PerfMetricIntSeries series = new PerfMetricIntSeries();
+        series.setId(id);
+        series.getValue().addAll(Arrays.asList(rate, rate, rate));
+        return series;
+    }
+}